@@ -0,0 +1,1197 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.apps;
+
+import com.pixelmed.database.DatabaseInformationModel;
+import com.pixelmed.database.PatientStudySeriesConcatenationInstanceModel;
+
+import com.pixelmed.dicom.ApplicationEntityAttribute;
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTagAttribute;
+import com.pixelmed.dicom.CodeStringAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.InformationEntity;
+import com.pixelmed.dicom.LongStringAttribute;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.SetOfDicomFiles;
+import com.pixelmed.dicom.StoredFilePathStrategy;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+
+import com.pixelmed.network.DicomNetworkException;
+import com.pixelmed.network.IdentifierSubscriber;
+import com.pixelmed.network.IdentifierSubscription;
+import com.pixelmed.network.MoveSOPClassSCU;
+import com.pixelmed.network.NetworkApplicationInformation;
+import com.pixelmed.network.NetworkApplicationProperties;
+import com.pixelmed.network.PresentationAddress;
+import com.pixelmed.network.ReceivedObjectHandler;
+import com.pixelmed.network.ResponseStatus;
+import com.pixelmed.network.StorageSOPClassSCPDispatcher;
+import com.pixelmed.network.StreamingFindSOPClassSCU;
+
+import com.pixelmed.query.QueryResponseGenerator;
+import com.pixelmed.query.QueryResponseGeneratorFactory;
+import com.pixelmed.query.RetrieveResponseGenerator;
+import com.pixelmed.query.RetrieveResponseGeneratorFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>A query/retrieve proxy that sits in front of an upstream PACS, and answers repeated queries and retrievals
+ * from its own cache, to shield the upstream PACS from remote sites that ask for the same things again and again.</p>
+ *
+ * <p>C-FIND requests are forwarded upstream, and the responses are cached for a time to live, so that the same query within that time is
+ * answered without going upstream. If the upstream PACS cannot be queried, an expired response is used rather than failing.
+ * Responses are returned with our AE Title as the Retrieve AE Title.</p>
+ *
+ * <p>C-MOVE and C-GET requests are satisfied from the instances stored locally, and any instances that are missing (as determined by
+ * an instance level query of the upstream PACS, which is itself cached) are retrieved from upstream with a C-MOVE to ourselves. The
+ * instances already present are sent on to the requester at once, and the missing instances are sent on as each arrives, rather than
+ * after they have all arrived. Instances already being retrieved from upstream for one requester are not requested again for another.
+ * If the upstream PACS cannot be queried, whatever matches locally is sent.</p>
+ *
+ * <p>The instances stored locally are limited to a disk budget, beyond which the least recently used are removed from disk and from the
+ * local database. Instances being sent in response to a retrieval are pinned, and not removed until the retrieval is done, so the budget
+ * should be comfortably larger than the largest retrievals in progress at once.</p>
+ *
+ * <p>The main method runs a proxy configured by properties, including those used by {@link com.pixelmed.network.NetworkApplicationProperties NetworkApplicationProperties}, and:</p>
+ *
+ * <p><code>Proxy.UpstreamAETitle</code> - the AE Title of the upstream PACS, which must be one of the <code>Dicom.RemoteAEs</code></p>
+ * <p><code>Proxy.QueryTimeToLive</code> - in ms, how long query responses are cached, default 300000</p>
+ * <p><code>Proxy.QueryCacheSize</code> - how many distinct queries to cache, default 1000</p>
+ * <p><code>Proxy.DiskBudget</code> - in MB, the most to keep stored locally, default 10240</p>
+ * <p><code>Proxy.FetchThreads</code> - how many retrievals from upstream to perform at once, default 4</p>
+ *
+ * @author	agent
+ */
+public class CachingQueryRetrieveProxy {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	public static final String propertyName_ProxyUpstreamAETitle = "Proxy.UpstreamAETitle";
+	public static final String propertyName_ProxyQueryTimeToLive = "Proxy.QueryTimeToLive";
+	public static final String propertyName_ProxyQueryCacheSize = "Proxy.QueryCacheSize";
+	public static final String propertyName_ProxyDiskBudget = "Proxy.DiskBudget";
+	public static final String propertyName_ProxyFetchThreads = "Proxy.FetchThreads";
+
+	/***/
+	private static long upstreamQueryTimeout = 60000;	// ms
+	/***/
+	private static long upstreamInactivityTimeout = 120000;	// ms, how long to wait for the next instance from upstream before giving up
+
+	/***/
+	private String upstreamHostname;
+	/***/
+	private int upstreamPort;
+	/***/
+	private String upstreamAETitle;
+	/***/
+	private String ourAETitle;
+	/***/
+	private DatabaseInformationModel databaseInformationModel;
+	/***/
+	private long queryTimeToLive;
+	/***/
+	private int queryCacheSize;
+	/***/
+	private long diskBudget;
+	/***/
+	private int debugLevel;
+
+	/***/
+	private ExecutorService fetcher;
+	/***/
+	private StorageSOPClassSCPDispatcher dispatcher;
+
+	/***/
+	private Map<String,CachedQuery> cachedQueries;
+	/***/
+	private Map<String,CachedInstance> cachedInstances;		// access ordered, so eldest is least recently used
+	/***/
+	private long totalBytesCached;
+	/***/
+	private Map<String,List<ArrivingSetOfDicomFiles>> awaitedBy = new HashMap<String,List<ArrivingSetOfDicomFiles>>();
+	/***/
+	private Set<String> beingFetched = new HashSet<String>();
+
+	/***/
+	private int nQueriesFromCache;
+	/***/
+	private int nQueriesForwarded;
+	/***/
+	private int nInstancesFromCache;
+	/***/
+	private int nInstancesFetched;
+	/***/
+	private int nInstancesEvicted;
+
+	/**
+	 * <p>The responses to one query, and when they were obtained.</p>
+	 */
+	private class CachedQuery {
+		List<AttributeList> responses;
+		long timeObtained;
+
+		CachedQuery(List<AttributeList> responses) {
+			this.responses=responses;
+			timeObtained=System.currentTimeMillis();
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() - timeObtained > queryTimeToLive;
+		}
+	}
+
+	/**
+	 * <p>An instance stored locally, and how many retrievals are using it, while which it may not be evicted.</p>
+	 */
+	private class CachedInstance {
+		String fileName;
+		long length;
+		int pins;
+
+		CachedInstance(String fileName) {
+			this.fileName=fileName;
+			length=new File(fileName).length();
+		}
+	}
+
+	/**
+	 * <p>An instance expected in response to a retrieval, from an upstream instance level query.</p>
+	 */
+	private class ExpectedInstance {
+		String patientID;
+		String studyInstanceUID;
+		String seriesInstanceUID;
+		String sopInstanceUID;
+		String sopClassUID;
+
+		ExpectedInstance(AttributeList list) {
+			patientID = Attribute.getSingleStringValueOrEmptyString(list,TagFromName.PatientID);
+			studyInstanceUID = Attribute.getSingleStringValueOrEmptyString(list,TagFromName.StudyInstanceUID);
+			seriesInstanceUID = Attribute.getSingleStringValueOrEmptyString(list,TagFromName.SeriesInstanceUID);
+			sopInstanceUID = Attribute.getSingleStringValueOrEmptyString(list,TagFromName.SOPInstanceUID);
+			sopClassUID = Attribute.getSingleStringValueOrNull(list,TagFromName.SOPClassUID);
+		}
+	}
+
+	/**
+	 * <p>A set of files to be sent in response to a retrieval, some of which are present at once and
+	 * others of which will arrive from upstream.</p>
+	 *
+	 * <p>The iterator returns the files that are present, then waits for and returns each other file as it arrives, in the order they arrive,
+	 * so that they are sent on while the rest are still being retrieved. Files that do not arrive are not returned, and so will be counted
+	 * as failed sub-operations.</p>
+	 */
+	protected class ArrivingSetOfDicomFiles extends SetOfDicomFiles {
+		private LinkedList<DicomFile> ready = new LinkedList<DicomFile>();
+		private Set<String> awaited = new HashSet<String>();
+		private List<String> pinned = new ArrayList<String>();
+		private long timeOfLastArrival = System.currentTimeMillis();
+
+		/**
+		 * @param	sopClassUID		null if not known, in which case the set may not be used until the instance has arrived
+		 * @param	sopInstanceUID
+		 */
+		synchronized void addAwaited(String sopClassUID,String sopInstanceUID) {
+			if (awaited.add(sopInstanceUID)) {
+				add((Object)new DicomFile("awaited:"+sopInstanceUID,null,sopInstanceUID,null));	// counts toward size(), but is never returned by the iterator
+				if (sopClassUID != null) {
+					getSetOfSOPClassUIDs().add(sopClassUID);
+				}
+			}
+		}
+
+		/**
+		 * <p>An awaited instance has arrived, so pin it until the set is released.</p>
+		 *
+		 * @param	sopInstanceUID
+		 * @param	fileName
+		 * @param	sopClassUID
+		 */
+		synchronized void arrived(String sopInstanceUID,String fileName,String sopClassUID) {
+			if (awaited.contains(sopInstanceUID)) {
+				pin(sopInstanceUID,fileName);
+				present(sopInstanceUID,fileName,sopClassUID);
+			}
+		}
+
+		/**
+		 * <p>An awaited instance is present, and has already been pinned by the caller.</p>
+		 *
+		 * @param	sopInstanceUID
+		 * @param	fileName
+		 * @param	sopClassUID
+		 * @return					false if no longer awaited, in which case the caller should release its pin
+		 */
+		synchronized boolean present(String sopInstanceUID,String fileName,String sopClassUID) {
+			if (awaited.remove(sopInstanceUID)) {
+				pinned.add(sopInstanceUID);
+				ready.add(new DicomFile(fileName,sopClassUID,sopInstanceUID,null));
+				if (sopClassUID != null) {
+					getSetOfSOPClassUIDs().add(sopClassUID);
+				}
+				timeOfLastArrival = System.currentTimeMillis();
+				notifyAll();
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @param	sopInstanceUID
+		 */
+		synchronized void failed(String sopInstanceUID) {
+			if (awaited.remove(sopInstanceUID)) {
+				notifyAll();
+			}
+		}
+
+		/**
+		 * <p>Wait until nothing more is awaited, or nothing has arrived for too long.</p>
+		 *
+		 * @return		true if there is something ready to return
+		 */
+		synchronized boolean waitForReady() {
+			try {
+				while (ready.isEmpty() && !awaited.isEmpty()) {
+					long waitTime = timeOfLastArrival + upstreamInactivityTimeout - System.currentTimeMillis();
+					if (waitTime <= 0) {
+if (debugLevel > 0) System.err.println("CachingQueryRetrieveProxy.ArrivingSetOfDicomFiles.waitForReady(): giving up waiting for "+awaited.size()+" instances from upstream");
+						awaited.clear();
+						break;
+					}
+					wait(waitTime);
+				}
+			}
+			catch (InterruptedException e) {
+				awaited.clear();
+			}
+			return !ready.isEmpty();
+		}
+
+		/**
+		 * <p>Wait until nothing more is awaited, or nothing has arrived for too long, without returning anything.</p>
+		 */
+		synchronized void waitForAllArrived() {
+			try {
+				while (!awaited.isEmpty()) {
+					long waitTime = timeOfLastArrival + upstreamInactivityTimeout - System.currentTimeMillis();
+					if (waitTime <= 0) {
+						awaited.clear();
+						break;
+					}
+					wait(waitTime);
+				}
+			}
+			catch (InterruptedException e) {
+				awaited.clear();
+			}
+		}
+
+		public Iterator iterator() {
+			return new Iterator() {
+				public boolean hasNext() {
+					return waitForReady();
+				}
+
+				public Object next() {
+					synchronized (ArrivingSetOfDicomFiles.this) {
+						if (!waitForReady()) {
+							throw new NoSuchElementException();
+						}
+						return ready.removeFirst();
+					}
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		/**
+		 * <p>Stop waiting for anything more, and allow the instances in the set to be evicted.</p>
+		 *
+		 * <p>Not until all the sub-operations using them are done.</p>
+		 */
+		void releasePinned() {
+			List<String> toRelease;
+			synchronized (this) {
+				awaited.clear();		// anything arriving later will not be pinned for us
+				toRelease = pinned;
+				pinned = new ArrayList<String>();
+				notifyAll();
+			}
+			Iterator<String> i = toRelease.iterator();
+			while (i.hasNext()) {
+				release(i.next());
+			}
+		}
+
+		public synchronized String toString() {
+			return "ArrivingSetOfDicomFiles: size="+size()+" ready="+ready.size()+" awaited="+awaited.size();	// not by iterating, which would wait
+		}
+	}
+
+	/**
+	 * <p>Collects the responses from an upstream query, and waits for it to finish.</p>
+	 */
+	private class QueryCollector implements IdentifierSubscriber {
+		List<AttributeList> responses = new ArrayList<AttributeList>();
+		IdentifierSubscription subscription;
+		int status = -1;
+		Exception exception;
+		boolean finished;
+
+		public synchronized void onSubscribe(IdentifierSubscription subscription) {
+			this.subscription=subscription;
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		public synchronized void onNext(AttributeList identifier) {
+			responses.add(identifier);
+		}
+
+		public synchronized void onComplete(int status) {
+			this.status=status;
+			finished=true;
+			notifyAll();
+		}
+
+		public synchronized void onError(Exception e) {
+			exception=e;
+			finished=true;
+			notifyAll();
+		}
+
+		/**
+		 * @return	true if the query finished successfully
+		 */
+		boolean waitForSuccess() throws InterruptedException {
+			IdentifierSubscription toCancel = null;
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + upstreamQueryTimeout;
+				while (!finished && System.currentTimeMillis() < deadline) {
+					wait(deadline - System.currentTimeMillis());
+				}
+				if (!finished) {
+					toCancel = subscription;
+				}
+			}
+			if (toCancel != null) {
+				toCancel.cancel();		// not while synchronized, since may block sending C-CANCEL-RQ
+				return false;
+			}
+if (debugLevel > 0 && exception != null) System.err.println("CachingQueryRetrieveProxy.QueryCollector.waitForSuccess(): "+exception);
+			return exception == null && status == ResponseStatus.Success;
+		}
+	}
+
+	/**
+	 * @param	querySOPClassUID
+	 * @param	identifier
+	 * @return						a key that is the same for the same query
+	 */
+	private static String getQueryKey(String querySOPClassUID,AttributeList identifier) {
+		StringBuffer buf = new StringBuffer();
+		buf.append(querySOPClassUID);
+		Iterator i = identifier.values().iterator();		// in tag order
+		while (i.hasNext()) {
+			Attribute a = (Attribute)(i.next());
+			buf.append("|");
+			buf.append(a.getTag());
+			buf.append("=");
+			buf.append(a.getVR() == null ? "" : new String(a.getVR()));
+			buf.append(":");
+			buf.append(a.getDelimitedStringValuesOrEmptyString());
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * <p>Get the responses to a query, from the cache if present and not expired, else from upstream.</p>
+	 *
+	 * @param	querySOPClassUID
+	 * @param	identifier
+	 * @return						the responses, or null if the upstream query failed and nothing was cached
+	 * @exception	InterruptedException
+	 */
+	protected List<AttributeList> getQueryResponses(String querySOPClassUID,AttributeList identifier) throws InterruptedException {
+		String key = getQueryKey(querySOPClassUID,identifier);
+		CachedQuery cached;
+		synchronized (cachedQueries) {
+			cached = cachedQueries.get(key);
+		}
+		if (cached != null && !cached.isExpired()) {
+if (debugLevel > 0) System.err.println("CachingQueryRetrieveProxy.getQueryResponses(): from cache");
+			synchronized (this) {
+				++nQueriesFromCache;
+			}
+			return cached.responses;
+		}
+		QueryCollector collector = new QueryCollector();
+		new StreamingFindSOPClassSCU(upstreamHostname,upstreamPort,upstreamAETitle,ourAETitle,
+			querySOPClassUID,(AttributeList)(identifier.clone()),0/*no limit*/,debugLevel).subscribe(collector);
+		if (collector.waitForSuccess()) {
+			synchronized (this) {
+				++nQueriesForwarded;
+			}
+			synchronized (cachedQueries) {
+				cachedQueries.put(key,new CachedQuery(collector.responses));
+			}
+			return collector.responses;
+		}
+		if (cached != null) {
+if (debugLevel > 0) System.err.println("CachingQueryRetrieveProxy.getQueryResponses(): upstream query failed, so using expired responses");
+			synchronized (this) {
+				++nQueriesFromCache;
+			}
+			return cached.responses;
+		}
+		return null;
+	}
+
+	/**
+	 * <p>Answers C-FIND requests from the cache or upstream.</p>
+	 */
+	protected class CachingQueryResponseGenerator implements QueryResponseGenerator {
+		private Iterator<AttributeList> responses;
+		private int status = ResponseStatus.Success;
+		private String errorComment;
+
+		public void performQuery(String querySOPClassUID,AttributeList queryIdentifier,boolean relational) {
+			try {
+				List<AttributeList> list = getQueryResponses(querySOPClassUID,queryIdentifier);
+				if (list == null) {
+					status = ResponseStatus.UnableToProcess;
+					errorComment = "Upstream query failed";
+				}
+				else {
+					responses = list.iterator();
+				}
+			}
+			catch (InterruptedException e) {
+				status = ResponseStatus.UnableToProcess;
+				errorComment = e.toString();
+			}
+		}
+
+		public AttributeList next() {
+			if (responses == null || !responses.hasNext()) {
+				return null;
+			}
+			AttributeList response = (AttributeList)(responses.next().clone());
+			try {
+				Attribute a = new ApplicationEntityAttribute(TagFromName.RetrieveAETitle); a.addValue(ourAETitle); response.put(a);	// retrieve from us, not upstream
+			}
+			catch (DicomException e) {
+				e.printStackTrace(System.err);
+			}
+			return response;
+		}
+
+		public int getStatus() { return status; }
+
+		public AttributeTagAttribute getOffendingElement() { return null; }
+
+		public String getErrorComment() { return errorComment; }
+
+		public void close() {}
+
+		public boolean allOptionalKeysSuppliedWereSupported() { return true; }
+	}
+
+	/**
+	 * @param	retrieveSOPClassUID
+	 * @return						true if patient root
+	 */
+	private static boolean isPatientRoot(String retrieveSOPClassUID) {
+		return SOPClass.PatientRootQueryRetrieveInformationModelMove.equals(retrieveSOPClassUID)
+			|| SOPClass.PatientRootQueryRetrieveInformationModelGet.equals(retrieveSOPClassUID);
+	}
+
+	/**
+	 * @param	level
+	 * @param	patientID	null if not needed
+	 * @return				the start of a query identifier
+	 * @exception	DicomException
+	 */
+	private static AttributeList newIdentifier(String level,String patientID) throws DicomException {
+		AttributeList identifier = new AttributeList();
+		{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue(level); identifier.put(a); }
+		if (patientID != null) {
+			Attribute a = new LongStringAttribute(TagFromName.PatientID); a.addValue(patientID); identifier.put(a);
+		}
+		return identifier;
+	}
+
+	/**
+	 * @param	list
+	 * @param	tag
+	 * @return		the values, empty if none
+	 * @exception	DicomException
+	 */
+	private static String[] getValues(AttributeList list,com.pixelmed.dicom.AttributeTag tag) throws DicomException {
+		Attribute a = list.get(tag);
+		String[] values = a == null ? null : a.getStringValues();
+		return values == null ? new String[0] : values;
+	}
+
+	/**
+	 * <p>Find the instances that satisfy a retrieval, by instance level queries of the upstream PACS.</p>
+	 *
+	 * @param	retrieveSOPClassUID
+	 * @param	identifier
+	 * @return						the instances, or null if the upstream PACS could not be queried
+	 * @exception	DicomException
+	 * @exception	InterruptedException
+	 */
+	protected List<ExpectedInstance> findExpectedInstances(String retrieveSOPClassUID,AttributeList identifier) throws DicomException, InterruptedException {
+		boolean patientRoot = isPatientRoot(retrieveSOPClassUID);
+		String findSOPClassUID = patientRoot ? SOPClass.PatientRootQueryRetrieveInformationModelFind : SOPClass.StudyRootQueryRetrieveInformationModelFind;
+		String level = Attribute.getSingleStringValueOrEmptyString(identifier,TagFromName.QueryRetrieveLevel).trim();
+		String patientID = patientRoot ? Attribute.getSingleStringValueOrEmptyString(identifier,TagFromName.PatientID) : null;
+
+		// list of (patientID,studyInstanceUID) pairs, then of series, then instances
+		List<String[]> studies = new ArrayList<String[]>();
+		if (level.equals("PATIENT")) {
+			AttributeList studyIdentifier = newIdentifier("STUDY",patientID);
+			studyIdentifier.putNewAttribute(TagFromName.StudyInstanceUID);
+			List<AttributeList> responses = getQueryResponses(findSOPClassUID,studyIdentifier);
+			if (responses == null) {
+				return null;
+			}
+			Iterator<AttributeList> i = responses.iterator();
+			while (i.hasNext()) {
+				studies.add(new String[] { patientID, Attribute.getSingleStringValueOrEmptyString(i.next(),TagFromName.StudyInstanceUID) });
+			}
+		}
+		else {
+			String[] studyInstanceUIDs = getValues(identifier,TagFromName.StudyInstanceUID);
+			for (int i=0; i<studyInstanceUIDs.length; ++i) {
+				studies.add(new String[] { patientID, studyInstanceUIDs[i] });
+			}
+		}
+
+		List<String[]> series = new ArrayList<String[]>();
+		if (level.equals("SERIES") || level.equals("IMAGE")) {
+			String[] seriesInstanceUIDs = getValues(identifier,TagFromName.SeriesInstanceUID);
+			if (studies.size() == 1) {
+				for (int i=0; i<seriesInstanceUIDs.length; ++i) {
+					series.add(new String[] { studies.get(0)[0], studies.get(0)[1], seriesInstanceUIDs[i] });
+				}
+			}
+		}
+		else {
+			Iterator<String[]> si = studies.iterator();
+			while (si.hasNext()) {
+				String[] study = si.next();
+				AttributeList seriesIdentifier = newIdentifier("SERIES",study[0]);
+				{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue(study[1]); seriesIdentifier.put(a); }
+				seriesIdentifier.putNewAttribute(TagFromName.SeriesInstanceUID);
+				List<AttributeList> responses = getQueryResponses(findSOPClassUID,seriesIdentifier);
+				if (responses == null) {
+					return null;
+				}
+				Iterator<AttributeList> i = responses.iterator();
+				while (i.hasNext()) {
+					series.add(new String[] { study[0], study[1], Attribute.getSingleStringValueOrEmptyString(i.next(),TagFromName.SeriesInstanceUID) });
+				}
+			}
+		}
+
+		List<ExpectedInstance> instances = new ArrayList<ExpectedInstance>();
+		Iterator<String[]> si = series.iterator();
+		while (si.hasNext()) {
+			String[] oneSeries = si.next();
+			AttributeList instanceIdentifier = newIdentifier("IMAGE",oneSeries[0]);
+			{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue(oneSeries[1]); instanceIdentifier.put(a); }
+			{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SeriesInstanceUID); a.addValue(oneSeries[2]); instanceIdentifier.put(a); }
+			{
+				Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID);
+				if (level.equals("IMAGE")) {
+					String[] sopInstanceUIDs = getValues(identifier,TagFromName.SOPInstanceUID);
+					for (int i=0; i<sopInstanceUIDs.length; ++i) {
+						a.addValue(sopInstanceUIDs[i]);
+					}
+				}
+				instanceIdentifier.put(a);
+			}
+			instanceIdentifier.putNewAttribute(TagFromName.SOPClassUID);
+			List<AttributeList> responses = getQueryResponses(findSOPClassUID,instanceIdentifier);
+			if (responses == null) {
+				return null;
+			}
+			Iterator<AttributeList> i = responses.iterator();
+			while (i.hasNext()) {
+				AttributeList response = i.next();
+				ExpectedInstance instance = new ExpectedInstance(response);
+				if (instance.sopInstanceUID.length() > 0) {
+					if (instance.studyInstanceUID.length() == 0) {
+						instance.studyInstanceUID = oneSeries[1];
+					}
+					if (instance.seriesInstanceUID.length() == 0) {
+						instance.seriesInstanceUID = oneSeries[2];
+					}
+					if (instance.patientID.length() == 0 && oneSeries[0] != null) {
+						instance.patientID = oneSeries[0];
+					}
+					instances.add(instance);
+				}
+			}
+		}
+		return instances;
+	}
+
+	/**
+	 * <p>Retrieve missing instances of one series from upstream, to ourselves.</p>
+	 */
+	protected class Fetch implements Runnable {
+		String retrieveSOPClassUID;
+		List<ExpectedInstance> instances;
+
+		Fetch(String retrieveSOPClassUID,List<ExpectedInstance> instances) {
+			this.retrieveSOPClassUID=retrieveSOPClassUID;
+			this.instances=instances;
+		}
+
+		public void run() {
+			try {
+				ExpectedInstance first = instances.get(0);
+				boolean patientRoot = isPatientRoot(retrieveSOPClassUID);
+				AttributeList identifier = newIdentifier("IMAGE",patientRoot ? first.patientID : null);
+				{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue(first.studyInstanceUID); identifier.put(a); }
+				{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SeriesInstanceUID); a.addValue(first.seriesInstanceUID); identifier.put(a); }
+				{
+					Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID);
+					Iterator<ExpectedInstance> i = instances.iterator();
+					while (i.hasNext()) {
+						a.addValue(i.next().sopInstanceUID);
+					}
+					identifier.put(a);
+				}
+if (debugLevel > 0) System.err.println("CachingQueryRetrieveProxy.Fetch.run(): retrieving "+instances.size()+" instances from upstream");
+				MoveSOPClassSCU moveSOPClassSCU = new MoveSOPClassSCU(upstreamHostname,upstreamPort,upstreamAETitle,ourAETitle,ourAETitle,
+					patientRoot ? SOPClass.PatientRootQueryRetrieveInformationModelMove : SOPClass.StudyRootQueryRetrieveInformationModelMove,
+					identifier,debugLevel);
+if (debugLevel > 0) System.err.println("CachingQueryRetrieveProxy.Fetch.run(): upstream move status 0x"+Integer.toHexString(moveSOPClassSCU.getStatus()));
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.err);
+			}
+			// the upstream C-MOVE is complete, and each instance is indicated as received before its C-STORE response, so anything still awaited is not coming
+			Iterator<ExpectedInstance> i = instances.iterator();
+			while (i.hasNext()) {
+				notFetched(i.next().sopInstanceUID);
+			}
+		}
+	}
+
+	/**
+	 * @param	sopInstanceUID
+	 * @param	set				to be told when the instance arrives
+	 */
+	private synchronized void await(String sopInstanceUID,ArrivingSetOfDicomFiles set) {
+		List<ArrivingSetOfDicomFiles> sets = awaitedBy.get(sopInstanceUID);
+		if (sets == null) {
+			sets = new ArrayList<ArrivingSetOfDicomFiles>();
+			awaitedBy.put(sopInstanceUID,sets);
+		}
+		sets.add(set);
+	}
+
+	/**
+	 * @param	sopInstanceUID
+	 * @param	fileName
+	 * @param	sopClassUID
+	 */
+	private void fetched(String sopInstanceUID,String fileName,String sopClassUID) {
+		List<ArrivingSetOfDicomFiles> sets;
+		synchronized (this) {
+			beingFetched.remove(sopInstanceUID);
+			sets = awaitedBy.remove(sopInstanceUID);
+		}
+		if (sets != null) {
+			Iterator<ArrivingSetOfDicomFiles> i = sets.iterator();
+			while (i.hasNext()) {
+				i.next().arrived(sopInstanceUID,fileName,sopClassUID);
+			}
+		}
+	}
+
+	/**
+	 * @param	sopInstanceUID
+	 */
+	private void notFetched(String sopInstanceUID) {
+		List<ArrivingSetOfDicomFiles> sets = null;
+		synchronized (this) {
+			if (beingFetched.remove(sopInstanceUID)) {
+				sets = awaitedBy.remove(sopInstanceUID);
+			}
+		}
+		if (sets != null) {
+			Iterator<ArrivingSetOfDicomFiles> i = sets.iterator();
+			while (i.hasNext()) {
+				i.next().failed(sopInstanceUID);
+			}
+		}
+	}
+
+	/**
+	 * @param	sopInstanceUID
+	 * @return					the local file name of the instance, or null if not present
+	 * @exception	DicomException
+	 */
+	private String findLocalFileName(String sopInstanceUID) throws DicomException {
+		List<Map<String,String>> records;
+		synchronized (databaseInformationModel) {
+			records = databaseInformationModel.findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedUID(InformationEntity.INSTANCE,sopInstanceUID);
+		}
+		Iterator<Map<String,String>> i = records.iterator();
+		while (i.hasNext()) {
+			String fileName = i.next().get(databaseInformationModel.getLocalFileNameColumnName(InformationEntity.INSTANCE));
+			if (fileName != null && new File(fileName).exists()) {
+				return fileName;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * <p>Satisfies C-MOVE and C-GET requests from local storage, retrieving anything missing from upstream.</p>
+	 *
+	 * <p>The instances to be sent are pinned so that they are not evicted, until closed after the sub-operations are done.</p>
+	 */
+	protected class CachingRetrieveResponseGenerator implements RetrieveResponseGenerator {
+		private SetOfDicomFiles dicomFiles;
+		private ArrivingSetOfDicomFiles arrivingDicomFiles;
+		private RetrieveResponseGenerator localRetrieveResponseGenerator;
+		private int status = ResponseStatus.Success;
+		private AttributeTagAttribute offendingElement;
+		private String errorComment;
+
+		public void performRetrieve(String retrieveSOPClassUID,AttributeList requestIdentifier,boolean relational) {
+			try {
+				List<ExpectedInstance> expected = findExpectedInstances(retrieveSOPClassUID,requestIdentifier);
+				if (expected == null) {
+if (debugLevel > 0) System.err.println("CachingQueryRetrieveProxy.CachingRetrieveResponseGenerator.performRetrieve(): upstream query failed, so retrieving only what is stored locally");
+					localRetrieveResponseGenerator = databaseInformationModel.getRetrieveResponseGeneratorFactory(debugLevel).newInstance();
+					localRetrieveResponseGenerator.performRetrieve(retrieveSOPClassUID,requestIdentifier,relational);
+					dicomFiles = localRetrieveResponseGenerator.getDicomFiles();
+					status = localRetrieveResponseGenerator.getStatus();
+					offendingElement = localRetrieveResponseGenerator.getOffendingElement();
+					errorComment = localRetrieveResponseGenerator.getErrorComment();
+					return;
+				}
+				ArrivingSetOfDicomFiles set = new ArrivingSetOfDicomFiles();
+				arrivingDicomFiles = set;
+				boolean allSOPClassesKnown = true;
+				// register as awaiting each instance before looking for it locally, so that an arrival in between is not missed
+				Iterator<ExpectedInstance> i = expected.iterator();
+				while (i.hasNext()) {
+					ExpectedInstance instance = i.next();
+					set.addAwaited(instance.sopClassUID,instance.sopInstanceUID);
+					await(instance.sopInstanceUID,set);
+					if (instance.sopClassUID == null) {
+						allSOPClassesKnown = false;
+					}
+				}
+				Map<String,List<ExpectedInstance>> toFetchBySeries = new LinkedHashMap<String,List<ExpectedInstance>>();
+				int nPresent = 0;
+				i = expected.iterator();
+				while (i.hasNext()) {
+					ExpectedInstance instance = i.next();
+					String fileName = findLocalFileName(instance.sopInstanceUID);
+					if (fileName != null) {
+						pin(instance.sopInstanceUID,fileName);
+						if (new File(fileName).exists()) {		// else evicted before it could be pinned
+							if (!set.present(instance.sopInstanceUID,fileName,instance.sopClassUID)) {
+								release(instance.sopInstanceUID);		// already arrived, and pinned then
+							}
+							++nPresent;
+						}
+						else {
+							release(instance.sopInstanceUID);
+							fileName = null;
+						}
+					}
+					if (fileName == null) {
+						boolean fetch;
+						synchronized (CachingQueryRetrieveProxy.this) {
+							fetch = beingFetched.add(instance.sopInstanceUID);		// else already being retrieved for someone else
+						}
+						if (fetch) {
+							List<ExpectedInstance> seriesToFetch = toFetchBySeries.get(instance.seriesInstanceUID);
+							if (seriesToFetch == null) {
+								seriesToFetch = new ArrayList<ExpectedInstance>();
+								toFetchBySeries.put(instance.seriesInstanceUID,seriesToFetch);
+							}
+							seriesToFetch.add(instance);
+						}
+					}
+				}
+				synchronized (CachingQueryRetrieveProxy.this) {
+					nInstancesFromCache += nPresent;
+					nInstancesFetched += expected.size() - nPresent;
+				}
+if (debugLevel > 0) System.err.println("CachingQueryRetrieveProxy.CachingRetrieveResponseGenerator.performRetrieve(): "+nPresent+" of "+expected.size()+" instances present locally");
+				Iterator<List<ExpectedInstance>> fi = toFetchBySeries.values().iterator();
+				while (fi.hasNext()) {
+					fetcher.execute(new Fetch(retrieveSOPClassUID,fi.next()));
+				}
+				if (!allSOPClassesKnown) {
+					// upstream did not return SOPClassUID, which is optional, so cannot negotiate onward presentation contexts until everything has arrived
+					set.waitForAllArrived();
+				}
+				dicomFiles = set;
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.err);
+				status = ResponseStatus.UnableToProcess;
+				errorComment = e.toString();
+			}
+		}
+
+		public SetOfDicomFiles getDicomFiles() { return dicomFiles; }
+
+		public int getStatus() { return status; }
+
+		public AttributeTagAttribute getOffendingElement() { return offendingElement; }
+
+		public String getErrorComment() { return errorComment; }
+
+		public void close() {
+			if (arrivingDicomFiles != null) {
+				arrivingDicomFiles.releasePinned();
+				arrivingDicomFiles = null;
+			}
+			if (localRetrieveResponseGenerator != null) {
+				localRetrieveResponseGenerator.close();
+				localRetrieveResponseGenerator = null;
+			}
+		}
+	}
+
+	/**
+	 * <p>Record an instance as most recently used, adding it if not already cached, and remove the least recently used
+	 * instances that are not pinned if over the disk budget.</p>
+	 *
+	 * @param	sopInstanceUID
+	 * @param	fileName
+	 */
+	protected void touch(String sopInstanceUID,String fileName) {
+		pin(sopInstanceUID,fileName);		// so that it is not itself evicted
+		release(sopInstanceUID);
+	}
+
+	/**
+	 * <p>Record an instance as most recently used, adding it if not already cached, and prevent it from being evicted until released.</p>
+	 *
+	 * <p>Each pin must be matched by a release, once the instance has been sent.</p>
+	 *
+	 * @param	sopInstanceUID
+	 * @param	fileName
+	 */
+	protected void pin(String sopInstanceUID,String fileName) {
+		List<String> toEvict;
+		synchronized (cachedInstances) {
+			CachedInstance cachedInstance = cachedInstances.get(sopInstanceUID);
+			if (cachedInstance == null) {
+				cachedInstance = new CachedInstance(fileName);
+				cachedInstances.put(sopInstanceUID,cachedInstance);
+				totalBytesCached += cachedInstance.length;
+			}
+			++cachedInstance.pins;
+			toEvict = removeLeastRecentlyUsedIfOverBudget();
+		}
+		evict(toEvict);
+	}
+
+	/**
+	 * <p>Allow an instance to be evicted, once nothing else has it pinned.</p>
+	 *
+	 * @param	sopInstanceUID
+	 */
+	protected void release(String sopInstanceUID) {
+		List<String> toEvict;
+		synchronized (cachedInstances) {
+			CachedInstance cachedInstance = cachedInstances.get(sopInstanceUID);
+			if (cachedInstance != null && cachedInstance.pins > 0) {
+				--cachedInstance.pins;
+			}
+			toEvict = removeLeastRecentlyUsedIfOverBudget();
+		}
+		evict(toEvict);
+	}
+
+	/**
+	 * <p>Remove from the cache the least recently used instances that are not pinned, until within the disk budget.</p>
+	 *
+	 * <p>The caller must be synchronized on cachedInstances, and should evict what is returned once no longer synchronized.</p>
+	 *
+	 * @return	pairs of file name and SOP Instance UID to evict
+	 */
+	private List<String> removeLeastRecentlyUsedIfOverBudget() {
+		List<String> toEvict = new ArrayList<String>();
+		Iterator<Map.Entry<String,CachedInstance>> i = cachedInstances.entrySet().iterator();
+		while (totalBytesCached > diskBudget && i.hasNext()) {
+			Map.Entry<String,CachedInstance> eldest = i.next();
+			if (eldest.getValue().pins == 0) {		// never evict what is being sent or is about to be
+				totalBytesCached -= eldest.getValue().length;
+				toEvict.add(eldest.getValue().fileName);
+				toEvict.add(eldest.getKey());
+				i.remove();
+			}
+		}
+		return toEvict;
+	}
+
+	/**
+	 * @param	toEvict		pairs of file name and SOP Instance UID
+	 */
+	private void evict(List<String> toEvict) {
+		Iterator<String> i = toEvict.iterator();
+		while (i.hasNext()) {
+			evict(i.next(),i.next());
+		}
+	}
+
+	/**
+	 * <p>Remove an instance from disk and from the local database.</p>
+	 *
+	 * @param	fileName
+	 * @param	sopInstanceUID
+	 */
+	private void evict(String fileName,String sopInstanceUID) {
+if (debugLevel > 0) System.err.println("CachingQueryRetrieveProxy.evict(): "+fileName);
+		try {
+			synchronized (databaseInformationModel) {
+				List<Map<String,String>> records = databaseInformationModel.findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedUID(InformationEntity.INSTANCE,sopInstanceUID);
+				Iterator<Map<String,String>> i = records.iterator();
+				while (i.hasNext()) {
+					String localPrimaryKey = i.next().get(databaseInformationModel.getLocalPrimaryKeyColumnName(InformationEntity.INSTANCE));
+					databaseInformationModel.deleteRecord(InformationEntity.INSTANCE,localPrimaryKey);
+				}
+			}
+			new File(fileName).delete();
+			synchronized (this) {
+				++nInstancesEvicted;
+			}
+		}
+		catch (DicomException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	/**
+	 * <p>Indexes each instance received, whether from upstream or from elsewhere, and sends it on to whoever is waiting for it.</p>
+	 */
+	protected class OurReceivedObjectHandler extends ReceivedObjectHandler {
+		public void sendReceivedObjectIndication(String dicomFileName,String transferSyntax,String callingAETitle) throws DicomNetworkException, DicomException, IOException {
+			if (dicomFileName != null) {
+				DicomInputStream i = new DicomInputStream(new BufferedInputStream(new FileInputStream(dicomFileName)));
+				AttributeList list = new AttributeList();
+				try {
+					list.read(i,TagFromName.PixelData);
+				}
+				finally {
+					i.close();
+				}
+				String sopInstanceUID = Attribute.getSingleStringValueOrNull(list,TagFromName.SOPInstanceUID);
+				if (sopInstanceUID != null) {
+					synchronized (databaseInformationModel) {
+						databaseInformationModel.insertObject(list,dicomFileName,DatabaseInformationModel.FILE_COPIED);
+					}
+					pin(sopInstanceUID,dicomFileName);		// so that it is not evicted before those waiting for it have pinned it too
+					try {
+						fetched(sopInstanceUID,dicomFileName,Attribute.getSingleStringValueOrNull(list,TagFromName.SOPClassUID));	// only after insertion, so that it will be found locally by any later retrieval
+					}
+					finally {
+						release(sopInstanceUID);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Create and start a proxy.</p>
+	 *
+	 * @param	networkApplicationInformation	the remote AEs, including the upstream PACS and any move destinations
+	 * @param	upstreamAETitle					the AE Title of the upstream PACS
+	 * @param	ourPort							the port on which to listen
+	 * @param	ourAETitle						our AE Title, which the upstream PACS must know as a move destination
+	 * @param	databaseInformationModel		the local database of instances stored locally
+	 * @param	savedInstancesFolder			where to store instances retrieved from upstream
+	 * @param	queryTimeToLive					in ms, how long to cache query responses
+	 * @param	queryCacheSize					how many distinct queries to cache
+	 * @param	diskBudget						in bytes, the most to keep stored locally
+	 * @param	numberOfFetchThreads			how many retrievals from upstream to perform at once
+	 * @param	debugLevel
+	 * @exception	IOException
+	 * @exception	DicomException				if the upstream PACS is not known, or the local database cannot be read
+	 */
+	public CachingQueryRetrieveProxy(NetworkApplicationInformation networkApplicationInformation,String upstreamAETitle,int ourPort,String ourAETitle,
+				DatabaseInformationModel databaseInformationModel,File savedInstancesFolder,
+				long queryTimeToLive,final int queryCacheSize,long diskBudget,int numberOfFetchThreads,int debugLevel) throws DicomException, IOException {
+		this.upstreamAETitle=upstreamAETitle;
+		this.ourAETitle=ourAETitle;
+		this.databaseInformationModel=databaseInformationModel;
+		this.queryTimeToLive=queryTimeToLive;
+		this.queryCacheSize=queryCacheSize;
+		this.diskBudget=diskBudget;
+		this.debugLevel=debugLevel;
+		PresentationAddress presentationAddress = networkApplicationInformation.getApplicationEntityMap().getPresentationAddress(upstreamAETitle);
+		if (presentationAddress == null) {
+			throw new DicomException("No presentation address for upstream AE "+upstreamAETitle);
+		}
+		upstreamHostname = presentationAddress.getHostname();
+		upstreamPort = presentationAddress.getPort();
+
+		cachedQueries = new LinkedHashMap<String,CachedQuery>(16,0.75f,true/*accessOrder*/) {
+			protected boolean removeEldestEntry(Map.Entry<String,CachedQuery> eldest) {
+				return size() > queryCacheSize;
+			}
+		};
+		cachedInstances = new LinkedHashMap<String,CachedInstance>(16,0.75f,true/*accessOrder*/);
+		{
+			// start with what is already stored, oldest first, since we have no record of when it was last used
+			List<Map<String,String>> records = databaseInformationModel.findAllAttributeValuesForAllRecordsForThisInformationEntity(InformationEntity.INSTANCE);
+			String fileNameColumnName = databaseInformationModel.getLocalFileNameColumnName(InformationEntity.INSTANCE);
+			String uidColumnName = databaseInformationModel.getUIDColumnNameForInformationEntity(InformationEntity.INSTANCE).toUpperCase(java.util.Locale.US);
+			String insertionTimeColumnName = databaseInformationModel.getLocalRecordInsertionTimeColumnName(InformationEntity.INSTANCE);
+			String fileReferenceTypeColumnName = databaseInformationModel.getLocalFileReferenceTypeColumnName(InformationEntity.INSTANCE);
+			final String sortColumnName = insertionTimeColumnName;
+			java.util.Collections.sort(records,new java.util.Comparator<Map<String,String>>() {
+				public int compare(Map<String,String> o1,Map<String,String> o2) {
+					String t1 = o1.get(sortColumnName);
+					String t2 = o2.get(sortColumnName);
+					return t1 == null ? (t2 == null ? 0 : -1) : (t2 == null ? 1 : t1.compareTo(t2));
+				}
+			});
+			Iterator<Map<String,String>> i = records.iterator();
+			while (i.hasNext()) {
+				Map<String,String> record = i.next();
+				String fileName = record.get(fileNameColumnName);
+				String sopInstanceUID = record.get(uidColumnName);
+				if (fileName != null && sopInstanceUID != null && DatabaseInformationModel.FILE_COPIED.equals(record.get(fileReferenceTypeColumnName))) {
+					CachedInstance cachedInstance = new CachedInstance(fileName);
+					cachedInstances.put(sopInstanceUID,cachedInstance);
+					totalBytesCached += cachedInstance.length;
+				}
+			}
+		}
+
+		fetcher = Executors.newFixedThreadPool(Math.max(1,numberOfFetchThreads));
+		dispatcher = new StorageSOPClassSCPDispatcher(ourPort,ourAETitle,savedInstancesFolder,StoredFilePathStrategy.BYSOPINSTANCEUIDHASHSUBFOLDERS,
+			new OurReceivedObjectHandler(),null/*associationStatusHandler*/,
+			new QueryResponseGeneratorFactory() {
+				public QueryResponseGenerator newInstance() { return new CachingQueryResponseGenerator(); }
+			},
+			new RetrieveResponseGeneratorFactory() {
+				public RetrieveResponseGenerator newInstance() { return new CachingRetrieveResponseGenerator(); }
+			},
+			networkApplicationInformation,null/*presentationContextSelectionPolicy*/,false/*secureTransport*/,debugLevel);
+		new Thread(dispatcher).start();
+	}
+
+	/**
+	 * <p>Get how often queries and retrievals were satisfied locally.</p>
+	 *
+	 * @return	a human-readable summary
+	 */
+	public synchronized String getStatistics() {
+		long bytesCached;
+		int instancesCached;
+		synchronized (cachedInstances) {
+			bytesCached = totalBytesCached;
+			instancesCached = cachedInstances.size();
+		}
+		return "queriesFromCache="+nQueriesFromCache+" queriesForwarded="+nQueriesForwarded
+			+" instancesFromCache="+nInstancesFromCache+" instancesFetched="+nInstancesFetched+" instancesEvicted="+nInstancesEvicted
+			+" instancesCached="+instancesCached+" bytesCached="+bytesCached+" of "+diskBudget;
+	}
+
+	/**
+	 * <p>Is the proxy listening for connections.</p>
+	 *
+	 * @return	true once listening, false before or after shutdown
+	 */
+	public boolean isReady() {
+		return dispatcher.isReady();
+	}
+
+	/**
+	 * <p>Stop listening, and stop retrieving from upstream once retrievals in progress are done.</p>
+	 */
+	public void shutdown() {
+		dispatcher.shutdown();
+		fetcher.shutdown();
+	}
+
+	/**
+	 * <p>Run a caching proxy.</p>
+	 *
+	 * @param	arg		array of 3 or 4 strings - the properties file name, the fully qualified path of the database file prefix,
+	 *					the fully qualified path of the saved incoming files folder, optionally an integer debug level
+	 */
+	public static void main(String arg[]) {
+		try {
+			if (arg.length >= 3 && arg.length <= 4) {
+				Properties properties = new Properties();
+				FileInputStream in = new FileInputStream(arg[0]);
+				properties.load(in);
+				in.close();
+				String databaseFileName = arg[1];
+				File savedInstancesFolder = new File(arg[2]);
+				int debugLevel = arg.length > 3 ? Integer.parseInt(arg[3]) : 0;
+
+				NetworkApplicationProperties networkApplicationProperties = new NetworkApplicationProperties(properties);
+				DatabaseInformationModel databaseInformationModel = new PatientStudySeriesConcatenationInstanceModel(databaseFileName);
+				CachingQueryRetrieveProxy proxy = new CachingQueryRetrieveProxy(networkApplicationProperties.getNetworkApplicationInformation(),
+					properties.getProperty(propertyName_ProxyUpstreamAETitle),
+					networkApplicationProperties.getListeningPort(),networkApplicationProperties.getCalledAETitle(),
+					databaseInformationModel,savedInstancesFolder,
+					Long.parseLong(properties.getProperty(propertyName_ProxyQueryTimeToLive,"300000").trim()),
+					Integer.parseInt(properties.getProperty(propertyName_ProxyQueryCacheSize,"1000").trim()),
+					Long.parseLong(properties.getProperty(propertyName_ProxyDiskBudget,"10240").trim())*1024*1024,
+					Integer.parseInt(properties.getProperty(propertyName_ProxyFetchThreads,"4").trim()),
+					debugLevel);
+				while (true) {
+					Thread.sleep(600000);
+					System.err.println(proxy.getStatistics());
+				}
+			}
+			else {
+				System.err.println("Usage: java -cp ./pixelmed.jar:./lib/additional/hsqldb.jar com.pixelmed.apps.CachingQueryRetrieveProxy propertiesfile databasepath savedfilesfolder [debuglevel]");
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace(System.err);
+			System.exit(0);
+		}
+	}
+}
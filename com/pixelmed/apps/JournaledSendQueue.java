@@ -0,0 +1,330 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.apps;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * <p>A queue of instances waiting to be sent to one destination, recorded in an append-only journal file
+ * so that the queue survives a restart.</p>
+ *
+ * <p>Each entry is identified by its SOP Instance UID, and an instance that is already queued is not queued again.</p>
+ *
+ * <p>Entries that fail to be sent are retried after an interval that doubles after each failure, up to a maximum.</p>
+ *
+ * <p>The journal consists of one line per change, either an addition (with the SOP Instance UID, file name and time queued)
+ * or a removal (with the SOP Instance UID), and is rewritten to contain only the pending entries once enough removals
+ * have accumulated. Both additions and removals are synced to disk before returning, so that an instance is neither lost nor sent
+ * again after a crash. A last line without a line end, written only partially before a crash, is ignored.</p>
+ *
+ * @author	agent
+ */
+public class JournaledSendQueue {
+
+	private static final String identString = "@(#) $Header$";
+
+	private static final String addRecord = "+";
+	private static final String removeRecord = "-";
+	private static final String separator = "\t";
+
+	protected static int minimumRemovalsBeforeCompaction = 1000;
+
+	/**
+	 * <p>An instance waiting to be sent.</p>
+	 */
+	public class Entry {
+		private String sopInstanceUID;
+		private String fileName;
+		private long enqueuedTime;
+		private int attempts;
+		private long nextAttemptTime;
+		private boolean inProgress;
+
+		Entry(String sopInstanceUID,String fileName,long enqueuedTime) {
+			this.sopInstanceUID=sopInstanceUID;
+			this.fileName=fileName;
+			this.enqueuedTime=enqueuedTime;
+		}
+
+		public String getSOPInstanceUID() { return sopInstanceUID; }
+		public String getFileName() { return fileName; }
+		public long getEnqueuedTime() { return enqueuedTime; }
+		public int getAttempts() { return attempts; }
+	}
+
+	private File journalFile;
+	private FileOutputStream journalOutputStream;
+	private Writer journal;
+	private LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>();
+	private int removalsSinceCompaction;
+	private long initialRetryInterval;
+	private long maximumRetryInterval;
+
+	/**
+	 * <p>Open a queue, re-establishing any entries pending from a previous run.</p>
+	 *
+	 * @param	journalFile				the file in which to record the queue, which is created if it does not already exist
+	 * @param	initialRetryInterval	in ms, how long to wait before the first retry of a failed send
+	 * @param	maximumRetryInterval	in ms, the longest to wait between retries
+	 * @exception	IOException			if the journal cannot be read or written
+	 */
+	public JournaledSendQueue(File journalFile,long initialRetryInterval,long maximumRetryInterval) throws IOException {
+		this.journalFile=journalFile;
+		this.initialRetryInterval=initialRetryInterval;
+		this.maximumRetryInterval=maximumRetryInterval;
+		File newJournalFile = getNewJournalFile();
+		if (newJournalFile.exists()) {
+			if (journalFile.exists()) {
+				// crashed while writing the new journal, which may be incomplete, so the old one still stands
+				newJournalFile.delete();
+			}
+			else {
+				// crashed after the old journal was removed but before the new one, which is complete, was renamed
+				if (!newJournalFile.renameTo(journalFile)) {
+					throw new IOException("Cannot recover journal "+journalFile+" from "+newJournalFile);
+				}
+			}
+		}
+		if (journalFile.exists()) {
+			replay();
+		}
+		compact();		// starts a fresh journal containing only pending entries
+	}
+
+	private boolean isLastLineComplete() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(journalFile,"r");
+		try {
+			long length = file.length();
+			if (length == 0) {
+				return true;
+			}
+			file.seek(length-1);
+			return file.read() == '\n';
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	private void replay() throws IOException {
+		boolean lastLineComplete = isLastLineComplete();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile),"UTF-8"));
+		try {
+			String line;
+			String nextLine = reader.readLine();
+			while ((line = nextLine) != null) {
+				nextLine = reader.readLine();
+				if (nextLine == null && !lastLineComplete) {
+					break;		// partial last line written before a crash, which may look complete but have a truncated value
+				}
+				String[] fields = line.split(separator);
+				if (fields.length == 4 && fields[0].equals(addRecord)) {
+					String sopInstanceUID = fields[1];
+					if (!entries.containsKey(sopInstanceUID)) {
+						long enqueuedTime = 0;
+						try {
+							enqueuedTime = Long.parseLong(fields[3]);
+						}
+						catch (NumberFormatException e) {
+						}
+						entries.put(sopInstanceUID,new Entry(sopInstanceUID,fields[2],enqueuedTime));
+					}
+				}
+				else if (fields.length == 2 && fields[0].equals(removeRecord)) {
+					entries.remove(fields[1]);
+				}
+				// else ignore, e.g., line corrupted by a crash
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private File getNewJournalFile() {
+		return new File(journalFile.getPath()+".new");
+	}
+
+	/**
+	 * <p>Rewrite the journal to contain only the pending entries.</p>
+	 *
+	 * <p>The new journal is written and synced completely before the old one is removed, and the constructor
+	 * recovers from a crash between the removal and the rename by using the new journal if the old one is missing.</p>
+	 *
+	 * @exception	IOException	if the journal cannot be written
+	 */
+	private void compact() throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+		File newJournalFile = getNewJournalFile();
+		FileOutputStream newOutputStream = new FileOutputStream(newJournalFile);
+		Writer newJournal = new BufferedWriter(new OutputStreamWriter(newOutputStream,"UTF-8"));
+		Iterator<Entry> i = entries.values().iterator();
+		while (i.hasNext()) {
+			writeAddRecord(newJournal,i.next());
+		}
+		newJournal.flush();
+		newOutputStream.getFD().sync();
+		newJournal.close();
+		if (journalFile.exists() && !journalFile.delete()) {
+			throw new IOException("Cannot replace journal "+journalFile);
+		}
+		if (!newJournalFile.renameTo(journalFile)) {
+			throw new IOException("Cannot rename new journal to "+journalFile);
+		}
+		journalOutputStream = new FileOutputStream(journalFile,true/*append*/);
+		journal = new BufferedWriter(new OutputStreamWriter(journalOutputStream,"UTF-8"));
+		removalsSinceCompaction = 0;
+	}
+
+	private static void writeAddRecord(Writer writer,Entry entry) throws IOException {
+		writer.write(addRecord+separator+entry.sopInstanceUID+separator+entry.fileName+separator+entry.enqueuedTime+"\n");
+	}
+
+	/**
+	 * <p>Add an instance to the queue, unless it is already queued.</p>
+	 *
+	 * <p>Does not return until the addition has been committed to the journal.</p>
+	 *
+	 * @param	sopInstanceUID	the SOP Instance UID
+	 * @param	fileName		the file containing the instance
+	 * @return					true if added, false if an instance with the same SOP Instance UID was already queued
+	 * @exception	IOException	if the journal cannot be written
+	 */
+	public synchronized boolean add(String sopInstanceUID,String fileName) throws IOException {
+		if (entries.containsKey(sopInstanceUID)) {
+			return false;
+		}
+		Entry entry = new Entry(sopInstanceUID,fileName,System.currentTimeMillis());
+		writeAddRecord(journal,entry);
+		journal.flush();
+		journalOutputStream.getFD().sync();
+		entries.put(sopInstanceUID,entry);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * <p>Wait until entries are due to be sent, then mark up to the specified number of them as in progress and return them.</p>
+	 *
+	 * @param	maximumNumberOfEntries	the most entries to return
+	 * @param	maximumWaitTime			in ms, the longest to wait for entries to become due
+	 * @return							the entries, possibly empty if none became due within the wait time
+	 * @exception	InterruptedException
+	 */
+	public synchronized List<Entry> take(int maximumNumberOfEntries,long maximumWaitTime) throws InterruptedException {
+		long giveUpTime = System.currentTimeMillis() + maximumWaitTime;
+		List<Entry> taken = new ArrayList<Entry>();
+		while (true) {
+			long now = System.currentTimeMillis();
+			long nextDueTime = Long.MAX_VALUE;
+			Iterator<Entry> i = entries.values().iterator();
+			while (i.hasNext() && taken.size() < maximumNumberOfEntries) {
+				Entry entry = i.next();
+				if (!entry.inProgress) {
+					if (entry.nextAttemptTime <= now) {
+						entry.inProgress = true;
+						taken.add(entry);
+					}
+					else if (entry.nextAttemptTime < nextDueTime) {
+						nextDueTime = entry.nextAttemptTime;
+					}
+				}
+			}
+			if (!taken.isEmpty() || now >= giveUpTime) {
+				break;
+			}
+			wait(Math.max(1,Math.min(giveUpTime,nextDueTime) - now));
+		}
+		return taken;
+	}
+
+	/**
+	 * <p>Remove an entry that has been sent successfully.</p>
+	 *
+	 * @param	entry			an entry previously returned by take()
+	 * @exception	IOException	if the journal cannot be written
+	 */
+	public synchronized void succeeded(Entry entry) throws IOException {
+		entries.remove(entry.sopInstanceUID);
+		journal.write(removeRecord+separator+entry.sopInstanceUID+"\n");
+		journal.flush();
+		journalOutputStream.getFD().sync();		// else may be sent again after a crash
+		++removalsSinceCompaction;
+		if (removalsSinceCompaction >= minimumRemovalsBeforeCompaction && removalsSinceCompaction > entries.size()) {
+			compact();
+		}
+	}
+
+	/**
+	 * <p>Return an entry that could not be sent to the queue, to be retried after an interval.</p>
+	 *
+	 * @param	entry	an entry previously returned by take()
+	 */
+	public synchronized void failed(Entry entry) {
+		long interval = initialRetryInterval;
+		for (int i=0; i<entry.attempts && interval < maximumRetryInterval; ++i) {
+			interval*=2;
+		}
+		++entry.attempts;
+		entry.nextAttemptTime = System.currentTimeMillis() + Math.min(interval,maximumRetryInterval);
+		entry.inProgress = false;
+		notifyAll();
+	}
+
+	/***/
+	public synchronized int size() { return entries.size(); }
+
+	/**
+	 * <p>How long the oldest entry has been waiting.</p>
+	 *
+	 * @return	in ms, zero if the queue is empty
+	 */
+	public synchronized long getLag() {
+		long lag = 0;
+		Iterator<Entry> i = entries.values().iterator();
+		if (i.hasNext()) {
+			lag = System.currentTimeMillis() - i.next().enqueuedTime;		// insertion order, so first is oldest
+		}
+		return lag;
+	}
+
+	/**
+	 * <p>Get the file names of all the pending entries.</p>
+	 *
+	 * @return	the file names
+	 */
+	public synchronized List<String> getFileNames() {
+		List<String> fileNames = new ArrayList<String>(entries.size());
+		Iterator<Entry> i = entries.values().iterator();
+		while (i.hasNext()) {
+			fileNames.add(i.next().fileName);
+		}
+		return fileNames;
+	}
+
+	/**
+	 * <p>Close the journal.</p>
+	 *
+	 * @exception	IOException
+	 */
+	public synchronized void close() throws IOException {
+		journal.close();
+		notifyAll();
+	}
+}
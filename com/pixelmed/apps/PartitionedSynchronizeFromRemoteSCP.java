@@ -0,0 +1,804 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.apps;
+
+import com.pixelmed.database.DatabaseInformationModel;
+import com.pixelmed.database.PatientStudySeriesConcatenationInstanceModel;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.CodeStringAttribute;
+import com.pixelmed.dicom.DateAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.InformationEntity;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.SpecificCharacterSet;
+import com.pixelmed.dicom.StoredFilePathStrategy;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+
+import com.pixelmed.network.DicomNetworkException;
+import com.pixelmed.network.FindSOPClassSCU;
+import com.pixelmed.network.GetSOPClassSCU;
+import com.pixelmed.network.IdentifierHandler;
+import com.pixelmed.network.MoveSOPClassSCU;
+import com.pixelmed.network.ReceivedObjectHandler;
+import com.pixelmed.network.StorageSOPClassSCPDispatcher;
+
+import java.text.DecimalFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * <p>A class for synchronizing the contents of a local database of DICOM objects with a remote SCP, that divides
+ * the remote archive into ranges of study dates and synchronizes several ranges at once.</p>
+ *
+ * <p>Like {@link com.pixelmed.apps.SynchronizeFromRemoteSCP SynchronizeFromRemoteSCP}, the remote SCP is queried at the STUDY, SERIES and IMAGE
+ * levels, and anything not present locally is retrieved at the highest level possible. Unlike it, each range of study dates is
+ * a separate partition that is handled by one of a pool of worker threads, each with its own C-FIND and C-MOVE (or C-GET) associations.</p>
+ *
+ * <p>When a partition has been completely synchronized it is recorded in a checkpoint file, so that if the synchronization is
+ * stopped and restarted, partitions already done are not queried again. Partitions that include today's date are never
+ * recorded, since more studies may yet arrive in them. An optional final partition picks up studies with no study date;
+ * it is queried with Empty Value Matching of Study Date, rather than with a universal query of the whole archive, so the
+ * remote SCP must support Empty Value Matching, otherwise no undated studies will be found.</p>
+ *
+ * <p>The SOP Instance UIDs expected from each retrieval are tracked, and the retrieval is complete when all of them have
+ * been received, or when none has arrived for the inactivity timeout after the retrieve response, rather than after a fixed sleep.
+ * Instances that were expected but never received leave their partition out of the checkpoint, so that it is retried the next time.</p>
+ *
+ * <p>The class has no public methods other than the constructor, some accessors for the outcome, and a main method
+ * that is useful as a utility. For example:</p>
+ * <pre>
+java -cp ./pixelmed.jar:./lib/additional/hsqldb.jar:./lib/additional/commons-codec-1.3.jar \
+	com.pixelmed.apps.PartitionedSynchronizeFromRemoteSCP \
+	/tmp/dicomsync/database /tmp/dicomsync /tmp/dicomsync/checkpoint \
+	graytoo 4006 GRAYTOO_DIV_4006 \
+	11112 US \
+	20000101 20121231 30 4 MOVE 1 0
+ * </pre>
+ *
+ * @see com.pixelmed.apps.SynchronizeFromRemoteSCP
+ *
+ * @author	agent
+ */
+public class PartitionedSynchronizeFromRemoteSCP {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	private static long inactivityTimeOut = 600000;	// ms
+
+	/***/
+	private static final String undatedPartitionKey = "UNDATED";
+
+	/***/
+	private static final String emptyValueMatchingKey = "\"\"";		// two double quotes, which match only an empty or absent value
+
+	/***/
+	private DatabaseInformationModel databaseInformationModel;
+	/***/
+	private File savedInstancesFolder;
+	/***/
+	private String remoteHost;
+	/***/
+	private int remotePort;
+	/***/
+	private String remoteAE;
+	/***/
+	private String localAE;
+	/***/
+	private boolean useGet;
+	/***/
+	private int verbosityLevel;
+	/***/
+	private int debugLevel;
+
+	/***/
+	private ReceivedObjectHandler receivedObjectHandler;
+	/***/
+	private Checkpoint checkpoint;
+
+	/***/
+	private Map<String,Retrieval> retrievalsBySOPInstanceUID = new ConcurrentHashMap<String,Retrieval>();
+
+	/***/
+	private AtomicInteger numberOfSOPInstancesReceived = new AtomicInteger();
+	/***/
+	private AtomicInteger numberOfUnrequestedSOPInstancesReceived = new AtomicInteger();
+	/***/
+	private AtomicInteger numberOfSOPInstancesNotReceived = new AtomicInteger();
+	/***/
+	private AtomicInteger numberOfPartitionsCompleted = new AtomicInteger();
+	/***/
+	private AtomicInteger numberOfPartitionsSkipped = new AtomicInteger();
+	/***/
+	private AtomicInteger numberOfPartitionsIncomplete = new AtomicInteger();
+	/***/
+	private AtomicLong totalBytesSaved = new AtomicLong();
+
+	/***/
+	private DecimalFormat commaFormatter = new DecimalFormat("#,###");
+
+	/**
+	 * <p>The partitions already completely synchronized, recorded one per line in an append-only file.</p>
+	 */
+	private class Checkpoint {
+		/***/
+		private Set<String> completedPartitions = new HashSet<String>();
+		/***/
+		private FileOutputStream outputStream;
+		/***/
+		private Writer writer;
+
+		/**
+		 * @param	checkpointFile	the file, which is created if it does not already exist
+		 * @exception	IOException	if the file cannot be read or written
+		 */
+		Checkpoint(File checkpointFile) throws IOException {
+			if (checkpointFile.exists()) {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpointFile),"UTF-8"));
+				try {
+					String line;
+					while ((line=reader.readLine()) != null) {
+						line = line.trim();
+						if (line.length() > 0) {
+							completedPartitions.add(line);
+						}
+					}
+				}
+				finally {
+					reader.close();
+				}
+			}
+			outputStream = new FileOutputStream(checkpointFile,true/*append*/);
+			writer = new BufferedWriter(new OutputStreamWriter(outputStream,"UTF-8"));
+		}
+
+		/**
+		 * @param	partitionKey
+		 * @return					true if the partition was recorded as complete by this or an earlier synchronization
+		 */
+		synchronized boolean isCompleted(String partitionKey) {
+			return completedPartitions.contains(partitionKey);
+		}
+
+		/**
+		 * <p>Record a partition as complete.</p>
+		 *
+		 * <p>Does not return until the record has been committed to the file.</p>
+		 *
+		 * @param	partitionKey
+		 * @exception	IOException	if the file cannot be written
+		 */
+		synchronized void setCompleted(String partitionKey) throws IOException {
+			if (completedPartitions.add(partitionKey)) {
+				writer.write(partitionKey+"\n");
+				writer.flush();
+				outputStream.getFD().sync();
+			}
+		}
+
+		/**
+		 * @exception	IOException
+		 */
+		synchronized void close() throws IOException {
+			writer.close();
+		}
+	}
+
+	/**
+	 * <p>The SOP Instance UIDs still expected from one C-MOVE or C-GET.</p>
+	 */
+	private class Retrieval {
+		/***/
+		private Set<String> remaining;
+		/***/
+		private long timeOfLastActivity;
+
+		/**
+		 * @param	expected	the SOP Instance UIDs expected
+		 */
+		Retrieval(Set<String> expected) {
+			remaining = new HashSet<String>(expected);
+			timeOfLastActivity = System.currentTimeMillis();
+		}
+
+		/**
+		 * @param	sopInstanceUID
+		 */
+		synchronized void received(String sopInstanceUID) {
+			remaining.remove(sopInstanceUID);
+			timeOfLastActivity = System.currentTimeMillis();
+			notifyAll();
+		}
+
+		/**
+		 * <p>Wait until everything expected has been received, or nothing has been received for the specified time.</p>
+		 *
+		 * @param	timeout		in ms, how long to wait after the last instance received, 0 to not wait at all
+		 * @return				the number of instances never received
+		 * @exception	InterruptedException
+		 */
+		synchronized int waitForCompletion(long timeout) throws InterruptedException {
+			timeOfLastActivity = Math.max(timeOfLastActivity,System.currentTimeMillis());
+			while (!remaining.isEmpty()) {
+				long waitTime = timeOfLastActivity + timeout - System.currentTimeMillis();
+				if (waitTime <= 0) {
+					break;
+				}
+				wait(waitTime);
+			}
+			return remaining.size();
+		}
+	}
+
+	/**
+	 */
+	private class OurReceivedObjectHandler extends ReceivedObjectHandler {
+		/**
+		 * @param	dicomFileName
+		 * @param	transferSyntax
+		 * @param	callingAETitle
+		 * @exception	IOException
+		 * @exception	DicomException
+		 * @exception	DicomNetworkException
+		 */
+		public void sendReceivedObjectIndication(String dicomFileName,String transferSyntax,String callingAETitle)
+				throws DicomNetworkException, DicomException, IOException {
+			if (dicomFileName != null) {
+if (verbosityLevel > 1) System.err.println("Received: "+dicomFileName+" from "+callingAETitle+" in "+transferSyntax);
+				numberOfSOPInstancesReceived.incrementAndGet();
+				totalBytesSaved.addAndGet(new File(dicomFileName).length());
+				try {
+					// no need for case insensitive check here ... was locally created
+					DicomInputStream i = new DicomInputStream(new BufferedInputStream(new FileInputStream(dicomFileName)));
+					AttributeList list = new AttributeList();
+					try {
+						list.read(i,TagFromName.PixelData);
+					}
+					finally {
+						i.close();
+					}
+					String sopInstanceUID = Attribute.getSingleStringValueOrNull(list,TagFromName.SOPInstanceUID);
+					if (sopInstanceUID != null) {
+						synchronized (databaseInformationModel) {
+							databaseInformationModel.insertObject(list,dicomFileName,DatabaseInformationModel.FILE_COPIED);
+						}
+						// only indicate receipt after insertion, so that the partition is not checkpointed before the database is updated
+						Retrieval retrieval = retrievalsBySOPInstanceUID.remove(sopInstanceUID);
+						if (retrieval != null) {
+							retrieval.received(sopInstanceUID);
+						}
+						else {
+							numberOfUnrequestedSOPInstancesReceived.incrementAndGet();
+							throw new DicomException("Unrequested SOPInstanceUID "+sopInstanceUID+" in received object ... stored it anyway");
+						}
+					}
+					else {
+						// should probably delete it, but "bad" file may be useful :(
+						throw new DicomException("Missing SOPInstanceUID in received object ... not inserting file "+dicomFileName+" in database");
+					}
+				} catch (Exception e) {
+					e.printStackTrace(System.err);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Accumulates each identifier returned from a C-FIND.</p>
+	 */
+	private class OurIdentifierHandler extends IdentifierHandler {
+		/***/
+		private List<AttributeList> identifiers = new ArrayList<AttributeList>();
+
+		/**
+		 * @param	identifier
+		 */
+		public void doSomethingWithIdentifier(AttributeList identifier) throws DicomException {
+			identifiers.add(identifier);
+		}
+
+		/**
+		 * @return	the identifiers returned
+		 */
+		List<AttributeList> getIdentifiers() { return identifiers; }
+	}
+
+	/**
+	 * @param	identifier
+	 * @return				the identifiers returned
+	 * @exception	IOException
+	 * @exception	DicomException
+	 * @exception	DicomNetworkException
+	 */
+	private List<AttributeList> performQuery(AttributeList identifier) throws DicomNetworkException, DicomException, IOException {
+		OurIdentifierHandler identifierHandler = new OurIdentifierHandler();
+		new FindSOPClassSCU(remoteHost,remotePort,remoteAE,localAE,SOPClass.StudyRootQueryRetrieveInformationModelFind,identifier,identifierHandler,debugLevel);
+		return identifierHandler.getIdentifiers();
+	}
+
+	/**
+	 * @param	level
+	 * @return				an identifier with the query retrieve level
+	 * @exception	DicomException
+	 */
+	private static AttributeList newIdentifier(String level) throws DicomException {
+		AttributeList identifier = new AttributeList();
+		{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue(level); identifier.put(a); }
+		return identifier;
+	}
+
+	/**
+	 * @param	ie
+	 * @param	uid
+	 * @return				true if there is already a local record for the entity
+	 * @exception	DicomException
+	 */
+	private boolean isPresentLocally(InformationEntity ie,String uid) throws DicomException {
+		synchronized (databaseInformationModel) {
+			return databaseInformationModel.findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedUID(ie,uid).size() > 0;
+		}
+	}
+
+	/**
+	 * <p>Does the final status of a C-MOVE mean that no more sub-operations will be performed ?</p>
+	 *
+	 * <p>True for a refusal (0xA7xx, 0xA8xx), a failure (0xA9xx, 0xCxxx) or a cancellation (0xFE00), but not for
+	 * success or for a warning that sub-operations completed with one or more failures (0xB000).</p>
+	 *
+	 * @param	status	the status of the final C-MOVE response
+	 * @return			true if the move was refused, failed or was cancelled
+	 */
+	static boolean isRefusedOrFailedOrCancelled(int status) {
+		int statusClass = status & 0xf000;
+		return statusClass == 0xa000 || statusClass == 0xc000 || status == 0xfe00;
+	}
+
+	/**
+	 * <p>Retrieve, and wait for, the specified instances.</p>
+	 *
+	 * @param	retrieveIdentifier	the unique keys and retrieve level
+	 * @param	expected			the SOP Instance UIDs expected
+	 * @param	sopClasses			the storage SOP Classes to accept if C-GET
+	 * @return						the number of instances never received
+	 * @exception	IOException
+	 * @exception	DicomException
+	 * @exception	DicomNetworkException
+	 * @exception	InterruptedException
+	 */
+	private int retrieve(AttributeList retrieveIdentifier,Set<String> expected,Set<String> sopClasses) throws DicomNetworkException, DicomException, IOException, InterruptedException {
+if (verbosityLevel > 0) System.err.println("Retrieving "+expected.size()+" instances at "+Attribute.getSingleStringValueOrEmptyString(retrieveIdentifier,TagFromName.QueryRetrieveLevel)+" level with "+(useGet ? "C-GET" : "C-MOVE"));
+if (verbosityLevel > 1) System.err.print("Retrieve identifier "+retrieveIdentifier);
+		Retrieval retrieval = new Retrieval(expected);
+		boolean moveFailed = false;
+		for (String sopInstanceUID : expected) {
+			retrievalsBySOPInstanceUID.put(sopInstanceUID,retrieval);
+		}
+		try {
+			if (useGet) {
+				new GetSOPClassSCU(remoteHost,remotePort,remoteAE,localAE,
+					SOPClass.StudyRootQueryRetrieveInformationModelGet,
+					retrieveIdentifier,new IdentifierHandler(),savedInstancesFolder,StoredFilePathStrategy.BYSOPINSTANCEUIDHASHSUBFOLDERS,receivedObjectHandler,
+					sopClasses,false/*theirChoice*/,true/*ourChoice*/,true/*asEncoded*/,debugLevel);
+			}
+			else {
+				MoveSOPClassSCU moveSOPClassSCU = new MoveSOPClassSCU(remoteHost,remotePort,remoteAE,localAE,localAE,SOPClass.StudyRootQueryRetrieveInformationModelMove,retrieveIdentifier,debugLevel);
+				int moveStatus = moveSOPClassSCU.getStatus();
+				if (moveStatus != 0x0000) {
+					System.err.println("PartitionedSynchronizeFromRemoteSCP: unsuccessful move status = "+("0x"+Integer.toHexString(moveStatus)));
+				}
+				moveFailed = isRefusedOrFailedOrCancelled(moveStatus);
+			}
+			// C-GET instances arrive on the same association, so are all in by now; C-MOVE instances may still be arriving on another,
+			// unless the move was refused or failed, in which case nothing more will be sent, so there is no point in waiting
+			int notReceived = retrieval.waitForCompletion(useGet || moveFailed ? 0 : inactivityTimeOut);
+			if (notReceived > 0) {
+				System.err.println("PartitionedSynchronizeFromRemoteSCP: requested but never received "+notReceived+" of "+expected.size()+" instances");
+			}
+			return notReceived;
+		}
+		finally {
+			for (String sopInstanceUID : expected) {
+				retrievalsBySOPInstanceUID.remove(sopInstanceUID);
+			}
+		}
+	}
+
+	/**
+	 * <p>Retrieve whatever is missing locally from one study, at the highest level possible.</p>
+	 *
+	 * @param	study		the study level C-FIND response
+	 * @return				the number of instances never received
+	 * @exception	IOException
+	 * @exception	DicomException
+	 * @exception	DicomNetworkException
+	 * @exception	InterruptedException
+	 */
+	private int synchronizeStudy(AttributeList study) throws DicomNetworkException, DicomException, IOException, InterruptedException {
+		String studyInstanceUID = Attribute.getSingleStringValueOrNull(study,TagFromName.StudyInstanceUID);
+		if (studyInstanceUID == null) {
+			System.err.println("Could not get StudyInstanceUID to use");
+			return 0;
+		}
+		boolean studyPresent = isPresentLocally(InformationEntity.STUDY,studyInstanceUID);
+
+		Set<String> sopClasses = new HashSet<String>();
+		Set<String> missingInStudy = new HashSet<String>();
+		Map<String,Set<String>> missingBySeries = new LinkedHashMap<String,Set<String>>();
+		Set<String> seriesAllMissing = new HashSet<String>();
+
+		AttributeList seriesIdentifier = newIdentifier("SERIES");
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue(studyInstanceUID); seriesIdentifier.put(a); }
+		seriesIdentifier.putNewAttribute(TagFromName.SeriesInstanceUID);
+		seriesIdentifier.putNewAttribute(TagFromName.Modality);
+		for (AttributeList series : performQuery(seriesIdentifier)) {
+			String seriesInstanceUID = Attribute.getSingleStringValueOrNull(series,TagFromName.SeriesInstanceUID);
+			if (seriesInstanceUID == null) {
+				continue;
+			}
+			boolean seriesPresent = studyPresent && isPresentLocally(InformationEntity.SERIES,seriesInstanceUID);
+
+			AttributeList instanceIdentifier = newIdentifier("IMAGE");
+			{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue(studyInstanceUID); instanceIdentifier.put(a); }
+			{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SeriesInstanceUID); a.addValue(seriesInstanceUID); instanceIdentifier.put(a); }
+			instanceIdentifier.putNewAttribute(TagFromName.SOPInstanceUID);
+			instanceIdentifier.putNewAttribute(TagFromName.SOPClassUID);
+			Set<String> missing = new HashSet<String>();
+			boolean sopClassUnknown = false;
+			for (AttributeList instance : performQuery(instanceIdentifier)) {
+				String sopInstanceUID = Attribute.getSingleStringValueOrNull(instance,TagFromName.SOPInstanceUID);
+				if (sopInstanceUID != null && (!seriesPresent || !isPresentLocally(InformationEntity.INSTANCE,sopInstanceUID))) {
+					missing.add(sopInstanceUID);
+					String sopClassUID = Attribute.getSingleStringValueOrNull(instance,TagFromName.SOPClassUID);
+					if (sopClassUID == null) {
+						sopClassUnknown = true;
+					}
+					else {
+						sopClasses.add(sopClassUID);
+					}
+				}
+			}
+			if (!missing.isEmpty()) {
+				missingBySeries.put(seriesInstanceUID,missing);
+				missingInStudy.addAll(missing);
+				if (!seriesPresent) {
+					seriesAllMissing.add(seriesInstanceUID);
+				}
+				if (useGet && sopClassUnknown) {
+					// SCP didn't return SOPClassUID, which is allowed, since optional for C-FIND SCP, so guess from Modality
+					String[] sopClassUIDsForModality = SOPClass.getPlausibleStandardSOPClassUIDsForModality(Attribute.getSingleStringValueOrEmptyString(series,TagFromName.Modality));
+					if (sopClassUIDsForModality.length > 0) {
+						for (String sopClassUIDForModality : sopClassUIDsForModality) {
+							sopClasses.add(sopClassUIDForModality);
+						}
+					}
+					else {
+						sopClasses.addAll(SOPClass.getSetOfStorageSOPClasses());
+					}
+				}
+			}
+		}
+
+		int notReceived = 0;
+		if (!missingInStudy.isEmpty()) {
+			if (!studyPresent) {
+				AttributeList retrieveIdentifier = newIdentifier("STUDY");
+				{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue(studyInstanceUID); retrieveIdentifier.put(a); }
+				notReceived += retrieve(retrieveIdentifier,missingInStudy,sopClasses);
+			}
+			else {
+				Iterator<Map.Entry<String,Set<String>>> i = missingBySeries.entrySet().iterator();
+				while (i.hasNext()) {
+					Map.Entry<String,Set<String>> entry = i.next();
+					String seriesInstanceUID = entry.getKey();
+					Set<String> missing = entry.getValue();
+					AttributeList retrieveIdentifier = newIdentifier(seriesAllMissing.contains(seriesInstanceUID) ? "SERIES" : "IMAGE");
+					{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue(studyInstanceUID); retrieveIdentifier.put(a); }
+					{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SeriesInstanceUID); a.addValue(seriesInstanceUID); retrieveIdentifier.put(a); }
+					if (!seriesAllMissing.contains(seriesInstanceUID)) {
+						// list of UID matching, so all the missing instances in the series are retrieved together
+						Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID);
+						for (String sopInstanceUID : missing) {
+							a.addValue(sopInstanceUID);
+						}
+						retrieveIdentifier.put(a);
+					}
+					notReceived += retrieve(retrieveIdentifier,missing,sopClasses);
+				}
+			}
+		}
+		return notReceived;
+	}
+
+	/**
+	 * <p>Synchronize all the studies in one partition.</p>
+	 *
+	 * @param	partitionKey	the study date range, or {@link #undatedPartitionKey undatedPartitionKey} for studies without a date
+	 * @param	checkpointable	whether or not to record the partition as complete if everything was received
+	 * @return					true if everything expected was received
+	 * @exception	IOException
+	 * @exception	DicomException
+	 * @exception	DicomNetworkException
+	 * @exception	InterruptedException
+	 */
+	private boolean synchronizePartition(String partitionKey,boolean checkpointable) throws DicomNetworkException, DicomException, IOException, InterruptedException {
+		if (checkpoint.isCompleted(partitionKey)) {
+if (verbosityLevel > 0) System.err.println("Skipping partition "+partitionKey+" already completed");
+			numberOfPartitionsSkipped.incrementAndGet();
+			return true;
+		}
+if (verbosityLevel > 0) System.err.println("Synchronizing partition "+partitionKey);
+		boolean undated = partitionKey.equals(undatedPartitionKey);
+		SpecificCharacterSet specificCharacterSet = new SpecificCharacterSet((String[])null);
+		AttributeList identifier = newIdentifier("STUDY");
+		identifier.putNewAttribute(TagFromName.StudyInstanceUID);
+		{ Attribute a = new DateAttribute(TagFromName.StudyDate); a.addValue(undated ? emptyValueMatchingKey : partitionKey); identifier.put(a); }
+		identifier.putNewAttribute(TagFromName.PatientID,specificCharacterSet);
+		int notReceived = 0;
+		for (AttributeList study : performQuery(identifier)) {
+			if (undated && Attribute.getSingleStringValueOrEmptyString(study,TagFromName.StudyDate).length() > 0) {
+				continue;	// dated studies are the business of the other partitions
+			}
+			notReceived += synchronizeStudy(study);
+		}
+		numberOfSOPInstancesNotReceived.addAndGet(notReceived);
+		if (notReceived > 0) {
+			numberOfPartitionsIncomplete.incrementAndGet();
+			return false;
+		}
+		if (checkpointable) {
+			checkpoint.setCompleted(partitionKey);
+		}
+		numberOfPartitionsCompleted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * <p>Divide a range of study dates into partitions.</p>
+	 *
+	 * @param	earliestStudyDate	YYYYMMDD
+	 * @param	latestStudyDate		YYYYMMDD
+	 * @param	partitionDays		the number of days in each partition
+	 * @return						the partition keys, each a DICOM date range
+	 * @exception	DicomException	if the dates are not valid
+	 */
+	public static List<String> getPartitions(String earliestStudyDate,String latestStudyDate,int partitionDays) throws DicomException {
+		if (partitionDays < 1) {
+			throw new DicomException("Number of days in each partition must be at least one");
+		}
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+		dateFormat.setLenient(false);
+		List<String> partitions = new ArrayList<String>();
+		try {
+			Date latest = dateFormat.parse(latestStudyDate);
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTime(dateFormat.parse(earliestStudyDate));
+			while (!calendar.getTime().after(latest)) {
+				String start = dateFormat.format(calendar.getTime());
+				calendar.add(Calendar.DATE,partitionDays-1);
+				Date end = calendar.getTime().after(latest) ? latest : calendar.getTime();
+				partitions.add(start+"-"+dateFormat.format(end));
+				calendar.add(Calendar.DATE,1);
+			}
+		}
+		catch (ParseException e) {
+			throw new DicomException("Bad study date - "+e);
+		}
+		return partitions;
+	}
+
+	/**
+	 * <p>Synchronize the contents of a local database of DICOM objects with a remote SCP.</p>
+	 *
+	 * <p>Queries the remote SCP for the studies in each partition of study dates, and retrieves all instances not already present in the specified local database.</p>
+	 *
+	 * @param	databaseInformationModel	the local database (will be created if does not already exist)
+	 * @param	savedInstancesFolder		where to save retrieved instances (must already exist)
+	 * @param	checkpointFile				where to record completed partitions (will be created if does not already exist)
+	 * @param	remoteHost
+	 * @param	remotePort
+	 * @param	remoteAE
+	 * @param	localPort					local port for DICOM listener ... must already be known to remote AE unless C-GET
+	 * @param	localAE						local AET for DICOM listener ... must already be known to remote AE unless C-GET
+	 * @param	useGet						if true, use C-GET rather than C-MOVE
+	 * @param	earliestStudyDate			YYYYMMDD, the start of the first partition
+	 * @param	latestStudyDate				YYYYMMDD, the end of the last partition
+	 * @param	partitionDays				the number of days of studies in each partition
+	 * @param	includeUndated				if true, also synchronize studies with no study date, after the dated partitions
+	 * @param	numberOfWorkers				the number of partitions to synchronize at once
+	 * @param	verbosityLevel
+	 * @param	debugLevel
+	 * @exception	IOException
+	 * @exception	DicomException
+	 * @exception	DicomNetworkException
+	 * @exception	InterruptedException
+	 */
+	public PartitionedSynchronizeFromRemoteSCP(DatabaseInformationModel databaseInformationModel,File savedInstancesFolder,File checkpointFile,
+				String remoteHost,int remotePort,String remoteAE,int localPort,String localAE,boolean useGet,
+				String earliestStudyDate,String latestStudyDate,int partitionDays,boolean includeUndated,int numberOfWorkers,int verbosityLevel,int debugLevel)
+			throws DicomException, DicomNetworkException, IOException, InterruptedException {
+		this.databaseInformationModel = databaseInformationModel;
+		this.savedInstancesFolder = savedInstancesFolder;
+		this.remoteHost = remoteHost;
+		this.remotePort = remotePort;
+		this.remoteAE = remoteAE;
+		this.localAE = localAE;
+		this.useGet = useGet;
+		this.verbosityLevel = verbosityLevel;
+		this.debugLevel = debugLevel;
+
+		if (!savedInstancesFolder.exists() || !savedInstancesFolder.isDirectory()) {
+			throw new DicomException("Folder in which to save received instances does not exist or is not a directory - "+savedInstancesFolder);
+		}
+		List<String> partitions = getPartitions(earliestStudyDate,latestStudyDate,partitionDays);
+		String today = new SimpleDateFormat("yyyyMMdd").format(new Date());
+
+		receivedObjectHandler = new OurReceivedObjectHandler();
+		checkpoint = new Checkpoint(checkpointFile);
+		StorageSOPClassSCPDispatcher dispatcher = null;
+		if (!useGet) {
+			dispatcher = new StorageSOPClassSCPDispatcher(localPort,localAE,savedInstancesFolder,StoredFilePathStrategy.BYSOPINSTANCEUIDHASHSUBFOLDERS,receivedObjectHandler,debugLevel);
+			new Thread(dispatcher).start();
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,numberOfWorkers));
+		try {
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for (final String partitionKey : partitions) {
+				final boolean checkpointable = partitionKey.substring(partitionKey.indexOf('-')+1).compareTo(today) < 0;
+				futures.add(executor.submit(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						return new Boolean(synchronizePartition(partitionKey,checkpointable));
+					}
+				}));
+			}
+			waitForPartitions(futures,partitions);
+			if (includeUndated) {
+				// after the dated partitions, so that none of their studies are still being retrieved
+				futures.clear();
+				futures.add(executor.submit(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						return new Boolean(synchronizePartition(undatedPartitionKey,false/*more may yet arrive*/));
+					}
+				}));
+				List<String> undatedPartitions = new ArrayList<String>();
+				undatedPartitions.add(undatedPartitionKey);
+				waitForPartitions(futures,undatedPartitions);
+			}
+		}
+		finally {
+			executor.shutdownNow();
+			checkpoint.close();
+			if (dispatcher != null) {
+				dispatcher.shutdown();
+			}
+		}
+System.err.println("Finished with "+numberOfPartitionsCompleted+" partitions completed, "+numberOfPartitionsSkipped+" skipped as already completed and "+numberOfPartitionsIncomplete+" incomplete; "
+	+numberOfSOPInstancesReceived+" instances received, of which "+numberOfUnrequestedSOPInstancesReceived+" were unrequested; requested but never received were "+numberOfSOPInstancesNotReceived+" instances");
+if (verbosityLevel > 0) System.err.println("Total saved "+commaFormatter.format(totalBytesSaved.get())+" bytes");
+	}
+
+	/**
+	 * @param	futures
+	 * @param	partitions
+	 * @exception	InterruptedException
+	 */
+	private void waitForPartitions(List<Future<Boolean>> futures,List<String> partitions) throws InterruptedException {
+		for (int i=0; i<futures.size(); ++i) {
+			try {
+				futures.get(i).get();
+			}
+			catch (ExecutionException e) {
+				// one failed partition is not recorded as complete, and so will be retried next time, but does not stop the others
+				numberOfPartitionsIncomplete.incrementAndGet();
+				System.err.println("PartitionedSynchronizeFromRemoteSCP: partition "+partitions.get(i)+" failed");
+				e.getCause().printStackTrace(System.err);
+			}
+		}
+	}
+
+	/**
+	 * @return	the number of partitions completely synchronized by this synchronization
+	 */
+	public int getNumberOfPartitionsCompleted() { return numberOfPartitionsCompleted.get(); }
+
+	/**
+	 * @return	the number of partitions skipped since recorded as complete by an earlier synchronization
+	 */
+	public int getNumberOfPartitionsSkipped() { return numberOfPartitionsSkipped.get(); }
+
+	/**
+	 * @return	the number of partitions for which something expected was not received, or that failed
+	 */
+	public int getNumberOfPartitionsIncomplete() { return numberOfPartitionsIncomplete.get(); }
+
+	/**
+	 * @return	the number of instances requested but never received
+	 */
+	public int getNumberOfSOPInstancesNotReceived() { return numberOfSOPInstancesNotReceived.get(); }
+
+	/**
+	 * <p>Synchronize the contents of a local database of DICOM objects with a remote SCP.</p>
+	 *
+	 * @param	arg		array of 10 to 16 strings - the fully qualified path of the database file prefix, the fully qualified path of the saved incoming files folder,
+	 *					the fully qualified path of the checkpoint file,
+	 *					the remote hostname, remote port, remote AE Title, our port (ignored if GET), our AE Title,
+	 *					the earliest and latest study dates (YYYYMMDD),
+	 *					optionally the number of days in each partition (defaults to 30),
+	 *					optionally the number of partitions to synchronize at once (defaults to 4),
+	 *					optionally GET or MOVE (defaults to MOVE),
+	 *					optionally whether or not to include studies without a date, UNDATED or DATED (defaults to UNDATED),
+	 *					optionally a verbosity level, optionally an integer debug level
+	 */
+	public static void main(String arg[]) {
+		try {
+			if (arg.length >= 10 && arg.length <= 16) {
+				String databaseFileName = arg[0];
+				File savedInstancesFolder = new File(arg[1]);
+				File checkpointFile = new File(arg[2]);
+				String remoteHost = arg[3];
+				int remotePort = Integer.parseInt(arg[4]);
+				String remoteAE = arg[5];
+				int localPort = Integer.parseInt(arg[6]);
+				String localAE = arg[7];
+				String earliestStudyDate = arg[8];
+				String latestStudyDate = arg[9];
+				int partitionDays = arg.length > 10 ? Integer.parseInt(arg[10]) : 30;
+				int numberOfWorkers = arg.length > 11 ? Integer.parseInt(arg[11]) : 4;
+				boolean useGet = arg.length > 12 ? arg[12].trim().toUpperCase(java.util.Locale.US).equals("GET") : false;
+				boolean includeUndated = arg.length > 13 ? !arg[13].trim().toUpperCase(java.util.Locale.US).equals("DATED") : true;
+				int verbosityLevel = arg.length > 14 ? Integer.parseInt(arg[14]) : 0;
+				int debugLevel = arg.length > 15 ? Integer.parseInt(arg[15]) : 0;
+
+				DatabaseInformationModel databaseInformationModel = new PatientStudySeriesConcatenationInstanceModel(databaseFileName);
+
+				new PartitionedSynchronizeFromRemoteSCP(databaseInformationModel,savedInstancesFolder,checkpointFile,remoteHost,remotePort,remoteAE,localPort,localAE,useGet,
+					earliestStudyDate,latestStudyDate,partitionDays,includeUndated,numberOfWorkers,verbosityLevel,debugLevel);
+
+				databaseInformationModel.close();	// important, else some received objects may not be registered in the database
+
+				System.exit(0);
+			}
+			else {
+				System.err.println("Usage: java -cp ./pixelmed.jar:./lib/additional/hsqldb.jar:./lib/additional/commons-codec-1.3.jar com.pixelmed.apps.PartitionedSynchronizeFromRemoteSCP databasepath savedfilesfolder checkpointfile remoteHost remotePort remoteAET ourPort ourAET earliestdate latestdate [partitiondays [workers [GET|MOVE [UNDATED|DATED [verbositylevel [debuglevel]]]]]]");
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace(System.err);
+			System.exit(0);
+		}
+	}
+}
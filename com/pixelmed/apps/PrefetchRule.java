@@ -0,0 +1,194 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.apps;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+
+/**
+ * <p>A rule that decides which prior studies are relevant to a current study, and so should be prefetched
+ * by a {@link com.pixelmed.apps.PriorStudyPrefetcher PriorStudyPrefetcher}.</p>
+ *
+ * <p>A rule is triggered by a current study of one of a set of modalities, and selects earlier studies of the same
+ * patient within a look back window, of one of a set of modalities, and optionally of the same body part, up to a maximum number
+ * of the most recent.</p>
+ *
+ * <p>Rules may be read from properties:</p>
+ *
+ * <p><code>Prefetch.Rules</code> - the names of the rules, separated by spaces or commas</p>
+ * <p><code>Prefetch.Rule.</code><i>name</i><code>.Modalities</code> - the modalities of current study that trigger the rule, empty or absent for any</p>
+ * <p><code>Prefetch.Rule.</code><i>name</i><code>.PriorModalities</code> - the modalities of prior study to fetch, empty or absent for any</p>
+ * <p><code>Prefetch.Rule.</code><i>name</i><code>.SameBodyPart</code> - true if the prior must have a series of the same body part examined, default false</p>
+ * <p><code>Prefetch.Rule.</code><i>name</i><code>.LookBackDays</code> - how many days before the current study to look for priors, 0 (the default) for no limit</p>
+ * <p><code>Prefetch.Rule.</code><i>name</i><code>.MaximumNumberOfPriors</code> - how many of the most recent relevant priors to fetch, 0 (the default) for no limit</p>
+ *
+ * @author	agent
+ */
+public class PrefetchRule {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	public static final String propertyName_PrefetchRules = "Prefetch.Rules";
+	public static final String propertyNamePrefix_PrefetchRule = "Prefetch.Rule.";
+
+	/***/
+	private String name;
+	/***/
+	private Set<String> triggerModalities;
+	/***/
+	private Set<String> priorModalities;
+	/***/
+	private boolean sameBodyPart;
+	/***/
+	private int lookBackDays;
+	/***/
+	private int maximumNumberOfPriors;
+
+	/**
+	 * @param	values	a list of values separated by spaces or commas, may be null
+	 * @return			the values, upper case
+	 */
+	private static Set<String> parseValues(String values) {
+		Set<String> set = new TreeSet<String>();
+		if (values != null) {
+			StringTokenizer st = new StringTokenizer(values," ,\t");
+			while (st.hasMoreTokens()) {
+				set.add(st.nextToken().toUpperCase(Locale.US));
+			}
+		}
+		return set;
+	}
+
+	/**
+	 * @param	name					a name for the rule, used only for logging
+	 * @param	triggerModalities		the modalities of current study that trigger the rule, empty or null for any
+	 * @param	priorModalities			the modalities of prior study to fetch, empty or null for any
+	 * @param	sameBodyPart			true if the prior must have a series of the same body part examined as the current study
+	 * @param	lookBackDays			how many days before the current study to look for priors, 0 for no limit
+	 * @param	maximumNumberOfPriors	how many of the most recent relevant priors to fetch, 0 for no limit
+	 */
+	public PrefetchRule(String name,Set<String> triggerModalities,Set<String> priorModalities,boolean sameBodyPart,int lookBackDays,int maximumNumberOfPriors) {
+		this.name=name;
+		this.triggerModalities=triggerModalities == null ? new TreeSet<String>() : triggerModalities;
+		this.priorModalities=priorModalities == null ? new TreeSet<String>() : priorModalities;
+		this.sameBodyPart=sameBodyPart;
+		this.lookBackDays=lookBackDays;
+		this.maximumNumberOfPriors=maximumNumberOfPriors;
+	}
+
+	/**
+	 * <p>Read a rule from properties.</p>
+	 *
+	 * @param	name		the name of the rule
+	 * @param	properties
+	 * @exception	NumberFormatException	if a number of days or priors is not a number
+	 */
+	public PrefetchRule(String name,Properties properties) {
+		String prefix = propertyNamePrefix_PrefetchRule+name+".";
+		this.name=name;
+		triggerModalities = parseValues(properties.getProperty(prefix+"Modalities"));
+		priorModalities = parseValues(properties.getProperty(prefix+"PriorModalities"));
+		sameBodyPart = Boolean.valueOf(properties.getProperty(prefix+"SameBodyPart","false").trim()).booleanValue();
+		lookBackDays = Integer.parseInt(properties.getProperty(prefix+"LookBackDays","0").trim());
+		maximumNumberOfPriors = Integer.parseInt(properties.getProperty(prefix+"MaximumNumberOfPriors","0").trim());
+	}
+
+	/**
+	 * <p>Read all the rules named in properties.</p>
+	 *
+	 * @param	properties
+	 * @return				the rules, empty if none
+	 * @exception	NumberFormatException	if a number of days or priors is not a number
+	 */
+	public static List<PrefetchRule> getRules(Properties properties) {
+		List<PrefetchRule> rules = new ArrayList<PrefetchRule>();
+		StringTokenizer st = new StringTokenizer(properties.getProperty(propertyName_PrefetchRules,"")," ,\t");
+		while (st.hasMoreTokens()) {
+			rules.add(new PrefetchRule(st.nextToken(),properties));
+		}
+		return rules;
+	}
+
+	/**
+	 * @return	the name of the rule
+	 */
+	public String getName() { return name; }
+
+	/**
+	 * @return	true if the prior must have a series of the same body part examined as the current study
+	 */
+	public boolean isSameBodyPart() { return sameBodyPart; }
+
+	/**
+	 * @return	how many of the most recent relevant priors to fetch, 0 for no limit
+	 */
+	public int getMaximumNumberOfPriors() { return maximumNumberOfPriors; }
+
+	/**
+	 * @param	modality	the modality of an instance of the current study
+	 * @return				true if the rule applies to the current study
+	 */
+	public boolean isTriggeredBy(String modality) {
+		return triggerModalities.isEmpty() || (modality != null && triggerModalities.contains(modality.trim().toUpperCase(Locale.US)));
+	}
+
+	/**
+	 * @param	modalitiesInStudy	the modalities of a prior study, may be null or empty if unknown
+	 * @return						true if the prior is of a modality to fetch; a prior of unknown modality is fetched only if the rule accepts any modality
+	 */
+	public boolean isRelevantModality(String[] modalitiesInStudy) {
+		if (priorModalities.isEmpty()) {
+			return true;
+		}
+		if (modalitiesInStudy != null) {
+			for (int i=0; i<modalitiesInStudy.length; ++i) {
+				if (modalitiesInStudy[i] != null && priorModalities.contains(modalitiesInStudy[i].trim().toUpperCase(Locale.US))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * <p>Get the range of study dates to match in a query for priors.</p>
+	 *
+	 * @param	currentStudyDate	YYYYMMDD, may be null or empty if unknown
+	 * @return						a DICOM date range, or an empty string to match any date
+	 */
+	public String getStudyDateRange(String currentStudyDate) {
+		if (currentStudyDate == null || currentStudyDate.trim().length() == 0) {
+			return "";
+		}
+		currentStudyDate = currentStudyDate.trim();
+		if (lookBackDays <= 0) {
+			return "-"+currentStudyDate;
+		}
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+		dateFormat.setLenient(false);
+		try {
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTime(dateFormat.parse(currentStudyDate));
+			calendar.add(Calendar.DATE,-lookBackDays);
+			return dateFormat.format(calendar.getTime())+"-"+currentStudyDate;
+		}
+		catch (ParseException e) {
+			return "";		// a bad date is no reason not to prefetch
+		}
+	}
+
+	public String toString() {
+		return name+": Modalities="+triggerModalities+" PriorModalities="+priorModalities+" SameBodyPart="+sameBodyPart
+			+" LookBackDays="+lookBackDays+" MaximumNumberOfPriors="+maximumNumberOfPriors;
+	}
+}
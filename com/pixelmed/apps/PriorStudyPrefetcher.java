@@ -0,0 +1,622 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.apps;
+
+import com.pixelmed.database.DatabaseInformationModel;
+import com.pixelmed.database.PatientStudySeriesConcatenationInstanceModel;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.CodeStringAttribute;
+import com.pixelmed.dicom.DateAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.InformationEntity;
+import com.pixelmed.dicom.LongStringAttribute;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.SpecificCharacterSet;
+import com.pixelmed.dicom.StoredFilePathStrategy;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+
+import com.pixelmed.network.ApplicationEntityMap;
+import com.pixelmed.network.DicomNetworkException;
+import com.pixelmed.network.FindSOPClassSCU;
+import com.pixelmed.network.IdentifierHandler;
+import com.pixelmed.network.MoveSOPClassSCU;
+import com.pixelmed.network.NetworkApplicationInformation;
+import com.pixelmed.network.NetworkApplicationProperties;
+import com.pixelmed.network.PresentationAddress;
+import com.pixelmed.network.ReceivedObjectHandler;
+import com.pixelmed.network.StorageSOPClassSCPDispatcher;
+
+import com.pixelmed.query.FederatedQuery;
+
+import com.pixelmed.utils.MessageLogger;
+import com.pixelmed.utils.PrintStreamMessageLogger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>A class for fetching the relevant prior studies of a patient from one or more archives as soon as a new study
+ * arrives, so that they are already local when the new study is read.</p>
+ *
+ * <p>Prefetching is triggered either by instances received by a Storage SCP, through the handler supplied by
+ * {@link #getReceivedObjectHandler() getReceivedObjectHandler()}, or by an external trigger such as a scheduled procedure,
+ * through {@link #prefetchFor(AttributeList) prefetchFor()}. Each study triggers prefetching only once, however many instances of it arrive.</p>
+ *
+ * <p>The archives are queried in parallel with a {@link com.pixelmed.query.FederatedQuery FederatedQuery}, and the priors
+ * selected by each triggered {@link com.pixelmed.apps.PrefetchRule PrefetchRule} are moved at the STUDY level from an archive
+ * that has them, several at a time. A prior that is already present in the local database, or that has already been requested,
+ * is not requested again; one that fails to move may be requested again by a later trigger. Studies that arrive because they were
+ * prefetched do not themselves trigger prefetching.</p>
+ *
+ * <p>The main method runs a Storage SCP that inserts what it receives into a local database and prefetches priors to itself,
+ * configured by properties including those described in {@link com.pixelmed.apps.PrefetchRule PrefetchRule}, and:</p>
+ *
+ * <p><code>Prefetch.Archives</code> - the AE Titles of the archives to query, separated by spaces or commas, absent for all remote AEs that support query</p>
+ * <p><code>Prefetch.Threads</code> - how many queries and moves to perform at once, default 4</p>
+ * <p><code>Prefetch.QueryTimeout</code> - in ms, how long to wait for each archive to respond to a query, default 30000</p>
+ *
+ * @author	agent
+ */
+public class PriorStudyPrefetcher {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	public static final String propertyName_PrefetchArchives = "Prefetch.Archives";
+	public static final String propertyName_PrefetchThreads = "Prefetch.Threads";
+	public static final String propertyName_PrefetchQueryTimeout = "Prefetch.QueryTimeout";
+
+	/***/
+	private static int numberOfStudiesToRemember = 10000;
+
+	/***/
+	private NetworkApplicationInformation networkApplicationInformation;
+	/***/
+	private Set<String> archiveAETitles;
+	/***/
+	private String callingAETitle;
+	/***/
+	private String moveDestination;
+	/***/
+	private List<PrefetchRule> rules;
+	/***/
+	private DatabaseInformationModel databaseInformationModel;
+	/***/
+	private FederatedQuery federatedQuery;
+	/***/
+	private ExecutorService executor;
+	/***/
+	private int verbosityLevel;
+	/***/
+	private int debugLevel;
+	/***/
+	private MessageLogger logger;
+
+	/***/
+	private Map<String,Boolean> recentlyTriggeredStudies;
+	/***/
+	private Map<String,Boolean> recentlyRequestedPriors;
+
+	/***/
+	private int nTriggered;
+	/***/
+	private int nPriorsFound;
+	/***/
+	private int nPriorsAlreadyPresent;
+	/***/
+	private int nPriorsAlreadyRequested;
+	/***/
+	private int nMovesSucceeded;
+	/***/
+	private int nMovesFailed;
+
+	/**
+	 * @return	a map that forgets its eldest entries when it is full
+	 */
+	private static Map<String,Boolean> newRecentlyUsedMap() {
+		return new LinkedHashMap<String,Boolean>() {
+			protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+				return size() > numberOfStudiesToRemember;
+			}
+		};
+	}
+
+	/**
+	 * <p>A prior study selected by a rule, and where to move it from.</p>
+	 */
+	protected class Prior {
+		String studyInstanceUID;
+		String studyDate;
+		String patientID;
+		String retrieveAETitle;
+
+		Prior(String studyInstanceUID,String studyDate,String patientID,String retrieveAETitle) {
+			this.studyInstanceUID=studyInstanceUID;
+			this.studyDate=studyDate;
+			this.patientID=patientID;
+			this.retrieveAETitle=retrieveAETitle;
+		}
+
+		public String toString() {
+			return studyInstanceUID+" ("+studyDate+") from "+retrieveAETitle;
+		}
+	}
+
+	/**
+	 * <p>Finds the priors of one current study and requests those that are needed.</p>
+	 */
+	protected class Evaluation implements Runnable {
+		String patientID;
+		String studyInstanceUID;
+		String studyDate;
+		String modality;
+		String bodyPartExamined;
+
+		Evaluation(AttributeList current) {
+			patientID = Attribute.getSingleStringValueOrEmptyString(current,TagFromName.PatientID);
+			studyInstanceUID = Attribute.getSingleStringValueOrEmptyString(current,TagFromName.StudyInstanceUID);
+			studyDate = Attribute.getSingleStringValueOrEmptyString(current,TagFromName.StudyDate);
+			modality = Attribute.getSingleStringValueOrEmptyString(current,TagFromName.Modality);
+			bodyPartExamined = Attribute.getSingleStringValueOrEmptyString(current,TagFromName.BodyPartExamined);
+		}
+
+		public void run() {
+			try {
+				Iterator<PrefetchRule> ri = rules.iterator();
+				while (ri.hasNext()) {
+					PrefetchRule rule = ri.next();
+					if (rule.isTriggeredBy(modality)) {
+if (verbosityLevel > 0 && logger != null) { logger.sendLn("Evaluating rule "+rule.getName()+" for study "+studyInstanceUID+" of patient "+patientID); }
+						Iterator<Prior> pi = findPriors(rule,this).iterator();
+						while (pi.hasNext()) {
+							requestMove(pi.next());
+						}
+					}
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.err);
+			}
+		}
+	}
+
+	/**
+	 * <p>Moves one prior study.</p>
+	 */
+	protected class Move implements Runnable {
+		Prior prior;
+
+		Move(Prior prior) {
+			this.prior=prior;
+		}
+
+		public void run() {
+			boolean success = false;
+			try {
+				ApplicationEntityMap applicationEntityMap = networkApplicationInformation.getApplicationEntityMap();
+				PresentationAddress presentationAddress = applicationEntityMap.getPresentationAddress(prior.retrieveAETitle);
+				boolean patientRoot = NetworkApplicationProperties.isPatientRootQueryModel(applicationEntityMap.getQueryModel(prior.retrieveAETitle));
+				AttributeList identifier = new AttributeList();
+				{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue("STUDY"); identifier.put(a); }
+				if (patientRoot) {
+					Attribute a = new LongStringAttribute(TagFromName.PatientID); a.addValue(prior.patientID); identifier.put(a);
+				}
+				{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue(prior.studyInstanceUID); identifier.put(a); }
+if (verbosityLevel > 0 && logger != null) { logger.sendLn("Moving prior "+prior+" to "+moveDestination); }
+				MoveSOPClassSCU moveSOPClassSCU = new MoveSOPClassSCU(presentationAddress.getHostname(),presentationAddress.getPort(),prior.retrieveAETitle,callingAETitle,moveDestination,
+					patientRoot ? SOPClass.PatientRootQueryRetrieveInformationModelMove : SOPClass.StudyRootQueryRetrieveInformationModelMove,
+					identifier,debugLevel);
+				int moveStatus = moveSOPClassSCU.getStatus();
+				success = moveStatus == 0x0000;
+				if (!success && logger != null) {
+					logger.sendLn("Unsuccessful move of prior "+prior+" status = 0x"+Integer.toHexString(moveStatus));
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.err);
+			}
+			synchronized (PriorStudyPrefetcher.this) {
+				if (success) {
+					++nMovesSucceeded;
+				}
+				else {
+					++nMovesFailed;
+					recentlyRequestedPriors.remove(prior.studyInstanceUID);	// so that a later trigger may try again
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Accumulates each identifier returned from a C-FIND.</p>
+	 */
+	private class OurIdentifierHandler extends IdentifierHandler {
+		List<AttributeList> identifiers = new ArrayList<AttributeList>();
+
+		public void doSomethingWithIdentifier(AttributeList identifier) throws DicomException {
+			identifiers.add(identifier);
+		}
+	}
+
+	protected class OurReceivedObjectHandler extends ReceivedObjectHandler {
+		public void sendReceivedObjectIndication(String dicomFileName,String transferSyntax,String callingAETitle) throws DicomNetworkException, DicomException, IOException {
+			if (dicomFileName != null) {
+				prefetchFor(readHeader(dicomFileName));
+			}
+		}
+	}
+
+	/**
+	 * @param	dicomFileName
+	 * @return					the attributes up to the pixel data
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	private static AttributeList readHeader(String dicomFileName) throws DicomException, IOException {
+		DicomInputStream i = new DicomInputStream(new BufferedInputStream(new FileInputStream(dicomFileName)));
+		try {
+			AttributeList list = new AttributeList();
+			list.read(i,TagFromName.PixelData);
+			return list;
+		}
+		finally {
+			i.close();
+		}
+	}
+
+	/**
+	 * @param	identifier	a query response
+	 * @return				an AE Title from which the study may be retrieved, that we know how to reach, or null if none
+	 */
+	private String chooseRetrieveAETitle(AttributeList identifier) {
+		ApplicationEntityMap applicationEntityMap = networkApplicationInformation.getApplicationEntityMap();
+		Attribute a = identifier.get(TagFromName.RetrieveAETitle);
+		if (a != null) {
+			try {
+				String[] values = a.getStringValues();
+				if (values != null) {
+					// prefer one of the archives queried, since they are the ones we expect to be able to move to us
+					for (int i=0; i<values.length; ++i) {
+						if (archiveAETitles.contains(values[i]) && applicationEntityMap.getPresentationAddress(values[i]) != null) {
+							return values[i];
+						}
+					}
+					for (int i=0; i<values.length; ++i) {
+						if (applicationEntityMap.getPresentationAddress(values[i]) != null) {
+							return values[i];
+						}
+					}
+				}
+			}
+			catch (DicomException e) {
+				e.printStackTrace(System.err);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param	prior
+	 * @param	bodyPartExamined
+	 * @return						true if the prior has a series of the specified body part examined
+	 * @exception	IOException
+	 * @exception	DicomException
+	 * @exception	DicomNetworkException
+	 */
+	private boolean hasSeriesOfBodyPart(Prior prior,String bodyPartExamined) throws DicomNetworkException, DicomException, IOException {
+		ApplicationEntityMap applicationEntityMap = networkApplicationInformation.getApplicationEntityMap();
+		PresentationAddress presentationAddress = applicationEntityMap.getPresentationAddress(prior.retrieveAETitle);
+		boolean patientRoot = NetworkApplicationProperties.isPatientRootQueryModel(applicationEntityMap.getQueryModel(prior.retrieveAETitle));
+		AttributeList identifier = new AttributeList();
+		{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue("SERIES"); identifier.put(a); }
+		{ Attribute a = new LongStringAttribute(TagFromName.PatientID); a.addValue(prior.patientID); identifier.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue(prior.studyInstanceUID); identifier.put(a); }
+		identifier.putNewAttribute(TagFromName.SeriesInstanceUID);
+		identifier.putNewAttribute(TagFromName.BodyPartExamined);	// a return key only, since matching on it is optional for the SCP
+		OurIdentifierHandler identifierHandler = new OurIdentifierHandler();
+		new FindSOPClassSCU(presentationAddress.getHostname(),presentationAddress.getPort(),prior.retrieveAETitle,callingAETitle,
+			patientRoot ? SOPClass.PatientRootQueryRetrieveInformationModelFind : SOPClass.StudyRootQueryRetrieveInformationModelFind,
+			identifier,identifierHandler,debugLevel);
+		Iterator<AttributeList> i = identifierHandler.identifiers.iterator();
+		while (i.hasNext()) {
+			if (Attribute.getSingleStringValueOrEmptyString(i.next(),TagFromName.BodyPartExamined).trim().equalsIgnoreCase(bodyPartExamined.trim())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * <p>Query the archives for the priors of a current study selected by a rule.</p>
+	 *
+	 * @param	rule
+	 * @param	current
+	 * @return				the selected priors, most recent first
+	 * @exception	IOException
+	 * @exception	DicomException
+	 * @exception	DicomNetworkException
+	 * @exception	InterruptedException
+	 */
+	protected List<Prior> findPriors(PrefetchRule rule,Evaluation current) throws DicomNetworkException, DicomException, IOException, InterruptedException {
+		SpecificCharacterSet specificCharacterSet = new SpecificCharacterSet((String[])null);
+		AttributeList identifier = new AttributeList();
+		{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue("STUDY"); identifier.put(a); }
+		{ Attribute a = new LongStringAttribute(TagFromName.PatientID,specificCharacterSet); a.addValue(current.patientID); identifier.put(a); }
+		{ Attribute a = new DateAttribute(TagFromName.StudyDate); String range = rule.getStudyDateRange(current.studyDate); if (range.length() > 0) { a.addValue(range); } identifier.put(a); }
+		identifier.putNewAttribute(TagFromName.StudyInstanceUID);
+		identifier.putNewAttribute(TagFromName.ModalitiesInStudy);
+		identifier.putNewAttribute(TagFromName.RetrieveAETitle);
+		List<AttributeList> responses = federatedQuery.performQuery(identifier,archiveAETitles).getIdentifiers();
+
+		List<Prior> candidates = new ArrayList<Prior>();
+		Iterator<AttributeList> i = responses.iterator();
+		while (i.hasNext()) {
+			AttributeList response = i.next();
+			String studyInstanceUID = Attribute.getSingleStringValueOrEmptyString(response,TagFromName.StudyInstanceUID);
+			if (studyInstanceUID.length() == 0 || studyInstanceUID.equals(current.studyInstanceUID)) {
+				continue;
+			}
+			if (!Attribute.getSingleStringValueOrEmptyString(response,TagFromName.PatientID).trim().equals(current.patientID.trim())) {
+				continue;	// in case an archive matched loosely
+			}
+			Attribute aModalitiesInStudy = response.get(TagFromName.ModalitiesInStudy);
+			if (!rule.isRelevantModality(aModalitiesInStudy == null ? null : aModalitiesInStudy.getStringValues())) {
+				continue;
+			}
+			String retrieveAETitle = chooseRetrieveAETitle(response);
+			if (retrieveAETitle == null) {
+if (verbosityLevel > 0 && logger != null) { logger.sendLn("No known AE from which to retrieve prior "+studyInstanceUID); }
+				continue;
+			}
+			candidates.add(new Prior(studyInstanceUID,Attribute.getSingleStringValueOrEmptyString(response,TagFromName.StudyDate),current.patientID,retrieveAETitle));
+		}
+		Collections.sort(candidates,new Comparator<Prior>() {
+			public int compare(Prior p1,Prior p2) {
+				return p2.studyDate.compareTo(p1.studyDate);		// most recent first
+			}
+		});
+
+		List<Prior> priors = new ArrayList<Prior>();
+		int maximumNumberOfPriors = rule.getMaximumNumberOfPriors();
+		Iterator<Prior> ci = candidates.iterator();
+		while (ci.hasNext() && (maximumNumberOfPriors <= 0 || priors.size() < maximumNumberOfPriors)) {
+			Prior prior = ci.next();
+			if (!rule.isSameBodyPart() || current.bodyPartExamined.length() == 0 || hasSeriesOfBodyPart(prior,current.bodyPartExamined)) {
+				priors.add(prior);
+			}
+		}
+		synchronized (this) {
+			nPriorsFound += priors.size();
+		}
+		return priors;
+	}
+
+	/**
+	 * <p>Request a prior unless it is already present locally or has already been requested.</p>
+	 *
+	 * @param	prior
+	 * @exception	DicomException
+	 */
+	protected void requestMove(Prior prior) throws DicomException {
+		synchronized (this) {
+			if (recentlyRequestedPriors.containsKey(prior.studyInstanceUID)) {
+				++nPriorsAlreadyRequested;
+				return;
+			}
+		}
+		if (databaseInformationModel != null) {
+			boolean present;
+			synchronized (databaseInformationModel) {
+				present = databaseInformationModel.findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedUID(InformationEntity.STUDY,prior.studyInstanceUID).size() > 0;
+			}
+			if (present) {
+if (verbosityLevel > 1 && logger != null) { logger.sendLn("Prior "+prior+" already present"); }
+				synchronized (this) {
+					++nPriorsAlreadyPresent;
+				}
+				return;
+			}
+		}
+		synchronized (this) {
+			if (recentlyRequestedPriors.containsKey(prior.studyInstanceUID)) {	// check again, since another evaluation may have requested it meanwhile
+				++nPriorsAlreadyRequested;
+				return;
+			}
+			recentlyRequestedPriors.put(prior.studyInstanceUID,Boolean.TRUE);
+		}
+		executor.execute(new Move(prior));
+	}
+
+	/**
+	 * <p>Create a prefetcher.</p>
+	 *
+	 * @param	networkApplicationInformation	the remote AEs, including the archives
+	 * @param	archiveAETitles					the AE Titles of the archives to query, or null for all remote AEs that support query
+	 * @param	callingAETitle					our AE Title when querying and retrieving
+	 * @param	moveDestination					the AE Title to which to move the priors
+	 * @param	rules							the rules that select the priors of a current study
+	 * @param	databaseInformationModel		the local database in which to check for priors already present, or null if none
+	 * @param	queryTimeout					in ms, how long to wait for each archive to respond to a query, 0 if no limit
+	 * @param	numberOfThreads					how many queries and moves to perform at once
+	 * @param	verbosityLevel
+	 * @param	debugLevel
+	 * @param	logger
+	 */
+	public PriorStudyPrefetcher(NetworkApplicationInformation networkApplicationInformation,Set<String> archiveAETitles,
+				String callingAETitle,String moveDestination,List<PrefetchRule> rules,DatabaseInformationModel databaseInformationModel,
+				long queryTimeout,int numberOfThreads,int verbosityLevel,int debugLevel,MessageLogger logger) {
+		this.networkApplicationInformation=networkApplicationInformation;
+		this.callingAETitle=callingAETitle;
+		this.moveDestination=moveDestination;
+		this.rules=rules;
+		this.databaseInformationModel=databaseInformationModel;
+		this.verbosityLevel=verbosityLevel;
+		this.debugLevel=debugLevel;
+		this.logger=logger;
+		if (archiveAETitles == null) {
+			archiveAETitles = new TreeSet<String>();
+			ApplicationEntityMap applicationEntityMap = networkApplicationInformation.getApplicationEntityMap();
+			Iterator i = applicationEntityMap.keySet().iterator();
+			while (i.hasNext()) {
+				String aet = (String)(i.next());
+				if (applicationEntityMap.getQueryModel(aet) != null) {
+					archiveAETitles.add(aet);
+				}
+			}
+		}
+		this.archiveAETitles=archiveAETitles;
+		federatedQuery = new FederatedQuery(networkApplicationInformation,callingAETitle,queryTimeout,debugLevel);
+		executor = Executors.newFixedThreadPool(Math.max(1,numberOfThreads));
+		recentlyTriggeredStudies = newRecentlyUsedMap();
+		recentlyRequestedPriors = newRecentlyUsedMap();
+	}
+
+	/**
+	 * <p>Prefetch the priors of a current study.</p>
+	 *
+	 * <p>Returns immediately; the archives are queried and the priors moved in the background.</p>
+	 *
+	 * @param	current		attributes of the current study, including at least the Patient ID, Study Instance UID, and preferably the Study Date, Modality and Body Part Examined
+	 * @return				true if prefetching was started, false if no rule applies, or the study has already triggered prefetching, or is itself a prefetched prior
+	 */
+	public boolean prefetchFor(AttributeList current) {
+		String studyInstanceUID = Attribute.getSingleStringValueOrEmptyString(current,TagFromName.StudyInstanceUID);
+		String patientID = Attribute.getSingleStringValueOrEmptyString(current,TagFromName.PatientID);
+		if (studyInstanceUID.length() == 0 || patientID.trim().length() == 0) {
+			return false;
+		}
+		String modality = Attribute.getSingleStringValueOrEmptyString(current,TagFromName.Modality);
+		boolean triggered = false;
+		Iterator<PrefetchRule> ri = rules.iterator();
+		while (!triggered && ri.hasNext()) {
+			triggered = ri.next().isTriggeredBy(modality);
+		}
+		if (!triggered) {
+			return false;
+		}
+		synchronized (this) {
+			if (recentlyRequestedPriors.containsKey(studyInstanceUID) || recentlyTriggeredStudies.containsKey(studyInstanceUID)) {
+				return false;
+			}
+			recentlyTriggeredStudies.put(studyInstanceUID,Boolean.TRUE);
+			++nTriggered;
+		}
+		executor.execute(new Evaluation(current));
+		return true;
+	}
+
+	/**
+	 * <p>Get a handler that prefetches the priors of each study received by a Storage SCP.</p>
+	 *
+	 * @return	the handler
+	 */
+	public ReceivedObjectHandler getReceivedObjectHandler() {
+		return new OurReceivedObjectHandler();
+	}
+
+	/**
+	 * <p>Get how many studies have triggered prefetching and what became of their priors.</p>
+	 *
+	 * @return	a human-readable summary
+	 */
+	public synchronized String getStatistics() {
+		return "triggered="+nTriggered+" priorsFound="+nPriorsFound+" alreadyPresent="+nPriorsAlreadyPresent+" alreadyRequested="+nPriorsAlreadyRequested
+			+" movesSucceeded="+nMovesSucceeded+" movesFailed="+nMovesFailed;
+	}
+
+	/**
+	 * <p>Stop accepting triggers; queries and moves already started are allowed to finish.</p>
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @param	values	a list of values separated by spaces or commas, may be null
+	 * @return			the values, or null if none
+	 */
+	private static Set<String> parseAETitles(String values) {
+		Set<String> set = null;
+		if (values != null && values.trim().length() > 0) {
+			set = new TreeSet<String>();
+			StringTokenizer st = new StringTokenizer(values," ,\t");
+			while (st.hasMoreTokens()) {
+				set.add(st.nextToken());
+			}
+		}
+		return set;
+	}
+
+	/**
+	 * <p>Run a Storage SCP that inserts what it receives into a local database and prefetches the priors of each new study to itself.</p>
+	 *
+	 * @param	arg		array of 3, 4 or 5 strings - the properties file name, the fully qualified path of the database file prefix,
+	 *					the fully qualified path of the saved incoming files folder, optionally a verbosity level, optionally an integer debug level
+	 */
+	public static void main(String arg[]) {
+		try {
+			if (arg.length >= 3 && arg.length <= 5) {
+				Properties properties = new Properties();
+				FileInputStream in = new FileInputStream(arg[0]);
+				properties.load(in);
+				in.close();
+				String databaseFileName = arg[1];
+				File savedInstancesFolder = new File(arg[2]);
+				int verbosityLevel = arg.length > 3 ? Integer.parseInt(arg[3]) : 0;
+				int debugLevel = arg.length > 4 ? Integer.parseInt(arg[4]) : 0;
+
+				NetworkApplicationProperties networkApplicationProperties = new NetworkApplicationProperties(properties);
+				final DatabaseInformationModel databaseInformationModel = new PatientStudySeriesConcatenationInstanceModel(databaseFileName);
+				final PriorStudyPrefetcher prefetcher = new PriorStudyPrefetcher(networkApplicationProperties.getNetworkApplicationInformation(),
+					parseAETitles(properties.getProperty(propertyName_PrefetchArchives)),
+					networkApplicationProperties.getCallingAETitle(),networkApplicationProperties.getCalledAETitle(),
+					PrefetchRule.getRules(properties),databaseInformationModel,
+					Long.parseLong(properties.getProperty(propertyName_PrefetchQueryTimeout,"30000").trim()),
+					Integer.parseInt(properties.getProperty(propertyName_PrefetchThreads,"4").trim()),
+					verbosityLevel,debugLevel,new PrintStreamMessageLogger(System.err));
+				ReceivedObjectHandler receivedObjectHandler = new ReceivedObjectHandler() {
+					public void sendReceivedObjectIndication(String dicomFileName,String transferSyntax,String callingAETitle) throws DicomNetworkException, DicomException, IOException {
+						if (dicomFileName != null) {
+							AttributeList list = readHeader(dicomFileName);
+							synchronized (databaseInformationModel) {
+								databaseInformationModel.insertObject(list,dicomFileName,DatabaseInformationModel.FILE_COPIED);
+							}
+							prefetcher.prefetchFor(list);
+						}
+					}
+				};
+				new StorageSOPClassSCPDispatcher(networkApplicationProperties.getListeningPort(),networkApplicationProperties.getCalledAETitle(),
+					savedInstancesFolder,StoredFilePathStrategy.BYSOPINSTANCEUIDHASHSUBFOLDERS,receivedObjectHandler,
+					networkApplicationProperties.getStorageSCPDebugLevel()).run();
+			}
+			else {
+				System.err.println("Usage: java -cp ./pixelmed.jar:./lib/additional/hsqldb.jar com.pixelmed.apps.PriorStudyPrefetcher propertiesfile databasepath savedfilesfolder [verbositylevel [debuglevel]]");
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace(System.err);
+			System.exit(0);
+		}
+	}
+}
@@ -0,0 +1,516 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.apps;
+
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomFileUtilities;
+import com.pixelmed.dicom.SetOfDicomFiles;
+
+import com.pixelmed.network.CommandPriority;
+import com.pixelmed.network.DicomNetworkException;
+import com.pixelmed.network.MultipleInstanceTransferStatusHandlerWithFileName;
+import com.pixelmed.network.ReceivedObjectHandler;
+import com.pixelmed.network.StorageTransferScheduler;
+
+import com.pixelmed.utils.MessageLogger;
+import com.pixelmed.utils.PrintStreamMessageLogger;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>A class for routing DICOM files that appear in a watched folder, or that are received by a Storage SCP,
+ * to one or more pre-configured network remote Storage SCP AEs.</p>
+ *
+ * <p>Unlike {@link com.pixelmed.apps.WatchFolderAndSend WatchFolderAndSend}, each instance is recorded in a
+ * {@link com.pixelmed.apps.JournaledSendQueue JournaledSendQueue} for each destination as soon as it is picked up,
+ * so that nothing is lost if the router is restarted, and instances are sent by several threads per destination in parallel
+ * (through a shared {@link com.pixelmed.network.StorageTransferScheduler StorageTransferScheduler}), with failed sends retried
+ * after an exponentially increasing interval.</p>
+ *
+ * <p>An instance whose SOP Instance UID is already queued for, or was recently sent to, a destination is not queued again.</p>
+ *
+ * <p>The watched folder is checked frequently while files are arriving, and progressively less often while idle. When the
+ * router is used to forward instances received over the network, the {@link #getReceivedObjectHandler() getReceivedObjectHandler()}
+ * method supplies a handler that queues each instance as soon as it has been received, without any delay. For example:</p>
+ * <pre>
+StoreAndForwardRouter router = new StoreAndForwardRouter(journalFolder,"ROUTER",
+	new String[] { "graytoo" },new int[] { 11112 },new String[] { "GRAYTOO_DV_11112" },
+	2,CommandPriority.MEDIUM,true,0,0,null);
+new Thread(new StorageSOPClassSCPDispatcher(11112,"ROUTER",receivedFolder,router.getReceivedObjectHandler(),0)).start();
+ * </pre>
+ *
+ * <p>Files are removed once they have been sent successfully to all destinations, if so requested.</p>
+ *
+ * <p>The depth of each queue and its lag (how long the oldest queued instance has been waiting) are available from
+ * {@link #getStatistics() getStatistics()}.</p>
+ *
+ * <p>For example, from the command line:</p>
+ * <pre>
+java -cp ./pixelmed.jar \
+	com.pixelmed.apps.StoreAndForwardRouter \
+	watchthisfolder journalfolder ROUTER \
+	graytoo 11112 GRAYTOO_DV_11112 \
+	helgray 11112 HELGRAY
+ * </pre>
+ *
+ * @author	agent
+ */
+public class StoreAndForwardRouter {
+
+	private static final String identString = "@(#) $Header$";
+
+	protected static int minimumSleepTimeBetweenCheckingForFolderContent = 250;		// ms
+	protected static int maximumSleepTimeBetweenCheckingForFolderContent = 10000;	// ms
+	protected static int intervalAfterLastModificationWithinWhichDoNotSendFileYet = 1000;		// ms
+	protected static long initialRetryInterval = 5000;		// ms
+	protected static long maximumRetryInterval = 600000;	// ms
+	protected static int maximumInstancesPerAssociation = 100;
+	protected static int numberOfRecentlySentSOPInstanceUIDsToRemember = 10000;
+	protected static long waitTimeForQueuedInstances = 1000;	// ms; how often sending threads check for shutdown when idle
+
+	protected int verbosityLevel;
+	protected int debugLevel;
+	protected MessageLogger logger;
+
+	protected String localAE;
+	protected int priority;
+	protected boolean deleteAfterSending;
+	protected StorageTransferScheduler scheduler;
+	protected List<Destination> destinations = new ArrayList<Destination>();
+	protected Map<String,Integer> outstandingDestinationsForFile = new HashMap<String,Integer>();
+	protected volatile boolean shutdown;
+
+	/**
+	 * <p>A remote Storage SCP AE to which instances are routed, with its own queue.</p>
+	 */
+	protected class Destination {
+		String hostname;
+		int port;
+		String aet;
+		JournaledSendQueue queue;
+		Map<String,Boolean> recentlySent;
+		int nSent;
+		int nFailedAttempts;
+
+		Destination(String hostname,int port,String aet,File journalFolder) throws IOException {
+			this.hostname=hostname;
+			this.port=port;
+			this.aet=aet;
+			queue = new JournaledSendQueue(new File(journalFolder,aet+"_"+hostname+"_"+port+".journal"),initialRetryInterval,maximumRetryInterval);
+			recentlySent = new LinkedHashMap<String,Boolean>() {
+				protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+					return size() > numberOfRecentlySentSOPInstanceUIDsToRemember;
+				}
+			};
+		}
+
+		synchronized boolean wasRecentlySent(String sopInstanceUID) {
+			return recentlySent.containsKey(sopInstanceUID);
+		}
+
+		synchronized void recordSent(String sopInstanceUID) {
+			recentlySent.put(sopInstanceUID,Boolean.TRUE);
+			++nSent;
+		}
+
+		synchronized void recordFailedAttempt() {
+			++nFailedAttempts;
+		}
+
+		public String toString() {
+			return aet+"@"+hostname+":"+port;
+		}
+	}
+
+	protected class OurMultipleInstanceTransferStatusHandlerWithFileName extends MultipleInstanceTransferStatusHandlerWithFileName {
+		Destination destination;
+		Map<String,JournaledSendQueue.Entry> entriesByFileName;
+
+		OurMultipleInstanceTransferStatusHandlerWithFileName(Destination destination,Map<String,JournaledSendQueue.Entry> entriesByFileName) {
+			this.destination=destination;
+			this.entriesByFileName=entriesByFileName;
+		}
+
+		public void updateStatus(int nRemaining,int nCompleted,int nFailed,int nWarning,String sopInstanceUID,String fileName,boolean success) {
+			JournaledSendQueue.Entry entry = entriesByFileName.remove(fileName);
+			if (entry != null) {
+				if (success) {
+if (verbosityLevel > 0 && logger != null) { logger.sendLn("Sent "+fileName+" to "+destination); }
+					sentSuccessfully(destination,entry);
+				}
+				else {
+if (verbosityLevel > 0 && logger != null) { logger.sendLn("Failed to send "+fileName+" to "+destination+" (attempt "+(entry.getAttempts()+1)+")"); }
+					destination.recordFailedAttempt();
+					destination.queue.failed(entry);
+				}
+			}
+		}
+	}
+
+	protected class Sender implements Runnable {
+		Destination destination;
+
+		Sender(Destination destination) {
+			this.destination=destination;
+		}
+
+		public void run() {
+			try {
+				while (!shutdown) {
+					List<JournaledSendQueue.Entry> entries = destination.queue.take(maximumInstancesPerAssociation,waitTimeForQueuedInstances);
+					if (!entries.isEmpty()) {
+						send(entries);
+					}
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.err);
+			}
+if (debugLevel > 0) System.err.println("StoreAndForwardRouter.Sender.run(): exiting sender for "+destination);
+		}
+
+		void send(List<JournaledSendQueue.Entry> entries) throws InterruptedException {
+			SetOfDicomFiles dicomFiles = new SetOfDicomFiles();
+			Map<String,JournaledSendQueue.Entry> entriesByFileName = Collections.synchronizedMap(new HashMap<String,JournaledSendQueue.Entry>());	// updated from scheduler worker thread
+			Iterator<JournaledSendQueue.Entry> i = entries.iterator();
+			while (i.hasNext()) {
+				JournaledSendQueue.Entry entry = i.next();
+				String fileName = entry.getFileName();
+				if (new File(fileName).exists()) {
+					SetOfDicomFiles.DicomFile dicomFile = dicomFiles.add(fileName);
+					entriesByFileName.put(dicomFile.getFileName(),entry);
+				}
+				else {
+if (verbosityLevel > 0 && logger != null) { logger.sendLn("Abandoning "+fileName+" for "+destination+" since file no longer exists"); }
+					sentSuccessfully(destination,entry);		// i.e., give up, nothing to send
+				}
+			}
+			if (!dicomFiles.isEmpty()) {
+				OurMultipleInstanceTransferStatusHandlerWithFileName handler = new OurMultipleInstanceTransferStatusHandlerWithFileName(destination,entriesByFileName);
+				scheduler.submit(destination.hostname,destination.port,destination.aet,localAE,dicomFiles,0/*compressionLevel*/,priority,handler).waitForCompletion();
+				// anything not reported at all is retried later
+				Iterator<JournaledSendQueue.Entry> ri;
+				synchronized (entriesByFileName) {
+					ri = new ArrayList<JournaledSendQueue.Entry>(entriesByFileName.values()).iterator();
+				}
+				while (ri.hasNext()) {
+					destination.queue.failed(ri.next());
+				}
+			}
+		}
+	}
+
+	protected class OurReceivedObjectHandler extends ReceivedObjectHandler {
+		public void sendReceivedObjectIndication(String dicomFileName,String transferSyntax,String callingAETitle) throws DicomNetworkException, DicomException, IOException {
+			if (dicomFileName != null) {
+if (verbosityLevel > 0 && logger != null) { logger.sendLn("Received "+dicomFileName+" from "+callingAETitle); }
+				enqueue(dicomFileName);
+			}
+		}
+	}
+
+	/**
+	 * <p>Create a router and start sending anything left queued from a previous run.</p>
+	 *
+	 * @param	journalFolder				the folder in which to keep the journal of the queue for each destination
+	 * @param	localAE						our AE Title
+	 * @param	remoteHosts					the hostname of each destination
+	 * @param	remotePorts					the port of each destination
+	 * @param	remoteAEs					the AE Title of each destination
+	 * @param	sendersPerDestination		how many associations to use in parallel to each destination
+	 * @param	priority					the {@link com.pixelmed.network.CommandPriority CommandPriority} with which to send
+	 * @param	deleteAfterSending			whether or not to remove files once sent successfully to all destinations
+	 * @param	verbosityLevel
+	 * @param	debugLevel
+	 * @param	logger
+	 * @exception	IOException				if a journal cannot be read or written
+	 */
+	public StoreAndForwardRouter(File journalFolder,String localAE,
+				String[] remoteHosts,int[] remotePorts,String[] remoteAEs,
+				int sendersPerDestination,int priority,boolean deleteAfterSending,
+				int verbosityLevel,int debugLevel,MessageLogger logger) throws IOException {
+		this.localAE=localAE;
+		this.priority=priority;
+		this.deleteAfterSending=deleteAfterSending;
+		this.verbosityLevel=verbosityLevel;
+		this.debugLevel=debugLevel;
+		this.logger=logger;
+		if (!journalFolder.exists()) {
+			journalFolder.mkdirs();
+		}
+		if (sendersPerDestination < 1) {
+			sendersPerDestination = 1;
+		}
+		for (int d=0; d<remoteAEs.length; ++d) {
+			Destination destination = new Destination(remoteHosts[d],remotePorts[d],remoteAEs[d],journalFolder);
+			destinations.add(destination);
+			Iterator<String> fi = destination.queue.getFileNames().iterator();
+			while (fi.hasNext()) {
+				incrementOutstandingDestinations(fi.next());
+			}
+if (verbosityLevel > 0 && logger != null) { logger.sendLn("Resuming with "+destination.queue.size()+" queued for "+destination); }
+		}
+		scheduler = new StorageTransferScheduler(destinations.size()*sendersPerDestination,sendersPerDestination,debugLevel);
+		for (int d=0; d<destinations.size(); ++d) {
+			for (int s=0; s<sendersPerDestination; ++s) {
+				new Thread(new Sender(destinations.get(d)),"StoreAndForwardRouter-"+d+"-"+s).start();
+			}
+		}
+	}
+
+	private synchronized void incrementOutstandingDestinations(String fileName) {
+		Integer count = outstandingDestinationsForFile.get(fileName);
+		outstandingDestinationsForFile.put(fileName,new Integer(count == null ? 1 : count.intValue()+1));
+	}
+
+	private synchronized boolean decrementOutstandingDestinations(String fileName) {
+		boolean finished = true;
+		Integer count = outstandingDestinationsForFile.get(fileName);
+		if (count != null && count.intValue() > 1) {
+			outstandingDestinationsForFile.put(fileName,new Integer(count.intValue()-1));
+			finished = false;
+		}
+		else {
+			outstandingDestinationsForFile.remove(fileName);
+		}
+		return finished;
+	}
+
+	private synchronized boolean isOutstanding(String fileName) {
+		return outstandingDestinationsForFile.containsKey(fileName);
+	}
+
+	protected void sentSuccessfully(Destination destination,JournaledSendQueue.Entry entry) {
+		String fileName = entry.getFileName();
+		destination.recordSent(entry.getSOPInstanceUID());
+		try {
+			destination.queue.succeeded(entry);
+		}
+		catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+		if (decrementOutstandingDestinations(fileName) && deleteAfterSending) {
+			File file = new File(fileName);
+			if (file.exists() && file.isFile()) {
+				if (file.delete()) {
+if (verbosityLevel > 0 && logger != null) { logger.sendLn("Removed "+fileName); }
+				}
+				else {
+if (verbosityLevel > 0 && logger != null) { logger.sendLn("Failed to remove "+fileName); }
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Queue a DICOM file to be sent to all destinations.</p>
+	 *
+	 * @param	fileName		the DICOM file
+	 * @return					the number of destinations for which the file was queued, which is zero if it is a duplicate for all of them
+	 * @exception	IOException	if the file cannot be read or a journal cannot be written
+	 */
+	public int enqueue(String fileName) throws IOException {
+		String canonicalFileName = new File(fileName).getCanonicalPath();
+		String sopInstanceUID = new SetOfDicomFiles().add(canonicalFileName).getSOPInstanceUID();
+		if (sopInstanceUID == null || sopInstanceUID.length() == 0) {
+			throw new IOException("Cannot determine SOP Instance UID of "+fileName);
+		}
+		int count = 0;
+		Iterator<Destination> di = destinations.iterator();
+		while (di.hasNext()) {
+			Destination destination = di.next();
+			incrementOutstandingDestinations(canonicalFileName);	// before adding, so that cannot be sent and removed before counted
+			boolean added = false;
+			try {
+				added = !destination.wasRecentlySent(sopInstanceUID) && destination.queue.add(sopInstanceUID,canonicalFileName);
+			}
+			finally {
+				if (added) {
+					++count;
+				}
+				else {
+					decrementOutstandingDestinations(canonicalFileName);	// including if the journal could not be written
+				}
+			}
+			if (!added) {
+if (verbosityLevel > 0 && logger != null) { logger.sendLn("Not queueing duplicate "+sopInstanceUID+" in "+fileName+" for "+destination); }
+			}
+		}
+if (verbosityLevel > 0 && logger != null) { logger.sendLn("Queued "+fileName+" for "+count+" destinations"); }
+		return count;
+	}
+
+	/**
+	 * <p>Get a handler that queues each instance received by a Storage SCP as soon as it has been received.</p>
+	 *
+	 * @return	the handler, to be supplied to a {@link com.pixelmed.network.StorageSOPClassSCPDispatcher StorageSOPClassSCPDispatcher}
+	 */
+	public ReceivedObjectHandler getReceivedObjectHandler() {
+		return new OurReceivedObjectHandler();
+	}
+
+	/**
+	 * <p>Watch a folder and queue any DICOM files that appear, until the folder disappears or the router is shut down.</p>
+	 *
+	 * <p>Tries not to send files that are still being modified.</p>
+	 *
+	 * <p>Does NOT RECURSE into sub-folders, only processes file in supplied directory itself.</p>
+	 *
+	 * @param	watchedFolder
+	 * @exception	InterruptedException
+	 */
+	public void watchFolder(File watchedFolder) throws InterruptedException {
+		Set<String> alreadyQueued = new HashSet<String>();
+		long sleepTime = minimumSleepTimeBetweenCheckingForFolderContent;
+		while (!shutdown && watchedFolder.exists() && watchedFolder.isDirectory()) {
+			boolean foundSomething = false;
+			File[] files = watchedFolder.listFiles();
+			if (files != null) {
+				for (int i=0; i<files.length; ++i) {
+					File file = files[i];
+					if (file.isFile()) {
+						try {
+							String canonicalFileName = file.getCanonicalPath();
+							if (alreadyQueued.contains(canonicalFileName)) {
+								if (!isOutstanding(canonicalFileName) && !file.exists()) {
+									alreadyQueued.remove(canonicalFileName);
+								}
+							}
+							else if (isOutstanding(canonicalFileName)) {
+								alreadyQueued.add(canonicalFileName);		// e.g., queued in a previous run
+							}
+							else if (System.currentTimeMillis() - file.lastModified() > intervalAfterLastModificationWithinWhichDoNotSendFileYet) {
+								if (DicomFileUtilities.isDicomOrAcrNemaFile(file)) {
+									enqueue(canonicalFileName);
+								}
+								else {
+if (verbosityLevel > 0 && logger != null) { logger.sendLn("Skipping non-DICOM file "+file.getName()); }
+								}
+								alreadyQueued.add(canonicalFileName);
+								foundSomething = true;
+							}
+							else {
+								foundSomething = true;		// still being modified, so check again soon
+							}
+						}
+						catch (IOException e) {
+							e.printStackTrace(System.err);
+						}
+					}
+				}
+				// forget what has been removed from the folder, so that the set does not grow without limit
+				if (alreadyQueued.size() > files.length) {
+					Set<String> present = new HashSet<String>();
+					for (int i=0; i<files.length; ++i) {
+						try {
+							present.add(files[i].getCanonicalPath());
+						}
+						catch (IOException e) {
+						}
+					}
+					alreadyQueued.retainAll(present);
+				}
+			}
+			sleepTime = foundSomething ? minimumSleepTimeBetweenCheckingForFolderContent : Math.min(sleepTime*2,maximumSleepTimeBetweenCheckingForFolderContent);
+if (debugLevel > 0) System.err.println("StoreAndForwardRouter.watchFolder(): sleeping for "+sleepTime+" mS");
+			Thread.currentThread().sleep(sleepTime);
+		}
+	}
+
+	/**
+	 * <p>Get the depth and lag of the queue for each destination, and how many instances have been sent or have failed.</p>
+	 *
+	 * @return	a human-readable summary, one line per destination
+	 */
+	public String getStatistics() {
+		StringBuffer buf = new StringBuffer();
+		Iterator<Destination> di = destinations.iterator();
+		while (di.hasNext()) {
+			Destination destination = di.next();
+			synchronized (destination) {
+				buf.append(destination.toString());
+				buf.append(": queued=");
+				buf.append(destination.queue.size());
+				buf.append(" lag=");
+				buf.append(destination.queue.getLag());
+				buf.append(" ms sent=");
+				buf.append(destination.nSent);
+				buf.append(" failedAttempts=");
+				buf.append(destination.nFailedAttempts);
+				buf.append("\n");
+			}
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * <p>Stop watching and sending.</p>
+	 *
+	 * <p>Anything still queued will be sent when the router is next started with the same journal folder.</p>
+	 */
+	public void shutdown() {
+		shutdown = true;
+		scheduler.shutdown();
+	}
+
+	/**
+	 * <p>Watch a folder and route any DICOM files that appear to one or more network remote Storage SCP AEs.</p>
+	 *
+	 * @param	arg		an array of 6 or more strings - the fully qualified path of the watched folder, the folder in which to keep the journals,
+	 *					our AE Title, then the remote hostname, remote port, and remote AE Title of one or more destinations,
+	 *					optionally followed by a verbosity level and an integer debug level
+	 */
+	public static void main(String arg[]) {
+		try {
+			int nDestinationArgs = arg.length - 3;
+			int verbosityLevel = 0;
+			int debugLevel = 0;
+			if (nDestinationArgs % 3 == 1) {
+				verbosityLevel = Integer.parseInt(arg[arg.length-1]);
+				--nDestinationArgs;
+			}
+			else if (nDestinationArgs % 3 == 2) {
+				verbosityLevel = Integer.parseInt(arg[arg.length-2]);
+				debugLevel = Integer.parseInt(arg[arg.length-1]);
+				nDestinationArgs-=2;
+			}
+			if (arg.length >= 6 && nDestinationArgs >= 3) {
+				File watchedFolder = new File(arg[0]);
+				File journalFolder = new File(arg[1]);
+				String localAE = arg[2];
+				int nDestinations = nDestinationArgs/3;
+				String[] remoteHosts = new String[nDestinations];
+				int[] remotePorts = new int[nDestinations];
+				String[] remoteAEs = new String[nDestinations];
+				for (int d=0; d<nDestinations; ++d) {
+					remoteHosts[d] = arg[3+d*3];
+					remotePorts[d] = Integer.parseInt(arg[3+d*3+1]);
+					remoteAEs[d] = arg[3+d*3+2];
+				}
+				MessageLogger logger = new PrintStreamMessageLogger(System.err);
+				StoreAndForwardRouter router = new StoreAndForwardRouter(journalFolder,localAE,remoteHosts,remotePorts,remoteAEs,
+					2/*sendersPerDestination*/,CommandPriority.MEDIUM,true/*deleteAfterSending*/,verbosityLevel,debugLevel,logger);
+				router.watchFolder(watchedFolder);
+				router.shutdown();
+			}
+			else {
+				System.err.println("Usage: java -cp ./pixelmed.jar com.pixelmed.apps.StoreAndForwardRouter watchedfolder journalfolder ourAET remoteHost remotePort remoteAET [remoteHost remotePort remoteAET ...] [verbositylevel [debuglevel]]");
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace(System.err);
+			System.exit(0);
+		}
+	}
+}
@@ -11,11 +11,12 @@ import com.pixelmed.display.DialogMessageLogger;
 import com.pixelmed.network.ApplicationEntity;
 import com.pixelmed.network.ApplicationEntityConfigurationDialog;
 import com.pixelmed.network.ApplicationEntityMap;
+import com.pixelmed.network.CommandPriority;
 import com.pixelmed.network.DicomNetworkException;
 import com.pixelmed.network.MultipleInstanceTransferStatusHandlerWithFileName;
 import com.pixelmed.network.NetworkApplicationInformation;
 import com.pixelmed.network.PresentationAddress;
-import com.pixelmed.network.StorageSOPClassSCU;
+import com.pixelmed.network.StorageTransferScheduler;
 
 import com.pixelmed.utils.FileUtilities;
 import com.pixelmed.utils.MessageLogger;
@@ -161,6 +162,50 @@ if (verbosityLevel > 0 && logger != null) { logger.sendLn("Leaving "+fileName);
 				String localAE,int verbosityLevel,int debugLevel,
 				MessageLogger logger)
 			throws DicomException, DicomNetworkException, IOException, InterruptedException {
+		StorageTransferScheduler scheduler = new StorageTransferScheduler(1,1,debugLevel);
+		try {
+			doWatchFolderAndSend(watchedFolderName,remoteHost,remotePort,remoteAE,localAE,scheduler,CommandPriority.MEDIUM,verbosityLevel,debugLevel,logger);
+		}
+		finally {
+			scheduler.shutdown();
+		}
+	}
+
+	/**
+	 * <p>Watch a folder and send any DICOM files that appear to a network remote Storage SCP AE.</p>
+	 *
+	 * <p>Removes files only after successful send attempt, and leaves them and retries if connection or send fails.</p>
+	 *
+	 * <p>Tries not to send files that are still being modified.</p>
+	 *
+	 * <p>Does NOT RECURSE into sub-folders, only processes file in supplied directory itself.</p>
+	 *
+	 * <p>The files are sent through the supplied scheduler, which may be shared with other outbound transfers.</p>
+	 *
+	 * @param	watchedFolderName
+	 * @param	remoteHost
+	 * @param	remotePort
+	 * @param	remoteAE
+	 * @param	localAE
+	 * @param	scheduler			the scheduler through which to send the files
+	 * @param	priority			the {@link com.pixelmed.network.CommandPriority CommandPriority} with which to send the files
+	 * @param	verbosityLevel
+	 * @param	debugLevel
+	 * @param	logger
+	 */
+	public WatchFolderAndSend(String watchedFolderName,
+				String remoteHost,int remotePort,String remoteAE,
+				String localAE,StorageTransferScheduler scheduler,int priority,int verbosityLevel,int debugLevel,
+				MessageLogger logger)
+			throws DicomException, DicomNetworkException, IOException, InterruptedException {
+		doWatchFolderAndSend(watchedFolderName,remoteHost,remotePort,remoteAE,localAE,scheduler,priority,verbosityLevel,debugLevel,logger);
+	}
+
+	private void doWatchFolderAndSend(String watchedFolderName,
+				String remoteHost,int remotePort,String remoteAE,
+				String localAE,StorageTransferScheduler scheduler,int priority,int verbosityLevel,int debugLevel,
+				MessageLogger logger)
+			throws DicomException, DicomNetworkException, IOException, InterruptedException {
 		if (watchedFolderName != null) {
 			File watchedFolder = new File(watchedFolderName);
 			while (watchedFolder.exists() && watchedFolder.isDirectory()) {
@@ -191,9 +236,10 @@ if (verbosityLevel > 0 && logger != null) { logger.sendLn("Skipping file still b
 						}
 					}
 					if (setOfDicomFiles != null & setOfDicomFiles.size() > 0) {
-						if (new StorageSOPClassSCU(remoteHost,remotePort,remoteAE,localAE,setOfDicomFiles,0,
-								new OurMultipleInstanceTransferStatusHandlerWithFileName(verbosityLevel,debugLevel,logger),
-								null,0,debugLevel).encounteredTrappedExceptions()) {
+						StorageTransferScheduler.Transfer transfer = scheduler.submit(remoteHost,remotePort,remoteAE,localAE,setOfDicomFiles,0,priority,
+								new OurMultipleInstanceTransferStatusHandlerWithFileName(verbosityLevel,debugLevel,logger));
+						transfer.waitForCompletion();		// do not queue the same files again until this attempt is over
+						if (transfer.getNumberFailed() > 0) {
 if (verbosityLevel > 0 && logger != null) { logger.sendLn("Sending queued files problem - connection or association failure ?"); }
 						}
 					}
@@ -0,0 +1,799 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.database;
+
+import com.pixelmed.dicom.DicomException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.text.SimpleDateFormat;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * <p>This class makes backups of the database underlying a {@link com.pixelmed.database.DatabaseInformationModel DatabaseInformationModel}
+ * while it remains open and in use, and restores the database from them, without the need to rebuild it from the instance files with
+ * {@link com.pixelmed.database.RebuildDatabaseFromInstanceFiles RebuildDatabaseFromInstanceFiles}.</p>
+ *
+ * <p>A snapshot is made by checkpointing the database and then, with HSQLDB 2.x, having it write a backup of itself without blocking
+ * other sessions (i.e., using the SQL statements CHECKPOINT and BACKUP DATABASE ... NOT BLOCKING), or, with HSQLDB 1.8, which has no
+ * BACKUP DATABASE statement, copying the files that are not changed until the next checkpoint (i.e., all but the log). If the database
+ * is checkpointed again while the snapshot is being made, the snapshot is made again. Each snapshot is written to a new sub-directory of
+ * the backup directory, named for when it was made, and only a few of the most recent are kept.</p>
+ *
+ * <p>Thereafter, incremental backups are made by appending to a copy of the database's log whatever complete records (lines) have been
+ * appended to the log itself since the last backup, after having the database write to the log any changes it has been delaying writing. Since the log contains every change made since the checkpoint, the snapshot together
+ * with its copy of the log is sufficient to restore the database as it was at the time of the most recent incremental backup. If the
+ * database has been checkpointed again in the meantime (e.g., because the log has grown beyond its maximum size), the log no longer follows
+ * on from the snapshot, so a new snapshot is made instead. A checkpoint is recognized by the script file having been
+ * written again, or the log being shorter than, or starting or ending differently from, what has been copied.</p>
+ *
+ * <p>The copying of the log, and of the files of an HSQLDB 1.8 snapshot, may be throttled to a maximum rate, and the backups may be made
+ * periodically on a background thread of the lowest priority, so that the database remains responsive to those storing and querying it.</p>
+ *
+ * <p>A database may only be restored while it is not open, either with {@link #restore(File,String) restore()} or from the command line
+ * with {@link #main(String[]) main()}. The file name of the database restored must be the same as the one backed up, though it may be in a different directory.</p>
+ *
+ * <p>A database in memory only (i.e., not persisted) cannot be backed up.</p>
+ *
+ * @author	agent
+ */
+public class DatabaseBackup {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	public static final long defaultMaximumBytesPerSecond = 10*1024*1024;
+	/***/
+	public static final int defaultNumberOfSnapshotsToKeep = 2;
+
+	/***/
+	protected static final String snapshotFileName = "snapshot.tar.gz";
+	/***/
+	protected static final String snapshotFilesDirectoryName = "snapshot";		// used instead of snapshotFileName if HSQLDB cannot make a backup itself
+	/***/
+	protected static final String[] snapshotFileExtensions = { ".properties", ".script", ".data", ".backup" };		// files not changed until the next checkpoint, or restored from .backup if they are
+	/***/
+	protected static final int maximumNumberOfSnapshotAttempts = 3;
+	/***/
+	protected static final String descriptionFileName = "backup.properties";
+	/***/
+	protected static final String snapshotDirectoryNameFormat = "yyyyMMddHHmmss";
+	/***/
+	protected static final int logSignatureLength = 1024;
+	/***/
+	protected static final int bufferSize = 64*1024;
+
+	/***/
+	protected int debugLevel;
+
+	/***/
+	protected DatabaseInformationModel databaseInformationModel;
+	/***/
+	protected File backupDirectory;
+	/***/
+	protected File databaseLogFile;
+	/***/
+	protected File databaseFile;
+	/***/
+	protected String databaseBaseName;
+
+	/***/
+	protected long maximumBytesPerSecond = defaultMaximumBytesPerSecond;
+	/***/
+	protected int numberOfSnapshotsToKeep = defaultNumberOfSnapshotsToKeep;
+
+	/***/
+	private File currentSnapshotDirectory;
+	/***/
+	private long whenCurrentSnapshotMade;
+	/***/
+	private long logLengthCopied;
+	/***/
+	private byte[] logSignature;			// the first bytes of the log copied, to detect that the log has been replaced by a checkpoint
+	/***/
+	private byte[] logTailSignature;		// the last bytes of the log copied, ditto
+	/***/
+	private String checkpointGeneration;	// when the script file was last written, to detect a checkpoint
+	/***/
+	private Timer timer;
+
+	/**
+	 * <p>Construct a backup of the specified model.</p>
+	 *
+	 * @param	databaseInformationModel	the model whose database is to be backed up
+	 * @param	backupDirectory				the directory in which to make the snapshots, which will be created if necessary
+	 * @exception	DicomException			if the database is in memory only and so cannot be backed up
+	 */
+	public DatabaseBackup(DatabaseInformationModel databaseInformationModel,File backupDirectory) throws DicomException {
+		this(databaseInformationModel,backupDirectory,0);
+	}
+
+	/**
+	 * <p>Construct a backup of the specified model.</p>
+	 *
+	 * @param	databaseInformationModel	the model whose database is to be backed up
+	 * @param	backupDirectory				the directory in which to make the snapshots, which will be created if necessary
+	 * @param	debugLevel
+	 * @exception	DicomException			if the database is in memory only and so cannot be backed up
+	 */
+	public DatabaseBackup(DatabaseInformationModel databaseInformationModel,File backupDirectory,int debugLevel) throws DicomException {
+		this.databaseInformationModel=databaseInformationModel;
+		this.backupDirectory=backupDirectory;
+		this.debugLevel=debugLevel;
+		databaseFile = getDatabaseFile(databaseInformationModel.getDatabaseFileName());
+		databaseLogFile = new File(databaseFile.getPath()+".log");
+		databaseBaseName = databaseFile.getName();
+	}
+
+	/**
+	 * @param	databaseFileName	the file name of the database, as supplied to the model
+	 * @return						the file name without any prefix
+	 * @exception	DicomException	if the database is in memory only
+	 */
+	private static File getDatabaseFile(String databaseFileName) throws DicomException {
+		if (databaseFileName == null || databaseFileName.startsWith("mem:") || databaseFileName.startsWith("res:")) {
+			throw new DicomException("Cannot back up a database that is not in files: "+databaseFileName);
+		}
+		if (databaseFileName.startsWith("file:")) {
+			databaseFileName = databaseFileName.substring(5);
+		}
+		return new File(databaseFileName);
+	}
+
+	/**
+	 * @param	maximumBytesPerSecond	the maximum rate at which to copy the log, or 0 if not to be throttled
+	 */
+	public void setMaximumBytesPerSecond(long maximumBytesPerSecond) { this.maximumBytesPerSecond=maximumBytesPerSecond; }
+
+	/**
+	 * @param	numberOfSnapshotsToKeep		how many of the most recent snapshots to keep, at least 1
+	 */
+	public void setNumberOfSnapshotsToKeep(int numberOfSnapshotsToKeep) { this.numberOfSnapshotsToKeep=Math.max(1,numberOfSnapshotsToKeep); }
+
+	/**
+	 * <p>Make a new snapshot of the database, followed by an incremental backup of anything changed since.</p>
+	 *
+	 * <p>Other sessions may continue to use the database meanwhile.</p>
+	 *
+	 * @return						the directory containing the snapshot
+	 * @exception	DicomException	if the snapshot could not be made
+	 */
+	public synchronized File snapshot() throws DicomException {
+		long startTime = System.nanoTime();
+		File snapshotDirectory = new File(backupDirectory,new SimpleDateFormat(snapshotDirectoryNameFormat).format(new Date()));
+		if (snapshotDirectory.exists()) {
+			throw new DicomException("Cannot make more than one snapshot per second: "+snapshotDirectory+" already exists");
+		}
+		long whenMade = System.currentTimeMillis();
+		String generation = null;
+		for (int attempt=0; generation == null; ++attempt) {
+			if (attempt >= maximumNumberOfSnapshotAttempts) {
+				throw new DicomException("Cannot make snapshot of database, since it was checkpointed again while the snapshot was being made");
+			}
+			if (!snapshotDirectory.mkdirs()) {
+				throw new DicomException("Cannot create directory for snapshot: "+snapshotDirectory);
+			}
+			generation = makeSnapshot(snapshotDirectory);
+			if (generation == null) {
+if (debugLevel > 0) System.err.println("DatabaseBackup.snapshot(): database was checkpointed while making snapshot, so making it again");
+				deleteRecursively(snapshotDirectory);
+			}
+		}
+		// the log has been started afresh by the checkpoint, so the copy of it starts empty
+		try {
+			new FileOutputStream(getLogCopy(snapshotDirectory)).close();
+		}
+		catch (IOException e) {
+			deleteRecursively(snapshotDirectory);
+			throw new DicomException("Cannot create copy of database log: "+e);
+		}
+		currentSnapshotDirectory = snapshotDirectory;
+		whenCurrentSnapshotMade = whenMade;
+		checkpointGeneration = generation;
+		logLengthCopied = 0;
+		logSignature = new byte[0];
+		logTailSignature = new byte[0];
+		writeDescription();
+		databaseInformationModel.getOperationStatistics().record("snapshotBackup",System.nanoTime()-startTime);
+		removeOldSnapshots();
+		incremental();
+		return snapshotDirectory;
+	}
+
+	/**
+	 * <p>Checkpoint the database and write a snapshot of it.</p>
+	 *
+	 * @param	snapshotDirectory	where to write the snapshot
+	 * @return						the checkpoint generation of the snapshot, or null if the database was checkpointed again while it was being made
+	 * @exception	DicomException	if the snapshot could not be made
+	 */
+	private String makeSnapshot(File snapshotDirectory) throws DicomException {
+		String generation = null;
+		Connection connection = null;
+		try {
+			connection = databaseInformationModel.openAdditionalConnection();		// own session, so as not to hold up others using the database
+			Statement s = connection.createStatement();
+			s.execute("CHECKPOINT");		// no ResultSet expected
+			generation = getCheckpointGeneration();
+			if (isBackupDatabaseSupported()) {
+				String path = new File(snapshotDirectory,snapshotFileName).getAbsolutePath().replace("'","''");
+if (debugLevel > 0) System.err.println("DatabaseBackup.makeSnapshot(): backing up to "+path);
+				s.execute("BACKUP DATABASE TO '"+path+"' NOT BLOCKING");		// no ResultSet expected
+			}
+			else {
+				File filesDirectory = new File(snapshotDirectory,snapshotFilesDirectoryName);
+if (debugLevel > 0) System.err.println("DatabaseBackup.makeSnapshot(): copying files to "+filesDirectory);
+				if (!filesDirectory.mkdirs()) {
+					throw new IOException("Cannot create directory "+filesDirectory);
+				}
+				for (int i=0; i<snapshotFileExtensions.length; ++i) {
+					File file = new File(databaseFile.getPath()+snapshotFileExtensions[i]);
+					if (file.exists()) {
+						copyThrottled(file,new File(filesDirectory,file.getName()));
+					}
+				}
+			}
+			s.close();
+		}
+		catch (Exception e) {
+			deleteRecursively(snapshotDirectory);
+			throw new DicomException("Cannot make snapshot of database: "+e);
+		}
+		finally {
+			if (connection != null) {
+				try {
+					connection.close();
+				}
+				catch (SQLException e) {
+					e.printStackTrace(System.err);
+				}
+			}
+		}
+		return generation.equals(getCheckpointGeneration()) ? generation : null;
+	}
+
+	/**
+	 * @return	true if the database can write a backup of itself, i.e., is HSQLDB 2.x rather than 1.8
+	 */
+	protected static boolean isBackupDatabaseSupported() {
+		try {
+			Class.forName("org.hsqldb.lib.tar.DbBackupMain");
+			return true;
+		}
+		catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * <p>Describe when the database was last checkpointed.</p>
+	 *
+	 * <p>Both HSQLDB 1.8 and 2.x write the script file again when checkpointing, and otherwise leave it alone. The properties file
+	 * is not used, since HSQLDB 2.x also writes it again when the database is first modified after a checkpoint.</p>
+	 *
+	 * @return	when the script file was last written and how long it is
+	 */
+	private String getCheckpointGeneration() {
+		File scriptFile = new File(databaseFile.getPath()+".script");
+		return scriptFile.lastModified()+"/"+scriptFile.length();
+	}
+
+	/**
+	 * <p>Have the database write to its log any changes that it has been delaying writing, and then carry on delaying as before.</p>
+	 *
+	 * <p>Changing the write delay to none makes both HSQLDB 1.8 and 2.x write and sync the log. HSQLDB 2.x reports what the
+	 * write delay was, so that it can be restored; HSQLDB 1.8 does not, so it is restored to the default.</p>
+	 *
+	 * @exception	DicomException	if the log could not be written
+	 */
+	private void flushLog() throws DicomException {
+		Connection connection = null;
+		try {
+			connection = databaseInformationModel.openAdditionalConnection();
+			Statement s = connection.createStatement();
+			String writeDelay = "TRUE";
+			ResultSet r = s.executeQuery("SELECT PROPERTY_VALUE FROM INFORMATION_SCHEMA.SYSTEM_PROPERTIES WHERE PROPERTY_NAME = 'hsqldb.write_delay_millis'");
+			if (r.next()) {
+				writeDelay = r.getString(1).trim()+" MILLIS";
+			}
+			r.close();
+			s.execute("SET WRITE_DELAY FALSE");		// no ResultSet expected
+			s.execute("SET WRITE_DELAY "+writeDelay);
+			s.close();
+		}
+		catch (SQLException e) {
+			throw new DicomException("Cannot write database log: "+e);
+		}
+		finally {
+			if (connection != null) {
+				try {
+					connection.close();
+				}
+				catch (SQLException e) {
+					e.printStackTrace(System.err);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Append to the copy of the log in the current snapshot whatever has been appended to the database's log since the last backup.</p>
+	 *
+	 * <p>If there is no current snapshot, or the log no longer follows on from it, a new snapshot is made instead.</p>
+	 *
+	 * @return						the number of bytes of the log copied
+	 * @exception	DicomException	if the backup could not be made
+	 */
+	public synchronized long incremental() throws DicomException {
+		if (currentSnapshotDirectory == null || !currentSnapshotDirectory.exists()) {
+			snapshot();
+			return logLengthCopied;
+		}
+		long startTime = System.nanoTime();
+		long copied = 0;
+		flushLog();		// else recent changes may not be in the log yet
+		try {
+			RandomAccessFile log = new RandomAccessFile(databaseLogFile,"r");
+			try {
+				long logLength = log.length();
+				if (!checkpointGeneration.equals(getCheckpointGeneration()) || !isLogFollowingOnFromCopy(log,logLength)) {
+if (debugLevel > 0) System.err.println("DatabaseBackup.incremental(): log has been checkpointed since snapshot, so making new snapshot");
+					log.close();
+					log = null;
+					snapshot();
+					return logLengthCopied;
+				}
+				long endOfCompleteRecords = findEndOfLastCompleteLogRecord(log,logLengthCopied,logLength);		// since the record being written may not be complete yet
+				if (endOfCompleteRecords > logLengthCopied) {
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(getLogCopy(currentSnapshotDirectory),true/*append*/));
+					try {
+						copied = copyThrottled(log,logLengthCopied,endOfCompleteRecords,out);
+					}
+					finally {
+						out.close();
+					}
+					logLengthCopied = endOfCompleteRecords;
+					logSignature = readLogSignature(log,0,logLengthCopied);
+					logTailSignature = readLogSignature(log,Math.max(0,logLengthCopied-logSignatureLength),logLengthCopied);
+					writeDescription();
+				}
+			}
+			finally {
+				if (log != null) {
+					log.close();
+				}
+			}
+		}
+		catch (java.io.FileNotFoundException e) {
+			// no log yet, since nothing has changed since the checkpoint
+		}
+		catch (IOException e) {
+			throw new DicomException("Cannot copy database log: "+e);
+		}
+		databaseInformationModel.getOperationStatistics().record("incrementalBackup",System.nanoTime()-startTime);
+if (debugLevel > 0) System.err.println("DatabaseBackup.incremental(): copied "+copied+" bytes of log to "+currentSnapshotDirectory);
+		return copied;
+	}
+
+	/**
+	 * @param	log
+	 * @param	logLength
+	 * @return				true if the log is at least as long as, and starts and ends the same as, what has been copied
+	 * @exception	IOException
+	 */
+	private boolean isLogFollowingOnFromCopy(RandomAccessFile log,long logLength) throws IOException {
+		return logLength >= logLengthCopied
+			&& Arrays.equals(readLogSignature(log,0,logSignature.length),logSignature)
+			&& Arrays.equals(readLogSignature(log,logLengthCopied-logTailSignature.length,logLengthCopied),logTailSignature);
+	}
+
+	/**
+	 * @param	log
+	 * @param	from	the offset of the first byte to read
+	 * @param	to		the offset after the last byte to read, no more than logSignatureLength bytes after from
+	 * @return			the bytes read
+	 * @exception	IOException
+	 */
+	private static byte[] readLogSignature(RandomAccessFile log,long from,long to) throws IOException {
+		byte[] signature = new byte[(int)Math.min(logSignatureLength,to-from)];
+		log.seek(from);
+		log.readFully(signature);
+		return signature;
+	}
+
+	/**
+	 * <p>Find where the last complete record in part of a log ends.</p>
+	 *
+	 * <p>Each record of an HSQLDB log (in both 1.8 and 2.x) is one SQL statement on a line of its own.</p>
+	 *
+	 * @param	log		the log
+	 * @param	from	the offset at which a record starts
+	 * @param	to		the offset after the last byte written to the log so far
+	 * @return			the offset after the end of the last line between from and to, or from if there is no complete line
+	 * @exception	IOException
+	 */
+	public static long findEndOfLastCompleteLogRecord(RandomAccessFile log,long from,long to) throws IOException {
+		byte[] buffer = new byte[bufferSize];
+		long end = to;
+		while (end > from) {
+			int count = (int)Math.min(buffer.length,end-from);
+			long start = end-count;
+			log.seek(start);
+			log.readFully(buffer,0,count);
+			for (int i=count-1; i>=0; --i) {
+				if (buffer[i] == '\n') {
+					return start+i+1;
+				}
+			}
+			end = start;
+		}
+		return from;
+	}
+
+	/**
+	 * <p>Copy a whole file, no faster than the maximum rate.</p>
+	 *
+	 * @param	from	the file to copy
+	 * @param	to		the copy
+	 * @exception	IOException
+	 */
+	private void copyThrottled(File from,File to) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(from,"r");
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(to));
+			try {
+				copyThrottled(in,0,in.length(),out);
+			}
+			finally {
+				out.close();
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * <p>Copy part of a file, no faster than the maximum rate.</p>
+	 *
+	 * @param	in		the file to copy from
+	 * @param	from	the offset of the first byte to copy
+	 * @param	to		the offset after the last byte to copy
+	 * @param	out		where to copy to
+	 * @return			the number of bytes copied
+	 * @exception	IOException
+	 */
+	private long copyThrottled(RandomAccessFile in,long from,long to,OutputStream out) throws IOException {
+		byte[] buffer = new byte[bufferSize];
+		long startTime = System.currentTimeMillis();
+		long copied = 0;
+		in.seek(from);
+		while (from+copied < to) {
+			int count = in.read(buffer,0,(int)Math.min(buffer.length,to-from-copied));
+			if (count < 0) {
+				break;
+			}
+			out.write(buffer,0,count);
+			copied+=count;
+			if (maximumBytesPerSecond > 0) {
+				long aheadBy = copied*1000/maximumBytesPerSecond - (System.currentTimeMillis()-startTime);
+				if (aheadBy > 0) {
+					try {
+						Thread.sleep(aheadBy);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while copying database log");
+					}
+				}
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * @param	snapshotDirectory
+	 * @return					the copy of the database log in the snapshot directory
+	 */
+	private File getLogCopy(File snapshotDirectory) {
+		return new File(snapshotDirectory,databaseBaseName+".log");
+	}
+
+	/**
+	 * <p>Record in the snapshot directory how much of the log it contains, and that the snapshot is complete.</p>
+	 *
+	 * @exception	DicomException
+	 */
+	private void writeDescription() throws DicomException {
+		Properties properties = new Properties();
+		properties.setProperty("database",databaseBaseName);
+		properties.setProperty("snapshot",Long.toString(whenCurrentSnapshotMade));
+		properties.setProperty("incremental",Long.toString(System.currentTimeMillis()));
+		properties.setProperty("loglength",Long.toString(logLengthCopied));
+		File file = new File(currentSnapshotDirectory,descriptionFileName);
+		File newFile = new File(currentSnapshotDirectory,descriptionFileName+".new");
+		try {
+			OutputStream out = new FileOutputStream(newFile);
+			try {
+				properties.store(out,"Backup of "+databaseBaseName);
+			}
+			finally {
+				out.close();
+			}
+			file.delete();
+			if (!newFile.renameTo(file)) {
+				throw new IOException("Cannot rename "+newFile+" to "+file);
+			}
+		}
+		catch (IOException e) {
+			throw new DicomException("Cannot write description of backup: "+e);
+		}
+	}
+
+	/**
+	 * <p>Remove all but the most recent snapshots.</p>
+	 */
+	private void removeOldSnapshots() {
+		File[] snapshotDirectories = listSnapshotDirectories(backupDirectory);
+		for (int i=0; i<snapshotDirectories.length-numberOfSnapshotsToKeep; ++i) {
+if (debugLevel > 0) System.err.println("DatabaseBackup.removeOldSnapshots(): removing "+snapshotDirectories[i]);
+			deleteRecursively(snapshotDirectories[i]);
+		}
+	}
+
+	/**
+	 * @param	backupDirectory
+	 * @return					the directories containing complete snapshots, oldest first
+	 */
+	private static File[] listSnapshotDirectories(File backupDirectory) {
+		File[] files = backupDirectory.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		java.util.List snapshotDirectories = new java.util.ArrayList();
+		for (int i=0; i<files.length; ++i) {
+			File file = files[i];
+			if (file.isDirectory() && new File(file,descriptionFileName).exists()
+			 && (new File(file,snapshotFileName).exists() || new File(file,snapshotFilesDirectoryName).isDirectory())) {
+				snapshotDirectories.add(file);
+			}
+		}
+		File[] sorted = (File[])(snapshotDirectories.toArray(new File[snapshotDirectories.size()]));
+		Arrays.sort(sorted);		// names are times, so sort in order made
+		return sorted;
+	}
+
+	/**
+	 * @param	file	a file or directory to delete, including anything it contains
+	 */
+	private static void deleteRecursively(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (int i=0; i<files.length; ++i) {
+				deleteRecursively(files[i]);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * <p>Periodically make incremental backups, and a new snapshot less frequently, until {@link #stopAutomatic() stopAutomatic()} is called.</p>
+	 *
+	 * <p>The backups are made on a background thread of the lowest priority. Must be stopped before the model is closed.</p>
+	 *
+	 * @param	incrementalIntervalInMilliseconds	how often to make an incremental backup
+	 * @param	snapshotIntervalInMilliseconds		how often to make a new snapshot, or 0 if only when necessary
+	 */
+	public synchronized void startAutomatic(long incrementalIntervalInMilliseconds,final long snapshotIntervalInMilliseconds) {
+		stopAutomatic();
+		timer = new Timer("DatabaseBackup",true/*isDaemon*/);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+				try {
+					boolean snapshotDue;
+					synchronized (DatabaseBackup.this) {
+						snapshotDue = currentSnapshotDirectory == null
+							|| (snapshotIntervalInMilliseconds > 0 && System.currentTimeMillis()-whenCurrentSnapshotMade >= snapshotIntervalInMilliseconds);
+					}
+					if (snapshotDue) {
+						snapshot();
+					}
+					else {
+						incremental();
+					}
+				}
+				catch (Exception e) {
+					e.printStackTrace(System.err);
+				}
+			}
+		},0,incrementalIntervalInMilliseconds);
+	}
+
+	/**
+	 * <p>Stop periodically making backups.</p>
+	 */
+	public synchronized void stopAutomatic() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
+	/**
+	 * <p>Restore a database from the most recent snapshot in the backup directory, including all the changes in its copy of the log.</p>
+	 *
+	 * <p>The database must not be open. Any existing database files of the same name are replaced.</p>
+	 *
+	 * @param	backupDirectory			the directory in which the snapshots were made
+	 * @param	databaseFileName		the file name of the database to restore, which must have the same name (but not necessarily directory) as the one backed up
+	 * @return							the directory containing the snapshot restored from
+	 * @exception	DicomException		if the database could not be restored
+	 */
+	public static File restore(File backupDirectory,String databaseFileName) throws DicomException {
+		File databaseFile = getDatabaseFile(databaseFileName);
+		File[] snapshotDirectories = listSnapshotDirectories(backupDirectory);
+		if (snapshotDirectories.length == 0) {
+			throw new DicomException("No snapshot to restore from in "+backupDirectory);
+		}
+		File snapshotDirectory = snapshotDirectories[snapshotDirectories.length-1];
+		Properties properties = new Properties();
+		try {
+			InputStream in = new FileInputStream(new File(snapshotDirectory,descriptionFileName));
+			try {
+				properties.load(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			throw new DicomException("Cannot read description of backup: "+e);
+		}
+		String backedUpName = properties.getProperty("database");
+		if (!databaseFile.getName().equals(backedUpName)) {
+			throw new DicomException("Backup in "+snapshotDirectory+" is of database "+backedUpName+" not "+databaseFile.getName());
+		}
+		File databaseDirectory = databaseFile.getAbsoluteFile().getParentFile();
+		databaseDirectory.mkdirs();
+		File filesDirectory = new File(snapshotDirectory,snapshotFilesDirectoryName);
+		if (filesDirectory.isDirectory()) {
+			// copied by us from HSQLDB 1.8
+			for (int i=0; i<snapshotFileExtensions.length; ++i) {
+				File file = new File(databaseDirectory,backedUpName+snapshotFileExtensions[i]);
+				file.delete();		// else a data file left behind would be used with a script it does not belong to
+				File fileCopy = new File(filesDirectory,file.getName());
+				if (fileCopy.exists()) {
+					copy(fileCopy,file,fileCopy.length());
+				}
+			}
+		}
+		else {
+			// written by HSQLDB 2.x, which can also extract it
+			try {
+				String[] arguments = { "--extract", "--overwrite", new File(snapshotDirectory,snapshotFileName).getPath(), databaseDirectory.getPath() };
+				Class.forName("org.hsqldb.lib.tar.DbBackupMain").getMethod("main",new Class[] { String[].class }).invoke(null,new Object[] { arguments });
+			}
+			catch (Exception e) {
+				throw new DicomException("Cannot extract snapshot "+snapshotDirectory+": "+e);
+			}
+		}
+		// replace any log in the snapshot with the copy of it, which includes everything since
+		long logLength = Long.parseLong(properties.getProperty("loglength","0"));		// not anything appended after the description was written, which may be incomplete
+		copy(new File(snapshotDirectory,backedUpName+".log"),new File(databaseDirectory,backedUpName+".log"),logLength);
+		if (logLength > 0) {
+			markDatabaseModified(new File(databaseDirectory,backedUpName+".properties"));
+		}
+		return snapshotDirectory;
+	}
+
+	/**
+	 * <p>Copy the start of a file.</p>
+	 *
+	 * @param	from	the file to copy
+	 * @param	to		the copy
+	 * @param	length	how many bytes to copy
+	 * @exception	DicomException	if the file could not be copied
+	 */
+	private static void copy(File from,File to,long length) throws DicomException {
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(from));
+			try {
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(to));
+				try {
+					byte[] buffer = new byte[bufferSize];
+					long remaining = length;
+					int count;
+					while (remaining > 0 && (count = in.read(buffer,0,(int)Math.min(buffer.length,remaining))) > 0) {
+						out.write(buffer,0,count);
+						remaining-=count;
+					}
+				}
+				finally {
+					out.close();
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			throw new DicomException("Cannot restore "+to+": "+e);
+		}
+	}
+
+	/**
+	 * <p>Make sure the log is replayed when the restored database is opened, which both HSQLDB 1.8 and 2.x only do if the database was not shut down.</p>
+	 *
+	 * <p>The properties file in a snapshot written by HSQLDB 2.x says the database was not modified, since it was written just after the checkpoint.</p>
+	 *
+	 * @param	propertiesFile	the properties file of the restored database
+	 * @exception	DicomException	if the properties file could not be changed
+	 */
+	private static void markDatabaseModified(File propertiesFile) throws DicomException {
+		try {
+			Properties databaseProperties = new Properties();
+			InputStream in = new FileInputStream(propertiesFile);
+			try {
+				databaseProperties.load(in);
+			}
+			finally {
+				in.close();
+			}
+			if (!"yes".equals(databaseProperties.getProperty("modified"))) {
+				databaseProperties.setProperty("modified","yes");
+				OutputStream out = new FileOutputStream(propertiesFile);
+				try {
+					databaseProperties.store(out,"HSQL Database Engine");
+				}
+				finally {
+					out.close();
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new DicomException("Cannot mark restored database as modified: "+e);
+		}
+	}
+
+	/**
+	 * <p>Restore a database from the most recent snapshot in a backup directory.</p>
+	 *
+	 * @param	arg	two arguments, the backup directory and the file name of the database to restore
+	 */
+	public static void main(String arg[]) {
+		if (arg.length == 2) {
+			try {
+				File snapshotDirectory = restore(new File(arg[0]),arg[1]);
+				System.err.println("Restored "+arg[1]+" from "+snapshotDirectory);
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.err);
+				System.exit(1);
+			}
+		}
+		else {
+			System.err.println("Usage: java -cp ./pixelmed.jar:./lib/additional/hsqldb.jar com.pixelmed.database.DatabaseBackup backupDirectory databaseFileName");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * <p>This class keeps a limited number of connections to the same database, each used by only one thread at a time.</p>
+ *
+ * <p>Connections are created only when needed, up to the maximum number; once that many are in use, a thread
+ * that needs another waits until one is given back. The time spent waiting is recorded, so that a pool that
+ * is too small can be recognized.</p>
+ *
+ * @author	agent
+ */
+public class DatabaseConnectionPool {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	private String name;
+	/***/
+	private String url;
+	/***/
+	private Properties properties;
+	/***/
+	private int maximumNumberOfConnections;
+	/***/
+	private int transactionIsolation;
+	/***/
+	private boolean readOnly;
+	/***/
+	private DatabaseOperationStatistics operationStatistics;
+	/***/
+	private int numberOfConnections;
+	/***/
+	private LinkedList<Connection> idleConnections;		// most recently used first
+	/***/
+	private Set<Connection> allConnections;
+	/***/
+	private boolean closed;
+
+	/**
+	 * @param	name						what to call the pool in the statistics
+	 * @param	url							the JDBC URL of the database
+	 * @param	properties					the properties with which to connect
+	 * @param	maximumNumberOfConnections	the most connections to have open at once
+	 * @param	transactionIsolation		one of the {@link java.sql.Connection Connection} TRANSACTION_ isolation levels
+	 * @param	readOnly					true if the connections will be used only for reading
+	 * @param	operationStatistics			where to record how long is spent waiting for a connection
+	 */
+	public DatabaseConnectionPool(String name,String url,Properties properties,int maximumNumberOfConnections,int transactionIsolation,boolean readOnly,DatabaseOperationStatistics operationStatistics) {
+		this.name=name;
+		this.url=url;
+		this.properties=properties;
+		this.maximumNumberOfConnections=Math.max(1,maximumNumberOfConnections);
+		this.transactionIsolation=transactionIsolation;
+		this.readOnly=readOnly;
+		this.operationStatistics=operationStatistics;
+		numberOfConnections=0;
+		idleConnections = new LinkedList<Connection>();
+		allConnections = new HashSet<Connection>();
+		closed=false;
+	}
+
+	/**
+	 * <p>Get a connection that is not in use by anyone else, until it is given back, waiting for one if necessary.</p>
+	 *
+	 * @return			a connection
+	 * @exception	SQLException	if a connection cannot be created, or the pool has been closed or the wait interrupted
+	 */
+	public Connection borrow() throws SQLException {
+		long startTime = System.nanoTime();
+		Connection connection = null;
+		synchronized (this) {
+			while (!closed && idleConnections.isEmpty() && numberOfConnections >= maximumNumberOfConnections) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					throw new SQLException("Interrupted waiting for "+name+" database connection");
+				}
+			}
+			if (closed) {
+				throw new SQLException("The "+name+" database connection pool has been closed");
+			}
+			if (idleConnections.isEmpty()) {
+				++numberOfConnections;		// reserve it, but create it outside synchronized block, since may be slow
+			}
+			else {
+				connection = idleConnections.removeFirst();
+			}
+		}
+		if (connection == null) {
+			try {
+				connection = DriverManager.getConnection(url,properties);
+				connection.setTransactionIsolation(transactionIsolation);
+				connection.setReadOnly(readOnly);
+			}
+			catch (SQLException e) {
+				if (connection != null) {
+					close(connection);
+				}
+				synchronized (this) {
+					--numberOfConnections;
+					notifyAll();
+				}
+				throw e;
+			}
+			synchronized (this) {
+				allConnections.add(connection);
+			}
+		}
+		operationStatistics.record("wait for "+name+" connection",System.nanoTime()-startTime);
+		return connection;
+	}
+
+	/**
+	 * <p>Return a borrowed connection, so that it may be used again.</p>
+	 *
+	 * <p>Any statements created on the connection should already have been closed, other than those cached
+	 * for the connection itself.</p>
+	 *
+	 * @param	connection	the connection
+	 */
+	public void giveBack(Connection connection) {
+		boolean closeIt = false;
+		synchronized (this) {
+			if (closed) {
+				allConnections.remove(connection);
+				--numberOfConnections;
+				closeIt = true;
+			}
+			else {
+				idleConnections.addFirst(connection);
+			}
+			notifyAll();
+		}
+		if (closeIt) {
+			close(connection);
+		}
+	}
+
+	/**
+	 * @param	connection
+	 * @return				true if the connection was created by this pool
+	 */
+	public synchronized boolean owns(Connection connection) {
+		return allConnections.contains(connection);
+	}
+
+	/**
+	 * @return	the connections created by this pool and not yet closed
+	 */
+	public synchronized Set<Connection> getAllConnections() {
+		return new HashSet<Connection>(allConnections);
+	}
+
+	/**
+	 * <p>Close the connections not in use, and those in use as they are given back.</p>
+	 *
+	 * <p>Any thread waiting for a connection is woken and fails.</p>
+	 */
+	public void close() {
+		LinkedList<Connection> connectionsToClose;
+		synchronized (this) {
+			closed=true;
+			connectionsToClose = new LinkedList<Connection>(idleConnections);
+			allConnections.removeAll(idleConnections);
+			numberOfConnections-=idleConnections.size();
+			idleConnections.clear();
+			notifyAll();
+		}
+		Iterator<Connection> i = connectionsToClose.iterator();
+		while (i.hasNext()) {
+			close(i.next());
+		}
+	}
+
+	/**
+	 * @param	connection
+	 */
+	private static void close(Connection connection) {
+		try {
+			connection.close();
+		}
+		catch (SQLException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	/**
+	 * @return	the number of connections open, whether in use or not
+	 */
+	public synchronized int getNumberOfConnections() { return numberOfConnections; }
+
+	/**
+	 * @return	the number of connections open and not in use
+	 */
+	public synchronized int getNumberOfIdleConnections() { return idleConnections.size(); }
+
+	public synchronized String toString() {
+		return "DatabaseConnectionPool "+name+": "+numberOfConnections+" of "+maximumNumberOfConnections+" connections open, "+idleConnections.size()+" idle";
+	}
+}
@@ -103,6 +103,30 @@ public abstract class DatabaseInformationModel {
 	/***/
 	protected Connection databaseConnection;
 	/***/
+	private PreparedStatementCache preparedStatementCache;
+	/***/
+	private String databaseURL;
+	/***/
+	private String databaseFileName;
+	/***/
+	private java.util.Properties databaseConnectionProperties;
+	/***/
+	private volatile DatabaseConnectionPool readConnectionPool;
+	/***/
+	private volatile DatabaseConnectionPool writeConnectionPool;
+	/***/
+	private volatile boolean multiVersionConcurrencyControl;
+	/***/
+	private Map preparedStatementCachesByConnection = new HashMap();		// synchronize on this; of PreparedStatementCache for each pooled Connection
+	/***/
+	private ThreadLocal connectionsHeldByThread = new ThreadLocal();		// of LinkedList of HeldConnection
+	/***/
+	private DatabaseOperationStatistics operationStatistics = new DatabaseOperationStatistics();
+	/***/
+	private QueryKeyStatistics queryKeyStatistics = new QueryKeyStatistics();
+	/***/
+	private IndexAdvisor indexAdvisor;
+	/***/
 	protected org.hsqldb.Server externalServerInstance;
 	
 	/***/
@@ -242,7 +266,11 @@ public abstract class DatabaseInformationModel {
 			properties.put("hsqldb.cache_file_scale","8");			// default is only 2GB; must be set BEFORE any cached tables are created
 			properties.put("sql.enforce_size","FALSE");				// default is true with 2.x
 			properties.put("sql.enforce_strict_size","FALSE");		// default is true with 2.x
-			databaseConnection=DriverManager.getConnection("jdbc:hsqldb:"+databaseFileName,properties);
+			this.databaseFileName=databaseFileName;
+			databaseURL="jdbc:hsqldb:"+databaseFileName;
+			databaseConnectionProperties=properties;
+			databaseConnection=DriverManager.getConnection(databaseURL,properties);
+			preparedStatementCache = new PreparedStatementCache(databaseConnection,PreparedStatementCache.defaultMaximumNumberOfIdleStatements);
 //System.err.println("DatabaseInformationModel(): first call to primeListsOfAttributesByInformationEntityFromExistingMetaData() to see if tables exist");
 			primeListsOfAttributesByInformationEntityFromExistingMetaData();
 			if (listsOfAttributesByInformationEntity.size() == 0) {
@@ -251,6 +279,14 @@ public abstract class DatabaseInformationModel {
 //System.err.println("DatabaseInformationModel(): second call to primeListsOfAttributesByInformationEntityFromExistingMetaData() now that we have added our tables");
 				primeListsOfAttributesByInformationEntityFromExistingMetaData();
 			}
+			else {
+				try {
+					createMissingAdditionalIndexes();
+				}
+				catch (DicomException e) {
+					e.printStackTrace(System.err);		// queries will be slower without them, but still work, so do not fail
+				}
+			}
 			createDescriptiveNameMap();
 		}
 		catch (Exception e) {
@@ -281,12 +317,18 @@ public abstract class DatabaseInformationModel {
 	 * <p>Prior to actually closing will also try to formally shutdown and compact the database.</p>
 	 */
 	public void close() {
+		disableAutomaticIndexing();
 		if (externalServerInstance != null) {
 //System.err.println("DatabaseInformationModel.close(): externalServerInstance shutdown start");
 			externalServerInstance.shutdown();
 //System.err.println("DatabaseInformationModel.close(): externalServerInstance shutdown finished");
 			externalServerInstance = null;
 		}
+		disableConnectionPools();
+		if (preparedStatementCache != null) {
+			preparedStatementCache.close();		// before the connection is closed, and so that statements given back later are closed too
+			preparedStatementCache = null;
+		}
 		if (databaseConnection != null) {
 //System.err.println("DatabaseInformationModel.close(): shutdown compact start");
 			try {
@@ -317,6 +359,406 @@ public abstract class DatabaseInformationModel {
 		return databaseConnection.createStatement();
 	}
 	
+	/**
+	 * @param	connection	the shared connection or a pooled connection
+	 * @return				the cache of prepared statements for the connection, or null if the model has been closed
+	 */
+	private PreparedStatementCache getPreparedStatementCache(Connection connection) {
+		if (connection == databaseConnection) {
+			return preparedStatementCache;
+		}
+		synchronized (preparedStatementCachesByConnection) {
+			PreparedStatementCache cache = (PreparedStatementCache)(preparedStatementCachesByConnection.get(connection));
+			if (cache == null && writeConnectionPool != null) {
+				cache = new PreparedStatementCache(connection,PreparedStatementCache.defaultMaximumNumberOfIdleStatements);
+				preparedStatementCachesByConnection.put(connection,cache);
+			}
+			return cache;
+		}
+	}
+	
+	/**
+	 * <p>Get a prepared statement for SQL whose values are supplied as parameters, re-using one prepared previously for the same SQL if possible.</p>
+	 *
+	 * <p>The statement must be given back with {@link #givePreparedStatementBack(Connection,String,PreparedStatement) givePreparedStatementBack()} when
+	 * it and its result set are no longer in use, and not closed.</p>
+	 *
+	 * @param	connection	the connection on which to prepare the statement
+	 * @param	sql			the SQL, with ? for each parameter
+	 * @return				a prepared statement not in use by anyone else
+	 * @exception	SQLException
+	 */
+	PreparedStatement borrowPreparedStatement(Connection connection,String sql) throws java.sql.SQLException {
+		PreparedStatementCache cache = getPreparedStatementCache(connection);
+		return cache == null ? connection.prepareStatement(sql) : cache.borrow(sql);
+	}
+	
+	/**
+	 * <p>Give back a prepared statement obtained from {@link #borrowPreparedStatement(Connection,String) borrowPreparedStatement()}, so that it may be re-used.</p>
+	 *
+	 * @param	connection	the connection on which the statement was prepared
+	 * @param	sql			the SQL for which the statement was borrowed
+	 * @param	statement	the statement
+	 */
+	void givePreparedStatementBack(Connection connection,String sql,PreparedStatement statement) {
+		PreparedStatementCache cache = getPreparedStatementCache(connection);
+		if (cache != null) {
+			cache.giveBack(sql,statement);
+		}
+		else {
+			try {
+				statement.close();
+			}
+			catch (SQLException e) {
+				e.printStackTrace(System.err);
+			}
+		}
+	}
+	
+	/**
+	 * <p>Use separate pools of connections for reading and for writing, rather than the single connection shared by all threads.</p>
+	 *
+	 * <p>By default, all operations use the same connection, which the database serializes, so a long query waits for
+	 * any insertion in progress and vice versa. With connection pools, queries (such as for C-FIND) use connections from the
+	 * read pool, and insertions, deletions and updates use connections from the write pool, so that queries need not wait
+	 * for a large study being inserted. Each object is inserted in a single transaction.</p>
+	 *
+	 * <p>The database is also asked to use multi-version concurrency control (MVCC), if it supports it (HSQLDB 2.x), so
+	 * that readers are not blocked by the locks held by writers, and readers never see only some of the records inserted for an object.
+	 * If it does not (HSQLDB 1.8), all transactions are effectively READ UNCOMMITTED whatever isolation is requested, so
+	 * readers are not blocked but may see a partially inserted hierarchy, such as a new study without its series yet, or
+	 * records that are later rolled back; whether MVCC is in use may be checked with
+	 * {@link #isUsingMultiVersionConcurrencyControl() isUsingMultiVersionConcurrencyControl()}.</p>
+	 *
+	 * <p>Only one write connection should be used unless the application never inserts objects for the same
+	 * patient, study or series at the same time on different threads, since otherwise duplicate records may be created for them.</p>
+	 *
+	 * <p>Should be called before the model is used by more than one thread.</p>
+	 *
+	 * @param	maximumNumberOfReadConnections	the most connections to use at once for queries
+	 * @param	maximumNumberOfWriteConnections	the most connections to use at once for insertions, deletions and updates, usually 1
+	 * @param	transactionIsolation			one of the {@link java.sql.Connection Connection} TRANSACTION_ isolation levels, e.g. TRANSACTION_READ_COMMITTED
+	 * @exception	DicomException	thrown if the pools are already in use
+	 */
+	public synchronized void enableConnectionPools(int maximumNumberOfReadConnections,int maximumNumberOfWriteConnections,int transactionIsolation) throws DicomException {
+		if (writeConnectionPool != null) {
+			throw new DicomException("Connection pools already enabled");
+		}
+		try {
+			Statement s = databaseConnection.createStatement();
+			s.execute("SET DATABASE TRANSACTION CONTROL MVCC");	// no ResultSet expected
+			s.close();
+			multiVersionConcurrencyControl = true;
+		}
+		catch (SQLException e) {
+			// e.g., older version of database that does not support it, in which case readers may see uncommitted changes
+			multiVersionConcurrencyControl = false;
+		}
+		readConnectionPool = new DatabaseConnectionPool("read",databaseURL,databaseConnectionProperties,maximumNumberOfReadConnections,transactionIsolation,true/*readOnly*/,operationStatistics);
+		writeConnectionPool = new DatabaseConnectionPool("write",databaseURL,databaseConnectionProperties,maximumNumberOfWriteConnections,transactionIsolation,false/*readOnly*/,operationStatistics);
+	}
+	
+	/**
+	 * <p>Use separate pools of connections for reading and for writing, with the default number of connections and isolation.</p>
+	 *
+	 * <p>Uses 4 read connections, 1 write connection and read committed isolation.</p>
+	 *
+	 * @exception	DicomException	thrown if the pools are already in use
+	 */
+	public void enableConnectionPools() throws DicomException {
+		enableConnectionPools(4,1,Connection.TRANSACTION_READ_COMMITTED);
+	}
+	
+	/**
+	 * <p>Stop using pools of connections, and go back to the single connection shared by all threads.</p>
+	 *
+	 * <p>Pooled connections in use are closed as they are finished with.</p>
+	 */
+	public synchronized void disableConnectionPools() {
+		synchronized (preparedStatementCachesByConnection) {
+			Iterator i = preparedStatementCachesByConnection.values().iterator();
+			while (i.hasNext()) {
+				((PreparedStatementCache)(i.next())).close();		// before the pooled connections are closed
+			}
+			preparedStatementCachesByConnection.clear();
+		}
+		DatabaseConnectionPool pool = readConnectionPool;
+		readConnectionPool = null;
+		if (pool != null) {
+			pool.close();
+		}
+		pool = writeConnectionPool;
+		writeConnectionPool = null;
+		if (pool != null) {
+			pool.close();
+		}
+	}
+	
+	/**
+	 * @return	the file name of the underlying SQL database instance, as supplied when constructed
+	 */
+	String getDatabaseFileName() { return databaseFileName; }
+	
+	/**
+	 * <p>Open a new connection to the database, with a session of its own, for use by something that must not hold up, or be held up by, the other users of the database.</p>
+	 *
+	 * <p>Must be closed when finished with.</p>
+	 *
+	 * @return				a new connection
+	 * @exception	SQLException	if a connection cannot be opened
+	 */
+	Connection openAdditionalConnection() throws SQLException {
+		return DriverManager.getConnection(databaseURL,databaseConnectionProperties);
+	}
+	
+	/**
+	 * @return	true if separate pools of connections are being used for reading and writing
+	 */
+	public boolean isUsingConnectionPools() { return writeConnectionPool != null; }
+	
+	/**
+	 * @return	true if connection pools were enabled and the database supports multi-version concurrency control,
+	 *			false if readers may see uncommitted changes, such as only some of the records for an object being inserted
+	 */
+	public boolean isUsingMultiVersionConcurrencyControl() { return multiVersionConcurrencyControl && isUsingConnectionPools(); }
+	
+	/**
+	 * @return	how many times each kind of operation has been performed and how long it took
+	 */
+	public DatabaseOperationStatistics getOperationStatistics() { return operationStatistics; }
+	
+	/**
+	 * @return	how many queries have used each column as a matching key, how long they took and how many matches they returned
+	 */
+	public QueryKeyStatistics getQueryKeyStatistics() { return queryKeyStatistics; }
+	
+	/**
+	 * <p>Get the advisor that recommends, creates and drops indexes of the columns used as matching keys in queries.</p>
+	 *
+	 * @return	the advisor, constructed the first time
+	 */
+	public synchronized IndexAdvisor getIndexAdvisor() {
+		if (indexAdvisor == null) {
+			indexAdvisor = new IndexAdvisor(this);
+		}
+		return indexAdvisor;
+	}
+	
+	/**
+	 * <p>Periodically create indexes of columns frequently used as matching keys in queries, and drop those created this way that are no longer used.</p>
+	 *
+	 * <p>Disabled by default, in which case {@link #getIndexAdvisor() getIndexAdvisor()} may be used to obtain recommendations without changing anything.</p>
+	 *
+	 * @param	intervalInMilliseconds	how often to evaluate the query statistics
+	 */
+	public void enableAutomaticIndexing(long intervalInMilliseconds) {
+		getIndexAdvisor().startAutomatic(intervalInMilliseconds);
+	}
+	
+	/**
+	 * <p>Stop periodically creating and dropping indexes.</p>
+	 */
+	public synchronized void disableAutomaticIndexing() {
+		if (indexAdvisor != null) {
+			indexAdvisor.stopAutomatic();
+		}
+	}
+	
+	/***/
+	private static class HeldConnection {
+		/***/
+		Connection connection;
+		/***/
+		boolean forWriting;
+		/***/
+		int depth;
+		
+		HeldConnection(Connection connection,boolean forWriting) {
+			this.connection=connection;
+			this.forWriting=forWriting;
+			depth=1;
+		}
+	}
+	
+	/**
+	 * <p>Get a connection for this thread, re-using one it already holds if suitable.</p>
+	 *
+	 * @param	forWriting	true if the connection will be used to change the database
+	 * @return				a connection
+	 * @exception	SQLException
+	 */
+	private Connection getConnection(boolean forWriting) throws SQLException {
+		LinkedList held = (LinkedList)(connectionsHeldByThread.get());
+		if (held != null) {
+			Iterator i = held.iterator();
+			while (i.hasNext()) {
+				HeldConnection heldConnection = (HeldConnection)(i.next());
+				if (heldConnection.forWriting || !forWriting) {		// can always read on a connection held for writing, and will see what has been written so far
+					++heldConnection.depth;
+					return heldConnection.connection;
+				}
+			}
+		}
+		DatabaseConnectionPool pool = forWriting ? writeConnectionPool : readConnectionPool;
+		if (pool == null) {
+			return databaseConnection;
+		}
+		if (held == null) {
+			held = new LinkedList();
+			connectionsHeldByThread.set(held);
+		}
+		Connection connection = pool.borrow();
+		held.addFirst(new HeldConnection(connection,forWriting));
+		return connection;
+	}
+	
+	/**
+	 * <p>Get a connection on which to read from the database.</p>
+	 *
+	 * <p>Must be released with {@link #releaseConnection(Connection) releaseConnection()} by the same thread when finished with.</p>
+	 *
+	 * <p>If the thread already holds a connection, that connection is used again.</p>
+	 *
+	 * @return				a connection, which is the single shared connection unless pools are enabled
+	 * @exception	SQLException	if a connection cannot be obtained
+	 */
+	protected Connection getConnectionForReading() throws SQLException {
+		return getConnection(false);
+	}
+	
+	/**
+	 * <p>Get a connection on which to change the database.</p>
+	 *
+	 * <p>Must be released with {@link #releaseConnection(Connection) releaseConnection()} by the same thread when finished with.</p>
+	 *
+	 * <p>If the thread already holds a connection for writing, that connection is used again.</p>
+	 *
+	 * @return				a connection, which is the single shared connection unless pools are enabled
+	 * @exception	SQLException	if a connection cannot be obtained
+	 */
+	protected Connection getConnectionForWriting() throws SQLException {
+		return getConnection(true);
+	}
+	
+	/**
+	 * <p>Open a new connection on which this thread will change the database, rather than the single shared connection,
+	 * so that a transaction may be used without including what other threads are doing on the shared connection.</p>
+	 *
+	 * <p>Used only when pools are not enabled. Until it is released, the connection is used by this thread
+	 * whenever it gets a connection for reading or writing.</p>
+	 *
+	 * <p>Must be released with {@link #releaseConnection(Connection) releaseConnection()} by the same thread when finished with, which closes it.</p>
+	 *
+	 * @return				a new connection
+	 * @exception	SQLException	if a connection cannot be opened
+	 */
+	private Connection getAdditionalConnectionForWriting() throws SQLException {
+		Connection connection = openAdditionalConnection();
+		LinkedList held = (LinkedList)(connectionsHeldByThread.get());
+		if (held == null) {
+			held = new LinkedList();
+			connectionsHeldByThread.set(held);
+		}
+		held.addFirst(new HeldConnection(connection,true));
+		return connection;
+	}
+	
+	/**
+	 * <p>Release a connection obtained from {@link #getConnectionForReading() getConnectionForReading()} or {@link #getConnectionForWriting() getConnectionForWriting()}.</p>
+	 *
+	 * @param	connection	the connection, which may be null, in which case nothing is done
+	 */
+	protected void releaseConnection(Connection connection) {
+		if (connection == null || connection == databaseConnection) {
+			return;
+		}
+		LinkedList held = (LinkedList)(connectionsHeldByThread.get());
+		if (held != null) {
+			Iterator i = held.iterator();
+			while (i.hasNext()) {
+				HeldConnection heldConnection = (HeldConnection)(i.next());
+				if (heldConnection.connection == connection) {
+					if (--heldConnection.depth > 0) {
+						return;
+					}
+					i.remove();
+					if (held.isEmpty()) {
+						connectionsHeldByThread.remove();
+					}
+					break;
+				}
+			}
+		}
+		giveConnectionBack(connection);
+	}
+	
+	/**
+	 * <p>Execute SQL that changes the database and returns no result, such as to create a table or an index, on a connection for writing.</p>
+	 *
+	 * @param	sql				the SQL to execute
+	 * @exception	SQLException
+	 */
+	protected void executeOnConnectionForWriting(String sql) throws SQLException {
+		Connection connection = getConnectionForWriting();
+		try {
+			Statement s = connection.createStatement();
+			try {
+				s.execute(sql);	// no ResultSet expected
+			}
+			finally {
+				s.close();
+			}
+		}
+		finally {
+			releaseConnection(connection);
+		}
+	}
+	
+	/**
+	 * <p>Get a connection on which to read from the database, for use by something that may finish with it on a different thread,
+	 * such as a query response generator.</p>
+	 *
+	 * <p>Must be given back with {@link #giveConnectionBack(Connection) giveConnectionBack()} when finished with.</p>
+	 *
+	 * @return				a connection not held by any thread, unless pools are not enabled, in which case the single shared connection
+	 * @exception	SQLException	if a connection cannot be obtained
+	 */
+	Connection borrowConnectionForReading() throws SQLException {
+		DatabaseConnectionPool pool = readConnectionPool;
+		return pool == null ? databaseConnection : pool.borrow();
+	}
+	
+	/**
+	 * <p>Give back a connection to whichever pool it came from.</p>
+	 *
+	 * @param	connection	the connection, which may be null, in which case nothing is done
+	 */
+	void giveConnectionBack(Connection connection) {
+		if (connection == null || connection == databaseConnection) {
+			return;
+		}
+		DatabaseConnectionPool pool = readConnectionPool;
+		if (pool != null && pool.owns(connection)) {
+			pool.giveBack(connection);
+			return;
+		}
+		pool = writeConnectionPool;
+		if (pool != null && pool.owns(connection)) {
+			pool.giveBack(connection);
+			return;
+		}
+		// pools have been disabled since the connection was borrowed, or it was opened just for this thread
+		synchronized (preparedStatementCachesByConnection) {
+			preparedStatementCachesByConnection.remove(connection);
+		}
+		try {
+			connection.close();
+		}
+		catch (SQLException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+	
 	/**
 	 * <p>Get the entity that is at the top of the information model.</p>
 	 *
@@ -445,6 +887,21 @@ public abstract class DatabaseInformationModel {
 		createAdditionalIndexes();
 	}
 
+	/**
+	 * <p>Get the type of table to create, which determines where the database keeps the records.</p>
+	 *
+	 * <p>Defaults to CACHED, i.e., the records are kept on disk and only those recently used are cached in memory,
+	 * which allows for databases larger than the memory available.</p>
+	 *
+	 * <p>May be overridden to return MEMORY, in which case all the records and indexes are kept in memory,
+	 * and are persisted by logging each change and periodically writing a snapshot.</p>
+	 *
+	 * @return	the table type to use in a CREATE TABLE statement
+	 */
+	protected String getTableTypeForCreateStatement() {
+		return "CACHED";
+	}
+
 	/**
 	 * @param	ie
 	 * @param	withParentReference
@@ -457,7 +914,9 @@ public abstract class DatabaseInformationModel {
 		}
 		try {
 			StringBuffer b = new StringBuffer();
-			b.append("CREATE CACHED TABLE ");
+			b.append("CREATE ");
+			b.append(getTableTypeForCreateStatement());
+			b.append(" TABLE ");
 			//b.append("CREATE TABLE ");
 			b.append(tableName);
 			b.append(" (");
@@ -467,9 +926,7 @@ public abstract class DatabaseInformationModel {
 			extendCreateStatementStringWithDerivedAttributes(b,ie);
 			extendCreateStatementStringWithUserColumns(b,ie);
 			b.append(")");
-			Statement s = databaseConnection.createStatement();
-			s.execute(b.toString());	// no ResultSet expected
-			s.close();
+			executeOnConnectionForWriting(b.toString());
 		} catch (Exception e) {
 			throw new DicomException("Cannot create table "+tableName+" in database: "+e);
 		}
@@ -485,15 +942,23 @@ public abstract class DatabaseInformationModel {
 				b.append(" (");
 				b.append(localParentReferenceColumnName);
 				b.append(")");
-				Statement s = databaseConnection.createStatement();
-				s.execute(b.toString());	// no ResultSet expected
-				s.close();
+				executeOnConnectionForWriting(b.toString());
 			} catch (Exception e) {
 				throw new DicomException("Cannot create index of parents for "+tableName+" in database: "+e);
 			}
 		}
 	}
 
+	/**
+	 * <p>Create any additional indexes that were added to the model after the tables of an existing database were created.</p>
+	 *
+	 * <p>Called when an existing database is opened, instead of {@link #createAdditionalIndexes() createAdditionalIndexes()}.
+	 * Defaults to doing nothing if not overridden (i.e. it is not abstract).</p>
+	 *
+	 * @exception	DicomException	thrown if an index cannot be created
+	 */
+	protected void createMissingAdditionalIndexes() throws DicomException {}
+
 	/**
 	 * <p>Create any additional indexes to optimize queries, for example for UIDs.</p>
 	 *
@@ -517,9 +982,7 @@ public abstract class DatabaseInformationModel {
 					b.append(" (");
 					b.append(columnName);
 					b.append(")");
-					Statement s = databaseConnection.createStatement();
-					s.execute(b.toString());	// no ResultSet expected
-					s.close();
+					executeOnConnectionForWriting(b.toString());
 				} catch (Exception e) {
 					throw new DicomException("Cannot create index of "+columnName+" for "+tableName+" in database: "+e);
 				}
@@ -680,12 +1143,10 @@ public abstract class DatabaseInformationModel {
 				if (columnName != null && columnType != null && !isAttributeUsedInTable(tableName,columnName)) {
 //System.err.println(a.toString()+" "+columnName+" = "+tableName+" "+columnType+" "+isAttributeUsedInTable(tableName,columnName));
 					try {
-						Statement s = databaseConnection.createStatement();
-						s.execute("ALTER TABLE " + tableName
+						executeOnConnectionForWriting("ALTER TABLE " + tableName
 							+ " ADD COLUMN " + columnName
 							+ " " + columnType
-							);	// no ResultSet expected
-						s.close();
+							);
 					} catch (Exception e) {
 						throw new DicomException("Cannot add column "+columnName+" to table "+tableName+" in database: "+e);
 					}
@@ -718,6 +1179,8 @@ public abstract class DatabaseInformationModel {
 //System.err.println("DatabaseInformationModel.deleteRecord(): ie = "+ie);
 //System.err.println("DatabaseInformationModel.deleteRecord(): localPrimaryKeyValue = "+localPrimaryKeyValue);
 		if (ie != null && localPrimaryKeyValue != null && localPrimaryKeyValue.length() > 0) {
+			long startTime = System.nanoTime();
+			Connection connection = null;
 			try {
 				String tableName = getTableNameForInformationEntity(ie);
 //System.err.println("DatabaseInformationModel.deleteRecord(): tableName = "+tableName);
@@ -729,7 +1192,8 @@ public abstract class DatabaseInformationModel {
 				b.append(" = \'");
 				b.append(localPrimaryKeyValue);
 				b.append("\'");
-				Statement s = databaseConnection.createStatement();
+				connection = getConnectionForWriting();
+				Statement s = connection.createStatement();
 				String ss = b.toString();
 //System.err.println("DatabaseInformationModel.deleteRecord(): Statement to execute = "+ss);
 				s.execute(ss);	// no ResultSet expected
@@ -739,6 +1203,10 @@ public abstract class DatabaseInformationModel {
 				e.printStackTrace(System.err);
 				throw new DicomException("Cannot perform deletion: "+e);
 			}
+			finally {
+				releaseConnection(connection);
+				operationStatistics.record("deleteRecord",System.nanoTime()-startTime);
+			}
 		}
 	}
 	
@@ -802,9 +1270,18 @@ public abstract class DatabaseInformationModel {
 	public void insertObject(AttributeList list,String fileName,String fileReferenceType) throws DicomException {
 //System.err.println("DatabaseInformationModel.insertObject(): fileName="+fileName);
 		// iterate through information entities, extracting matching keys, checking for a match, inserting new if not ...
+		long startTime = System.nanoTime();
+		Connection connection = null;
+		boolean startedTransaction = false;
 		try {
+			connection = getConnectionForWriting();	// hold the same connection throughout, so that any records inserted are seen when inserting their children
+			if (connection != databaseConnection && connection.getAutoCommit()) {
+				connection.setAutoCommit(false);		// insert all the records for the object in one transaction, so that readers never see only some of them
+				startedTransaction = true;
+			}
 			InformationEntity ie = rootInformationEntity;
 			String localParentReference = null;
+			Map localPrimaryKeysByInformationEntity = new HashMap();
 			while (ie != null) {
 				String tableName = getTableNameForInformationEntity(ie);
 				StringBuffer b = new StringBuffer();
@@ -824,7 +1301,7 @@ public abstract class DatabaseInformationModel {
 				}
 				extendStatementStringWithMatchingAttributesForSelectedInformationEntity(b,list,ie);
 
-				Statement s = databaseConnection.createStatement();
+				Statement s = connection.createStatement();
 				String ss = b.toString();
 //System.err.println("DatabaseInformationModel.insertObject(): Statement to execute = "+ss);
 				ResultSet r = s.executeQuery(ss);
@@ -874,6 +1351,12 @@ public abstract class DatabaseInformationModel {
 					ss = b.toString();
 //System.err.println("DatabaseInformationModel.insertObject(): Statement to execute = "+ss);
 					s.execute(ss);	// no ResultSet expected
+					localPrimaryKeysByInformationEntity.put(ie,entityPrimaryKey);
+					updateAggregateAttributesForNewRecord(ie,list,localPrimaryKeysByInformationEntity);
+					updateSearchIndexesForNewRecord(ie,list,entityPrimaryKey);
+				}
+				else {
+					localPrimaryKeysByInformationEntity.put(ie,entityPrimaryKey);
 				}
 
 				s.close();
@@ -881,13 +1364,125 @@ public abstract class DatabaseInformationModel {
 				localParentReference=entityPrimaryKey;
 				ie=getChildTypeForParent(ie,list);
 			}
+			if (startedTransaction) {
+				connection.commit();
+			}
 		}
 		catch (Exception e) {
+			if (startedTransaction) {
+				try {
+					connection.rollback();
+				}
+				catch (SQLException re) {
+					re.printStackTrace(System.err);
+				}
+			}
 			e.printStackTrace(System.err);
 			throw new DicomException("Cannot perform selection: "+e);
 		}
+		finally {
+			if (startedTransaction) {
+				try {
+					connection.setAutoCommit(true);
+				}
+				catch (SQLException e) {
+					e.printStackTrace(System.err);
+				}
+			}
+			releaseConnection(connection);
+			operationStatistics.record("insertObject",System.nanoTime()-startTime);
+		}
+	}
+
+	/**
+	 * <p>Insert several DICOM composite objects in a single transaction.</p>
+	 *
+	 * <p>This is faster than inserting each object separately when very many objects are being inserted,
+	 * such as when rebuilding a database, since the changes are committed only once.</p>
+	 *
+	 * <p>Either all the objects are inserted or none are; if any object cannot be inserted, the insertion of the
+	 * others is undone before the exception is thrown.</p>
+	 *
+	 * <p>Unless connection pools are enabled, a connection of its own is opened for the transaction, rather than using the connection
+	 * shared by all threads, so that nothing other threads do on the shared connection is committed or undone with it.</p>
+	 *
+	 * @see #insertObject(AttributeList,String,String)
+	 *
+	 * @param	lists		the DICOM attributes of each composite object
+	 * @param	fileNames	the name of the file where each object is stored
+	 * @param	fileReferenceType	"C" for copied (i.e., delete on purge), "R" for referenced (i.e., do not delete on purge)
+	 * @exception	DicomException	thrown if any of the objects cannot be inserted
+	 */
+	public void insertObjects(AttributeList[] lists,String[] fileNames,String fileReferenceType) throws DicomException {
+		long startTime = System.nanoTime();
+		Connection connection = null;
+		boolean startedTransaction = false;
+		boolean committed = false;
+		try {
+			connection = isUsingConnectionPools() ? getConnectionForWriting() : getAdditionalConnectionForWriting();	// never start a transaction on the shared connection
+			if (connection.getAutoCommit()) {
+				connection.setAutoCommit(false);
+				startedTransaction = true;
+			}
+			for (int i=0; i<lists.length; ++i) {
+				insertObject(lists[i],fileNames[i],fileReferenceType);
+			}
+			if (startedTransaction) {
+				connection.commit();
+			}
+			committed = true;
+		}
+		catch (SQLException e) {
+			throw new DicomException("Cannot insert objects: "+e);
+		}
+		finally {
+			if (startedTransaction) {
+				try {
+					if (!committed) {
+						connection.rollback();
+					}
+					connection.setAutoCommit(true);
+				}
+				catch (SQLException e) {
+					e.printStackTrace(System.err);
+				}
+			}
+			releaseConnection(connection);
+			operationStatistics.record("insertObjects",System.nanoTime()-startTime);
+		}
 	}
 
+	/**
+	 * <p>Update any aggregate attributes (columns) of the ancestors of a record that has just been inserted, such as counts of the children of a study.</p>
+	 *
+	 * <p>Called after inserting a new record for an instance of the entity, before any records for its children are inserted.</p>
+	 *
+	 * <p>Specific to each concrete information model extending {@link com.pixelmed.database.DatabaseInformationModel DatabaseInformationModel}.
+	 * Defaults to doing nothing if not overridden (i.e. it is not abstract).</p>
+	 *
+	 * @param	ie									the {@link com.pixelmed.dicom.InformationEntity InformationEntity} of the new record
+	 * @param	list								the DICOM attributes of the composite object being inserted
+	 * @param	localPrimaryKeysByInformationEntity	a {@link java.util.Map Map} of the {@link java.lang.String String} primary keys of the new record and its ancestors
+	 *												indexed by {@link com.pixelmed.dicom.InformationEntity InformationEntity}
+	 * @exception	DicomException	thrown if the update fails
+	 */
+	protected void updateAggregateAttributesForNewRecord(InformationEntity ie,AttributeList list,Map localPrimaryKeysByInformationEntity) throws DicomException {}
+
+	/**
+	 * <p>Add any entries for a record that has just been inserted to search indexes kept in tables other than that of the record itself.</p>
+	 *
+	 * <p>Called after inserting a new record for an instance of the entity, on the same connection and in the same transaction.</p>
+	 *
+	 * <p>Specific to each concrete information model extending {@link com.pixelmed.database.DatabaseInformationModel DatabaseInformationModel}.
+	 * Defaults to doing nothing if not overridden (i.e. it is not abstract).</p>
+	 *
+	 * @param	ie					the {@link com.pixelmed.dicom.InformationEntity InformationEntity} of the new record
+	 * @param	list				the DICOM attributes of the composite object being inserted
+	 * @param	localPrimaryKeyValue	the primary key of the new record
+	 * @exception	DicomException	thrown if the update fails
+	 */
+	protected void updateSearchIndexesForNewRecord(InformationEntity ie,AttributeList list,String localPrimaryKeyValue) throws DicomException {}
+
 	/**
 	 * @param	b
 	 */
@@ -1041,7 +1636,20 @@ public abstract class DatabaseInformationModel {
 	 * @exception	SQLException
 	 */
 	private void primeListsOfAttributesByInformationEntityFromExistingMetaData() throws SQLException {
-		DatabaseMetaData meta = databaseConnection.getMetaData();
+		Connection connection = getConnectionForReading();
+		try {
+			primeListsOfAttributesByInformationEntityFromExistingMetaData(connection.getMetaData());
+		}
+		finally {
+			releaseConnection(connection);
+		}
+	}
+
+	/**
+	 * @param	meta
+	 * @exception	SQLException
+	 */
+	private void primeListsOfAttributesByInformationEntityFromExistingMetaData(DatabaseMetaData meta) throws SQLException {
 		ResultSet columns = meta.getColumns(null, null, null, null);
 		while (columns.next()) {
 			String tableName  = columns.getString(3);
@@ -1109,6 +1717,8 @@ public abstract class DatabaseInformationModel {
 	 */
 	public void updateSelectedRecord(InformationEntity ie,String localPrimaryKeyValue,String key,String value) throws DicomException {
 //System.err.println("DatabaseInformationModel.updateSelectedRecord(): "+ie+" "+localPrimaryKeyValue+" "+key+" "+value);
+		long startTime = System.nanoTime();
+		Connection connection = null;
 		try {
 			if (ie != null) {
 				String tableName = getTableNameForInformationEntity(ie);
@@ -1131,7 +1741,8 @@ public abstract class DatabaseInformationModel {
 					b.append("\'");
 				}
 				b.append(";");
-				Statement s = databaseConnection.createStatement();
+				connection = getConnectionForWriting();
+				Statement s = connection.createStatement();
 				s.execute(b.toString());	// no ResultSet expected
 				s.close();
 			}
@@ -1139,6 +1750,10 @@ public abstract class DatabaseInformationModel {
                         e.printStackTrace(System.err);
 			throw new DicomException("Cannot perform update: "+e);
 		}
+		finally {
+			releaseConnection(connection);
+			operationStatistics.record("updateSelectedRecord",System.nanoTime()-startTime);
+		}
 	}
 
 	/**
@@ -1153,6 +1768,8 @@ public abstract class DatabaseInformationModel {
 	 */
 	public Map findAllAttributeValuesForSelectedRecord(InformationEntity ie,String localPrimaryKeyValue) throws DicomException {
 		TreeMap map = new TreeMap();
+		long startTime = System.nanoTime();
+		Connection connection = null;
 		try {
 			if (ie != null) {
 				String tableName = getTableNameForInformationEntity(ie);
@@ -1168,7 +1785,8 @@ public abstract class DatabaseInformationModel {
 					b.append("\'");
 				}
 				b.append(";");
-				Statement s = databaseConnection.createStatement();
+				connection = getConnectionForReading();
+				Statement s = connection.createStatement();
 				ResultSet r = s.executeQuery(b.toString());
 				ResultSetMetaData md = r.getMetaData();
 				int numberOfColumns = md.getColumnCount();
@@ -1186,6 +1804,10 @@ public abstract class DatabaseInformationModel {
                         e.printStackTrace(System.err);
 			throw new DicomException("Cannot perform selection: "+e);
 		}
+		finally {
+			releaseConnection(connection);
+			operationStatistics.record("findAllAttributeValuesForSelectedRecord",System.nanoTime()-startTime);
+		}
 		return map;
 	}
 
@@ -1202,6 +1824,8 @@ public abstract class DatabaseInformationModel {
 	public ArrayList findAllAttributeValuesForAllRecordsForThisInformationEntity(InformationEntity ie) throws DicomException {
 //long startTime=System.currentTimeMillis();
 		ArrayList recordsAsMapsOfStrings = new ArrayList();
+		long startTime = System.nanoTime();
+		Connection connection = null;
 		try {
 			if (ie != null) {
 				String tableName = getTableNameForInformationEntity(ie);
@@ -1209,7 +1833,8 @@ public abstract class DatabaseInformationModel {
 				b.append("SELECT * FROM ");
 				b.append(tableName);
 				b.append(";");
-				Statement s = databaseConnection.createStatement();
+				connection = getConnectionForReading();
+				Statement s = connection.createStatement();
 				ResultSet r = s.executeQuery(b.toString());
 				ResultSetMetaData md = r.getMetaData();
 				int numberOfColumns = md.getColumnCount();
@@ -1229,6 +1854,10 @@ public abstract class DatabaseInformationModel {
                         e.printStackTrace(System.err);
 			throw new DicomException("Cannot perform selection: "+e);
 		}
+		finally {
+			releaseConnection(connection);
+			operationStatistics.record("findAllAttributeValuesForAllRecordsForThisInformationEntity",System.nanoTime()-startTime);
+		}
 //System.err.println("Select all values for all records of "+ie.toString()+" time "+(System.currentTimeMillis()-startTime)+" milliseconds");
 		return recordsAsMapsOfStrings;
 	}
@@ -1267,6 +1896,8 @@ public abstract class DatabaseInformationModel {
 	public ArrayList findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedKeyValue(InformationEntity ie,String keyName,String keyValue) throws DicomException {
 //long startTime=System.currentTimeMillis();
 		ArrayList recordsAsMapsOfStrings = new ArrayList();
+		long startTime = System.nanoTime();
+		Connection connection = null;
 		try {
 			if (ie != null && keyName != null && keyValue != null) {
 				String tableName = getTableNameForInformationEntity(ie);
@@ -1280,7 +1911,8 @@ public abstract class DatabaseInformationModel {
 				b.append(keyValue);
 				b.append("\'");
 				b.append(";");
-				Statement s = databaseConnection.createStatement();
+				connection = getConnectionForReading();
+				Statement s = connection.createStatement();
 				ResultSet r = s.executeQuery(b.toString());
 				ResultSetMetaData md = r.getMetaData();
 				int numberOfColumns = md.getColumnCount();
@@ -1300,16 +1932,18 @@ public abstract class DatabaseInformationModel {
 			e.printStackTrace(System.err);
 			throw new DicomException("Cannot perform selection: "+e);
 		}
+		finally {
+			releaseConnection(connection);
+			operationStatistics.record("findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedKeyValue",System.nanoTime()-startTime);
+		}
 //System.err.println("Select all values for all records of "+ie.toString()+" time "+(System.currentTimeMillis()-startTime)+" milliseconds");
 		return recordsAsMapsOfStrings;
 	}
 	
-	private HashMap mapOfInformationEntitiesToColumnNames;
+	private HashMap mapOfInformationEntitiesToColumnNames = new HashMap();		// synchronize on this
 	
 	private final String[] getArrayOfColumnNamesForSpecifiedInformationEntity(InformationEntity ie,ResultSet r) throws java.sql.SQLException {
-		if (mapOfInformationEntitiesToColumnNames == null) {
-			mapOfInformationEntitiesToColumnNames = new HashMap();
-		}
+		synchronized (mapOfInformationEntitiesToColumnNames) {
 		String[] columnNames = (String[])(mapOfInformationEntitiesToColumnNames.get(ie));
 		if (columnNames == null) {
 //System.err.println("getArrayOfColumnNamesForSpecifiedInformationEntity() "+ie.toString()+" caching metadata");
@@ -1325,6 +1959,7 @@ public abstract class DatabaseInformationModel {
 			mapOfInformationEntitiesToColumnNames.put(ie,columnNames);
 		}
 		return columnNames;
+		}
 	}
 
 	/**
@@ -1341,6 +1976,8 @@ public abstract class DatabaseInformationModel {
 	public ArrayList findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedParent(InformationEntity ie,String localParentReference) throws DicomException {
 //long startTime=System.currentTimeMillis();
 		ArrayList recordsAsMapsOfStrings = new ArrayList();
+		long startTime = System.nanoTime();
+		Connection connection = null;
 		try {
 			if (ie != null) {
 				String tableName = getTableNameForInformationEntity(ie);
@@ -1356,7 +1993,8 @@ public abstract class DatabaseInformationModel {
 					b.append("\'");
 				}
 				b.append(";");
-				Statement s = databaseConnection.createStatement();
+				connection = getConnectionForReading();
+				Statement s = connection.createStatement();
 				ResultSet r = s.executeQuery(b.toString());
 //System.err.println("Select all values for all records of "+ie.toString()+" with specified parent select only time "+(System.currentTimeMillis()-startTime)+" milliseconds");
 				String[] columnNames = getArrayOfColumnNamesForSpecifiedInformationEntity(ie,r);
@@ -1389,10 +2027,207 @@ public abstract class DatabaseInformationModel {
                         e.printStackTrace(System.err);
 			throw new DicomException("Cannot perform selection: "+e);
 		}
+		finally {
+			releaseConnection(connection);
+			operationStatistics.record("findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedParent",System.nanoTime()-startTime);
+		}
 //System.err.println("Select all values for all records of "+ie.toString()+" with specified parent time "+(System.currentTimeMillis()-startTime)+" milliseconds");
 		return recordsAsMapsOfStrings;
 	}
 
+	/**
+	 * @param	b
+	 * @param	ie
+	 * @param	localParentReference
+	 * @param	filterColumnName
+	 * @param	filterValue
+	 * @param	parameters		the values for each ? appended
+	 */
+	private void appendWhereClauseForSpecifiedParentAndFilter(StringBuffer b,InformationEntity ie,String localParentReference,String filterColumnName,String filterValue,List parameters) {
+		boolean haveParent = ie != rootInformationEntity && localParentReference != null;
+		boolean haveFilter = filterColumnName != null && filterValue != null && filterValue.length() > 0;
+		if (haveParent || haveFilter) {
+			b.append(" WHERE ");
+		}
+		if (haveParent) {
+			b.append(localParentReferenceColumnName);
+			b.append(" = ?");
+			parameters.add(localParentReference);
+		}
+		if (haveFilter) {
+			if (haveParent) {
+				b.append(" AND ");
+			}
+			b.append("UPPER(");
+			b.append(filterColumnName);
+			b.append(") LIKE ? ESCAPE '\\'");
+			parameters.add("%"+filterValue.toUpperCase(java.util.Locale.US).replace("\\","\\\\").replace("%","\\%").replace("_","\\_")+"%");
+		}
+	}
+
+	/**
+	 * <p>Append the expressions to sort on for a column, followed by a comma, in the same order as
+	 * {@link com.pixelmed.utils.StringUtilities#compareStringsWithEmbeddedNonZeroPaddedIntegers(String,String) StringUtilities.compareStringsWithEmbeddedNonZeroPaddedIntegers()}
+	 * as nearly as SQL allows.</p>
+	 *
+	 * <p>Columns stored as SQL numeric types (e.g., integer string (IS) values) are sorted by their value, so that, e.g., 2 is before 10.
+	 * Other values are sorted regardless of case.</p>
+	 *
+	 * @param	b
+	 * @param	sortColumnName	the upper case name of the column to sort on, or null if none
+	 */
+	private void appendSortExpressionsForColumn(StringBuffer b,String sortColumnName) {
+		if (sortColumnName != null) {
+			byte[] vr = null;
+			String dicomName = getDicomNameFromDatabaseColumnName(sortColumnName);
+			if (dicomName != null) {
+				AttributeTag tag = dictionary.getTagFromName(dicomName);
+				if (tag != null) {
+					vr = dictionary.getValueRepresentationFromTag(tag);
+				}
+			}
+			String sqlType = vr == null ? null : getSQLTypeFromDicomValueRepresentation(vr);
+			if (sqlType != null && (sqlType.equals("INTEGER") || sqlType.equals("REAL"))) {
+				b.append(sortColumnName);		// already numeric, so TRIM() and UPPER() are not allowed
+				b.append(",");
+			}
+			else {
+				b.append("UPPER(");
+				b.append(sortColumnName);
+				b.append("),");
+			}
+		}
+	}
+
+	/**
+	 * <p>Count the records of an information entity with the specified parent, optionally only those whose value of a column contains a string.</p>
+	 *
+	 * @param	ie			the {@link com.pixelmed.dicom.InformationEntity InformationEntity} of the records to be counted
+	 * @param	localParentReference	the string value of the unique key which identifies the instance of the parent entity (not including wildcards), or null if the entity is the root
+	 * @param	filterColumnName	the upper case name of the column to filter on, or null if not filtered
+	 * @param	filterValue		the string to find anywhere in the value of the filter column regardless of case (not including wildcards), or null if not filtered
+	 * @return				the number of records
+	 * @exception	DicomException		thrown if the query fails
+	 */
+	public int countRecordsForThisInformationEntityWithSpecifiedParent(InformationEntity ie,String localParentReference,String filterColumnName,String filterValue) throws DicomException {
+		int count = 0;
+		long startTime = System.nanoTime();
+		Connection connection = null;
+		try {
+			if (ie != null) {
+				String tableName = getTableNameForInformationEntity(ie);
+				StringBuffer b = new StringBuffer();
+				List parameters = new ArrayList();
+				b.append("SELECT COUNT(*) FROM ");
+				b.append(tableName);
+				appendWhereClauseForSpecifiedParentAndFilter(b,ie,localParentReference,filterColumnName,filterValue,parameters);
+				connection = getConnectionForReading();
+				String sql = b.toString();
+				PreparedStatement s = borrowPreparedStatement(connection,sql);
+				try {
+					for (int p=0; p<parameters.size(); ++p) {
+						s.setObject(p+1,parameters.get(p));
+					}
+					ResultSet r = s.executeQuery();
+					if (r.next()) {
+						count = r.getInt(1);
+					}
+					r.close();
+				}
+				finally {
+					givePreparedStatementBack(connection,sql,s);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace(System.err);
+			throw new DicomException("Cannot perform count: "+e);
+		}
+		finally {
+			releaseConnection(connection);
+			operationStatistics.record("countRecordsForThisInformationEntityWithSpecifiedParent",System.nanoTime()-startTime);
+		}
+		return count;
+	}
+
+	/**
+	 * <p>For a page of the records of an information entity with the specified parent, sorted and optionally filtered by the database,
+	 * get the values of all the columns in the entity's database table.</p>
+	 *
+	 * <p>For example, for the patient entity, this could return the 500 patients after the first 1000 in order of their names,
+	 * without retrieving any of the others.</p>
+	 *
+	 * <p>The records are sorted in nearly the same order as nodes of a {@link com.pixelmed.database.DatabaseTreeRecord DatabaseTreeRecord}
+	 * are sorted when all are retrieved at once, i.e., integer string values numerically
+	 * and other values regardless of case, but only by the value of the sort column, and not by the whole description of the node.</p>
+	 *
+	 * <p>Records with the same value of the sort column are ordered by their local primary key, so that successive pages neither
+	 * repeat nor skip records, as long as the records are not changed in between.</p>
+	 *
+	 * @param	ie			the {@link com.pixelmed.dicom.InformationEntity InformationEntity} of the records to be returned
+	 * @param	localParentReference	the string value of the unique key which identifies the instance of the parent entity (not including wildcards), or null if the entity is the root
+	 * @param	sortColumnName		the upper case name of the column to sort on, or null if sorted only by local primary key
+	 * @param	filterColumnName	the upper case name of the column to filter on, or null if not filtered
+	 * @param	filterValue		the string to find anywhere in the value of the filter column regardless of case (not including wildcards), or null if not filtered
+	 * @param	offset			the number of records to skip
+	 * @param	limit			the maximum number of records to return
+	 * @return				an {@link java.util.ArrayList ArrayList} of records, each value of which is a
+	 *					{@link java.util.TreeMap TreeMap} of {@link java.lang.String String} values indexed by {@link java.lang.String String} upper case column names
+	 * @exception	DicomException		thrown if the query fails
+	 */
+	public ArrayList findAllAttributeValuesForPageOfRecordsForThisInformationEntityWithSpecifiedParent(InformationEntity ie,String localParentReference,
+			String sortColumnName,String filterColumnName,String filterValue,int offset,int limit) throws DicomException {
+		ArrayList recordsAsMapsOfStrings = new ArrayList();
+		long startTime = System.nanoTime();
+		Connection connection = null;
+		try {
+			if (ie != null) {
+				String tableName = getTableNameForInformationEntity(ie);
+				StringBuffer b = new StringBuffer();
+				List parameters = new ArrayList();
+				b.append("SELECT * FROM ");
+				b.append(tableName);
+				appendWhereClauseForSpecifiedParentAndFilter(b,ie,localParentReference,filterColumnName,filterValue,parameters);
+				b.append(" ORDER BY ");
+				appendSortExpressionsForColumn(b,sortColumnName);
+				b.append(localPrimaryKeyColumnName);
+				b.append(" LIMIT ");				// trailing LIMIT ... OFFSET ... is accepted by HSQLDB 1.8 as well as 2.x, unlike SELECT LIMIT offset limit, which is 1.8 only
+				b.append(limit);				// not parameters, else every page would need a differently prepared statement anyway
+				b.append(" OFFSET ");
+				b.append(offset);
+				connection = getConnectionForReading();
+				String sql = b.toString();
+				PreparedStatement s = connection.prepareStatement(sql);		// not borrowed, since offset differs for every page
+				try {
+					for (int p=0; p<parameters.size(); ++p) {
+						s.setObject(p+1,parameters.get(p));
+					}
+					ResultSet r = s.executeQuery();
+					String[] columnNames = getArrayOfColumnNamesForSpecifiedInformationEntity(ie,r);
+					int numberOfColumns = columnNames.length;
+					while (r.next()) {
+						TreeMap map = new TreeMap();
+						for (int i=1; i<=numberOfColumns; ++i) {
+							map.put(columnNames[i-1],r.getString(i));
+						}
+						recordsAsMapsOfStrings.add(map);
+					}
+					r.close();
+				}
+				finally {
+					s.close();
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace(System.err);
+			throw new DicomException("Cannot perform selection: "+e);
+		}
+		finally {
+			releaseConnection(connection);
+			operationStatistics.record("findAllAttributeValuesForPageOfRecordsForThisInformationEntityWithSpecifiedParent",System.nanoTime()-startTime);
+		}
+		return recordsAsMapsOfStrings;
+	}
+
 	/**
 	 * <p>For all records of an information entity with all parents matching a particular attribute value, get the values of all attributes.</p>
 	 *
@@ -1410,6 +2245,8 @@ public abstract class DatabaseInformationModel {
 			InformationEntity ieWanted,InformationEntity ieParent,String parentMatchingAttribute,String parentMatchingValue) throws DicomException {
 //long startTime=System.currentTimeMillis();
 		ArrayList recordsAsMapsOfStrings = new ArrayList();
+		long startTime = System.nanoTime();
+		Connection connection = null;
 		try {
 			if (ieWanted != null && ieParent != null) {
 				String wantedTableName = getTableNameForInformationEntity(ieWanted);
@@ -1438,7 +2275,8 @@ public abstract class DatabaseInformationModel {
 				b.append(";");
 				String str = b.toString();
 //System.err.println("findSelectedAttributeValueForAllRecordsForThisInformationEntityWithMatchingParent: "+str);
-				Statement s = databaseConnection.createStatement();
+				connection = getConnectionForReading();
+				Statement s = connection.createStatement();
 				ResultSet r = s.executeQuery(str);
 				ResultSetMetaData md = r.getMetaData();
 				int numberOfColumns = md.getColumnCount();
@@ -1458,6 +2296,10 @@ public abstract class DatabaseInformationModel {
                         e.printStackTrace(System.err);
 			throw new DicomException("Cannot perform selection: "+e);
 		}
+		finally {
+			releaseConnection(connection);
+			operationStatistics.record("findAllAttributeValuesForAllRecordsForThisInformationEntityWithMatchingParent",System.nanoTime()-startTime);
+		}
 //System.err.println("Select all values for all records of "+ieWanted.toString()+" with matching parent time "+(System.currentTimeMillis()-startTime)+" milliseconds");
 		return recordsAsMapsOfStrings;
 	}
@@ -1799,8 +2641,10 @@ public abstract class DatabaseInformationModel {
 
 		// dump table descriptions from database metadata
 
+		Connection connection = null;
 		try {
-			DatabaseMetaData meta = databaseConnection.getMetaData();
+			connection = getConnectionForReading();
+			DatabaseMetaData meta = connection.getMetaData();
 			ResultSet columns = meta.getColumns(null, null, null, null);
 
 			while (columns.next()) {
@@ -1820,6 +2664,9 @@ public abstract class DatabaseInformationModel {
 			//throw new DicomException("Cannot connect to database: "+e);
 			buffer.append(e);
 		}
+		finally {
+			releaseConnection(connection);
+		}
 		return buffer.toString();
 	}
 }
@@ -0,0 +1,125 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.database;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>This class accumulates, for each kind of database operation, how many times it has been performed and how long it took,
+ * so that, for example, the latency of queries can be watched while objects are being inserted.</p>
+ *
+ * <p>The operations are identified by name, such as the name of the {@link com.pixelmed.database.DatabaseInformationModel DatabaseInformationModel}
+ * method that performed them.</p>
+ *
+ * @author	agent
+ */
+public class DatabaseOperationStatistics {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	private static class Entry {
+		/***/
+		long count;
+		/***/
+		long totalNanoseconds;
+		/***/
+		long maximumNanoseconds;
+	}
+
+	/***/
+	private Map entriesByOperation = new TreeMap();		// synchronize on this; of Entry
+
+	/**
+	 * <p>Record that an operation has been performed.</p>
+	 *
+	 * @param	operation			the name of the operation
+	 * @param	elapsedNanoseconds	how long it took
+	 */
+	public void record(String operation,long elapsedNanoseconds) {
+		synchronized (entriesByOperation) {
+			Entry entry = (Entry)(entriesByOperation.get(operation));
+			if (entry == null) {
+				entry = new Entry();
+				entriesByOperation.put(operation,entry);
+			}
+			++entry.count;
+			entry.totalNanoseconds+=elapsedNanoseconds;
+			if (elapsedNanoseconds > entry.maximumNanoseconds) {
+				entry.maximumNanoseconds=elapsedNanoseconds;
+			}
+		}
+	}
+
+	/**
+	 * @param	operation	the name of the operation
+	 * @return				how many times the operation has been performed
+	 */
+	public long getCount(String operation) {
+		synchronized (entriesByOperation) {
+			Entry entry = (Entry)(entriesByOperation.get(operation));
+			return entry == null ? 0 : entry.count;
+		}
+	}
+
+	/**
+	 * @param	operation	the name of the operation
+	 * @return				the mean time taken by the operation in ns, or 0 if it has not been performed
+	 */
+	public long getMeanNanoseconds(String operation) {
+		synchronized (entriesByOperation) {
+			Entry entry = (Entry)(entriesByOperation.get(operation));
+			return entry == null || entry.count == 0 ? 0 : entry.totalNanoseconds/entry.count;
+		}
+	}
+
+	/**
+	 * @param	operation	the name of the operation
+	 * @return				the longest time taken by the operation in ns, or 0 if it has not been performed
+	 */
+	public long getMaximumNanoseconds(String operation) {
+		synchronized (entriesByOperation) {
+			Entry entry = (Entry)(entriesByOperation.get(operation));
+			return entry == null ? 0 : entry.maximumNanoseconds;
+		}
+	}
+
+	/**
+	 * <p>Forget everything recorded so far.</p>
+	 */
+	public void reset() {
+		synchronized (entriesByOperation) {
+			entriesByOperation.clear();
+		}
+	}
+
+	/**
+	 * @return	a summary, one line per operation, of the count and the mean and maximum times
+	 */
+	public String getReport() {
+		StringBuffer buf = new StringBuffer();
+		synchronized (entriesByOperation) {
+			Iterator i = entriesByOperation.keySet().iterator();
+			while (i.hasNext()) {
+				String operation = (String)(i.next());
+				Entry entry = (Entry)(entriesByOperation.get(operation));
+				buf.append(operation);
+				buf.append(": count ");
+				buf.append(entry.count);
+				buf.append(", mean ");
+				buf.append(entry.count == 0 ? 0 : entry.totalNanoseconds/entry.count/1000);
+				buf.append(" us, max ");
+				buf.append(entry.maximumNanoseconds/1000);
+				buf.append(" us\n");
+			}
+		}
+		return buf.toString();
+	}
+
+	public String toString() {
+		return getReport();
+	}
+}
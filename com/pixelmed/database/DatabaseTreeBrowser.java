@@ -85,6 +85,7 @@ public class DatabaseTreeBrowser {
 		descriptiveNameMap=(d == null) ? null : d.getDescriptiveNameMap();
 		treeModel=new DatabaseTreeModel(d);
 		tree=new JTreeWithAdditionalKeyStrokeActions(treeModel);
+		tree.setLargeModel(true);		// since there may be very many nodes, and pages of them are retrieved only as needed
 		tree.getSelectionModel().setSelectionMode(TreeSelectionModel.SINGLE_TREE_SELECTION);
 		treeBrowserScrollPane.setViewportView(tree);
 		tree.addTreeSelectionListener(buildTreeSelectionListenerToDisplayAttributesOfSelectedRecord(attributeBrowserScrollPane));
@@ -115,6 +116,7 @@ public class DatabaseTreeBrowser {
 		descriptiveNameMap=(d == null) ? null : d.getDescriptiveNameMap();
 		treeModel=new DatabaseTreeModel(d);
 		tree=new JTreeWithAdditionalKeyStrokeActions(treeModel);
+		tree.setLargeModel(true);		// since there may be very many nodes, and pages of them are retrieved only as needed
 		JScrollPane treeBrowserScrollPane = new JScrollPane(tree);
 		JScrollPane attributeBrowserScrollPane = new JScrollPane();
 
@@ -139,6 +141,15 @@ public class DatabaseTreeBrowser {
 		tree.addMouseListener(buildMouseListenerToDetectDoubleClickEvents());
 	}
 
+	/**
+	 * <p>Show only those top level entities (e.g., patients) whose descriptive column (e.g., name) contains the specified string, regardless of case.</p>
+	 *
+	 * @param	filter	the string to find, or null or empty to show all
+	 */
+	public void setFilter(String filter) {
+		treeModel.setFilter(filter);
+	}
+
 	/**
 	 * <p>Override this method to perform application-specific behavior when an entity is selected in the tree browser.</p>
 	 *
@@ -152,7 +163,7 @@ public class DatabaseTreeBrowser {
 				if (tp != null) {
 					Vector names = null;
 					Object lastPathComponent = tp.getLastPathComponent();
-					if (lastPathComponent instanceof DatabaseTreeRecord) {
+					if (lastPathComponent instanceof DatabaseTreeRecord && !((DatabaseTreeRecord)lastPathComponent).isPlaceholder()) {
 						DatabaseTreeRecord r = (DatabaseTreeRecord)lastPathComponent;
 						if (!doSomethingWithSelection(r)) {
 							// now recurse throughout whole sub tree, adding to a vector of file names for all instances ...
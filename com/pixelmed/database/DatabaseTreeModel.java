@@ -2,6 +2,7 @@
 
 package com.pixelmed.database;
 
+import javax.swing.SwingUtilities;
 import javax.swing.tree.*;
 import javax.swing.event.*;
 import java.util.*;
@@ -16,6 +17,18 @@ import com.pixelmed.dicom.*;
  *
  * <p>For details of some of the methods implemented here see {@link javax.swing.tree.TreeModel javax.swing.tree.TreeModel}.</p>
  *
+ * <p>So that very large databases can be browsed, a node with more children than fit in one page, or whose children are filtered,
+ * does not retrieve them all at once. Rather, the children are counted, and each page of them is retrieved, sorted and filtered by the
+ * database, only when one of its children is first asked for. Until then, placeholder nodes are returned, and the page is retrieved
+ * by a background thread, after which listeners are notified on the event dispatch thread that the nodes have changed. Only the most
+ * recently used pages are kept, and the others retrieved again if they are needed again.</p>
+ *
+ * <p>Children that fit in one page are retrieved all at once and sorted as they always have been, by their string values.
+ * Children retrieved in pages are sorted by the database in nearly the same order, numerically for integer strings (such as
+ * instance numbers) and otherwise regardless of case, but only by the descriptive column (such as patient name), so children that differ only
+ * in the rest of their description (such as patient ID) may be in a different order, as may signed numbers, and accented
+ * characters, which the database orders by their character codes rather than by locale.</p>
+ *
  * @author	dclunie
  */
 public class DatabaseTreeModel implements TreeModel {
@@ -28,6 +41,58 @@ public class DatabaseTreeModel implements TreeModel {
 	/***/
 	private DatabaseTreeRecord root;
 
+	/***/
+	public static final int defaultPageSize = 500;
+
+	/***/
+	public static final int defaultNumberOfPagesCached = 64;
+
+	/***/
+	private int pageSize;
+
+	/***/
+	private String filter;
+
+	/***/
+	private static class CachedPage {
+		/***/
+		DatabaseTreeRecord record;
+		/***/
+		int pageNumber;
+
+		CachedPage(DatabaseTreeRecord record,int pageNumber) {
+			this.record=record;
+			this.pageNumber=pageNumber;
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof CachedPage && ((CachedPage)o).record == record && ((CachedPage)o).pageNumber == pageNumber;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(record)*31+pageNumber;
+		}
+	}
+
+	/***/
+	private LinkedHashMap cachedPages;		// synchronize on this; of CachedPage to CachedPage, in order of access
+
+	/***/
+	private static class PageRequest {
+		/***/
+		DatabaseTreeRecord record;
+		/***/
+		int pageNumber;
+		/***/
+		int generation;
+	}
+
+	/***/
+	private LinkedList pageRequests = new LinkedList();	// synchronize on this; of PageRequest
+
+	/***/
+	private Thread pageLoader;			// synchronize on pageRequests; null when idle
+
 	// Stuff to support listener vector
 
 	/***/
@@ -104,13 +169,194 @@ public class DatabaseTreeModel implements TreeModel {
 	 * @exception	DicomException	thrown if there are problems accessing the database
 	 */
 	public DatabaseTreeModel(DatabaseInformationModel d) throws DicomException {
+		this(d,defaultPageSize,defaultNumberOfPagesCached);
+	}
+
+	/**
+	 * <p>Construct a tree model of the supplied database.</p>
+	 *
+	 * @param	d				the database information model to build the tree from
+	 * @param	pageSize			the number of children retrieved at a time, beyond which children are retrieved in pages
+	 * @param	numberOfPagesCached		the number of the most recently used pages of children to keep
+	 * @exception	DicomException	thrown if there are problems accessing the database
+	 */
+	public DatabaseTreeModel(DatabaseInformationModel d,int pageSize,final int numberOfPagesCached) throws DicomException {
+		this.pageSize = pageSize;
+		cachedPages = new LinkedHashMap(numberOfPagesCached*2,0.75f,true/*accessOrder*/) {
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				if (size() > numberOfPagesCached) {
+					CachedPage page = (CachedPage)(eldest.getKey());
+					page.record.evictPage(page.pageNumber);
+					return true;
+				}
+				return false;
+			}
+		};
 		if (d != null) {
 //long startTime=System.currentTimeMillis();
 			root = new DatabaseTreeRecord(d,null,d.getDatabaseRootName(),null,null,null);			// we create our own (empty) root on top
+			root.setTreeModel(this);
 //System.err.println("DatabaseTreeModel() construct time "+(System.currentTimeMillis()-startTime)+" milliseconds");
 		}
 	}
 
+	/**
+	 * @return	the number of children retrieved at a time
+	 */
+	int getPageSize() { return pageSize; }
+
+	/**
+	 * @return	the string to find in the descriptive column of the top level entity, or null if not filtered
+	 */
+	String getFilter() { return filter; }
+
+	/**
+	 * <p>Show only those top level entities (e.g., patients) whose descriptive column (e.g., name) contains the specified string, regardless of case.</p>
+	 *
+	 * <p>The filtering is performed by the database.</p>
+	 *
+	 * <p>Should be called on the event dispatch thread.</p>
+	 *
+	 * @param	filter	the string to find, or null or empty to show all
+	 */
+	public void setFilter(String filter) {
+		this.filter = filter == null || filter.length() == 0 ? null : filter;
+		if (root != null) {
+			root.invalidateChildren();
+			fireTreeStructureChanged(new TreePath(root));
+		}
+	}
+
+	/**
+	 * <p>Note that a page of the children of a node has been used, so that it is kept in preference to others.</p>
+	 *
+	 * @param	record
+	 * @param	pageNumber
+	 */
+	void touchPage(DatabaseTreeRecord record,int pageNumber) {
+		CachedPage page = new CachedPage(record,pageNumber);
+		synchronized (cachedPages) {
+			cachedPages.put(page,page);		// replaces any existing entry, and evicts the least recently used if there are too many
+		}
+	}
+
+	/**
+	 * <p>Ask for a page of the children of a node to be retrieved in the background.</p>
+	 *
+	 * @param	record
+	 * @param	pageNumber
+	 * @param	generation	which version of the node's children the page is for, so that a page retrieved after they have been discarded is ignored
+	 */
+	void requestPage(DatabaseTreeRecord record,int pageNumber,int generation) {
+		synchronized (pageRequests) {
+			Iterator i = pageRequests.iterator();
+			while (i.hasNext()) {
+				PageRequest request = (PageRequest)(i.next());
+				if (request.record == record && request.pageNumber == pageNumber && request.generation == generation) {
+					return;		// already asked for
+				}
+			}
+			PageRequest request = new PageRequest();
+			request.record = record;
+			request.pageNumber = pageNumber;
+			request.generation = generation;
+			pageRequests.addFirst(request);		// most recent first, since that is what the user is most likely now looking at
+			if (pageLoader == null) {
+				pageLoader = new Thread(new Runnable() {
+					public void run() {
+						loadRequestedPages();
+					}
+				},"DatabaseTreeModel page loader");
+				pageLoader.setDaemon(true);
+				pageLoader.start();
+			}
+		}
+	}
+
+	/**
+	 * <p>Retrieve requested pages until there are none left, then finish.</p>
+	 */
+	private void loadRequestedPages() {
+		while (true) {
+			final PageRequest request;
+			synchronized (pageRequests) {
+				if (pageRequests.isEmpty()) {
+					pageLoader = null;
+					return;
+				}
+				request = (PageRequest)(pageRequests.getFirst());		// leave on queue until retrieved, so that it is not asked for again meanwhile
+			}
+			final List children = request.record.loadPage(request.pageNumber);
+			synchronized (pageRequests) {
+				pageRequests.remove(request);
+			}
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					pageLoaded(request.record,request.pageNumber,request.generation,children);
+				}
+			});
+		}
+	}
+
+	/**
+	 * <p>Replace the placeholders with a retrieved page of children and notify listeners.</p>
+	 *
+	 * <p>Called on the event dispatch thread.</p>
+	 *
+	 * @param	record
+	 * @param	pageNumber
+	 * @param	generation
+	 * @param	children	the children, or null if they could not be retrieved
+	 */
+	private void pageLoaded(DatabaseTreeRecord record,int pageNumber,int generation,List children) {
+		int expectedNumberOfChildren = record.getNumberOfChildrenExpectedInPage(pageNumber);
+		if (record.setPage(pageNumber,generation,children)) {
+			TreePath path = new TreePath(record.getPath());
+			if (children.size() == expectedNumberOfChildren) {
+				touchPage(record,pageNumber);
+				int n = children.size();
+				int[] indices = new int[n];
+				for (int i=0; i<n; ++i) {
+					indices[i] = pageNumber*pageSize+i;
+				}
+				fireTreeNodesChanged(path,indices,children.toArray());
+			}
+			else {
+				// the children have changed since they were counted, so start again
+				record.invalidateChildren();
+				fireTreeStructureChanged(path);
+			}
+		}
+	}
+
+	/**
+	 * @param	path
+	 * @param	indices
+	 * @param	children
+	 */
+	private void fireTreeNodesChanged(TreePath path,int[] indices,Object[] children) {
+		if (listeners != null) {
+			TreeModelEvent event = new TreeModelEvent(this,path,indices,children);
+			Iterator i = new Vector(listeners).iterator();
+			while (i.hasNext()) {
+				((TreeModelListener)(i.next())).treeNodesChanged(event);
+			}
+		}
+	}
+
+	/**
+	 * @param	path
+	 */
+	private void fireTreeStructureChanged(TreePath path) {
+		if (listeners != null) {
+			TreeModelEvent event = new TreeModelEvent(this,path);
+			Iterator i = new Vector(listeners).iterator();
+			while (i.hasNext()) {
+				((TreeModelListener)(i.next())).treeStructureChanged(event);
+			}
+		}
+	}
+
 	/**
 	 * @param	node
 	 */
@@ -18,6 +18,10 @@ import com.pixelmed.utils.StringUtilities;
  * the user's selection is returned as a path of {@link com.pixelmed.database.DatabaseTreeRecord DatabaseTreeRecord}
  * instances, which need to be cast accordingly.</p>
  *
+ * <p>When the children of a node are retrieved in pages by a {@link com.pixelmed.database.DatabaseTreeModel DatabaseTreeModel},
+ * a child whose page has not yet been retrieved is represented by a placeholder, for which {@link #isPlaceholder() isPlaceholder()}
+ * returns true, and which has no corresponding database record.</p>
+ *
  * @author	dclunie
  */
 public class DatabaseTreeRecord implements Comparable, MutableTreeNode {
@@ -35,6 +39,16 @@ public class DatabaseTreeRecord implements Comparable, MutableTreeNode {
 	
 	private boolean childrenPopulated;
 
+	private DatabaseTreeModel treeModel;		// null if children are never to be retrieved in pages
+	private boolean placeholder;				// true if standing in for a node not yet retrieved
+	private boolean paged;						// true if children are retrieved in pages rather than all at once
+	private InformationEntity pagedChildIE;
+	private int numberOfPagedChildren;
+	private Map pages;							// synchronize on this; of Integer page number to List of DatabaseTreeRecord
+	private Map placeholderPages;				// synchronize on this; of Integer page number to List of DatabaseTreeRecord
+	private Set failedPages;					// synchronize on this; of Integer page number
+	private int generation;						// incremented whenever the children are discarded
+
 	/**
 	 * <p>Dump the contents of the node.</p>
 	 *
@@ -84,6 +98,9 @@ public class DatabaseTreeRecord implements Comparable, MutableTreeNode {
 	 */
 	public int compareTo(Object o) {
 		DatabaseTreeRecord otherRecord = (DatabaseTreeRecord)o;
+		if (placeholder || otherRecord.placeholder) {
+			return this == otherRecord ? 0 : (System.identityHashCode(this) < System.identityHashCode(otherRecord) ? -1 : 1);	// placeholders have no primary key, so only equal to themselves
+		}
 		String otherLocalPrimaryKeyValue = otherRecord.getLocalPrimaryKeyValue();
 //System.err.println("DatabaseTreeRecord.compareTo(): our   primary key = <"+getLocalPrimaryKeyValue()+"> for <"+getValue()+">");
 //System.err.println("DatabaseTreeRecord.compareTo(): other primary key = <"+otherLocalPrimaryKeyValue+"> for <"+otherRecord.getValue()+">");
@@ -144,7 +161,20 @@ public class DatabaseTreeRecord implements Comparable, MutableTreeNode {
 	 * @param	node
 	 */
 	public void remove(MutableTreeNode node) {
-		if (node != null) {
+		if (node != null && getChildCount() > 0 && paged) {
+			DatabaseTreeRecord current = (DatabaseTreeRecord)node;
+			if (!current.placeholder) {
+				try {
+					d.deleteRecord(current.getInformationEntity(),current.getLocalPrimaryKeyValue());
+				}
+				catch (DicomException e) {
+					e.printStackTrace(System.err);
+				}
+			}
+			node.setParent(null);
+			invalidateChildren();		// since the pages of children that follow are no longer where they were
+		}
+		else if (node != null) {
 			int n=getChildCount();			// not children.size(), to force population of children (from actual database) if not already done
 			if (children != null && n > 0) {
 				Vector newChildren = new Vector(n-1);
@@ -230,7 +260,10 @@ public class DatabaseTreeRecord implements Comparable, MutableTreeNode {
 	 * @return		the child <code>TreeNode</code> at the specified index
 	 */
 	public TreeNode getChildAt(int index) { 
-		return index < getChildCount() ? (TreeNode)(children.get(index)) : null;	// side effect of getChildCount() is to force population of children if required
+		if (index >= getChildCount()) {		// side effect of getChildCount() is to force population of children if required
+			return null;
+		}
+		return paged ? getPagedChildAt(index) : (TreeNode)(children.get(index));
 	}
 
 	/**
@@ -242,6 +275,9 @@ public class DatabaseTreeRecord implements Comparable, MutableTreeNode {
 	public int getIndex(TreeNode child) {
 //System.err.println("getIndexOfChild: looking for "+child);
 		int n=getChildCount();				// rather than children.size(), to force population if necessary
+		if (paged) {
+			return getIndexOfPagedChild(child);
+		}
 		for (int i=0; i<n; ++i) {
 			if (children.get(i).equals(child)) {	// expensive comparison ? :(
 //System.err.println("getIndexOfChild: found "+child);
@@ -276,11 +312,16 @@ public class DatabaseTreeRecord implements Comparable, MutableTreeNode {
 	 */
 	public int getChildCount() {
 //System.err.println("DatabaseTreeRecord.getChildCount() for "+this);
+		if (placeholder) {
+			return 0;
+		}
 		if (!childrenPopulated) {
-			populateChildren();
+			if (!countChildrenToDecideWhetherToPage()) {
+				populateChildren();
+			}
 			childrenPopulated = true;
 		}
-		return children == null ? 0 : children.size();
+		return paged ? numberOfPagedChildren : (children == null ? 0 : children.size());
 	}
 
 	/**
@@ -290,6 +331,9 @@ public class DatabaseTreeRecord implements Comparable, MutableTreeNode {
 	 */
 	public Enumeration children() {
 		getChildCount();			// to force population of children if required
+		if (paged) {
+			return getAllPagedChildren().elements();
+		}
 		return children == null ? null : new Vector(children).elements();
 	}
 
@@ -298,15 +342,7 @@ public class DatabaseTreeRecord implements Comparable, MutableTreeNode {
 	private void populateChildren() {
 //System.err.println("DatabaseTreeRecord.populateChildren() for "+this);
 		InformationEntity childIE = ie == null ? d.getRootInformationEntity() : d.getChildTypeForParent(ie);
-
-		// all column name get() methods return upper case, as do names to match against in result set returned records
-		String descriptiveColumnName = d.getDescriptiveColumnName(childIE);
-		String otherColumnName = d.getOtherDescriptiveColumnName(childIE);
-		String otherOtherColumnName = d.getOtherOtherDescriptiveColumnName(childIE);
-		String localPrimaryKeyColumnName = d.getLocalPrimaryKeyColumnName(childIE);
-		String localFileNameColumnName = d.getLocalFileNameColumnName(childIE);
-		String localFileReferenceTypeColumnName = d.getLocalFileReferenceTypeColumnName(childIE);
-//System.err.println("DatabaseTreeRecord.populateChildren(): childIE="+childIE+" descriptiveColumnName="+descriptiveColumnName+" otherColumnName="+otherColumnName+" =localPrimaryKeyColumnName"+localPrimaryKeyColumnName);
+//System.err.println("DatabaseTreeRecord.populateChildren(): childIE="+childIE);
 //System.err.println("DatabaseTreeRecord.populateChildren(): localPrimaryKeyValue "+localPrimaryKeyValue);
 		DatabaseTreeRecord first = null;
 		ArrayList returnedRecords = null;
@@ -319,12 +355,6 @@ public class DatabaseTreeRecord implements Comparable, MutableTreeNode {
 				childIE = d.getChildTypeForParent(childIE);
 //System.err.println("DatabaseTreeRecord.populateChildren(): skipping empty ie "+childIE+" to get to "+childIE);
 				if (childIE != null) {
-					descriptiveColumnName = d.getDescriptiveColumnName(childIE);
-					otherColumnName = d.getOtherDescriptiveColumnName(childIE);
-					otherOtherColumnName = d.getOtherOtherDescriptiveColumnName(childIE);
-					localPrimaryKeyColumnName = d.getLocalPrimaryKeyColumnName(childIE);
-					localFileNameColumnName = d.getLocalFileNameColumnName(childIE);
-					localFileReferenceTypeColumnName = d.getLocalFileReferenceTypeColumnName(childIE);
 					returnedRecords = d.findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedParent(childIE,localPrimaryKeyValue);
 				}
 			}
@@ -338,53 +368,301 @@ public class DatabaseTreeRecord implements Comparable, MutableTreeNode {
 		if (returnedRecords != null && returnedRecords.size() > 0) {
 			for (int i=0; i<returnedRecords.size(); ++i) {
 //System.err.println("DatabaseTreeRecord.populateChildren(): record "+i);
-				String value = null;
 				Map returnedAttributes = (Map)(returnedRecords.get(i));
 				if (returnedAttributes != null) {
 //System.err.println("DatabaseTreeRecord.populateChildren(): returnedAttributes "+returnedAttributes);
-					// NB. keep the name lower case in the returned map, but be sure to check upper case in what came back from database
-					String descriptiveColumnValue = descriptiveColumnName == null ? null : (String)(returnedAttributes.get(descriptiveColumnName));
-					String otherColumnValue = otherColumnName == null ? null : (String)(returnedAttributes.get(otherColumnName));
-					String otherOtherColumnValue = otherOtherColumnName == null ? null : (String)(returnedAttributes.get(otherOtherColumnName));
-					String localPrimaryKeyColumnValue = localPrimaryKeyColumnName == null ? null : (String)(returnedAttributes.get(localPrimaryKeyColumnName));
-					String localFileNameColumnValue = localFileNameColumnName == null ? null : (String)(returnedAttributes.get(localFileNameColumnName));
-					String localFileReferenceTypeColumnValue = localFileReferenceTypeColumnName == null ? null : (String)(returnedAttributes.get(localFileReferenceTypeColumnName));
-					StringBuffer buf = new StringBuffer();
-					buf.append(d.getNametoDescribeThisInstanceOfInformationEntity(childIE,returnedAttributes));
-					String sopClassUID = (String)(returnedAttributes.get("SOPCLASSUID"));
-					if (childIE == InformationEntity.INSTANCE && sopClassUID != null && SOPClass.isImageStorage(sopClassUID)) {
-						buf.append(" ");
-						buf.append(DescriptionFactory.makeImageDescription(returnedAttributes));
-					}
-					else if (childIE == InformationEntity.SERIES) {
-						buf.append(" ");
-						buf.append(DescriptionFactory.makeSeriesDescription(returnedAttributes));
+					DatabaseTreeRecord node = makeChild(childIE,returnedAttributes);
+					addChild(node);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Count the children, and decide whether to retrieve them in pages rather than all at once.</p>
+	 *
+	 * <p>Pages are used only if the node belongs to a {@link com.pixelmed.database.DatabaseTreeModel DatabaseTreeModel} and there are more children
+	 * than fit in one page, or if the children are the top level entities and the model is filtering them.</p>
+	 *
+	 * @return	true if the children are to be retrieved in pages
+	 */
+	private boolean countChildrenToDecideWhetherToPage() {
+		paged = false;
+		if (treeModel != null) {
+			try {
+				InformationEntity childIE = ie == null ? d.getRootInformationEntity() : d.getChildTypeForParent(ie);
+				String filter = ie == null ? treeModel.getFilter() : null;
+				String filterColumnName = filter == null ? null : d.getDescriptiveColumnName(childIE);
+				int count = d.countRecordsForThisInformationEntityWithSpecifiedParent(childIE,localPrimaryKeyValue,filterColumnName,filter);
+				if (count == 0 && childIE != null && localPrimaryKeyValue != null) {
+					// skip to next lower down type of child IE as populateChildren() does (e.g. we may be skipping over concatenation from series to instance)
+					childIE = d.getChildTypeForParent(childIE);
+					if (childIE != null) {
+						count = d.countRecordsForThisInformationEntityWithSpecifiedParent(childIE,localPrimaryKeyValue,null,null);
 					}
-					else if (childIE == InformationEntity.PATIENT) {
-						buf.append(" ");
-						buf.append(DescriptionFactory.makePatientDescription(returnedAttributes));
+				}
+//System.err.println("DatabaseTreeRecord.countChildrenToDecideWhetherToPage(): "+count+" children of "+childIE+" for "+this);
+				if (count > treeModel.getPageSize() || filterColumnName != null) {
+					synchronized (this) {
+						paged = true;
+						pagedChildIE = childIE;
+						numberOfPagedChildren = count;
+						pages = new HashMap();
+						placeholderPages = new HashMap();
+						failedPages = new HashSet();
 					}
-					else {
-						if (descriptiveColumnValue != null) {
-							buf.append(" ");
-							buf.append(descriptiveColumnValue);
-						}
-						if (otherColumnValue != null) {
-							buf.append(" ");
-							buf.append(otherColumnValue);
-						}
-						if (otherOtherColumnValue != null) {
-							buf.append(" ");
-							buf.append(otherOtherColumnValue);
-						}
+				}
+			}
+			catch (DicomException e) {
+				e.printStackTrace(System.err);		// fall back to retrieving all at once
+			}
+		}
+		return paged;
+	}
+
+	/**
+	 * @param	index
+	 * @return			the child if its page has been retrieved, otherwise a placeholder, in which case the page is asked for
+	 */
+	private synchronized TreeNode getPagedChildAt(int index) {
+		int pageSize = treeModel.getPageSize();
+		int pageNumber = index/pageSize;
+		int indexInPage = index%pageSize;
+		Integer key = new Integer(pageNumber);
+		List page = (List)(pages.get(key));
+		if (page != null && indexInPage < page.size()) {
+			treeModel.touchPage(this,pageNumber);
+			return (TreeNode)(page.get(indexInPage));
+		}
+		List placeholders = (List)(placeholderPages.get(key));
+		if (placeholders == null) {
+			int n = getNumberOfChildrenExpectedInPage(pageNumber);
+			placeholders = new ArrayList(n);
+			for (int i=0; i<n; ++i) {
+				DatabaseTreeRecord node = new DatabaseTreeRecord(d,this,"Loading ...",pagedChildIE,null,null);
+				node.placeholder = true;
+				placeholders.add(node);
+			}
+			placeholderPages.put(key,placeholders);
+		}
+		if (!failedPages.contains(key)) {
+			treeModel.requestPage(this,pageNumber,generation);
+		}
+		return indexInPage < placeholders.size() ? (TreeNode)(placeholders.get(indexInPage)) : null;
+	}
+
+	/**
+	 * @param	child
+	 * @return			the index of the child amongst those pages (or placeholders) already retrieved, or -1 if not present
+	 */
+	private synchronized int getIndexOfPagedChild(TreeNode child) {
+		int pageSize = treeModel.getPageSize();
+		Map[] maps = { pages, placeholderPages };
+		for (int m=0; m<maps.length; ++m) {
+			Iterator i = maps[m].entrySet().iterator();
+			while (i.hasNext()) {
+				Map.Entry entry = (Map.Entry)(i.next());
+				int pageNumber = ((Integer)(entry.getKey())).intValue();
+				List page = (List)(entry.getValue());
+				int n = page.size();
+				for (int c=0; c<n; ++c) {
+					if (page.get(c).equals(child)) {
+						return pageNumber*pageSize+c;
 					}
-					value=buf.toString();
-//System.err.println("DatabaseTreeRecord.populateChildren(): value "+value);
-					DatabaseTreeRecord node = new DatabaseTreeRecord(d,this,value,childIE,localPrimaryKeyColumnValue,localFileNameColumnValue,localFileReferenceTypeColumnValue);
-					addChild(node);
 				}
 			}
 		}
+		return -1;
+	}
+
+	/**
+	 * <p>Get all the children, retrieving any pages not already retrieved, without waiting for the background thread.</p>
+	 *
+	 * @return	the children
+	 */
+	private Vector getAllPagedChildren() {
+		Vector all = new Vector();
+		int pageSize = treeModel.getPageSize();
+		int numberOfPages = (numberOfPagedChildren+pageSize-1)/pageSize;
+		for (int pageNumber=0; pageNumber<numberOfPages; ++pageNumber) {
+			List page;
+			synchronized (this) {
+				page = pages == null ? null : (List)(pages.get(new Integer(pageNumber)));
+			}
+			if (page == null) {
+				page = loadPage(pageNumber);		// but do not keep it, since it may be one of very many
+			}
+			if (page != null) {
+				all.addAll(page);
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * @param	pageNumber
+	 * @return				the number of children in the page if none have changed since they were counted
+	 */
+	synchronized int getNumberOfChildrenExpectedInPage(int pageNumber) {
+		int pageSize = treeModel.getPageSize();
+		return Math.max(0,Math.min(pageSize,numberOfPagedChildren-pageNumber*pageSize));
+	}
+
+	/**
+	 * <p>Retrieve a page of children from the database, sorted and filtered by the database.</p>
+	 *
+	 * <p>May be called on any thread, and does not change this node.</p>
+	 *
+	 * @param	pageNumber
+	 * @return				the children, or null if they could not be retrieved
+	 */
+	List loadPage(int pageNumber) {
+		InformationEntity childIE;
+		synchronized (this) {
+			childIE = pagedChildIE;
+		}
+		int pageSize = treeModel.getPageSize();
+		String filter = ie == null ? treeModel.getFilter() : null;
+		String sortColumnName = d.getDescriptiveColumnName(childIE);
+		String filterColumnName = filter == null ? null : sortColumnName;
+		List page = null;
+		try {
+			ArrayList returnedRecords = d.findAllAttributeValuesForPageOfRecordsForThisInformationEntityWithSpecifiedParent(
+				childIE,localPrimaryKeyValue,sortColumnName,filterColumnName,filter,pageNumber*pageSize,pageSize);
+			page = new ArrayList(returnedRecords.size());
+			for (int i=0; i<returnedRecords.size(); ++i) {
+				page.add(makeChild(childIE,(Map)(returnedRecords.get(i))));
+			}
+		}
+		catch (DicomException e) {
+			e.printStackTrace(System.err);
+		}
+		return page;
+	}
+
+	/**
+	 * <p>Replace the placeholders for a page of children with those retrieved.</p>
+	 *
+	 * @param	pageNumber
+	 * @param	generation	which version of the children the page was retrieved for
+	 * @param	page		the children, or null if they could not be retrieved
+	 * @return				true if the page was used, false if it was not retrieved or the children have since been discarded
+	 */
+	synchronized boolean setPage(int pageNumber,int generation,List page) {
+		if (!paged || generation != this.generation) {
+			return false;
+		}
+		Integer key = new Integer(pageNumber);
+		if (page == null) {
+			failedPages.add(key);		// do not keep asking, but leave the placeholders
+			return false;
+		}
+		pages.put(key,page);
+		placeholderPages.remove(key);
+		return true;
+	}
+
+	/**
+	 * <p>Discard a page of children that has not been used recently.</p>
+	 *
+	 * @param	pageNumber
+	 */
+	synchronized void evictPage(int pageNumber) {
+		if (pages != null) {
+			pages.remove(new Integer(pageNumber));
+		}
+	}
+
+	/**
+	 * <p>Discard the children, so that they will be counted and retrieved again when next asked for.</p>
+	 */
+	synchronized void invalidateChildren() {
+		++generation;
+		childrenPopulated = false;
+		children = null;
+		paged = false;
+		pages = null;
+		placeholderPages = null;
+		failedPages = null;
+	}
+
+	/**
+	 * @param	treeModel	the model that retrieves pages of children of this node and its descendants
+	 */
+	void setTreeModel(DatabaseTreeModel treeModel) {
+		this.treeModel = treeModel;
+	}
+
+	/**
+	 * @return	the nodes from the root to this node
+	 */
+	TreeNode[] getPath() {
+		LinkedList path = new LinkedList();
+		for (DatabaseTreeRecord node = this; node != null; node = node.parent) {
+			path.addFirst(node);
+		}
+		return (TreeNode[])(path.toArray(new TreeNode[path.size()]));
+	}
+
+	/**
+	 * @return	true if this node is standing in for one whose page of children has not yet been retrieved
+	 */
+	public boolean isPlaceholder() { return placeholder; }
+
+	/**
+	 * <p>Make a child node from the values of the columns of its record.</p>
+	 *
+	 * @param	childIE				the entity that the child is an instance of
+	 * @param	returnedAttributes	the values indexed by upper case column names
+	 * @return						the child
+	 */
+	private DatabaseTreeRecord makeChild(InformationEntity childIE,Map returnedAttributes) {
+		// all column name get() methods return upper case, as do names to match against in result set returned records
+		String descriptiveColumnName = d.getDescriptiveColumnName(childIE);
+		String otherColumnName = d.getOtherDescriptiveColumnName(childIE);
+		String otherOtherColumnName = d.getOtherOtherDescriptiveColumnName(childIE);
+		String localPrimaryKeyColumnName = d.getLocalPrimaryKeyColumnName(childIE);
+		String localFileNameColumnName = d.getLocalFileNameColumnName(childIE);
+		String localFileReferenceTypeColumnName = d.getLocalFileReferenceTypeColumnName(childIE);
+		// NB. keep the name lower case in the returned map, but be sure to check upper case in what came back from database
+		String descriptiveColumnValue = descriptiveColumnName == null ? null : (String)(returnedAttributes.get(descriptiveColumnName));
+		String otherColumnValue = otherColumnName == null ? null : (String)(returnedAttributes.get(otherColumnName));
+		String otherOtherColumnValue = otherOtherColumnName == null ? null : (String)(returnedAttributes.get(otherOtherColumnName));
+		String localPrimaryKeyColumnValue = localPrimaryKeyColumnName == null ? null : (String)(returnedAttributes.get(localPrimaryKeyColumnName));
+		String localFileNameColumnValue = localFileNameColumnName == null ? null : (String)(returnedAttributes.get(localFileNameColumnName));
+		String localFileReferenceTypeColumnValue = localFileReferenceTypeColumnName == null ? null : (String)(returnedAttributes.get(localFileReferenceTypeColumnName));
+		StringBuffer buf = new StringBuffer();
+		buf.append(d.getNametoDescribeThisInstanceOfInformationEntity(childIE,returnedAttributes));
+		String sopClassUID = (String)(returnedAttributes.get("SOPCLASSUID"));
+		if (childIE == InformationEntity.INSTANCE && sopClassUID != null && SOPClass.isImageStorage(sopClassUID)) {
+			buf.append(" ");
+			buf.append(DescriptionFactory.makeImageDescription(returnedAttributes));
+		}
+		else if (childIE == InformationEntity.SERIES) {
+			buf.append(" ");
+			buf.append(DescriptionFactory.makeSeriesDescription(returnedAttributes));
+		}
+		else if (childIE == InformationEntity.PATIENT) {
+			buf.append(" ");
+			buf.append(DescriptionFactory.makePatientDescription(returnedAttributes));
+		}
+		else {
+			if (descriptiveColumnValue != null) {
+				buf.append(" ");
+				buf.append(descriptiveColumnValue);
+			}
+			if (otherColumnValue != null) {
+				buf.append(" ");
+				buf.append(otherColumnValue);
+			}
+			if (otherOtherColumnValue != null) {
+				buf.append(" ");
+				buf.append(otherOtherColumnValue);
+			}
+		}
+		String value=buf.toString();
+//System.err.println("DatabaseTreeRecord.makeChild(): value "+value);
+		return new DatabaseTreeRecord(d,this,value,childIE,localPrimaryKeyColumnValue,localFileNameColumnValue,localFileReferenceTypeColumnValue);
 	}
 
 	/**
@@ -422,6 +700,7 @@ public class DatabaseTreeRecord implements Comparable, MutableTreeNode {
 		this.localPrimaryKeyValue=localPrimaryKeyValue;
 		this.localFileNameValue=localFileNameValue;
 		this.localFileReferenceTypeValue=localFileReferenceTypeValue;
+		this.treeModel = parent == null ? null : parent.treeModel;
 		childrenPopulated = false;
 	}
 
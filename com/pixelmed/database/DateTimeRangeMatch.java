@@ -7,11 +7,17 @@ import com.pixelmed.dicom.AttributeList;
 import com.pixelmed.dicom.AttributeTag;
 import com.pixelmed.dicom.DateAttribute;
 import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.ShortStringAttribute;
 import com.pixelmed.dicom.TagFromName;
 import com.pixelmed.dicom.TimeAttribute;
 import com.pixelmed.dicom.ValueRepresentation;
 
+import java.text.SimpleDateFormat;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class DateTimeRangeMatch {
@@ -19,11 +25,13 @@ public class DateTimeRangeMatch {
 	private static final String identString = "@(#) $Header: /userland/cvs/pixelmed/imgbook/com/pixelmed/database/DateTimeRangeMatch.java,v 1.2 2005/07/30 13:02:03 dclunie Exp $";
 
 	private static final String earliestPossibleSQLDate = "19000101";
-	private static final String latestPossibleSQLDate = "20990101";
+	private static final String latestPossibleSQLDate = "20991231";
 	private static final String earliestPossibleSQLTime = "000000";
 	private static final String latestPossibleSQLTime = "235959.999999";
 	private static final String earliestPossibleSQLDateTime = "19000101000000";
-	private static final String latestPossibleSQLDateTime = "20990101235959.999999";
+	private static final String latestPossibleSQLDateTime = "20991231235959.999999";
+	
+	private static final int dateOnlyMatchDaysEitherSide = 2;		// more than the greatest difference between time zone offsets (-1200 to +1400)
 	
 	private static final String convertToSQLTimestampFormat(String value) {
 		// given yyyymmddhh[mm[ss[fffffffff]]]
@@ -62,16 +70,211 @@ public class DateTimeRangeMatch {
 		return b.toString();
 	}
 
+	/**
+	 * <p>Convert a complete date and time to a SQL timestamp literal in the local time zone, which is how the derived date time columns are stored.</p>
+	 *
+	 * @param	value		yyyymmddhhmmss[.ffffff]
+	 * @param	timezone	the offset from UTC, +hhmm or -hhmm, of the value, or null if in the local time zone
+	 * @return				the quoted SQL timestamp
+	 */
+	private static final String convertToSQLTimestampFormat(String value,String timezone) {
+		if (timezone != null && timezone.length() > 0 && value.length() >= 14) {
+			try {
+				SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHHmmssZ");
+				formatter.setLenient(false);
+				java.util.Date date = formatter.parse(value.substring(0,14)+timezone);
+				java.sql.Timestamp timestamp = new java.sql.Timestamp(date.getTime());
+				if (value.length() > 15 && value.charAt(14) == '.') {
+					String fraction = (value.substring(15)+"000000000").substring(0,9);
+					timestamp.setNanos(Integer.parseInt(fraction));
+				}
+				return "\'"+timestamp+"\'";
+			}
+			catch (Exception e) {
+				// ParseException or NumberFormatException ... ignore time zone rather than not match at all
+			}
+		}
+		return convertToSQLTimestampFormat(value);
+	}
+
+	/**
+	 * @param	value		a value, possibly in an old format with delimiters
+	 * @param	delimiter	the delimiter, such as '.' in dates or ':' in times, to remove
+	 * @return				the value without the delimiters
+	 */
+	private static final String removeDelimiters(String value,char delimiter) {
+		if (value != null && value.indexOf(delimiter) != -1) {
+			StringBuffer b = new StringBuffer();
+			int length = value.length();
+			for (int i=0; i<length; ++i) {
+				char c = value.charAt(i);
+				if (c != delimiter) {
+					b.append(c);
+				}
+			}
+			value = b.toString();
+		}
+		return value;
+	}
+
+	/**
+	 * <p>Make the lower bound of a range that is less precise than the values matched, such as an hour only, the earliest possible value.</p>
+	 *
+	 * @param	value		the lower bound, possibly null
+	 * @param	earliest	the earliest possible value of full precision
+	 * @return				the lower bound of full precision
+	 */
+	private static final String padLowerValue(String value,String earliest) {
+		if (value == null) {
+			value = earliest;
+		}
+		else if (value.length() < earliest.length()) {
+			value = value + earliest.substring(value.length());
+		}
+		return value;
+	}
+
+	/**
+	 * <p>Make the upper bound of a range that is less precise than the values matched, such as an hour only, the latest possible value.</p>
+	 *
+	 * <p>E.g., a time of 18 becomes 185959.999999, since 180000 would exclude most of the hour, and a datetime of 200302 becomes the last day of February.</p>
+	 *
+	 * @param	value		the upper bound, possibly null
+	 * @param	latest		the latest possible value of full precision
+	 * @return				the upper bound of full precision
+	 */
+	private static final String padUpperValue(String value,String latest) {
+		if (value == null) {
+			value = latest;
+		}
+		else {
+			if (value.length() == 6 && latest == latestPossibleSQLDateTime) {
+				// year and month only, so need the last day of the month
+				try {
+					GregorianCalendar calendar = new GregorianCalendar(Integer.parseInt(value.substring(0,4)),Integer.parseInt(value.substring(4,6))-1,1);
+					int lastDay = calendar.getActualMaximum(Calendar.DAY_OF_MONTH);
+					value = value + Integer.toString(lastDay);
+				}
+				catch (NumberFormatException e) {
+				}
+			}
+			if (value.length() < latest.length()) {
+				value = value + latest.substring(value.length());
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * @param	value	a single datetime (not a range), possibly with a trailing time zone offset from UTC of the form +hhmm or -hhmm
+	 * @return			the index of the sign of the time zone offset, or -1 if none
+	 */
+	private static final int indexOfTimezoneOffsetOfDateTime(String value) {
+		int index = -1;
+		if (value != null) {
+			index = value.indexOf('+');
+			if (index == -1) {
+				index = value.indexOf('-');
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @param	value	a single datetime (not a range), possibly with a trailing time zone offset from UTC of the form +hhmm or -hhmm
+	 * @return			the time zone offset, or null if none
+	 */
+	static final String getTimezoneOffsetOfDateTime(String value) {
+		int index = indexOfTimezoneOffsetOfDateTime(value);
+		return index == -1 ? null : value.substring(index);
+	}
+
+	/**
+	 * @param	value	a single datetime (not a range), possibly with a trailing time zone offset from UTC of the form +hhmm or -hhmm
+	 * @return			the datetime without any time zone offset
+	 */
+	static final String removeTimezoneOffsetOfDateTime(String value) {
+		int index = indexOfTimezoneOffsetOfDateTime(value);
+		return index == -1 ? value : value.substring(0,index);
+	}
+
+	/**
+	 * <p>Is the hyphen at the specified position in a datetime range the sign of a time zone offset of the lower bound,
+	 * rather than the hyphen that separates the lower and upper bounds?</p>
+	 *
+	 * <p>It is a time zone offset if followed by exactly four digits that are a valid offset of up to 14 hours, and
+	 * if those digits are not a year later than that of the lower bound, e.g., 20030728-0500 is a datetime in a time zone
+	 * five hours behind UTC, whereas 2003-2004 is a range of years.</p>
+	 *
+	 * @param	value	a datetime range
+	 * @param	index	the index of a hyphen in the lower bound
+	 * @return			true if it is the sign of a time zone offset
+	 */
+	private static final boolean isTimezoneOffsetOfDateTime(String value,int index) {
+		int length = value.length();
+		if (index < 4 || index+5 > length || (index+5 < length && value.charAt(index+5) != '-')) {
+			return false;
+		}
+		for (int i=index+1; i<index+5; ++i) {
+			if (!Character.isDigit(value.charAt(i))) {
+				return false;
+			}
+		}
+		int hours = Integer.parseInt(value.substring(index+1,index+3));
+		int minutes = Integer.parseInt(value.substring(index+3,index+5));
+		if (hours > 14 || minutes > 59) {
+			return false;
+		}
+		return value.substring(index+1,index+5).compareTo(value.substring(0,4)) < 0;		// else a range whose upper bound is a year
+	}
+
+	/**
+	 * @param	value		a date, time or datetime, possibly a range
+	 * @param	isDateTime	true if a datetime, the lower bound of which may have a time zone offset from UTC of the form -hhmm
+	 * @return				the index of the hyphen that separates the lower and upper bounds, or -1 if not a range
+	 */
+	private static final int indexOfRangeDelimiter(String value,boolean isDateTime) {
+		int index = value.indexOf('-');
+		if (isDateTime && index != -1 && isTimezoneOffsetOfDateTime(value,index)) {
+			index = value.indexOf('-',index+5);
+		}
+		return index;
+	}
+
+	/**
+	 * @param	value	a date as yyyymmdd
+	 * @param	days	the number of days to add, which may be negative
+	 * @return			the date as yyyymmdd, or null if not a valid date
+	 */
+	private static final String addDays(String value,int days) {
+		try {
+			SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd");
+			formatter.setLenient(false);
+			Calendar calendar = new GregorianCalendar();
+			calendar.setTime(formatter.parse(value));
+			calendar.add(Calendar.DAY_OF_MONTH,days);
+			return formatter.format(calendar.getTime());
+		}
+		catch (Exception e) {
+			// ParseException ... don't know what the date is
+			return null;
+		}
+	}
+
 	private class RangeMatch {
 		String lowerValue;
 		String upperValue;
 		
 		RangeMatch(String value) {
+			this(value,false);
+		}
+		
+		RangeMatch(String value,boolean isDateTime) {
 			lowerValue = null;
 			upperValue = null;
 		
 			if (value != null) {
-				int indexOfHyphen = value.indexOf("-");
+				int indexOfHyphen = indexOfRangeDelimiter(value,isDateTime);
 				int length = value.length();
 				if (indexOfHyphen == 0) {
 					upperValue = value.substring(1,length);
@@ -98,41 +301,11 @@ public class DateTimeRangeMatch {
 		}
 		
 		RangeMatch(RangeMatch dateRangeMatch,RangeMatch timeRangeMatch) {
-			if (dateRangeMatch == null || dateRangeMatch.lowerValue == null) {
-				if (timeRangeMatch == null || timeRangeMatch.lowerValue == null) {
-					lowerValue = earliestPossibleSQLDate + earliestPossibleSQLTime;
-				}
-				else {
-					lowerValue = earliestPossibleSQLDate + timeRangeMatch.lowerValue;
-				}
-			}
-			else {
-				// assert dateRangeMatch.lowerValue.length() == 8
-				if (timeRangeMatch == null || timeRangeMatch.lowerValue == null) {
-					lowerValue = dateRangeMatch.lowerValue + earliestPossibleSQLTime;
-				}
-				else {
-					lowerValue = dateRangeMatch.lowerValue + timeRangeMatch.lowerValue;
-				}
-			}
-			
-			if (dateRangeMatch == null || dateRangeMatch.upperValue == null) {
-				if (timeRangeMatch == null || timeRangeMatch.upperValue == null) {
-					upperValue = latestPossibleSQLDate + latestPossibleSQLTime;
-				}
-				else {
-					upperValue = latestPossibleSQLDate + timeRangeMatch.upperValue;
-				}
-			}
-			else {
-				// assert dateRangeMatch.upperValue.length() == 8
-				if (timeRangeMatch == null || timeRangeMatch.upperValue == null) {
-					upperValue = dateRangeMatch.upperValue + latestPossibleSQLTime;
-				}
-				else {
-					upperValue = dateRangeMatch.upperValue + timeRangeMatch.upperValue;
-				}
-			}
+			// a missing date or time, or a less precise time, is the earliest or latest possible, e.g. an upper time of 18 matches up to 185959.999999
+			lowerValue = (dateRangeMatch == null || dateRangeMatch.lowerValue == null ? earliestPossibleSQLDate : dateRangeMatch.lowerValue)
+			           + padLowerValue(timeRangeMatch == null ? null : timeRangeMatch.lowerValue,earliestPossibleSQLTime);
+			upperValue = (dateRangeMatch == null || dateRangeMatch.upperValue == null ? latestPossibleSQLDate : dateRangeMatch.upperValue)
+			           + padUpperValue(timeRangeMatch == null ? null : timeRangeMatch.upperValue,latestPossibleSQLTime);
 		}
 	}
 	
@@ -142,6 +315,10 @@ public class DateTimeRangeMatch {
 
 	String matchColumnName;
 	
+	String dateColumnName;
+	
+	RangeMatch dateOnlyRangeMatch;		// if not null, the date itself is matched as well as the derived date time
+	
 	Set alreadyUsed;
 
 	private DateTimeRangeMatch(AttributeTag tag,AttributeList requestIdentifier,String columnName) {
@@ -150,11 +327,14 @@ public class DateTimeRangeMatch {
 		AttributeTag datetimeMatchTag = null;
 		
 		matchColumnName = null;
+		dateColumnName = null;
+		dateOnlyRangeMatch = null;
 		
 		alreadyUsed = new HashSet();
 		
 		if (tag.equals(TagFromName.StudyDate) || tag.equals(TagFromName.StudyTime)) {
 			dateMatchTag = TagFromName.StudyDate;
+			dateColumnName = "STUDYDATE";
 			timeMatchTag = TagFromName.StudyTime;
 			matchColumnName = DicomDatabaseInformationModel.derivedStudyDateTimeColumnName;
 			alreadyUsed.add(TagFromName.StudyDate);
@@ -162,6 +342,7 @@ public class DateTimeRangeMatch {
 		}
 		else if (tag.equals(TagFromName.SeriesDate) || tag.equals(TagFromName.SeriesTime)) {
 			dateMatchTag = TagFromName.SeriesDate;
+			dateColumnName = "SERIESDATE";
 			timeMatchTag = TagFromName.SeriesTime;
 			matchColumnName = DicomDatabaseInformationModel.derivedSeriesDateTimeColumnName;
 			alreadyUsed.add(TagFromName.SeriesDate);
@@ -169,6 +350,7 @@ public class DateTimeRangeMatch {
 		}
 		else if (tag.equals(TagFromName.ContentDate) || tag.equals(TagFromName.ContentTime)) {
 			dateMatchTag = TagFromName.ContentDate;
+			dateColumnName = "CONTENTDATE";
 			timeMatchTag = TagFromName.ContentTime;
 			matchColumnName = DicomDatabaseInformationModel.derivedContentDateTimeColumnName;
 			alreadyUsed.add(TagFromName.ContentDate);
@@ -184,85 +366,89 @@ public class DateTimeRangeMatch {
 		else if (tag.equals(TagFromName.AcquisitionDate) || tag.equals(TagFromName.AcquisitionTime)) {
 			dateMatchTag = TagFromName.AcquisitionDate;
 			timeMatchTag = TagFromName.AcquisitionTime;
+			datetimeMatchTag = TagFromName.AcquisitionDateTime;
 			matchColumnName = DicomDatabaseInformationModel.derivedAcquisitionDateTimeColumnName;
 			alreadyUsed.add(TagFromName.AcquisitionDateTime);
 			alreadyUsed.add(TagFromName.AcquisitionDate);
 			alreadyUsed.add(TagFromName.AcquisitionTime);
 		}
 		
-		String dateValue     = dateMatchTag     == null ? null : Attribute.getSingleStringValueOrNull(requestIdentifier,dateMatchTag);
-		String timeValue     = timeMatchTag     == null ? null : Attribute.getSingleStringValueOrNull(requestIdentifier,timeMatchTag);
+		String dateValue     = dateMatchTag     == null ? null : removeDelimiters(Attribute.getSingleStringValueOrNull(requestIdentifier,dateMatchTag),'.');
+		String timeValue     = timeMatchTag     == null ? null : removeDelimiters(Attribute.getSingleStringValueOrNull(requestIdentifier,timeMatchTag),':');
 		String datetimeValue = datetimeMatchTag == null ? null : Attribute.getSingleStringValueOrNull(requestIdentifier,datetimeMatchTag);
+		
+		// the derived date time columns were normalized to the local time zone on insertion, so do the same to the range
+		String timezone = Attribute.getSingleStringValueOrNull(requestIdentifier,TagFromName.TimezoneOffsetFromUTC);
 
 		if (datetimeValue != null && datetimeValue.length() > 0) {
-			rangeMatch = new RangeMatch(datetimeValue);
 			useTimeStampRatherThanDicomAttribute = true;
+			rangeMatch = new RangeMatch(datetimeValue,true);
+			String lowerTimezone = getTimezoneOffsetOfDateTime(rangeMatch.lowerValue);
+			String upperTimezone = getTimezoneOffsetOfDateTime(rangeMatch.upperValue);
+			rangeMatch.lowerValue = convertToSQLTimestampFormat(padLowerValue(removeTimezoneOffsetOfDateTime(rangeMatch.lowerValue),earliestPossibleSQLDateTime),
+				lowerTimezone == null ? timezone : lowerTimezone);
+			rangeMatch.upperValue = convertToSQLTimestampFormat(padUpperValue(removeTimezoneOffsetOfDateTime(rangeMatch.upperValue),latestPossibleSQLDateTime),
+				upperTimezone == null ? timezone : upperTimezone);
 		}
 		else {
-			if (dateValue != null) {
-				if (timeValue != null) {
-					useTimeStampRatherThanDicomAttribute = true;
-					rangeMatch = new RangeMatch(new RangeMatch(dateValue),new RangeMatch(timeValue));
+			if (dateValue != null && dateValue.length() > 0) {
+				useTimeStampRatherThanDicomAttribute = true;
+				if (timeValue == null || timeValue.length() == 0) {
+					// the date alone is the date where the record was made, whereas the derived date time may have been moved to another day
+					// by normalizing the time zone, so match the date itself, but also the derived date time over a few more days
+					// either side than any time zone offset can move it, since it is indexed and the date may not be
+					RangeMatch dateRangeMatch = new RangeMatch(dateValue);
+					dateRangeMatch.lowerValue = padLowerValue(dateRangeMatch.lowerValue,earliestPossibleSQLDate);
+					dateRangeMatch.upperValue = padUpperValue(dateRangeMatch.upperValue,latestPossibleSQLDate);
+					if (dateColumnName != null) {
+						dateOnlyRangeMatch = dateRangeMatch;
+					}
+					RangeMatch widenedDateRangeMatch = new RangeMatch(null);
+					widenedDateRangeMatch.lowerValue = addDays(dateRangeMatch.lowerValue,-dateOnlyMatchDaysEitherSide);
+					widenedDateRangeMatch.upperValue = addDays(dateRangeMatch.upperValue,dateOnlyMatchDaysEitherSide);
+					rangeMatch = new RangeMatch(widenedDateRangeMatch,null);
 					rangeMatch.lowerValue = convertToSQLTimestampFormat(rangeMatch.lowerValue);
 					rangeMatch.upperValue = convertToSQLTimestampFormat(rangeMatch.upperValue);
 				}
 				else {
-					useTimeStampRatherThanDicomAttribute = false;
-					rangeMatch = new RangeMatch(dateValue);
-					if (rangeMatch.lowerValue == null) {
-						rangeMatch.lowerValue = earliestPossibleSQLDate;
-					}
-					if (rangeMatch.upperValue == null) {
-						rangeMatch.upperValue = latestPossibleSQLDate;
-					}
-					matchColumnName = columnName;
+					// match the date and time combined on the derived date time, since it is indexed, and both are in the same time zone
+					// (the derived date time of a record with a date but no time is the start of the day)
+					rangeMatch = new RangeMatch(new RangeMatch(dateValue),new RangeMatch(timeValue));
+					rangeMatch.lowerValue = convertToSQLTimestampFormat(rangeMatch.lowerValue,timezone);
+					rangeMatch.upperValue = convertToSQLTimestampFormat(rangeMatch.upperValue,timezone);
 				}
 			}
 			else {
-				if (timeValue != null) {
+				if (timeValue != null && timeValue.length() > 0) {
 					useTimeStampRatherThanDicomAttribute = false;
 					rangeMatch = new RangeMatch(timeValue);
-					if (rangeMatch.lowerValue == null) {
-						rangeMatch.lowerValue = earliestPossibleSQLTime;
-					}
-					if (rangeMatch.upperValue == null) {
-						rangeMatch.upperValue = latestPossibleSQLTime;
-					}
+					rangeMatch.lowerValue = padLowerValue(rangeMatch.lowerValue,earliestPossibleSQLTime);
+					rangeMatch.upperValue = padUpperValue(rangeMatch.upperValue,latestPossibleSQLTime);
 					matchColumnName = columnName;
 				}
-				else {
+				else if (dateMatchTag == null) {
 					// don't recognize the attribute ... just go on the basis of its VR
 					useTimeStampRatherThanDicomAttribute = false;
+					matchColumnName = null;
 					Attribute a = requestIdentifier.get(tag);
 //System.err.println("DateTimeRangeMatch(): don't recognize the attribute "+a+"... just go on the basis of its VR");
 					if (a != null) {
 						String value = a.getSingleStringValueOrNull();
 						if (value != null && value.length() > 0) {
 							byte[] vr = a.getVR();
-							rangeMatch = new RangeMatch(value);
-							if (rangeMatch.lowerValue == null) {
-								if (ValueRepresentation.isDateVR(vr)) {
-									rangeMatch.lowerValue = earliestPossibleSQLDate;
-								}
-								else if (ValueRepresentation.isTimeVR(vr)) {
-									rangeMatch.lowerValue = earliestPossibleSQLTime;
-								}
-								else {
-									// assert ValueRepresentation.isDateTimeVR(vr)
-									rangeMatch.lowerValue = earliestPossibleSQLDateTime;
-								}
+							rangeMatch = new RangeMatch(value,ValueRepresentation.isDateTimeVR(vr));
+							if (ValueRepresentation.isDateVR(vr)) {
+								rangeMatch.lowerValue = padLowerValue(removeDelimiters(rangeMatch.lowerValue,'.'),earliestPossibleSQLDate);
+								rangeMatch.upperValue = padUpperValue(removeDelimiters(rangeMatch.upperValue,'.'),latestPossibleSQLDate);
 							}
-							if (rangeMatch.upperValue == null) {
-								if (ValueRepresentation.isDateVR(vr)) {
-									rangeMatch.lowerValue = latestPossibleSQLDate;
-								}
-								else if (ValueRepresentation.isTimeVR(vr)) {
-									rangeMatch.lowerValue = latestPossibleSQLTime;
-								}
-								else {
-									// assert ValueRepresentation.isDateTimeVR(vr)
-									rangeMatch.lowerValue = latestPossibleSQLDateTime;
-								}
+							else if (ValueRepresentation.isTimeVR(vr)) {
+								rangeMatch.lowerValue = padLowerValue(removeDelimiters(rangeMatch.lowerValue,':'),earliestPossibleSQLTime);
+								rangeMatch.upperValue = padUpperValue(removeDelimiters(rangeMatch.upperValue,':'),latestPossibleSQLTime);
+							}
+							else {
+								// assert ValueRepresentation.isDateTimeVR(vr)
+								rangeMatch.lowerValue = padLowerValue(removeTimezoneOffsetOfDateTime(rangeMatch.lowerValue),earliestPossibleSQLDateTime);
+								rangeMatch.upperValue = padUpperValue(removeTimezoneOffsetOfDateTime(rangeMatch.upperValue),latestPossibleSQLDateTime);
 							}
 							matchColumnName = columnName;
 						}
@@ -270,11 +456,73 @@ public class DateTimeRangeMatch {
 					}
 					// else do nothing since tag not in requestIdentifier
 				}
+				else {
+					// recognized date and time attributes both present but with no value (universal match)
+					matchColumnName = null;
+				}
 			}
 		}
 	}
 
-	static boolean addToMatchClause(StringBuffer b,String tableName,String columnName,AttributeTag tag,AttributeList requestIdentifier,Set alreadyUsed) {
+	/**
+	 * @param	b					the match clause being constructed
+	 * @param	tableName
+	 * @param	columnName
+	 * @param	tag
+	 * @param	requestIdentifier
+	 * @param	alreadyUsed
+	 * @return						true if a match was added
+	 */
+	public static boolean addToMatchClause(StringBuffer b,String tableName,String columnName,AttributeTag tag,AttributeList requestIdentifier,Set alreadyUsed) {
+		return addToMatchClause(b,tableName,columnName,tag,requestIdentifier,alreadyUsed,null);
+	}
+	
+	/**
+	 * @param	b				the match clause being constructed
+	 * @param	value			the SQL literal value, which may be quoted
+	 * @param	isTimestamp		whether the value is to be compared with a TIMESTAMP column
+	 * @param	parameters		if not null, the value is added to this list and a ? used in its place
+	 */
+	private static void appendValueOrParameter(StringBuffer b,String value,boolean isTimestamp,List parameters) {
+		if (parameters == null) {
+			if (!isTimestamp && !value.startsWith("\'")) {
+				b.append("\'");
+				b.append(value);
+				b.append("\'");
+			}
+			else {
+				b.append(value);
+			}
+		}
+		else {
+			b.append("?");
+			if (value.length() >= 2 && value.startsWith("\'") && value.endsWith("\'")) {
+				value = value.substring(1,value.length()-1);
+			}
+			Object parameter = value;
+			if (isTimestamp) {
+				try {
+					parameter = java.sql.Timestamp.valueOf(value);
+				}
+				catch (IllegalArgumentException e) {
+					// leave it to the database to convert, or not
+				}
+			}
+			parameters.add(parameter);
+		}
+	}
+	
+	/**
+	 * @param	b					the match clause being constructed
+	 * @param	tableName
+	 * @param	columnName
+	 * @param	tag
+	 * @param	requestIdentifier
+	 * @param	alreadyUsed
+	 * @param	parameters			if not null, the values are added to this list and ? used in their place in the match clause
+	 * @return						true if a match was added
+	 */
+	public static boolean addToMatchClause(StringBuffer b,String tableName,String columnName,AttributeTag tag,AttributeList requestIdentifier,Set alreadyUsed,List parameters) {
 		// we keep track of alreadyUsed, since the first encountered tag of a Date/Time pair
 		// causes both to be matched, and don't want to repeat on encountering the other
 		boolean found = false;
@@ -290,13 +538,27 @@ public class DateTimeRangeMatch {
 				b.append(".");
 				b.append(match.matchColumnName);
 				b.append(" >= ");
-				b.append(match.rangeMatch.lowerValue);
+				appendValueOrParameter(b,match.rangeMatch.lowerValue,match.useTimeStampRatherThanDicomAttribute,parameters);
 				b.append(" AND ");
 				b.append(tableName);
 				b.append(".");
 				b.append(match.matchColumnName);
 				b.append(" <= ");
-				b.append(match.rangeMatch.upperValue);
+				appendValueOrParameter(b,match.rangeMatch.upperValue,match.useTimeStampRatherThanDicomAttribute,parameters);
+				if (match.dateOnlyRangeMatch != null) {
+					b.append(" AND ");
+					b.append(tableName);
+					b.append(".");
+					b.append(match.dateColumnName);
+					b.append(" >= ");
+					appendValueOrParameter(b,match.dateOnlyRangeMatch.lowerValue,false,parameters);
+					b.append(" AND ");
+					b.append(tableName);
+					b.append(".");
+					b.append(match.dateColumnName);
+					b.append(" <= ");
+					appendValueOrParameter(b,match.dateOnlyRangeMatch.upperValue,false,parameters);
+				}
 			}
 		}
 		return found;
@@ -502,6 +764,25 @@ public class DateTimeRangeMatch {
 		catch (DicomException e) {
 			e.printStackTrace(System.err);
 		}
+
+		try {
+			StringBuffer b = new StringBuffer();
+			Set alreadyUsed = new HashSet();
+			AttributeList list = new AttributeList();
+			
+			{ AttributeTag t = TagFromName.StudyDate; Attribute a = new DateAttribute(t); a.addValue("20030728-20030729"); list.put(t,a); }
+			{ AttributeTag t = TagFromName.StudyTime; Attribute a = new TimeAttribute(t); a.addValue("17-18"); list.put(t,a); }
+			{ AttributeTag t = TagFromName.TimezoneOffsetFromUTC; Attribute a = new ShortStringAttribute(t); a.addValue("-0500"); list.put(t,a); }
+			
+			addToMatchClause(b,"STUDY","STUDYDATE",TagFromName.StudyDate,list,alreadyUsed);
+			addToMatchClause(b,"STUDY","STUDYTIME",TagFromName.StudyTime,list,alreadyUsed);
+			
+			System.err.println(b.toString());
+			System.err.println(list);
+		}
+		catch (DicomException e) {
+			e.printStackTrace(System.err);
+		}
 	}
 }
 
@@ -7,8 +7,12 @@ import com.pixelmed.query.QueryResponseGeneratorFactory;
 import com.pixelmed.query.RetrieveResponseGeneratorFactory;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
 import java.util.TreeSet;
 
 import java.text.DateFormat;
@@ -46,6 +50,22 @@ public abstract class DicomDatabaseInformationModel extends DatabaseInformationM
 	static final String derivedAcquisitionDateTimeColumnName = "PM_ACQUISITIONDATETIME";	// needs to be upper case
 	/***/
 	static final String derivedLossyImageCompressionColumnName = "PM_LOSSYIMAGECOMPRESSION";	// needs to be upper case
+	/***/
+	static final String derivedModalitiesInStudyColumnName = "PM_MODALITIESINSTUDY";	// needs to be upper case
+	/***/
+	static final String derivedSOPClassesInStudyColumnName = "PM_SOPCLASSESINSTUDY";	// needs to be upper case
+	/***/
+	static final String derivedNumberOfStudyRelatedSeriesColumnName = "PM_NUMBEROFSTUDYRELATEDSERIES";	// needs to be upper case
+	/***/
+	static final String derivedNumberOfStudyRelatedInstancesColumnName = "PM_NUMBEROFSTUDYRELATEDINSTANCES";	// needs to be upper case
+	/***/
+	static final String derivedNumberOfSeriesRelatedInstancesColumnName = "PM_NUMBEROFSERIESRELATEDINSTANCES";	// needs to be upper case
+	/***/
+	static final String aggregateValueDelimiter = "\\";		// values are stored with a leading and trailing delimiter, e.g. \CT\MR\, so that each may be found as \value\
+	/***/
+	private InformationEntity personNameIndexInformationEntity;		// null if there is no person name index
+	/***/
+	private String personNameIndexAttributeName;
 
 	/**
 	 * @param	databaseFileName
@@ -55,6 +75,7 @@ public abstract class DicomDatabaseInformationModel extends DatabaseInformationM
 	 */
 	public DicomDatabaseInformationModel(String databaseFileName,InformationEntity rootInformationEntity,DicomDictionary dictionary) throws DicomException {
 		super(databaseFileName,rootInformationEntity,dictionary);
+		preparePersonNameIndex();
 	}
 
 	/**
@@ -66,6 +87,7 @@ public abstract class DicomDatabaseInformationModel extends DatabaseInformationM
 	 */
 	public DicomDatabaseInformationModel(String databaseFileName,InformationEntity rootInformationEntity,DicomDictionary dictionary,String databaseRootName) throws DicomException {
 		super(databaseFileName,rootInformationEntity,dictionary,databaseRootName);
+		preparePersonNameIndex();
 	}
 
 	/**
@@ -76,6 +98,7 @@ public abstract class DicomDatabaseInformationModel extends DatabaseInformationM
 	 */
 	public DicomDatabaseInformationModel(String databaseFileName,String databaseServerName,InformationEntity rootInformationEntity,DicomDictionary dictionary) throws DicomException {
 		super(databaseFileName,databaseServerName,rootInformationEntity,dictionary);
+		preparePersonNameIndex();
 	}
 
 	/**
@@ -87,6 +110,7 @@ public abstract class DicomDatabaseInformationModel extends DatabaseInformationM
 	 */
 	public DicomDatabaseInformationModel(String databaseFileName,String databaseServerName,InformationEntity rootInformationEntity,DicomDictionary dictionary,String databaseRootName) throws DicomException {
 		super(databaseFileName,databaseServerName,rootInformationEntity,dictionary,databaseRootName);
+		preparePersonNameIndex();
 	}
 
 	/**
@@ -410,10 +434,24 @@ public abstract class DicomDatabaseInformationModel extends DatabaseInformationM
 		if (ie == InformationEntity.STUDY) {
 			b.append(",");
 			b.append(derivedStudyDateTimeColumnName);
+			if (hasAggregateAttributes()) {
+				b.append(",");
+				b.append(derivedModalitiesInStudyColumnName);
+				b.append(",");
+				b.append(derivedSOPClassesInStudyColumnName);
+				b.append(",");
+				b.append(derivedNumberOfStudyRelatedSeriesColumnName);
+				b.append(",");
+				b.append(derivedNumberOfStudyRelatedInstancesColumnName);
+			}
 		}
 		else if (ie == InformationEntity.SERIES) {
 			b.append(",");
 			b.append(derivedSeriesDateTimeColumnName);
+			if (hasAggregateAttributes()) {
+				b.append(",");
+				b.append(derivedNumberOfSeriesRelatedInstancesColumnName);
+			}
 		}
 		else if (ie == InformationEntity.INSTANCE) {
 			b.append(",");
@@ -599,6 +637,14 @@ public abstract class DicomDatabaseInformationModel extends DatabaseInformationM
 				b.append(studyDateTime);
 				b.append("\'");
 			}
+			if (hasAggregateAttributes()) {
+				// start empty; updated as each series and instance is inserted by updateAggregateAttributesForNewRecord()
+				b.append(",\'");
+				b.append(aggregateValueDelimiter);
+				b.append("\',\'");
+				b.append(aggregateValueDelimiter);
+				b.append("\',0,0");
+			}
 		}
 		else if (ie == InformationEntity.SERIES) {
 			String vSeriesDate = Attribute.getSingleStringValueOrNull(list,TagFromName.SeriesDate);
@@ -613,6 +659,9 @@ public abstract class DicomDatabaseInformationModel extends DatabaseInformationM
 				b.append(seriesDateTime);
 				b.append("\'");
 			}
+			if (hasAggregateAttributes()) {
+				b.append(",0");
+			}
 		}
 		else if (ie == InformationEntity.INSTANCE) {
 			String vContentDate = Attribute.getSingleStringValueOrNull(list,TagFromName.ContentDate);
@@ -673,11 +722,26 @@ public abstract class DicomDatabaseInformationModel extends DatabaseInformationM
 			b.append(",");
 			b.append(derivedStudyDateTimeColumnName);
 			b.append(" TIMESTAMP(6)");		// hsqldb supports precisions of 0 or 6 only, with 6 the default if unspecified
+			b.append(",");
+			b.append(derivedModalitiesInStudyColumnName);
+			b.append(" VARCHAR");
+			b.append(",");
+			b.append(derivedSOPClassesInStudyColumnName);
+			b.append(" VARCHAR");
+			b.append(",");
+			b.append(derivedNumberOfStudyRelatedSeriesColumnName);
+			b.append(" INTEGER");
+			b.append(",");
+			b.append(derivedNumberOfStudyRelatedInstancesColumnName);
+			b.append(" INTEGER");
 		}
 		else if (ie == InformationEntity.SERIES) {
 			b.append(",");
 			b.append(derivedSeriesDateTimeColumnName);
 			b.append(" TIMESTAMP(6)");
+			b.append(",");
+			b.append(derivedNumberOfSeriesRelatedInstancesColumnName);
+			b.append(" INTEGER");
 		}
 		else if (ie == InformationEntity.INSTANCE) {
 			b.append(",");
@@ -692,6 +756,888 @@ public abstract class DicomDatabaseInformationModel extends DatabaseInformationM
 		}
 	}
 
+	/**
+	 * <p>Create additional indexes on the derived dates and times, to optimize date and time range matching.</p>
+	 *
+	 * <p>The derived dates and times are normalized to the same time zone on insertion, and range matches on
+	 * the DICOM dates and times are performed on them, by {@link com.pixelmed.database.DateTimeRangeMatch DateTimeRangeMatch}.</p>
+	 */
+	protected void createAdditionalIndexes() throws DicomException {
+//System.err.println("DicomDatabaseInformationModel.createAdditionalIndexes():");
+		super.createAdditionalIndexes();
+		createDerivedDateTimeIndexes(false);
+	}
+
+	/**
+	 * <p>Create the indexes on the derived dates and times if they do not already exist, since
+	 * databases created before they were added do not have them.</p>
+	 */
+	protected void createMissingAdditionalIndexes() throws DicomException {
+//System.err.println("DicomDatabaseInformationModel.createMissingAdditionalIndexes():");
+		super.createMissingAdditionalIndexes();
+		createDerivedDateTimeIndexes(true);
+	}
+
+	/**
+	 * @param	onlyIfMissing	if true, do not create an index if the column is already indexed, or if the column is not present
+	 * @exception	DicomException	thrown if any index cannot be created
+	 */
+	private void createDerivedDateTimeIndexes(boolean onlyIfMissing) throws DicomException {
+		boolean success = true;
+		StringBuffer errors = new StringBuffer();
+		String[] tableNames = {
+			getTableNameForInformationEntity(InformationEntity.STUDY),
+			getTableNameForInformationEntity(InformationEntity.SERIES),
+			getTableNameForInformationEntity(InformationEntity.INSTANCE),
+			getTableNameForInformationEntity(InformationEntity.INSTANCE)
+		};
+		String[] columnNames = {
+			derivedStudyDateTimeColumnName,
+			derivedSeriesDateTimeColumnName,
+			derivedContentDateTimeColumnName,
+			derivedAcquisitionDateTimeColumnName
+		};
+		for (int i=0; i<columnNames.length; ++i) {
+			try {
+				if (!onlyIfMissing || (isAttributeUsedInTable(tableNames[i],columnNames[i]) && !isColumnIndexed(tableNames[i],columnNames[i]))) {
+					executeOnConnectionForWriting("CREATE INDEX "+columnNames[i]+"_IDX ON "+tableNames[i]+" ("+columnNames[i]+")");
+				}
+			} catch (Exception e) {
+				errors.append("Cannot create index of "+columnNames[i]+": "+e);
+				success = false;
+			}
+		}
+		if (!success) {
+			throw new DicomException(errors.toString());
+		}
+	}
+
+	/**
+	 * @param	tableName	the name of the table
+	 * @param	columnName	the name of the column
+	 * @return				true if there is an index whose first column is the specified column
+	 * @exception	SQLException
+	 */
+	private boolean isColumnIndexed(String tableName,String columnName) throws SQLException {
+		boolean indexed = false;
+		Connection connection = getConnectionForReading();
+		try {
+			ResultSet r = connection.getMetaData().getIndexInfo(null,null,tableName.toUpperCase(java.util.Locale.US),false,true);
+			while (r.next()) {
+				String indexedColumnName = r.getString("COLUMN_NAME");
+				if (indexedColumnName != null && r.getShort("ORDINAL_POSITION") == 1 && indexedColumnName.equalsIgnoreCase(columnName)) {
+					indexed = true;
+				}
+			}
+			r.close();
+		}
+		finally {
+			releaseConnection(connection);
+		}
+		return indexed;
+	}
+
+	/**
+	 * <p>Are the aggregate attributes (columns) of studies and series, such as ModalitiesInStudy and NumberOfStudyRelatedInstances, present in this database?</p>
+	 *
+	 * <p>They will be absent in databases whose tables were created before they were added.</p>
+	 *
+	 * @return	true if the aggregate columns are present and maintained
+	 */
+	boolean hasAggregateAttributes() {
+		return isAttributeUsedInTable(InformationEntity.STUDY,derivedModalitiesInStudyColumnName)
+		    && isAttributeUsedInTable(InformationEntity.STUDY,derivedSOPClassesInStudyColumnName)
+		    && isAttributeUsedInTable(InformationEntity.STUDY,derivedNumberOfStudyRelatedSeriesColumnName)
+		    && isAttributeUsedInTable(InformationEntity.STUDY,derivedNumberOfStudyRelatedInstancesColumnName)
+		    && isAttributeUsedInTable(InformationEntity.SERIES,derivedNumberOfSeriesRelatedInstancesColumnName);
+	}
+
+	/**
+	 * @param	values	a Set of String values
+	 * @return			the values, each followed by the delimiter, after a leading delimiter
+	 */
+	static String makeAggregateValue(Set values) {
+		StringBuffer b = new StringBuffer();
+		b.append(aggregateValueDelimiter);
+		Iterator i = values.iterator();
+		while (i.hasNext()) {
+			b.append((String)(i.next()));
+			b.append(aggregateValueDelimiter);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * @param	aggregateValue	the value of an aggregate column, which may be null
+	 * @return					a Set of the String values, empty if none
+	 */
+	static Set getValuesFromAggregateValue(String aggregateValue) {
+		Set values = new TreeSet();
+		if (aggregateValue != null) {
+			StringTokenizer st = new StringTokenizer(aggregateValue,aggregateValueDelimiter);
+			while (st.hasMoreTokens()) {
+				String value = st.nextToken().trim();
+				if (value.length() > 0) {
+					values.add(value);
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @param	value	an unquoted string value
+	 * @return			the value quoted and delimited, suitable for finding or adding to an aggregate column, or null if there is no value
+	 */
+	private static String getQuotedDelimitedValueOrNull(String value) {
+		String quoted = null;
+		if (value != null) {
+			value = value.trim();
+			if (value.length() > 0 && value.indexOf(aggregateValueDelimiter) == -1) {
+				quoted = "\'" + aggregateValueDelimiter + value.replace("\'","\'\'") + aggregateValueDelimiter + "\'";
+			}
+		}
+		return quoted;
+	}
+
+	/**
+	 * @param	s
+	 * @param	tableName
+	 * @param	columnName
+	 * @param	localPrimaryKeyValue
+	 * @param	increment				positive or negative
+	 * @exception	SQLException
+	 */
+	private static void addToAggregateCount(Statement s,String tableName,String columnName,String localPrimaryKeyValue,int increment) throws SQLException {
+		StringBuffer b = new StringBuffer();
+		b.append("UPDATE ");
+		b.append(tableName);
+		b.append(" SET ");
+		b.append(columnName);
+		b.append(" = ");
+		b.append(columnName);
+		b.append(increment < 0 ? " - " : " + ");
+		b.append(Math.abs(increment));
+		b.append(" WHERE ");
+		b.append(localPrimaryKeyColumnName);
+		b.append(" = \'");
+		b.append(localPrimaryKeyValue);
+		b.append("\'");
+		if (increment < 0) {
+			b.append(" AND ");
+			b.append(columnName);
+			b.append(" >= ");
+			b.append(-increment);
+		}
+		s.executeUpdate(b.toString());
+	}
+
+	/**
+	 * <p>Add a value to an aggregate column, unless it is already there.</p>
+	 *
+	 * <p>Done in a single statement, so that concurrent inserts into the same study do not lose values.</p>
+	 *
+	 * @param	s
+	 * @param	tableName
+	 * @param	columnName
+	 * @param	localPrimaryKeyValue
+	 * @param	value					the unquoted value, which may be null
+	 * @exception	SQLException
+	 */
+	private static void addToAggregateValue(Statement s,String tableName,String columnName,String localPrimaryKeyValue,String value) throws SQLException {
+		String quotedDelimitedValue = getQuotedDelimitedValueOrNull(value);
+		if (quotedDelimitedValue != null) {
+			StringBuffer b = new StringBuffer();
+			b.append("UPDATE ");
+			b.append(tableName);
+			b.append(" SET ");
+			b.append(columnName);
+			b.append(" = ");
+			b.append(columnName);
+			b.append(" || \'");
+			b.append(value.trim().replace("\'","\'\'"));
+			b.append(aggregateValueDelimiter);
+			b.append("\' WHERE ");
+			b.append(localPrimaryKeyColumnName);
+			b.append(" = \'");
+			b.append(localPrimaryKeyValue);
+			b.append("\' AND POSITION(");
+			b.append(quotedDelimitedValue);
+			b.append(" IN ");
+			b.append(columnName);
+			b.append(") = 0");
+			s.executeUpdate(b.toString());
+		}
+	}
+
+	/**
+	 * <p>Remove a value from an aggregate column, if it is there.</p>
+	 *
+	 * @param	s
+	 * @param	tableName
+	 * @param	columnName
+	 * @param	localPrimaryKeyValue
+	 * @param	value					the unquoted value, which may be null
+	 * @exception	SQLException
+	 */
+	private static void removeFromAggregateValue(Statement s,String tableName,String columnName,String localPrimaryKeyValue,String value) throws SQLException {
+		String quotedDelimitedValue = getQuotedDelimitedValueOrNull(value);
+		if (quotedDelimitedValue != null) {
+			StringBuffer b = new StringBuffer();
+			b.append("UPDATE ");
+			b.append(tableName);
+			b.append(" SET ");
+			b.append(columnName);
+			b.append(" = REPLACE(");
+			b.append(columnName);
+			b.append(",");
+			b.append(quotedDelimitedValue);
+			b.append(",\'");
+			b.append(aggregateValueDelimiter);
+			b.append("\') WHERE ");
+			b.append(localPrimaryKeyColumnName);
+			b.append(" = \'");
+			b.append(localPrimaryKeyValue);
+			b.append("\'");
+			s.executeUpdate(b.toString());
+		}
+	}
+
+	/**
+	 * @param	s
+	 * @param	tableName
+	 * @param	localPrimaryKeyValue
+	 * @return							the parent reference of the record, or null if there is no such record
+	 * @exception	SQLException
+	 */
+	private static String findParentReference(Statement s,String tableName,String localPrimaryKeyValue) throws SQLException {
+		String localParentReference = null;
+		if (localPrimaryKeyValue != null) {
+			ResultSet r = s.executeQuery("SELECT "+localParentReferenceColumnName+" FROM "+tableName+" WHERE "+localPrimaryKeyColumnName+" = \'"+localPrimaryKeyValue+"\'");
+			if (r.next()) {
+				localParentReference = r.getString(1);
+				if (localParentReference != null) {
+					localParentReference = localParentReference.trim();
+				}
+			}
+			r.close();
+		}
+		return localParentReference;
+	}
+
+	/**
+	 * @return	the name of the table for concatenations, or null if they are not in the model
+	 */
+	private String getConcatenationTableNameOrNull() {
+		return isInformationEntityInModel(InformationEntity.CONCATENATION) ? getTableNameForInformationEntity(InformationEntity.CONCATENATION) : null;
+	}
+
+	/**
+	 * @param	s
+	 * @param	instanceLocalParentReference	the primary key of the series or concatenation that is the parent of an instance
+	 * @return									the primary keys of the series and study that contain the instance, either of which may be null if not found
+	 * @exception	SQLException
+	 */
+	private String[] findSeriesAndStudyForInstanceParent(Statement s,String instanceLocalParentReference) throws SQLException {
+		String seriesTableName = getTableNameForInformationEntity(InformationEntity.SERIES);
+		String seriesLocalPrimaryKeyValue = instanceLocalParentReference;
+		String studyLocalPrimaryKeyValue = findParentReference(s,seriesTableName,seriesLocalPrimaryKeyValue);
+		if (studyLocalPrimaryKeyValue == null) {
+			String concatenationTableName = getConcatenationTableNameOrNull();
+			if (concatenationTableName != null) {
+				seriesLocalPrimaryKeyValue = findParentReference(s,concatenationTableName,instanceLocalParentReference);
+				studyLocalPrimaryKeyValue = findParentReference(s,seriesTableName,seriesLocalPrimaryKeyValue);
+			}
+		}
+		String[] keys = { seriesLocalPrimaryKeyValue, studyLocalPrimaryKeyValue };
+		return keys;
+	}
+
+	/**
+	 * <p>Update the aggregate attributes of the study and series that contain a new series or instance.</p>
+	 *
+	 * <p>The counts are incremented and the Modality or SOP Class UID added to the values for the study, if not already there.</p>
+	 *
+	 * @param	ie									the {@link com.pixelmed.dicom.InformationEntity InformationEntity} of the new record
+	 * @param	list								the DICOM attributes of the composite object being inserted
+	 * @param	localPrimaryKeysByInformationEntity	the primary keys of the new record and its ancestors
+	 * @exception	DicomException	thrown if the update fails
+	 */
+	protected void updateAggregateAttributesForNewRecord(InformationEntity ie,AttributeList list,Map localPrimaryKeysByInformationEntity) throws DicomException {
+		if ((ie == InformationEntity.SERIES || ie == InformationEntity.INSTANCE) && hasAggregateAttributes()) {
+			String studyLocalPrimaryKeyValue = (String)(localPrimaryKeysByInformationEntity.get(InformationEntity.STUDY));
+			String seriesLocalPrimaryKeyValue = (String)(localPrimaryKeysByInformationEntity.get(InformationEntity.SERIES));
+			if (studyLocalPrimaryKeyValue != null) {
+				String studyTableName = getTableNameForInformationEntity(InformationEntity.STUDY);
+				Connection connection = null;
+				try {
+					connection = getConnectionForWriting();		// will be the same connection as that on which the new record was inserted
+					Statement s = connection.createStatement();
+					if (ie == InformationEntity.SERIES) {
+						addToAggregateCount(s,studyTableName,derivedNumberOfStudyRelatedSeriesColumnName,studyLocalPrimaryKeyValue,1);
+						addToAggregateValue(s,studyTableName,derivedModalitiesInStudyColumnName,studyLocalPrimaryKeyValue,Attribute.getSingleStringValueOrNull(list,TagFromName.Modality));
+					}
+					else {
+						if (seriesLocalPrimaryKeyValue != null) {
+							addToAggregateCount(s,getTableNameForInformationEntity(InformationEntity.SERIES),derivedNumberOfSeriesRelatedInstancesColumnName,seriesLocalPrimaryKeyValue,1);
+						}
+						addToAggregateCount(s,studyTableName,derivedNumberOfStudyRelatedInstancesColumnName,studyLocalPrimaryKeyValue,1);
+						addToAggregateValue(s,studyTableName,derivedSOPClassesInStudyColumnName,studyLocalPrimaryKeyValue,Attribute.getSingleStringValueOrNull(list,TagFromName.SOPClassUID));
+					}
+					s.close();
+				}
+				catch (SQLException e) {
+					throw new DicomException("Cannot update aggregate attributes: "+e);
+				}
+				finally {
+					releaseConnection(connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Find which person name attribute to index, and create the index if it does not already exist, filling it with the names of any existing records.</p>
+	 *
+	 * <p>Patient's Name is indexed, if it is in the dictionary and the tables.</p>
+	 */
+	private void preparePersonNameIndex() {
+		InformationEntity ie = dictionary.getInformationEntityFromTag(TagFromName.PatientName);
+		String columnName = getDatabaseColumnNameFromDicomTag(TagFromName.PatientName);
+		if (ie != null && columnName != null && isAttributeUsedInTable(ie,columnName)) {
+			try {
+				boolean isNewIndex = false;
+				Connection connection = getConnectionForWriting();
+				try {
+					if (!PersonNameIndex.tableExists(connection)) {
+						PersonNameIndex.createTable(connection,getTableTypeForCreateStatement());
+						isNewIndex = true;
+					}
+				}
+				finally {
+					releaseConnection(connection);
+				}
+				personNameIndexInformationEntity = ie;
+				personNameIndexAttributeName = columnName.toUpperCase(java.util.Locale.US);
+				if (isNewIndex) {
+					rebuildPersonNameIndex();		// in case records were inserted before the index was added
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.err);		// carry on without the index, since names can still be matched without it
+				personNameIndexInformationEntity = null;
+				personNameIndexAttributeName = null;
+			}
+		}
+	}
+
+	/**
+	 * <p>Is there an index of person names for fast prefix and approximate matching of the records of the specified entity?</p>
+	 *
+	 * @param	ie	the {@link com.pixelmed.dicom.InformationEntity InformationEntity}
+	 * @return		true if the names of the records of the entity are indexed
+	 */
+	public boolean hasPersonNameIndex(InformationEntity ie) {
+		return ie != null && ie == personNameIndexInformationEntity;
+	}
+
+	/**
+	 * <p>Is the specified attribute (column) of the specified table in the index of person names?</p>
+	 *
+	 * @param	tableName	the string name of the table (case insensitive)
+	 * @param	columnName	the string name of the attribute (the column name) (case insensitive)
+	 * @return				true if the attribute is indexed
+	 */
+	boolean isPersonNameIndexed(String tableName,String columnName) {
+		return personNameIndexInformationEntity != null
+		    && getTableNameForInformationEntity(personNameIndexInformationEntity).equalsIgnoreCase(tableName)
+		    && personNameIndexAttributeName.equalsIgnoreCase(columnName);
+	}
+
+	/**
+	 * <p>Get the name of the person name attribute (column) that is indexed.</p>
+	 *
+	 * @return	the upper case column name, or null if there is no index
+	 */
+	String getPersonNameIndexAttributeName() {
+		return personNameIndexAttributeName;
+	}
+
+	/**
+	 * <p>Replace the contents of the index of person names with entries for all the existing records.</p>
+	 *
+	 * <p>Only necessary if the index has been damaged, since it is filled automatically when first created, and kept up to date as records are inserted, updated and deleted.</p>
+	 *
+	 * @exception	DicomException	thrown if the index cannot be rebuilt
+	 */
+	public void rebuildPersonNameIndex() throws DicomException {
+		if (personNameIndexInformationEntity != null) {
+			long startTime = System.nanoTime();
+			Connection connection = null;
+			try {
+				connection = getConnectionForWriting();
+				Statement s = connection.createStatement();
+				s.execute("DELETE FROM "+PersonNameIndex.tableName+" WHERE "+PersonNameIndex.attributeColumnName+" = \'"+personNameIndexAttributeName+"\'");
+				ResultSet r = s.executeQuery("SELECT "+localPrimaryKeyColumnName+","+personNameIndexAttributeName
+					+" FROM "+getTableNameForInformationEntity(personNameIndexInformationEntity));
+				while (r.next()) {
+					String localPrimaryKeyValue = r.getString(1);
+					String name = r.getString(2);
+					if (localPrimaryKeyValue != null && name != null) {
+						PersonNameIndex.addRecord(this,connection,personNameIndexAttributeName,localPrimaryKeyValue.trim(),name);
+					}
+				}
+				r.close();
+				s.close();
+			}
+			catch (SQLException e) {
+				throw new DicomException("Cannot rebuild person name index: "+e);
+			}
+			finally {
+				releaseConnection(connection);
+				getOperationStatistics().record("rebuildPersonNameIndex",System.nanoTime()-startTime);
+			}
+		}
+	}
+
+	/**
+	 * <p>Add the name of a new record to the index of person names.</p>
+	 *
+	 * @param	ie					the {@link com.pixelmed.dicom.InformationEntity InformationEntity} of the new record
+	 * @param	list				the DICOM attributes of the composite object being inserted
+	 * @param	localPrimaryKeyValue	the primary key of the new record
+	 * @exception	DicomException	thrown if the index cannot be updated
+	 */
+	protected void updateSearchIndexesForNewRecord(InformationEntity ie,AttributeList list,String localPrimaryKeyValue) throws DicomException {
+		if (ie != null && ie == personNameIndexInformationEntity) {
+			String name = Attribute.getSingleStringValueOrNull(list,TagFromName.PatientName);
+			if (name != null && name.length() > 0) {
+				Connection connection = null;
+				try {
+					connection = getConnectionForWriting();		// will be the same connection as that on which the new record was inserted
+					PersonNameIndex.addRecord(this,connection,personNameIndexAttributeName,localPrimaryKeyValue,name);
+				}
+				catch (SQLException e) {
+					throw new DicomException("Cannot update person name index: "+e);
+				}
+				finally {
+					releaseConnection(connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>For the records of an information entity whose names are indexed, get the values of all the columns of those with similar names, best match first.</p>
+	 *
+	 * <p>For example, for the patient entity, this might return the attributes of patients whose names sound like, or are spelled similarly to, or start with, the name supplied.</p>
+	 *
+	 * <p>The index is used rather than scanning all the records, so this is fast even when there are very many.</p>
+	 *
+	 * @param	ie					the {@link com.pixelmed.dicom.InformationEntity InformationEntity} of the records to be returned
+	 * @param	name				the name to search for, in DICOM Person Name or free text form, without wildcards
+	 * @param	prefix				true if the records are those with name components starting with the words of the supplied name, false if those with names approximately the same
+	 * @param	maximumNumberOfRecords	the most records to return
+	 * @return						an {@link java.util.ArrayList ArrayList} of records, each value of which is a
+	 *								{@link java.util.TreeMap TreeMap} of {@link java.lang.String String} values indexed by {@link java.lang.String String} upper case column names
+	 * @exception	DicomException	thrown if the names of the entity are not indexed or the query fails
+	 */
+	public ArrayList findAllAttributeValuesForAllRecordsForThisInformationEntityWithSimilarPersonName(InformationEntity ie,String name,boolean prefix,int maximumNumberOfRecords) throws DicomException {
+		if (!hasPersonNameIndex(ie)) {
+			throw new DicomException("No person name index for "+ie);
+		}
+		long startTime = System.nanoTime();
+		ArrayList localPrimaryKeyValues;
+		Connection connection = null;
+		try {
+			connection = getConnectionForReading();
+			localPrimaryKeyValues = PersonNameIndex.findRecords(this,connection,personNameIndexAttributeName,name,prefix,PersonNameIndex.defaultMinimumSimilarity,maximumNumberOfRecords);
+		}
+		catch (SQLException e) {
+			throw new DicomException("Cannot search person name index: "+e);
+		}
+		finally {
+			releaseConnection(connection);
+			getOperationStatistics().record("findSimilarPersonName",System.nanoTime()-startTime);
+		}
+		ArrayList records = new ArrayList();
+		Iterator i = localPrimaryKeyValues.iterator();
+		while (i.hasNext()) {
+			Map record = findAllAttributeValuesForSelectedRecord(ie,(String)(i.next()));
+			if (!record.isEmpty()) {		// in case deleted since searching
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * <p>For a particular instance of an information entity, update the record in the database table with a new value for the specified attribute (column),
+	 * and the index of person names if that attribute is indexed.</p>
+	 *
+	 * @param	ie			the {@link com.pixelmed.dicom.InformationEntity InformationEntity} of the record to be updated
+	 * @param	localPrimaryKeyValue	the string value of the unique key which identifies the instance of the entity (not including wildcards)
+	 * @param	key			the string name of the attribute (column) to be set (updated)
+	 * @param	value			the string value to set
+	 * @exception	DicomException		thrown if the update fails
+	 */
+	public void updateSelectedRecord(InformationEntity ie,String localPrimaryKeyValue,String key,String value) throws DicomException {
+		super.updateSelectedRecord(ie,localPrimaryKeyValue,key,value);
+		if (ie != null && ie == personNameIndexInformationEntity && key != null && key.equalsIgnoreCase(personNameIndexAttributeName)) {
+			Connection connection = null;
+			try {
+				connection = getConnectionForWriting();
+				PersonNameIndex.removeRecord(this,connection,personNameIndexAttributeName,localPrimaryKeyValue);
+				if (value != null && value.length() > 0) {
+					PersonNameIndex.addRecord(this,connection,personNameIndexAttributeName,localPrimaryKeyValue,value);
+				}
+			}
+			catch (SQLException e) {
+				throw new DicomException("Cannot update person name index: "+e);
+			}
+			finally {
+				releaseConnection(connection);
+			}
+		}
+	}
+
+	/**
+	 * <p>Delete a database record (a particular instance of an information entity), and update the aggregate attributes of the study and series that contained it,
+	 * and the index of person names.</p>
+	 *
+	 * <p>Does NOT delete its children, if any, which are no longer counted as part of the study.</p>
+	 *
+	 * <p>Does NOT delete any referenced files, if any.</p>
+	 *
+	 * @param	ie						the {@link com.pixelmed.dicom.InformationEntity InformationEntity} that corresponds to the table containing the record to be deleted
+	 * @param	localPrimaryKeyValue	primary key of the record
+	 * @exception	DicomException	thrown if there are problems executing the database statement
+	 */
+	public void deleteRecord(InformationEntity ie,String localPrimaryKeyValue) throws DicomException {
+		if (ie != null && ie == personNameIndexInformationEntity && localPrimaryKeyValue != null && localPrimaryKeyValue.length() > 0) {
+			Connection connection = null;
+			try {
+				connection = getConnectionForWriting();
+				PersonNameIndex.removeRecord(this,connection,personNameIndexAttributeName,localPrimaryKeyValue);
+			}
+			catch (SQLException e) {
+				throw new DicomException("Cannot update person name index: "+e);
+			}
+			finally {
+				releaseConnection(connection);
+			}
+		}
+		if ((ie == InformationEntity.SERIES || ie == InformationEntity.CONCATENATION || ie == InformationEntity.INSTANCE)
+		 && localPrimaryKeyValue != null && localPrimaryKeyValue.length() > 0
+		 && hasAggregateAttributes()) {
+			Connection connection = null;
+			try {
+				connection = getConnectionForWriting();		// hold the same connection throughout, so that it is re-used by the operations below
+				Map record = findAllAttributeValuesForSelectedRecord(ie,localPrimaryKeyValue);
+				super.deleteRecord(ie,localPrimaryKeyValue);
+				String localParentReference = (String)(record.get(localParentReferenceColumnName));
+				if (localParentReference != null) {
+					localParentReference = localParentReference.trim();
+					try {
+						Statement s = connection.createStatement();
+						String studyLocalPrimaryKeyValue = null;
+						if (ie == InformationEntity.SERIES) {
+							studyLocalPrimaryKeyValue = localParentReference;
+						}
+						else if (ie == InformationEntity.CONCATENATION) {
+							studyLocalPrimaryKeyValue = findParentReference(s,getTableNameForInformationEntity(InformationEntity.SERIES),localParentReference);
+						}
+						else {
+							// deleting an instance is common, e.g., when deleting a whole study one instance at a time, so do it incrementally
+							String[] keys = findSeriesAndStudyForInstanceParent(s,localParentReference);
+							String seriesLocalPrimaryKeyValue = keys[0];
+							String instanceStudyLocalPrimaryKeyValue = keys[1];
+							if (instanceStudyLocalPrimaryKeyValue != null) {
+								String studyTableName = getTableNameForInformationEntity(InformationEntity.STUDY);
+								addToAggregateCount(s,getTableNameForInformationEntity(InformationEntity.SERIES),derivedNumberOfSeriesRelatedInstancesColumnName,seriesLocalPrimaryKeyValue,-1);
+								addToAggregateCount(s,studyTableName,derivedNumberOfStudyRelatedInstancesColumnName,instanceStudyLocalPrimaryKeyValue,-1);
+								String sopClassUIDColumnName = getDatabaseColumnNameFromDicomTag(TagFromName.SOPClassUID);
+								String sopClassUID = (String)(record.get(sopClassUIDColumnName));
+								if (sopClassUID != null && !findSOPClassesInStudy(s,instanceStudyLocalPrimaryKeyValue).contains(sopClassUID.trim())) {
+									removeFromAggregateValue(s,studyTableName,derivedSOPClassesInStudyColumnName,instanceStudyLocalPrimaryKeyValue,sopClassUID);
+								}
+							}
+						}
+						s.close();
+						if (studyLocalPrimaryKeyValue != null) {
+							recomputeAggregateAttributes(studyLocalPrimaryKeyValue);
+						}
+					}
+					catch (SQLException e) {
+						throw new DicomException("Cannot update aggregate attributes: "+e);
+					}
+				}
+			}
+			catch (SQLException e) {
+				throw new DicomException("Cannot get connection to perform deletion: "+e);
+			}
+			finally {
+				releaseConnection(connection);
+			}
+		}
+		else {
+			super.deleteRecord(ie,localPrimaryKeyValue);
+		}
+	}
+
+	/**
+	 * @param	s
+	 * @param	studyLocalPrimaryKeyValue
+	 * @return							the distinct SOP Class UIDs of the instances in the study, whether directly in a series or in a concatenation
+	 * @exception	SQLException
+	 */
+	private Set findSOPClassesInStudy(Statement s,String studyLocalPrimaryKeyValue) throws SQLException {
+		Set sopClasses = new TreeSet();
+		String sopClassUIDColumnName = getDatabaseColumnNameFromDicomTag(TagFromName.SOPClassUID);
+		if (isAttributeUsedInTable(InformationEntity.INSTANCE,sopClassUIDColumnName)) {
+			String seriesTableName = getTableNameForInformationEntity(InformationEntity.SERIES);
+			String instanceTableName = getTableNameForInformationEntity(InformationEntity.INSTANCE);
+			String concatenationTableName = getConcatenationTableNameOrNull();
+			StringBuffer b = new StringBuffer();
+			b.append("SELECT DISTINCT ");
+			b.append(instanceTableName); b.append("."); b.append(sopClassUIDColumnName);
+			b.append(" FROM ");
+			b.append(seriesTableName); b.append(","); b.append(instanceTableName);
+			b.append(" WHERE ");
+			b.append(instanceTableName); b.append("."); b.append(localParentReferenceColumnName);
+			b.append(" = ");
+			b.append(seriesTableName); b.append("."); b.append(localPrimaryKeyColumnName);
+			b.append(" AND ");
+			b.append(seriesTableName); b.append("."); b.append(localParentReferenceColumnName);
+			b.append(" = \'"); b.append(studyLocalPrimaryKeyValue); b.append("\'");
+			addStringValuesFromFirstColumn(s,b.toString(),sopClasses);
+			if (concatenationTableName != null) {
+				b = new StringBuffer();
+				b.append("SELECT DISTINCT ");
+				b.append(instanceTableName); b.append("."); b.append(sopClassUIDColumnName);
+				b.append(" FROM ");
+				b.append(seriesTableName); b.append(","); b.append(concatenationTableName); b.append(","); b.append(instanceTableName);
+				b.append(" WHERE ");
+				b.append(instanceTableName); b.append("."); b.append(localParentReferenceColumnName);
+				b.append(" = ");
+				b.append(concatenationTableName); b.append("."); b.append(localPrimaryKeyColumnName);
+				b.append(" AND ");
+				b.append(concatenationTableName); b.append("."); b.append(localParentReferenceColumnName);
+				b.append(" = ");
+				b.append(seriesTableName); b.append("."); b.append(localPrimaryKeyColumnName);
+				b.append(" AND ");
+				b.append(seriesTableName); b.append("."); b.append(localParentReferenceColumnName);
+				b.append(" = \'"); b.append(studyLocalPrimaryKeyValue); b.append("\'");
+				addStringValuesFromFirstColumn(s,b.toString(),sopClasses);
+			}
+		}
+		return sopClasses;
+	}
+
+	/**
+	 * @param	s
+	 * @param	query
+	 * @param	values	a Set to which to add the non-empty trimmed String values of the first column of each row
+	 * @exception	SQLException
+	 */
+	private static void addStringValuesFromFirstColumn(Statement s,String query,Set values) throws SQLException {
+		ResultSet r = s.executeQuery(query);
+		while (r.next()) {
+			String value = r.getString(1);
+			if (value != null && value.trim().length() > 0) {
+				values.add(value.trim());
+			}
+		}
+		r.close();
+	}
+
+	/**
+	 * <p>The values of the aggregate attributes for a study or series whilst they are being recomputed.</p>
+	 */
+	private static class AggregateAttributes {
+		/***/
+		Set modalities = new TreeSet();
+		/***/
+		Set sopClasses = new TreeSet();
+		/***/
+		int numberOfSeries;
+		/***/
+		int numberOfInstances;
+	}
+
+	/**
+	 * @param	s
+	 * @param	query							returning the series primary key and optionally the SOP Class UID of each instance
+	 * @param	aggregateAttributesBySeries
+	 * @exception	SQLException
+	 */
+	private static void accumulateInstancesForRecompute(Statement s,String query,Map aggregateAttributesBySeries) throws SQLException {
+		ResultSet r = s.executeQuery(query);
+		boolean haveSOPClass = r.getMetaData().getColumnCount() > 1;
+		while (r.next()) {
+			String seriesLocalPrimaryKeyValue = r.getString(1);
+			AggregateAttributes seriesAggregateAttributes = seriesLocalPrimaryKeyValue == null ? null : (AggregateAttributes)(aggregateAttributesBySeries.get(seriesLocalPrimaryKeyValue.trim()));
+			if (seriesAggregateAttributes != null) {
+				++seriesAggregateAttributes.numberOfInstances;
+				if (haveSOPClass) {
+					String sopClassUID = r.getString(2);
+					if (sopClassUID != null && sopClassUID.trim().length() > 0) {
+						seriesAggregateAttributes.sopClasses.add(sopClassUID.trim());
+					}
+				}
+			}
+		}
+		r.close();
+	}
+
+	/**
+	 * <p>Recompute the aggregate attributes of one or all studies, and the series they contain, from their children.</p>
+	 *
+	 * @param	studyLocalPrimaryKeyValue	the primary key of the study, or null for all studies
+	 * @exception	DicomException	thrown if the recomputation fails
+	 */
+	private void recomputeAggregateAttributes(String studyLocalPrimaryKeyValue) throws DicomException {
+		String studyTableName = getTableNameForInformationEntity(InformationEntity.STUDY);
+		String seriesTableName = getTableNameForInformationEntity(InformationEntity.SERIES);
+		String instanceTableName = getTableNameForInformationEntity(InformationEntity.INSTANCE);
+		String concatenationTableName = getConcatenationTableNameOrNull();
+		String modalityColumnName = getDatabaseColumnNameFromDicomTag(TagFromName.Modality);
+		if (!isAttributeUsedInTable(seriesTableName,modalityColumnName)) {
+			modalityColumnName = null;
+		}
+		String sopClassUIDColumnName = getDatabaseColumnNameFromDicomTag(TagFromName.SOPClassUID);
+		if (!isAttributeUsedInTable(instanceTableName,sopClassUIDColumnName)) {
+			sopClassUIDColumnName = null;
+		}
+		String restrictToStudy = studyLocalPrimaryKeyValue == null ? "" : (" AND "+seriesTableName+"."+localParentReferenceColumnName+" = \'"+studyLocalPrimaryKeyValue+"\'");
+		Connection connection = null;
+		try {
+			connection = getConnectionForWriting();
+			Statement s = connection.createStatement();
+			Map aggregateAttributesByStudy = new HashMap();
+			{
+				ResultSet r = s.executeQuery("SELECT "+localPrimaryKeyColumnName+" FROM "+studyTableName
+					+(studyLocalPrimaryKeyValue == null ? "" : (" WHERE "+localPrimaryKeyColumnName+" = \'"+studyLocalPrimaryKeyValue+"\'")));
+				while (r.next()) {
+					aggregateAttributesByStudy.put(r.getString(1).trim(),new AggregateAttributes());
+				}
+				r.close();
+			}
+			Map aggregateAttributesBySeries = new HashMap();
+			Map studyBySeries = new HashMap();
+			{
+				ResultSet r = s.executeQuery("SELECT "+localPrimaryKeyColumnName+","+localParentReferenceColumnName
+					+(modalityColumnName == null ? "" : (","+modalityColumnName))
+					+" FROM "+seriesTableName+" WHERE "+seriesTableName+"."+localParentReferenceColumnName+" IS NOT NULL"+restrictToStudy);
+				while (r.next()) {
+					String seriesLocalPrimaryKeyValue = r.getString(1).trim();
+					String seriesStudyLocalPrimaryKeyValue = r.getString(2).trim();
+					AggregateAttributes studyAggregateAttributes = (AggregateAttributes)(aggregateAttributesByStudy.get(seriesStudyLocalPrimaryKeyValue));
+					if (studyAggregateAttributes != null) {
+						aggregateAttributesBySeries.put(seriesLocalPrimaryKeyValue,new AggregateAttributes());
+						studyBySeries.put(seriesLocalPrimaryKeyValue,seriesStudyLocalPrimaryKeyValue);
+						++studyAggregateAttributes.numberOfSeries;
+						if (modalityColumnName != null) {
+							String modality = r.getString(3);
+							if (modality != null && modality.trim().length() > 0) {
+								studyAggregateAttributes.modalities.add(modality.trim());
+							}
+						}
+					}
+				}
+				r.close();
+			}
+			{
+				StringBuffer b = new StringBuffer();
+				b.append("SELECT ");
+				b.append(seriesTableName); b.append("."); b.append(localPrimaryKeyColumnName);
+				if (sopClassUIDColumnName != null) {
+					b.append(","); b.append(instanceTableName); b.append("."); b.append(sopClassUIDColumnName);
+				}
+				b.append(" FROM ");
+				b.append(seriesTableName); b.append(","); b.append(instanceTableName);
+				b.append(" WHERE ");
+				b.append(instanceTableName); b.append("."); b.append(localParentReferenceColumnName);
+				b.append(" = ");
+				b.append(seriesTableName); b.append("."); b.append(localPrimaryKeyColumnName);
+				b.append(restrictToStudy);
+				accumulateInstancesForRecompute(s,b.toString(),aggregateAttributesBySeries);
+			}
+			if (concatenationTableName != null) {
+				StringBuffer b = new StringBuffer();
+				b.append("SELECT ");
+				b.append(seriesTableName); b.append("."); b.append(localPrimaryKeyColumnName);
+				if (sopClassUIDColumnName != null) {
+					b.append(","); b.append(instanceTableName); b.append("."); b.append(sopClassUIDColumnName);
+				}
+				b.append(" FROM ");
+				b.append(seriesTableName); b.append(","); b.append(concatenationTableName); b.append(","); b.append(instanceTableName);
+				b.append(" WHERE ");
+				b.append(instanceTableName); b.append("."); b.append(localParentReferenceColumnName);
+				b.append(" = ");
+				b.append(concatenationTableName); b.append("."); b.append(localPrimaryKeyColumnName);
+				b.append(" AND ");
+				b.append(concatenationTableName); b.append("."); b.append(localParentReferenceColumnName);
+				b.append(" = ");
+				b.append(seriesTableName); b.append("."); b.append(localPrimaryKeyColumnName);
+				b.append(restrictToStudy);
+				accumulateInstancesForRecompute(s,b.toString(),aggregateAttributesBySeries);
+			}
+			{
+				Iterator i = aggregateAttributesBySeries.keySet().iterator();
+				while (i.hasNext()) {
+					String seriesLocalPrimaryKeyValue = (String)(i.next());
+					AggregateAttributes seriesAggregateAttributes = (AggregateAttributes)(aggregateAttributesBySeries.get(seriesLocalPrimaryKeyValue));
+					AggregateAttributes studyAggregateAttributes = (AggregateAttributes)(aggregateAttributesByStudy.get(studyBySeries.get(seriesLocalPrimaryKeyValue)));
+					studyAggregateAttributes.numberOfInstances+=seriesAggregateAttributes.numberOfInstances;
+					studyAggregateAttributes.sopClasses.addAll(seriesAggregateAttributes.sopClasses);
+					s.executeUpdate("UPDATE "+seriesTableName
+						+" SET "+derivedNumberOfSeriesRelatedInstancesColumnName+" = "+seriesAggregateAttributes.numberOfInstances
+						+" WHERE "+localPrimaryKeyColumnName+" = \'"+seriesLocalPrimaryKeyValue+"\'");
+				}
+			}
+			{
+				Iterator i = aggregateAttributesByStudy.keySet().iterator();
+				while (i.hasNext()) {
+					String key = (String)(i.next());
+					AggregateAttributes studyAggregateAttributes = (AggregateAttributes)(aggregateAttributesByStudy.get(key));
+					s.executeUpdate("UPDATE "+studyTableName
+						+" SET "+derivedModalitiesInStudyColumnName+" = "+getQuotedValueOrNULL(makeAggregateValue(studyAggregateAttributes.modalities).replace("\'","\'\'"))
+						+", "+derivedSOPClassesInStudyColumnName+" = "+getQuotedValueOrNULL(makeAggregateValue(studyAggregateAttributes.sopClasses).replace("\'","\'\'"))
+						+", "+derivedNumberOfStudyRelatedSeriesColumnName+" = "+studyAggregateAttributes.numberOfSeries
+						+", "+derivedNumberOfStudyRelatedInstancesColumnName+" = "+studyAggregateAttributes.numberOfInstances
+						+" WHERE "+localPrimaryKeyColumnName+" = \'"+key+"\'");
+				}
+			}
+			s.close();
+		}
+		catch (SQLException e) {
+			e.printStackTrace(System.err);
+			throw new DicomException("Cannot recompute aggregate attributes: "+e);
+		}
+		finally {
+			releaseConnection(connection);
+		}
+	}
+
+	/**
+	 * <p>Recompute the aggregate attributes of all the studies and series in the database from their children.</p>
+	 *
+	 * <p>These are the values of ModalitiesInStudy, SOPClassesInStudy, NumberOfStudyRelatedSeries, NumberOfStudyRelatedInstances
+	 * and NumberOfSeriesRelatedInstances that are returned in response to queries. They are normally kept up to date as records
+	 * are inserted and deleted, so this is only necessary to repair them, for example after the tables have been modified other than
+	 * through {@link #insertObject(AttributeList,String,String) insertObject()} and {@link #deleteRecord(InformationEntity,String) deleteRecord()}.</p>
+	 *
+	 * <p>Does nothing if the database was created before these attributes were added to the tables.</p>
+	 *
+	 * @exception	DicomException	thrown if the recomputation fails
+	 */
+	public void rebuildAggregateAttributes() throws DicomException {
+		if (hasAggregateAttributes()) {
+			recomputeAggregateAttributes(null);
+		}
+	}
+
 	/**
 	 * @param	ie
 	 */
@@ -21,21 +21,25 @@ import com.pixelmed.dicom.ValueRepresentation;
 
 import com.pixelmed.network.ResponseStatus;
 
-import com.pixelmed.query.QueryResponseGenerator;
+import com.pixelmed.query.LimitedQueryResponseGenerator;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.Types;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
-class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
+class DicomDatabaseQueryResponseGenerator implements LimitedQueryResponseGenerator {
 
 	/***/
 	private static final String identString = "@(#) $Header: /userland/cvs/pixelmed/imgbook/com/pixelmed/database/DicomDatabaseQueryResponseGenerator.java,v 1.19 2010/06/17 01:17:59 dclunie Exp $";
@@ -47,6 +51,9 @@ class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
 	/***/
 	private static final boolean includeUnsupportedOptionalKeysInResponseWithZeroLength = false;	// set this to true for non-standard behavior
 	
+	/***/
+	private static final int defaultFetchSize = 100;		// a hint to stream rather than materialize large result sets
+	
 	/***/
 	private static final boolean includeModalitiesInStudyIfRequested = true;
 	
@@ -94,8 +101,12 @@ class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
 	/***/
 	private AttributeList requestIdentifier;
 	/***/
+	private Connection databaseConnection;		// borrowed from the databaseInformationModel for the duration of the query and needs to be given back
+	/***/
 	private Statement databaseStatement;
 	/***/
+	private String preparedStatementSQL;		// non-null if databaseStatement was borrowed from the databaseInformationModel and needs to be given back
+	/***/
 	private ResultSet resultSet;
 	/***/
 	private ResultSetMetaData resultSetMetaData;
@@ -118,6 +129,32 @@ class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
 	private String             sopClassUIDColumnName;
 	private String        studyInstanceUIDColumnName;
 	private String       seriesInstanceUIDColumnName;
+	
+	/***/
+	private boolean hasAggregateAttributes;
+	/***/
+	private boolean selectedModalitiesInStudy;
+	/***/
+	private boolean selectedSOPClassesInStudy;
+	/***/
+	private boolean selectedNumberOfStudyRelatedSeries;
+	/***/
+	private boolean selectedNumberOfStudyRelatedInstances;
+	/***/
+	private boolean selectedNumberOfSeriesRelatedInstances;
+	
+	/***/
+	private int maximumNumberOfMatches;
+	/***/
+	private long timeout;
+	/***/
+	private long queryStartTime;
+	/***/
+	private int numberOfMatchesReturned;
+	/***/
+	private Set queryKeysUsed;			// of TABLE.COLUMN strings, recorded in QueryKeyStatistics when closed
+	/***/
+	private long queryExecutionNanoseconds;
 
 	DicomDatabaseQueryResponseGenerator(DatabaseInformationModel databaseInformationModel,int debugLevel) {
 //System.err.println("DicomDatabaseQueryResponseGenerator():");
@@ -145,6 +182,8 @@ class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
 		            sopClassUIDColumnName = databaseInformationModel.getDatabaseColumnNameFromDicomTag(TagFromName.SOPClassUID);
 		       studyInstanceUIDColumnName = databaseInformationModel.getDatabaseColumnNameFromDicomTag(TagFromName.StudyInstanceUID);
 		      seriesInstanceUIDColumnName = databaseInformationModel.getDatabaseColumnNameFromDicomTag(TagFromName.SeriesInstanceUID);
+		           hasAggregateAttributes = databaseInformationModel instanceof DicomDatabaseInformationModel
+		                                 && ((DicomDatabaseInformationModel)databaseInformationModel).hasAggregateAttributes();
 	}
 	
 	/**
@@ -308,7 +347,40 @@ class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
 		b.append(primaryKeyColumnName);
 	}
 	
-	private static void addToMatchClause(StringBuffer b,String tableName,String columnName,String value,String booleanOperator) {
+	/**
+	 * <p>Get the value to bind to a parameter from a SQL literal.</p>
+	 *
+	 * @param	literal		a quoted (and escaped) string or an unquoted numeric value
+	 * @return				a {@link java.lang.String String}, {@link java.lang.Long Long} or {@link java.lang.Double Double}
+	 */
+	private static Object getParameterValueFromSQLLiteral(String literal) {
+		if (literal.length() >= 2 && literal.startsWith("\'") && literal.endsWith("\'")) {
+			return literal.substring(1,literal.length()-1).replace("\'\'","\'");
+		}
+		try {
+			return Long.valueOf(literal);
+		}
+		catch (NumberFormatException e) {
+		}
+		try {
+			return Double.valueOf(literal);
+		}
+		catch (NumberFormatException e) {
+		}
+		return literal;
+	}
+	
+	private static void appendValueOrParameter(StringBuffer b,String value,List parameters) {
+		if (parameters == null || value.equals("NULL")) {		// an unquoted NULL is not a value, and must not be bound as the string "NULL"
+			b.append(value);
+		}
+		else {
+			b.append("?");
+			parameters.add(getParameterValueFromSQLLiteral(value));
+		}
+	}
+	
+	private static void addToMatchClause(StringBuffer b,String tableName,String columnName,String value,String booleanOperator,List parameters) {
 		if (b.length() != 0) {
 			b.append(" ");
 			b.append(booleanOperator);
@@ -319,7 +391,7 @@ class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
 		b.append(columnName);
 		if (value.indexOf('*') == -1 && value.indexOf('?')  == -1) {
 			b.append(" = ");
-			b.append(value);						// is already quoted
+			appendValueOrParameter(b,value,parameters);		// is already quoted
 		}
 		else {
 			b.append(" LIKE ");
@@ -328,13 +400,13 @@ class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
 							   .replace("_","\\_")
 							   .replace('*','%')		// replace DICOM wildcard characters with (unescaped obviously) SQL wildcard characters
 							   .replace('?','_');
-			b.append(sqlValue);							// is already quoted
+			appendValueOrParameter(b,sqlValue,parameters);	// is already quoted
 			b.append(" ESCAPE '\\'");					// need to specify explicitly what escape character use is, but only do it when LIKE clause is used
 		}
 	}
 	
-	private static void addToMatchClause(StringBuffer b,String tableName,String columnName,String value) {
-		addToMatchClause(b,tableName,columnName,value,"AND");
+	private static void addToMatchClause(StringBuffer b,String tableName,String columnName,String value,List parameters) {
+		addToMatchClause(b,tableName,columnName,value,"AND",parameters);
 	}
 	
 	private static void addToSelectClause(StringBuffer b,String tableName,String columnName) {
@@ -358,8 +430,128 @@ class DicomDatabaseQueryResponseGenerator implements QueryResponseGenerator {
 		}
 	}
 
+	/**
+	 * <p>Return the aggregate attributes of studies and series from the columns in which they are maintained, rather than computing them for each response.</p>
+	 *
+	 * <p>Matching on ModalitiesInStudy is performed in the query, rather than by discarding responses.</p>
+	 *
+	 * @param	ieWanted		the query level
+	 * @param	selectBuffer
+	 * @param	fromBuffer
+	 * @param	matchBuffer
+	 * @param	parameters
+	 */
+	private void addAggregateAttributesToQuery(InformationEntity ieWanted,StringBuffer selectBuffer,StringBuffer fromBuffer,StringBuffer matchBuffer,List parameters) {
+		if (ieWanted == InformationEntity.STUDY) {
+			if (includeModalitiesInStudyIfRequested && requestIdentifier.get(TagFromName.ModalitiesInStudy) != null) {
+				addToSelectClause(selectBuffer,studyTableName,DicomDatabaseInformationModel.derivedModalitiesInStudyColumnName);
+				addToFromClause(fromBuffer,studyTableName);
+				selectedModalitiesInStudy = true;
+				String[] requestValues = Attribute.getStringValues(requestIdentifier,TagFromName.ModalitiesInStudy);
+				if (requestValues != null && requestValues.length > 0) {
+					StringBuffer modalityMatchBuffer = new StringBuffer();
+					for (int i=0; i<requestValues.length; ++i) {
+						String value = requestValues[i] == null ? "" : requestValues[i].trim();
+						if (value.length() > 0 && value.indexOf(DicomDatabaseInformationModel.aggregateValueDelimiter) == -1) {
+							if (modalityMatchBuffer.length() > 0) {
+								modalityMatchBuffer.append(" OR ");
+							}
+							modalityMatchBuffer.append("POSITION(? IN ");
+							parameters.add(DicomDatabaseInformationModel.aggregateValueDelimiter+value+DicomDatabaseInformationModel.aggregateValueDelimiter);
+							modalityMatchBuffer.append(studyTableName);
+							modalityMatchBuffer.append(".");
+							modalityMatchBuffer.append(DicomDatabaseInformationModel.derivedModalitiesInStudyColumnName);
+							modalityMatchBuffer.append(") > 0");
+						}
+					}
+					if (modalityMatchBuffer.length() > 0) {
+						if (matchBuffer.length() > 0) {
+							matchBuffer.append(" AND ");
+						}
+						matchBuffer.append("(");
+						matchBuffer.append(modalityMatchBuffer);
+						matchBuffer.append(")");
+					}
+				}
+			}
+			if (includeSOPClassesInStudyIfRequested && requestIdentifier.get(TagFromName.SOPClassesInStudy) != null) {
+				addToSelectClause(selectBuffer,studyTableName,DicomDatabaseInformationModel.derivedSOPClassesInStudyColumnName);
+				addToFromClause(fromBuffer,studyTableName);
+				selectedSOPClassesInStudy = true;
+			}
+			if (includeNumberOfStudyRelatedSeriesIfRequested && requestIdentifier.get(TagFromName.NumberOfStudyRelatedSeries) != null) {
+				addToSelectClause(selectBuffer,studyTableName,DicomDatabaseInformationModel.derivedNumberOfStudyRelatedSeriesColumnName);
+				addToFromClause(fromBuffer,studyTableName);
+				selectedNumberOfStudyRelatedSeries = true;
+			}
+			if (includeNumberOfStudyRelatedInstancesIfRequested && requestIdentifier.get(TagFromName.NumberOfStudyRelatedInstances) != null) {
+				addToSelectClause(selectBuffer,studyTableName,DicomDatabaseInformationModel.derivedNumberOfStudyRelatedInstancesColumnName);
+				addToFromClause(fromBuffer,studyTableName);
+				selectedNumberOfStudyRelatedInstances = true;
+			}
+		}
+		else if (ieWanted == InformationEntity.SERIES) {
+			if (includeNumberOfSeriesRelatedInstancesIfRequested && requestIdentifier.get(TagFromName.NumberOfSeriesRelatedInstances) != null) {
+				addToSelectClause(selectBuffer,seriesTableName,DicomDatabaseInformationModel.derivedNumberOfSeriesRelatedInstancesColumnName);
+				addToFromClause(fromBuffer,seriesTableName);
+				selectedNumberOfSeriesRelatedInstances = true;
+			}
+		}
+	}
+
+	/**
+	 * <p>Whether or not next() may discard rows returned by the query, because matching on some keys is only performed once a row has been fetched.</p>
+	 *
+	 * <p>Call only after the query has been built, since whether matching on ModalitiesInStudy is performed in the query depends on the columns selected.</p>
+	 *
+	 * @return	true if there may be fewer matches than rows
+	 */
+	private boolean isMatchingPerformedAfterQuery() {
+		if ("STUDY".equals(queryRetrieveLevel)) {
+			if (includeSOPClassesInStudyIfRequested) {
+				String[] requestValues = Attribute.getStringValues(requestIdentifier,TagFromName.SOPClassesInStudy);
+				if (requestValues != null && requestValues.length > 0) {
+					return true;
+				}
+			}
+			if (includeModalitiesInStudyIfRequested) {
+				String[] requestValues = Attribute.getStringValues(requestIdentifier,TagFromName.ModalitiesInStudy);
+				if (requestValues != null && requestValues.length > 0) {
+					if (!selectedModalitiesInStudy) {
+						return true;
+					}
+					for (int i=0; i<requestValues.length; ++i) {
+						String value = requestValues[i];
+						// only values that addAggregateAttributesToQuery() used unchanged are matched in the query the same way as in next()
+						if (value == null || value.length() == 0 || !value.equals(value.trim()) || value.indexOf(DicomDatabaseInformationModel.aggregateValueDelimiter) != -1) {
+							return true;
+						}
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	public void setLimits(int maximumNumberOfMatches,long timeout) {
+		this.maximumNumberOfMatches=maximumNumberOfMatches;
+		this.timeout=timeout;
+	}
+	
+	private boolean hasTimedOut() {
+		return timeout > 0 && System.currentTimeMillis() - queryStartTime >= timeout;
+	}
+
+	private void setTimedOutStatus() {
+		setErrorStatus(ResponseStatus.RefusedOutOfResources,null,"Query took longer than "+timeout+" ms");
+	}
+
 	public void performQuery(String querySOPClassUID,AttributeList requestIdentifier,boolean relational) {
 if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.performQuery(): request:\n"+requestIdentifier.toString());
+		close();		// in case re-used without having been closed
+		queryStartTime = System.currentTimeMillis();
+		numberOfMatchesReturned = 0;
+		queryKeysUsed = new HashSet();
 		this.requestIdentifier=requestIdentifier;
 		databaseStatement = null;
 		resultSet = null;
@@ -367,6 +559,11 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 		queryRetrieveLevel =  Attribute.getSingleStringValueOrNull(requestIdentifier,TagFromName.QueryRetrieveLevel);
 		additionalKeysToReturnAsZeroLength = null;	// filled in on first next() and used on subsequent next()'s
 		unsupportedOptionalKeysPresent = false;		// filled in on first next() and used on subsequent next()'
+		selectedModalitiesInStudy = false;
+		selectedSOPClassesInStudy = false;
+		selectedNumberOfStudyRelatedSeries = false;
+		selectedNumberOfStudyRelatedInstances = false;
+		selectedNumberOfSeriesRelatedInstances = false;
 		
 //System.err.println("DicomDatabaseQueryResponseGenerator.performQuery(): queryRetrieveLevel = "+queryRetrieveLevel);
 		InformationEntity ieWanted = getInformationEntityForQueryRetieveLevel(queryRetrieveLevel);
@@ -379,6 +576,7 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 		StringBuffer matchBuffer = new StringBuffer();
 		StringBuffer selectBuffer = new StringBuffer();
 		StringBuffer fromBuffer = new StringBuffer();
+		List parameters = new ArrayList();		// the values to bind, in the order their ? appear in the match clause
 
 		if (ieWanted == null) {
 			setErrorStatus(ResponseStatus.IdentifierDoesNotMatchSOPClass,TagFromName.QueryRetrieveLevel,"QueryRetrieveLevel is missing or invalid");
@@ -447,17 +645,28 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 										 || ValueRepresentation.isDateTimeVR(vr))
 										) {
 											if (DateTimeRangeMatch.addToMatchClause(
-												matchBuffer,tableName,columnName,tag,requestIdentifier,dateTimeRangeMatchAlreadyDone)) {
+												matchBuffer,tableName,columnName,tag,requestIdentifier,dateTimeRangeMatchAlreadyDone,parameters)) {
 												used = true;
 											}
 										}
 										else if (ValueRepresentation.isPersonNameVR(vr)) {
 											StringBuffer nameMatchBuffer = new StringBuffer();
+											// with wildcards, such as *mit*, use the person name index to find the few candidates that contain the letters
+											// between the wildcards, rather than scanning every record; phonetic codes of parts of words are not useful then
+											Set requiredTrigramKeys = null;
+											if ((value.indexOf('*') != -1 || value.indexOf('?') != -1)
+											 && databaseInformationModel instanceof DicomDatabaseInformationModel
+											 && ((DicomDatabaseInformationModel)databaseInformationModel).isPersonNameIndexed(tableName,columnName)) {
+												requiredTrigramKeys = PersonNameIndex.getRequiredTrigramKeys(value);
+												if (requiredTrigramKeys.isEmpty()) {
+													requiredTrigramKeys = null;
+												}
+											}
 											String canonicalValue = null;
 											if (usePhoneticCanonicalPersonNameMatch || useCanonicalPersonNameMatch) {
 												canonicalValue = PersonNameAttribute.getCanonicalForm(value,true);
 											}
-											if (usePhoneticCanonicalPersonNameMatch && canonicalValue != null && canonicalValue.length() > 0) {
+											if (usePhoneticCanonicalPersonNameMatch && requiredTrigramKeys == null && canonicalValue != null && canonicalValue.length() > 0) {
 												String newColumnName =
 													  DatabaseInformationModel.personNamePhoneticCanonicalColumnNamePrefix
 													+ columnName
@@ -466,14 +675,14 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 													String phoneticCanonicalValue = PersonNameAttribute.getPhoneticName(canonicalValue,true);
 													addToMatchClause(nameMatchBuffer,tableName,newColumnName,
 														DicomDatabaseInformationModel.getQuotedValueOrNULL(phoneticCanonicalValue),
-														"OR");
+														"OR",parameters);
 													if (useSwappedPersonNameMatch) {
 														String swappedPhoneticCanonicalValue = PersonNameAttribute.swap(phoneticCanonicalValue);
 														if (!phoneticCanonicalValue.equals(swappedPhoneticCanonicalValue)) {
 															addToMatchClause(nameMatchBuffer,tableName,newColumnName,
 																DicomDatabaseInformationModel.getQuotedValueOrNULL(
 																	swappedPhoneticCanonicalValue),
-																"OR");
+																"OR",parameters);
 														}
 													}
 												}
@@ -486,18 +695,18 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 												if (databaseInformationModel.isAttributeUsedInTable(tableName,newColumnName)) {
 													addToMatchClause(nameMatchBuffer,tableName,newColumnName,
 														DicomDatabaseInformationModel.getQuotedValueOrNULL(canonicalValue),
-														"OR");
+														"OR",parameters);
 													if (useSwappedPersonNameMatch) {
 														String swappedCanonicalValue = PersonNameAttribute.swap(canonicalValue);
 														if (!canonicalValue.equals(swappedCanonicalValue)) {
 															addToMatchClause(nameMatchBuffer,tableName,newColumnName,
 																DicomDatabaseInformationModel.getQuotedValueOrNULL(swappedCanonicalValue),
-																"OR");
+																"OR",parameters);
 														}
 													}
 												}
 											}
-											addToMatchClause(nameMatchBuffer,tableName,columnName,value,"OR");
+											addToMatchClause(nameMatchBuffer,tableName,columnName,value,"OR",parameters);
 											if (nameMatchBuffer.length() > 0) {
 												if (matchBuffer.length() > 0) {
 													matchBuffer.append(" AND ");
@@ -505,12 +714,22 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 												matchBuffer.append("(");
 												matchBuffer.append(nameMatchBuffer);
 												matchBuffer.append(")");
+												if (requiredTrigramKeys != null) {
+													matchBuffer.append(" AND ");
+													PersonNameIndex.appendRecordHasAllKeys(matchBuffer,tableName,
+														databaseInformationModel.getLocalPrimaryKeyColumnName(ieDatabase),
+														((DicomDatabaseInformationModel)databaseInformationModel).getPersonNameIndexAttributeName(),
+														requiredTrigramKeys,parameters);
+												}
 												used = true;
 											}
 										}
 									}
 									if (!used && !tag.equals(TagFromName.SpecificCharacterSet)) {	// Do NOT match on Specific Character Set; fixes [bugs.mrmf] (000220) Instance level query failing because matching on Specific Character Set
-										addToMatchClause(matchBuffer,tableName,columnName,value);
+										addToMatchClause(matchBuffer,tableName,columnName,value,parameters);
+										if (!value.startsWith("'*") && !value.startsWith("'?")) {		// an index cannot help with a leading wildcard
+											queryKeysUsed.add(QueryKeyStatistics.makeKey(tableName,columnName));
+										}
 									}
 								}
 							}
@@ -520,7 +739,7 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 								if (tag.equals(uniqueKey)) {
 //System.err.println("DicomDatabaseQueryResponseGenerator.performQuery(): using as unique key "+ieDatabase+" entity for identifier attribute "+columnName+" with value "+value);
 									if (value != null && value.length() > 0 && !value.equals("NULL")) {
-										addToMatchClause(matchBuffer,tableName,columnName,value);
+										addToMatchClause(matchBuffer,tableName,columnName,value,parameters);
 									}
 									else {
 										setErrorStatus(ResponseStatus.IdentifierDoesNotMatchSOPClass,tag,"Unique key required above query level");
@@ -544,6 +763,9 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 				}
 				ieQuery = getChildTypeForParent(querySOPClassUID,ieQuery);
 			}
+			if (hasAggregateAttributes) {
+				addAggregateAttributesToQuery(ieWanted,selectBuffer,fromBuffer,matchBuffer,parameters);
+			}
 //System.err.println("DicomDatabaseQueryResponseGenerator.performQuery(): join clause "+joinBuffer);
 //System.err.println("DicomDatabaseQueryResponseGenerator.performQuery(): match clause "+matchBuffer);
 //System.err.println("DicomDatabaseQueryResponseGenerator.performQuery(): selection clause "+selectBuffer);
@@ -567,16 +789,38 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 				b.append(" WHERE ");
 				b.append(matchBuffer);
 			}
-			b.append(";");
-if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.performQuery(): query "+b);
+			// no values in the SQL itself, only ? for each parameter, so the same SQL is re-used for queries of the same shape
+if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.performQuery(): query "+b+" parameters "+parameters);
+			long executionStartTime = System.nanoTime();
 			try {
-				databaseStatement = databaseInformationModel.createStatement();
-				resultSet = databaseStatement.executeQuery(b.toString());
+				databaseConnection = databaseInformationModel.borrowConnectionForReading();
+				preparedStatementSQL = b.toString();
+				PreparedStatement preparedStatement = databaseInformationModel.borrowPreparedStatement(databaseConnection,preparedStatementSQL);
+				databaseStatement = preparedStatement;
+				// always set limits, since statement may have been used before with different ones
+				// one more than allowed, to detect that the limit has been exceeded, unless rows may yet be discarded, in which case next() counts the matches
+				preparedStatement.setMaxRows(maximumNumberOfMatches > 0 && !isMatchingPerformedAfterQuery() ? maximumNumberOfMatches+1 : 0);
+				preparedStatement.setQueryTimeout(timeout > 0 ? (int)((timeout+999)/1000) : 0);				// whole seconds
+				preparedStatement.setFetchSize(defaultFetchSize);
+				for (int p=0; p<parameters.size(); ++p) {
+					preparedStatement.setObject(p+1,parameters.get(p));
+				}
+				resultSet = preparedStatement.executeQuery();
 				resultSetMetaData = resultSet.getMetaData();
 			}
 			catch (SQLException e) {
-				e.printStackTrace(System.err);
-				setErrorStatus(ResponseStatus.UnableToProcess,null,e.getMessage());
+				if (hasTimedOut()) {
+					setTimedOutStatus();
+				}
+				else {
+					e.printStackTrace(System.err);
+					setErrorStatus(ResponseStatus.UnableToProcess,null,e.getMessage());
+				}
+			}
+			queryExecutionNanoseconds = System.nanoTime()-executionStartTime;
+			databaseInformationModel.getOperationStatistics().record("performQuery",queryExecutionNanoseconds);
+			if (resultSet == null) {
+				queryKeysUsed = null;		// failed, so not representative
 			}
 		}
 	}
@@ -749,6 +993,10 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 		// should check that we never add the same attribute more than once (e.g. if occurs in more than one table ?) :(
 		AttributeList responseIdentifier = null;
 		try {
+			if (resultSet != null && hasTimedOut()) {
+				setTimedOutStatus();
+				resultSet = null;
+			}
 			while (responseIdentifier == null && resultSet != null && resultSet.next()) {		// loop in case we have discarded this match for some reason
 			//if (resultSet != null && resultSet.next()) {
 				responseIdentifier = makeDicomAttributeListFromResultSetRow(resultSet,resultSetMetaData);	// already includes SpecificCharacterSet as required
@@ -791,28 +1039,34 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.perf
 					 && responseIdentifier.get(TagFromName.ModalitiesInStudy) == null		// i.e., isn't in database table already (which it normally isn't)
 					 && queryRetrieveLevel.equals("STUDY")) {
 						try {
-							Attribute aStudyInstanceUID = responseIdentifier.get(TagFromName.StudyInstanceUID);
-							String vStudyInstanceUID = null;
-							try {
-								vStudyInstanceUID = DicomDatabaseInformationModel.getQuotedEscapedSingleStringValueOrNull(aStudyInstanceUID);
+							Set responseValues = null;
+							if (selectedModalitiesInStudy) {
+								responseValues = DicomDatabaseInformationModel.getValuesFromAggregateValue(resultSet.getString(DicomDatabaseInformationModel.derivedModalitiesInStudyColumnName));
 							}
-							catch (DicomException e) {
-							}
-							String query = makeForAllSeriesInStudyStatement(TagFromName.Modality,vStudyInstanceUID);
+							else {
+								Attribute aStudyInstanceUID = responseIdentifier.get(TagFromName.StudyInstanceUID);
+								String vStudyInstanceUID = null;
+								try {
+									vStudyInstanceUID = DicomDatabaseInformationModel.getQuotedEscapedSingleStringValueOrNull(aStudyInstanceUID);
+								}
+								catch (DicomException e) {
+								}
+								String query = makeForAllSeriesInStudyStatement(TagFromName.Modality,vStudyInstanceUID);
 if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next(): ModalitiesInStudy query "+query);
-							Statement s = databaseInformationModel.createStatement();
-							ResultSet r = databaseStatement.executeQuery(query);
-							Set responseValues = new TreeSet();
-							if (r != null) {
-								while (r.next()) {
-									String value = r.getString(modalityColumnName);
+								Statement s = databaseConnection.createStatement();
+								ResultSet r = s.executeQuery(query);
+								responseValues = new TreeSet();
+								if (r != null) {
+									while (r.next()) {
+										String value = r.getString(modalityColumnName);
 //System.err.println("DicomDatabaseQueryResponseGenerator.next(): for ModalitiesInStudy response, got Modality = "+value);
-									if (value != null && value.length() > 0/* && !value.equals("NULL")*/) {
-										responseValues.add(value);
+										if (value != null && value.length() > 0/* && !value.equals("NULL")*/) {
+											responseValues.add(value);
+										}
 									}
 								}
+								s.close();
 							}
-							s.close();
 //System.err.println("DicomDatabaseQueryResponseGenerator.next(): for ModalitiesInStudy, before matching responseValues = "+responseValues);
 							// perform matching, but only if necessary (that is, if a value rather than zero length was supplied in the request)
 							String[] requestValues = Attribute.getStringValues(requestIdentifier,TagFromName.ModalitiesInStudy);
@@ -848,28 +1102,34 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next
 					 && responseIdentifier.get(TagFromName.SOPClassesInStudy) == null		// i.e., isn't in database table already (which it normally isn't)
 					 && queryRetrieveLevel.equals("STUDY")) {
 						try {
-							Attribute aStudyInstanceUID = responseIdentifier.get(TagFromName.StudyInstanceUID);
-							String vStudyInstanceUID = null;
-							try {
-								vStudyInstanceUID = DicomDatabaseInformationModel.getQuotedEscapedSingleStringValueOrNull(aStudyInstanceUID);
-							}
-							catch (DicomException e) {
+							Set responseValues = null;
+							if (selectedSOPClassesInStudy) {
+								responseValues = DicomDatabaseInformationModel.getValuesFromAggregateValue(resultSet.getString(DicomDatabaseInformationModel.derivedSOPClassesInStudyColumnName));
 							}
-							String query = makeForAllInstancesInStudyStatement(TagFromName.SOPClassUID,vStudyInstanceUID);
+							else {
+								Attribute aStudyInstanceUID = responseIdentifier.get(TagFromName.StudyInstanceUID);
+								String vStudyInstanceUID = null;
+								try {
+									vStudyInstanceUID = DicomDatabaseInformationModel.getQuotedEscapedSingleStringValueOrNull(aStudyInstanceUID);
+								}
+								catch (DicomException e) {
+								}
+								String query = makeForAllInstancesInStudyStatement(TagFromName.SOPClassUID,vStudyInstanceUID);
 if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next(): SOPClassesInStudy query "+query);
-							Statement s = databaseInformationModel.createStatement();
-							ResultSet r = databaseStatement.executeQuery(query);
-							Set responseValues = new TreeSet();
-							if (r != null) {
-								while (r.next()) {
-									String value = r.getString(sopClassUIDColumnName);
+								Statement s = databaseConnection.createStatement();
+								ResultSet r = s.executeQuery(query);
+								responseValues = new TreeSet();
+								if (r != null) {
+									while (r.next()) {
+										String value = r.getString(sopClassUIDColumnName);
 //System.err.println("DicomDatabaseQueryResponseGenerator.next(): got SOP Class "+value);
-									if (value != null && value.length() > 0/* && !value.equals("NULL")*/) {
-										responseValues.add(value);
+										if (value != null && value.length() > 0/* && !value.equals("NULL")*/) {
+											responseValues.add(value);
+										}
 									}
 								}
+								s.close();
 							}
-							s.close();
 //System.err.println("DicomDatabaseQueryResponseGenerator.next(): for SOPClassesInStudy, before matching responseValues = "+responseValues);
 							// perform matching, but only if necessary (that is, if a value rather than zero length was supplied in the request)
 							String[] requestValues = Attribute.getStringValues(requestIdentifier,TagFromName.SOPClassesInStudy);
@@ -904,29 +1164,36 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next
 					 && responseIdentifier.get(TagFromName.NumberOfStudyRelatedInstances) == null	// i.e., isn't in database table already (which it normally isn't)
 					 && queryRetrieveLevel.equals("STUDY")) {
 						try {
-							Attribute aStudyInstanceUID = responseIdentifier.get(TagFromName.StudyInstanceUID);
-							String vStudyInstanceUID = null;
-							try {
-								vStudyInstanceUID = DicomDatabaseInformationModel.getQuotedEscapedSingleStringValueOrNull(aStudyInstanceUID);
-							}
-							catch (DicomException e) {
+							if (selectedNumberOfStudyRelatedInstances) {
+								Attribute a = new IntegerStringAttribute(TagFromName.NumberOfStudyRelatedInstances);
+								a.addValue(resultSet.getInt(DicomDatabaseInformationModel.derivedNumberOfStudyRelatedInstancesColumnName));
+								responseIdentifier.put(a);
 							}
-							String query = makeForAllInstancesInStudyStatement(TagFromName.SOPInstanceUID,vStudyInstanceUID);
+							else {
+								Attribute aStudyInstanceUID = responseIdentifier.get(TagFromName.StudyInstanceUID);
+								String vStudyInstanceUID = null;
+								try {
+									vStudyInstanceUID = DicomDatabaseInformationModel.getQuotedEscapedSingleStringValueOrNull(aStudyInstanceUID);
+								}
+								catch (DicomException e) {
+								}
+								String query = makeForAllInstancesInStudyStatement(TagFromName.SOPInstanceUID,vStudyInstanceUID);
 if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next(): NumberOfStudyRelatedInstances query "+query);
-							Statement s = databaseInformationModel.createStatement();
-							ResultSet r = databaseStatement.executeQuery(query);
-							if (r != null) {
-								//r.last();			// fails if result set type is not forward
-								//int count = r.getRow();
-								int count = 0;			// so keep it simple and do it the (perhaps) slow way
-								while (r.next()) {
-									++count;
+								Statement s = databaseConnection.createStatement();
+								ResultSet r = s.executeQuery(query);
+								if (r != null) {
+									//r.last();			// fails if result set type is not forward
+									//int count = r.getRow();
+									int count = 0;			// so keep it simple and do it the (perhaps) slow way
+									while (r.next()) {
+										++count;
+									}
+									Attribute a = new IntegerStringAttribute(TagFromName.NumberOfStudyRelatedInstances);
+									a.addValue(count);
+									responseIdentifier.put(a);
 								}
-								Attribute a = new IntegerStringAttribute(TagFromName.NumberOfStudyRelatedInstances);
-								a.addValue(count);
-								responseIdentifier.put(a);
+								s.close();
 							}
-							s.close();
 						}
 						catch (SQLException e) {
 							e.printStackTrace(System.err);
@@ -938,29 +1205,36 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next
 					 && responseIdentifier.get(TagFromName.NumberOfStudyRelatedSeries) == null	// i.e., isn't in database table already (which it normally isn't)
 					 && queryRetrieveLevel.equals("STUDY")) {
 						try {
-							Attribute aStudyInstanceUID = responseIdentifier.get(TagFromName.StudyInstanceUID);
-							String vStudyInstanceUID = null;
-							try {
-								vStudyInstanceUID = DicomDatabaseInformationModel.getQuotedEscapedSingleStringValueOrNull(aStudyInstanceUID);
-							}
-							catch (DicomException e) {
+							if (selectedNumberOfStudyRelatedSeries) {
+								Attribute a = new IntegerStringAttribute(TagFromName.NumberOfStudyRelatedSeries);
+								a.addValue(resultSet.getInt(DicomDatabaseInformationModel.derivedNumberOfStudyRelatedSeriesColumnName));
+								responseIdentifier.put(a);
 							}
-							String query = makeForAllSeriesInStudyStatement(TagFromName.SeriesInstanceUID,vStudyInstanceUID);
+							else {
+								Attribute aStudyInstanceUID = responseIdentifier.get(TagFromName.StudyInstanceUID);
+								String vStudyInstanceUID = null;
+								try {
+									vStudyInstanceUID = DicomDatabaseInformationModel.getQuotedEscapedSingleStringValueOrNull(aStudyInstanceUID);
+								}
+								catch (DicomException e) {
+								}
+								String query = makeForAllSeriesInStudyStatement(TagFromName.SeriesInstanceUID,vStudyInstanceUID);
 if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next(): NumberOfStudyRelatedSeries query "+query);
-							Statement s = databaseInformationModel.createStatement();
-							ResultSet r = databaseStatement.executeQuery(query);
-							if (r != null) {
-								//r.last();			// fails if result set type is not forward
-								//int count = r.getRow();
-								int count = 0;			// so keep it simple and do it the (perhaps) slow way
-								while (r.next()) {
-									++count;
+								Statement s = databaseConnection.createStatement();
+								ResultSet r = s.executeQuery(query);
+								if (r != null) {
+									//r.last();			// fails if result set type is not forward
+									//int count = r.getRow();
+									int count = 0;			// so keep it simple and do it the (perhaps) slow way
+									while (r.next()) {
+										++count;
+									}
+									Attribute a = new IntegerStringAttribute(TagFromName.NumberOfStudyRelatedSeries);
+									a.addValue(count);
+									responseIdentifier.put(a);
 								}
-								Attribute a = new IntegerStringAttribute(TagFromName.NumberOfStudyRelatedSeries);
-								a.addValue(count);
-								responseIdentifier.put(a);
+								s.close();
 							}
-							s.close();
 						}
 						catch (SQLException e) {
 							e.printStackTrace(System.err);
@@ -972,29 +1246,36 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next
 					 && responseIdentifier.get(TagFromName.NumberOfSeriesRelatedInstances) == null	// i.e., isn't in database table already (which it normally isn't)
 					 && queryRetrieveLevel.equals("SERIES")) {
 						try {
-							Attribute aSeriesInstanceUID = responseIdentifier.get(TagFromName.SeriesInstanceUID);
-							String vSeriesInstanceUID = null;
-							try {
-								vSeriesInstanceUID = DicomDatabaseInformationModel.getQuotedEscapedSingleStringValueOrNull(aSeriesInstanceUID);
-							}
-							catch (DicomException e) {
+							if (selectedNumberOfSeriesRelatedInstances) {
+								Attribute a = new IntegerStringAttribute(TagFromName.NumberOfSeriesRelatedInstances);
+								a.addValue(resultSet.getInt(DicomDatabaseInformationModel.derivedNumberOfSeriesRelatedInstancesColumnName));
+								responseIdentifier.put(a);
 							}
-							String query = makeForAllInstancesInSeriesStatement(TagFromName.SOPInstanceUID,vSeriesInstanceUID);
+							else {
+								Attribute aSeriesInstanceUID = responseIdentifier.get(TagFromName.SeriesInstanceUID);
+								String vSeriesInstanceUID = null;
+								try {
+									vSeriesInstanceUID = DicomDatabaseInformationModel.getQuotedEscapedSingleStringValueOrNull(aSeriesInstanceUID);
+								}
+								catch (DicomException e) {
+								}
+								String query = makeForAllInstancesInSeriesStatement(TagFromName.SOPInstanceUID,vSeriesInstanceUID);
 if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next(): NumberOfSeriesRelatedInstances query "+query);
-							Statement s = databaseInformationModel.createStatement();
-							ResultSet r = databaseStatement.executeQuery(query);
-							if (r != null) {
-								//r.last();			// fails if result set type is not forward
-								//int count = r.getRow();
-								int count = 0;			// so keep it simple and do it the (perhaps) slow way
-								while (r.next()) {
-									++count;
+								Statement s = databaseConnection.createStatement();
+								ResultSet r = s.executeQuery(query);
+								if (r != null) {
+									//r.last();			// fails if result set type is not forward
+									//int count = r.getRow();
+									int count = 0;			// so keep it simple and do it the (perhaps) slow way
+									while (r.next()) {
+										++count;
+									}
+									Attribute a = new IntegerStringAttribute(TagFromName.NumberOfSeriesRelatedInstances);
+									a.addValue(count);
+									responseIdentifier.put(a);
 								}
-								Attribute a = new IntegerStringAttribute(TagFromName.NumberOfSeriesRelatedInstances);
-								a.addValue(count);
-								responseIdentifier.put(a);
+								s.close();
 							}
-							s.close();
 						}
 						catch (SQLException e) {
 							e.printStackTrace(System.err);
@@ -1005,11 +1286,27 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next
 			}
 		}
 		catch (SQLException e) {
-			e.printStackTrace(System.err);
+			if (hasTimedOut()) {
+				setTimedOutStatus();
+				resultSet = null;
+				responseIdentifier = null;
+			}
+			else {
+				e.printStackTrace(System.err);
+			}
 		}
 		catch (DicomException e) {
 			e.printStackTrace(System.err);
 		}
+		if (responseIdentifier != null && maximumNumberOfMatches > 0 && numberOfMatchesReturned >= maximumNumberOfMatches) {
+			// only now is it known that there is another match, rather than another row that would have been discarded
+			setErrorStatus(ResponseStatus.RefusedOutOfResources,null,"More than "+maximumNumberOfMatches+" matches");
+			resultSet = null;		// stop here
+			responseIdentifier = null;
+		}
+		if (responseIdentifier != null) {
+			++numberOfMatchesReturned;
+		}
 		return responseIdentifier;
 	}
 	
@@ -1020,17 +1317,38 @@ if (debugLevel > 0) System.err.println("DicomDatabaseQueryResponseGenerator.next
 	public String getErrorComment() { return errorComment; }
 	
 	public void close() {
-		resultSet=null;
-		resultSetMetaData=null;
-		if (databaseStatement != null) {
+		if (resultSet != null) {
 			try {
-				databaseStatement.close();
+				resultSet.close();
 			}
 			catch (SQLException e) {
 				e.printStackTrace(System.err);
 			}
+		}
+		resultSet=null;
+		resultSetMetaData=null;
+		if (databaseStatement != null) {
+			if (preparedStatementSQL != null) {
+				databaseInformationModel.givePreparedStatementBack(databaseConnection,preparedStatementSQL,(PreparedStatement)databaseStatement);
+			}
+			else {
+				try {
+					databaseStatement.close();
+				}
+				catch (SQLException e) {
+					e.printStackTrace(System.err);
+				}
+			}
 			databaseStatement=null;
 		}
+		preparedStatementSQL=null;
+		databaseInformationModel.giveConnectionBack(databaseConnection);
+		databaseConnection=null;
+		if (queryKeysUsed != null && !queryKeysUsed.isEmpty()) {
+			// record only now, so that the number of matches returned is known
+			databaseInformationModel.getQueryKeyStatistics().record(queryKeysUsed,queryExecutionNanoseconds,numberOfMatchesReturned);
+		}
+		queryKeysUsed=null;
 	}
 	
 	public boolean allOptionalKeysSuppliedWereSupported() {
@@ -23,6 +23,7 @@ import com.pixelmed.network.ResponseStatus;
 
 import com.pixelmed.query.RetrieveResponseGenerator;
 
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.ResultSet;
@@ -142,9 +143,25 @@ class DicomDatabaseRetrieveResponseGenerator implements RetrieveResponseGenerato
 			b.append(tableName);
 			b.append(".");
 			b.append(columnName);
-			b.append(" = ");
 			try {
-				b.append(DicomDatabaseInformationModel.getQuotedEscapedSingleStringValueOrNull(a));
+				if (a.getVM() > 1) {
+					// a list of unique keys is permitted in a retrieval, and matches any of them
+					b.append(" IN (");
+					String[] values = a.getStringValues();
+					for (int i=0; i<values.length; ++i) {
+						Attribute oneValue = AttributeFactory.newAttribute(tag,a.getVR());
+						oneValue.addValue(values[i]);
+						if (i > 0) {
+							b.append(",");
+						}
+						b.append(DicomDatabaseInformationModel.getQuotedEscapedSingleStringValueOrNull(oneValue));
+					}
+					b.append(")");
+				}
+				else {
+					b.append(" = ");
+					b.append(DicomDatabaseInformationModel.getQuotedEscapedSingleStringValueOrNull(a));
+				}
 			}
 			catch (DicomException e) {
 				e.printStackTrace(System.err);
@@ -300,8 +317,11 @@ if (debugLevel > 0) System.err.println("DicomDatabaseRetrieveResponseGenerator.p
 		String query = buildSelectStatementForLevelAndModelFromUniqueKeysInRequestIdentifier(retrieveSOPClassUID,queryRetrieveLevel,requestIdentifier,offendingElement);
 if (debugLevel > 0) System.err.println("DicomDatabaseRetrieveResponseGenerator.performRetrieve(): query: "+query);
 		if (query != null) {
+			long startTime = System.nanoTime();
+			Connection databaseConnection = null;
 			try {
-				Statement databaseStatement = databaseInformationModel.createStatement();
+				databaseConnection = databaseInformationModel.getConnectionForReading();
+				Statement databaseStatement = databaseConnection.createStatement();
 				ResultSet resultSet = databaseStatement.executeQuery(query);
 				dicomFiles = new SetOfDicomFiles();
 				if (resultSet != null) {
@@ -322,6 +342,10 @@ if (debugLevel > 0) System.err.println("DicomDatabaseRetrieveResponseGenerator.p
 				dicomFiles = null;
 				setErrorStatus(ResponseStatus.UnableToProcess,null,e.getMessage());
 			}
+			finally {
+				databaseInformationModel.releaseConnection(databaseConnection);
+				databaseInformationModel.getOperationStatistics().record("performRetrieve",System.nanoTime()-startTime);
+			}
 		}
 		else {
 			dicomFiles = null;
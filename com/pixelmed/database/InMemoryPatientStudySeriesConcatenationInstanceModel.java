@@ -0,0 +1,182 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.database;
+
+import com.pixelmed.dicom.*;
+
+import java.sql.*;
+
+/**
+ * <p>The {@link com.pixelmed.database.InMemoryPatientStudySeriesConcatenationInstanceModel InMemoryPatientStudySeriesConcatenationInstanceModel} class
+ * supports the same DICOM Patient/Study/Series/Concatenation/Instance model as {@link com.pixelmed.database.PatientStudySeriesConcatenationInstanceModel PatientStudySeriesConcatenationInstanceModel},
+ * but keeps all the records and their indexes in memory, for the fastest possible queries when the number of instances is not too large for the memory available.</p>
+ *
+ * <p>The records are persisted by the database appending each change to a log, and writing a snapshot of all the records
+ * (and truncating the log) whenever the log grows beyond a certain size, as well as when the model is closed. When the model is
+ * constructed again, the most recent snapshot is loaded and the log replayed, which is much faster than reading from disk the
+ * records of cached tables as they are needed. A database in memory only (i.e., not persisted), may be used by specifying
+ * a database file name of the form "mem:name".</p>
+ *
+ * <p>In addition to the indexes of the UIDs, Patient ID and Patient's Name used by {@link com.pixelmed.database.PatientStudySeriesConcatenationInstanceModel PatientStudySeriesConcatenationInstanceModel},
+ * indexes are created for the other attributes most commonly used as matching keys in queries, i.e., the canonical and phonetic forms
+ * of Patient's Name, Accession Number and Modality. Study Date is not indexed, since it is matched using the combined Study Date and Time,
+ * which is indexed by every {@link com.pixelmed.database.DicomDatabaseInformationModel DicomDatabaseInformationModel}.</p>
+ *
+ * <p>Since the SQL tables are the same, apart from where they are kept, the query and retrieve response generators used with any
+ * {@link com.pixelmed.database.DicomDatabaseInformationModel DicomDatabaseInformationModel} are used unchanged. Only new databases are created
+ * with tables in memory; an existing database keeps whatever type of tables it was created with, but may be converted by rebuilding it with
+ * {@link com.pixelmed.database.RebuildDatabaseFromInstanceFiles RebuildDatabaseFromInstanceFiles}.</p>
+ *
+ * @see com.pixelmed.database.PatientStudySeriesConcatenationInstanceModel
+ *
+ * @author	agent
+ */
+public class InMemoryPatientStudySeriesConcatenationInstanceModel extends PatientStudySeriesConcatenationInstanceModel {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	public static final int defaultLogSizeBeforeSnapshot = 200;		// MB
+
+	/**
+	 * <p>Construct a model with the attributes from the default dictionary.</p>
+	 *
+	 * <p>The dictionary {@link com.pixelmed.database.DicomDictionaryForPatientStudySeriesConcatenationInstanceModel DicomDictionaryForPatientStudySeriesConcatenationInstanceModel} is used.</p>
+	 *
+	 * @param	databaseFileName
+	 * @exception	DicomException
+	 */
+	public InMemoryPatientStudySeriesConcatenationInstanceModel(String databaseFileName) throws DicomException {
+		super(databaseFileName);
+		if (!databaseFileName.startsWith("mem:")) {
+			setLogSizeBeforeSnapshot(defaultLogSizeBeforeSnapshot);
+		}
+	}
+
+	/**
+	 * <p>Construct a model with the attributes from the default dictionary allowing external SQL access.</p>
+	 *
+	 * <p>The dictionary {@link com.pixelmed.database.DicomDictionaryForPatientStudySeriesConcatenationInstanceModel DicomDictionaryForPatientStudySeriesConcatenationInstanceModel} is used.</p>
+	 *
+	 * @param	databaseFileName
+	 * @param	databaseServerName
+	 * @exception	DicomException
+	 */
+	public InMemoryPatientStudySeriesConcatenationInstanceModel(String databaseFileName,String databaseServerName) throws DicomException {
+		super(databaseFileName,databaseServerName);
+		if (!databaseFileName.startsWith("mem:")) {
+			setLogSizeBeforeSnapshot(defaultLogSizeBeforeSnapshot);
+		}
+	}
+
+	/**
+	 * <p>Construct a model with the attributes from the specified dictionary allowing external SQL access.</p>
+	 *
+	 * @param	databaseFileName
+	 * @param	databaseServerName
+	 * @param	dictionary
+	 * @param	databaseRootName
+	 * @exception	DicomException
+	 */
+	public InMemoryPatientStudySeriesConcatenationInstanceModel(String databaseFileName,String databaseServerName,DicomDictionary dictionary,String databaseRootName) throws DicomException {
+		super(databaseFileName,databaseServerName,dictionary,databaseRootName);
+		if (!databaseFileName.startsWith("mem:")) {
+			setLogSizeBeforeSnapshot(defaultLogSizeBeforeSnapshot);
+		}
+	}
+
+	/**
+	 * <p>Keep the records of new tables in memory.</p>
+	 *
+	 * @return	MEMORY
+	 */
+	protected String getTableTypeForCreateStatement() {
+		return "MEMORY";
+	}
+
+	/**
+	 * <p>Set how large the log of changes may grow before a new snapshot is written and the log truncated.</p>
+	 *
+	 * <p>A smaller size makes the model faster to construct again, since there is less of the log to replay, at the expense of writing
+	 * snapshots more often.</p>
+	 *
+	 * <p>The SQL statement to set the size differs between versions of the database, so that of later versions is tried first,
+	 * and if not recognized, that of earlier versions.</p>
+	 *
+	 * @param	logSize			in MB, or 0 if a snapshot is to be written only when the model is closed
+	 * @exception	DicomException	thrown if the size cannot be set
+	 */
+	public void setLogSizeBeforeSnapshot(int logSize) throws DicomException {
+		try {
+			executeOnConnectionForWriting("SET FILES LOG SIZE "+logSize);	// HSQLDB 2.x
+		}
+		catch (SQLException e) {
+			try {
+				executeOnConnectionForWriting("SET LOGSIZE "+logSize);		// HSQLDB 1.8
+			}
+			catch (SQLException e18) {
+				throw new DicomException("Cannot set log size: "+e18);
+			}
+		}
+	}
+
+	/**
+	 * @param	s
+	 * @param	indexName
+	 * @param	tableName
+	 * @param	columnName
+	 * @param	errors
+	 * @return				true if the index was created
+	 */
+	private boolean createIndex(Statement s,String indexName,String tableName,String columnName,StringBuffer errors) {
+		try {
+			s.execute("CREATE INDEX "+indexName+" ON "+tableName+" ("+columnName+")");
+			return true;
+		}
+		catch (SQLException e) {
+			errors.append("Cannot create index of "+columnName+": "+e);
+			return false;
+		}
+	}
+
+	/**
+	 * <p>Create additional indexes on the attributes commonly used as matching keys, as well as UIDs, to optimize queries.</p>
+	 *
+	 * <p>Only those attributes that are in the dictionary used to create the tables are indexed.</p>
+	 */
+	protected void createAdditionalIndexes() throws DicomException {
+//System.err.println("InMemoryPatientStudySeriesConcatenationInstanceModel.createAdditionalIndexes():");
+		super.createAdditionalIndexes();
+		boolean success = true;
+		StringBuffer errors = new StringBuffer();
+		Connection connection = null;
+		try {
+			connection = getConnectionForWriting();
+			Statement s = connection.createStatement();
+			if (dictionary.getInformationEntityFromTag(TagFromName.PatientName) == InformationEntity.PATIENT) {
+				success &= createIndex(s,"PATIENT_NAME_CANONICAL_IDX","PATIENT",
+					personNameCanonicalColumnNamePrefix+"PATIENTNAME"+personNameCanonicalColumnNameSuffix,errors);
+				success &= createIndex(s,"PATIENT_NAME_PHONETICCANONICAL_IDX","PATIENT",
+					personNamePhoneticCanonicalColumnNamePrefix+"PATIENTNAME"+personNamePhoneticCanonicalColumnNameSuffix,errors);
+			}
+			if (dictionary.getInformationEntityFromTag(TagFromName.AccessionNumber) == InformationEntity.STUDY) {
+				success &= createIndex(s,"STUDY_ACCESSIONNUMBER_IDX","STUDY","ACCESSIONNUMBER",errors);
+			}
+			if (dictionary.getInformationEntityFromTag(TagFromName.Modality) == InformationEntity.SERIES) {
+				success &= createIndex(s,"SERIES_MODALITY_IDX","SERIES","MODALITY",errors);
+			}
+			s.close();
+		}
+		catch (SQLException e) {
+			errors.append("Cannot create additional indexes: "+e);
+			success = false;
+		}
+		finally {
+			releaseConnection(connection);
+		}
+		if (!success) {
+			throw new DicomException(errors.toString());
+		}
+	}
+}
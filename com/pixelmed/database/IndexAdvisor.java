@@ -0,0 +1,685 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.database;
+
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.InformationEntity;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * <p>This class uses the {@link com.pixelmed.database.QueryKeyStatistics QueryKeyStatistics} recorded by the query response generator of a
+ * {@link com.pixelmed.database.DatabaseInformationModel DatabaseInformationModel} to recommend which columns should be indexed, and to
+ * create and drop those indexes, either when asked or periodically, without closing the database.</p>
+ *
+ * <p>An index is recommended for a column that is not already the first column of some index, that has been used as a matching key by
+ * at least a minimum number of queries, and whose values are sufficiently distinct (selective) that an index is more useful
+ * than scanning the table, as long as the table has enough rows for this to matter at all.</p>
+ *
+ * <p>An index created by the advisor (and only such an index, recognized by the prefix of its name) is recommended to be dropped
+ * if no query has used its column for several successive evaluations, and the index has existed for at least a minimum time, i.e., it is
+ * only costing time when records are inserted, and is not just waiting for queries that happen only at certain times of day.
+ * The indexes created by the model itself (such as those of UIDs) are never dropped.</p>
+ *
+ * <p>Since counting the distinct values of a column means reading the whole table, the counts are kept between evaluations,
+ * and only counted again once the number of rows in the table has changed by more than a certain fraction.</p>
+ *
+ * <p>When an index is created or dropped, the statistics of the query latency for its column are started afresh, so that
+ * the {@link #getReport() report} can compare the latency before and after the change.</p>
+ *
+ * @author	agent
+ */
+public class IndexAdvisor {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	public static final String automaticIndexNamePrefix = "PM_AUTO_";
+	/***/
+	public static final String automaticIndexNameSuffix = "_IDX";
+
+	/***/
+	public static final long defaultMinimumNumberOfQueries = 20;
+	/***/
+	public static final double defaultMinimumFractionOfDistinctValues = 0.01;
+	/***/
+	public static final long defaultMinimumNumberOfRows = 1000;
+	/***/
+	public static final int defaultMinimumNumberOfIdleEvaluationsBeforeDrop = 3;
+	/***/
+	public static final long defaultMinimumAgeBeforeDrop = 24*60*60*1000l;		// ms, so that indexes used only at certain times of day are not dropped and created again
+	/***/
+	public static final double defaultMinimumFractionOfRowsChangedBeforeRecount = 0.1;
+
+	/***/
+	protected int debugLevel;
+
+	/***/
+	protected DatabaseInformationModel databaseInformationModel;
+
+	/***/
+	protected long minimumNumberOfQueries = defaultMinimumNumberOfQueries;
+	/***/
+	protected double minimumFractionOfDistinctValues = defaultMinimumFractionOfDistinctValues;
+	/***/
+	protected long minimumNumberOfRows = defaultMinimumNumberOfRows;
+
+	/***/
+	private IdleIndexTracker idleIndexTracker = new IdleIndexTracker(defaultMinimumNumberOfIdleEvaluationsBeforeDrop,defaultMinimumAgeBeforeDrop);
+	/***/
+	private DistinctValueCountCache distinctValueCountCache = new DistinctValueCountCache(defaultMinimumFractionOfRowsChangedBeforeRecount);
+	/***/
+	private List changes = new LinkedList();		// synchronize on this; of Change
+	/***/
+	private Timer timer;
+
+	/**
+	 * <p>A recommendation to create or drop an index of a column.</p>
+	 */
+	public static class Recommendation {
+		/***/
+		private boolean create;
+		/***/
+		private String tableName;
+		/***/
+		private String columnName;
+		/***/
+		private String indexName;
+		/***/
+		private String reason;
+
+		/**
+		 * @param	create		true if the index is to be created, false if it is to be dropped
+		 * @param	tableName	the upper case name of the table
+		 * @param	columnName	the upper case name of the column
+		 * @param	indexName	the name of the index
+		 * @param	reason		a human-readable explanation
+		 */
+		public Recommendation(boolean create,String tableName,String columnName,String indexName,String reason) {
+			this.create=create;
+			this.tableName=tableName;
+			this.columnName=columnName;
+			this.indexName=indexName;
+			this.reason=reason;
+		}
+
+		/***/
+		public boolean isCreate() { return create; }
+		/***/
+		public String getTableName() { return tableName; }
+		/***/
+		public String getColumnName() { return columnName; }
+		/***/
+		public String getIndexName() { return indexName; }
+		/***/
+		public String getReason() { return reason; }
+
+		public String toString() {
+			return (create ? "Create " : "Drop ")+indexName+" on "+tableName+" ("+columnName+"): "+reason;
+		}
+	}
+
+	/**
+	 * <p>Keeps track of how long each index created by the advisor has gone without being used by any query.</p>
+	 */
+	public static class IdleIndexTracker {
+		/***/
+		private int minimumNumberOfIdleEvaluations;
+		/***/
+		private long minimumAge;
+		/***/
+		private Map countOfQueriesAtLastEvaluationByIndexName = new HashMap();	// of Long
+		/***/
+		private Map numberOfIdleEvaluationsByIndexName = new HashMap();		// of Integer
+		/***/
+		private Map whenFirstKnownByIndexName = new HashMap();				// of Long, ms
+
+		/**
+		 * @param	minimumNumberOfIdleEvaluations	how many successive evaluations an index must not have been used for before it is dropped
+		 * @param	minimumAge						in ms, how long an index must have existed (or been known to exist) before it is dropped
+		 */
+		public IdleIndexTracker(int minimumNumberOfIdleEvaluations,long minimumAge) {
+			this.minimumNumberOfIdleEvaluations=minimumNumberOfIdleEvaluations;
+			this.minimumAge=minimumAge;
+		}
+
+		/***/
+		public synchronized void setMinimumNumberOfIdleEvaluations(int minimumNumberOfIdleEvaluations) { this.minimumNumberOfIdleEvaluations=minimumNumberOfIdleEvaluations; }
+		/***/
+		public synchronized void setMinimumAge(long minimumAge) { this.minimumAge=minimumAge; }
+
+		/**
+		 * <p>Note that an index has just been created, so that its age is known.</p>
+		 *
+		 * @param	indexName
+		 * @param	when		in ms
+		 */
+		public synchronized void created(String indexName,long when) {
+			forget(indexName);
+			whenFirstKnownByIndexName.put(indexName,new Long(when));
+		}
+
+		/**
+		 * <p>Forget an index, such as one that has been dropped.</p>
+		 *
+		 * @param	indexName
+		 */
+		public synchronized void forget(String indexName) {
+			countOfQueriesAtLastEvaluationByIndexName.remove(indexName);
+			numberOfIdleEvaluationsByIndexName.remove(indexName);
+			whenFirstKnownByIndexName.remove(indexName);
+		}
+
+		/**
+		 * <p>Forget any indexes that no longer exist.</p>
+		 *
+		 * @param	indexNames	the names of the indexes that still exist
+		 */
+		public synchronized void retainOnly(Set indexNames) {
+			countOfQueriesAtLastEvaluationByIndexName.keySet().retainAll(indexNames);
+			numberOfIdleEvaluationsByIndexName.keySet().retainAll(indexNames);
+			whenFirstKnownByIndexName.keySet().retainAll(indexNames);
+		}
+
+		/**
+		 * <p>Record how many queries have used the column of an index so far, and decide whether it should be dropped.</p>
+		 *
+		 * <p>An index that was not created since the advisor was constructed is treated as if created when first evaluated.</p>
+		 *
+		 * @param	indexName
+		 * @param	countOfQueries	how many queries have used the column of the index, which is unchanged if none have since the last evaluation
+		 * @param	now				in ms
+		 * @return					true if the index has been idle for enough evaluations and has existed for long enough
+		 */
+		public synchronized boolean evaluate(String indexName,long countOfQueries,long now) {
+			Long whenFirstKnown = (Long)(whenFirstKnownByIndexName.get(indexName));
+			if (whenFirstKnown == null) {
+				whenFirstKnown = new Long(now);
+				whenFirstKnownByIndexName.put(indexName,whenFirstKnown);
+			}
+			Long countAtLastEvaluation = (Long)(countOfQueriesAtLastEvaluationByIndexName.get(indexName));
+			Integer numberOfIdleEvaluations = (Integer)(numberOfIdleEvaluationsByIndexName.get(indexName));
+			int idle = countAtLastEvaluation != null && countAtLastEvaluation.longValue() == countOfQueries
+				? (numberOfIdleEvaluations == null ? 0 : numberOfIdleEvaluations.intValue()) + 1
+				: 0;
+			countOfQueriesAtLastEvaluationByIndexName.put(indexName,new Long(countOfQueries));
+			numberOfIdleEvaluationsByIndexName.put(indexName,new Integer(idle));
+			return idle >= minimumNumberOfIdleEvaluations && now - whenFirstKnown.longValue() >= minimumAge;
+		}
+
+		/**
+		 * @param	indexName
+		 * @return				how many successive evaluations the index has not been used for
+		 */
+		public synchronized int getNumberOfIdleEvaluations(String indexName) {
+			Integer numberOfIdleEvaluations = (Integer)(numberOfIdleEvaluationsByIndexName.get(indexName));
+			return numberOfIdleEvaluations == null ? 0 : numberOfIdleEvaluations.intValue();
+		}
+	}
+
+	/**
+	 * <p>Keeps the number of values and distinct values of each column counted, until the number of rows in its table has changed
+	 * by more than a certain fraction.</p>
+	 */
+	public static class DistinctValueCountCache {
+		/***/
+		private double minimumFractionOfRowsChanged;
+		/***/
+		private Map countsByKey = new HashMap();		// of long[3], the number of rows when counted, the number of values and the number of distinct values
+
+		/**
+		 * @param	minimumFractionOfRowsChanged	the fraction of the number of rows when counted by which the number of rows must change before counting again
+		 */
+		public DistinctValueCountCache(double minimumFractionOfRowsChanged) {
+			this.minimumFractionOfRowsChanged=minimumFractionOfRowsChanged;
+		}
+
+		/***/
+		public synchronized void setMinimumFractionOfRowsChanged(double minimumFractionOfRowsChanged) { this.minimumFractionOfRowsChanged=minimumFractionOfRowsChanged; }
+
+		/**
+		 * @param	key				the table and column, from {@link com.pixelmed.database.QueryKeyStatistics#makeKey(String,String) QueryKeyStatistics.makeKey()}
+		 * @param	numberOfRows	the number of rows in the table now
+		 * @return					the number of values and the number of distinct values, or null if not counted or need to be counted again
+		 */
+		public synchronized long[] get(String key,long numberOfRows) {
+			long[] cached = (long[])(countsByKey.get(key));
+			if (cached == null || Math.abs(numberOfRows - cached[0]) > minimumFractionOfRowsChanged * Math.max(1,cached[0])) {
+				return null;
+			}
+			return new long[] { cached[1], cached[2] };
+		}
+
+		/**
+		 * @param	key				the table and column, from {@link com.pixelmed.database.QueryKeyStatistics#makeKey(String,String) QueryKeyStatistics.makeKey()}
+		 * @param	numberOfRows	the number of rows in the table when counted
+		 * @param	counts			the number of values and the number of distinct values
+		 */
+		public synchronized void put(String key,long numberOfRows,long[] counts) {
+			countsByKey.put(key,new long[] { numberOfRows, counts[0], counts[1] });
+		}
+	}
+
+	/***/
+	private static class Change {
+		/***/
+		Recommendation recommendation;
+		/***/
+		long whenMade;
+		/***/
+		long countOfQueriesBefore;
+		/***/
+		long meanNanosecondsBefore;
+		/***/
+		long elapsedNanoseconds;
+	}
+
+	/**
+	 * <p>Construct an advisor for the specified model.</p>
+	 *
+	 * @param	databaseInformationModel	the model whose query statistics are used and whose database is changed
+	 */
+	public IndexAdvisor(DatabaseInformationModel databaseInformationModel) {
+		this(databaseInformationModel,0);
+	}
+
+	/**
+	 * <p>Construct an advisor for the specified model.</p>
+	 *
+	 * @param	databaseInformationModel	the model whose query statistics are used and whose database is changed
+	 * @param	debugLevel
+	 */
+	public IndexAdvisor(DatabaseInformationModel databaseInformationModel,int debugLevel) {
+		this.databaseInformationModel=databaseInformationModel;
+		this.debugLevel=debugLevel;
+	}
+
+	/**
+	 * @param	minimumNumberOfQueries	how many queries must have used a column before it is considered for an index
+	 */
+	public void setMinimumNumberOfQueries(long minimumNumberOfQueries) { this.minimumNumberOfQueries=minimumNumberOfQueries; }
+
+	/**
+	 * @param	minimumFractionOfDistinctValues		the fraction of the rows with a value of the column that must have distinct values for an index to be useful
+	 */
+	public void setMinimumFractionOfDistinctValues(double minimumFractionOfDistinctValues) { this.minimumFractionOfDistinctValues=minimumFractionOfDistinctValues; }
+
+	/**
+	 * @param	minimumNumberOfRows		how many rows a table must have before any of its columns are considered for an index
+	 */
+	public void setMinimumNumberOfRows(long minimumNumberOfRows) { this.minimumNumberOfRows=minimumNumberOfRows; }
+
+	/**
+	 * @param	minimumNumberOfIdleEvaluations	how many successive evaluations an automatically created index must not have been used for before it is dropped
+	 */
+	public void setMinimumNumberOfIdleEvaluationsBeforeDrop(int minimumNumberOfIdleEvaluations) { idleIndexTracker.setMinimumNumberOfIdleEvaluations(minimumNumberOfIdleEvaluations); }
+
+	/**
+	 * @param	minimumAge	in ms, how long an automatically created index must have existed before it is dropped
+	 */
+	public void setMinimumAgeBeforeDrop(long minimumAge) { idleIndexTracker.setMinimumAge(minimumAge); }
+
+	/**
+	 * @param	minimumFractionOfRowsChanged	the fraction by which the number of rows in a table must change before the distinct values of its columns are counted again
+	 */
+	public void setMinimumFractionOfRowsChangedBeforeRecount(double minimumFractionOfRowsChanged) { distinctValueCountCache.setMinimumFractionOfRowsChanged(minimumFractionOfRowsChanged); }
+
+	/**
+	 * @param	tableName	the upper case name of the table
+	 * @param	columnName	the upper case name of the column
+	 * @return				the name of an index created by the advisor
+	 */
+	public static String makeAutomaticIndexName(String tableName,String columnName) {
+		return automaticIndexNamePrefix+tableName+"_"+columnName+automaticIndexNameSuffix;
+	}
+
+	/**
+	 * <p>Find the names of the columns that are the first column of any index of a table.</p>
+	 *
+	 * @param	metaData		the meta data of the database
+	 * @param	tableName		the upper case name of the table
+	 * @param	automaticIndexNamesByColumnName		filled with the name of each index created by the advisor, keyed by the column it indexes
+	 * @return					the upper case names of the columns
+	 * @exception	SQLException
+	 */
+	private static Set getIndexedColumnNames(DatabaseMetaData metaData,String tableName,Map automaticIndexNamesByColumnName) throws SQLException {
+		Set indexedColumnNames = new HashSet();
+		ResultSet r = metaData.getIndexInfo(null,null,tableName,false,true);
+		while (r.next()) {
+			String indexName = r.getString("INDEX_NAME");
+			String columnName = r.getString("COLUMN_NAME");
+			if (columnName != null && r.getShort("ORDINAL_POSITION") == 1) {
+				columnName = columnName.toUpperCase(java.util.Locale.US);
+				indexedColumnNames.add(columnName);
+				if (indexName != null && indexName.toUpperCase(java.util.Locale.US).startsWith(automaticIndexNamePrefix)) {
+					automaticIndexNamesByColumnName.put(columnName,indexName);
+				}
+			}
+		}
+		r.close();
+		return indexedColumnNames;
+	}
+
+	/**
+	 * <p>Decide which indexes should be created or dropped, based on the query statistics recorded so far and the contents of the tables.</p>
+	 *
+	 * <p>Nothing is changed in the database.</p>
+	 *
+	 * @return					a list of {@link com.pixelmed.database.IndexAdvisor.Recommendation Recommendation}, which may be empty
+	 * @exception	DicomException	if the database cannot be examined
+	 */
+	public List getRecommendations() throws DicomException {
+		long startTime = System.nanoTime();
+		List recommendations = new ArrayList();
+		QueryKeyStatistics statistics = databaseInformationModel.getQueryKeyStatistics();
+		Set keys = statistics.getKeys();
+		Connection connection = null;
+		try {
+			connection = databaseInformationModel.getConnectionForReading();
+			DatabaseMetaData metaData = connection.getMetaData();
+			Map indexedColumnNamesByTableName = new HashMap();
+			Map automaticIndexNamesByTableName = new HashMap();
+			// existing indexes of every table that has been queried, including those with automatic indexes no longer used
+			Set tableNames = new HashSet();
+			Iterator i = keys.iterator();
+			while (i.hasNext()) {
+				tableNames.add(QueryKeyStatistics.getTableNameFromKey((String)(i.next())));
+			}
+			InformationEntity ie = databaseInformationModel.getRootInformationEntity();
+			while (ie != null) {
+				tableNames.add(DatabaseInformationModel.getTableNameForInformationEntity(ie));
+				ie = databaseInformationModel.getChildTypeForParent(ie);
+			}
+			i = tableNames.iterator();
+			while (i.hasNext()) {
+				String tableName = (String)(i.next());
+				Map automaticIndexNamesByColumnName = new HashMap();
+				indexedColumnNamesByTableName.put(tableName,getIndexedColumnNames(metaData,tableName,automaticIndexNamesByColumnName));
+				automaticIndexNamesByTableName.put(tableName,automaticIndexNamesByColumnName);
+			}
+			// columns that are used often but not indexed
+			Map numberOfRowsByTableName = new HashMap();
+			i = keys.iterator();
+			while (i.hasNext()) {
+				String key = (String)(i.next());
+				long count = statistics.getCount(key);
+				if (count >= minimumNumberOfQueries) {
+					String tableName = QueryKeyStatistics.getTableNameFromKey(key);
+					String columnName = QueryKeyStatistics.getColumnNameFromKey(key);
+					if (!((Set)(indexedColumnNamesByTableName.get(tableName))).contains(columnName)) {
+						Long numberOfRows = (Long)(numberOfRowsByTableName.get(tableName));
+						if (numberOfRows == null) {
+							numberOfRows = new Long(getNumberOfRows(connection,tableName));
+							numberOfRowsByTableName.put(tableName,numberOfRows);
+						}
+if (debugLevel > 1) System.err.println("IndexAdvisor.getRecommendations(): "+key+" used by "+count+" queries, table has "+numberOfRows+" rows");
+						if (numberOfRows.longValue() >= minimumNumberOfRows) {
+							long[] counts = distinctValueCountCache.get(key,numberOfRows.longValue());
+							if (counts == null) {
+								counts = getNumberOfValuesAndDistinctValues(connection,tableName,columnName);
+								distinctValueCountCache.put(key,numberOfRows.longValue(),counts);
+							}
+							double fractionOfDistinctValues = counts[0] == 0 ? 0 : ((double)counts[1])/counts[0];
+if (debugLevel > 1) System.err.println("IndexAdvisor.getRecommendations(): "+key+" has "+counts[1]+" distinct of "+counts[0]+" values");
+							if (fractionOfDistinctValues >= minimumFractionOfDistinctValues) {
+								recommendations.add(new Recommendation(true,tableName,columnName,makeAutomaticIndexName(tableName,columnName),
+									"used by "+count+" queries with mean "+statistics.getMeanNanoseconds(key)/1000+" us"
+									+", "+counts[1]+" distinct values in "+counts[0]+" of "+numberOfRows+" rows"));
+							}
+						}
+					}
+				}
+			}
+			// indexes created automatically that are no longer used
+			long now = System.currentTimeMillis();
+			Set automaticIndexNames = new HashSet();
+			i = automaticIndexNamesByTableName.keySet().iterator();
+			while (i.hasNext()) {
+				String tableName = (String)(i.next());
+				Map automaticIndexNamesByColumnName = (Map)(automaticIndexNamesByTableName.get(tableName));
+				Iterator ci = automaticIndexNamesByColumnName.keySet().iterator();
+				while (ci.hasNext()) {
+					String columnName = (String)(ci.next());
+					String indexName = (String)(automaticIndexNamesByColumnName.get(columnName));
+					long count = statistics.getCount(QueryKeyStatistics.makeKey(tableName,columnName));
+					automaticIndexNames.add(indexName);
+					if (idleIndexTracker.evaluate(indexName,count,now)) {
+						recommendations.add(new Recommendation(false,tableName,columnName,indexName,
+							"not used by any query for "+idleIndexTracker.getNumberOfIdleEvaluations(indexName)+" evaluations"));
+					}
+				}
+			}
+			idleIndexTracker.retainOnly(automaticIndexNames);		// forget those dropped by someone else
+		}
+		catch (SQLException e) {
+			throw new DicomException("Cannot examine database for index recommendations: "+e);
+		}
+		finally {
+			databaseInformationModel.releaseConnection(connection);
+		}
+		databaseInformationModel.getOperationStatistics().record("getIndexRecommendations",System.nanoTime()-startTime);
+		return recommendations;
+	}
+
+	/**
+	 * @param	connection
+	 * @param	tableName
+	 * @return				the number of rows in the table
+	 * @exception	SQLException
+	 */
+	private static long getNumberOfRows(Connection connection,String tableName) throws SQLException {
+		long count = 0;
+		Statement s = connection.createStatement();
+		ResultSet r = s.executeQuery("SELECT COUNT(*) FROM "+tableName);
+		if (r.next()) {
+			count = r.getLong(1);
+		}
+		r.close();
+		s.close();
+		return count;
+	}
+
+	/**
+	 * @param	connection
+	 * @param	tableName
+	 * @param	columnName
+	 * @return				the number of rows with a value of the column and the number of distinct values
+	 * @exception	SQLException
+	 */
+	private static long[] getNumberOfValuesAndDistinctValues(Connection connection,String tableName,String columnName) throws SQLException {
+		long[] counts = new long[2];
+		Statement s = connection.createStatement();
+		ResultSet r = s.executeQuery("SELECT COUNT("+columnName+"),COUNT(DISTINCT "+columnName+") FROM "+tableName);
+		if (r.next()) {
+			counts[0] = r.getLong(1);
+			counts[1] = r.getLong(2);
+		}
+		r.close();
+		s.close();
+		return counts;
+	}
+
+	/**
+	 * <p>Create or drop indexes as recommended.</p>
+	 *
+	 * <p>Each recommendation is applied separately, so a failure of one does not prevent the others from being applied.</p>
+	 *
+	 * @param	recommendations		a list of {@link com.pixelmed.database.IndexAdvisor.Recommendation Recommendation}
+	 * @exception	DicomException	if any recommendation could not be applied
+	 */
+	public void apply(List recommendations) throws DicomException {
+		boolean success = true;
+		StringBuffer errors = new StringBuffer();
+		QueryKeyStatistics statistics = databaseInformationModel.getQueryKeyStatistics();
+		Iterator i = recommendations.iterator();
+		while (i.hasNext()) {
+			Recommendation recommendation = (Recommendation)(i.next());
+			String key = QueryKeyStatistics.makeKey(recommendation.getTableName(),recommendation.getColumnName());
+			StringBuffer b = new StringBuffer();
+			if (recommendation.isCreate()) {
+				b.append("CREATE INDEX ");
+				b.append(recommendation.getIndexName());
+				b.append(" ON ");
+				b.append(recommendation.getTableName());
+				b.append(" (");
+				b.append(recommendation.getColumnName());
+				b.append(")");
+			}
+			else {
+				b.append("DROP INDEX ");
+				b.append(recommendation.getIndexName());
+			}
+if (debugLevel > 0) System.err.println("IndexAdvisor.apply(): "+b);
+			Change change = new Change();
+			change.recommendation = recommendation;
+			change.countOfQueriesBefore = statistics.getCount(key);
+			change.meanNanosecondsBefore = statistics.getMeanNanoseconds(key);
+			long startTime = System.nanoTime();
+			Connection connection = null;
+			try {
+				connection = databaseInformationModel.getConnectionForWriting();
+				Statement s = connection.createStatement();
+				s.execute(b.toString());	// no ResultSet expected
+				s.close();
+				change.elapsedNanoseconds = System.nanoTime()-startTime;
+				change.whenMade = System.currentTimeMillis();
+				statistics.reset(key);		// so that what follows can be compared with what went before
+				if (recommendation.isCreate()) {
+					idleIndexTracker.created(recommendation.getIndexName(),change.whenMade);
+				}
+				else {
+					idleIndexTracker.forget(recommendation.getIndexName());
+				}
+				synchronized (changes) {
+					changes.add(change);
+				}
+				databaseInformationModel.getOperationStatistics().record(recommendation.isCreate() ? "createIndex" : "dropIndex",change.elapsedNanoseconds);
+			}
+			catch (SQLException e) {
+				errors.append("Cannot "+(recommendation.isCreate() ? "create" : "drop")+" index "+recommendation.getIndexName()+": "+e+"\n");
+				success = false;
+			}
+			finally {
+				databaseInformationModel.releaseConnection(connection);
+			}
+		}
+		if (!success) {
+			throw new DicomException(errors.toString());
+		}
+	}
+
+	/**
+	 * <p>Create or drop indexes as recommended by the current query statistics.</p>
+	 *
+	 * @return					the list of {@link com.pixelmed.database.IndexAdvisor.Recommendation Recommendation} applied, which may be empty
+	 * @exception	DicomException	if the database cannot be examined or any recommendation could not be applied
+	 */
+	public List adviseAndApply() throws DicomException {
+		List recommendations = getRecommendations();
+		if (!recommendations.isEmpty()) {
+			apply(recommendations);
+		}
+		return recommendations;
+	}
+
+	/**
+	 * <p>Periodically create or drop indexes as recommended, until {@link #stopAutomatic() stopAutomatic()} is called.</p>
+	 *
+	 * <p>The first evaluation happens after one interval, so that there is time for statistics to accumulate.</p>
+	 *
+	 * @param	intervalInMilliseconds	how often to evaluate the statistics
+	 */
+	public synchronized void startAutomatic(long intervalInMilliseconds) {
+		stopAutomatic();
+		timer = new Timer("IndexAdvisor",true/*isDaemon*/);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				try {
+					List applied = adviseAndApply();
+if (debugLevel > 0 && !applied.isEmpty()) System.err.println("IndexAdvisor: applied "+applied);
+				}
+				catch (Exception e) {
+					e.printStackTrace(System.err);
+				}
+			}
+		},intervalInMilliseconds,intervalInMilliseconds);
+	}
+
+	/**
+	 * <p>Stop periodically creating or dropping indexes.</p>
+	 */
+	public synchronized void stopAutomatic() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
+	/**
+	 * @return	true if indexes are being periodically created or dropped
+	 */
+	public synchronized boolean isAutomatic() { return timer != null; }
+
+	/**
+	 * @return	a summary, one line per index created or dropped, of the query latency for its column before and since the change
+	 */
+	public String getReport() {
+		QueryKeyStatistics statistics = databaseInformationModel.getQueryKeyStatistics();
+		StringBuffer buf = new StringBuffer();
+		synchronized (changes) {
+			Set keysOfLaterChanges = new HashSet();		// the statistics now are only those since the last change to each column
+			List lines = new LinkedList();
+			for (int c=changes.size()-1; c>=0; --c) {
+				Change change = (Change)(changes.get(c));
+				Recommendation recommendation = change.recommendation;
+				String key = QueryKeyStatistics.makeKey(recommendation.getTableName(),recommendation.getColumnName());
+				StringBuffer line = new StringBuffer();
+				line.append(new java.util.Date(change.whenMade));
+				line.append(": ");
+				line.append(recommendation.isCreate() ? "created " : "dropped ");
+				line.append(recommendation.getIndexName());
+				line.append(" in ");
+				line.append(change.elapsedNanoseconds/1000000);
+				line.append(" ms; before: count ");
+				line.append(change.countOfQueriesBefore);
+				line.append(", mean ");
+				line.append(change.meanNanosecondsBefore/1000);
+				line.append(" us");
+				if (keysOfLaterChanges.add(key)) {
+					line.append("; since: count ");
+					line.append(statistics.getCount(key));
+					line.append(", mean ");
+					line.append(statistics.getMeanNanoseconds(key)/1000);
+					line.append(" us");
+				}
+				line.append("\n");
+				lines.add(0,line);
+			}
+			Iterator i = lines.iterator();
+			while (i.hasNext()) {
+				buf.append((StringBuffer)(i.next()));
+			}
+		}
+		return buf.toString();
+	}
+
+	public String toString() {
+		return getReport();
+	}
+}
@@ -268,17 +268,13 @@ public class MinimalPatientStudySeriesInstanceModel extends DicomDatabaseInforma
 		boolean success = true;
 		StringBuffer errors = new StringBuffer();
 		try {
-			Statement s = databaseConnection.createStatement();
-			s.execute("CREATE INDEX STUDY_UID_IDX ON STUDY (StudyInstanceUID)");
-			s.close();
+			executeOnConnectionForWriting("CREATE INDEX STUDY_UID_IDX ON STUDY (StudyInstanceUID)");
 		} catch (Exception e) {
 			errors.append("Cannot create index of StudyInstanceUID: "+e);
 			success = false;
 		}
 		try {
-			Statement s = databaseConnection.createStatement();
-			s.execute("CREATE INDEX INSTANCE_UID_IDX ON INSTANCE (SOPInstanceUID)");
-			s.close();
+			executeOnConnectionForWriting("CREATE INDEX INSTANCE_UID_IDX ON INSTANCE (SOPInstanceUID)");
 		} catch (Exception e) {
 			errors.append("Cannot create index of SOPInstanceUID: "+e);
 			success = false;
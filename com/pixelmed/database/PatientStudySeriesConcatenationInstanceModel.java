@@ -321,49 +321,37 @@ public class PatientStudySeriesConcatenationInstanceModel extends DicomDatabaseI
 		boolean success = true;
 		StringBuffer errors = new StringBuffer();
 		try {
-			Statement s = databaseConnection.createStatement();
-			s.execute("CREATE INDEX PATIENT_ID_IDX ON PATIENT (PATIENTID)");
-			s.close();
+			executeOnConnectionForWriting("CREATE INDEX PATIENT_ID_IDX ON PATIENT (PATIENTID)");
 		} catch (Exception e) {
 			errors.append("Cannot create index of PATIENTID: "+e);
 			success = false;
 		}
 		try {
-			Statement s = databaseConnection.createStatement();
-			s.execute("CREATE INDEX PATIENT_NAME_IDX ON PATIENT (PATIENTNAME)");
-			s.close();
+			executeOnConnectionForWriting("CREATE INDEX PATIENT_NAME_IDX ON PATIENT (PATIENTNAME)");
 		} catch (Exception e) {
 			errors.append("Cannot create index of PATIENTNAME: "+e);
 			success = false;
 		}
 		try {
-			Statement s = databaseConnection.createStatement();
-			s.execute("CREATE INDEX STUDY_UID_IDX ON STUDY (STUDYINSTANCEUID)");
-			s.close();
+			executeOnConnectionForWriting("CREATE INDEX STUDY_UID_IDX ON STUDY (STUDYINSTANCEUID)");
 		} catch (Exception e) {
 			errors.append("Cannot create index of STUDYINSTANCEUID: "+e);
 			success = false;
 		}
 		try {
-			Statement s = databaseConnection.createStatement();
-			s.execute("CREATE INDEX SERIES_UID_IDX ON SERIES (SERIESINSTANCEUID)");
-			s.close();
+			executeOnConnectionForWriting("CREATE INDEX SERIES_UID_IDX ON SERIES (SERIESINSTANCEUID)");
 		} catch (Exception e) {
 			errors.append("Cannot create index of SERIESINSTANCEUID: "+e);
 			success = false;
 		}
 		try {
-			Statement s = databaseConnection.createStatement();
-			s.execute("CREATE INDEX SERIES_FORUID_IDX ON SERIES (FRAMEOFREFERENCEUID)");
-			s.close();
+			executeOnConnectionForWriting("CREATE INDEX SERIES_FORUID_IDX ON SERIES (FRAMEOFREFERENCEUID)");
 		} catch (Exception e) {
 			errors.append("Cannot create index of FRAMEOFREFERENCEUID: "+e);
 			success = false;
 		}
 		try {
-			Statement s = databaseConnection.createStatement();
-			s.execute("CREATE INDEX INSTANCE_UID_IDX ON INSTANCE (SOPINSTANCEUID)");
-			s.close();
+			executeOnConnectionForWriting("CREATE INDEX INSTANCE_UID_IDX ON INSTANCE (SOPINSTANCEUID)");
 		} catch (Exception e) {
 			errors.append("Cannot create index of SOPINSTANCEUID: "+e);
 			success = false;
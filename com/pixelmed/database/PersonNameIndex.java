@@ -0,0 +1,427 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.database;
+
+import com.pixelmed.utils.PhoneticStringEncoder;
+import com.pixelmed.utils.PhoneticStringEncoderException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>This class maintains and searches a table of keys derived from person names, such as Patient's Name, for fast prefix, substring and
+ * approximate (fuzzy) matching of names without scanning every record.</p>
+ *
+ * <p>For each word of a name (the family, given and other name components of every component group, i.e., alphabetic,
+ * ideographic and phonetic, split at any character other than a letter or digit, and converted to upper case), the word itself, its phonetic (Double Metaphone) code, if the encoder is available, and its trigrams
+ * (all three character sequences, including those with a leading or trailing space) are stored as keys, in one indexed column,
+ * each with a weight. The keys are computed only once, when the record is inserted.</p>
+ *
+ * <p>Approximate matches are ranked by the sum of the weights of the keys they share with the name searched for, so that
+ * the same word counts more than the same sound, which counts more than a few shared letters.</p>
+ *
+ * @author	agent
+ */
+public class PersonNameIndex {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	static final String tableName = "PM_PERSONNAMEINDEX";	// needs to be upper case
+	/***/
+	static final String localEntityReferenceColumnName = "LOCALENTITYREFERENCE";	// needs to be upper case
+	/***/
+	static final String attributeColumnName = "ATTRIBUTENAME";	// needs to be upper case
+	/***/
+	static final String keyColumnName = "INDEXKEY";	// needs to be upper case
+	/***/
+	static final String weightColumnName = "WEIGHT";	// needs to be upper case
+
+	/***/
+	private static final String wordKeyPrefix = "W:";
+	/***/
+	private static final String phoneticKeyPrefix = "P:";
+	/***/
+	private static final String trigramKeyPrefix = "T:";
+
+	/***/
+	private static final int wordWeight = 4;
+	/***/
+	private static final int phoneticWeight = 2;
+	/***/
+	private static final int trigramWeight = 1;
+
+	/***/
+	static final double defaultMinimumSimilarity = 0.3;		// fraction of the total weight of the keys searched for
+
+	/**
+	 * <p>Create the table and its indexes.</p>
+	 *
+	 * @param	connection
+	 * @param	tableType	the type of table, such as CACHED or MEMORY
+	 * @exception	SQLException
+	 */
+	static void createTable(Connection connection,String tableType) throws SQLException {
+		Statement s = connection.createStatement();
+		try {
+			s.execute("CREATE "+tableType+" TABLE "+tableName+" ("
+				+localEntityReferenceColumnName+" VARCHAR,"
+				+attributeColumnName+" VARCHAR,"
+				+keyColumnName+" VARCHAR,"
+				+weightColumnName+" INTEGER)");
+			s.execute("CREATE INDEX "+tableName+"_KEY_IDX ON "+tableName+" ("+keyColumnName+")");
+			s.execute("CREATE INDEX "+tableName+"_REF_IDX ON "+tableName+" ("+localEntityReferenceColumnName+")");
+		}
+		finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * <p>Does the table exist?</p>
+	 *
+	 * @param	connection
+	 * @return				true if the table exists
+	 * @exception	SQLException
+	 */
+	static boolean tableExists(Connection connection) throws SQLException {
+		ResultSet tables = connection.getMetaData().getTables(null,null,tableName,null);
+		boolean exists = tables.next();
+		tables.close();
+		return exists;
+	}
+
+	/**
+	 * <p>Get the words of a person name, converted to upper case.</p>
+	 *
+	 * <p>All the component groups are used, not just the first (usually alphabetic) one, since a query with wildcards
+	 * may be for a name in any group. Any character other than a letter or digit, including the component and component group delimiters
+	 * and any wildcard, separates words.</p>
+	 *
+	 * @param	name	a DICOM Person Name value
+	 * @return			the words, in order, without duplicates
+	 */
+	public static Set getWords(String name) {
+		Set words = new LinkedHashSet();
+		if (name != null) {
+			StringBuffer word = new StringBuffer();
+			int length = name.length();
+			for (int i=0; i<=length; ++i) {
+				char c = i < length ? name.charAt(i) : ' ';
+				if (Character.isLetterOrDigit(c)) {
+					word.append(Character.toUpperCase(c));
+				}
+				else if (word.length() > 0) {
+					words.add(word.toString());
+					word.setLength(0);
+				}
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * @param	word
+	 * @param	padded	whether or not to include the trigrams with a leading or trailing space
+	 * @param	keys	the set to add the trigrams to, as keys
+	 */
+	private static void addTrigramKeys(String word,boolean padded,Set keys) {
+		if (padded) {
+			word = " "+word+" ";
+		}
+		for (int i=0; i+3<=word.length(); ++i) {
+			keys.add(trigramKeyPrefix+word.substring(i,i+3));
+		}
+	}
+
+	/**
+	 * <p>Get the keys to store, or to search for, for a person name, and their weights.</p>
+	 *
+	 * @param	name	a DICOM Person Name value
+	 * @return			a {@link java.util.Map Map} of {@link java.lang.String String} keys to {@link java.lang.Integer Integer} weights
+	 */
+	public static Map getKeys(String name) {
+		Map keys = new LinkedHashMap();
+		PhoneticStringEncoder encoder = null;
+		try {
+			encoder = PhoneticStringEncoder.getSharedInstance();
+		}
+		catch (PhoneticStringEncoderException e) {
+			// no phonetic keys, but words and trigrams are still useful
+		}
+		Integer wordWeightValue = new Integer(wordWeight);
+		Integer phoneticWeightValue = new Integer(phoneticWeight);
+		Integer trigramWeightValue = new Integer(trigramWeight);
+		Iterator i = getWords(name).iterator();
+		while (i.hasNext()) {
+			String word = (String)(i.next());
+			keys.put(wordKeyPrefix+word,wordWeightValue);
+			if (encoder != null) {
+				try {
+					String phoneticCode = encoder.encode(word);
+					if (phoneticCode != null && phoneticCode.length() > 0) {
+						keys.put(phoneticKeyPrefix+phoneticCode,phoneticWeightValue);
+					}
+				}
+				catch (PhoneticStringEncoderException e) {
+					e.printStackTrace(System.err);
+				}
+			}
+			Set trigramKeys = new LinkedHashSet();
+			addTrigramKeys(word,true,trigramKeys);
+			Iterator t = trigramKeys.iterator();
+			while (t.hasNext()) {
+				Object trigramKey = t.next();
+				if (!keys.containsKey(trigramKey)) {
+					keys.put(trigramKey,trigramWeightValue);
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * <p>Get the trigram keys that every name matching a query value with wildcards must have.</p>
+	 *
+	 * <p>These are the trigrams of each run of three or more letters or digits between wildcards (or other delimiters),
+	 * without the leading or trailing space, since the run may be in the middle of a word.</p>
+	 *
+	 * @param	value	a DICOM Person Name query value, with or without wildcards
+	 * @return			the trigram keys, empty if there are no runs long enough
+	 */
+	public static Set getRequiredTrigramKeys(String value) {
+		Set keys = new LinkedHashSet();
+		Iterator i = getWords(value).iterator();
+		while (i.hasNext()) {
+			addTrigramKeys((String)(i.next()),false,keys);
+		}
+		return keys;
+	}
+
+	/**
+	 * <p>Add the keys for the name of a newly inserted record.</p>
+	 *
+	 * @param	model				the model whose prepared statements to use
+	 * @param	connection			the connection on which the record was inserted
+	 * @param	attributeName		the column name of the person name attribute, e.g., PATIENTNAME
+	 * @param	localEntityReference	the primary key of the record
+	 * @param	name				the value of the person name attribute
+	 * @exception	SQLException
+	 */
+	static void addRecord(DatabaseInformationModel model,Connection connection,String attributeName,String localEntityReference,String name) throws SQLException {
+		Map keys = getKeys(name);
+		if (!keys.isEmpty()) {
+			String sql = "INSERT INTO "+tableName+" ("
+				+localEntityReferenceColumnName+","+attributeColumnName+","+keyColumnName+","+weightColumnName
+				+") VALUES (?,?,?,?)";
+			PreparedStatement s = model.borrowPreparedStatement(connection,sql);
+			try {
+				Iterator i = keys.keySet().iterator();
+				while (i.hasNext()) {
+					String key = (String)(i.next());
+					s.setString(1,localEntityReference);
+					s.setString(2,attributeName);
+					s.setString(3,key);
+					s.setInt(4,((Integer)(keys.get(key))).intValue());
+					s.addBatch();
+				}
+				s.executeBatch();
+			}
+			finally {
+				model.givePreparedStatementBack(connection,sql,s);
+			}
+		}
+	}
+
+	/**
+	 * <p>Remove the keys for the name of a record.</p>
+	 *
+	 * @param	model				the model whose prepared statements to use
+	 * @param	connection			the connection on which the record is being deleted or updated
+	 * @param	attributeName		the column name of the person name attribute, e.g., PATIENTNAME
+	 * @param	localEntityReference	the primary key of the record
+	 * @exception	SQLException
+	 */
+	static void removeRecord(DatabaseInformationModel model,Connection connection,String attributeName,String localEntityReference) throws SQLException {
+		String sql = "DELETE FROM "+tableName+" WHERE "+localEntityReferenceColumnName+" = ? AND "+attributeColumnName+" = ?";
+		PreparedStatement s = model.borrowPreparedStatement(connection,sql);
+		try {
+			s.setString(1,localEntityReference);
+			s.setString(2,attributeName);
+			s.executeUpdate();
+		}
+		finally {
+			model.givePreparedStatementBack(connection,sql,s);
+		}
+	}
+
+	/**
+	 * <p>Find the records whose names match, best first.</p>
+	 *
+	 * <p>For a prefix match, the words of the name found (in any order) must start with the words of the name searched for,
+	 * at least as many times as there are words searched for, and the names found are ranked by how many of their words match. Otherwise, the names found are ranked by the total weight
+	 * of the keys they share with the name searched for, which must be at least the minimum fraction of the total possible.</p>
+	 *
+	 * @param	model				the model whose prepared statements to use
+	 * @param	connection			the connection on which to search
+	 * @param	attributeName		the column name of the person name attribute, e.g., PATIENTNAME
+	 * @param	name				the name to search for, which may be incomplete or misspelled, without wildcards
+	 * @param	prefix				true if the words are prefixes, false if approximate matches of whole words are wanted
+	 * @param	minimumSimilarity	the minimum fraction of the total weight of the keys searched for that must be shared (ignored for prefix matches)
+	 * @param	maximumNumberOfRecords	the most records to return
+	 * @return						an {@link java.util.ArrayList ArrayList} of {@link java.lang.String String} primary keys, best match first
+	 * @exception	SQLException
+	 */
+	static ArrayList findRecords(DatabaseInformationModel model,Connection connection,String attributeName,String name,boolean prefix,double minimumSimilarity,int maximumNumberOfRecords) throws SQLException {
+		ArrayList localEntityReferences = new ArrayList();
+		List parameters = new ArrayList();
+		StringBuffer b = new StringBuffer();
+		b.append("SELECT ");
+		b.append(localEntityReferenceColumnName);
+		b.append(",SUM(");
+		b.append(weightColumnName);
+		b.append(") AS SCORE FROM ");
+		b.append(tableName);
+		b.append(" WHERE ");
+		b.append(attributeColumnName);
+		b.append(" = ? AND (");
+		parameters.add(attributeName);
+		int minimumScore;
+		if (prefix) {
+			Set words = getWords(name);
+			if (words.isEmpty()) {
+				return localEntityReferences;
+			}
+			Iterator i = words.iterator();
+			while (i.hasNext()) {
+				String word = (String)(i.next());
+				b.append("(");
+				b.append(keyColumnName);
+				b.append(" >= ? AND ");
+				b.append(keyColumnName);
+				b.append(" < ?)");							// a range rather than LIKE, so that the index is used
+				parameters.add(wordKeyPrefix+word);
+				parameters.add(wordKeyPrefix+word+'\uffff');
+				if (i.hasNext()) {
+					b.append(" OR ");
+				}
+			}
+			minimumScore = words.size() * wordWeight;
+		}
+		else {
+			Map keys = getKeys(name);
+			if (keys.isEmpty()) {
+				return localEntityReferences;
+			}
+			b.append(keyColumnName);
+			b.append(" IN (");
+			int totalWeight = 0;
+			Iterator i = keys.keySet().iterator();
+			while (i.hasNext()) {
+				String key = (String)(i.next());
+				b.append("?");
+				parameters.add(key);
+				totalWeight += ((Integer)(keys.get(key))).intValue();
+				if (i.hasNext()) {
+					b.append(",");
+				}
+			}
+			b.append(")");
+			minimumScore = Math.max(1,(int)Math.ceil(totalWeight * minimumSimilarity));
+		}
+		b.append(") GROUP BY ");
+		b.append(localEntityReferenceColumnName);
+		b.append(" HAVING SUM(");
+		b.append(weightColumnName);
+		b.append(") >= ? ORDER BY SCORE DESC,");
+		b.append(localEntityReferenceColumnName);
+		parameters.add(new Integer(minimumScore));
+		String sql = b.toString();
+		PreparedStatement s = model.borrowPreparedStatement(connection,sql);
+		try {
+			for (int p=0; p<parameters.size(); ++p) {
+				s.setObject(p+1,parameters.get(p));
+			}
+			s.setMaxRows(maximumNumberOfRecords);
+			ResultSet r = s.executeQuery();
+			while (r.next()) {
+				localEntityReferences.add(r.getString(1).trim());
+			}
+			r.close();
+			s.setMaxRows(0);		// since the statement may be re-used
+		}
+		finally {
+			model.givePreparedStatementBack(connection,sql,s);
+		}
+		return localEntityReferences;
+	}
+
+	/**
+	 * <p>Add to a match clause the condition that a record have all of the specified trigram keys, which uses the index
+	 * rather than scanning every record.</p>
+	 *
+	 * @param	b					the match clause being constructed
+	 * @param	entityTableName		the table of the records matched
+	 * @param	primaryKeyColumnName	the primary key column of the table
+	 * @param	attributeName		the column name of the person name attribute, e.g., PATIENTNAME
+	 * @param	trigramKeys			the keys from {@link #getRequiredTrigramKeys(String) getRequiredTrigramKeys()}
+	 * @param	parameters			if not null, the values are added to this list and ? used in their place
+	 */
+	static void appendRecordHasAllKeys(StringBuffer b,String entityTableName,String primaryKeyColumnName,String attributeName,Set trigramKeys,List parameters) {
+		b.append(entityTableName);
+		b.append(".");
+		b.append(primaryKeyColumnName);
+		b.append(" IN (SELECT ");
+		b.append(localEntityReferenceColumnName);
+		b.append(" FROM ");
+		b.append(tableName);
+		b.append(" WHERE ");
+		b.append(attributeColumnName);
+		b.append(" = ");
+		appendValueOrParameter(b,attributeName,parameters);
+		b.append(" AND ");
+		b.append(keyColumnName);
+		b.append(" IN (");
+		Iterator i = trigramKeys.iterator();
+		while (i.hasNext()) {
+			appendValueOrParameter(b,(String)(i.next()),parameters);
+			if (i.hasNext()) {
+				b.append(",");
+			}
+		}
+		b.append(") GROUP BY ");
+		b.append(localEntityReferenceColumnName);
+		b.append(" HAVING COUNT(*) = ");
+		b.append(trigramKeys.size());		// each key is stored only once per record
+		b.append(")");
+	}
+
+	/**
+	 * @param	b			the statement being constructed
+	 * @param	value		the value, which contains only letters, digits, spaces and colons, so needs no escaping
+	 * @param	parameters	if not null, the value is added to this list and a ? used in its place
+	 */
+	private static void appendValueOrParameter(StringBuffer b,String value,List parameters) {
+		if (parameters == null) {
+			b.append("\'");
+			b.append(value);
+			b.append("\'");
+		}
+		else {
+			b.append("?");
+			parameters.add(value);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * <p>This class keeps prepared statements for a database connection, so that SQL that has the same text,
+ * with its values supplied as parameters, is parsed and planned by the database only once.</p>
+ *
+ * <p>A statement is borrowed for as long as it (or its result set) is in use, and then returned, so that
+ * the same statement is never used by two threads at once; if all the statements prepared for the same SQL
+ * are in use, another is prepared. Only a limited number of idle statements are kept, and those for the least
+ * recently used SQL are closed first.</p>
+ *
+ * @author	agent
+ */
+public class PreparedStatementCache {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	public static final int defaultMaximumNumberOfIdleStatements = 128;
+
+	/***/
+	private Connection connection;
+	/***/
+	private int maximumNumberOfIdleStatements;
+	/***/
+	private int numberOfIdleStatements;
+	/***/
+	private LinkedHashMap<String,LinkedList<PreparedStatement>> idleStatementsBySQL;		// in access order
+	/***/
+	private boolean closed;
+	/***/
+	private long hits;
+	/***/
+	private long misses;
+
+	/**
+	 * @param	connection						the connection on which statements are prepared
+	 * @param	maximumNumberOfIdleStatements	how many statements not in use to keep
+	 */
+	public PreparedStatementCache(Connection connection,int maximumNumberOfIdleStatements) {
+		this.connection=connection;
+		this.maximumNumberOfIdleStatements=maximumNumberOfIdleStatements;
+		numberOfIdleStatements=0;
+		idleStatementsBySQL = new LinkedHashMap<String,LinkedList<PreparedStatement>>(16,0.75f,true/*access order*/);
+	}
+
+	/**
+	 * <p>Get a prepared statement for the SQL, which is not in use by anyone else, until it is returned.</p>
+	 *
+	 * @param	sql		the SQL, with ? for each parameter
+	 * @return			a prepared statement, with no parameters set
+	 * @exception	SQLException
+	 */
+	public PreparedStatement borrow(String sql) throws SQLException {
+		synchronized (this) {
+			LinkedList<PreparedStatement> idleStatements = idleStatementsBySQL.get(sql);
+			if (idleStatements != null && !idleStatements.isEmpty()) {
+				--numberOfIdleStatements;
+				++hits;
+				return idleStatements.removeFirst();
+			}
+			++misses;
+		}
+		return connection.prepareStatement(sql);		// outside synchronized block, since may be slow
+	}
+
+	/**
+	 * <p>Return a borrowed statement, so that it may be used again.</p>
+	 *
+	 * <p>Any result set of the statement should already have been closed.</p>
+	 *
+	 * <p>If the cache has been closed, the statement is closed rather than kept.</p>
+	 *
+	 * @param	sql			the SQL for which the statement was borrowed
+	 * @param	statement	the statement
+	 */
+	public void giveBack(String sql,PreparedStatement statement) {
+		try {
+			statement.clearParameters();
+		}
+		catch (SQLException e) {
+			close(statement);		// may be unusable, so do not keep it
+			return;
+		}
+		LinkedList<PreparedStatement> statementsToClose = new LinkedList<PreparedStatement>();
+		synchronized (this) {
+			if (closed) {
+				statementsToClose.add(statement);
+			}
+			else {
+				LinkedList<PreparedStatement> idleStatements = idleStatementsBySQL.get(sql);
+				if (idleStatements == null) {
+					idleStatements = new LinkedList<PreparedStatement>();
+					idleStatementsBySQL.put(sql,idleStatements);
+				}
+				idleStatements.addFirst(statement);
+				++numberOfIdleStatements;
+			}
+			Iterator<LinkedList<PreparedStatement>> i = idleStatementsBySQL.values().iterator();		// least recently used first
+			while (numberOfIdleStatements > maximumNumberOfIdleStatements && i.hasNext()) {
+				LinkedList<PreparedStatement> leastRecentlyUsed = i.next();
+				while (numberOfIdleStatements > maximumNumberOfIdleStatements && !leastRecentlyUsed.isEmpty()) {
+					statementsToClose.add(leastRecentlyUsed.removeLast());
+					--numberOfIdleStatements;
+				}
+				if (leastRecentlyUsed.isEmpty()) {
+					i.remove();
+				}
+			}
+		}
+		Iterator<PreparedStatement> i = statementsToClose.iterator();
+		while (i.hasNext()) {
+			close(i.next());
+		}
+	}
+
+	/**
+	 * <p>Close all the statements not in use.</p>
+	 */
+	public void clear() {
+		LinkedList<PreparedStatement> statementsToClose = new LinkedList<PreparedStatement>();
+		synchronized (this) {
+			Iterator<LinkedList<PreparedStatement>> i = idleStatementsBySQL.values().iterator();
+			while (i.hasNext()) {
+				statementsToClose.addAll(i.next());
+			}
+			idleStatementsBySQL.clear();
+			numberOfIdleStatements=0;
+		}
+		Iterator<PreparedStatement> i = statementsToClose.iterator();
+		while (i.hasNext()) {
+			close(i.next());
+		}
+	}
+
+	/**
+	 * <p>Close all the statements not in use, and any given back later, for example before closing the connection.</p>
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		clear();
+	}
+
+	/**
+	 * @return	the number of statements not in use
+	 */
+	public synchronized int getNumberOfIdleStatements() { return numberOfIdleStatements; }
+
+	/**
+	 * @return	the number of statements borrowed that had been prepared before
+	 */
+	public synchronized long getHits() { return hits; }
+
+	/**
+	 * @return	the number of statements borrowed that had to be prepared
+	 */
+	public synchronized long getMisses() { return misses; }
+
+	/**
+	 * @param	statement
+	 */
+	private static void close(PreparedStatement statement) {
+		try {
+			statement.close();
+		}
+		catch (SQLException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	public synchronized String toString() {
+		return "PreparedStatementCache: "+idleStatementsBySQL.size()+" distinct SQL, "+numberOfIdleStatements+" idle statements, hits="+hits+" misses="+misses;
+	}
+}
@@ -0,0 +1,181 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.database;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * <p>This class accumulates, for each database column used as a matching key in a query, how many queries have used it,
+ * how long those queries took and how many matches they returned, so that columns that are used often enough to be
+ * worth indexing can be found by an {@link com.pixelmed.database.IndexAdvisor IndexAdvisor}.</p>
+ *
+ * <p>The columns are identified by the upper case name of the table and column, in the form TABLE.COLUMN.</p>
+ *
+ * <p>Since a query usually has more than one matching key, the time taken and number of matches is attributed to every
+ * column used in it, so the mean values are indicative rather than exact.</p>
+ *
+ * @author	agent
+ */
+public class QueryKeyStatistics {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	private static class Entry {
+		/***/
+		long count;
+		/***/
+		long totalNanoseconds;
+		/***/
+		long totalNumberOfMatches;
+	}
+
+	/***/
+	private Map entriesByKey = new TreeMap();		// synchronize on this; of Entry
+
+	/**
+	 * @param	tableName	the upper case name of the table
+	 * @param	columnName	the upper case name of the column
+	 * @return				the key by which the column is identified
+	 */
+	public static String makeKey(String tableName,String columnName) {
+		return tableName+"."+columnName;
+	}
+
+	/**
+	 * @param	key		a key made by {@link #makeKey(String,String) makeKey()}
+	 * @return			the table name part of the key
+	 */
+	public static String getTableNameFromKey(String key) {
+		return key.substring(0,key.indexOf('.'));
+	}
+
+	/**
+	 * @param	key		a key made by {@link #makeKey(String,String) makeKey()}
+	 * @return			the column name part of the key
+	 */
+	public static String getColumnNameFromKey(String key) {
+		return key.substring(key.indexOf('.')+1);
+	}
+
+	/**
+	 * <p>Record that a query has been performed.</p>
+	 *
+	 * @param	keys				the keys made by {@link #makeKey(String,String) makeKey()} of the columns used as matching keys in the query
+	 * @param	elapsedNanoseconds	how long the query took
+	 * @param	numberOfMatches		how many matches the query returned
+	 */
+	public void record(Collection keys,long elapsedNanoseconds,long numberOfMatches) {
+		synchronized (entriesByKey) {
+			Iterator i = keys.iterator();
+			while (i.hasNext()) {
+				String key = (String)(i.next());
+				Entry entry = (Entry)(entriesByKey.get(key));
+				if (entry == null) {
+					entry = new Entry();
+					entriesByKey.put(key,entry);
+				}
+				++entry.count;
+				entry.totalNanoseconds+=elapsedNanoseconds;
+				entry.totalNumberOfMatches+=numberOfMatches;
+			}
+		}
+	}
+
+	/**
+	 * @return	the keys of all the columns that have been used in queries, in alphabetical order
+	 */
+	public Set getKeys() {
+		synchronized (entriesByKey) {
+			return new TreeSet(entriesByKey.keySet());
+		}
+	}
+
+	/**
+	 * @param	key		a key made by {@link #makeKey(String,String) makeKey()}
+	 * @return			how many queries have used the column as a matching key
+	 */
+	public long getCount(String key) {
+		synchronized (entriesByKey) {
+			Entry entry = (Entry)(entriesByKey.get(key));
+			return entry == null ? 0 : entry.count;
+		}
+	}
+
+	/**
+	 * @param	key		a key made by {@link #makeKey(String,String) makeKey()}
+	 * @return			the mean time taken by the queries that used the column in ns, or 0 if none have
+	 */
+	public long getMeanNanoseconds(String key) {
+		synchronized (entriesByKey) {
+			Entry entry = (Entry)(entriesByKey.get(key));
+			return entry == null || entry.count == 0 ? 0 : entry.totalNanoseconds/entry.count;
+		}
+	}
+
+	/**
+	 * @param	key		a key made by {@link #makeKey(String,String) makeKey()}
+	 * @return			the mean number of matches returned by the queries that used the column, or 0 if none have
+	 */
+	public double getMeanNumberOfMatches(String key) {
+		synchronized (entriesByKey) {
+			Entry entry = (Entry)(entriesByKey.get(key));
+			return entry == null || entry.count == 0 ? 0 : ((double)entry.totalNumberOfMatches)/entry.count;
+		}
+	}
+
+	/**
+	 * <p>Forget everything recorded so far about one column.</p>
+	 *
+	 * <p>Used, for example, when an index of the column is created or dropped, so that what is recorded afterwards can be compared with what was recorded before.</p>
+	 *
+	 * @param	key		a key made by {@link #makeKey(String,String) makeKey()}
+	 */
+	public void reset(String key) {
+		synchronized (entriesByKey) {
+			entriesByKey.remove(key);
+		}
+	}
+
+	/**
+	 * <p>Forget everything recorded so far.</p>
+	 */
+	public void reset() {
+		synchronized (entriesByKey) {
+			entriesByKey.clear();
+		}
+	}
+
+	/**
+	 * @return	a summary, one line per column, of the count, the mean time and the mean number of matches
+	 */
+	public String getReport() {
+		StringBuffer buf = new StringBuffer();
+		synchronized (entriesByKey) {
+			Iterator i = entriesByKey.keySet().iterator();
+			while (i.hasNext()) {
+				String key = (String)(i.next());
+				Entry entry = (Entry)(entriesByKey.get(key));
+				buf.append(key);
+				buf.append(": count ");
+				buf.append(entry.count);
+				buf.append(", mean ");
+				buf.append(entry.count == 0 ? 0 : entry.totalNanoseconds/entry.count/1000);
+				buf.append(" us, mean matches ");
+				buf.append(entry.count == 0 ? 0 : entry.totalNumberOfMatches/entry.count);
+				buf.append("\n");
+			}
+		}
+		return buf.toString();
+	}
+
+	public String toString() {
+		return getReport();
+	}
+}
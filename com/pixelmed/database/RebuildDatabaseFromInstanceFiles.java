@@ -3,41 +3,201 @@
 package com.pixelmed.database;
 
 import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.DicomException;
 import com.pixelmed.dicom.DicomInputStream;
 import com.pixelmed.dicom.TagFromName;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 
 import java.lang.reflect.Constructor;
 
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * <p>This class allows the reconstruction of a database from the stored instance files,
  * such as when the database schema model has been changed.</p>
  *
+ * <p>By default, the files are read and inserted one at a time. For very large numbers of files, an instance of
+ * this class may be used instead, which walks the directories and reads the files on several threads at once,
+ * inserts what has been read in batches, each in a single transaction, and periodically reports how many files
+ * have been inserted and how many could not be.</p>
+ *
+ * <p>If a checkpoint file is specified, the path of each directory is recorded in it once all the files in that directory
+ * have been inserted (or have failed), so that if the rebuild is interrupted, it may be resumed by running it again
+ * with the same checkpoint file, and the files in those directories will not be read again. Files in directories that were
+ * only partly done are read again, but records that already exist are not duplicated, since
+ * {@link com.pixelmed.database.DatabaseInformationModel#insertObject(AttributeList,String,String) insertObject()}
+ * matches existing records. Directories are only recorded after the database has been checkpointed, so that what has been inserted
+ * is on disk and not just in the database log, which is done at most every {@link #defaultCheckpointInterval defaultCheckpointInterval} ms.
+ * The checkpoint file is deleted when the rebuild completes.</p>
+ *
+ * <p>For example:</p>
+ * <pre>
+DatabaseInformationModel databaseInformationModel = new PatientStudySeriesConcatenationInstanceModel(databaseFileName);
+RebuildDatabaseFromInstanceFiles rebuilder = new RebuildDatabaseFromInstanceFiles(databaseInformationModel,8,100,new File("rebuild.checkpoint"),0);
+File[] filesOrDirectories = { new File("/images") };
+rebuilder.rebuild(filesOrDirectories);
+ * </pre>
+ *
  * @author	dclunie
  */
 public class RebuildDatabaseFromInstanceFiles {
 
 	/***/
 	private static final String identString = "@(#) $Header: /userland/cvs/pixelmed/imgbook/com/pixelmed/database/RebuildDatabaseFromInstanceFiles.java,v 1.9 2012/02/01 23:02:09 dclunie Exp $";
-	
+
+	/***/
+	public static final int defaultNumberOfReadingThreads = 8;
+	/***/
+	public static final int defaultBatchSize = 100;
+	/***/
+	public static final long defaultReportInterval = 10000;		// ms
+	/***/
+	public static final long defaultCheckpointInterval = 10000;	// ms
+
 	private static long filesProcessed;
-	
-	private static void processFileOrDirectory(DatabaseInformationModel databaseInformationModel,File file) {
-//System.err.println("RebuildDatabaseFromInstanceFiles.processFileOrDirectory(): "+file);
+
+	/**
+	 * @param	file	a directory
+	 * @return			true unless the directory is one known not to contain DICOM files
+	 */
+	static boolean isWantedDirectory(File file) {
 		String fileNameAsUpperCase = file.getName().toUpperCase(java.util.Locale.US);
-		if (file.isDirectory()
-		 && !fileNameAsUpperCase.equals("CDVIEWER")
+		return !fileNameAsUpperCase.equals("CDVIEWER")
 		 && !fileNameAsUpperCase.equals("CVS")
 		 && !fileNameAsUpperCase.equals("ICONS")
 		 && !fileNameAsUpperCase.equals("JRE")
 		 && !fileNameAsUpperCase.equals("LOCALE")
 		 && !fileNameAsUpperCase.equals("RESOURCES")
 		 && !fileNameAsUpperCase.equals("THUMBNAILS")
+		 && !fileNameAsUpperCase.endsWith(".APP");
+	}
+
+	/**
+	 * @param	file	a file
+	 * @return			true unless the file is hidden or its name or extension is one known not to be a DICOM file
+	 */
+	static boolean isWantedFile(File file) {
+		String fileNameAsUpperCase = file.getName().toUpperCase(java.util.Locale.US);
+		return !file.isHidden()
 		 && !fileNameAsUpperCase.endsWith(".APP")
-		) {
+		 && !fileNameAsUpperCase.endsWith(".BAK")
+		 && !fileNameAsUpperCase.endsWith(".BAT")
+		 && !fileNameAsUpperCase.endsWith(".BDT")
+		 && !fileNameAsUpperCase.endsWith(".BIN")
+		 && !fileNameAsUpperCase.endsWith(".BMP")
+		 && !fileNameAsUpperCase.endsWith(".BZ2")
+		 && !fileNameAsUpperCase.endsWith(".CAB")
+		 && !fileNameAsUpperCase.endsWith(".CFG")
+		 && !fileNameAsUpperCase.endsWith(".CHM")
+		 && !fileNameAsUpperCase.endsWith(".CM")
+		 && !fileNameAsUpperCase.endsWith(".CNF")
+		 && !fileNameAsUpperCase.endsWith(".CNT")
+		 && !fileNameAsUpperCase.endsWith(".COL")
+		 && !fileNameAsUpperCase.endsWith(".CONFIG")
+		 && !fileNameAsUpperCase.endsWith(".CRT.MANIFEST")
+		 && !fileNameAsUpperCase.endsWith(".CSS")
+		 && !fileNameAsUpperCase.endsWith(".CUR")
+		 && !fileNameAsUpperCase.endsWith(".DAT")
+		 && !fileNameAsUpperCase.endsWith(".DB")
+		 && !fileNameAsUpperCase.endsWith(".DCT")
+		 && !fileNameAsUpperCase.endsWith(".DLL")
+		 && !fileNameAsUpperCase.endsWith(".DOC")
+		 && !fileNameAsUpperCase.endsWith(".DTD")
+		 && !fileNameAsUpperCase.endsWith(".EXE")
+		 && !fileNameAsUpperCase.endsWith(".EXE.MANIFEST")
+		 && !fileNameAsUpperCase.endsWith(".GIF")
+		 && !fileNameAsUpperCase.endsWith(".HDR")
+		 && !fileNameAsUpperCase.endsWith(".HLP")
+		 && !fileNameAsUpperCase.endsWith(".HQX")
+		 && !fileNameAsUpperCase.endsWith(".HTC")
+		 && !fileNameAsUpperCase.endsWith(".HTF")
+		 && !fileNameAsUpperCase.endsWith(".HTM")
+		 && !fileNameAsUpperCase.endsWith(".HTML")
+		 && !fileNameAsUpperCase.endsWith(".IBT")
+		 && !fileNameAsUpperCase.endsWith(".ICO")
+		 && !fileNameAsUpperCase.endsWith(".IDX")
+		 && !fileNameAsUpperCase.endsWith(".INF")
+		 && !fileNameAsUpperCase.endsWith(".INI")
+		 && !fileNameAsUpperCase.endsWith(".INX")
+		 && !fileNameAsUpperCase.endsWith(".ISO")
+		 && !fileNameAsUpperCase.endsWith(".JAR")
+		 && !fileNameAsUpperCase.endsWith(".JPEG")
+		 && !fileNameAsUpperCase.endsWith(".JPG")
+		 && !fileNameAsUpperCase.endsWith(".JS")
+		 && !fileNameAsUpperCase.endsWith(".JSE")
+		 && !fileNameAsUpperCase.endsWith(".LNK")
+		 && !fileNameAsUpperCase.endsWith(".LOG")
+		 && !fileNameAsUpperCase.endsWith(".LST")
+		 && !fileNameAsUpperCase.endsWith(".MDB")
+		 && !fileNameAsUpperCase.endsWith(".MFC.MANIFEST")
+		 && !fileNameAsUpperCase.endsWith(".MO")
+		 && !fileNameAsUpperCase.endsWith(".MSG")
+		 && !fileNameAsUpperCase.endsWith(".MSI")
+		 && !fileNameAsUpperCase.endsWith(".MSO")
+		 && !fileNameAsUpperCase.endsWith(".NIB")
+		 && !fileNameAsUpperCase.endsWith(".OCX")
+		 && !fileNameAsUpperCase.endsWith(".ORG")
+		 && !fileNameAsUpperCase.endsWith(".PAL")
+		 && !fileNameAsUpperCase.endsWith(".PDF")
+		 && !fileNameAsUpperCase.endsWith(".PFL")
+		 && !fileNameAsUpperCase.endsWith(".PNG")
+		 && !fileNameAsUpperCase.endsWith(".PRO")
+		 && !fileNameAsUpperCase.endsWith(".PROPERTIES")
+		 && !fileNameAsUpperCase.endsWith(".RAR")
+		 && !fileNameAsUpperCase.endsWith(".RES")
+		 && !fileNameAsUpperCase.endsWith(".RTC")
+		 && !fileNameAsUpperCase.endsWith(".RTF")
+		 && !fileNameAsUpperCase.endsWith(".SIT")
+		 && !fileNameAsUpperCase.endsWith(".SRV")
+		 && !fileNameAsUpperCase.endsWith(".SWF")
+		 && !fileNameAsUpperCase.endsWith(".TB2")
+		 && !fileNameAsUpperCase.endsWith(".TIF")
+		 && !fileNameAsUpperCase.endsWith(".TPL")
+		 && !fileNameAsUpperCase.endsWith(".TXT")
+		 && !fileNameAsUpperCase.endsWith(".XML")
+		 && !fileNameAsUpperCase.endsWith(".XSL")
+		 && !fileNameAsUpperCase.endsWith(".ZIP")
+		 && !fileNameAsUpperCase.endsWith("ABOUT.HTA")
+		 && !fileNameAsUpperCase.endsWith("ACRCODES.ACR")
+		 && !fileNameAsUpperCase.endsWith("ACRCODES-EN.ACR")
+		 && !fileNameAsUpperCase.endsWith("CDINFO")
+		 && !fileNameAsUpperCase.endsWith("DATABASE.BACKUP")
+		 && !fileNameAsUpperCase.endsWith("DATABASE.DATA")
+		 && !fileNameAsUpperCase.endsWith("DATABASE.SCRIPT")
+		 && !fileNameAsUpperCase.endsWith("DICOMDIR")
+		 && !fileNameAsUpperCase.endsWith("JAR.OLD")
+		 && !fileNameAsUpperCase.endsWith("LOGGER")
+		 && !fileNameAsUpperCase.endsWith("NAVIGATOR.HTA")
+		 && !fileNameAsUpperCase.endsWith("NOTES")
+		 && !fileNameAsUpperCase.endsWith("README")
+		 && !fileNameAsUpperCase.endsWith("TOOLBARCONFIGURATION.OLD");
+	}
+
+	private static void processFileOrDirectory(DatabaseInformationModel databaseInformationModel,File file) {
+//System.err.println("RebuildDatabaseFromInstanceFiles.processFileOrDirectory(): "+file);
+		if (file.isDirectory() && isWantedDirectory(file)) {
 System.err.println("Recursing into directory "+file);
 			try {
 				File listOfFiles[] = file.listFiles();
@@ -51,100 +211,7 @@ System.err.println("Recursing into directory "+file);
 			}
 		}
 		else if (file.isFile()) {
-			if (!file.isHidden()
-			 && !fileNameAsUpperCase.endsWith(".APP")
-			 && !fileNameAsUpperCase.endsWith(".BAK")
-			 && !fileNameAsUpperCase.endsWith(".BAT")
-			 && !fileNameAsUpperCase.endsWith(".BDT")
-			 && !fileNameAsUpperCase.endsWith(".BIN")
-			 && !fileNameAsUpperCase.endsWith(".BMP")
-			 && !fileNameAsUpperCase.endsWith(".BZ2")
-			 && !fileNameAsUpperCase.endsWith(".CAB")
-			 && !fileNameAsUpperCase.endsWith(".CFG")
-			 && !fileNameAsUpperCase.endsWith(".CHM")
-			 && !fileNameAsUpperCase.endsWith(".CM")
-			 && !fileNameAsUpperCase.endsWith(".CNF")
-			 && !fileNameAsUpperCase.endsWith(".CNT")
-			 && !fileNameAsUpperCase.endsWith(".COL")
-			 && !fileNameAsUpperCase.endsWith(".CONFIG")
-			 && !fileNameAsUpperCase.endsWith(".CRT.MANIFEST")
-			 && !fileNameAsUpperCase.endsWith(".CSS")
-			 && !fileNameAsUpperCase.endsWith(".CUR")
-			 && !fileNameAsUpperCase.endsWith(".DAT")
-			 && !fileNameAsUpperCase.endsWith(".DB")
-			 && !fileNameAsUpperCase.endsWith(".DCT")
-			 && !fileNameAsUpperCase.endsWith(".DLL")
-			 && !fileNameAsUpperCase.endsWith(".DOC")
-			 && !fileNameAsUpperCase.endsWith(".DTD")
-			 && !fileNameAsUpperCase.endsWith(".EXE")
-			 && !fileNameAsUpperCase.endsWith(".EXE.MANIFEST")
-			 && !fileNameAsUpperCase.endsWith(".GIF")
-			 && !fileNameAsUpperCase.endsWith(".HDR")
-			 && !fileNameAsUpperCase.endsWith(".HLP")
-			 && !fileNameAsUpperCase.endsWith(".HQX")
-			 && !fileNameAsUpperCase.endsWith(".HTC")
-			 && !fileNameAsUpperCase.endsWith(".HTF")
-			 && !fileNameAsUpperCase.endsWith(".HTM")
-			 && !fileNameAsUpperCase.endsWith(".HTML")
-			 && !fileNameAsUpperCase.endsWith(".IBT")
-			 && !fileNameAsUpperCase.endsWith(".ICO")
-			 && !fileNameAsUpperCase.endsWith(".IDX")
-			 && !fileNameAsUpperCase.endsWith(".INF")
-			 && !fileNameAsUpperCase.endsWith(".INI")
-			 && !fileNameAsUpperCase.endsWith(".INX")
-			 && !fileNameAsUpperCase.endsWith(".ISO")
-			 && !fileNameAsUpperCase.endsWith(".JAR")
-			 && !fileNameAsUpperCase.endsWith(".JPEG")
-			 && !fileNameAsUpperCase.endsWith(".JPG")
-			 && !fileNameAsUpperCase.endsWith(".JS")
-			 && !fileNameAsUpperCase.endsWith(".JSE")
-			 && !fileNameAsUpperCase.endsWith(".LNK")
-			 && !fileNameAsUpperCase.endsWith(".LOG")
-			 && !fileNameAsUpperCase.endsWith(".LST")
-			 && !fileNameAsUpperCase.endsWith(".MDB")
-			 && !fileNameAsUpperCase.endsWith(".MFC.MANIFEST")
-			 && !fileNameAsUpperCase.endsWith(".MO")
-			 && !fileNameAsUpperCase.endsWith(".MSG")
-			 && !fileNameAsUpperCase.endsWith(".MSI")
-			 && !fileNameAsUpperCase.endsWith(".MSO")
-			 && !fileNameAsUpperCase.endsWith(".NIB")
-			 && !fileNameAsUpperCase.endsWith(".OCX")
-			 && !fileNameAsUpperCase.endsWith(".ORG")
-			 && !fileNameAsUpperCase.endsWith(".PAL")
-			 && !fileNameAsUpperCase.endsWith(".PDF")
-			 && !fileNameAsUpperCase.endsWith(".PFL")
-			 && !fileNameAsUpperCase.endsWith(".PNG")
-			 && !fileNameAsUpperCase.endsWith(".PRO")
-			 && !fileNameAsUpperCase.endsWith(".PROPERTIES")
-			 && !fileNameAsUpperCase.endsWith(".RAR")
-			 && !fileNameAsUpperCase.endsWith(".RES")
-			 && !fileNameAsUpperCase.endsWith(".RTC")
-			 && !fileNameAsUpperCase.endsWith(".RTF")
-			 && !fileNameAsUpperCase.endsWith(".SIT")
-			 && !fileNameAsUpperCase.endsWith(".SRV")
-			 && !fileNameAsUpperCase.endsWith(".SWF")
-			 && !fileNameAsUpperCase.endsWith(".TB2")
-			 && !fileNameAsUpperCase.endsWith(".TIF")
-			 && !fileNameAsUpperCase.endsWith(".TPL")
-			 && !fileNameAsUpperCase.endsWith(".TXT")
-			 && !fileNameAsUpperCase.endsWith(".XML")
-			 && !fileNameAsUpperCase.endsWith(".XSL")
-			 && !fileNameAsUpperCase.endsWith(".ZIP")
-			 && !fileNameAsUpperCase.endsWith("ABOUT.HTA")
-			 && !fileNameAsUpperCase.endsWith("ACRCODES.ACR")
-			 && !fileNameAsUpperCase.endsWith("ACRCODES-EN.ACR")
-			 && !fileNameAsUpperCase.endsWith("CDINFO")
-			 && !fileNameAsUpperCase.endsWith("DATABASE.BACKUP")
-			 && !fileNameAsUpperCase.endsWith("DATABASE.DATA")
-			 && !fileNameAsUpperCase.endsWith("DATABASE.SCRIPT")
-			 && !fileNameAsUpperCase.endsWith("DICOMDIR")
-			 && !fileNameAsUpperCase.endsWith("JAR.OLD")
-			 && !fileNameAsUpperCase.endsWith("LOGGER")
-			 && !fileNameAsUpperCase.endsWith("NAVIGATOR.HTA")
-			 && !fileNameAsUpperCase.endsWith("NOTES")
-			 && !fileNameAsUpperCase.endsWith("README")
-			 && !fileNameAsUpperCase.endsWith("TOOLBARCONFIGURATION.OLD")
-			) {
+			if (isWantedFile(file)) {
 System.err.println("Doing file "+file);
 				try {
 					DicomInputStream dfi = new DicomInputStream(new BufferedInputStream(new FileInputStream(file)));
@@ -171,18 +238,441 @@ System.err.println("Not a directory (that we want) or file "+file);
 		}
 	}
 
+	/***/
+	private DatabaseInformationModel databaseInformationModel;
+	/***/
+	private int numberOfReadingThreads;
+	/***/
+	private int batchSize;
+	/***/
+	private File checkpointFile;
+	/***/
+	private int debugLevel;
+	/***/
+	private Set completedDirectories;			// of String absolute path, read from the checkpoint file
+	/***/
+	private PrintWriter checkpointWriter;		// synchronize on this
+	/***/
+	private List completedDirectoriesNotYetCheckpointed;	// of String absolute path, synchronize on this
+	/***/
+	private long lastCheckpointTime;
+	/***/
+	private long reportInterval;
+
+	/***/
+	private ExecutorService walkingExecutor;
+	/***/
+	private ExecutorService readingExecutor;
+	/***/
+	private Semaphore filesNotYetRead;			// limits how many files are waiting to be read, so that the walk does not get too far ahead
+	/***/
+	private BlockingQueue filesRead;			// of FileRead, limits how many files have been read but not yet inserted
+	/***/
+	private AtomicLong outstandingTasks = new AtomicLong();
+	/***/
+	private AtomicLong filesInserted = new AtomicLong();
+	/***/
+	private AtomicLong filesFailed = new AtomicLong();
+	/***/
+	private AtomicLong directoriesWalked = new AtomicLong();
+
+	/***/
+	private static class FileRead {
+		/***/
+		File file;
+		/***/
+		AttributeList list;
+		/***/
+		DirectoryProgress progress;
+
+		FileRead(File file,AttributeList list,DirectoryProgress progress) {
+			this.file=file;
+			this.list=list;
+			this.progress=progress;
+		}
+	}
+
+	/**
+	 * <p>Keeps track of how many of the files in a directory are still to be inserted, so that
+	 * the directory can be checkpointed once they all have been.</p>
+	 */
+	private class DirectoryProgress {
+		/***/
+		String path;
+		/***/
+		int outstandingFiles;
+		/***/
+		boolean listed;
+
+		DirectoryProgress(String path) {
+			this.path=path;
+		}
+
+		synchronized void fileQueued() {
+			++outstandingFiles;
+		}
+
+		void fileDone() {
+			boolean completed;
+			synchronized (this) {
+				--outstandingFiles;
+				completed = listed && outstandingFiles == 0;
+			}
+			if (completed) {
+				markDirectoryCompleted(path);
+			}
+		}
+
+		void listingDone() {
+			boolean completed;
+			synchronized (this) {
+				listed = true;
+				completed = outstandingFiles == 0;
+			}
+			if (completed) {
+				markDirectoryCompleted(path);
+			}
+		}
+	}
+
+	/**
+	 * <p>Construct a rebuilder that reads files on several threads and inserts them in batches.</p>
+	 *
+	 * @param	databaseInformationModel	the database to insert into
+	 * @param	numberOfReadingThreads		how many files to read at the same time
+	 * @param	batchSize					how many files to insert in each transaction
+	 * @param	checkpointFile				where to record the directories completed, from which to resume if it already exists, or null if not resumable
+	 * @param	debugLevel					zero for only progress reports and errors, higher values to list each file
+	 * @exception	IOException			thrown if the checkpoint file cannot be read or written
+	 */
+	public RebuildDatabaseFromInstanceFiles(DatabaseInformationModel databaseInformationModel,int numberOfReadingThreads,int batchSize,File checkpointFile,int debugLevel) throws IOException {
+		this.databaseInformationModel=databaseInformationModel;
+		this.numberOfReadingThreads=Math.max(1,numberOfReadingThreads);
+		this.batchSize=Math.max(1,batchSize);
+		this.checkpointFile=checkpointFile;
+		this.debugLevel=debugLevel;
+		reportInterval=defaultReportInterval;
+		completedDirectories = new HashSet();
+		if (checkpointFile != null) {
+			if (checkpointFile.exists()) {
+				BufferedReader reader = new BufferedReader(new FileReader(checkpointFile));
+				String line;
+				while ((line=reader.readLine()) != null) {
+					if (line.length() > 0) {
+						completedDirectories.add(line);
+					}
+				}
+				reader.close();
+if (debugLevel > 0) System.err.println("Resuming rebuild, skipping files in "+completedDirectories.size()+" directories already completed");
+			}
+			checkpointWriter = new PrintWriter(new FileWriter(checkpointFile,true/*append*/));
+			completedDirectoriesNotYetCheckpointed = new ArrayList();
+		}
+	}
+
+	/**
+	 * @param	reportInterval	in ms, how often to report progress, or 0 for only at the end
+	 */
+	public void setReportInterval(long reportInterval) { this.reportInterval=reportInterval; }
+
+	/**
+	 * @return	the number of files inserted so far
+	 */
+	public long getNumberOfFilesInserted() { return filesInserted.get(); }
+
+	/**
+	 * @return	the number of files that could not be read or inserted so far
+	 */
+	public long getNumberOfFilesFailed() { return filesFailed.get(); }
+
+	/**
+	 * <p>Note that a directory has been completed, to be recorded in the checkpoint file the next time the database is checkpointed.</p>
+	 *
+	 * @param	path	the absolute path of a directory all of whose files have been inserted
+	 */
+	private void markDirectoryCompleted(String path) {
+if (debugLevel > 1) System.err.println("Completed directory "+path);
+		if (completedDirectoriesNotYetCheckpointed != null) {
+			synchronized (completedDirectoriesNotYetCheckpointed) {
+				completedDirectoriesNotYetCheckpointed.add(path);
+			}
+		}
+	}
+
+	/**
+	 * <p>Checkpoint the database and then record in the checkpoint file the directories completed so far.</p>
+	 *
+	 * <p>Until the database has been checkpointed, what has been inserted may not yet have been written to the database files,
+	 * so the directories are not recorded before, lest they be skipped when resuming after a crash even though their records are lost.</p>
+	 *
+	 * @param	force	if true, checkpoint now, else only if any directories have been completed and the checkpoint interval has elapsed
+	 */
+	private void checkpointCompletedDirectories(boolean force) {
+		if (checkpointWriter != null && (force || System.currentTimeMillis() - lastCheckpointTime > defaultCheckpointInterval)) {
+			List paths;
+			synchronized (completedDirectoriesNotYetCheckpointed) {
+				paths = new ArrayList(completedDirectoriesNotYetCheckpointed);
+				completedDirectoriesNotYetCheckpointed.clear();
+			}
+			if (!paths.isEmpty()) {
+				try {
+					databaseInformationModel.executeOnConnectionForWriting("CHECKPOINT");
+				}
+				catch (SQLException e) {
+					System.err.println("Cannot checkpoint database, so not recording completed directories: "+e);
+					synchronized (completedDirectoriesNotYetCheckpointed) {
+						completedDirectoriesNotYetCheckpointed.addAll(0,paths);
+					}
+					return;
+				}
+				synchronized (checkpointWriter) {
+					for (int i=0; i<paths.size(); ++i) {
+						checkpointWriter.println((String)(paths.get(i)));
+					}
+					checkpointWriter.flush();
+				}
+			}
+			lastCheckpointTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * <p>Walk a directory on a walking thread, queueing its files to be read and its subdirectories to be walked.</p>
+	 *
+	 * @param	directory
+	 */
+	private void walkDirectory(final File directory) {
+		outstandingTasks.incrementAndGet();
+		walkingExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					String path = directory.getAbsolutePath();
+					boolean alreadyCompleted = completedDirectories.contains(path);
+if (debugLevel > 0) System.err.println((alreadyCompleted ? "Recursing into already completed directory " : "Recursing into directory ")+directory);
+					DirectoryProgress progress = new DirectoryProgress(path);
+					File listOfFiles[] = directory.listFiles();
+					if (listOfFiles == null) {
+						System.err.println("Cannot list directory "+directory);
+					}
+					else {
+						for (int i=0; i<listOfFiles.length; ++i) {
+							File file = listOfFiles[i];
+							if (file.isDirectory()) {
+								if (isWantedDirectory(file)) {
+									walkDirectory(file);
+								}
+							}
+							else if (!alreadyCompleted && file.isFile() && isWantedFile(file)) {
+								progress.fileQueued();
+								readFile(file,progress);
+							}
+						}
+					}
+					directoriesWalked.incrementAndGet();
+					if (!alreadyCompleted) {
+						progress.listingDone();
+					}
+				}
+				catch (InterruptedException e) {
+					System.err.println("Interrupted walking directory "+directory);
+				}
+				finally {
+					outstandingTasks.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * <p>Queue a file to be read on a reading thread, waiting if too many are already waiting to be read.</p>
+	 *
+	 * @param	file
+	 * @param	progress	the progress of the directory containing the file, or null if it was specified explicitly
+	 * @exception	InterruptedException
+	 */
+	private void readFile(final File file,final DirectoryProgress progress) throws InterruptedException {
+		filesNotYetRead.acquire();
+		outstandingTasks.incrementAndGet();
+		readingExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+if (debugLevel > 0) System.err.println("Doing file "+file);
+					DicomInputStream dfi = new DicomInputStream(new BufferedInputStream(new FileInputStream(file)));
+					AttributeList list = new AttributeList();
+					try {
+						list.read(dfi,TagFromName.PixelData);
+					}
+					finally {
+						dfi.close();
+					}
+					filesRead.put(new FileRead(file,list,progress));
+				}
+				catch (Exception e) {
+					System.err.println("Cannot read "+file+": "+e);
+					filesFailed.incrementAndGet();
+					if (progress != null) {
+						progress.fileDone();
+					}
+				}
+				finally {
+					filesNotYetRead.release();
+					outstandingTasks.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * <p>Insert the files read, all in one transaction if possible, else each separately.</p>
+	 *
+	 * @param	batch	a List of FileRead, which is emptied
+	 */
+	private void insertBatch(List batch) {
+		int n = batch.size();
+		if (n > 0) {
+			AttributeList[] lists = new AttributeList[n];
+			String[] fileNames = new String[n];
+			for (int i=0; i<n; ++i) {
+				FileRead fileRead = (FileRead)(batch.get(i));
+				lists[i] = fileRead.list;
+				fileNames[i] = fileRead.file.getAbsolutePath();
+			}
+			try {
+				databaseInformationModel.insertObjects(lists,fileNames,DatabaseInformationModel.FILE_COPIED);
+				filesInserted.addAndGet(n);
+			}
+			catch (DicomException e) {
+				// one bad file spoils the whole batch, so insert each separately to find which
+				for (int i=0; i<n; ++i) {
+					try {
+						databaseInformationModel.insertObject(lists[i],fileNames[i],DatabaseInformationModel.FILE_COPIED);
+						filesInserted.incrementAndGet();
+					}
+					catch (DicomException ei) {
+						System.err.println("Cannot insert "+fileNames[i]+": "+ei);
+						filesFailed.incrementAndGet();
+					}
+				}
+			}
+			for (int i=0; i<n; ++i) {
+				DirectoryProgress progress = ((FileRead)(batch.get(i))).progress;
+				if (progress != null) {
+					progress.fileDone();
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * @param	startTime	when the rebuild started, in ms
+	 */
+	private void report(long startTime) {
+		long duration = System.currentTimeMillis() - startTime;
+		double rate = duration > 0 ? ((double)filesInserted.get())/(((double)duration)/1000) : 0;
+		System.err.println("Inserted "+filesInserted.get()+" files, "+filesFailed.get()+" failed, from "+directoriesWalked.get()+" directories, in "+duration+" ms, "+rate+" files/s");
+	}
+
+	/**
+	 * <p>Read and insert the files, and all the files in the directories (recursively).</p>
+	 *
+	 * <p>Files that cannot be read or inserted are reported and counted, but do not stop the rebuild.</p>
+	 *
+	 * @param	filesOrDirectories	the files and directories to insert
+	 * @exception	InterruptedException	if interrupted, in which case the rebuild may be resumed from the checkpoint file, if any
+	 */
+	public void rebuild(File[] filesOrDirectories) throws InterruptedException {
+		long startTime = System.currentTimeMillis();
+		walkingExecutor = Executors.newFixedThreadPool(Math.max(1,numberOfReadingThreads/4));
+		readingExecutor = Executors.newFixedThreadPool(numberOfReadingThreads);
+		filesNotYetRead = new Semaphore(numberOfReadingThreads+batchSize);
+		filesRead = new ArrayBlockingQueue(batchSize*2);
+		lastCheckpointTime = startTime;
+		boolean completed = false;
+		try {
+			for (int i=0; i<filesOrDirectories.length; ++i) {
+				final File file = filesOrDirectories[i];
+				if (file.isDirectory()) {
+					walkDirectory(file);
+				}
+				else if (file.isFile()) {
+					outstandingTasks.incrementAndGet();
+					walkingExecutor.execute(new Runnable() {
+						public void run() {
+							try {
+								readFile(file,null);
+							}
+							catch (InterruptedException e) {
+							}
+							finally {
+								outstandingTasks.decrementAndGet();
+							}
+						}
+					});
+				}
+				else {
+					System.err.println("Not a directory or file "+file);
+				}
+			}
+			List batch = new ArrayList(batchSize);
+			long lastReportTime = System.currentTimeMillis();
+			while (true) {
+				FileRead fileRead = (FileRead)(filesRead.poll(100,TimeUnit.MILLISECONDS));
+				if (fileRead != null) {
+					batch.add(fileRead);
+					if (batch.size() >= batchSize) {
+						insertBatch(batch);
+					}
+				}
+				else {
+					insertBatch(batch);		// don't hold on to a partial batch while waiting for files to be read
+					if (outstandingTasks.get() == 0 && filesRead.isEmpty()) {		// a file is always queued before the task that read it is finished
+						break;
+					}
+				}
+				checkpointCompletedDirectories(false);
+				if (reportInterval > 0 && System.currentTimeMillis() - lastReportTime > reportInterval) {
+					report(startTime);
+					lastReportTime = System.currentTimeMillis();
+				}
+			}
+			insertBatch(batch);
+			completed = true;
+		}
+		finally {
+			walkingExecutor.shutdownNow();
+			readingExecutor.shutdownNow();
+			if (checkpointWriter != null) {
+				if (!completed) {
+					checkpointCompletedDirectories(true);		// so as not to redo what has been done when resumed
+				}
+				checkpointWriter.close();
+				checkpointWriter = null;
+				if (completed) {
+					checkpointFile.delete();
+				}
+			}
+			report(startTime);
+		}
+	}
+
 	/**
 	 * <p>Read the DICOM files listed on the command line, load them into the specified model and store
 	 * the database files in the specified location.</p>
 	 *
-	 * @param	arg	the class name of the model, the (full) path of the database file prefix, and a list of DICOM file names or directories
+	 * <p>If any of the options -threads, -batch or -checkpoint are specified, the files are read on several threads
+	 * and inserted in batches, else one at a time.</p>
+	 *
+	 * @param	arg	the class name of the model, the (full) path of the database file prefix, optionally -threads followed by the number of reading threads,
+	 *			-batch followed by the number of files to insert in each transaction, -checkpoint followed by the checkpoint file from which to resume,
+	 *			and -debug followed by the debug level, and a list of DICOM file names or directories
 	 */
 	public static void main(String arg[]) {
-		RebuildDatabaseFromInstanceFiles ourselves = new RebuildDatabaseFromInstanceFiles();
+		RebuildDatabaseFromInstanceFiles ourselves = null;
 		if (arg.length >= 3) {
 			String databaseModelClassName = arg[0];
 			String databaseFileName = arg[1];
-		
+
 			if (databaseModelClassName.indexOf('.') == -1) {					// not already fully qualified
 				databaseModelClassName="com.pixelmed.database."+databaseModelClassName;
 			}
@@ -201,21 +691,57 @@ System.err.println("Not a directory (that we want) or file "+file);
 				e.printStackTrace(System.err);
 				System.exit(0);
 			}
-			long startOfRebuild=System.currentTimeMillis();
-			filesProcessed=0;
+			boolean parallel = false;
+			int numberOfReadingThreads = defaultNumberOfReadingThreads;
+			int batchSize = defaultBatchSize;
+			File checkpointFile = null;
+			int debugLevel = 0;
+			List files = new ArrayList();
 			int i = 2;		// start with 3rd argument
 			while (i<arg.length) {
 				String name = arg[i++];
-				File file = new File(name);
-				processFileOrDirectory(databaseInformationModel,file);
+				if (name.equals("-threads") && i<arg.length) {
+					numberOfReadingThreads = Integer.parseInt(arg[i++]);
+					parallel = true;
+				}
+				else if (name.equals("-batch") && i<arg.length) {
+					batchSize = Integer.parseInt(arg[i++]);
+					parallel = true;
+				}
+				else if (name.equals("-checkpoint") && i<arg.length) {
+					checkpointFile = new File(arg[i++]);
+					parallel = true;
+				}
+				else if (name.equals("-debug") && i<arg.length) {
+					debugLevel = Integer.parseInt(arg[i++]);
+				}
+				else {
+					files.add(new File(name));
+				}
 			}
-			long durationOfRebuild = System.currentTimeMillis() - startOfRebuild;
-			double rate = ((double)filesProcessed)/(((double)durationOfRebuild)/1000);
-			System.err.println("Processed "+filesProcessed+" files in "+durationOfRebuild+" ms, "+rate+" files/s");
+			if (parallel) {
+				try {
+					ourselves = new RebuildDatabaseFromInstanceFiles(databaseInformationModel,numberOfReadingThreads,batchSize,checkpointFile,debugLevel);
+					ourselves.rebuild((File[])(files.toArray(new File[files.size()])));
+				}
+				catch (Exception e) {
+					e.printStackTrace(System.err);
+				}
+			}
+			else {
+				long startOfRebuild=System.currentTimeMillis();
+				filesProcessed=0;
+				for (int f=0; f<files.size(); ++f) {
+					processFileOrDirectory(databaseInformationModel,(File)(files.get(f)));
+				}
+				long durationOfRebuild = System.currentTimeMillis() - startOfRebuild;
+				double rate = ((double)filesProcessed)/(((double)durationOfRebuild)/1000);
+				System.err.println("Processed "+filesProcessed+" files in "+durationOfRebuild+" ms, "+rate+" files/s");
+			}
+			databaseInformationModel.close();		// shuts down the database cleanly, so that what has been inserted is all written to disk
 		}
 		else {
-			System.err.println("Usage: java com.pixelmed.database.RebuildDatabaseFromInstanceFiles databaseModelClassName databaseFilePathPrefix databaseFileName path(s)");
+			System.err.println("Usage: java com.pixelmed.database.RebuildDatabaseFromInstanceFiles databaseModelClassName databaseFilePathPrefix [-threads n] [-batch n] [-checkpoint file] [-debug n] path(s)");
 		}
 	}
 }
-
@@ -1,4 +1,4 @@
-/* Copyright (c) 2001-2011, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
 
 package com.pixelmed.dicom;
 
@@ -6,298 +6,362 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * <p>A class that extends {@link java.io.FilterOutputStream FilterOutputStream} by 
- * creating a separate thread to actually perform the output operations, and returning
+ * <p>A class that extends {@link java.io.FilterOutputStream FilterOutputStream} by
+ * using a separate thread to actually perform the output operations, and returning
  * immediately from write calls, but blocking on closing.</p>
  *
+ * <p>The bytes written are copied into chunks, which are queued in a ring for each stream and written in order by
+ * a small pool of writer threads shared by all streams, so there is no need for a thread per stream, and the caller
+ * may re-use the arrays it writes from. Chunks are recycled through a shared pool once written.</p>
+ *
+ * <p>If the output is slower than the input, and the ring of a stream is full, write calls block until a chunk has been written
+ * (i.e., there is back-pressure rather than unbounded use of memory).</p>
+ *
+ * <p>Statistics on how long chunks wait to be written are available from {@link #getStatistics() getStatistics()}.</p>
+ *
  * @author	dclunie
  */
 public class AsynchronousOutputStream extends FilterOutputStream {
 
-	private static final String identString = "@(#) $Header: /userland/cvs/pixelmed/imgbook/com/pixelmed/dicom/AsynchronousOutputStream.java,v 1.2 2011/06/21 17:30:19 dclunie Exp $";
+	private static final String identString = "@(#) $Header: /userland/cvs/pixelmed/imgbook/com/pixelmed/dicom/AsynchronousOutputStream.java,v 1.3 2012/01/09 14:21:03 dclunie Exp $";
+
+	private static int chunkSize = 65536;
+	private static int maximumNumberOfPendingChunksPerStream = 16;
+	private static int maximumNumberOfChunksInPool = 256;
+	private static int maximumNumberOfChunksWrittenBeforeYielding = 4;	// so that one busy stream does not starve others when there are more streams than writers
+	private static int numberOfWriterThreads = Math.max(2,Runtime.getRuntime().availableProcessors());
+
+	private static ExecutorService writers;
+	private static ArrayList<byte[]> pool = new ArrayList<byte[]>();
+
+	private static long statisticsNumberOfChunksWritten;
+	private static long statisticsNumberOfBytesWritten;
+	private static long statisticsTotalResidencyTime;		// ns
+	private static long statisticsMaximumResidencyTime;		// ns
+	private static long statisticsNumberOfTimesBlocked;
+
+	private static synchronized ExecutorService getWriters() {
+		if (writers == null) {
+			writers = Executors.newFixedThreadPool(numberOfWriterThreads,new ThreadFactory() {
+				private int count;
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r,"AsynchronousOutputStream-"+(++count));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return writers;
+	}
+
+	/**
+	 * <p>Set the number of writer threads shared by all streams.</p>
+	 *
+	 * <p>Only effective if called before any stream is created.</p>
+	 *
+	 * @param	n	the number of threads
+	 */
+	public static synchronized void setNumberOfWriterThreads(int n) {
+		if (n > 0) {
+			numberOfWriterThreads = n;
+		}
+	}
+
+	private static byte[] getChunkFromPool() {
+		synchronized (pool) {
+			int size = pool.size();
+			if (size > 0) {
+				return pool.remove(size-1);
+			}
+		}
+		return new byte[chunkSize];
+	}
+
+	private static void returnChunkToPool(byte[] b) {
+		synchronized (pool) {
+			if (pool.size() < maximumNumberOfChunksInPool) {
+				pool.add(b);
+			}
+		}
+	}
+
+	private static synchronized void recordWritten(int length,long residencyTime) {
+		++statisticsNumberOfChunksWritten;
+		statisticsNumberOfBytesWritten+=length;
+		statisticsTotalResidencyTime+=residencyTime;
+		if (residencyTime > statisticsMaximumResidencyTime) {
+			statisticsMaximumResidencyTime = residencyTime;
+		}
+	}
+
+	private static synchronized void recordBlocked() {
+		++statisticsNumberOfTimesBlocked;
+	}
+
+	/**
+	 * <p>Get statistics on the chunks written by all streams since the statistics were last reset.</p>
+	 *
+	 * @return	a human-readable summary of the number of chunks and bytes written, the mean and maximum time chunks waited to be written,
+	 *			and the number of times a write blocked because the ring of a stream was full
+	 */
+	public static synchronized String getStatistics() {
+		return "chunks="+statisticsNumberOfChunksWritten
+			+" bytes="+statisticsNumberOfBytesWritten
+			+" meanResidency="+(statisticsNumberOfChunksWritten == 0 ? 0 : statisticsTotalResidencyTime/statisticsNumberOfChunksWritten/1000)+" us"
+			+" maximumResidency="+(statisticsMaximumResidencyTime/1000)+" us"
+			+" blocked="+statisticsNumberOfTimesBlocked;
+	}
+
+	/**
+	 * <p>Reset the statistics.</p>
+	 */
+	public static synchronized void resetStatistics() {
+		statisticsNumberOfChunksWritten = 0;
+		statisticsNumberOfBytesWritten = 0;
+		statisticsTotalResidencyTime = 0;
+		statisticsMaximumResidencyTime = 0;
+		statisticsNumberOfTimesBlocked = 0;
+	}
 
-	private BlockingQueue<ByteArrayObject> q;
-	private Consumer c;
-	private CountDownLatch doneSignal;
-	
-	private class ByteArrayObject {
+	private class Chunk {
 		byte[] b;
-		int off;
 		int len;
+		long publishedTime;
 		boolean requestToFlush;
 		boolean requestToClose;
-		
-		ByteArrayObject(byte[] b) {
-			this.b = b;
-			off = 0;
-			len = b.length;
-			requestToFlush = false;
-			requestToClose = false;
-		}
-		
-		ByteArrayObject(byte[] b,int off,int len) {
-			this.b = b;
-			this.off = off;
-			this.len = len;
-			requestToFlush = false;
-			requestToClose = false;
-		}
-		
-		ByteArrayObject(int b) {	// horribly inefficient but not intended to be used
-			this.b = new byte[1];
-			this.b[0] = (byte)b;
-			this.off = 0;
-			this.len = 1;
-			requestToFlush = false;
-			requestToClose = false;
-		}
-		
-		ByteArrayObject(boolean requestToFlush,boolean requestToClose) {
-			b = null;
-			this.requestToFlush = requestToFlush;
-			this.requestToClose = requestToClose;
+	}
+
+	private Chunk[] ring;			// access to all of the following is synchronized on this stream
+	private int fillIndex;			// chunk being filled by the caller
+	private int writeIndex;			// next chunk to be written
+	private int numberPending;		// chunks published and not yet written
+	private boolean scheduled;		// a writer is working on, or has been asked to work on, this stream
+	private boolean closeRequested;
+	private boolean closed;
+	private volatile IOException exception;
+
+	private Runnable writer = new Runnable() {
+		public void run() {
+			writePendingChunks();
 		}
-		
-		byte[] getBytes() {
-			return b;
+	};
+
+	/**
+	 * @param	out
+	 */
+	public AsynchronousOutputStream(OutputStream out) {
+		super(out);
+		ring = new Chunk[maximumNumberOfPendingChunksPerStream+1];		// one more than may be pending, for the one being filled
+		for (int i=0; i<ring.length; ++i) {
+			ring[i] = new Chunk();
 		}
-		
-		int getOffset() {
-			return off;
+		ring[fillIndex].b = getChunkFromPool();
+	}
+
+	private void checkNotBadOrClosed() throws IOException {
+		if (exception != null) {
+			throw exception;
 		}
-		
-		int getLength() {
-			return len;
+		if (closeRequested) {
+			throw new IOException("Stream closed");
 		}
-		
-		boolean isRequestToFlush() {
-			return requestToFlush;
+	}
+
+	// call only when synchronized on this
+	private void publish(boolean requestToFlush,boolean requestToClose) throws IOException {
+		Chunk chunk = ring[fillIndex];
+		chunk.requestToFlush = requestToFlush;
+		chunk.requestToClose = requestToClose;
+		chunk.publishedTime = System.nanoTime();
+		++numberPending;
+		fillIndex = (fillIndex+1)%ring.length;
+		if (!scheduled) {
+			scheduled = true;
+			getWriters().execute(writer);
 		}
-		
-		boolean isRequestToClose() {
-			return requestToClose;
+		if (!requestToClose) {
+			if (numberPending == ring.length-1) {
+				recordBlocked();
+				while (numberPending == ring.length-1) {		// writer always drains, even after a failure
+					try {
+						wait();
+					}
+					catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+			}
+			Chunk next = ring[fillIndex];
+			next.len = 0;
+			next.requestToFlush = false;
+			next.requestToClose = false;
+			if (next.b == null) {
+				next.b = getChunkFromPool();
+			}
 		}
-		
-		public String toString() {
-			StringBuffer buf = new StringBuffer();
-			buf.append("array ");
-			if (b != null) {
-				buf.append("not ");
+	}
+
+	private void writePendingChunks() {
+		int count = 0;
+		while (true) {
+			Chunk chunk;
+			synchronized (this) {
+				if (numberPending == 0) {
+					scheduled = false;
+					return;
+				}
+				if (count++ >= maximumNumberOfChunksWrittenBeforeYielding) {
+					getWriters().execute(writer);		// go to the back of the queue; still scheduled
+					return;
+				}
+				chunk = ring[writeIndex];
+			}
+			IOException e = null;
+			try {
+				if (exception == null) {
+					if (chunk.len > 0) {
+						out.write(chunk.b,0,chunk.len);
+					}
+					if (chunk.requestToFlush) {
+						out.flush();
+					}
+				}
+			}
+			catch (IOException ioe) {
+				e = ioe;
+			}
+			if (chunk.requestToClose) {
+				try {
+					out.close();		// even if bad, to release the resources
+				}
+				catch (IOException ioe) {
+					if (e == null) {
+						e = ioe;
+					}
+				}
+			}
+			recordWritten(chunk.len,System.nanoTime()-chunk.publishedTime);
+			synchronized (this) {
+				if (e != null && exception == null) {
+					exception = e;
+				}
+				if (chunk.requestToClose) {
+					closed = true;
+				}
+				if (chunk.b != null && (chunk.requestToClose || exception != null)) {
+					returnChunkToPool(chunk.b);
+					chunk.b = null;
+				}
+				writeIndex = (writeIndex+1)%ring.length;
+				--numberPending;
+				notifyAll();
 			}
-			buf.append("null");
-			buf.append("; off=");
-			buf.append(Integer.toString(off));
-			buf.append("; len=");
-			buf.append(Integer.toString(len));
-			buf.append("; flush=");
-			buf.append(requestToFlush ? "T" : "F");
-			buf.append("; close=");
-			buf.append(requestToClose ? "T" : "F");
-			buf.append("\n");
-			return buf.toString();
 		}
 	}
 
     /**
-     * Writes <code>len</code> bytes from the specified byte array 
-     * starting at offset <code>off</code> to this output stream. 
+     * Writes <code>len</code> bytes from the specified byte array
+     * starting at offset <code>off</code> to this output stream.
      * <p>
+     * The bytes are copied, so the array may be re-used by the caller as soon as this method returns.
      *
      * @param      b     the data.
      * @param      off   the start offset in the data.
      * @param      len   the number of bytes to write.
      * @exception  IOException  if an I/O error occurs.
      */
-	public void write(byte b[],int off,int len) throws IOException {
-		try {
-			q.put(new ByteArrayObject(b,0,b.length));
-		}
-		catch (InterruptedException e) {
-//e.printStackTrace(System.err);
-			throw new IOException (e);
+	public synchronized void write(byte b[],int off,int len) throws IOException {
+		checkNotBadOrClosed();
+		while (len > 0) {
+			Chunk chunk = ring[fillIndex];
+			int count = Math.min(len,chunk.b.length-chunk.len);
+			System.arraycopy(b,off,chunk.b,chunk.len,count);
+			chunk.len+=count;
+			off+=count;
+			len-=count;
+			if (chunk.len == chunk.b.length) {
+				publish(false,false);
+				checkNotBadOrClosed();
+			}
 		}
 	}
 
- 	// Overload all other parent write() methods to be sure that byteOffset is updated (and not updated more than once)
+ 	// Overload all other parent write() methods, since FilterOutputStream would otherwise write one byte at a time
 
     /**
-     * Writes the specified <code>byte</code> to this output stream. 
+     * Writes the specified <code>byte</code> to this output stream.
      *
      * @param      b   the <code>byte</code>.
      * @exception  IOException  if an I/O error occurs.
      */
-    public void write(int b) throws IOException {
-		try {
-			q.put(new ByteArrayObject(b));
-		}
-		catch (InterruptedException e) {
-//e.printStackTrace(System.err);
-			throw new IOException (e);
+    public synchronized void write(int b) throws IOException {
+		checkNotBadOrClosed();
+		Chunk chunk = ring[fillIndex];
+		chunk.b[chunk.len++] = (byte)b;
+		if (chunk.len == chunk.b.length) {
+			publish(false,false);
 		}
     }
 
     /**
-     * Writes <code>b.length</code> bytes to this output stream. 
+     * Writes <code>b.length</code> bytes to this output stream.
      *
      * @param      b   the data to be written.
      * @exception  IOException  if an I/O error occurs.
      */
     public void write(byte b[]) throws IOException {
-		try {
-			q.put(new ByteArrayObject(b));
-		}
-		catch (InterruptedException e) {
-//e.printStackTrace(System.err);
-			throw new IOException (e);
-		}
+		write(b,0,b.length);
     }
-	
-	private class Consumer implements Runnable {
-		private final BlockingQueue<ByteArrayObject> q;
-		private final OutputStream out;
-		private final CountDownLatch doneSignal;
-		private boolean bad;
-		private IOException exception;
-		
-		Consumer(BlockingQueue<ByteArrayObject> q,CountDownLatch doneSignal,OutputStream out) {
-			this.q = q;
-			this.out = out;
-			this.doneSignal = doneSignal;
-			bad = false;
-		}
-		
-		public void run() {
-			try {
-				while(doneSignal.getCount() > 0) {
-					consume(q.take());
-				}
-			}
-			catch (InterruptedException e) {
-				bad = true;
-				exception = new IOException(e);
-			}
-			// returns when done and hence thread goes away
-//System.err.println("AsynchronousOutputStream.Consumer.run(): returning");
-		}
-		
-		void consume(ByteArrayObject bao) {
-//System.err.println("AsynchronousOutputStream.Consumer.consume(): "+bao);
-			{
-				byte[] b = bao.getBytes();
-				int off = bao.getOffset();
-				int len = bao.getLength();
-				if (b != null && len > 0) {
-					try {
-						out.write(b,off,len);
-					}
-					catch (IOException e) {
-//e.printStackTrace(System.err);
-						bad = true;
-						exception = e;
-						doneSignal.countDown();
-					}
-				}
-			}
-			if (bao.isRequestToFlush()) {
-				try {
-					out.flush();
-				}
-				catch (IOException e) {
-//e.printStackTrace(System.err);
-					bad = true;
-					exception = e;
-					doneSignal.countDown();
-				}
-			}
-			if (bao.isRequestToClose()) {
-				try {
-					out.close();
-				}
-				catch (IOException e) {
-//e.printStackTrace(System.err);
-					bad = true;
-					exception = e;
-				}
-//System.err.println("AsynchronousOutputStream.Consumer.consume(): isRequestToClose, setting done ");
-				doneSignal.countDown();
-			}
-		}
-		
-		synchronized boolean isBad() {
-			return bad;
-		}
-		
-		synchronized IOException getException() {
-			return exception;
-		}
-	}
-
-	/**
-	 * @param	out
-	 */
-	public AsynchronousOutputStream(OutputStream out) {
-		super(out);
-//System.err.println("AsynchronousOutputStream:");
-		q = new LinkedBlockingQueue<ByteArrayObject>();
-		doneSignal = new CountDownLatch(1);
-		c = new Consumer(q,doneSignal,out);
-		new Thread(c).start();
-	}
 
     /**
-     * Flushes this output stream and forces any buffered output bytes to be written out to the stream. 
+     * Flushes this output stream and forces any buffered output bytes to be written out to the stream.
+     *
+     * <p>Does not wait for the output to be written.</p>
      *
      * @exception  IOException  if an I/O error occurs.
      */
-	public void flush()	throws IOException {
-//System.err.println("AsynchronousOutputStream.flush():");
-		try {
-			q.put(new ByteArrayObject(true,false));
-		}
-		catch (InterruptedException e) {
-//e.printStackTrace(System.err);
-			throw new IOException (e);
-		}
+	public synchronized void flush()	throws IOException {
+		checkNotBadOrClosed();
+		publish(true,false);
 		// do NOT block
 	}
 
     /**
-     * Closes this output stream and releases any system resources associated with the stream. 
+     * Closes this output stream and releases any system resources associated with the stream.
+     *
+     * <p>Blocks until all output has been written.</p>
      *
      * @exception  IOException  if an I/O error occurs.
      */
-	public void close()	throws IOException {
-//System.err.println("AsynchronousOutputStream.close():");
-		try {
-			q.put(new ByteArrayObject(false,true));
+	public synchronized void close()	throws IOException {
+		if (!closeRequested) {
+			closeRequested = true;
+			publish(false,true);
 		}
-		catch (InterruptedException e) {
-//e.printStackTrace(System.err);
-			throw new IOException (e);
-		}
-//System.err.println("AsynchronousOutputStream.close(): about to block until all output is done");
-		try {
-			doneSignal.await();
-		}
-		catch (InterruptedException e) {
-//e.printStackTrace(System.err);
-			throw new IOException (e);
-		}
-//System.err.println("AsynchronousOutputStream.close(): back from waiting for all output to be done");
-		if (c.isBad()) {
-			IOException e = c.getException();
-			if (e != null) {
-				throw e;
+		while (!closed) {
+			try {
+				wait();
 			}
-			else {
-				throw new IOException("Bad for unknown reason");
+			catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+		// return the chunks of the ring that have already been written, or were never used, to the pool
+		for (int i=0; i<ring.length; ++i) {
+			if (ring[i].b != null) {
+				returnChunkToPool(ring[i].b);
+				ring[i].b = null;
 			}
 		}
-//System.err.println("AsynchronousOutputStream.close(): returning");
+		if (exception != null) {
+			throw exception;
+		}
 	}
-}
\ No newline at end of file
+}
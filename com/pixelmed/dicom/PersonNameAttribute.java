@@ -299,7 +299,7 @@ public class PersonNameAttribute extends StringAttributeAffectedBySpecificCharac
 			String familyName = components.size() > 0 ? (String)(components.get(0)) : "";
 			String givenName  = components.size() > 1 ? (String)(components.get(1)) : "";
 			try {
-				PhoneticStringEncoder encoder = new PhoneticStringEncoder();
+				PhoneticStringEncoder encoder = PhoneticStringEncoder.getSharedInstance();
 				String phoneticFamilyName = encodeString(familyName,encoder,forQuery);
 				String phoneticGivenName  = encodeString(givenName,encoder,forQuery);
 				phoneticName = phoneticFamilyName + "^" + phoneticGivenName;
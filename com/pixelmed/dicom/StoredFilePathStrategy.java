@@ -4,6 +4,9 @@ package com.pixelmed.dicom;
 
 import java.io.File;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * <p>This is an abstract class to support creating path names for how to organize the folders and files for stored composite instances based on their SOP Instance UID.</p>
  *
@@ -12,8 +15,12 @@ import java.io.File;
  * <p>The choices may be passed as arguments to constructors of {@link com.pixelmed.network.StorageSOPClassSCPDispatcher StorageSOPClassSCPDispatcher}.</p>
  *
  * <p>Methods are provided to generate pathnames based on the supplied UID, as well as to create any sub-folders required and
- * generate altrernative path names if the existing path name is alreayd in use for some other purpose.
- * 
+ * generate altrernative path names if the existing path name is alreayd in use for some other purpose.</p>
+ *
+ * <p>Folders that have already been created (or found to exist) are remembered, so that the file system is not asked to
+ * check for or create the same folders again for every stored file. If folders are removed by some other process while in use,
+ * call {@link #forgetFoldersKnownToExist() forgetFoldersKnownToExist()}.</p>
+ *
  * @author	dclunie, jimirrer
  */
 public abstract class StoredFilePathStrategy {
@@ -42,6 +49,22 @@ public abstract class StoredFilePathStrategy {
 	 * @see com.pixelmed.dicom.StoredFilePathStrategyHashSubFolders
 	 */
 	public static final StoredFilePathStrategy BYSOPINSTANCEUIDHASHSUBFOLDERS = new StoredFilePathStrategyHashSubFolders();
+
+	/**
+	 * <p>Store all the stored files in a two level hierarchy of 256 folders per level, using successive bytes of a well-distributed hash
+	 * of the SOP Instance UID as the folder name and the SOP Instance UID as the filename within the most deeply nested folder.</p>
+	 *
+	 * @see com.pixelmed.dicom.StoredFilePathStrategyShardedSubFolders
+	 */
+	public static final StoredFilePathStrategy BYSOPINSTANCEUIDSHARDEDSUBFOLDERS = new StoredFilePathStrategyShardedSubFolders();
+
+	/**
+	 * <p>Store all the stored files in a folder for each series within a folder for each study, with the study folders distributed
+	 * in a two level hierarchy of 256 folders per level using a hash of the Study Instance UID, and the SOP Instance UID as the filename.</p>
+	 *
+	 * @see com.pixelmed.dicom.StoredFilePathStrategyStudySeriesFolders
+	 */
+	public static final StoredFilePathStrategy BYSTUDYSERIESANDSOPINSTANCEUIDFOLDERS = new StoredFilePathStrategyStudySeriesFolders();
 	
 	/**
 	 * <p>Get the default strategy.</p>
@@ -69,6 +92,44 @@ public abstract class StoredFilePathStrategy {
 	public File makeStoredFilePath(File savedInstancesFolder,String sopInstanceUID) {
 		return new File(savedInstancesFolder,makeStoredFilePath(sopInstanceUID));
 	}
+
+	/**
+	 * <p>Does this strategy use the Study and Series Instance UIDs, and not just the SOP Instance UID, to generate a path ?</p>
+	 *
+	 * @return		true if the Study and Series Instance UIDs are used
+	 */
+	public boolean requiresStudyAndSeriesInstanceUIDs() {
+		return false;
+	}
+
+	/**
+	 * <p>Generate a path to where to store a file based on its Study, Series and SOP Instance UIDs.</p>
+	 *
+	 * <p>Unless overridden, ignores the Study and Series Instance UIDs.</p>
+	 *
+	 * @param	studyInstanceUID		the Study Instance UID of the instance to be saved, or null if not known
+	 * @param	seriesInstanceUID		the Series Instance UID of the instance to be saved, or null if not known
+	 * @param	sopInstanceUID			the SOP Instance UID of the instance to be saved
+	 * @return							the path to the file, which may contain nested sub-folders
+	 */
+	public String makeStoredFilePath(String studyInstanceUID,String seriesInstanceUID,String sopInstanceUID) {
+		return makeStoredFilePath(sopInstanceUID);
+	}
+
+	/**
+	 * <p>Generate a path to where to store a file based on its Study, Series and SOP Instance UIDs.</p>
+	 *
+	 * @param	savedInstancesFolder	the folder in which to save the instance
+	 * @param	studyInstanceUID		the Study Instance UID of the instance to be saved, or null if not known
+	 * @param	seriesInstanceUID		the Series Instance UID of the instance to be saved, or null if not known
+	 * @param	sopInstanceUID			the SOP Instance UID of the instance to be saved
+	 * @return							the path to the file in the specified folder, which may contain nested sub-folders
+	 */
+	public File makeStoredFilePath(File savedInstancesFolder,String studyInstanceUID,String seriesInstanceUID,String sopInstanceUID) {
+		return requiresStudyAndSeriesInstanceUIDs()
+			? new File(savedInstancesFolder,makeStoredFilePath(studyInstanceUID,seriesInstanceUID,sopInstanceUID))
+			: makeStoredFilePath(savedInstancesFolder,sopInstanceUID);
+	}
 	
 	/**
 	 * <p>Generate an alternative path to where to store a file based on its SOP Instance UID.</p>
@@ -97,7 +158,24 @@ public abstract class StoredFilePathStrategy {
 	 * @return							the path to the file in the specified folder, which may contain nested sub-folders
 	 */
 	public File makeReliableStoredFilePathWithFoldersCreated(File savedInstancesFolder,String alternativeSubfolder,String sopInstanceUID) {
-		File storedFile = makeStoredFilePath(savedInstancesFolder,sopInstanceUID);
+		return makeReliableStoredFilePathWithFoldersCreated(savedInstancesFolder,alternativeSubfolder,null,null,sopInstanceUID);
+	}
+
+	/**
+	 * <p>Generate a path to where to store a file based on its Study, Series and SOP Instance UIDs and assure its reliability.</p>
+	 *
+	 * <p>Includes creating any necessary parent folders if they do not already exist,
+	 * and using an alternate path or name if a desired file name already exists as something else (such as a folder).</p>
+	 *
+	 * @param	savedInstancesFolder	the folder in which to save the instance
+	 * @param	alternativeSubfolder	the alternate sub-folder with the saved instance folder in which to save the instance
+	 * @param	studyInstanceUID		the Study Instance UID of the instance to be saved, or null if not known
+	 * @param	seriesInstanceUID		the Series Instance UID of the instance to be saved, or null if not known
+	 * @param	sopInstanceUID			the SOP Instance UID of the instance to be saved
+	 * @return							the path to the file in the specified folder, which may contain nested sub-folders
+	 */
+	public File makeReliableStoredFilePathWithFoldersCreated(File savedInstancesFolder,String alternativeSubfolder,String studyInstanceUID,String seriesInstanceUID,String sopInstanceUID) {
+		File storedFile = makeStoredFilePath(savedInstancesFolder,studyInstanceUID,seriesInstanceUID,sopInstanceUID);
 		if (storedFile.exists()) {
 			if (storedFile.isFile()) {
 if (debugLevel > 0) System.err.println("StoredFilePathStrategy.makeReliableStoredFilePathWithFoldersCreated(): Deleting pre-existing file for same SOPInstanceUID");
@@ -109,7 +187,7 @@ if (debugLevel > 0) System.err.println("StoredFilePathStrategy.makeReliableStore
 			}
 		}
 		File parentOfStoredFile = storedFile.getParentFile();
-		if (parentOfStoredFile != null) {
+		if (parentOfStoredFile != null && !foldersKnownToExist.containsKey(parentOfStoredFile.getPath())) {
 			if (parentOfStoredFile.exists()) {
 				if (!parentOfStoredFile.isDirectory()) {
 if (debugLevel > 0) System.err.println("StoredFilePathStrategy.makeReliableStoredFilePathWithFoldersCreated(): use an alternative file name, since "+storedFile+" already used as a something other than a directory (presumably a file)");
@@ -127,6 +205,10 @@ if (debugLevel > 0) System.err.println("StoredFilePathStrategy.makeReliableStore
 					}
 				}
 			}
+			parentOfStoredFile = storedFile.getParentFile();
+			if (parentOfStoredFile != null && parentOfStoredFile.isDirectory()) {
+				rememberFolderKnownToExist(parentOfStoredFile);
+			}
 		}
 		return storedFile;
 	}
@@ -146,6 +228,56 @@ if (debugLevel > 0) System.err.println("StoredFilePathStrategy.makeReliableStore
 	public File makeReliableStoredFilePathWithFoldersCreated(File savedInstancesFolder,String sopInstanceUID) {
 		return makeReliableStoredFilePathWithFoldersCreated(savedInstancesFolder,defaultAlternativeSubfolder,sopInstanceUID);
 	}
+
+	/**
+	 * <p>Generate a path to where to store a file that has been received (e.g., into a temporary file) and assure its reliability.</p>
+	 *
+	 * <p>If the strategy requires them, the Study and Series Instance UIDs are read from the received file (stopping before the Pixel Data).</p>
+	 *
+	 * <p>Includes creating any necessary parent folders if they do not already exist,
+	 * and using an alternate path or name (in a default alternative sub-folder) if a desired file name already exists as something else (such as a folder).</p>
+	 *
+	 * @param	savedInstancesFolder	the folder in which to save the instance
+	 * @param	sopInstanceUID			the SOP Instance UID of the instance to be saved
+	 * @param	receivedFile			a DICOM file containing the instance, with or without a meta information header
+	 * @return							the path to the file in the specified folder, which may contain nested sub-folders
+	 */
+	public File makeReliableStoredFilePathWithFoldersCreated(File savedInstancesFolder,String sopInstanceUID,File receivedFile) {
+		String studyInstanceUID = null;
+		String seriesInstanceUID = null;
+		if (requiresStudyAndSeriesInstanceUIDs() && receivedFile != null) {
+			try {
+				AttributeList list = new AttributeList();
+				list.read(receivedFile,TagFromName.PixelData);
+				studyInstanceUID = Attribute.getSingleStringValueOrNull(list,TagFromName.StudyInstanceUID);
+				seriesInstanceUID = Attribute.getSingleStringValueOrNull(list,TagFromName.SeriesInstanceUID);
+			}
+			catch (Exception e) {
+if (debugLevel > 0) System.err.println("StoredFilePathStrategy.makeReliableStoredFilePathWithFoldersCreated(): cannot read Study and Series Instance UIDs from "+receivedFile+" "+e);
+			}
+		}
+		return makeReliableStoredFilePathWithFoldersCreated(savedInstancesFolder,defaultAlternativeSubfolder,studyInstanceUID,seriesInstanceUID,sopInstanceUID);
+	}
+
+	protected static int maximumNumberOfFoldersKnownToExist = 100000;
+
+	private Map<String,Boolean> foldersKnownToExist = new ConcurrentHashMap<String,Boolean>();
+
+	private void rememberFolderKnownToExist(File folder) {
+		if (foldersKnownToExist.size() >= maximumNumberOfFoldersKnownToExist) {
+			foldersKnownToExist.clear();		// simpler than LRU, and it is cheap to find them again
+		}
+		foldersKnownToExist.put(folder.getPath(),Boolean.TRUE);
+	}
+
+	/**
+	 * <p>Forget which folders have already been created, so that they will be checked for and created again if necessary.</p>
+	 *
+	 * <p>Use if folders may have been removed by some other process.</p>
+	 */
+	public void forgetFoldersKnownToExist() {
+		foldersKnownToExist.clear();
+	}
 	
 	protected int debugLevel;
 	
@@ -0,0 +1,108 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.dicom;
+
+import java.io.File;
+
+/**
+ * <p>Store files in a hierarchy of folders using successive hexadecimal digits of a 64 bit hash
+ * of the SOP Instance UID as the folder names and the SOP Instance UID as the filename within the most deeply nested folder.</p>
+ *
+ * <p>Unlike {@link com.pixelmed.dicom.StoredFilePathStrategyHashSubFolders StoredFilePathStrategyHashSubFolders}, which uses the
+ * 16 bit Java String hashcode, the hash is well distributed even for UIDs that differ only in their last few characters, and the
+ * depth and fan-out of the hierarchy are configurable, so that the number of files per folder can be kept small
+ * for any expected number of files.</p>
+ *
+ * <p>The default of two levels of two hexadecimal digits gives 65536 folders, each of which contains about 150 files per 10 million files stored.</p>
+ *
+ * @author	agent
+ */
+public class StoredFilePathStrategyShardedSubFolders extends StoredFilePathStrategy {
+
+	private static final char[] hexDigits = { '0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f' };
+
+	protected int depth;
+	protected int hexDigitsPerLevel;
+
+	/**
+	 * <p>Use two levels of folders with 256 folders per level.</p>
+	 */
+	public StoredFilePathStrategyShardedSubFolders() {
+		this(2,2);
+	}
+
+	/**
+	 * <p>Use the specified number of levels of folders with 256 folders per level.</p>
+	 *
+	 * @param	depth				the number of levels of folders
+	 */
+	public StoredFilePathStrategyShardedSubFolders(int depth) {
+		this(depth,2);
+	}
+
+	/**
+	 * <p>Use the specified number of levels of folders with the specified fan-out.</p>
+	 *
+	 * @param	depth				the number of levels of folders
+	 * @param	hexDigitsPerLevel	the number of hexadecimal digits in each folder name, i.e., 16, 256 or 4096 folders per level for 1, 2 or 3
+	 * @exception	IllegalArgumentException	if there is not at least one level, or more digits are requested in total than the hash has
+	 */
+	public StoredFilePathStrategyShardedSubFolders(int depth,int hexDigitsPerLevel) {
+		if (depth < 1 || hexDigitsPerLevel < 1 || depth*hexDigitsPerLevel > 16) {
+			throw new IllegalArgumentException("Unsupported depth "+depth+" and hexadecimal digits per level "+hexDigitsPerLevel);
+		}
+		this.depth=depth;
+		this.hexDigitsPerLevel=hexDigitsPerLevel;
+	}
+
+	/**
+	 * <p>Compute a 64 bit FNV-1a hash of a string.</p>
+	 *
+	 * @param	s	the string
+	 * @return		the hash
+	 */
+	public static long hash(String s) {
+		long h = 0xcbf29ce484222325l;
+		int length = s.length();
+		for (int i=0; i<length; ++i) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3l;
+		}
+		return h;
+	}
+
+	/**
+	 * <p>Append the folders for the hash of a string to a path.</p>
+	 *
+	 * @param	buf		the path to append to
+	 * @param	s		the string to hash
+	 */
+	protected void appendShardFolders(StringBuffer buf,String s) {
+		long h = hash(s);
+		for (int level=0; level<depth; ++level) {
+			for (int d=0; d<hexDigitsPerLevel; ++d) {
+				buf.append(hexDigits[(int)(h >>> 60)]);
+				h <<= 4;
+			}
+			buf.append(File.separator);
+		}
+	}
+
+	public String makeStoredFilePath(String sopInstanceUID) {
+		StringBuffer buf = new StringBuffer();
+		appendShardFolders(buf,sopInstanceUID);
+		buf.append(sopInstanceUID);
+		return buf.toString();
+	}
+
+	public String toString() {
+		return "BYSOPINSTANCEUIDSHARDEDSUBFOLDERS";
+	}
+
+	/**
+	 * <p>Perform self test.  If arguments are given, then use then as test UIDs.  If no arguments, then use internal test UIDs.</p>
+	 */
+	public static void main(String arg[]) {
+		BYSOPINSTANCEUIDSHARDEDSUBFOLDERS.test(arg);
+	}
+}
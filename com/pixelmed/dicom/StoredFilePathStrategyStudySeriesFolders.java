@@ -0,0 +1,84 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.dicom;
+
+import java.io.File;
+
+/**
+ * <p>Store files in a folder for each series within a folder for each study, using the Study and Series Instance UIDs as the folder names
+ * and the SOP Instance UID as the filename, with the study folders distributed in a hierarchy of folders using a hash of the Study Instance UID.</p>
+ *
+ * <p>This keeps the files of a series together, which makes reading a whole series faster, and keeps the number of entries in each folder small.</p>
+ *
+ * <p>If the Study or Series Instance UID is not known, or is not usable as a folder name, then the file is stored in the hierarchy of folders
+ * using a hash of the SOP Instance UID instead, as for {@link com.pixelmed.dicom.StoredFilePathStrategyShardedSubFolders StoredFilePathStrategyShardedSubFolders}.</p>
+ *
+ * @author	agent
+ */
+public class StoredFilePathStrategyStudySeriesFolders extends StoredFilePathStrategyShardedSubFolders {
+
+	/**
+	 * <p>Use two levels of folders with 256 folders per level above the study folders.</p>
+	 */
+	public StoredFilePathStrategyStudySeriesFolders() {
+		super();
+	}
+
+	/**
+	 * <p>Use the specified number of levels of folders with the specified fan-out above the study folders.</p>
+	 *
+	 * @param	depth				the number of levels of folders
+	 * @param	hexDigitsPerLevel	the number of hexadecimal digits in each folder name
+	 */
+	public StoredFilePathStrategyStudySeriesFolders(int depth,int hexDigitsPerLevel) {
+		super(depth,hexDigitsPerLevel);
+	}
+
+	protected static boolean isUsableAsFolderName(String uid) {
+		boolean usable = uid != null && uid.length() > 0 && uid.length() <= 64 && !uid.equals(".") && !uid.equals("..");
+		for (int i=0; usable && i<uid.length(); ++i) {
+			char c = uid.charAt(i);
+			usable = (c >= '0' && c <= '9') || c == '.';
+		}
+		return usable;
+	}
+
+	public boolean requiresStudyAndSeriesInstanceUIDs() {
+		return true;
+	}
+
+	public String makeStoredFilePath(String studyInstanceUID,String seriesInstanceUID,String sopInstanceUID) {
+		String path;
+		if (isUsableAsFolderName(studyInstanceUID) && isUsableAsFolderName(seriesInstanceUID)) {
+			StringBuffer buf = new StringBuffer();
+			appendShardFolders(buf,studyInstanceUID);
+			buf.append(studyInstanceUID);
+			buf.append(File.separator);
+			buf.append(seriesInstanceUID);
+			buf.append(File.separator);
+			buf.append(sopInstanceUID);
+			path = buf.toString();
+		}
+		else {
+			path = makeStoredFilePath(sopInstanceUID);
+		}
+		return path;
+	}
+
+	public String toString() {
+		return "BYSTUDYSERIESANDSOPINSTANCEUIDFOLDERS";
+	}
+
+	protected void test(String arg[]) {
+		super.test(arg);
+		File dir = new File("savedInstancesHome");
+		System.err.println("study/series/uid: 1.2.3/1.2.3.4/1.2.3.4.5   file path: " + makeStoredFilePath(dir,"1.2.3","1.2.3.4","1.2.3.4.5"));
+	}
+
+	/**
+	 * <p>Perform self test.  If arguments are given, then use then as test UIDs.  If no arguments, then use internal test UIDs.</p>
+	 */
+	public static void main(String arg[]) {
+		BYSTUDYSERIESANDSOPINSTANCEUIDFOLDERS.test(arg);
+	}
+}
@@ -237,6 +237,7 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Us:
 			}
 			catch (IOException e2) {
 			}
+			NetworkMetrics.getNetworkMetrics().associationAborted(this);
 			throw new DicomNetworkException("A-P-ABORT indication - "+e);		// AA-4      - indicate A-P-ABORT
 												// State 1   - Idle
 		}
@@ -254,6 +255,7 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Us:
 	public void abort() throws DicomNetworkException {
 												// State 6   - Data Transfer
 												//             A-ABORT request primitive
+		NetworkMetrics.getNetworkMetrics().associationAborted(this);
 		try {
 if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Us: A-ABORT");
 			AAbortPDU aab = new AAbortPDU(1,0);					// AA-1      - Send A-ABORT PDU (service user source, no reason)
@@ -305,8 +307,10 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"].send(
 			}
 			out.write(bytes);
 			out.flush();
+			NetworkMetrics.getNetworkMetrics().pDataPDUSent(bytes.length);
 		}
 		catch (IOException e) {								//           - Transport connection closed (or other error)
+			NetworkMetrics.getNetworkMetrics().associationAborted(this);
 			throw new DicomNetworkException("A-P-ABORT indication - "+e);		// AA-4      - indicate A-P-ABORT
 												// State 1   - Idle
 		}
@@ -383,6 +387,7 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Them
 
 			if (pduType == 0x04) {							//           - P-DATA PDU
 				PDataPDU pdata = new PDataPDU(getRestOfPDU(in,startBuffer,pduLength));
+				NetworkMetrics.getNetworkMetrics().pDataPDUReceived(pduLength+6);
 if (debugLevel > 2) System.err.println("Association["+associationNumber+"]: Them:\n"+pdata);
 				receivedDataHandler.sendPDataIndication(pdata,this);		// DT-2      - send P-DATA indication primitive
 												// State 6   - Data Transfer
@@ -451,6 +456,7 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Us:
 			}
 			catch (IOException e2) {
 			}
+			NetworkMetrics.getNetworkMetrics().associationAborted(this);
 			throw new DicomNetworkException("A-P-ABORT indication - "+e);		// AA-4      - indicate A-P-ABORT
 												// State 1   - Idle
 		}
@@ -506,6 +512,25 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Us:
 	public void waitForPDataPDUsUntilHandlerReportsDone() throws DicomNetworkException,AReleaseException {
 		waitForPDataPDUs(-1,false,false,true);
 	}
+
+	/**
+	 * Check whether the start of another PDU has been received, without blocking.
+	 *
+	 * For example, to check for a C-CANCEL-RQ between responses while sending them.
+	 *
+	 * Over a secure transport connection, may return false until the PDU is actually read.
+	 *
+	 * @return					true if a subsequent read of a PDU will not block for long
+	 * @exception	DicomNetworkException	if the transport connection has failed
+	 */
+	public boolean isPDUAvailable() throws DicomNetworkException {
+		try {
+			return in.available() > 0;
+		}
+		catch (IOException e) {
+			throw new DicomNetworkException("A-P-ABORT indication - "+e);
+		}
+	}
 	
 	/**
 	 * Find a Presentation Context for the a particular SOP Class UID, using any
@@ -101,6 +101,7 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Them
 					AssociateRejectPDU arj = new AssociateRejectPDU(1,1,7);	// rejected permanent, user, called AE title not recognized
 					out.write(arj.getBytes());
 					out.flush();						// State 13
+					NetworkMetrics.getNetworkMetrics().associationRejected(this);
 					
 					// At this point AA-6, AA-7, AA-2, AR-5 or AA-7 could be needed,
 					// however let's just close the connection and be done with it
@@ -117,7 +118,7 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Them
 				else {
 												//	     - Implicit A-ASSOCIATE response primitive accept
 												// AE-7      - Send A-ASSOCIATE-AC PDU
-					presentationContextSelectionPolicy.applyPresentationContextSelectionPolicy(presentationContexts,associationNumber,debugLevel);
+					AssociationNegotiationCache.applyPresentationContextSelectionPolicy(presentationContextSelectionPolicy,callingAETitle,presentationContexts,associationNumber,debugLevel);
 					// we now have presentation contexts with 1 AS, 1TS if any accepted, and a result/reason
 					LinkedList presentationContextsForAssociateAcceptPDU = AssociateAcceptPDU.sanitizePresentationContextsForAcceptance(presentationContexts);
 if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Presentation contexts for A-ASSOCIATE-AC:\n"+presentationContextsForAssociateAcceptPDU);
@@ -131,12 +132,14 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: OurM
 							ourMaximumLengthReceived,presentationContextsForAssociateAcceptPDU,scuSCPRoleSelections);
 					out.write(aac.getBytes());
 					out.flush();						// State 6
+					NetworkMetrics.getNetworkMetrics().associationEstablished(this);
 				}
 			}
 			else if (pduType == 0x07) {						//           - A-ABORT PDU
 				AAbortPDU aab = new AAbortPDU(getRestOfPDU(in,startBuffer,pduLength));
 if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Them:\n"+aab);
 				socket.close();							// AA-2      - Stop ARTIM, close transport connection and indicate abort
+				NetworkMetrics.getNetworkMetrics().associationAborted(this);
 				//inputTransferMonitoringContext.close();
 				//outputTransferMonitoringContext.close();
 				throw new DicomNetworkException("A-ABORT indication - "+aab.getInfo());
@@ -152,6 +155,7 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Abor
 												// State 13  - Awaiting Transport connection close
 				// should wait for ARTIM but ...
 				socket.close();
+				NetworkMetrics.getNetworkMetrics().associationAborted(this);
 				//inputTransferMonitoringContext.close();
 				//outputTransferMonitoringContext.close();
 				throw new DicomNetworkException("A-P-ABORT indication - "+aab.getInfo());
@@ -161,6 +165,7 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Abor
 		catch (IOException e) {								//           - Transport connection closed (or other error)
 			//inputTransferMonitoringContext.close();
 			//outputTransferMonitoringContext.close();
+			NetworkMetrics.getNetworkMetrics().associationAborted(this);
 			throw new DicomNetworkException("A-P-ABORT indication - "+e);		// AA-5      - Stop ARTIM
 												// State 1   - Idle
 		}
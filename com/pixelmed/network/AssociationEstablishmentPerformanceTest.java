@@ -0,0 +1,212 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import com.pixelmed.dicom.SOPClass;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * <p>This class measures how long it takes to establish and release associations, without sending anything on them,
+ * as a micro-benchmark of association negotiation.</p>
+ *
+ * <p>Each association is set up the way a {@link com.pixelmed.network.StorageSOPClassSCU StorageSOPClassSCU} would,
+ * by creating the presentation contexts for a set of Storage SOP Classes with {@link com.pixelmed.network.PresentationContextListFactory PresentationContextListFactory}
+ * and then establishing the association, so the times include all the work done before the first C-STORE could be sent.</p>
+ *
+ * <p>The associations are established with the {@link com.pixelmed.network.AssociationNegotiationCache AssociationNegotiationCache}
+ * disabled and with it enabled, so that the two may be compared (the acceptor may or may not be using the cache, depending
+ * on how it is configured). Both are warmed up before anything is measured, and the two are interleaved in blocks, alternating
+ * which goes first, so that neither benefits from running later.</p>
+ *
+ * <p>For example:</p>
+ * <pre>
+try {
+    new AssociationEstablishmentPerformanceTest("theirhost",104,"STORESCP","STORESCU",1000,20,0,0).run();
+}
+catch (Exception e) {
+    e.printStackTrace(System.err);
+}
+ * </pre>
+ *
+ * @author	agent
+ */
+public class AssociationEstablishmentPerformanceTest {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	private String hostname;
+	/***/
+	private int port;
+	/***/
+	private String calledAETitle;
+	/***/
+	private String callingAETitle;
+	/***/
+	private int assocnCount;
+	/***/
+	private Set setOfSOPClassUIDs;
+	/***/
+	private int compressionLevel;
+	/***/
+	private int debugLevel;
+
+	/***/
+	private static final int numberOfBlocks = 10;		// each pass is split into this many blocks, alternating which pass goes first
+
+	/**
+	 * @param	hostname			their hostname or IP address
+	 * @param	port				their port
+	 * @param	calledAETitle		their AE Title
+	 * @param	callingAETitle		our AE Title
+	 * @param	assocnCount			the number of times to establish and release the association in each pass, not counting warming up
+	 * @param	sopClassCount		the number of Storage SOP Classes to propose, each with all the supported transfer syntaxes
+	 * @param	compressionLevel	0=none,1=propose deflate,2=propose deflate and bzip2
+	 * @param	debugLevel			zero for no debugging messages, higher values more verbose messages
+	 */
+	public AssociationEstablishmentPerformanceTest(String hostname,int port,String calledAETitle,String callingAETitle,
+			int assocnCount,int sopClassCount,int compressionLevel,int debugLevel) {
+		this.hostname=hostname;
+		this.port=port;
+		this.calledAETitle=calledAETitle;
+		this.callingAETitle=callingAETitle;
+		this.assocnCount=assocnCount;
+		this.compressionLevel=compressionLevel;
+		this.debugLevel=debugLevel;
+		setOfSOPClassUIDs = new TreeSet();
+		for (int i=0; i<sopClassCount && i<SOPClass.arrayOfStorageSOPClasses.length; ++i) {
+			setOfSOPClassUIDs.add(SOPClass.arrayOfStorageSOPClasses[i]);
+		}
+	}
+
+	/**
+	 * <p>Establish and release one association.</p>
+	 *
+	 * @return		the time taken to establish the association, in ns
+	 * @exception	DicomNetworkException
+	 * @exception	IOException
+	 */
+	private long establishAndRelease() throws DicomNetworkException, IOException {
+		long associationStartTime = System.nanoTime();
+		LinkedList presentationContexts = PresentationContextListFactory.createNewPresentationContextList(setOfSOPClassUIDs,compressionLevel,calledAETitle);
+		Association association = AssociationFactory.createNewAssociation(hostname,port,calledAETitle,callingAETitle,presentationContexts,null,false,debugLevel);
+		long time = System.nanoTime() - associationStartTime;
+		association.release();
+		return time;
+	}
+
+	/**
+	 * <p>Establish and release associations with or without the cache, recording how long each took.</p>
+	 *
+	 * @param	useCache	whether or not to enable the cache
+	 * @param	times		where to record the times
+	 * @param	offset		where in times to start recording
+	 * @param	count		how many associations to establish, none of which are recorded if times is null
+	 * @exception	DicomNetworkException
+	 * @exception	IOException
+	 */
+	private void runBlock(boolean useCache,long[] times,int offset,int count) throws DicomNetworkException, IOException {
+		AssociationNegotiationCache.setEnabled(useCache);	// disabling also empties the cache
+		if (useCache) {
+			establishAndRelease();								// not recorded, just to fill the cache again
+		}
+		for (int i=0; i<count; ++i) {
+			long time = establishAndRelease();
+			if (times != null) {
+				times[offset+i] = time;
+			}
+		}
+	}
+
+	/**
+	 * @param	description		what to call the pass in the report
+	 * @param	times			how long each association took to establish
+	 */
+	private void report(String description,long[] times) {
+		int count = times.length;
+		long sum = 0;
+		for (int i=0; i<count; ++i) {
+			sum+=times[i];
+		}
+		System.err.println(description+": "+count+" associations proposing "+setOfSOPClassUIDs.size()+" SOP Classes in "+(sum/1000000000.0)+" seconds");
+		if (count > 0) {
+			Arrays.sort(times);
+			System.err.println(description+": time to establish association mean "+(sum/count/1000)+" us"
+				+", min "+(times[0]/1000)+" us"
+				+", median "+(times[count/2]/1000)+" us"
+				+", 95th percentile "+(times[(int)(count*0.95)]/1000)+" us"
+				+", max "+(times[count-1]/1000)+" us");
+		}
+	}
+
+	/**
+	 * <p>Run a pass without and a pass with the association negotiation cache.</p>
+	 *
+	 * <p>Both are warmed up first, without recording, and then each pass is run in several blocks,
+	 * alternating which goes first, so that neither is favored by running later, once the JIT, the
+	 * network and the acceptor have settled down.</p>
+	 *
+	 * @exception	DicomNetworkException
+	 * @exception	IOException
+	 */
+	public void run() throws DicomNetworkException, IOException {
+		boolean wasEnabled = AssociationNegotiationCache.isEnabled();
+		try {
+			int warmUpCount = Math.max(1,assocnCount/10);
+			runBlock(false,null,0,warmUpCount);
+			runBlock(true,null,0,warmUpCount);
+			long[] timesWithoutCache = new long[assocnCount];
+			long[] timesWithCache = new long[assocnCount];
+			int blockSize = Math.max(1,(assocnCount+numberOfBlocks-1)/numberOfBlocks);
+			boolean withCacheFirst = false;
+			for (int offset=0; offset<assocnCount; offset+=blockSize) {
+				int count = Math.min(blockSize,assocnCount-offset);
+				runBlock(withCacheFirst,withCacheFirst ? timesWithCache : timesWithoutCache,offset,count);
+				runBlock(!withCacheFirst,withCacheFirst ? timesWithoutCache : timesWithCache,offset,count);
+				withCacheFirst = !withCacheFirst;
+			}
+			report("Without cache",timesWithoutCache);
+			report("With cache",timesWithCache);
+			System.err.println(AssociationNegotiationCache.getReport());
+		}
+		finally {
+			AssociationNegotiationCache.setEnabled(wasEnabled);
+		}
+	}
+
+	/**
+	 * <p>For testing, establish and release associations to the specified AE.</p>
+	 *
+	 * @param	arg	array of 4 to 8 values - their hostname, their port, their AE Title, our AE Title,
+	 *			and optionally the number of associations in each pass (default 100),
+	 *			the number of Storage SOP Classes to propose (default 20),
+	 *			the compression level (default 0),
+	 *			and the debugging level (default 0)
+	 */
+	public static void main(String arg[]) {
+		try {
+			if (arg.length >= 4) {
+				int      assocnCount = arg.length > 4 ? Integer.parseInt(arg[4]) : 100;
+				int    sopClassCount = arg.length > 5 ? Integer.parseInt(arg[5]) : 20;
+				int compressionLevel = arg.length > 6 ? Integer.parseInt(arg[6]) : 0;
+				int       debugLevel = arg.length > 7 ? Integer.parseInt(arg[7]) : 0;
+				new AssociationEstablishmentPerformanceTest(arg[0],Integer.parseInt(arg[1]),arg[2],arg[3],
+					assocnCount,sopClassCount,compressionLevel,debugLevel).run();
+			}
+			else {
+				throw new Exception("Argument list must be at least 4 values");
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace(System.err);
+			System.exit(0);
+		}
+	}
+}
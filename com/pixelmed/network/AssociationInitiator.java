@@ -86,9 +86,9 @@ class AssociationInitiator extends Association {
 		}
 if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: userIdentityType="+userIdentityType);
 if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: OurMaximumLengthReceived="+ourMaximumLengthReceived);
-		AssociateRequestPDU arq = new AssociateRequestPDU(calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,
+		byte[] arqBytes = AssociationNegotiationCache.getAssociateRequestPDUBytes(calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,
 				ourMaximumLengthReceived,presentationContexts,scuSCPRoleSelections,userIdentityType,userIdentityPrimaryField,userIdentitySecondaryField);
-if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Us:\n"+arq);
+if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Us:\n"+new AssociateRequestPDU(arqBytes));
 												// State 1 - Idle
 		//TransferMonitoringContext inputTransferMonitoringContext  = new TransferMonitoringContext("Association["+associationNumber+"] Initiator Read  "+callingAETitle+"<-"+calledAETitle);
 		//TransferMonitoringContext outputTransferMonitoringContext = new TransferMonitoringContext("Association["+associationNumber+"] Initiator Wrote "+callingAETitle+"->"+calledAETitle);
@@ -119,7 +119,7 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Us:\
 			out = socket.getOutputStream();
 			//out = new MonitoredOutputStream(socket.getOutputStream(),outputTransferMonitoringContext);
 			
-			out.write(arq.getBytes());						// AE-2     - Send A-ASSOCIATE-RQ PDU
+			out.write(arqBytes);							// AE-2     - Send A-ASSOCIATE-RQ PDU
 			out.flush();
 												// State 5  - Awaiting A-ASSOCIATE-AC or -RJ PDU
 			byte[] startBuffer =  new byte[6];
@@ -143,6 +143,7 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Them
 if (debugLevel > 0) System.err.println("Association["+associationNumber+"]: We will send them PDUs of: "+this.maximumLengthReceived);
 
 if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Accepted presentation contexts:\n"+this.presentationContexts);
+				NetworkMetrics.getNetworkMetrics().associationEstablished(this);
 												// AE-3      - issue confirmation indication (i.e. do nothing but return)
 												// State 6   - Data Transfer
 			}
@@ -150,6 +151,7 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Acce
 				AssociateRejectPDU arj = new AssociateRejectPDU(getRestOfPDU(in,startBuffer,pduLength));
 if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Them:\n"+arj);
 				socket.close();							// AE-4      - Close transport connection and indicate rejection
+				NetworkMetrics.getNetworkMetrics().associationRejected(this);
 				//inputTransferMonitoringContext.close();
 				//outputTransferMonitoringContext.close();
 				throw new DicomNetworkException("A-ASSOCIATE-RJ indication - "+arj.getInfo());
@@ -159,6 +161,7 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Them
 				AAbortPDU aab = new AAbortPDU(getRestOfPDU(in,startBuffer,pduLength));
 if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Them:\n"+aab);
 				socket.close();							// AA-3      - Close transport connection and indicate abort
+				NetworkMetrics.getNetworkMetrics().associationAborted(this);
 				//inputTransferMonitoringContext.close();
 				//outputTransferMonitoringContext.close();
 				throw new DicomNetworkException("A-ABORT indication - "+aab.getInfo());
@@ -174,6 +177,7 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Abor
 												// State 13  - Awaiting Transport connection close
 				// should wait for ARTIM but ...
 				socket.close();
+				NetworkMetrics.getNetworkMetrics().associationAborted(this);
 				//inputTransferMonitoringContext.close();
 				//outputTransferMonitoringContext.close();
 				throw new DicomNetworkException("A-P-ABORT indication - "+aab.getInfo());
@@ -183,6 +187,7 @@ if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Abor
 		catch (IOException e) {								//           - Transport connection closed (or other error)
 			//inputTransferMonitoringContext.close();
 			//outputTransferMonitoringContext.close();
+			NetworkMetrics.getNetworkMetrics().associationAborted(this);
 			throw new DicomNetworkException("A-P-ABORT indication - ("+hostname+":"+Integer.toString(port)+") - "+e);		// AA-4      - indicate A-P-ABORT
 												// State 1   - Idle
 		}
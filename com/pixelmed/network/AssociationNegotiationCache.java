@@ -0,0 +1,260 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>This class remembers the outcome of the most expensive parts of association negotiation, so that they need
+ * not be repeated when the same thing is negotiated again, as it is when many short associations are established
+ * between the same AEs.</p>
+ *
+ * <p>When initiating an association, the encoded A-ASSOCIATE-RQ PDU is remembered for each distinct combination of
+ * AE Titles, maximum PDU length, presentation contexts and role selections proposed, and the bytes are sent again without
+ * re-encoding them. A request that includes user identity negotiation is never remembered, so as not to keep passwords.</p>
+ *
+ * <p>When accepting an association, the decision of the {@link com.pixelmed.network.PresentationContextSelectionPolicy PresentationContextSelectionPolicy}
+ * is remembered for each distinct combination of calling AE Title and proposed presentation contexts, and is applied again
+ * without re-evaluating the policy. Decisions are remembered separately for each policy instance, on the assumption that
+ * a policy decides the same way given the same proposal.</p>
+ *
+ * <p>Only a limited number of the most recently used of each are remembered. The caches are shared by all associations
+ * in the application, and may be disabled entirely.</p>
+ *
+ * @author	agent
+ */
+public class AssociationNegotiationCache {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	public static final int defaultMaximumNumberOfEntries = 256;
+
+	/***/
+	private static volatile boolean enabled = true;
+	/***/
+	private static volatile int maximumNumberOfEntries = defaultMaximumNumberOfEntries;
+
+	/***/
+	private static final AtomicLong associateRequestHits = new AtomicLong();
+	/***/
+	private static final AtomicLong associateRequestMisses = new AtomicLong();
+	/***/
+	private static final AtomicLong selectionPolicyHits = new AtomicLong();
+	/***/
+	private static final AtomicLong selectionPolicyMisses = new AtomicLong();
+
+	/***/
+	private static class LeastRecentlyUsedMap extends LinkedHashMap {
+		LeastRecentlyUsedMap() {
+			super(16,0.75f,true/*access order*/);
+		}
+
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return size() > maximumNumberOfEntries;
+		}
+	}
+
+	/***/
+	private static final Map associateRequestPDUBytesByProposal = new LeastRecentlyUsedMap();		// synchronize on this
+	/***/
+	private static final Map selectionPolicyDecisionsByPolicy = new WeakHashMap();				// synchronize on this; of LeastRecentlyUsedMap of List of PresentationContext
+
+	/***/
+	private AssociationNegotiationCache() {}
+
+	/**
+	 * @param	enabled	false if negotiation is always to be performed in full
+	 */
+	public static void setEnabled(boolean enabled) {
+		AssociationNegotiationCache.enabled=enabled;
+		if (!enabled) {
+			clear();
+		}
+	}
+
+	/**
+	 * @return	true if negotiation outcomes are being remembered
+	 */
+	public static boolean isEnabled() { return enabled; }
+
+	/**
+	 * @param	maximumNumberOfEntries	how many of the most recently used A-ASSOCIATE-RQ PDUs, and decisions of each policy, to remember
+	 */
+	public static void setMaximumNumberOfEntries(int maximumNumberOfEntries) { AssociationNegotiationCache.maximumNumberOfEntries=maximumNumberOfEntries; }
+
+	/**
+	 * <p>Forget everything remembered.</p>
+	 */
+	public static void clear() {
+		synchronized (associateRequestPDUBytesByProposal) {
+			associateRequestPDUBytesByProposal.clear();
+		}
+		synchronized (selectionPolicyDecisionsByPolicy) {
+			selectionPolicyDecisionsByPolicy.clear();
+		}
+	}
+
+	/**
+	 * @return	a summary of how often what was remembered could be used
+	 */
+	public static String getReport() {
+		return "A-ASSOCIATE-RQ PDU hits="+associateRequestHits.get()+" misses="+associateRequestMisses.get()
+			+"; presentation context selection hits="+selectionPolicyHits.get()+" misses="+selectionPolicyMisses.get();
+	}
+
+	/**
+	 * @param	buf
+	 * @param	presentationContexts	a List of PresentationContext
+	 */
+	private static void appendPresentationContexts(StringBuffer buf,List presentationContexts) {
+		ListIterator i = presentationContexts.listIterator();
+		while (i.hasNext()) {
+			PresentationContext pc = (PresentationContext)(i.next());
+			buf.append('|');
+			buf.append(pc.getIdentifier()&0xff);
+			buf.append(':');
+			buf.append(pc.getAbstractSyntaxUID());
+			ListIterator ti = pc.getTransferSyntaxUIDs().listIterator();
+			while (ti.hasNext()) {
+				buf.append(',');
+				buf.append((String)(ti.next()));
+			}
+		}
+	}
+
+	/**
+	 * <p>Get the encoded A-ASSOCIATE-RQ PDU for a proposal, encoding it only if the same proposal has not been encoded before.</p>
+	 *
+	 * @param	calledAETitle
+	 * @param	callingAETitle
+	 * @param	implementationClassUID
+	 * @param	implementationVersionName
+	 * @param	ourMaximumLengthReceived	the maximum PDU length that we will offer to receive
+	 * @param	presentationContexts
+	 * @param	scuSCPRoleSelections
+	 * @param	userIdentityType			0 == do not send user identity negotiation subitem
+	 * @param	userIdentityPrimaryField	may be null as appropriate to userIdentityType
+	 * @param	userIdentitySecondaryField	may be null as appropriate to userIdentityType
+	 * @return								the encoded PDU, which must not be modified
+	 * @exception	DicomNetworkException
+	 */
+	static byte[] getAssociateRequestPDUBytes(String calledAETitle,String callingAETitle,String implementationClassUID,String implementationVersionName,
+			int ourMaximumLengthReceived,LinkedList presentationContexts,LinkedList scuSCPRoleSelections,
+			int userIdentityType,String userIdentityPrimaryField,String userIdentitySecondaryField) throws DicomNetworkException {
+		if (!enabled || userIdentityType != 0) {
+			return new AssociateRequestPDU(calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,
+				ourMaximumLengthReceived,presentationContexts,scuSCPRoleSelections,userIdentityType,userIdentityPrimaryField,userIdentitySecondaryField).getBytes();
+		}
+		StringBuffer buf = new StringBuffer();
+		buf.append(calledAETitle);
+		buf.append('|');
+		buf.append(callingAETitle);
+		buf.append('|');
+		buf.append(implementationClassUID);
+		buf.append('|');
+		buf.append(implementationVersionName);
+		buf.append('|');
+		buf.append(ourMaximumLengthReceived);
+		appendPresentationContexts(buf,presentationContexts);
+		if (scuSCPRoleSelections != null) {
+			ListIterator i = scuSCPRoleSelections.listIterator();
+			while (i.hasNext()) {
+				SCUSCPRoleSelection selection = (SCUSCPRoleSelection)(i.next());
+				buf.append("|R:");
+				buf.append(selection.getAbstractSyntaxUID());
+				buf.append(selection.isSCURoleSupported() ? ",SCU" : "");
+				buf.append(selection.isSCPRoleSupported() ? ",SCP" : "");
+			}
+		}
+		String key = buf.toString();
+		byte[] bytes;
+		synchronized (associateRequestPDUBytesByProposal) {
+			bytes = (byte[])(associateRequestPDUBytesByProposal.get(key));
+		}
+		if (bytes == null) {
+			associateRequestMisses.incrementAndGet();
+			bytes = new AssociateRequestPDU(calledAETitle,callingAETitle,implementationClassUID,implementationVersionName,
+				ourMaximumLengthReceived,presentationContexts,scuSCPRoleSelections,userIdentityType,userIdentityPrimaryField,userIdentitySecondaryField).getBytes();
+			synchronized (associateRequestPDUBytesByProposal) {
+				associateRequestPDUBytesByProposal.put(key,bytes);
+			}
+		}
+		else {
+			associateRequestHits.incrementAndGet();
+		}
+		return bytes;
+	}
+
+	/**
+	 * <p>Accept or reject the proposed presentation contexts, applying the policy only if the same proposal has not been seen before.</p>
+	 *
+	 * @param	presentationContextSelectionPolicy
+	 * @param	callingAETitle
+	 * @param	presentationContexts	a java.util.LinkedList of {@link PresentationContext PresentationContext} objects,
+	 *									which are updated in place with the transfer syntax and result/reason decided upon
+	 * @param	associationNumber		for debugging messages
+	 * @param	debugLevel
+	 */
+	static void applyPresentationContextSelectionPolicy(PresentationContextSelectionPolicy presentationContextSelectionPolicy,String callingAETitle,
+			LinkedList presentationContexts,int associationNumber,int debugLevel) {
+		if (!enabled) {
+			presentationContextSelectionPolicy.applyPresentationContextSelectionPolicy(presentationContexts,associationNumber,debugLevel);
+			return;
+		}
+		StringBuffer buf = new StringBuffer();
+		buf.append(callingAETitle);
+		appendPresentationContexts(buf,presentationContexts);
+		String key = buf.toString();
+		List decisions = null;
+		synchronized (selectionPolicyDecisionsByPolicy) {
+			Map decisionsByProposal = (Map)(selectionPolicyDecisionsByPolicy.get(presentationContextSelectionPolicy));
+			if (decisionsByProposal != null) {
+				decisions = (List)(decisionsByProposal.get(key));
+			}
+		}
+		if (decisions == null) {
+			selectionPolicyMisses.incrementAndGet();
+			presentationContextSelectionPolicy.applyPresentationContextSelectionPolicy(presentationContexts,associationNumber,debugLevel);
+			decisions = new LinkedList();
+			ListIterator i = presentationContexts.listIterator();
+			while (i.hasNext()) {
+				PresentationContext pc = (PresentationContext)(i.next());
+				decisions.add(new PresentationContext(pc.getIdentifier(),pc.getResultReason(),pc.getAbstractSyntaxUID(),new LinkedList(pc.getTransferSyntaxUIDs())));
+			}
+			synchronized (selectionPolicyDecisionsByPolicy) {
+				Map decisionsByProposal = (Map)(selectionPolicyDecisionsByPolicy.get(presentationContextSelectionPolicy));
+				if (decisionsByProposal == null) {
+					decisionsByProposal = new LeastRecentlyUsedMap();
+					selectionPolicyDecisionsByPolicy.put(presentationContextSelectionPolicy,decisionsByProposal);
+				}
+				decisionsByProposal.put(key,decisions);
+			}
+		}
+		else {
+			selectionPolicyHits.incrementAndGet();
+if (debugLevel > 1) System.err.println("Association["+associationNumber+"]: Using remembered presentation context selection");
+			Iterator di = decisions.iterator();
+			ListIterator i = presentationContexts.listIterator();
+			while (i.hasNext() && di.hasNext()) {
+				PresentationContext pc = (PresentationContext)(i.next());
+				PresentationContext decision = (PresentationContext)(di.next());
+				pc.newTransferSyntaxUIDs();
+				ListIterator ti = decision.getTransferSyntaxUIDs().listIterator();
+				while (ti.hasNext()) {
+					pc.addTransferSyntaxUID((String)(ti.next()));
+				}
+				pc.setResultReason(decision.getResultReason());
+			}
+		}
+	}
+}
@@ -184,6 +184,7 @@ if (debugLevel > 1) System.err.println("AssociationOutputStream:flush() writing
 		//}
 		
 		out.flush();					// Actually send it
+		NetworkMetrics.getNetworkMetrics().pDataPDUSent(pduLength+6);
 		
 		dataBufferIndex=0;
 if (debugLevel > 2) System.err.println("AssociationOutputStream:flush() done");
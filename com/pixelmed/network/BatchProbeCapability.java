@@ -0,0 +1,232 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TransferSyntax;
+
+import java.io.FileInputStream;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>This class probes many remote AEs at once to find which transfer syntaxes each accepts for which SOP Classes,
+ * and records what is found in a {@link com.pixelmed.network.PresentationContextCapabilityCache PresentationContextCapabilityCache},
+ * so that subsequent associations to those AEs propose only presentation contexts that will be accepted.</p>
+ *
+ * <p>The remote AEs are those known to a {@link com.pixelmed.network.NetworkApplicationInformation NetworkApplicationInformation},
+ * or a specified subset of them. No more than a specified number are probed at the same time.</p>
+ *
+ * <p>For example:</p>
+ * <pre>
+BatchProbeCapability prober = new BatchProbeCapability(networkApplicationInformation,"OURAET",8,0);
+prober.probe(null,true);
+...
+new StorageSOPClassSCU(hostname,port,calledAETitle,"OURAET",dicomFiles,0,null,null,0,0);
+ * </pre>
+ *
+ * @see com.pixelmed.network.ProbeCapability
+ *
+ * @author	agent
+ */
+public class BatchProbeCapability {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	public static final int defaultMaximumNumberOfConcurrentProbes = 8;
+
+	/**
+	 * <p>The transfer syntaxes probed for by default, which are those we might propose.</p>
+	 */
+	public static final String[] defaultTransferSyntaxes = {
+		TransferSyntax.ImplicitVRLittleEndian,
+		TransferSyntax.ExplicitVRLittleEndian,
+		TransferSyntax.ExplicitVRBigEndian,
+		TransferSyntax.DeflatedExplicitVRLittleEndian,
+		TransferSyntax.PixelMedBzip2ExplicitVRLittleEndian,
+		TransferSyntax.JPEGBaseline,
+		TransferSyntax.JPEGExtended,
+		TransferSyntax.JPEGLossless,
+		TransferSyntax.JPEGLosslessSV1,
+		TransferSyntax.JPEGLS,
+		TransferSyntax.JPEGNLS,
+		TransferSyntax.JPEG2000Lossless,
+		TransferSyntax.JPEG2000
+	};
+
+	/**
+	 * @return	the SOP Classes probed for by default, which are all the storage and query/retrieve SOP Classes
+	 */
+	public static String[] getDefaultSOPClasses() {
+		List<String> sopClasses = new ArrayList<String>();
+		addAll(sopClasses,SOPClass.arrayOfStorageSOPClasses);
+		addAll(sopClasses,SOPClass.arrayOfQuerySOPClasses);
+		addAll(sopClasses,SOPClass.arrayOfRetrieveWithMoveSOPClasses);
+		addAll(sopClasses,SOPClass.arrayOfRetrieveWithGetSOPClasses);
+		return sopClasses.toArray(new String[sopClasses.size()]);
+	}
+
+	/***/
+	private static void addAll(List<String> list,String[] array) {
+		for (int i=0; i<array.length; ++i) {
+			list.add(array[i]);
+		}
+	}
+
+	/***/
+	private NetworkApplicationInformation networkApplicationInformation;
+	/***/
+	private String callingAETitle;
+	/***/
+	private int maximumNumberOfConcurrentProbes;
+	/***/
+	private String[] arrayOfSOPClasses;
+	/***/
+	private String[] arrayOfTransferSyntaxes;
+	/***/
+	private PresentationContextCapabilityCache cache;
+	/***/
+	private int debugLevel;
+
+	/**
+	 * <p>Probe for the default SOP Classes and transfer syntaxes, and record what is found in the shared cache.</p>
+	 *
+	 * @param	networkApplicationInformation		the remote AEs and their presentation addresses
+	 * @param	callingAETitle						our AE Title
+	 * @param	maximumNumberOfConcurrentProbes		how many remote AEs to probe at the same time
+	 * @param	debugLevel							zero for no debugging messages, higher values more verbose messages
+	 */
+	public BatchProbeCapability(NetworkApplicationInformation networkApplicationInformation,String callingAETitle,int maximumNumberOfConcurrentProbes,int debugLevel) {
+		this(networkApplicationInformation,callingAETitle,maximumNumberOfConcurrentProbes,getDefaultSOPClasses(),defaultTransferSyntaxes,
+			PresentationContextCapabilityCache.getPresentationContextCapabilityCache(),debugLevel);
+	}
+
+	/**
+	 * @param	networkApplicationInformation		the remote AEs and their presentation addresses
+	 * @param	callingAETitle						our AE Title
+	 * @param	maximumNumberOfConcurrentProbes		how many remote AEs to probe at the same time
+	 * @param	arrayOfSOPClasses					the SOP Classes to test for
+	 * @param	arrayOfTransferSyntaxes				the transfer syntaxes to test for
+	 * @param	cache								where to record what is found
+	 * @param	debugLevel							zero for no debugging messages, higher values more verbose messages
+	 */
+	public BatchProbeCapability(NetworkApplicationInformation networkApplicationInformation,String callingAETitle,int maximumNumberOfConcurrentProbes,
+			String[] arrayOfSOPClasses,String[] arrayOfTransferSyntaxes,PresentationContextCapabilityCache cache,int debugLevel) {
+		this.networkApplicationInformation=networkApplicationInformation;
+		this.callingAETitle=callingAETitle;
+		this.maximumNumberOfConcurrentProbes=Math.max(1,maximumNumberOfConcurrentProbes);
+		this.arrayOfSOPClasses=arrayOfSOPClasses;
+		this.arrayOfTransferSyntaxes=arrayOfTransferSyntaxes;
+		this.cache=cache;
+		this.debugLevel=debugLevel;
+	}
+
+	/**
+	 * <p>Probe the specified remote AEs, and wait until they have all been probed.</p>
+	 *
+	 * <p>A remote AE that cannot be probed keeps whatever entry it had in the cache, if any.</p>
+	 *
+	 * @param	calledAETitles		the remote AEs to probe, or null for all of them
+	 * @param	onlyIfNotCurrent	if true, skip the remote AEs already in the cache and not yet expired
+	 * @return						for each remote AE that could not be probed, why not; empty if all succeeded
+	 * @exception	InterruptedException	if interrupted while waiting, in which case outstanding probes are abandoned
+	 */
+	public Map<String,Exception> probe(Set<String> calledAETitles,boolean onlyIfNotCurrent) throws InterruptedException {
+		ApplicationEntityMap applicationEntityMap = networkApplicationInformation.getApplicationEntityMap();
+		if (calledAETitles == null) {
+			calledAETitles = new TreeSet<String>();
+			Iterator i = applicationEntityMap.keySet().iterator();
+			while (i.hasNext()) {
+				calledAETitles.add((String)(i.next()));
+			}
+		}
+		Map<String,Exception> failures = new TreeMap<String,Exception>();
+		Map<String,Future<Map<String,Set<String>>>> futures = new TreeMap<String,Future<Map<String,Set<String>>>>();
+		ExecutorService executor = Executors.newFixedThreadPool(maximumNumberOfConcurrentProbes);
+		try {
+			Iterator<String> i = calledAETitles.iterator();
+			while (i.hasNext()) {
+				final String calledAETitle = i.next();
+				if (onlyIfNotCurrent && cache.isCurrent(calledAETitle)) {
+if (debugLevel > 1) System.err.println("BatchProbeCapability.probe(): "+calledAETitle+" already probed");
+					continue;
+				}
+				final PresentationAddress presentationAddress = applicationEntityMap.getPresentationAddress(calledAETitle);
+				if (presentationAddress == null) {
+					failures.put(calledAETitle,new DicomNetworkException("No presentation address for "+calledAETitle));
+					continue;
+				}
+				futures.put(calledAETitle,executor.submit(new Callable<Map<String,Set<String>>>() {
+					public Map<String,Set<String>> call() throws Exception {
+if (debugLevel > 0) System.err.println("BatchProbeCapability.probe(): probing "+calledAETitle+" at "+presentationAddress.getHostname()+":"+presentationAddress.getPort());
+						Map<String,Set<String>> accepted = ProbeCapability.probeAcceptedTransferSyntaxes(arrayOfSOPClasses,arrayOfTransferSyntaxes,
+							presentationAddress.getHostname(),presentationAddress.getPort(),calledAETitle,callingAETitle,debugLevel);
+						cache.put(calledAETitle,accepted);
+						return accepted;
+					}
+				}));
+			}
+			Iterator<String> fi = futures.keySet().iterator();
+			while (fi.hasNext()) {
+				String calledAETitle = fi.next();
+				try {
+					futures.get(calledAETitle).get();
+				}
+				catch (ExecutionException e) {
+if (debugLevel > 0) System.err.println("BatchProbeCapability.probe(): failed to probe "+calledAETitle+" "+e.getCause());
+					failures.put(calledAETitle,e.getCause() instanceof Exception ? (Exception)(e.getCause()) : e);
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		return failures;
+	}
+
+	/**
+	 * <p>Probe all the remote AEs configured in a properties file, and list what each accepts.</p>
+	 *
+	 * @param	arg	the properties file containing the remote AEs, our AE Title, and optionally the maximum number of concurrent probes and the debug level
+	 */
+	public static void main(String arg[]) {
+		try {
+			Properties properties = new Properties();
+			FileInputStream in = new FileInputStream(arg[0]);
+			properties.load(in);
+			in.close();
+			NetworkApplicationInformation networkApplicationInformation = new NetworkApplicationInformation(properties);
+			int maximumNumberOfConcurrentProbes = arg.length > 2 ? Integer.parseInt(arg[2]) : defaultMaximumNumberOfConcurrentProbes;
+			int debugLevel = arg.length > 3 ? Integer.parseInt(arg[3]) : 0;
+			long startTime = System.currentTimeMillis();
+			Map<String,Exception> failures = new BatchProbeCapability(networkApplicationInformation,arg[1],maximumNumberOfConcurrentProbes,debugLevel).probe(null,false);
+			System.err.print(PresentationContextCapabilityCache.getPresentationContextCapabilityCache());
+			Iterator<String> i = failures.keySet().iterator();
+			while (i.hasNext()) {
+				String calledAETitle = i.next();
+				System.err.println(calledAETitle+": failed ("+failures.get(calledAETitle)+")");
+			}
+			System.err.println("Probed in "+(System.currentTimeMillis()-startTime)+" ms");
+			System.exit(0);
+		}
+		catch (Exception e) {
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+	}
+}
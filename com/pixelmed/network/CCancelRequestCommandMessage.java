@@ -0,0 +1,65 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import com.pixelmed.utils.*;
+import com.pixelmed.dicom.*;
+
+import java.io.*;
+
+/**
+ * <p>A C-CANCEL-RQ, which asks the peer to stop a C-FIND, C-MOVE or C-GET that is in progress.</p>
+ *
+ * @author	agent
+ */
+public class CCancelRequestCommandMessage implements CommandMessage {
+	private static final String identString = "@(#) $Header$";
+
+	private byte bytes[];
+
+	private static final AttributeTag groupLengthTag = new AttributeTag(0x0000,0x0000);
+	private int groupLength;
+	private int commandField;
+	private int messageIDBeingRespondedTo;
+	
+	/**
+	 * @param	list
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	public CCancelRequestCommandMessage(AttributeList list) throws DicomException, IOException {
+		           groupLength = Attribute.getSingleIntegerValueOrDefault(list,groupLengthTag,0xffff);
+		          commandField = Attribute.getSingleIntegerValueOrDefault(list,TagFromName.CommandField,0xffff);
+	     messageIDBeingRespondedTo = Attribute.getSingleIntegerValueOrDefault(list,TagFromName.MessageIDBeingRespondedTo,0xffff);
+	}
+	
+	/**
+	 * @param	messageIDBeingRespondedTo	the Message ID of the request to be cancelled
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	public CCancelRequestCommandMessage(int messageIDBeingRespondedTo) throws DicomException, IOException {
+		this.messageIDBeingRespondedTo=messageIDBeingRespondedTo;
+		
+		   commandField = MessageServiceElementCommand.C_CANCEL_RQ;
+		int dataSetType = 0x0101;	// no data set
+		
+		CommandSetEncoder encoder = new CommandSetEncoder();
+		encoder.putUnsignedShort(TagFromName.CommandField,commandField);
+		encoder.putUnsignedShort(TagFromName.MessageIDBeingRespondedTo,messageIDBeingRespondedTo);
+		encoder.putUnsignedShort(TagFromName.CommandDataSetType,dataSetType);
+		bytes = encoder.getBytes();
+		groupLength = encoder.getGroupLength();
+//System.err.println("CCancelRequestCommandMessage: bytes="+HexDump.dump(bytes));
+	}
+	
+	/***/
+	public int getGroupLength()			{ return groupLength; }
+	/***/
+	public int getCommandField()			{ return commandField; }
+	/***/
+	public int getMessageIDBeingRespondedTo()	{ return messageIDBeingRespondedTo; }
+
+	/***/
+	public byte[] getBytes() { return bytes; }
+}
@@ -75,37 +75,22 @@ public class CFindResponseCommandMessage implements CommandMessage {
 		
 		// NB. The Affected SOP Class UID should have no extra trailing padding, otherwise the
 		// SCP may fail and send an A-ABORT :) (Part 5 says one null (not space) is allowed)
-		// This is taken care of by the Attribute.write()
-
-		AttributeList list = new AttributeList();		
-		{ AttributeTag t = groupLengthTag;                        Attribute a = new UnsignedLongAttribute(t);     a.addValue(0);                         list.put(t,a); }
-		{ AttributeTag t = TagFromName.AffectedSOPClassUID;       Attribute a = new UniqueIdentifierAttribute(t); a.addValue(affectedSOPClassUID);       list.put(t,a); }
-		{ AttributeTag t = TagFromName.CommandField;              Attribute a = new UnsignedShortAttribute(t);    a.addValue(commandField);              list.put(t,a); }
-		{ AttributeTag t = TagFromName.MessageIDBeingRespondedTo; Attribute a = new UnsignedShortAttribute(t);    a.addValue(messageIDBeingRespondedTo); list.put(t,a); }
-		{ AttributeTag t = TagFromName.Status;                    Attribute a = new UnsignedShortAttribute(t);    a.addValue(status);                    list.put(t,a); }
-		{ AttributeTag t = TagFromName.CommandDataSetType;               Attribute a = new UnsignedShortAttribute(t);    a.addValue(dataSetType);               list.put(t,a); }
+		// This is taken care of by CommandSetEncoder.putUniqueIdentifier()
 
+		CommandSetEncoder encoder = new CommandSetEncoder();
+		encoder.putUniqueIdentifier(TagFromName.AffectedSOPClassUID,affectedSOPClassUID);
+		encoder.putUnsignedShort(TagFromName.CommandField,commandField);
+		encoder.putUnsignedShort(TagFromName.MessageIDBeingRespondedTo,messageIDBeingRespondedTo);
+		encoder.putUnsignedShort(TagFromName.CommandDataSetType,dataSetType);
+		encoder.putUnsignedShort(TagFromName.Status,status);
 		if (offendingElement != null) {
-			list.put(offendingElement);
+			encoder.putAttributeTags(TagFromName.OffendingElement,offendingElement.getAttributeTagValues());
 		}
-		
 		if (errorComment != null) {
-			AttributeTag t = TagFromName.ErrorComment;
-			Attribute a = new LongStringAttribute(t);
-			a.addValue(errorComment);
-			list.put(t,a);
+			encoder.putSpacePaddedString(TagFromName.ErrorComment,errorComment);
 		}
-		
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		DicomOutputStream dout = new DicomOutputStream(bout,null/* no meta-header */,TransferSyntax.ImplicitVRLittleEndian);
-		list.write(dout);
-		bytes = bout.toByteArray();
-
-		groupLength = bytes.length-12;
-		bytes[8]=(byte)groupLength;					// little endian
-		bytes[9]=(byte)(groupLength>>8);
-		bytes[10]=(byte)(groupLength>>16);
-		bytes[11]=(byte)(groupLength>>24);
+		bytes = encoder.getBytes();
+		groupLength = encoder.getGroupLength();
 //System.err.println("CFindResponseCommandMessage: bytes="+HexDump.dump(bytes));
 	}
 	
@@ -42,6 +42,22 @@ public class CStoreRequestCommandMessage extends RequestCommandMessage {
 	   moveOriginatorMessageID = Attribute.getSingleIntegerValueOrDefault(list,TagFromName.MoveOriginatorMessageID,-1);
 	}
 	
+	/**
+	 * <p>Extract the command from a received command set without building an {@link com.pixelmed.dicom.AttributeList AttributeList}.</p>
+	 *
+	 * @param	command
+	 */
+	public CStoreRequestCommandMessage(CommandSetDecoder command) {
+		           groupLength = command.getSingleIntegerValueOrDefault(groupLengthTag,0xffff);
+		   affectedSOPClassUID = command.getSingleStringValueOrNull    (TagFromName.AffectedSOPClassUID);
+		          commandField = command.getSingleIntegerValueOrDefault(TagFromName.CommandField,0xffff);
+		             messageID = command.getSingleIntegerValueOrDefault(TagFromName.MessageID,0xffff);
+		              priority = command.getSingleIntegerValueOrDefault(TagFromName.Priority,0xffff);
+		affectedSOPInstanceUID = command.getSingleStringValueOrNull    (TagFromName.AffectedSOPInstanceUID);
+	     moveOriginatorApplicationEntityTitle = command.getSingleStringValueOrNull(TagFromName.MoveOriginatorApplicationEntityTitle);
+	   moveOriginatorMessageID = command.getSingleIntegerValueOrDefault(TagFromName.MoveOriginatorMessageID,-1);
+	}
+	
 	/**
 	 * @param	affectedSOPClassUID
 	 * @param	affectedSOPInstanceUID
@@ -61,6 +77,19 @@ public class CStoreRequestCommandMessage extends RequestCommandMessage {
 	 * @exception	DicomException
 	 */
 	public CStoreRequestCommandMessage(String affectedSOPClassUID,String affectedSOPInstanceUID,String moveOriginatorApplicationEntityTitle,int moveOriginatorMessageID) throws DicomException, IOException {
+		this(affectedSOPClassUID,affectedSOPInstanceUID,moveOriginatorApplicationEntityTitle,moveOriginatorMessageID,CommandPriority.MEDIUM);
+	}
+	
+	/**
+	 * @param	affectedSOPClassUID
+	 * @param	affectedSOPInstanceUID
+	 * @param	moveOriginatorApplicationEntityTitle	the AET of the C-MOVE that originated this C-STORE, or null if none
+	 * @param	moveOriginatorMessageID					the MessageID of the C-MOVE that originated this C-STORE, or -1 if none
+	 * @param	priority								the {@link CommandPriority CommandPriority} (LOW, MEDIUM or HIGH); MEDIUM is used if not a valid value
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	public CStoreRequestCommandMessage(String affectedSOPClassUID,String affectedSOPInstanceUID,String moveOriginatorApplicationEntityTitle,int moveOriginatorMessageID,int priority) throws DicomException, IOException {
 		this.affectedSOPClassUID=affectedSOPClassUID;
 		this.affectedSOPInstanceUID=affectedSOPInstanceUID;
 		this.moveOriginatorApplicationEntityTitle=moveOriginatorApplicationEntityTitle;
@@ -68,35 +97,24 @@ public class CStoreRequestCommandMessage extends RequestCommandMessage {
 		
 		   commandField = 0x0001;	// C-STORE-RQ
 		      messageID = super.getNextAvailableMessageID();
-		       priority = 0x0000;	// MEDIUM
+		  this.priority = CommandPriority.isValid(priority) ? priority : CommandPriority.MEDIUM;
 		int dataSetType = 0x0001;	// anything other than 0x0101 (none), since a C-STORE-RQ always has a data set
 		
-		AttributeList list = new AttributeList();		
-		{ AttributeTag t = groupLengthTag;                     Attribute a = new UnsignedLongAttribute(t);     a.addValue(0);                      list.put(t,a); }
-		{ AttributeTag t = TagFromName.AffectedSOPClassUID;    Attribute a = new UniqueIdentifierAttribute(t); a.addValue(affectedSOPClassUID);    list.put(t,a); }
-		{ AttributeTag t = TagFromName.CommandField;           Attribute a = new UnsignedShortAttribute(t);    a.addValue(commandField);           list.put(t,a); }
-		{ AttributeTag t = TagFromName.MessageID;              Attribute a = new UnsignedShortAttribute(t);    a.addValue(messageID);              list.put(t,a); }
-		{ AttributeTag t = TagFromName.Priority;               Attribute a = new UnsignedShortAttribute(t);    a.addValue(priority);               list.put(t,a); }
-		{ AttributeTag t = TagFromName.CommandDataSetType;            Attribute a = new UnsignedShortAttribute(t);    a.addValue(dataSetType);            list.put(t,a); }
-		{ AttributeTag t = TagFromName.AffectedSOPInstanceUID; Attribute a = new UniqueIdentifierAttribute(t); a.addValue(affectedSOPInstanceUID); list.put(t,a); }
-
+		CommandSetEncoder encoder = new CommandSetEncoder();
+		encoder.putUniqueIdentifier(TagFromName.AffectedSOPClassUID,affectedSOPClassUID);
+		encoder.putUnsignedShort(TagFromName.CommandField,commandField);
+		encoder.putUnsignedShort(TagFromName.MessageID,messageID);
+		encoder.putUnsignedShort(TagFromName.Priority,this.priority);
+		encoder.putUnsignedShort(TagFromName.CommandDataSetType,dataSetType);
+		encoder.putUniqueIdentifier(TagFromName.AffectedSOPInstanceUID,affectedSOPInstanceUID);
 		if (moveOriginatorApplicationEntityTitle != null && moveOriginatorApplicationEntityTitle.length() > 0) {
-			AttributeTag t = TagFromName.MoveOriginatorApplicationEntityTitle; Attribute a = new ApplicationEntityAttribute(t); a.addValue(moveOriginatorApplicationEntityTitle); list.put(t,a);
+			encoder.putSpacePaddedString(TagFromName.MoveOriginatorApplicationEntityTitle,moveOriginatorApplicationEntityTitle);
 		}
 		if (moveOriginatorMessageID != -1) {
-			AttributeTag t = TagFromName.MoveOriginatorMessageID; Attribute a = new UnsignedShortAttribute(t); a.addValue(moveOriginatorMessageID); list.put(t,a);
+			encoder.putUnsignedShort(TagFromName.MoveOriginatorMessageID,moveOriginatorMessageID);
 		}
-		
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		DicomOutputStream dout = new DicomOutputStream(bout,null/* no meta-header */,TransferSyntax.ImplicitVRLittleEndian);
-		list.write(dout);
-		bytes = bout.toByteArray();
-
-		groupLength = bytes.length-12;
-		bytes[8]=(byte)groupLength;					// little endian
-		bytes[9]=(byte)(groupLength>>8);
-		bytes[10]=(byte)(groupLength>>16);
-		bytes[11]=(byte)(groupLength>>24);
+		bytes = encoder.getBytes();
+		groupLength = encoder.getGroupLength();
 //System.err.println("CStoreRequestCommandMessage: bytes="+HexDump.dump(bytes));
 	}
 	
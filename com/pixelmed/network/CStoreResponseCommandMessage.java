@@ -56,25 +56,15 @@ public class CStoreResponseCommandMessage implements CommandMessage {
 		   commandField = 0x8001;	// C-STORE-RSP
 		int dataSetType = 0x0101;	// no data set
 		
-		AttributeList list = new AttributeList();		
-		{ AttributeTag t = groupLengthTag;                        Attribute a = new UnsignedLongAttribute(t);     a.addValue(0);                         list.put(t,a); }
-		{ AttributeTag t = TagFromName.AffectedSOPClassUID;       Attribute a = new UniqueIdentifierAttribute(t); a.addValue(affectedSOPClassUID);       list.put(t,a); }
-		{ AttributeTag t = TagFromName.CommandField;              Attribute a = new UnsignedShortAttribute(t);    a.addValue(commandField);              list.put(t,a); }
-		{ AttributeTag t = TagFromName.MessageIDBeingRespondedTo; Attribute a = new UnsignedShortAttribute(t);    a.addValue(messageIDBeingRespondedTo); list.put(t,a); }
-		{ AttributeTag t = TagFromName.CommandDataSetType;               Attribute a = new UnsignedShortAttribute(t);    a.addValue(dataSetType);               list.put(t,a); }
-		{ AttributeTag t = TagFromName.Status;                    Attribute a = new UnsignedShortAttribute(t);    a.addValue(status);                    list.put(t,a); }
-		{ AttributeTag t = TagFromName.AffectedSOPInstanceUID;    Attribute a = new UniqueIdentifierAttribute(t); a.addValue(affectedSOPInstanceUID);    list.put(t,a); }
-
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		DicomOutputStream dout = new DicomOutputStream(bout,null/* no meta-header */,TransferSyntax.ImplicitVRLittleEndian);
-		list.write(dout);
-		bytes = bout.toByteArray();
-
-		groupLength = bytes.length-12;
-		bytes[8]=(byte)groupLength;					// little endian
-		bytes[9]=(byte)(groupLength>>8);
-		bytes[10]=(byte)(groupLength>>16);
-		bytes[11]=(byte)(groupLength>>24);
+		CommandSetEncoder encoder = new CommandSetEncoder();
+		encoder.putUniqueIdentifier(TagFromName.AffectedSOPClassUID,affectedSOPClassUID);
+		encoder.putUnsignedShort(TagFromName.CommandField,commandField);
+		encoder.putUnsignedShort(TagFromName.MessageIDBeingRespondedTo,messageIDBeingRespondedTo);
+		encoder.putUnsignedShort(TagFromName.CommandDataSetType,dataSetType);
+		encoder.putUnsignedShort(TagFromName.Status,status);
+		encoder.putUniqueIdentifier(TagFromName.AffectedSOPInstanceUID,affectedSOPInstanceUID);
+		bytes = encoder.getBytes();
+		groupLength = encoder.getGroupLength();
 //System.err.println("CStoreResponseCommandMessage: bytes="+HexDump.dump(bytes));
 	}
 	
@@ -0,0 +1,81 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+/**
+ * <p>The values of the Priority (0000,0700) command element of DIMSE-C requests.</p>
+ *
+ * <p>Note that the encoded values do not sort in order of urgency, so use {@link #getRank(int) getRank()}
+ * when comparing priorities.</p>
+ *
+ * @author	agent
+ */
+public class CommandPriority {
+	private static final String identString = "@(#) $Header$";
+
+	public static final int LOW = 0x0002;
+	public static final int MEDIUM = 0x0000;
+	public static final int HIGH = 0x0001;
+
+	/**
+	 * <p>Is the value one of the defined priorities ?</p>
+	 *
+	 * @param	priority	the encoded value
+	 * @return				true if LOW, MEDIUM or HIGH
+	 */
+	public static final boolean isValid(int priority) {
+		return priority == LOW || priority == MEDIUM || priority == HIGH;
+	}
+
+	/**
+	 * <p>Get a rank that increases with urgency.</p>
+	 *
+	 * @param	priority	the encoded value
+	 * @return				0 for LOW, 1 for MEDIUM (or any unrecognized value), 2 for HIGH
+	 */
+	public static final int getRank(int priority) {
+		return priority == HIGH ? 2 : (priority == LOW ? 0 : 1);
+	}
+
+	/**
+	 * <p>Get the encoded value corresponding to a rank.</p>
+	 *
+	 * @param	rank	0 for LOW, 1 for MEDIUM, 2 for HIGH
+	 * @return			the encoded value
+	 */
+	public static final int getPriorityFromRank(int rank) {
+		return rank >= 2 ? HIGH : (rank <= 0 ? LOW : MEDIUM);
+	}
+
+	/**
+	 * <p>Get the encoded value from a case-insensitive name, such as may be used on the command line or in properties.</p>
+	 *
+	 * @param	name	LOW, MEDIUM or HIGH
+	 * @return			the encoded value, MEDIUM if the name is null or not recognized
+	 */
+	public static final int getPriorityFromName(String name) {
+		int priority = MEDIUM;
+		if (name != null) {
+			name = name.trim();
+			if (name.equalsIgnoreCase("HIGH")) {
+				priority = HIGH;
+			}
+			else if (name.equalsIgnoreCase("LOW")) {
+				priority = LOW;
+			}
+		}
+		return priority;
+	}
+
+	/***/
+	public static final String toString(int priority) {
+		String s;
+		switch (priority) {
+			case LOW:		s="LOW"; break;
+			case MEDIUM:	s="MEDIUM"; break;
+			case HIGH:		s="HIGH"; break;
+			default:		s="--UNKNOWN--"; break;
+		}
+		return s;
+	}
+}
@@ -0,0 +1,176 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * <p>A class to decode the command set of a received DIMSE message, in the Implicit VR Little Endian
+ * transfer syntax always used for commands, by locating the elements in place rather than building
+ * an {@link com.pixelmed.dicom.AttributeList AttributeList}.</p>
+ *
+ * <p>Only the values needed are extracted, when they are asked for. An {@link com.pixelmed.dicom.AttributeList AttributeList}
+ * can still be obtained with {@link #getAttributeList() getAttributeList()} when the full command is needed.</p>
+ *
+ * @author	agent
+ */
+public class CommandSetDecoder {
+	private static final String identString = "@(#) $Header$";
+
+	private static final int maximumNumberOfElements = 32;		// command sets have far fewer elements than this
+
+	private byte[] bytes;
+	private int numberOfElements;
+	private int[] tags = new int[maximumNumberOfElements];
+	private int[] offsets = new int[maximumNumberOfElements];
+	private int[] lengths = new int[maximumNumberOfElements];
+	private AttributeList list;
+
+	/**
+	 * <p>Locate the elements of a command set.</p>
+	 *
+	 * @param	bytes				the concatenated bytes of all the command fragments
+	 * @exception	DicomException	if the bytes are not a well-formed command set
+	 */
+	public CommandSetDecoder(byte[] bytes) throws DicomException {
+		this.bytes=bytes;
+		int offset = 0;
+		while (offset < bytes.length) {
+			if (bytes.length - offset < 8) {
+				throw new DicomException("Command set truncated within element header at offset "+offset);
+			}
+			int group   = (bytes[offset]&0xff)   | ((bytes[offset+1]&0xff)<<8);
+			int element = (bytes[offset+2]&0xff) | ((bytes[offset+3]&0xff)<<8);
+			int vl = (bytes[offset+4]&0xff) | ((bytes[offset+5]&0xff)<<8) | ((bytes[offset+6]&0xff)<<16) | ((bytes[offset+7]&0xff)<<24);
+			offset+=8;
+			if (group != 0x0000) {
+				throw new DicomException("Command set contains element ("+Integer.toHexString(group)+","+Integer.toHexString(element)+") not in group 0x0000");
+			}
+			if (vl < 0 || vl > bytes.length - offset) {
+				throw new DicomException("Command set element (0000,"+Integer.toHexString(element)+") value length "+vl+" exceeds remaining length");
+			}
+			if (numberOfElements == maximumNumberOfElements) {
+				throw new DicomException("Command set contains more than "+maximumNumberOfElements+" elements");
+			}
+			tags[numberOfElements] = element;
+			offsets[numberOfElements] = offset;
+			lengths[numberOfElements] = vl;
+			++numberOfElements;
+			offset+=vl;
+		}
+	}
+
+	private int find(AttributeTag tag) {
+		if (tag.getGroup() == 0x0000) {
+			int element = tag.getElement();
+			for (int i=0; i<numberOfElements; ++i) {
+				if (tags[i] == element) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * <p>Is the element present ?</p>
+	 *
+	 * @param	tag		the tag
+	 * @return			true if present
+	 */
+	public boolean contains(AttributeTag tag) {
+		return find(tag) != -1;
+	}
+
+	/**
+	 * <p>Get the value of an element with a VR of US or UL.</p>
+	 *
+	 * @param	tag		the tag
+	 * @param	dflt	the value to return if the element is absent or empty
+	 * @return			the value
+	 */
+	public int getSingleIntegerValueOrDefault(AttributeTag tag,int dflt) {
+		int value = dflt;
+		int i = find(tag);
+		if (i != -1) {
+			int offset = offsets[i];
+			if (lengths[i] == 2) {
+				value = (bytes[offset]&0xff) | ((bytes[offset+1]&0xff)<<8);
+			}
+			else if (lengths[i] == 4) {
+				value = (bytes[offset]&0xff) | ((bytes[offset+1]&0xff)<<8) | ((bytes[offset+2]&0xff)<<16) | ((bytes[offset+3]&0xff)<<24);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * <p>Get the value of an element with a string VR, without leading or trailing padding.</p>
+	 *
+	 * @param	tag		the tag
+	 * @return			the value, or null if the element is absent or empty
+	 */
+	public String getSingleStringValueOrNull(AttributeTag tag) {
+		String value = null;
+		int i = find(tag);
+		if (i != -1) {
+			int start = offsets[i];
+			int end = start + lengths[i];
+			while (end > start && (bytes[end-1] == 0x00 || bytes[end-1] == 0x20)) {
+				--end;
+			}
+			while (start < end && bytes[start] == 0x20) {
+				++start;
+			}
+			if (end > start) {
+				char[] chars = new char[end-start];
+				for (int c=0; c<chars.length; ++c) {
+					chars[c] = (char)(bytes[start+c]&0xff);
+				}
+				value = new String(chars);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * <p>Get the Command Field.</p>
+	 *
+	 * @return	the value, or 0xffff if absent
+	 */
+	public int getCommandField() {
+		return getSingleIntegerValueOrDefault(TagFromName.CommandField,0xffff);
+	}
+
+	/**
+	 * <p>Get the bytes of the command set.</p>
+	 *
+	 * @return	the bytes
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * <p>Get the full command set as a list of attributes, which is only read the first time it is needed.</p>
+	 *
+	 * @return							the list
+	 * @exception	IOException
+	 * @exception	DicomException
+	 */
+	public AttributeList getAttributeList() throws DicomException, IOException {
+		if (list == null) {
+			list = new AttributeList();
+			list.read(new DicomInputStream(new ByteArrayInputStream(bytes),TransferSyntax.Default,false));
+		}
+		return list;
+	}
+}
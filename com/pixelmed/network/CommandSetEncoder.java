@@ -0,0 +1,157 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import com.pixelmed.dicom.AttributeTag;
+
+/**
+ * <p>A class to encode the command set of a DIMSE message directly into bytes, in the Implicit VR Little Endian
+ * transfer syntax always used for commands, without building an {@link com.pixelmed.dicom.AttributeList AttributeList}
+ * and writing it through a {@link com.pixelmed.dicom.DicomOutputStream DicomOutputStream}.</p>
+ *
+ * <p>Elements must be added in ascending order of tag. The Command Group Length (0000,0000) element is
+ * always encoded first, and its value is filled in by {@link #getBytes() getBytes()}.</p>
+ *
+ * <p>The bytes produced are identical to those produced by writing the equivalent list of attributes.</p>
+ *
+ * @author	agent
+ */
+public class CommandSetEncoder {
+	private static final String identString = "@(#) $Header$";
+
+	private static final byte[] groupLengthElementTemplate = { 0x00,0x00, 0x00,0x00, 0x04,0x00,0x00,0x00, 0x00,0x00,0x00,0x00 };
+	private static final int groupLengthElementLength = groupLengthElementTemplate.length;
+
+	private byte[] bytes;
+	private int length;
+
+	/**
+	 * <p>Start a command set, sized to fit a typical command without growing.</p>
+	 */
+	public CommandSetEncoder() {
+		this(256);
+	}
+
+	/**
+	 * <p>Start a command set.</p>
+	 *
+	 * @param	initialCapacity		the number of bytes expected to be needed
+	 */
+	public CommandSetEncoder(int initialCapacity) {
+		bytes = new byte[Math.max(initialCapacity,groupLengthElementLength)];
+		System.arraycopy(groupLengthElementTemplate,0,bytes,0,groupLengthElementLength);
+		length = groupLengthElementLength;
+	}
+
+	private void ensureCapacity(int additional) {
+		if (length + additional > bytes.length) {
+			byte[] newBytes = new byte[Math.max(bytes.length*2,length+additional)];
+			System.arraycopy(bytes,0,newBytes,0,length);
+			bytes = newBytes;
+		}
+	}
+
+	private void putTagAndLength(AttributeTag tag,int vl) {
+		int group = tag.getGroup();
+		int element = tag.getElement();
+		bytes[length++] = (byte)group;
+		bytes[length++] = (byte)(group>>8);
+		bytes[length++] = (byte)element;
+		bytes[length++] = (byte)(element>>8);
+		bytes[length++] = (byte)vl;
+		bytes[length++] = (byte)(vl>>8);
+		bytes[length++] = (byte)(vl>>16);
+		bytes[length++] = (byte)(vl>>24);
+	}
+
+	/**
+	 * <p>Add an element with a VR of US.</p>
+	 *
+	 * @param	tag		the tag
+	 * @param	value	the value
+	 */
+	public void putUnsignedShort(AttributeTag tag,int value) {
+		ensureCapacity(10);
+		putTagAndLength(tag,2);
+		bytes[length++] = (byte)value;
+		bytes[length++] = (byte)(value>>8);
+	}
+
+	/**
+	 * <p>Add an element with a VR of AT.</p>
+	 *
+	 * @param	tag		the tag
+	 * @param	values	the tags that are the values
+	 */
+	public void putAttributeTags(AttributeTag tag,AttributeTag[] values) {
+		int vl = values.length*4;
+		ensureCapacity(8+vl);
+		putTagAndLength(tag,vl);
+		for (int i=0; i<values.length; ++i) {
+			int group = values[i].getGroup();
+			int element = values[i].getElement();
+			bytes[length++] = (byte)group;
+			bytes[length++] = (byte)(group>>8);
+			bytes[length++] = (byte)element;
+			bytes[length++] = (byte)(element>>8);
+		}
+	}
+
+	private void putString(AttributeTag tag,String value,byte padByte) {
+		int stringLength = value == null ? 0 : value.length();
+		int vl = stringLength + stringLength%2;
+		ensureCapacity(8+vl);
+		putTagAndLength(tag,vl);
+		for (int i=0; i<stringLength; ++i) {
+			bytes[length++] = (byte)value.charAt(i);		// UIDs, AEs and command strings are ASCII
+		}
+		if (stringLength%2 != 0) {
+			bytes[length++] = padByte;
+		}
+	}
+
+	/**
+	 * <p>Add an element with a VR of UI, padded to even length with a null byte.</p>
+	 *
+	 * @param	tag		the tag
+	 * @param	value	the UID
+	 */
+	public void putUniqueIdentifier(AttributeTag tag,String value) {
+		putString(tag,value,(byte)0x00);
+	}
+
+	/**
+	 * <p>Add an element with a VR of AE, LO or another string VR that is padded to even length with a space.</p>
+	 *
+	 * @param	tag		the tag
+	 * @param	value	the string
+	 */
+	public void putSpacePaddedString(AttributeTag tag,String value) {
+		putString(tag,value,(byte)0x20);
+	}
+
+	/**
+	 * <p>Get the value of the Command Group Length, which is the length of all the elements that follow it.</p>
+	 *
+	 * @return	the group length
+	 */
+	public int getGroupLength() {
+		return length - groupLengthElementLength;
+	}
+
+	/**
+	 * <p>Get the encoded command set, with the Command Group Length filled in.</p>
+	 *
+	 * @return	the encoded bytes
+	 */
+	public byte[] getBytes() {
+		int groupLength = getGroupLength();
+		bytes[8]=(byte)groupLength;					// little endian
+		bytes[9]=(byte)(groupLength>>8);
+		bytes[10]=(byte)(groupLength>>16);
+		bytes[11]=(byte)(groupLength>>24);
+		byte[] b = new byte[length];
+		System.arraycopy(bytes,0,b,0,length);
+		return b;
+	}
+}
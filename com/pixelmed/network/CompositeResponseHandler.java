@@ -27,9 +27,9 @@ abstract public class CompositeResponseHandler extends ReceivedDataHandler {
 	private static final String identString = "@(#) $Header: /userland/cvs/pixelmed/imgbook/com/pixelmed/network/CompositeResponseHandler.java,v 1.12 2011/06/21 17:10:35 dclunie Exp $";
 
 	/***/
-	protected byte[] commandReceived;
+	protected ReceivedFragmentBuffer commandReceived = new ReceivedFragmentBuffer();
 	/***/
-	protected byte[] dataReceived;
+	protected ReceivedFragmentBuffer dataReceived = new ReceivedFragmentBuffer();
 	/***/
 	protected boolean success;
 	/***/
@@ -43,8 +43,6 @@ abstract public class CompositeResponseHandler extends ReceivedDataHandler {
 	 */
 	public CompositeResponseHandler(int debugLevel) {
 		super(debugLevel);
-		commandReceived=null;
-		dataReceived=null;
 		success=false;
 		done=false;
 		allowData=false;
@@ -71,18 +69,38 @@ if (debugLevel > 1) System.err.print(list);
 	}
 
 	/**
-	 * Extract an {@link AttributeList AttributeList} from the concatenated bytes
-	 * that have been assembled from one or more PDUs and which make up an entire
+	 * Extract an {@link AttributeList AttributeList} from the fragments
+	 * that have been accumulated from one or more PDUs and which make up an entire
+	 * Command or Dataset, reading them in place without concatenating them.
+	 *
+	 * @param	fragments		the PDV fragments up to and including the last fragment
+	 * @param	transferSyntaxUID	the Transfer Syntax to use to interpret the bytes
+	 * @param	debugLevel		integer debug level
+	 * @exception	IOException
+	 * @exception	DicomException
+	 * @exception	DicomNetworkException
+	 */
+	public static AttributeList getAttributeListFromCommandOrData(ReceivedFragmentBuffer fragments,String transferSyntaxUID,int debugLevel) throws DicomNetworkException, DicomException, IOException {
+if (debugLevel > 1) System.err.println(HexDump.dump(fragments.toByteArray()));
+		AttributeList list = new AttributeList();
+		list.read(new DicomInputStream(fragments.getInputStream(),transferSyntaxUID,false));
+if (debugLevel > 1) System.err.print(list);
+		return list;
+	}
+
+	/**
+	 * Extract an {@link AttributeList AttributeList} from the fragments
+	 * that have been accumulated from one or more PDUs and which make up an entire
 	 * Command or Dataset.
 	 *
-	 * @param	bytes			the concatenated PDU bytes up to and including the last fragment
+	 * @param	fragments		the PDV fragments up to and including the last fragment
 	 * @param	transferSyntaxUID	the Transfer Syntax to use to interpret the bytes
 	 * @exception	IOException
 	 * @exception	DicomException
 	 * @exception	DicomNetworkException
 	 */
-	private AttributeList getAttributeListFromCommandOrData(byte[] bytes,String transferSyntaxUID) throws DicomNetworkException, DicomException, IOException {
-		return getAttributeListFromCommandOrData(bytes,transferSyntaxUID,debugLevel);
+	private AttributeList getAttributeListFromCommandOrData(ReceivedFragmentBuffer fragments,String transferSyntaxUID) throws DicomNetworkException, DicomException, IOException {
+		return getAttributeListFromCommandOrData(fragments,transferSyntaxUID,debugLevel);
 	}
 
 	/**
@@ -129,24 +147,24 @@ if (debugLevel > 0) super.dumpPDVList(pdata.getPDVList());
 		while (i.hasNext()) {
 			PresentationDataValue pdv = (PresentationDataValue)i.next();
 			if (pdv.isCommand()) {
-				commandReceived=ByteArray.concatenate(commandReceived,pdv.getValue());	// handles null cases
+				commandReceived.append(pdv.getValue());	// handles null cases
 				if (pdv.isLastFragment()) {
 if (debugLevel > 0) System.err.println("CompositeResponseHandler: last fragment of command seen");
 					AttributeList list = getAttributeListFromCommandOrData(commandReceived,TransferSyntax.Default);
-					commandReceived=null;
+					commandReceived.clear();
 					evaluateStatusAndSetSuccess(list);
 					//break;
 				}
 			}
 			else {
 				if (allowData) {
-					dataReceived=ByteArray.concatenate(dataReceived,pdv.getValue());	// handles null cases
+					dataReceived.append(pdv.getValue());	// handles null cases
 					if (pdv.isLastFragment()) {
 if (debugLevel > 0) System.err.println("CompositeResponseHandler: last fragment of data seen");
 						AttributeList list = getAttributeListFromCommandOrData(dataReceived,
 							association.getTransferSyntaxForPresentationContextID(pdv.getPresentationContextID()));
 						makeUseOfDataSet(list);
-						dataReceived=null;
+						dataReceived.clear();
 						//break;
 					}
 				}
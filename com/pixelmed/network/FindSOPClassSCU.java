@@ -150,11 +150,13 @@ if (debugLevel > 0) System.err.println("Using context ID "+usePresentationContex
 		// so send the command and the identifier separately ...
 		// (was probably because wasn't setting the last fragment flag on the command in Association.send() DAC. 2004/06/10)
 		// (see [bugs.mrmf] (000114) Failing to set last fragment on command when sending command and data in same PDU)
+		long startOperation = System.nanoTime();
 		association.send(usePresentationContextID,cFindRequestCommandMessage,null);
 		association.send(usePresentationContextID,null,cFindIdentifier);
 if (debugLevel > 0) System.err.println("FindSOPClassSCU: waiting for PDUs");
 		try {
 			association.waitForPDataPDUsUntilHandlerReportsDone();
+			NetworkMetrics.getNetworkMetrics().operationCompleted(NetworkMetrics.roleSCU,MessageServiceElementCommand.C_FIND_RQ,association,System.nanoTime()-startOperation);
 if (debugLevel > 0) System.err.println("FindSOPClassSCU: got PDU, now releasing association");
 			// State 6
 			association.release();
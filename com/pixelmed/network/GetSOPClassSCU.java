@@ -80,9 +80,9 @@ private long totalLengthsOfAllFiles = 0;
 		/***/
 		private int command;
 		/***/
-		private byte[] commandReceived;
+		private ReceivedFragmentBuffer commandReceived = new ReceivedFragmentBuffer();
 		/***/
-		private byte[] dataReceived;
+		private ReceivedFragmentBuffer dataReceived = new ReceivedFragmentBuffer();
 		/***/
 		protected boolean success;
 		/***/
@@ -130,21 +130,22 @@ if (debugLevel > 2) System.err.println("GetSOPClassSCU.CGetResponseOrCStoreReque
 				presentationContextIDUsed = pdv.getPresentationContextID();
 				if (pdv.isCommand()) {
 					receivedFile=null;
-					commandReceived=ByteArray.concatenate(commandReceived,pdv.getValue());	// handles null cases
+					commandReceived.append(pdv.getValue());	// handles null cases
 					if (pdv.isLastFragment()) {
 if (debugLevel > 0) System.err.println("GetSOPClassSCU.CGetResponseOrCStoreRequestHandler.sendPDataIndication(): last fragment of data seen");
-if (debugLevel > 0) System.err.println(HexDump.dump(commandReceived));
-						commandList = new AttributeList();
-						commandList.read(new DicomInputStream(new ByteArrayInputStream(commandReceived),TransferSyntax.Default,false));
-						commandReceived=null;
-if (debugLevel > 0) System.err.print(commandList);
-						command = Attribute.getSingleIntegerValueOrDefault(commandList,TagFromName.CommandField,0xffff);
+if (debugLevel > 0) System.err.println(HexDump.dump(commandReceived.toByteArray()));
+						CommandSetDecoder commandSet = new CommandSetDecoder(commandReceived.toByteArray());
+						commandReceived.clear();
+						commandList = null;
+if (debugLevel > 0) System.err.print(commandSet.getAttributeList());
+						command = commandSet.getCommandField();
 						if (command == MessageServiceElementCommand.C_STORE_RQ) {
 if (debugLevel > 0) System.err.println("GetSOPClassSCU.CGetResponseOrCStoreRequestHandler.sendPDataIndication(): C-STORE-RQ");
-							csrq = new CStoreRequestCommandMessage(commandList);
+							csrq = new CStoreRequestCommandMessage(commandSet);
 						}
 						else if (command == MessageServiceElementCommand.C_GET_RSP) {
 if (debugLevel > 0) System.err.println("GetSOPClassSCU.CGetResponseOrCStoreRequestHandler.sendPDataIndication(): C-STORE-RQ");
+							commandList = commandSet.getAttributeList();
 							cgrsp = new CGetResponseCommandMessage(commandList);
 							evaluateStatusAndSetSuccess(commandList);
 						}
@@ -165,10 +166,8 @@ if (debugLevel > 0) System.err.println("GetSOPClassSCU.CGetResponseOrCStoreReque
 								csrq.getAffectedSOPInstanceUID(),
 								association.getTransferSyntaxForPresentationContextID(presentationContextIDUsed),
 								association.getCalledAETitle());	// not calling, since roles reversed
-							receivedFile=storedFilePathStrategy.makeReliableStoredFilePathWithFoldersCreated(savedImagesFolder,csrq.getAffectedSOPInstanceUID());
 							//temporaryReceivedFile=File.createTempFile("PMP",null);
 							temporaryReceivedFile=new File(savedImagesFolder,FileUtilities.makeTemporaryFileName());
-if (debugLevel > 0) System.err.println("GetSOPClassSCU.CGetResponseOrCStoreRequestHandler.sendPDataIndication(): Receiving and storing "+receivedFile);
 if (debugLevel > 0) System.err.println("GetSOPClassSCU.CGetResponseOrCStoreRequestHandler.sendPDataIndication(): Receiving and storing into temporary "+temporaryReceivedFile);
 							out = new BufferedOutputStream(new FileOutputStream(temporaryReceivedFile));
 							DicomOutputStream dout = new DicomOutputStream(out,TransferSyntax.ExplicitVRLittleEndian,null);
@@ -185,6 +184,8 @@ if (debugLevel > 0) System.err.println("GetSOPClassSCU.CGetResponseOrCStoreReque
 							if (out != null) {
 if (debugLevel > 0) System.err.println("GetSOPClassSCU.CGetResponseOrCStoreRequestHandler.sendPDataIndication(): Closing out put stream to temporary file");
 								out.close();
+								receivedFile=storedFilePathStrategy.makeReliableStoredFilePathWithFoldersCreated(savedImagesFolder,csrq.getAffectedSOPInstanceUID(),temporaryReceivedFile);
+if (debugLevel > 0) System.err.println("GetSOPClassSCU.CGetResponseOrCStoreRequestHandler.sendPDataIndication(): Storing "+receivedFile);
 //long lengthOfFile = temporaryReceivedFile.length();
 //System.err.println("GetSOPClassSCU.CGetResponseOrCStoreRequestHandler.sendPDataIndication(): lengthOfFile = "+lengthOfFile);
 //totalLengthsOfAllFiles += lengthOfFile;
@@ -230,13 +231,13 @@ if (debugLevel > 0) System.err.println("GetSOPClassSCU.CGetResponseOrCStoreReque
 					else if (command == MessageServiceElementCommand.C_GET_RSP) {
 						// From CompositeResponseHandler ...
 						// data fragment is always allowed, so not allowData flag
-						dataReceived=ByteArray.concatenate(dataReceived,pdv.getValue());	// handles null cases
+						dataReceived.append(pdv.getValue());	// handles null cases
 						if (pdv.isLastFragment()) {
 if (debugLevel > 0) System.err.println("GetSOPClassSCU.CGetResponseOrCStoreRequestHandler.sendPDataIndication(): last fragment of data in C_GET_RSP seen");
 							AttributeList list = CompositeResponseHandler.getAttributeListFromCommandOrData(dataReceived,
 								association.getTransferSyntaxForPresentationContextID(pdv.getPresentationContextID()),debugLevel);
 							makeUseOfDataSet(list);
-							dataReceived=null;
+							dataReceived.clear();
 						}
 					}
 					else {
@@ -355,11 +356,13 @@ if (debugLevel > 0) System.err.println("Using context ID "+usePresentationContex
 		// so send the command and the identifier separately ...
 		// (was probably because wasn't setting the last fragment flag on the command in Association.send() DAC. 2004/06/10)
 		// (see [bugs.mrmf] (000114) Failing to set last fragment on command when sending command and data in same PDU)
+		long startOperation = System.nanoTime();
 		association.send(usePresentationContextID,cGetRequestCommandMessage,null);
 		association.send(usePresentationContextID,null,cGetIdentifier);
 if (debugLevel > 0) System.err.println("GetSOPClassSCU: waiting for PDUs");
 		try {
 			association.waitForPDataPDUsUntilHandlerReportsDone();
+			NetworkMetrics.getNetworkMetrics().operationCompleted(NetworkMetrics.roleSCU,MessageServiceElementCommand.C_GET_RQ,association,System.nanoTime()-startOperation);
 if (debugLevel > 0) System.err.println("GetSOPClassSCU: got PDU, now releasing association");
 			// State 6
 			association.release();
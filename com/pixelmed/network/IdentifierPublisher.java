@@ -0,0 +1,23 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+/**
+ * <p>A source of identifiers, such as the responses to a C-FIND, that delivers them to a
+ * {@link com.pixelmed.network.IdentifierSubscriber IdentifierSubscriber} only as fast as the subscriber asks for them.</p>
+ *
+ * @see com.pixelmed.network.StreamingFindSOPClassSCU
+ *
+ * @author	agent
+ */
+public interface IdentifierPublisher {
+	/**
+	 * <p>Start delivering identifiers to a subscriber.</p>
+	 *
+	 * <p>The subscriber's {@link com.pixelmed.network.IdentifierSubscriber#onSubscribe(IdentifierSubscription) onSubscribe()} method is called first,
+	 * and nothing is delivered until it has requested identifiers.</p>
+	 *
+	 * @param	subscriber	the subscriber
+	 */
+	public void subscribe(IdentifierSubscriber subscriber);
+}
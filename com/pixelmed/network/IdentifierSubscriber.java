@@ -0,0 +1,48 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import com.pixelmed.dicom.AttributeList;
+
+/**
+ * <p>A receiver of identifiers from an {@link com.pixelmed.network.IdentifierPublisher IdentifierPublisher}.</p>
+ *
+ * <p>Unlike an {@link com.pixelmed.network.IdentifierHandler IdentifierHandler}, which is given every identifier as soon as it is received,
+ * a subscriber is only given as many identifiers as it has asked for through its {@link com.pixelmed.network.IdentifierSubscription IdentifierSubscription},
+ * and may cancel the operation when it has enough.</p>
+ *
+ * <p>The methods are called in sequence, never concurrently: onSubscribe() once, then onNext() zero or more times,
+ * then at most one of onComplete() or onError().</p>
+ *
+ * @author	agent
+ */
+public interface IdentifierSubscriber {
+	/**
+	 * <p>Called before anything else, with the subscription through which to request identifiers.</p>
+	 *
+	 * @param	subscription	the subscription
+	 */
+	public void onSubscribe(IdentifierSubscription subscription);
+
+	/**
+	 * <p>Called for each identifier, no more times than have been requested.</p>
+	 *
+	 * @param	identifier	the list of attributes received
+	 */
+	public void onNext(AttributeList identifier);
+
+	/**
+	 * <p>Called when there are no more identifiers, either because all have been delivered or because a limit on the number of results was reached.</p>
+	 *
+	 * @param	status	the status of the final response, e.g., {@link com.pixelmed.network.ResponseStatus#Success ResponseStatus.Success}, or
+	 *					{@link com.pixelmed.network.ResponseStatus#MatchingTerminatedDueToCancelIndication ResponseStatus.MatchingTerminatedDueToCancelIndication} if stopped at a limit
+	 */
+	public void onComplete(int status);
+
+	/**
+	 * <p>Called if the operation fails.</p>
+	 *
+	 * @param	e	the reason
+	 */
+	public void onError(Exception e);
+}
@@ -0,0 +1,29 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+/**
+ * <p>The link between an {@link com.pixelmed.network.IdentifierPublisher IdentifierPublisher} and an
+ * {@link com.pixelmed.network.IdentifierSubscriber IdentifierSubscriber}, through which the subscriber asks for more identifiers or stops them.</p>
+ *
+ * <p>Both methods may be called from any thread, including from within the subscriber's methods.</p>
+ *
+ * @author	agent
+ */
+public interface IdentifierSubscription {
+	/**
+	 * <p>Ask for up to the specified number of further identifiers.</p>
+	 *
+	 * <p>Requests are cumulative. Use Long.MAX_VALUE for no limit.</p>
+	 *
+	 * @param	n	the number of further identifiers wanted, which must be positive
+	 */
+	public void request(long n);
+
+	/**
+	 * <p>Stop delivering identifiers, and release any resources, such as by cancelling an operation in progress.</p>
+	 *
+	 * <p>After this, no further methods of the subscriber are called, though one or more identifiers already on their way may still be delivered.</p>
+	 */
+	public void cancel();
+}
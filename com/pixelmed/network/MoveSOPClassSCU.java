@@ -140,11 +140,13 @@ if (debugLevel > 0) System.err.println("MoveSOPClassSCU: Identifier:\n"+identifi
 		association.setReceivedDataHandler(new CMoveResponseHandler(debugLevel));
 		// for some reason association.send(usePresentationContextID,cMoveRequestCommandMessage,cMoveIdentifier) fails with Oldenburg imagectn
 		// so send the command and the identifier separately ...
+		long startOperation = System.nanoTime();
 		association.send(usePresentationContextID,cMoveRequestCommandMessage,null);
 		association.send(usePresentationContextID,null,cMoveIdentifier);
 if (debugLevel > 0) System.err.println("MoveSOPClassSCU: waiting for PDUs");
 		try {
 			association.waitForPDataPDUsUntilHandlerReportsDone();
+			NetworkMetrics.getNetworkMetrics().operationCompleted(NetworkMetrics.roleSCU,MessageServiceElementCommand.C_MOVE_RQ,association,System.nanoTime()-startOperation);
 if (debugLevel > 0) System.err.println("MoveSOPClassSCU: got PDU, now releasing association");
 			// State 6
 			association.release();
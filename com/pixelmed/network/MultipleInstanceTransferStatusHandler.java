@@ -4,5 +4,14 @@ package com.pixelmed.network;
 
 public abstract class MultipleInstanceTransferStatusHandler {
 	public abstract void updateStatus(int nRemaining,int nCompleted,int nFailed,int nWarning,String sopInstanceUID);
+
+	/**
+	 * <p>Whether or not to stop before sending the next instance, leaving the remainder unsent.</p>
+	 *
+	 * <p>Checked at each instance boundary; by default transfers are never stopped early.</p>
+	 *
+	 * @return	true if no more instances are to be sent
+	 */
+	public boolean isCancelled() { return false; }
 }
 
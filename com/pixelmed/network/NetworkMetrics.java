@@ -0,0 +1,420 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>A class to accumulate counts and timings of network activity, so that the behavior of associations and DIMSE operations
+ * can be observed in production, for capacity planning and to find which remote AE is slowing things down.</p>
+ *
+ * <p>There is a single instance, obtained with {@link #getNetworkMetrics() getNetworkMetrics()}, which is registered
+ * with the platform MBean server as <code>com.pixelmed.network:type=NetworkMetrics</code> when the class is loaded, so it
+ * can be viewed with jconsole or any other JMX client. The same information is available as plain text from
+ * {@link #getReport() getReport()}, which is what the <code>?requestType=METRICS</code> request of
+ * {@link com.pixelmed.web.RequestTypeServer RequestTypeServer} returns.</p>
+ *
+ * <p>What is counted:</p>
+ * <ul>
+ * <li>associations accepted, initiated, rejected and aborted, in total and per remote AE</li>
+ * <li>P-DATA-TF PDUs and bytes received and sent</li>
+ * <li>a latency histogram for each DIMSE operation, per role and per remote AE, from receipt of the request to the final response
+ * for the SCP, and from sending the request to the final response for the SCU</li>
+ * <li>a histogram of time spent writing received data to disk, and in the {@link com.pixelmed.network.ReceivedObjectHandler ReceivedObjectHandler}</li>
+ * <li>how many associations and received object handlers are in progress at once</li>
+ * </ul>
+ *
+ * <p>All the methods are thread safe, and cheap enough to call on every PDU.</p>
+ *
+ * @author	agent
+ */
+public class NetworkMetrics implements NetworkMetricsMBean {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	public static final String objectName = "com.pixelmed.network:type=NetworkMetrics";
+
+	public static final String roleSCP = "SCP";
+	public static final String roleSCU = "SCU";
+
+	public static final String timingDiskWrite = "DiskWrite";
+	public static final String timingReceivedObjectHandler = "ReceivedObjectHandler";
+
+	/**
+	 * <p>A histogram of durations, with exponentially increasing bucket boundaries.</p>
+	 */
+	public static class LatencyHistogram {
+		/***/
+		private static final long[] bucketUpperBoundsInMilliseconds = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000 };
+
+		/***/
+		private AtomicLongArray counts = new AtomicLongArray(bucketUpperBoundsInMilliseconds.length+1);	// last is overflow
+		/***/
+		private AtomicLong count = new AtomicLong();
+		/***/
+		private AtomicLong sumInNanoseconds = new AtomicLong();
+		/***/
+		private AtomicLong maximumInNanoseconds = new AtomicLong();
+
+		/**
+		 * @param	durationInNanoseconds
+		 */
+		public void record(long durationInNanoseconds) {
+			long durationInMilliseconds = durationInNanoseconds/1000000l;
+			int bucket = 0;
+			while (bucket < bucketUpperBoundsInMilliseconds.length && durationInMilliseconds > bucketUpperBoundsInMilliseconds[bucket]) {
+				++bucket;
+			}
+			counts.incrementAndGet(bucket);
+			count.incrementAndGet();
+			sumInNanoseconds.addAndGet(durationInNanoseconds);
+			long maximum;
+			while ((maximum=maximumInNanoseconds.get()) < durationInNanoseconds && !maximumInNanoseconds.compareAndSet(maximum,durationInNanoseconds));
+		}
+
+		/**
+		 * @return	the number of durations recorded
+		 */
+		public long getCount() { return count.get(); }
+
+		/**
+		 * @return	the mean duration in ms, or 0 if none
+		 */
+		public double getMeanInMilliseconds() {
+			long n = count.get();
+			return n == 0 ? 0 : ((double)sumInNanoseconds.get())/n/1000000d;
+		}
+
+		/**
+		 * @return	the longest duration in ms
+		 */
+		public double getMaximumInMilliseconds() {
+			return ((double)maximumInNanoseconds.get())/1000000d;
+		}
+
+		/**
+		 * <p>Estimate a percentile as the upper bound of the bucket in which it falls.</p>
+		 *
+		 * @param	fraction	between 0 and 1, e.g., 0.95 for the 95th percentile
+		 * @return				the estimate in ms, or the maximum if beyond the last bucket
+		 */
+		public double getPercentileInMilliseconds(double fraction) {
+			long n = count.get();
+			if (n == 0) {
+				return 0;
+			}
+			long wanted = (long)Math.ceil(fraction*n);
+			long cumulative = 0;
+			for (int bucket=0; bucket<bucketUpperBoundsInMilliseconds.length; ++bucket) {
+				cumulative += counts.get(bucket);
+				if (cumulative >= wanted) {
+					return Math.min(bucketUpperBoundsInMilliseconds[bucket],getMaximumInMilliseconds());
+				}
+			}
+			return getMaximumInMilliseconds();
+		}
+
+		/**
+		 * @param	buf		to append to
+		 * @param	name	the name of the histogram
+		 * @param	labels	the labels, without braces, or an empty string if none
+		 */
+		void appendReport(StringBuffer buf,String name,String labels) {
+			String separator = labels.length() == 0 ? "" : ",";
+			long cumulative = 0;
+			for (int bucket=0; bucket<bucketUpperBoundsInMilliseconds.length; ++bucket) {
+				cumulative += counts.get(bucket);
+				buf.append(name+"_bucket{"+labels+separator+"le=\""+bucketUpperBoundsInMilliseconds[bucket]+"\"} "+cumulative+"\n");
+			}
+			cumulative += counts.get(bucketUpperBoundsInMilliseconds.length);
+			buf.append(name+"_bucket{"+labels+separator+"le=\"+Inf\"} "+cumulative+"\n");
+			String braced = labels.length() == 0 ? "" : "{"+labels+"}";
+			buf.append(name+"_count"+braced+" "+getCount()+"\n");
+			buf.append(name+"_sum_ms"+braced+" "+(sumInNanoseconds.get()/1000000l)+"\n");
+			buf.append(name+"_max_ms"+braced+" "+(maximumInNanoseconds.get()/1000000l)+"\n");
+			buf.append(name+"_p95_ms"+braced+" "+Math.round(getPercentileInMilliseconds(0.95))+"\n");
+		}
+	}
+
+	/***/
+	private static final NetworkMetrics networkMetrics = new NetworkMetrics();
+
+	/***/
+	private AtomicLong associationsAccepted = new AtomicLong();
+	/***/
+	private AtomicLong associationsInitiated = new AtomicLong();
+	/***/
+	private AtomicLong associationsRejected = new AtomicLong();
+	/***/
+	private AtomicLong associationsAborted = new AtomicLong();
+	/***/
+	private AtomicLong pDataPDUsReceived = new AtomicLong();
+	/***/
+	private AtomicLong pDataPDUsSent = new AtomicLong();
+	/***/
+	private AtomicLong pDataBytesReceived = new AtomicLong();
+	/***/
+	private AtomicLong pDataBytesSent = new AtomicLong();
+	/***/
+	private AtomicLong associationsInProgress = new AtomicLong();
+	/***/
+	private AtomicLong receivedObjectHandlersInProgress = new AtomicLong();
+
+	/***/
+	private ConcurrentHashMap<String,AtomicLong> countersPerAE = new ConcurrentHashMap<String,AtomicLong>();
+	/***/
+	private ConcurrentHashMap<String,LatencyHistogram> histograms = new ConcurrentHashMap<String,LatencyHistogram>();
+
+	static {
+		try {
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(objectName);
+			if (!mbeanServer.isRegistered(name)) {
+				mbeanServer.registerMBean(networkMetrics,name);
+			}
+		}
+		catch (Exception e) {
+			// failure to register should never prevent network activity, and the report is still available
+			e.printStackTrace(System.err);
+		}
+	}
+
+	/**
+	 * <p>Get the single instance, which is registered as an MBean when this class is loaded.</p>
+	 *
+	 * @return	the instance
+	 */
+	public static NetworkMetrics getNetworkMetrics() {
+		return networkMetrics;
+	}
+
+	/***/
+	private NetworkMetrics() {
+	}
+
+	/**
+	 * @param	aeTitle		may be null
+	 * @return				a value safe to use as a label
+	 */
+	private static String getLabelValue(String aeTitle) {
+		return aeTitle == null || aeTitle.length() == 0 ? "unknown" : aeTitle.replace('"','\'').replace('\\','/');
+	}
+
+	/**
+	 * @param	name
+	 * @param	aeTitle
+	 */
+	private void incrementCounterPerAE(String name,String aeTitle) {
+		String key = name+"{ae=\""+getLabelValue(aeTitle)+"\"}";
+		AtomicLong counter = countersPerAE.get(key);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = countersPerAE.putIfAbsent(key,newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	/**
+	 * @param	key
+	 * @return		the histogram, created if necessary
+	 */
+	private LatencyHistogram getHistogram(String key) {
+		LatencyHistogram histogram = histograms.get(key);
+		if (histogram == null) {
+			LatencyHistogram newHistogram = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(key,newHistogram);
+			if (histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * @param	association
+	 * @return				the AE Title of the other end of the association
+	 */
+	private static String getRemoteAETitle(Association association) {
+		return association instanceof AssociationAcceptor ? association.getCallingAETitle() : association.getCalledAETitle();
+	}
+
+	/**
+	 * <p>Record that an association was accepted by us, or that one initiated by us was accepted.</p>
+	 *
+	 * @param	association
+	 */
+	public void associationEstablished(Association association) {
+		if (association instanceof AssociationAcceptor) {
+			associationsAccepted.incrementAndGet();
+			incrementCounterPerAE("dicom_associations_accepted",association.getCallingAETitle());
+		}
+		else {
+			associationsInitiated.incrementAndGet();
+			incrementCounterPerAE("dicom_associations_initiated",association.getCalledAETitle());
+		}
+	}
+
+	/**
+	 * <p>Record that an association was rejected, by us or by the other end.</p>
+	 *
+	 * @param	association
+	 */
+	public void associationRejected(Association association) {
+		associationsRejected.incrementAndGet();
+		incrementCounterPerAE("dicom_associations_rejected",getRemoteAETitle(association));
+	}
+
+	/**
+	 * <p>Record that an association was aborted, by us or by the other end, or because the transport connection closed.</p>
+	 *
+	 * @param	association
+	 */
+	public void associationAborted(Association association) {
+		associationsAborted.incrementAndGet();
+		incrementCounterPerAE("dicom_associations_aborted",getRemoteAETitle(association));
+	}
+
+	/**
+	 * @param	pduLength	the length of the PDU including its header
+	 */
+	public void pDataPDUReceived(long pduLength) {
+		pDataPDUsReceived.incrementAndGet();
+		pDataBytesReceived.addAndGet(pduLength);
+	}
+
+	/**
+	 * @param	pduLength	the length of the PDU including its header
+	 */
+	public void pDataPDUSent(long pduLength) {
+		pDataPDUsSent.incrementAndGet();
+		pDataBytesSent.addAndGet(pduLength);
+	}
+
+	/**
+	 * <p>Record the duration of a DIMSE operation.</p>
+	 *
+	 * @param	role					{@link #roleSCP roleSCP} or {@link #roleSCU roleSCU}
+	 * @param	command					the request command, e.g. {@link com.pixelmed.network.MessageServiceElementCommand#C_STORE_RQ MessageServiceElementCommand.C_STORE_RQ}
+	 * @param	remoteAETitle			the AE Title of the other end
+	 * @param	durationInNanoseconds
+	 */
+	public void operationCompleted(String role,int command,String remoteAETitle,long durationInNanoseconds) {
+		String labels = "role=\""+role+"\",operation=\""+MessageServiceElementCommand.toString(command)+"\"";
+		getHistogram("dicom_operation_latency{"+labels+"}").record(durationInNanoseconds);
+		getHistogram("dicom_operation_latency_per_ae{"+labels+",ae=\""+getLabelValue(remoteAETitle)+"\"}").record(durationInNanoseconds);
+	}
+
+	/**
+	 * <p>Record the duration of a DIMSE operation.</p>
+	 *
+	 * @param	role					{@link #roleSCP roleSCP} or {@link #roleSCU roleSCU}
+	 * @param	command					the request command, e.g. {@link com.pixelmed.network.MessageServiceElementCommand#C_STORE_RQ MessageServiceElementCommand.C_STORE_RQ}
+	 * @param	association				the association on which the operation was performed
+	 * @param	durationInNanoseconds
+	 */
+	public void operationCompleted(String role,int command,Association association,long durationInNanoseconds) {
+		operationCompleted(role,command,getRemoteAETitle(association),durationInNanoseconds);
+	}
+
+	/**
+	 * <p>Record the time spent in an activity.</p>
+	 *
+	 * @param	activity				e.g. {@link #timingDiskWrite timingDiskWrite} or {@link #timingReceivedObjectHandler timingReceivedObjectHandler}
+	 * @param	durationInNanoseconds
+	 */
+	public void timeSpent(String activity,long durationInNanoseconds) {
+		getHistogram("dicom_time_spent{activity=\""+activity+"\"}").record(durationInNanoseconds);
+	}
+
+	/***/
+	public void associationStarted() { associationsInProgress.incrementAndGet(); }
+	/***/
+	public void associationFinished() { associationsInProgress.decrementAndGet(); }
+	/***/
+	public void receivedObjectHandlerStarted() { receivedObjectHandlersInProgress.incrementAndGet(); }
+	/***/
+	public void receivedObjectHandlerFinished() { receivedObjectHandlersInProgress.decrementAndGet(); }
+
+	public long getAssociationsAccepted() { return associationsAccepted.get(); }
+	public long getAssociationsInitiated() { return associationsInitiated.get(); }
+	public long getAssociationsRejected() { return associationsRejected.get(); }
+	public long getAssociationsAborted() { return associationsAborted.get(); }
+	public long getPDataPDUsReceived() { return pDataPDUsReceived.get(); }
+	public long getPDataPDUsSent() { return pDataPDUsSent.get(); }
+	public long getPDataBytesReceived() { return pDataBytesReceived.get(); }
+	public long getPDataBytesSent() { return pDataBytesSent.get(); }
+	public long getAssociationsInProgress() { return associationsInProgress.get(); }
+	public long getReceivedObjectHandlersInProgress() { return receivedObjectHandlersInProgress.get(); }
+
+	/**
+	 * @param	key		a name optionally followed by labels in braces
+	 * @return			the name and labels
+	 */
+	private static String[] splitKey(String key) {
+		int brace = key.indexOf('{');
+		return brace == -1 ? new String[] { key, "" } : new String[] { key.substring(0,brace), key.substring(brace+1,key.length()-1) };
+	}
+
+	public String getReport() {
+		StringBuffer buf = new StringBuffer();
+		buf.append("dicom_associations_accepted "+getAssociationsAccepted()+"\n");
+		buf.append("dicom_associations_initiated "+getAssociationsInitiated()+"\n");
+		buf.append("dicom_associations_rejected "+getAssociationsRejected()+"\n");
+		buf.append("dicom_associations_aborted "+getAssociationsAborted()+"\n");
+		buf.append("dicom_associations_in_progress "+getAssociationsInProgress()+"\n");
+		buf.append("dicom_received_object_handlers_in_progress "+getReceivedObjectHandlersInProgress()+"\n");
+		buf.append("dicom_pdata_pdus_received "+getPDataPDUsReceived()+"\n");
+		buf.append("dicom_pdata_pdus_sent "+getPDataPDUsSent()+"\n");
+		buf.append("dicom_pdata_bytes_received "+getPDataBytesReceived()+"\n");
+		buf.append("dicom_pdata_bytes_sent "+getPDataBytesSent()+"\n");
+		{
+			Iterator<Map.Entry<String,AtomicLong>> i = new TreeMap<String,AtomicLong>(countersPerAE).entrySet().iterator();
+			while (i.hasNext()) {
+				Map.Entry<String,AtomicLong> entry = i.next();
+				buf.append(entry.getKey()+" "+entry.getValue().get()+"\n");
+			}
+		}
+		{
+			Iterator<Map.Entry<String,LatencyHistogram>> i = new TreeMap<String,LatencyHistogram>(histograms).entrySet().iterator();
+			while (i.hasNext()) {
+				Map.Entry<String,LatencyHistogram> entry = i.next();
+				String[] nameAndLabels = splitKey(entry.getKey());
+				entry.getValue().appendReport(buf,nameAndLabels[0],nameAndLabels[1]);
+			}
+		}
+		return buf.toString();
+	}
+
+	public void reset() {
+		associationsAccepted.set(0);
+		associationsInitiated.set(0);
+		associationsRejected.set(0);
+		associationsAborted.set(0);
+		pDataPDUsReceived.set(0);
+		pDataPDUsSent.set(0);
+		pDataBytesReceived.set(0);
+		pDataBytesSent.set(0);
+		countersPerAE.clear();
+		histograms.clear();
+	}
+
+	public String toString() {
+		return getReport();
+	}
+}
@@ -0,0 +1,71 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+/**
+ * <p>The management interface through which {@link com.pixelmed.network.NetworkMetrics NetworkMetrics} is exported over JMX.</p>
+ *
+ * @author	agent
+ */
+public interface NetworkMetricsMBean {
+
+	/**
+	 * @return	the number of associations accepted from other AEs
+	 */
+	public long getAssociationsAccepted();
+
+	/**
+	 * @return	the number of associations initiated to other AEs that were accepted
+	 */
+	public long getAssociationsInitiated();
+
+	/**
+	 * @return	the number of associations rejected, by us or by other AEs
+	 */
+	public long getAssociationsRejected();
+
+	/**
+	 * @return	the number of associations aborted, by us or by other AEs, or because the transport connection failed or closed
+	 */
+	public long getAssociationsAborted();
+
+	/**
+	 * @return	the number of P-DATA-TF PDUs received
+	 */
+	public long getPDataPDUsReceived();
+
+	/**
+	 * @return	the number of P-DATA-TF PDUs sent
+	 */
+	public long getPDataPDUsSent();
+
+	/**
+	 * @return	the number of bytes received in P-DATA-TF PDUs, including the PDU headers
+	 */
+	public long getPDataBytesReceived();
+
+	/**
+	 * @return	the number of bytes sent in P-DATA-TF PDUs, including the PDU headers
+	 */
+	public long getPDataBytesSent();
+
+	/**
+	 * @return	the number of accepted associations currently being serviced by a {@link com.pixelmed.network.StorageSOPClassSCP StorageSOPClassSCP}
+	 */
+	public long getAssociationsInProgress();
+
+	/**
+	 * @return	the number of calls to a {@link com.pixelmed.network.ReceivedObjectHandler ReceivedObjectHandler} currently in progress
+	 */
+	public long getReceivedObjectHandlersInProgress();
+
+	/**
+	 * @return	a plain text report of all the metrics, including those per AE and the latency histograms
+	 */
+	public String getReport();
+
+	/**
+	 * <p>Set all the counters and histograms back to zero, other than those of what is currently in progress.</p>
+	 */
+	public void reset();
+}
@@ -0,0 +1,173 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>This class holds, for each remote AE that has been probed, which transfer syntaxes it accepts for which abstract syntaxes,
+ * so that {@link com.pixelmed.network.PresentationContextListFactory PresentationContextListFactory} can propose only those
+ * presentation contexts that will be accepted.</p>
+ *
+ * <p>What has been probed is forgotten after a time to live, so that changes in what a remote AE supports are noticed
+ * when it is probed again.</p>
+ *
+ * <p>There is a single cache, shared by all the threads in the application, which is usually filled by a
+ * {@link com.pixelmed.network.BatchProbeCapability BatchProbeCapability}.</p>
+ *
+ * @author	agent
+ */
+public class PresentationContextCapabilityCache {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	public static final long defaultTimeToLive = 24l*60*60*1000;
+
+	/***/
+	private static final PresentationContextCapabilityCache presentationContextCapabilityCache = new PresentationContextCapabilityCache();
+
+	/**
+	 * <p>Get the cache shared by the application.</p>
+	 *
+	 * @return	the cache
+	 */
+	public static PresentationContextCapabilityCache getPresentationContextCapabilityCache() { return presentationContextCapabilityCache; }
+
+	/***/
+	private class Entry {
+		/***/
+		Map<String,Set<String>> acceptedTransferSyntaxesByAbstractSyntax;
+		/***/
+		long whenProbed;
+
+		Entry(Map<String,Set<String>> acceptedTransferSyntaxesByAbstractSyntax,long whenProbed) {
+			this.acceptedTransferSyntaxesByAbstractSyntax=acceptedTransferSyntaxesByAbstractSyntax;
+			this.whenProbed=whenProbed;
+		}
+	}
+
+	/***/
+	private Map<String,Entry> entriesByCalledAETitle = new ConcurrentHashMap<String,Entry>();
+	/***/
+	private volatile long timeToLive = defaultTimeToLive;
+
+	/**
+	 * <p>Create an empty cache.</p>
+	 *
+	 * <p>Usually the shared cache returned by {@link #getPresentationContextCapabilityCache() getPresentationContextCapabilityCache()} is used instead.</p>
+	 */
+	public PresentationContextCapabilityCache() {
+	}
+
+	/**
+	 * @param	timeToLive	in ms, how long what has been probed is used for
+	 */
+	public void setTimeToLive(long timeToLive) { this.timeToLive=timeToLive; }
+
+	/**
+	 * @return	in ms, how long what has been probed is used for
+	 */
+	public long getTimeToLive() { return timeToLive; }
+
+	/**
+	 * <p>Record what a remote AE accepts.</p>
+	 *
+	 * @param	calledAETitle								the AE Title of the remote AE
+	 * @param	acceptedTransferSyntaxesByAbstractSyntax	for each abstract syntax probed, the transfer syntaxes accepted, empty if the abstract syntax was not accepted at all
+	 */
+	public void put(String calledAETitle,Map<String,Set<String>> acceptedTransferSyntaxesByAbstractSyntax) {
+		Map<String,Set<String>> copy = new TreeMap<String,Set<String>>();
+		Iterator<String> i = acceptedTransferSyntaxesByAbstractSyntax.keySet().iterator();
+		while (i.hasNext()) {
+			String abstractSyntax = i.next();
+			copy.put(abstractSyntax,Collections.unmodifiableSet(new TreeSet<String>(acceptedTransferSyntaxesByAbstractSyntax.get(abstractSyntax))));
+		}
+		entriesByCalledAETitle.put(calledAETitle,new Entry(Collections.unmodifiableMap(copy),System.currentTimeMillis()));
+	}
+
+	/**
+	 * <p>Get what a remote AE accepts.</p>
+	 *
+	 * <p>Abstract syntaxes that were not probed are absent from the map, and those that were not accepted at all have an empty set.</p>
+	 *
+	 * @param	calledAETitle	the AE Title of the remote AE
+	 * @return					for each abstract syntax probed, the transfer syntaxes accepted, or null if the remote AE has not been probed or was probed too long ago
+	 */
+	public Map<String,Set<String>> get(String calledAETitle) {
+		Entry entry = entriesByCalledAETitle.get(calledAETitle);
+		if (entry == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() - entry.whenProbed > timeToLive) {
+			entriesByCalledAETitle.remove(calledAETitle);
+			return null;
+		}
+		return entry.acceptedTransferSyntaxesByAbstractSyntax;
+	}
+
+	/**
+	 * @param	calledAETitle	the AE Title of the remote AE
+	 * @return					true if the remote AE has been probed within the time to live
+	 */
+	public boolean isCurrent(String calledAETitle) {
+		return get(calledAETitle) != null;
+	}
+
+	/**
+	 * <p>Forget what a remote AE accepts, for example because its configuration is known to have changed.</p>
+	 *
+	 * @param	calledAETitle	the AE Title of the remote AE
+	 */
+	public void remove(String calledAETitle) {
+		entriesByCalledAETitle.remove(calledAETitle);
+	}
+
+	/**
+	 * <p>Forget what all the remote AEs accept.</p>
+	 */
+	public void clear() {
+		entriesByCalledAETitle.clear();
+	}
+
+	/**
+	 * @return	the AE Titles of the remote AEs for which there is an entry, some of which may no longer be current
+	 */
+	public Set<String> getCalledAETitles() {
+		return new TreeSet<String>(entriesByCalledAETitle.keySet());
+	}
+
+	public String toString() {
+		StringBuffer buf = new StringBuffer();
+		Iterator<String> i = getCalledAETitles().iterator();
+		while (i.hasNext()) {
+			String calledAETitle = i.next();
+			Map<String,Set<String>> accepted = get(calledAETitle);
+			if (accepted != null) {
+				buf.append(calledAETitle);
+				buf.append(":\n");
+				Iterator<String> ai = accepted.keySet().iterator();
+				while (ai.hasNext()) {
+					String abstractSyntax = ai.next();
+					Set<String> transferSyntaxes = accepted.get(abstractSyntax);
+					if (!transferSyntaxes.isEmpty()) {
+						buf.append("\t");
+						buf.append(abstractSyntax);
+						buf.append(" ");
+						buf.append(transferSyntaxes);
+						buf.append("\n");
+					}
+				}
+			}
+		}
+		return buf.toString();
+	}
+}
@@ -7,6 +7,7 @@ import com.pixelmed.dicom.TransferSyntax;
 
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -14,6 +15,11 @@ import java.util.Set;
  * for initiating associations, from lists of DICOM files based on SOP Class (abstract
  * syntax) and supported transfer syntaxes.</p>
  *
+ * <p>If the AE Title of the acceptor is supplied, and its capabilities have been probed and are held
+ * in the {@link com.pixelmed.network.PresentationContextCapabilityCache PresentationContextCapabilityCache},
+ * only those presentation contexts that it is known to accept are proposed, except that the transfer syntax in
+ * which a data set is already encoded is always proposed, since it may not have been probed.</p>
+ *
  * @author	dclunie
  */
 public class PresentationContextListFactory {
@@ -85,6 +91,25 @@ public class PresentationContextListFactory {
 	 */
 	static public LinkedList createNewPresentationContextList(String abstractSyntax,String transferSyntax,int compressionLevel,
 			boolean theirChoice,boolean ourChoice,boolean asEncoded) throws DicomNetworkException {
+		return createNewPresentationContextList(abstractSyntax,transferSyntax,compressionLevel,theirChoice,ourChoice,asEncoded,null);
+	}
+	
+	/**
+	 * Create lists of presentation contexts for initiating associations, from the specified abstract
+	 * syntax and transfer syntax as well as all supported transfer syntaxes, limited to those the acceptor is known to accept.
+	 *
+	 * @param	abstractSyntax			the SOP Class UID of the data set to be transmitted
+	 * @param	transferSyntax			the Transfer Syntax UID in which the data set to be transmitted is encoded, or null if unknown
+	 * @param	compressionLevel		0=none,1=propose deflate,2=propose deflate and bzip2
+	 * @param	theirChoice			propose a single presentation context with all transfer syntaxes to allow them to choose
+	 * @param	ourChoice			propose separate presentation contexts for each transfer syntax to allow us to choose
+	 * @param	asEncoded			propose a separate presentation context for the specified transfer syntax in which the data set is known to be encoded
+	 * @param	calledAETitle			the AE Title of the acceptor, or null if its capabilities are not to be used
+	 * @return					a LinkedList of PresentationContext
+	 * @exception	DicomNetworkException		if too many presentation contexts
+	 */
+	static public LinkedList createNewPresentationContextList(String abstractSyntax,String transferSyntax,int compressionLevel,
+			boolean theirChoice,boolean ourChoice,boolean asEncoded,String calledAETitle) throws DicomNetworkException {
 	
 		if (!haveBzip2Support && compressionLevel > 1 && (transferSyntax == null || !transferSyntax.equals(TransferSyntax.PixelMedBzip2ExplicitVRLittleEndian))) {
 			compressionLevel=1;	// do not propose the bzip2 transfer syntax if the codec is not available
@@ -93,8 +118,16 @@ public class PresentationContextListFactory {
 
 		LinkedList presentationContexts = new LinkedList();
 		byte nextPresentationContextID = (byte)presentationContextIDStart;	// should always be odd numbered, starting with 0x01
-		nextPresentationContextID = addPresentationContextsForAbstractSyntax(presentationContexts,nextPresentationContextID,abstractSyntax,transferSyntax,compressionLevel,
-			theirChoice,ourChoice,asEncoded);
+		Map acceptedTransferSyntaxesByAbstractSyntax = getAcceptedTransferSyntaxesByAbstractSyntax(calledAETitle);
+		if (acceptedTransferSyntaxesByAbstractSyntax != null) {
+			nextPresentationContextID = addPresentationContextsForAbstractSyntax(presentationContexts,nextPresentationContextID,abstractSyntax,transferSyntax,compressionLevel,
+				theirChoice,ourChoice,asEncoded,(Set)(acceptedTransferSyntaxesByAbstractSyntax.get(abstractSyntax)));
+		}
+		if (presentationContexts.isEmpty()) {
+			// nothing known to be acceptable, so propose everything and let the acceptor say what it does not accept
+			nextPresentationContextID = addPresentationContextsForAbstractSyntax(presentationContexts,nextPresentationContextID,abstractSyntax,transferSyntax,compressionLevel,
+				theirChoice,ourChoice,asEncoded,null);
+		}
 		return presentationContexts;
 	}
 	
@@ -109,7 +142,22 @@ public class PresentationContextListFactory {
 	 * @exception	DicomNetworkException		if too many presentation contexts
 	 */
 	static public LinkedList createNewPresentationContextList(String abstractSyntax,String transferSyntax,int compressionLevel) throws DicomNetworkException {
-		return createNewPresentationContextList(abstractSyntax,transferSyntax,compressionLevel,true,true,true);
+		return createNewPresentationContextList(abstractSyntax,transferSyntax,compressionLevel,true,true,true,null);
+	}
+	
+	/**
+	 * Create lists of presentation contexts for initiating associations, from the specified abstract
+	 * syntax and transfer syntax as well as all supported transfer syntaxes, limited to those the acceptor is known to accept.
+	 *
+	 * @param	abstractSyntax			the SOP Class UID of the data set to be transmitted
+	 * @param	transferSyntax			the Transfer Syntax UID in which the data set to be transmitted is encoded, or null if unknown
+	 * @param	compressionLevel		0=none,1=propose deflate,2=propose deflate and bzip2
+	 * @param	calledAETitle			the AE Title of the acceptor, or null if its capabilities are not to be used
+	 * @return					a LinkedList of PresentationContext
+	 * @exception	DicomNetworkException		if too many presentation contexts
+	 */
+	static public LinkedList createNewPresentationContextList(String abstractSyntax,String transferSyntax,int compressionLevel,String calledAETitle) throws DicomNetworkException {
+		return createNewPresentationContextList(abstractSyntax,transferSyntax,compressionLevel,true,true,true,calledAETitle);
 	}
 	
 	/**
@@ -125,6 +173,24 @@ public class PresentationContextListFactory {
 	 */
 	static public LinkedList createNewPresentationContextList(Set setOfSOPClassUIDs,int compressionLevel,
 			boolean theirChoice,boolean ourChoice,boolean asEncoded) throws DicomNetworkException {
+		return createNewPresentationContextList(setOfSOPClassUIDs,compressionLevel,theirChoice,ourChoice,asEncoded,null);
+	}
+	
+	/**
+	 * Create lists of presentation contexts for initiating associations, from a set of SOP Class UIDs,
+	 * limited to those the acceptor is known to accept.
+	 *
+	 * @param	setOfSOPClassUIDs		the set of <code>String</code> SOP Class UIDs
+	 * @param	compressionLevel		0=none,1=propose deflate,2=propose deflate and bzip2
+	 * @param	theirChoice			propose a single presentation context with all transfer syntaxes to allow them to choose
+	 * @param	ourChoice			propose separate presentation contexts for each transfer syntax to allow us to choose
+	 * @param	asEncoded			propose a separate presentation context for the specified transfer syntax in which the data set is known to be encoded
+	 * @param	calledAETitle			the AE Title of the acceptor, or null if its capabilities are not to be used
+	 * @return					a LinkedList of PresentationContext
+	 * @exception	DicomNetworkException		if too many presentation contexts
+	 */
+	static public LinkedList createNewPresentationContextList(Set setOfSOPClassUIDs,int compressionLevel,
+			boolean theirChoice,boolean ourChoice,boolean asEncoded,String calledAETitle) throws DicomNetworkException {
 		
 		if (!haveBzip2Support && compressionLevel > 1) {
 			compressionLevel=1;	// do not propose the bzip2 transfer syntax if the codec is not available
@@ -133,11 +199,23 @@ public class PresentationContextListFactory {
 		LinkedList presentationContexts = new LinkedList();
 		byte nextPresentationContextID = (byte)presentationContextIDStart;	// should always be odd numbered, starting with 0x01
 		
-		Iterator si = setOfSOPClassUIDs.iterator();
-		while (si.hasNext()) {
-			String sopClassUID = (String)(si.next());
-			nextPresentationContextID = addPresentationContextsForAbstractSyntax(presentationContexts,nextPresentationContextID,sopClassUID,null,compressionLevel,
-				theirChoice,ourChoice,false);
+		Map acceptedTransferSyntaxesByAbstractSyntax = getAcceptedTransferSyntaxesByAbstractSyntax(calledAETitle);
+		if (acceptedTransferSyntaxesByAbstractSyntax != null) {
+			Iterator si = setOfSOPClassUIDs.iterator();
+			while (si.hasNext()) {
+				String sopClassUID = (String)(si.next());
+				nextPresentationContextID = addPresentationContextsForAbstractSyntax(presentationContexts,nextPresentationContextID,sopClassUID,null,compressionLevel,
+					theirChoice,ourChoice,false,(Set)(acceptedTransferSyntaxesByAbstractSyntax.get(sopClassUID)));
+			}
+		}
+		if (presentationContexts.isEmpty()) {
+			// nothing known to be acceptable, so propose everything and let the acceptor say what it does not accept
+			Iterator si = setOfSOPClassUIDs.iterator();
+			while (si.hasNext()) {
+				String sopClassUID = (String)(si.next());
+				nextPresentationContextID = addPresentationContextsForAbstractSyntax(presentationContexts,nextPresentationContextID,sopClassUID,null,compressionLevel,
+					theirChoice,ourChoice,false,null);
+			}
 		}
 
 		return presentationContexts;
@@ -152,7 +230,21 @@ public class PresentationContextListFactory {
 	 * @exception	DicomNetworkException		if too many presentation contexts
 	 */
 	static public LinkedList createNewPresentationContextList(Set setOfSOPClassUIDs,int compressionLevel) throws DicomNetworkException {
-		return createNewPresentationContextList(setOfSOPClassUIDs,compressionLevel,true,true,true);
+		return createNewPresentationContextList(setOfSOPClassUIDs,compressionLevel,true,true,true,null);
+	}
+	
+	/**
+	 * Create lists of presentation contexts for initiating associations, from a set of SOP Class UIDs,
+	 * limited to those the acceptor is known to accept.
+	 *
+	 * @param	setOfSOPClassUIDs		the set of <code>String</code> SOP Class UIDs
+	 * @param	compressionLevel		0=none,1=propose deflate,2=propose deflate and bzip2
+	 * @param	calledAETitle			the AE Title of the acceptor, or null if its capabilities are not to be used
+	 * @return					a LinkedList of PresentationContext
+	 * @exception	DicomNetworkException		if too many presentation contexts
+	 */
+	static public LinkedList createNewPresentationContextList(Set setOfSOPClassUIDs,int compressionLevel,String calledAETitle) throws DicomNetworkException {
+		return createNewPresentationContextList(setOfSOPClassUIDs,compressionLevel,true,true,true,calledAETitle);
 	}
 	
 	/**
@@ -189,6 +281,29 @@ public class PresentationContextListFactory {
 		return createNewPresentationContextList(dicomFiles,compressionLevel,true,true,true);
 	}
 	
+	/**
+	 * Create lists of presentation contexts for initiating associations, from the abstract
+	 * syntax and transfer syntax as well as all supported transfer syntaxes for all the
+	 * files in the specified set of Dicom files, limited to those the acceptor is known to accept.
+	 *
+	 * @param	dicomFiles			the set of files with their SOP Class UIDs and the Transfer Syntax UIDs
+	 * @param	compressionLevel		0=none,1=propose deflate,2=propose deflate and bzip2
+	 * @param	calledAETitle			the AE Title of the acceptor, or null if its capabilities are not to be used
+	 * @return					a LinkedList of PresentationContext
+	 * @exception	DicomNetworkException		if too many presentation contexts
+	 */
+	static public LinkedList createNewPresentationContextList(SetOfDicomFiles dicomFiles,int compressionLevel,String calledAETitle) throws DicomNetworkException {
+		return createNewPresentationContextList(dicomFiles.getSetOfSOPClassUIDs(),compressionLevel,true,true,true,calledAETitle);
+	}
+	
+	/**
+	 * @param	calledAETitle	the AE Title of the acceptor, or null
+	 * @return			a Map of abstract syntax to the Set of transfer syntaxes accepted, or null if not known (or no longer current)
+	 */
+	static private Map getAcceptedTransferSyntaxesByAbstractSyntax(String calledAETitle) {
+		return calledAETitle == null ? null : PresentationContextCapabilityCache.getPresentationContextCapabilityCache().get(calledAETitle);
+	}
+	
 	/**
 	 * Create lists of presentation contexts for initiating associations, from the specified abstract
 	 * syntax and transfer syntax as well as all supported transfer syntaxes.
@@ -201,12 +316,28 @@ public class PresentationContextListFactory {
 	 * @param	theirChoice			propose a single presentation context with all transfer syntaxes to allow them to choose
 	 * @param	ourChoice			propose separate presentation contexts for each transfer syntax to allow us to choose
 	 * @param	asEncoded			propose a separate presentation context for the specified transfer syntax in which the data set is known to be encoded
+	 * @param	acceptedTransferSyntaxes	the Set of transfer syntaxes the acceptor is known to accept for the abstract syntax, or null if not known
 	 * @return					the LinkedList of PresentationContext extended
 	 * @exception	DicomNetworkException		if too many presentation contexts
 	 */
 	static private byte addPresentationContextsForAbstractSyntax(
 			LinkedList presentationContexts,byte presentationContextID,String abstractSyntax,String transferSyntax,int compressionLevel,
-			boolean theirChoice,boolean ourChoice,boolean asEncoded) throws DicomNetworkException {
+			boolean theirChoice,boolean ourChoice,boolean asEncoded,Set acceptedTransferSyntaxes) throws DicomNetworkException {
+		if (acceptedTransferSyntaxes != null) {
+			// If the abstract syntax was not accepted at all, don't propose it at all ...
+			if (acceptedTransferSyntaxes.isEmpty()) {
+				return presentationContextID;
+			}
+			// Don't propose supported transfer syntaxes we already know will be rejected, but always propose the one in which
+			// the data set is encoded, since the probe may not have included it, and not proposing it may force a lossy conversion ...
+			boolean anyAccepted = transferSyntax != null && transferSyntax.length() > 0;
+			for (int i=0; i<supportedTransferSyntaxes[compressionLevel].length; ++i) {
+				anyAccepted = anyAccepted || acceptedTransferSyntaxes.contains(supportedTransferSyntaxes[compressionLevel][i]);
+			}
+			if (!anyAccepted) {
+				return presentationContextID;
+			}
+		}
 		// First propose a presentation context with all transfer syntaxes
 		// What we get back will indicate the acceptor's preference, in case we want to use their choice ...
 //System.err.println("PresentationContextListFactory.addPresentationContextsForAbstractSyntax(): staring presentationContextID = "+(presentationContextID&0xff));
@@ -217,7 +348,8 @@ public class PresentationContextListFactory {
 			}
 			for (int i=0; i<supportedTransferSyntaxes[compressionLevel].length; ++i) {
 				// Don't want to add the same transfer syntax twice in the same presentation context, hence check ...
-				if (transferSyntax == null || !transferSyntax.equals(supportedTransferSyntaxes[compressionLevel][i])) {
+				if ((transferSyntax == null || !transferSyntax.equals(supportedTransferSyntaxes[compressionLevel][i]))
+				 && (acceptedTransferSyntaxes == null || acceptedTransferSyntaxes.contains(supportedTransferSyntaxes[compressionLevel][i]))) {
 					tslist.add(supportedTransferSyntaxes[compressionLevel][i]);
 				}
 			}
@@ -237,7 +369,8 @@ public class PresentationContextListFactory {
 			for (int i=0; i<supportedTransferSyntaxes[compressionLevel].length; ++i) {
 				presentationContextID=incrementPresentationContextID(presentationContextID);
 				// Don't want to add the same transfer syntax twice in the same presentation context, hence check ...
-				if (transferSyntax == null || !transferSyntax.equals(supportedTransferSyntaxes[compressionLevel][i])) {
+				if ((transferSyntax == null || !transferSyntax.equals(supportedTransferSyntaxes[compressionLevel][i]))
+				 && (acceptedTransferSyntaxes == null || acceptedTransferSyntaxes.contains(supportedTransferSyntaxes[compressionLevel][i]))) {
 					presentationContexts.add(new PresentationContext(presentationContextID,abstractSyntax,supportedTransferSyntaxes[compressionLevel][i]));
 				}
 			}
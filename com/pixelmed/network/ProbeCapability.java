@@ -16,8 +16,14 @@ import java.net.Socket;
 import java.nio.channels.SocketChannel;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
  * <p>This class provides utilities to probe the capabilities of potential DICOM Application Entities,
@@ -215,6 +221,112 @@ if (debugLevel > 1) System.err.println("Storage test association "+association);
 		return supportedSOPClasses;
 	}
 
+	/***/
+	private static final int maximumNumberOfPresentationContextsPerAssociation = 128;	// odd numbered presentation context IDs from 1 to 255
+
+	/**
+	 * <p>Propose the presentation contexts in as many associations as necessary, and record which are accepted.</p>
+	 *
+	 * @param	abstractSyntaxes		the abstract syntax of each presentation context to propose
+	 * @param	transferSyntaxLists		the LinkedList of transfer syntaxes of each presentation context to propose
+	 * @param	hostname				their hostname or IP address
+	 * @param	port					their port
+	 * @param	calledAETitle			their AE Title
+	 * @param	callingAETitle			our AE Title
+	 * @param	debugLevel				zero for no debugging messages, higher values more verbose messages
+	 * @param	accepted				the transfer syntax accepted for each presentation context is added to the set for its abstract syntax
+	 * @exception	DicomNetworkException
+	 * @exception	IOException
+	 */
+	private static void probeAcceptedPresentationContexts(List<String> abstractSyntaxes,List<LinkedList> transferSyntaxLists,
+			String hostname,int port,String calledAETitle,String callingAETitle,int debugLevel,
+			Map<String,Set<String>> accepted) throws DicomNetworkException, IOException {
+		for (int start=0; start<abstractSyntaxes.size(); start+=maximumNumberOfPresentationContextsPerAssociation) {
+			int end = Math.min(start+maximumNumberOfPresentationContextsPerAssociation,abstractSyntaxes.size());
+			LinkedList presentationContexts = new LinkedList();
+			Map<Byte,String> abstractSyntaxByPresentationContextID = new HashMap<Byte,String>();
+			for (int i=start,contextID=1; i<end; ++i,contextID+=2) {
+				presentationContexts.add(new PresentationContext((byte)contextID,abstractSyntaxes.get(i),transferSyntaxLists.get(i)));
+				abstractSyntaxByPresentationContextID.put(new Byte((byte)contextID),abstractSyntaxes.get(i));
+			}
+			Association association = AssociationFactory.createNewAssociation(hostname,port,calledAETitle,callingAETitle,presentationContexts,null,false,debugLevel);
+if (debugLevel > 1) System.err.println("Transfer syntax test association "+association);
+			Iterator<Byte> i = abstractSyntaxByPresentationContextID.keySet().iterator();
+			while (i.hasNext()) {
+				Byte contextID = i.next();
+				try {
+					String transferSyntax = association.getTransferSyntaxForPresentationContextID(contextID.byteValue());
+					if (transferSyntax != null) {
+						accepted.get(abstractSyntaxByPresentationContextID.get(contextID)).add(transferSyntax);
+					}
+				}
+				catch (DicomNetworkException e) {
+					// presentation context was rejected
+				}
+			}
+			association.release();
+		}
+	}
+
+	/**
+	 * <p>Establish associations to the specified AE, and probe which transfer syntaxes it accepts for each of the SOP Classes.</p>
+	 *
+	 * <p>First each SOP Class is proposed with all the transfer syntaxes in one presentation context,
+	 * then each combination of a SOP Class that was accepted and a transfer syntax is proposed in a presentation context of its own.
+	 * As many associations are used as are necessary to stay within the limit on the number of presentation contexts.</p>
+	 *
+	 * <p>Since all the transfer syntaxes for a SOP Class are proposed together, an acceptor that prefers one transfer syntax
+	 * over another (such as explicit over implicit VR) may not accept both, just as it would not when they are proposed together
+	 * by {@link com.pixelmed.network.PresentationContextListFactory PresentationContextListFactory}.</p>
+	 *
+	 * @param	arrayOfSOPClasses			the SOP Classes to test for
+	 * @param	arrayOfTransferSyntaxes		the transfer syntaxes to test for
+	 * @param	hostname					their hostname or IP address
+	 * @param	port						their port
+	 * @param	calledAETitle				their AE Title
+	 * @param	callingAETitle				our AE Title
+	 * @param	debugLevel					zero for no debugging messages, higher values more verbose messages
+	 * @return								a map of every SOP Class tested for to the set of transfer syntaxes accepted, which is empty if the SOP Class is not supported
+	 * @exception	DicomNetworkException
+	 * @exception	IOException
+	 */
+	public static Map<String,Set<String>> probeAcceptedTransferSyntaxes(String[] arrayOfSOPClasses,String[] arrayOfTransferSyntaxes,
+			String hostname,int port,String calledAETitle,String callingAETitle,int debugLevel) throws DicomNetworkException, IOException {
+		Map<String,Set<String>> accepted = new TreeMap<String,Set<String>>();
+		List<String> abstractSyntaxes = new ArrayList<String>();
+		List<LinkedList> transferSyntaxLists = new ArrayList<LinkedList>();
+		LinkedList allTransferSyntaxes = new LinkedList();
+		for (int j=0; j<arrayOfTransferSyntaxes.length; ++j) {
+			allTransferSyntaxes.add(arrayOfTransferSyntaxes[j]);
+		}
+		for (int i=0; i<arrayOfSOPClasses.length; ++i) {
+			if (!accepted.containsKey(arrayOfSOPClasses[i])) {
+				accepted.put(arrayOfSOPClasses[i],new TreeSet<String>());
+				abstractSyntaxes.add(arrayOfSOPClasses[i]);
+				transferSyntaxLists.add(allTransferSyntaxes);
+			}
+		}
+		probeAcceptedPresentationContexts(abstractSyntaxes,transferSyntaxLists,hostname,port,calledAETitle,callingAETitle,debugLevel,accepted);
+
+		abstractSyntaxes.clear();
+		transferSyntaxLists.clear();
+		Iterator<String> si = accepted.keySet().iterator();
+		while (si.hasNext()) {
+			String sopClass = si.next();
+			if (!accepted.get(sopClass).isEmpty()) {
+				for (int j=0; j<arrayOfTransferSyntaxes.length; ++j) {
+					LinkedList tslist = new LinkedList();
+					tslist.add(arrayOfTransferSyntaxes[j]);
+					abstractSyntaxes.add(sopClass);
+					transferSyntaxLists.add(tslist);
+				}
+			}
+		}
+		probeAcceptedPresentationContexts(abstractSyntaxes,transferSyntaxLists,hostname,port,calledAETitle,callingAETitle,debugLevel,accepted);
+if (debugLevel > 0) System.err.println("Accepted transfer syntaxes "+accepted);
+		return accepted;
+	}
+
 	/**
 	 * <p>Establish an association to the specified AE, and probe its capabilities with respect to which SOP Classes are supported.</p>
 	 *
@@ -0,0 +1,107 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * <p>This class specifies the largest number of matches a query SCP will return, and the longest it will spend on a query,
+ * by default and for particular calling AEs.</p>
+ *
+ * <p>A query that exceeds either limit is ended with a failure status of {@link com.pixelmed.network.ResponseStatus#RefusedOutOfResources ResponseStatus.RefusedOutOfResources},
+ * after the matches up to that point have been returned.</p>
+ *
+ * <p>The limits may be read from properties:</p>
+ *
+ * <p><code>Dicom.QueryMaximumNumberOfMatches</code> - the default maximum number of matches, 0 if no limit</p>
+ * <p><code>Dicom.QueryTimeout</code> - the default timeout in ms, 0 if no limit</p>
+ * <p><code>Dicom.QueryMaximumNumberOfMatches.</code><i>callingAETitle</i> - the maximum number of matches for the calling AE</p>
+ * <p><code>Dicom.QueryTimeout.</code><i>callingAETitle</i> - the timeout for the calling AE</p>
+ *
+ * @author	agent
+ */
+public class QueryResponseLimits {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	public static final String propertyName_QueryMaximumNumberOfMatches = "Dicom.QueryMaximumNumberOfMatches";
+	public static final String propertyName_QueryTimeout = "Dicom.QueryTimeout";
+
+	/***/
+	private int defaultMaximumNumberOfMatches;
+	/***/
+	private long defaultTimeout;
+	/***/
+	private Map<String,Integer> maximumNumberOfMatchesByCallingAETitle = new HashMap<String,Integer>();
+	/***/
+	private Map<String,Long> timeoutByCallingAETitle = new HashMap<String,Long>();
+
+	/**
+	 * <p>Specify the default limits.</p>
+	 *
+	 * @param	defaultMaximumNumberOfMatches	the maximum number of matches for calling AEs with no specific limit, 0 if no limit
+	 * @param	defaultTimeout					in ms, the timeout for calling AEs with no specific limit, 0 if no limit
+	 */
+	public QueryResponseLimits(int defaultMaximumNumberOfMatches,long defaultTimeout) {
+		this.defaultMaximumNumberOfMatches=defaultMaximumNumberOfMatches;
+		this.defaultTimeout=defaultTimeout;
+	}
+
+	/**
+	 * <p>Read the default and per calling AE limits from properties.</p>
+	 *
+	 * @param	properties
+	 * @exception	NumberFormatException	if a limit is not a number
+	 */
+	public QueryResponseLimits(Properties properties) {
+		defaultMaximumNumberOfMatches = Integer.parseInt(properties.getProperty(propertyName_QueryMaximumNumberOfMatches,"0").trim());
+		defaultTimeout = Long.parseLong(properties.getProperty(propertyName_QueryTimeout,"0").trim());
+		String maximumNumberOfMatchesPrefix = propertyName_QueryMaximumNumberOfMatches+".";
+		String timeoutPrefix = propertyName_QueryTimeout+".";
+		Iterator i = properties.keySet().iterator();
+		while (i.hasNext()) {
+			String key = (String)(i.next());
+			String value = properties.getProperty(key).trim();
+			if (key.startsWith(maximumNumberOfMatchesPrefix)) {
+				maximumNumberOfMatchesByCallingAETitle.put(key.substring(maximumNumberOfMatchesPrefix.length()),new Integer(Integer.parseInt(value)));
+			}
+			else if (key.startsWith(timeoutPrefix)) {
+				timeoutByCallingAETitle.put(key.substring(timeoutPrefix.length()),new Long(Long.parseLong(value)));
+			}
+		}
+	}
+
+	/**
+	 * <p>Specify the limits for a particular calling AE.</p>
+	 *
+	 * @param	callingAETitle			the AE Title of the query SCU
+	 * @param	maximumNumberOfMatches	the maximum number of matches, 0 if no limit
+	 * @param	timeout					in ms, 0 if no limit
+	 */
+	public synchronized void setLimits(String callingAETitle,int maximumNumberOfMatches,long timeout) {
+		maximumNumberOfMatchesByCallingAETitle.put(callingAETitle,new Integer(maximumNumberOfMatches));
+		timeoutByCallingAETitle.put(callingAETitle,new Long(timeout));
+	}
+
+	/**
+	 * @param	callingAETitle			the AE Title of the query SCU
+	 * @return							the maximum number of matches, 0 if no limit
+	 */
+	public synchronized int getMaximumNumberOfMatches(String callingAETitle) {
+		Integer value = callingAETitle == null ? null : maximumNumberOfMatchesByCallingAETitle.get(callingAETitle.trim());
+		return value == null ? defaultMaximumNumberOfMatches : value.intValue();
+	}
+
+	/**
+	 * @param	callingAETitle			the AE Title of the query SCU
+	 * @return							the timeout in ms, 0 if no limit
+	 */
+	public synchronized long getTimeout(String callingAETitle) {
+		Long value = callingAETitle == null ? null : timeoutByCallingAETitle.get(callingAETitle.trim());
+		return value == null ? defaultTimeout : value.longValue();
+	}
+}
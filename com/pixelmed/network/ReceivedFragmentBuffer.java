@@ -0,0 +1,161 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+
+/**
+ * <p>A class to accumulate the values of successive Presentation Data Value fragments that make up a command or data set.</p>
+ *
+ * <p>The fragments are kept as received, rather than being concatenated as each one arrives (which copies everything
+ * received so far each time, and so takes time proportional to the square of the number of fragments), and may be read
+ * in place as a single stream, so that no copy is made at all unless a contiguous array is actually needed.</p>
+ *
+ * <p>The values of received Presentation Data Values are already private copies of the bytes in the PDU, so
+ * they are not copied again when appended.</p>
+ *
+ * @author	agent
+ */
+public class ReceivedFragmentBuffer {
+	private static final String identString = "@(#) $Header$";
+
+	private ArrayList<byte[]> fragments = new ArrayList<byte[]>();
+	private int length;
+
+	/**
+	 * <p>Append a fragment.</p>
+	 *
+	 * <p>The array is retained, not copied, so it must not be modified afterwards.</p>
+	 *
+	 * @param	fragment	the bytes of the fragment, which may be null or empty, in which case nothing is appended
+	 */
+	public void append(byte[] fragment) {
+		if (fragment != null && fragment.length > 0) {
+			fragments.add(fragment);
+			length+=fragment.length;
+		}
+	}
+
+	/**
+	 * <p>Discard all the fragments.</p>
+	 */
+	public void clear() {
+		fragments.clear();
+		length=0;
+	}
+
+	/***/
+	public int length() { return length; }
+
+	/***/
+	public boolean isEmpty() { return length == 0; }
+
+	/**
+	 * <p>Get the accumulated bytes as a contiguous array.</p>
+	 *
+	 * <p>If there is only one fragment, it is returned without being copied.</p>
+	 *
+	 * @return	the bytes, which are empty (not null) if nothing has been appended
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes;
+		if (fragments.size() == 1) {
+			bytes = fragments.get(0);
+		}
+		else {
+			bytes = new byte[length];
+			int offset = 0;
+			for (int i=0; i<fragments.size(); ++i) {
+				byte[] fragment = fragments.get(i);
+				System.arraycopy(fragment,0,bytes,offset,fragment.length);
+				offset+=fragment.length;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * <p>Get a stream that reads the accumulated bytes in place.</p>
+	 *
+	 * <p>The stream reflects the fragments present when it is created; do not append or clear while reading it.</p>
+	 *
+	 * @return	the stream
+	 */
+	public InputStream getInputStream() {
+		return new FragmentInputStream();
+	}
+
+	private class FragmentInputStream extends InputStream {
+		private int fragmentIndex;
+		private int offsetInFragment;
+		private int remaining = length;
+		private int markFragmentIndex;
+		private int markOffsetInFragment;
+		private int markRemaining = length;
+
+		private boolean nextFragmentIfNecessary() {
+			while (fragmentIndex < fragments.size() && offsetInFragment >= fragments.get(fragmentIndex).length) {
+				++fragmentIndex;
+				offsetInFragment=0;
+			}
+			return fragmentIndex < fragments.size();
+		}
+
+		public int read() throws IOException {
+			if (!nextFragmentIfNecessary()) {
+				return -1;
+			}
+			--remaining;
+			return fragments.get(fragmentIndex)[offsetInFragment++] & 0xff;
+		}
+
+		public int read(byte[] b,int off,int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!nextFragmentIfNecessary()) {
+				return -1;
+			}
+			byte[] fragment = fragments.get(fragmentIndex);
+			int count = Math.min(len,fragment.length-offsetInFragment);
+			System.arraycopy(fragment,offsetInFragment,b,off,count);
+			offsetInFragment+=count;
+			remaining-=count;
+			return count;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = 0;
+			while (skipped < n && nextFragmentIfNecessary()) {
+				int count = (int)Math.min(n-skipped,fragments.get(fragmentIndex).length-offsetInFragment);
+				offsetInFragment+=count;
+				remaining-=count;
+				skipped+=count;
+			}
+			return skipped;
+		}
+
+		public int available() throws IOException {
+			return remaining;
+		}
+
+		public boolean markSupported() {
+			return true;
+		}
+
+		public void mark(int readlimit) {
+			markFragmentIndex=fragmentIndex;
+			markOffsetInFragment=offsetInFragment;
+			markRemaining=remaining;
+		}
+
+		public void reset() throws IOException {
+			fragmentIndex=markFragmentIndex;
+			offsetInFragment=markOffsetInFragment;
+			remaining=markRemaining;
+		}
+	}
+}
@@ -12,6 +12,7 @@ public class ResponseStatus {
 
 	// Failure
 	
+	static public int RefusedOutOfResources = 0xA700;										// (0000,0902)
 	static public int RefusedOutOfResourcesUnableToCalculateNumberOfMatches = 0xA701;		// (0000,0902)
 	static public int RefusedOutOfResourcesUnableToPerformSubOperations = 0xA702;			// (0000,1020),(0000,1021),(0000,1022),(0000,1023)
 	static public int RefusedMoveDestinationUnknown = 0xA801;								// (0000,0902)
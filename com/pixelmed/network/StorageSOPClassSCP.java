@@ -4,6 +4,7 @@ package com.pixelmed.network;
 
 import com.pixelmed.utils.*;
 import com.pixelmed.dicom.*;
+import com.pixelmed.query.LimitedQueryResponseGenerator;
 import com.pixelmed.query.QueryResponseGenerator;
 import com.pixelmed.query.QueryResponseGeneratorFactory;
 import com.pixelmed.query.RetrieveResponseGenerator;
@@ -53,11 +54,12 @@ public class StorageSOPClassSCP extends SOPClass implements Runnable {
 		/***/
 		private int command;
 		/***/
-		private byte[] commandReceived;
+		private ReceivedFragmentBuffer commandReceived;
 		/***/
+		private CommandSetDecoder commandSet;
 		private AttributeList commandList;
 		/***/
-		private byte[] dataReceived;
+		private ReceivedFragmentBuffer dataReceived;
 		/***/
 		private AttributeList dataList;
 		/***/
@@ -87,6 +89,16 @@ public class StorageSOPClassSCP extends SOPClass implements Runnable {
 		private QueryResponseGeneratorFactory queryResponseGeneratorFactory;
 		/***/
 		private RetrieveResponseGeneratorFactory retrieveResponseGeneratorFactory;
+		/***/
+		private boolean queryInProgress;
+		/***/
+		private boolean cancelRequested;
+		/***/
+		private ReceivedFragmentBuffer commandReceivedDuringQuery;
+		/***/
+		private long timeCommandReceived;		// System.nanoTime(), for NetworkMetrics
+		/***/
+		private long timeSpentWritingToDisk;		// ns, for NetworkMetrics
 
 		/**
 		 * @exception	IOException
@@ -122,13 +134,17 @@ public class StorageSOPClassSCP extends SOPClass implements Runnable {
 		public CompositeCommandReceivedPDUHandler(File savedImagesFolder,QueryResponseGeneratorFactory queryResponseGeneratorFactory,RetrieveResponseGeneratorFactory retrieveResponseGeneratorFactory,int debugLevel) {
 			super(debugLevel);
 			command=MessageServiceElementCommand.NOCOMMAND;
-			commandReceived=null;
+			commandReceived=new ReceivedFragmentBuffer();
+			commandSet=null;
 			commandList=null;
-			dataReceived=null;
+			dataReceived=new ReceivedFragmentBuffer();
 			dataList=null;
 			out=null;
 			csrq=null;
 			receivedFile=null;
+			queryInProgress=false;
+			cancelRequested=false;
+			commandReceivedDuringQuery=new ReceivedFragmentBuffer();
 			this.savedImagesFolder=savedImagesFolder;
 			this.queryResponseGeneratorFactory=queryResponseGeneratorFactory;
 			this.retrieveResponseGeneratorFactory=retrieveResponseGeneratorFactory;
@@ -241,6 +257,55 @@ if (debugLevel > 1) System.err.println("StorageSOPClassSCP.CompositeCommandRecei
 			}
 		}
 
+		/**
+		 * <p>Process a fragment received while C-FIND responses are being sent, which may only be of a C-CANCEL-RQ.</p>
+		 *
+		 * @param	pdv
+		 * @exception	DicomException
+		 * @exception	DicomNetworkException
+		 */
+		private void receivedDuringQuery(PresentationDataValue pdv) throws DicomNetworkException, DicomException {
+			if (!pdv.isCommand()) {
+				throw new DicomNetworkException("Unexpected data while sending C-FIND responses");
+			}
+			commandReceivedDuringQuery.append(pdv.getValue());	// handles null cases
+			if (pdv.isLastFragment()) {
+				CommandSetDecoder cancelCommandSet = new CommandSetDecoder(commandReceivedDuringQuery.toByteArray());
+				commandReceivedDuringQuery.clear();
+				int cancelCommand = cancelCommandSet.getCommandField();
+				if (cancelCommand != MessageServiceElementCommand.C_CANCEL_RQ) {
+					throw new DicomNetworkException("Unexpected command 0x"+Integer.toHexString(cancelCommand)+" "+MessageServiceElementCommand.toString(cancelCommand)+" while sending C-FIND responses");
+				}
+				int messageIDBeingRespondedTo = cancelCommandSet.getSingleIntegerValueOrDefault(TagFromName.MessageIDBeingRespondedTo,-1);
+				if (messageIDBeingRespondedTo == cfrq.getMessageID()) {
+if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.receivedDuringQuery(): C-CANCEL-RQ");
+					cancelRequested = true;
+				}
+				else {
+if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.receivedDuringQuery(): ignoring C-CANCEL-RQ for other message ID "+messageIDBeingRespondedTo);
+				}
+			}
+		}
+
+		/**
+		 * <p>Process any PDUs that have arrived while C-FIND responses are being sent, without blocking.</p>
+		 *
+		 * @param	association
+		 * @return					true if a C-CANCEL-RQ for the query has been received
+		 * @exception	DicomNetworkException
+		 */
+		private boolean isCancelRequested(Association association) throws DicomNetworkException {
+			while (!cancelRequested && association.isPDUAvailable()) {
+				try {
+					association.waitForOnePDataPDU();		// calls sendPDataIndication(), which passes the fragments to receivedDuringQuery()
+				}
+				catch (AReleaseException e) {
+					throw new DicomNetworkException("A-RELEASE indication while sending C-FIND responses");
+				}
+			}
+			return cancelRequested;
+		}
+
 //long startReceivedFile;
 //long wroteMetaReceivedFile;
 //long wroteLastFragmentReceivedFile;
@@ -264,39 +329,51 @@ if (debugLevel > 2) System.err.println("StorageSOPClassSCP.CompositeCommandRecei
 			while (i.hasNext()) {
 if (debugLevel > 1) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): have another fragment");
 				PresentationDataValue pdv = (PresentationDataValue)i.next();
+				if (queryInProgress) {
+					receivedDuringQuery(pdv);
+					continue;
+				}
 				presentationContextIDUsed = pdv.getPresentationContextID();
 				if (pdv.isCommand()) {
 					receivedFile=null;
-					commandReceived=ByteArray.concatenate(commandReceived,pdv.getValue());	// handles null cases
+					commandReceived.append(pdv.getValue());	// handles null cases
 					if (pdv.isLastFragment()) {
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): last fragment of data seen");
-if (debugLevel > 0) System.err.println(HexDump.dump(commandReceived));
-						commandList = new AttributeList();
-						commandList.read(new DicomInputStream(new ByteArrayInputStream(commandReceived),TransferSyntax.Default,false));
-if (debugLevel > 0) System.err.print(commandList);
-						command = Attribute.getSingleIntegerValueOrDefault(commandList,TagFromName.CommandField,0xffff);
+if (debugLevel > 0) System.err.println(HexDump.dump(commandReceived.toByteArray()));
+						commandSet = new CommandSetDecoder(commandReceived.toByteArray());		// locates elements only, and C-STORE-RQ (the frequent case) needs no AttributeList
+						commandList = null;
+if (debugLevel > 0) System.err.print(getCommandList());
+						command = commandSet.getCommandField();
+						timeCommandReceived = System.nanoTime();
 						if (command == MessageServiceElementCommand.C_ECHO_RQ) {	// C-ECHO-RQ
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): C-ECHO-RQ");
-							cerq = new CEchoRequestCommandMessage(commandList);
+							cerq = new CEchoRequestCommandMessage(commandSet.getAttributeList());
 							buildCEchoResponse();
 							setDone(true);
 							setRelease(false);
 						}
 						else if (command == MessageServiceElementCommand.C_STORE_RQ) {
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): C-STORE-RQ");
-							csrq = new CStoreRequestCommandMessage(commandList);
+							csrq = new CStoreRequestCommandMessage(commandSet);
 						}
 						else if (command == MessageServiceElementCommand.C_FIND_RQ && queryResponseGeneratorFactory != null) {
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): C-FIND-RQ");
-							cfrq = new CFindRequestCommandMessage(commandList);
+							cfrq = new CFindRequestCommandMessage(commandSet.getAttributeList());
 						}
 						else if (command == MessageServiceElementCommand.C_MOVE_RQ && retrieveResponseGeneratorFactory != null) {
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): C-MOVE-RQ");
-							cmrq = new CMoveRequestCommandMessage(commandList);
+							cmrq = new CMoveRequestCommandMessage(commandSet.getAttributeList());
 						}
 						else if (command == MessageServiceElementCommand.C_GET_RQ && retrieveResponseGeneratorFactory != null) {
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): C-GET-RQ");
-							cgrq = new CGetRequestCommandMessage(commandList);
+							cgrq = new CGetRequestCommandMessage(commandSet.getAttributeList());
+						}
+						else if (command == MessageServiceElementCommand.C_CANCEL_RQ) {
+							// crossed with the final response of the operation it was intended to cancel, so nothing to do and no response
+if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): ignoring C-CANCEL-RQ after final response");
+							response = null;
+							setDone(true);
+							setRelease(false);
 						}
 						else {
 							throw new DicomNetworkException("Unexpected command 0x"+Integer.toHexString(command)+" "+MessageServiceElementCommand.toString(command));
@@ -308,6 +385,7 @@ if (debugLevel > 0 && i.hasNext()) System.err.println("StorageSOPClassSCP.Compos
 				else {
 					 if (command == MessageServiceElementCommand.C_STORE_RQ) {
 if (debugLevel > 1) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Storing data fragment");
+						long startWrite = System.nanoTime();
 						if (out == null && savedImagesFolder != null) {		// lazy opening
 //startReceivedFile=System.currentTimeMillis();
 //accumulatedWritePDVTime=0;
@@ -336,13 +414,20 @@ if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandRecei
 							out.write(bytesToWrite);
 //accumulatedWritePDVTime+=(System.currentTimeMillis()-startWritePDV);
 						}
+						timeSpentWritingToDisk += System.nanoTime() - startWrite;
 						if (pdv.isLastFragment()) {
 //wroteLastFragmentReceivedFile=System.currentTimeMillis();
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Finished storing data");
 							if (out != null) {
+								long startClose = System.nanoTime();
 								out.close();
-								receivedFile=storedFilePathStrategy.makeReliableStoredFilePathWithFoldersCreated(savedImagesFolder,csrq.getAffectedSOPInstanceUID());
-								if (!temporaryReceivedFile.renameTo(receivedFile)) {
+								receivedFile=storedFilePathStrategy.makeReliableStoredFilePathWithFoldersCreated(savedImagesFolder,csrq.getAffectedSOPInstanceUID(),temporaryReceivedFile);
+								if (!temporaryReceivedFile.renameTo(receivedFile) && !receivedFile.getParentFile().exists()) {
+if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Folder removed since created ... creating again");
+									storedFilePathStrategy.forgetFoldersKnownToExist();
+									receivedFile=storedFilePathStrategy.makeReliableStoredFilePathWithFoldersCreated(savedImagesFolder,csrq.getAffectedSOPInstanceUID(),temporaryReceivedFile);
+								}
+								if (temporaryReceivedFile.exists() && !temporaryReceivedFile.renameTo(receivedFile)) {
 /*if (debugLevel > 0)*/ System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Could not move temporary file into place ... copying instead");
 									CopyStream.copy(temporaryReceivedFile,receivedFile);
 									if (!temporaryReceivedFile.delete()) {
@@ -350,6 +435,8 @@ if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandRecei
 									}
 								}
 								out=null;
+								timeSpentWritingToDisk += System.nanoTime() - startClose;
+								NetworkMetrics.getNetworkMetrics().timeSpent(NetworkMetrics.timingDiskWrite,timeSpentWritingToDisk);
 //endReceivedFile=System.currentTimeMillis();
 //System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): time until metaheader written    "+(wroteMetaReceivedFile-startReceivedFile)+" ms");
 //System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): time until last fragment written "+(wroteLastFragmentReceivedFile-startReceivedFile)+" ms");
@@ -363,14 +450,21 @@ if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandRecei
 					}
 					else if (command == MessageServiceElementCommand.C_FIND_RQ && queryResponseGeneratorFactory != null) {
 						QueryResponseGenerator queryResponseGenerator = queryResponseGeneratorFactory.newInstance();
-						dataReceived=ByteArray.concatenate(dataReceived,pdv.getValue());	// handles null cases
+						dataReceived.append(pdv.getValue());	// handles null cases
 						if (pdv.isLastFragment()) {
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): last fragment of data seen");
-if (debugLevel > 0) System.err.println(HexDump.dump(dataReceived));
+if (debugLevel > 0) System.err.println(HexDump.dump(dataReceived.toByteArray()));
 							dataList = new AttributeList();
-							dataList.read(new DicomInputStream(new ByteArrayInputStream(dataReceived),
+							dataList.read(new DicomInputStream(dataReceived.getInputStream(),
 								association.getTransferSyntaxForPresentationContextID(presentationContextIDUsed),false));
 if (debugLevel > 0) System.err.print(dataList);
+							String callingAETitle = association.getCallingAETitle();
+							int maximumNumberOfMatches = queryResponseLimits == null ? 0 : queryResponseLimits.getMaximumNumberOfMatches(callingAETitle);
+							long timeout = queryResponseLimits == null ? 0 : queryResponseLimits.getTimeout(callingAETitle);
+							long giveUpTime = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+							if (queryResponseGenerator instanceof LimitedQueryResponseGenerator) {
+								((LimitedQueryResponseGenerator)queryResponseGenerator).setLimits(maximumNumberOfMatches,timeout);		// stop the underlying query early too
+							}
 							queryResponseGenerator.performQuery(cfrq.getAffectedSOPClassUID(),dataList,false/*relational*/);
 							int status = queryResponseGenerator.getStatus();
 							if (status != ResponseStatus.Success) {
@@ -386,34 +480,74 @@ if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandRecei
 								queryResponseGenerator.close();
 							}
 							else {
-								AttributeList responseIdentifierList;
-								while ((responseIdentifierList = queryResponseGenerator.next()) != null) {
+								String errorComment = null;
+								int numberOfMatches = 0;
+								queryInProgress = true;		// any PDUs received until the final response is sent can only be C-CANCEL-RQ
+								try {
+									while (true) {
+										if (isCancelRequested(association)) {
+											status = ResponseStatus.MatchingTerminatedDueToCancelIndication;
+											break;
+										}
+										if (System.currentTimeMillis() > giveUpTime) {
+											status = ResponseStatus.RefusedOutOfResources;
+											errorComment = "Query took longer than "+timeout+" ms";
+											break;
+										}
+										AttributeList responseIdentifierList = queryResponseGenerator.next();
+										if (responseIdentifierList == null) {
+											status = queryResponseGenerator.getStatus();		// may have stopped because of a limit
+											errorComment = queryResponseGenerator.getErrorComment();
+											break;
+										}
+										if (maximumNumberOfMatches > 0 && numberOfMatches >= maximumNumberOfMatches) {
+											status = ResponseStatus.RefusedOutOfResources;
+											errorComment = "More than "+maximumNumberOfMatches+" matches";
+											break;
+										}
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Building and sending pending response "+responseIdentifierList.toString());
-									byte presentationContextIDForResponse = association.getSuitablePresentationContextID(cfrq.getAffectedSOPClassUID());
+										byte presentationContextIDForResponse = association.getSuitablePresentationContextID(cfrq.getAffectedSOPClassUID());
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Using context ID for response "+presentationContextIDForResponse);
-									byte cFindResponseCommandMessage[] = new CFindResponseCommandMessage(
+										byte cFindResponseCommandMessage[] = new CFindResponseCommandMessage(
+												cfrq.getAffectedSOPClassUID(),
+												cfrq.getMessageID(),
+												(queryResponseGenerator.allOptionalKeysSuppliedWereSupported() ? ResponseStatus.MatchesAreContinuingOptionalKeysSupported : ResponseStatus.MatchesAreContinuingOptionalKeysNotSupported),	// pending
+												//ResponseStatus.MatchesAreContinuingOptionalKeysSupported,	// pending ... temporary workaround for [bugs.mrmf] (000213) K-PACS freaked out by valid unsupported optional keys pending response during C-FIND
+												true														// dataset present
+											).getBytes();
+										byte cFindIdentifier[] = new IdentifierMessage(
+												responseIdentifierList,
+												association.getTransferSyntaxForPresentationContextID(presentationContextIDForResponse)
+											).getBytes();
+										//association.setReceivedDataHandler(new CXXXXResponseHandler(debugLevel));
+										association.send(presentationContextIDForResponse,cFindResponseCommandMessage,null);
+										association.send(presentationContextIDForResponse,null,cFindIdentifier);
+										++numberOfMatches;
+									}
+								}
+								finally {
+									queryInProgress = false;
+									queryResponseGenerator.close();
+								}
+if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Bulding final C-FIND response, status = 0x"+Integer.toHexString(status)+" after "+numberOfMatches+" matches");
+								if (status == ResponseStatus.Success) {
+									response = new CFindResponseCommandMessage(
 											cfrq.getAffectedSOPClassUID(),
 											cfrq.getMessageID(),
-											(queryResponseGenerator.allOptionalKeysSuppliedWereSupported() ? ResponseStatus.MatchesAreContinuingOptionalKeysSupported : ResponseStatus.MatchesAreContinuingOptionalKeysNotSupported),	// pending
-											//ResponseStatus.MatchesAreContinuingOptionalKeysSupported,	// pending ... temporary workaround for [bugs.mrmf] (000213) K-PACS freaked out by valid unsupported optional keys pending response during C-FIND
-											true														// dataset present
+											ResponseStatus.Success,				// success status matching is complete
+											false								// no dataset
 										).getBytes();
-									byte cFindIdentifier[] = new IdentifierMessage(
-											responseIdentifierList,
-											association.getTransferSyntaxForPresentationContextID(presentationContextIDForResponse)
+								}
+								else {
+									response = new CFindResponseCommandMessage(
+											cfrq.getAffectedSOPClassUID(),
+											cfrq.getMessageID(),
+											status,								// cancelled, or a limit was exceeded
+											false,								// no dataset
+											null,								// no OffendingElement
+											errorComment
 										).getBytes();
-									//association.setReceivedDataHandler(new CXXXXResponseHandler(debugLevel));
-									association.send(presentationContextIDForResponse,cFindResponseCommandMessage,null);
-									association.send(presentationContextIDForResponse,null,cFindIdentifier);
 								}
-								queryResponseGenerator.close();
-if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Bulding final C-FIND success response");
-								response = new CFindResponseCommandMessage(
-										cfrq.getAffectedSOPClassUID(),
-										cfrq.getMessageID(),
-										ResponseStatus.Success,				// success status matching is complete
-										false								// no dataset
-									).getBytes();
 							}
 							setDone(true);
 							setRelease(false);
@@ -421,148 +555,179 @@ if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandRecei
 					}
 					else if (command == MessageServiceElementCommand.C_MOVE_RQ && retrieveResponseGeneratorFactory != null && applicationEntityMap != null) {
 						RetrieveResponseGenerator retrieveResponseGenerator = retrieveResponseGeneratorFactory.newInstance();
-						dataReceived=ByteArray.concatenate(dataReceived,pdv.getValue());	// handles null cases
+						dataReceived.append(pdv.getValue());	// handles null cases
 						if (pdv.isLastFragment()) {
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): last fragment of data seen");
-if (debugLevel > 0) System.err.println(HexDump.dump(dataReceived));
+if (debugLevel > 0) System.err.println(HexDump.dump(dataReceived.toByteArray()));
 							dataList = new AttributeList();
-							dataList.read(new DicomInputStream(new ByteArrayInputStream(dataReceived),
+							dataList.read(new DicomInputStream(dataReceived.getInputStream(),
 								association.getTransferSyntaxForPresentationContextID(presentationContextIDUsed),false));
 if (debugLevel > 0) System.err.print(dataList);
 							retrieveResponseGenerator.performRetrieve(cmrq.getAffectedSOPClassUID(),dataList,false/*relational*/);
 							SetOfDicomFiles dicomFiles = retrieveResponseGenerator.getDicomFiles();
 							int status = retrieveResponseGenerator.getStatus();
-							retrieveResponseGenerator.close();
-							if (status != ResponseStatus.Success || dicomFiles == null) {
+							try {
+								if (status != ResponseStatus.Success || dicomFiles == null) {
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): retrieve failed or contains nothing, status = 0x"+Integer.toHexString(status));
-								response = new CMoveResponseCommandMessage(
-									cmrq.getAffectedSOPClassUID(),
-									cmrq.getMessageID(),
-									status,
-									false,				// no dataset
-									retrieveResponseGenerator.getOffendingElement(),
-									null				// no ErrorComment
-								).getBytes();
-							}
-							else {
-								CMovePendingResponseSender pendingResponseSender = new CMovePendingResponseSender(association,cmrq);
-								pendingResponseSender.nRemaining = dicomFiles.size();		// in case fails immediately with no status updates
-							
-								String moveDestinationAETitle = cmrq.getMoveDestination();
-								PresentationAddress moveDestinationPresentationAddress = applicationEntityMap.getPresentationAddress(moveDestinationAETitle);
-								if (moveDestinationPresentationAddress != null) {
-									String moveDestinationHostname = moveDestinationPresentationAddress.getHostname();
-									int moveDestinationPort = moveDestinationPresentationAddress.getPort();
-if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): moveDestinationAETitle="+moveDestinationAETitle);
-if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): moveDestinationHostname="+moveDestinationHostname);
-if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): moveDestinationPort="+moveDestinationPort);
-									{
-										new StorageSOPClassSCU(
-											moveDestinationHostname,
-											moveDestinationPort,
-											moveDestinationAETitle,	// the C-STORE called AET
-											calledAETitle,		// use ourselves (the C-MOVE called AET) as the C-STORE calling AET
-											dicomFiles,
-											0,			// compressionLevel
-											pendingResponseSender,
-											calledAETitle,			// use ourselves (the C-MOVE called AET) as the MoveOriginatorApplicationEntityTitle
-											cmrq.getMessageID(),	// MoveOriginatorMessageID
-											debugLevel);
-									}
-if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): after all stored: nRemaining="+pendingResponseSender.nRemaining+" nCompleted="+pendingResponseSender.nCompleted+" nFailed="+pendingResponseSender.nFailed+" nWarning="+pendingResponseSender.nWarning);
-									if (pendingResponseSender.nRemaining > 0) {
-										pendingResponseSender.nFailed+=pendingResponseSender.nRemaining;
-										pendingResponseSender.nRemaining=0;
-									}
-if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): after setting remaining to zero: nRemaining="+pendingResponseSender.nRemaining+" nCompleted="+pendingResponseSender.nCompleted+" nFailed="+pendingResponseSender.nFailed+" nWarning="+pendingResponseSender.nWarning);
-if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Bulding final C-MOVE success response");
 									response = new CMoveResponseCommandMessage(
 										cmrq.getAffectedSOPClassUID(),
 										cmrq.getMessageID(),
-										pendingResponseSender.nFailed > 0
-											? ResponseStatus.SubOperationsCompleteOneOrMoreFailures
-											: ResponseStatus.SubOperationsCompleteNoFailures,
-										false,				// no dataset, unless there was failure, then add Failed SOP Instance UID List (0008,0058) :(
-										pendingResponseSender.nRemaining,
-										pendingResponseSender.nCompleted,
-										pendingResponseSender.nFailed,
-										pendingResponseSender.nWarning
+										status,
+										false,				// no dataset
+										retrieveResponseGenerator.getOffendingElement(),
+										null				// no ErrorComment
 									).getBytes();
 								}
 								else {
-									status=ResponseStatus.RefusedMoveDestinationUnknown;
+									CMovePendingResponseSender pendingResponseSender = new CMovePendingResponseSender(association,cmrq);
+									pendingResponseSender.nRemaining = dicomFiles.size();		// in case fails immediately with no status updates
+								
+									String moveDestinationAETitle = cmrq.getMoveDestination();
+									PresentationAddress moveDestinationPresentationAddress = applicationEntityMap.getPresentationAddress(moveDestinationAETitle);
+									if (moveDestinationPresentationAddress != null) {
+										String moveDestinationHostname = moveDestinationPresentationAddress.getHostname();
+										int moveDestinationPort = moveDestinationPresentationAddress.getPort();
+if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): moveDestinationAETitle="+moveDestinationAETitle);
+if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): moveDestinationHostname="+moveDestinationHostname);
+if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): moveDestinationPort="+moveDestinationPort);
+										if (storageTransferScheduler != null) {
+											StorageTransferScheduler.Transfer transfer = storageTransferScheduler.submit(
+												moveDestinationHostname,
+												moveDestinationPort,
+												moveDestinationAETitle,	// the C-STORE called AET
+												calledAETitle,		// use ourselves (the C-MOVE called AET) as the C-STORE calling AET
+												dicomFiles,
+												0,			// compressionLevel
+												cmrq.getPriority(),		// schedule and send each C-STORE sub-operation with the C-MOVE priority
+												calledAETitle,			// use ourselves (the C-MOVE called AET) as the MoveOriginatorApplicationEntityTitle
+												cmrq.getMessageID(),	// MoveOriginatorMessageID
+												pendingResponseSender);
+											try {
+												transfer.waitForCompletion();
+											}
+											catch (InterruptedException e) {
+												e.printStackTrace(System.err);		// anything not yet sent will be counted as failed
+											}
+										}
+										else {
+											new StorageSOPClassSCU(
+												moveDestinationHostname,
+												moveDestinationPort,
+												moveDestinationAETitle,	// the C-STORE called AET
+												calledAETitle,		// use ourselves (the C-MOVE called AET) as the C-STORE calling AET
+												dicomFiles,
+												0,			// compressionLevel
+												pendingResponseSender,
+												calledAETitle,			// use ourselves (the C-MOVE called AET) as the MoveOriginatorApplicationEntityTitle
+												cmrq.getMessageID(),	// MoveOriginatorMessageID
+												cmrq.getPriority(),		// propagate the C-MOVE priority into each C-STORE sub-operation
+												debugLevel);
+										}
+if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): after all stored: nRemaining="+pendingResponseSender.nRemaining+" nCompleted="+pendingResponseSender.nCompleted+" nFailed="+pendingResponseSender.nFailed+" nWarning="+pendingResponseSender.nWarning);
+										if (pendingResponseSender.nRemaining > 0) {
+											pendingResponseSender.nFailed+=pendingResponseSender.nRemaining;
+											pendingResponseSender.nRemaining=0;
+										}
+if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): after setting remaining to zero: nRemaining="+pendingResponseSender.nRemaining+" nCompleted="+pendingResponseSender.nCompleted+" nFailed="+pendingResponseSender.nFailed+" nWarning="+pendingResponseSender.nWarning);
+if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Bulding final C-MOVE success response");
+										response = new CMoveResponseCommandMessage(
+											cmrq.getAffectedSOPClassUID(),
+											cmrq.getMessageID(),
+											pendingResponseSender.nFailed > 0
+												? ResponseStatus.SubOperationsCompleteOneOrMoreFailures
+												: ResponseStatus.SubOperationsCompleteNoFailures,
+											false,				// no dataset, unless there was failure, then add Failed SOP Instance UID List (0008,0058) :(
+											pendingResponseSender.nRemaining,
+											pendingResponseSender.nCompleted,
+											pendingResponseSender.nFailed,
+											pendingResponseSender.nWarning
+										).getBytes();
+									}
+									else {
+										status=ResponseStatus.RefusedMoveDestinationUnknown;
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Unrecognized move destination "+moveDestinationAETitle+", status = 0x"+Integer.toHexString(status));
-									response = new CMoveResponseCommandMessage(
-										cmrq.getAffectedSOPClassUID(),
-										cmrq.getMessageID(),
-										status,
-										false,				// no dataset
-										null,				// no OffendingElement
-										moveDestinationAETitle		// ErrorComment
-									).getBytes();
+										response = new CMoveResponseCommandMessage(
+											cmrq.getAffectedSOPClassUID(),
+											cmrq.getMessageID(),
+											status,
+											false,				// no dataset
+											null,				// no OffendingElement
+											moveDestinationAETitle		// ErrorComment
+										).getBytes();
+									}
 								}
 							}
+							finally {
+								retrieveResponseGenerator.close();		// not until sub-operations are done, since the generator may be holding on to the files
+							}
 							setDone(true);
 							setRelease(false);
 						}
 					}
 					else if (command == MessageServiceElementCommand.C_GET_RQ && retrieveResponseGeneratorFactory != null) {
 						RetrieveResponseGenerator retrieveResponseGenerator = retrieveResponseGeneratorFactory.newInstance();
-						dataReceived=ByteArray.concatenate(dataReceived,pdv.getValue());	// handles null cases
+						dataReceived.append(pdv.getValue());	// handles null cases
 						if (pdv.isLastFragment()) {
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): last fragment of data seen");
-if (debugLevel > 0) System.err.println(HexDump.dump(dataReceived));
+if (debugLevel > 0) System.err.println(HexDump.dump(dataReceived.toByteArray()));
 							dataList = new AttributeList();
-							dataList.read(new DicomInputStream(new ByteArrayInputStream(dataReceived),
+							dataList.read(new DicomInputStream(dataReceived.getInputStream(),
 								association.getTransferSyntaxForPresentationContextID(presentationContextIDUsed),false));
 if (debugLevel > 0) System.err.print(dataList);
 							retrieveResponseGenerator.performRetrieve(cgrq.getAffectedSOPClassUID(),dataList,false/*relational*/);
 							SetOfDicomFiles dicomFiles = retrieveResponseGenerator.getDicomFiles();
 							int status = retrieveResponseGenerator.getStatus();
-							retrieveResponseGenerator.close();
-							if (status != ResponseStatus.Success || dicomFiles == null) {
+							try {
+								if (status != ResponseStatus.Success || dicomFiles == null) {
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): retrieve failed or contains nothing, status = 0x"+Integer.toHexString(status));
-								response = new CGetResponseCommandMessage(
-									cgrq.getAffectedSOPClassUID(),
-									cgrq.getMessageID(),
-									status,
-									false,				// no dataset
-									retrieveResponseGenerator.getOffendingElement(),
-									null				// no ErrorComment
-								).getBytes();
-							}
-							else {
-								CGetPendingResponseSender pendingResponseSender = new CGetPendingResponseSender(association,cgrq);
-								pendingResponseSender.nRemaining = dicomFiles.size();		// in case fails immediately with no status updates
-								{
-									// WARNING - StorageSOPClassSCU will override the current ReceivedDataHandler set on the association
-									// do NOT send MoveOriginatorApplicationEntityTitle or MoveOriginatorMessageID - that is only for C-MOVE
-									new StorageSOPClassSCU(
-										association,
-										dicomFiles,
-										pendingResponseSender,
-										debugLevel);
-									association.setReceivedDataHandler(this);	// re-establish ourselves as the handler to send done response
-if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): after all stored: nRemaining="+pendingResponseSender.nRemaining+" nCompleted="+pendingResponseSender.nCompleted+" nFailed="+pendingResponseSender.nFailed+" nWarning="+pendingResponseSender.nWarning);
-									if (pendingResponseSender.nRemaining > 0) {
-										pendingResponseSender.nFailed+=pendingResponseSender.nRemaining;
-										pendingResponseSender.nRemaining=0;
-									}
-if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): after setting remaining to zero: nRemaining="+pendingResponseSender.nRemaining+" nCompleted="+pendingResponseSender.nCompleted+" nFailed="+pendingResponseSender.nFailed+" nWarning="+pendingResponseSender.nWarning);
-if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Bulding final C-GET success response");
 									response = new CGetResponseCommandMessage(
 										cgrq.getAffectedSOPClassUID(),
 										cgrq.getMessageID(),
-										pendingResponseSender.nFailed > 0
-											? ResponseStatus.SubOperationsCompleteOneOrMoreFailures
-											: ResponseStatus.SubOperationsCompleteNoFailures,
-										false,				// no dataset, unless there was failure, then add Failed SOP Instance UID List (0008,0058)
-										pendingResponseSender.nRemaining,
-										pendingResponseSender.nCompleted,
-										pendingResponseSender.nFailed,
-										pendingResponseSender.nWarning
+										status,
+										false,				// no dataset
+										retrieveResponseGenerator.getOffendingElement(),
+										null				// no ErrorComment
 									).getBytes();
 								}
+								else {
+									CGetPendingResponseSender pendingResponseSender = new CGetPendingResponseSender(association,cgrq);
+									pendingResponseSender.nRemaining = dicomFiles.size();		// in case fails immediately with no status updates
+									{
+										// WARNING - StorageSOPClassSCU will override the current ReceivedDataHandler set on the association
+										// do NOT send MoveOriginatorApplicationEntityTitle or MoveOriginatorMessageID - that is only for C-MOVE
+										new StorageSOPClassSCU(
+											association,
+											dicomFiles,
+											pendingResponseSender,
+											null,
+											-1,
+											cgrq.getPriority(),		// propagate the C-GET priority into each C-STORE sub-operation
+											debugLevel);
+										association.setReceivedDataHandler(this);	// re-establish ourselves as the handler to send done response
+if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): after all stored: nRemaining="+pendingResponseSender.nRemaining+" nCompleted="+pendingResponseSender.nCompleted+" nFailed="+pendingResponseSender.nFailed+" nWarning="+pendingResponseSender.nWarning);
+										if (pendingResponseSender.nRemaining > 0) {
+											pendingResponseSender.nFailed+=pendingResponseSender.nRemaining;
+											pendingResponseSender.nRemaining=0;
+										}
+if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): after setting remaining to zero: nRemaining="+pendingResponseSender.nRemaining+" nCompleted="+pendingResponseSender.nCompleted+" nFailed="+pendingResponseSender.nFailed+" nWarning="+pendingResponseSender.nWarning);
+if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Bulding final C-GET success response");
+										response = new CGetResponseCommandMessage(
+											cgrq.getAffectedSOPClassUID(),
+											cgrq.getMessageID(),
+											pendingResponseSender.nFailed > 0
+												? ResponseStatus.SubOperationsCompleteOneOrMoreFailures
+												: ResponseStatus.SubOperationsCompleteNoFailures,
+											false,				// no dataset, unless there was failure, then add Failed SOP Instance UID List (0008,0058)
+											pendingResponseSender.nRemaining,
+											pendingResponseSender.nCompleted,
+											pendingResponseSender.nFailed,
+											pendingResponseSender.nWarning
+										).getBytes();
+									}
+								}
+							}
+							finally {
+								retrieveResponseGenerator.close();		// not until sub-operations are done, since the generator may be holding on to the files
 							}
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.CompositeCommandReceivedPDUHandler.sendPDataIndication(): Setting done flag for C-GET response");
 							setDone(true);
@@ -578,10 +743,27 @@ if (debugLevel > 1) System.err.println("StorageSOPClassSCP.CompositeCommandRecei
 		}
 		
 		/***/
-		public AttributeList getCommandList() { return commandList; }
+		public AttributeList getCommandList() {
+			if (commandList == null && commandSet != null) {
+				try {
+					commandList = commandSet.getAttributeList();
+				}
+				catch (DicomException e) {
+					e.printStackTrace(System.err);
+				}
+				catch (IOException e) {
+					e.printStackTrace(System.err);
+				}
+			}
+			return commandList;
+		}
 		/***/
 		public byte[] getResponse() { return response; }
 		/***/
+		public int getCommand() { return command; }
+		/***/
+		public long getTimeCommandReceived() { return timeCommandReceived; }
+		/***/
 		public byte getPresentationContextIDUsed() { return presentationContextIDUsed; }
 		/***/
 		public File getReceivedFile() { return receivedFile; }
@@ -610,7 +792,16 @@ if (debugLevel > 0) System.err.println("StorageSOPClassSCP.receiveAndProcessOneR
 				byte pcid = receivedPDUHandler.getPresentationContextIDUsed();
 				String ts = association.getTransferSyntaxForPresentationContextID(pcid);
 				String callingAE = association.getCallingAETitle();
-				receivedObjectHandler.sendReceivedObjectIndication(receivedFileName,ts,callingAE);
+				NetworkMetrics networkMetrics = NetworkMetrics.getNetworkMetrics();
+				networkMetrics.receivedObjectHandlerStarted();
+				long startHandler = System.nanoTime();
+				try {
+					receivedObjectHandler.sendReceivedObjectIndication(receivedFileName,ts,callingAE);
+				}
+				finally {
+					networkMetrics.timeSpent(NetworkMetrics.timingReceivedObjectHandler,System.nanoTime()-startHandler);
+					networkMetrics.receivedObjectHandlerFinished();
+				}
 //long endTime=System.currentTimeMillis();
 //System.err.println("StorageSOPClassSCP.receiveAndProcessOneRequestMessage(): call to sendReceivedObjectIndication() time "+(endTime-startTime)+" ms");
 			}
@@ -618,7 +809,11 @@ if (debugLevel > 0) System.err.println("StorageSOPClassSCP.receiveAndProcessOneR
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.receiveAndProcessOneRequestMessage(): sending (final) response");
 		byte[] response = receivedPDUHandler.getResponse();
 if (debugLevel > 1) System.err.println("StorageSOPClassSCP.receiveAndProcessOneRequestMessage(): response = "+CompositeResponseHandler.dumpAttributeListFromCommandOrData(response,TransferSyntax.Default));
-		association.send(receivedPDUHandler.getPresentationContextIDUsed(),response,null);
+		if (response != null) {			// e.g., not for a C-CANCEL-RQ that arrived too late
+			association.send(receivedPDUHandler.getPresentationContextIDUsed(),response,null);
+			NetworkMetrics.getNetworkMetrics().operationCompleted(NetworkMetrics.roleSCP,receivedPDUHandler.getCommand(),association.getCallingAETitle(),
+				System.nanoTime()-receivedPDUHandler.getTimeCommandReceived());
+		}
 if (debugLevel > 0) System.err.println("StorageSOPClassSCP.receiveAndProcessOneRequestMessage(): end");
 		boolean moreExpected;
 		if (receivedPDUHandler.isToBeReleased()) {
@@ -659,6 +854,10 @@ if (debugLevel > 0) System.err.println("StorageSOPClassSCP.receiveAndProcessOneR
 	/***/
 	private PresentationContextSelectionPolicy presentationContextSelectionPolicy;
 	/***/
+	private QueryResponseLimits queryResponseLimits;
+	/***/
+	private StorageTransferScheduler storageTransferScheduler;
+	/***/
 	private int debugLevel;
 
 	/**
@@ -710,6 +909,28 @@ if (debugLevel > 0) System.err.println("StorageSOPClassSCP.receiveAndProcessOneR
 		storedFilePathStrategy.setDebugLevel(debugLevel);
 	}
 	
+	/**
+	 * <p>Limit the number of matches and the time spent on each query, by calling AE.</p>
+	 *
+	 * <p>Must be called before the thread is started.</p>
+	 *
+	 * @param	queryResponseLimits		the limits, or null if none
+	 */
+	public void setQueryResponseLimits(QueryResponseLimits queryResponseLimits) {
+		this.queryResponseLimits=queryResponseLimits;
+	}
+	
+	/**
+	 * <p>Send the C-STORE sub-operations of each C-MOVE through a scheduler shared with other outbound transfers, rather than directly.</p>
+	 *
+	 * <p>Must be called before the thread is started.</p>
+	 *
+	 * @param	storageTransferScheduler	the scheduler, or null to send directly
+	 */
+	public void setStorageTransferScheduler(StorageTransferScheduler storageTransferScheduler) {
+		this.storageTransferScheduler=storageTransferScheduler;
+	}
+	
 	/**
 	 * <p>Waits for an association to be initiated (acts as an association acceptor), then waits for storage or
 	 * verification commands, storing data sets in Part 10 files in the specified folder, until the association
@@ -717,6 +938,7 @@ if (debugLevel > 0) System.err.println("StorageSOPClassSCP.receiveAndProcessOneR
 	 */
 	public void run() {
 //System.err.println("StorageSOPClassSCP.run()");
+		NetworkMetrics.getNetworkMetrics().associationStarted();
 		try {
 			Association association = AssociationFactory.createNewAssociation(socket,calledAETitle,
 				ourMaximumLengthReceived,socketReceiveBufferSize,socketSendBufferSize,
@@ -737,6 +959,9 @@ if (debugLevel > 1) System.err.println(association);
 			//System.err.println(e);
 			e.printStackTrace(System.err);
 		}
+		finally {
+			NetworkMetrics.getNetworkMetrics().associationFinished();
+		}
 	}
 }
 
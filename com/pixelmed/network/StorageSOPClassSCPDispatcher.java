@@ -126,6 +126,10 @@ public class StorageSOPClassSCPDispatcher implements Runnable {
 	/***/
 	private PresentationContextSelectionPolicy presentationContextSelectionPolicy;
 	/***/
+	private QueryResponseLimits queryResponseLimits;
+	/***/
+	private StorageTransferScheduler storageTransferScheduler;
+	/***/
 	private int debugLevel;
 	/***/
 	private boolean wantToShutdown;
@@ -422,6 +426,28 @@ public class StorageSOPClassSCPDispatcher implements Runnable {
 		this.debugLevel=debugLevel;
 	}
 
+	/**
+	 * <p>Limit the number of matches and the time spent on each query, by calling AE.</p>
+	 *
+	 * <p>Applies to associations accepted after it is called.</p>
+	 *
+	 * @param	queryResponseLimits		the limits, or null if none
+	 */
+	public void setQueryResponseLimits(QueryResponseLimits queryResponseLimits) {
+		this.queryResponseLimits=queryResponseLimits;
+	}
+
+	/**
+	 * <p>Send the C-STORE sub-operations of each C-MOVE through a scheduler shared with other outbound transfers, rather than directly.</p>
+	 *
+	 * <p>Applies to associations accepted after it is called.</p>
+	 *
+	 * @param	storageTransferScheduler	the scheduler, or null to send directly
+	 */
+	public void setStorageTransferScheduler(StorageTransferScheduler storageTransferScheduler) {
+		this.storageTransferScheduler=storageTransferScheduler;
+	}
+
 	/**
 	 * <p>Request the dispatcher to stop listening and exit the thread.</p>
 	 */
@@ -485,12 +511,15 @@ if (debugLevel > 2) System.err.println("StorageSOPClassSCPDispatcher.run(): retu
 if (debugLevel > 1) System.err.println("StorageSOPClassSCPDispatcher:run(): applicationEntityMap = "+applicationEntityMap);
 					}
 					try {
-						new Thread(new StorageSOPClassSCP(socket,calledAETitle,
+						StorageSOPClassSCP scp = new StorageSOPClassSCP(socket,calledAETitle,
 							ourMaximumLengthReceived,socketReceiveBufferSize,socketSendBufferSize,savedImagesFolder,storedFilePathStrategy,
 							receivedObjectHandler,associationStatusHandler,queryResponseGeneratorFactory,retrieveResponseGeneratorFactory,
 							applicationEntityMap,
 							presentationContextSelectionPolicy,
-							debugLevel)).start();
+							debugLevel);
+						scp.setQueryResponseLimits(queryResponseLimits);
+						scp.setStorageTransferScheduler(storageTransferScheduler);
+						new Thread(scp).start();
 					}
 					catch (Exception e) {
 						e.printStackTrace(System.err);
@@ -49,6 +49,9 @@ public class StorageSOPClassSCU extends SOPClass {
 	/***/
 	protected boolean trappedExceptions;
 	
+	/***/
+	protected int priority = CommandPriority.MEDIUM;
+	
 	/**
 	 * @return	true if in multiple instance constructors exceptions were trapped, e.g., connection or association failure before transfers attempyed
 	 */
@@ -126,7 +129,8 @@ public class StorageSOPClassSCU extends SOPClass {
 			String inputTransferSyntaxUID,DicomInputStream din,
 			byte presentationContextID,String outputTransferSyntaxUID,
 			String moveOriginatorApplicationEntityTitle,int moveOriginatorMessageID) throws AReleaseException, DicomNetworkException, DicomException, IOException {
-		byte cStoreRequestCommandMessage[] = new CStoreRequestCommandMessage(affectedSOPClass,affectedSOPInstance,moveOriginatorApplicationEntityTitle,moveOriginatorMessageID).getBytes();
+		long startOperation = System.nanoTime();
+		byte cStoreRequestCommandMessage[] = new CStoreRequestCommandMessage(affectedSOPClass,affectedSOPInstance,moveOriginatorApplicationEntityTitle,moveOriginatorMessageID,priority).getBytes();
 		CStoreResponseHandler receivedDataHandler = new CStoreResponseHandler(debugLevel);
 		association.setReceivedDataHandler(receivedDataHandler);
 		association.send(presentationContextID,cStoreRequestCommandMessage,null);
@@ -148,6 +152,7 @@ if (debugLevel > 0) System.err.println("StorageSOPClassSCU.sendOneSOPInstance():
 		}
 if (debugLevel > 0) System.err.println("StorageSOPClassSCU.sendOneSOPInstance(): about to wait for PDUs");
 		association.waitForCommandPDataPDUs();
+		NetworkMetrics.getNetworkMetrics().operationCompleted(NetworkMetrics.roleSCU,MessageServiceElementCommand.C_STORE_RQ,association,System.nanoTime()-startOperation);
 		return receivedDataHandler.wasSuccessful();
 	}
 	
@@ -170,7 +175,8 @@ if (debugLevel > 0) System.err.println("StorageSOPClassSCU.sendOneSOPInstance():
 			AttributeList list,
 			byte presentationContextID,String outputTransferSyntaxUID,
 			String moveOriginatorApplicationEntityTitle,int moveOriginatorMessageID) throws AReleaseException, DicomNetworkException, DicomException, IOException {
-		byte cStoreRequestCommandMessage[] = new CStoreRequestCommandMessage(affectedSOPClass,affectedSOPInstance,moveOriginatorApplicationEntityTitle,moveOriginatorMessageID).getBytes();
+		long startOperation = System.nanoTime();
+		byte cStoreRequestCommandMessage[] = new CStoreRequestCommandMessage(affectedSOPClass,affectedSOPInstance,moveOriginatorApplicationEntityTitle,moveOriginatorMessageID,priority).getBytes();
 		CStoreResponseHandler receivedDataHandler = new CStoreResponseHandler(debugLevel);
 		association.setReceivedDataHandler(receivedDataHandler);
 		association.send(presentationContextID,cStoreRequestCommandMessage,null);
@@ -179,6 +185,7 @@ if (debugLevel > 0) System.err.println("StorageSOPClassSCU.sendOneSOPInstance():
 		list.write(out,outputTransferSyntaxUID,false/*useMeta*/,true/*useBufferedStream*/,false/*closeAfterWrite*/);
 if (debugLevel > 0) System.err.println("StorageSOPClassSCU.sendOneSOPInstance(): about to wait for PDUs");
 		association.waitForCommandPDataPDUs();
+		NetworkMetrics.getNetworkMetrics().operationCompleted(NetworkMetrics.roleSCU,MessageServiceElementCommand.C_STORE_RQ,association,System.nanoTime()-startOperation);
 		return receivedDataHandler.wasSuccessful();
 	}
 	
@@ -264,7 +271,7 @@ if (debugLevel > 0) System.err.println("Using inputTransferSyntax "+inputTransfe
 			}
 		
 			PresentationContextListFactory presentationContextListFactory = new PresentationContextListFactory();
-			LinkedList presentationContexts = presentationContextListFactory.createNewPresentationContextList(affectedSOPClass,inputTransferSyntax,compressionLevel);
+			LinkedList presentationContexts = presentationContextListFactory.createNewPresentationContextList(affectedSOPClass,inputTransferSyntax,compressionLevel,calledAETitle);
 
 			Association association = AssociationFactory.createNewAssociation(hostname,port,calledAETitle,callingAETitle,presentationContexts,null,false,debugLevel);
 if (debugLevel > 0) System.err.println(association);
@@ -317,7 +324,23 @@ if (debugLevel > 0) System.err.println("Send "+(success ? "succeeded" : "failed"
 	 */
 	public StorageSOPClassSCU(Association association,SetOfDicomFiles dicomFiles,MultipleInstanceTransferStatusHandler multipleInstanceTransferStatusHandler,
 			String moveOriginatorApplicationEntityTitle,int moveOriginatorMessageID,int debugLevel) {
+		this(association,dicomFiles,multipleInstanceTransferStatusHandler,moveOriginatorApplicationEntityTitle,moveOriginatorMessageID,CommandPriority.MEDIUM,debugLevel);
+	}
+
+	/**
+	 * <p>Send the specified instances contained in the files over an existing association.</p>
+	 *
+	 * @param	association								already existing association to SCP
+	 * @param	dicomFiles								the set of DICOM files containing names, SOP Class UIDs, SOP Instance UIDs and optionally Transfer Syntaxes
+	 * @param	moveOriginatorApplicationEntityTitle	the AET of the C-MOVE that originated this C-STORE, or null if none
+	 * @param	moveOriginatorMessageID					the MessageID of the C-MOVE that originated this C-STORE, or -1 if none
+	 * @param	priority								the {@link CommandPriority CommandPriority} to send in each C-STORE request
+	 * @param	debugLevel								zero for no debugging messages, higher values more verbose messages
+	 */
+	public StorageSOPClassSCU(Association association,SetOfDicomFiles dicomFiles,MultipleInstanceTransferStatusHandler multipleInstanceTransferStatusHandler,
+			String moveOriginatorApplicationEntityTitle,int moveOriginatorMessageID,int priority,int debugLevel) {
 		this.debugLevel=debugLevel;
+		this.priority=priority;
 		try {
 			sendMultipleSOPInstances(association,dicomFiles,multipleInstanceTransferStatusHandler,moveOriginatorApplicationEntityTitle,moveOriginatorMessageID);
 		}
@@ -370,12 +393,34 @@ if (debugLevel > 0) System.err.println("Send "+(success ? "succeeded" : "failed"
 	public StorageSOPClassSCU(String hostname,int port,String calledAETitle,String callingAETitle,
 			SetOfDicomFiles dicomFiles,int compressionLevel,MultipleInstanceTransferStatusHandler multipleInstanceTransferStatusHandler,
 			String moveOriginatorApplicationEntityTitle,int moveOriginatorMessageID,int debugLevel) {
+		this(hostname,port,calledAETitle,callingAETitle,dicomFiles,compressionLevel,multipleInstanceTransferStatusHandler,moveOriginatorApplicationEntityTitle,moveOriginatorMessageID,CommandPriority.MEDIUM,debugLevel);
+	}
+
+	/**
+	 * <p>Establish an association to the specified AE, send the instances contained in the files, and release the association.</p>
+	 *
+	 * @param	hostname								their hostname or IP address
+	 * @param	port									their port
+	 * @param	calledAETitle							their AE Title
+	 * @param	callingAETitle							our AE Title
+	 * @param	dicomFiles								the set of DICOM files containing names, SOP Class UIDs, SOP Instance UIDs and optionally Transfer Syntaxes
+	 * @param	compressionLevel						0=none,1=propose deflate,2=propose deflate and bzip2
+	 * @param	multipleInstanceTransferStatusHandler	transfer handler for reporting pending status (may be null if not required)
+	 * @param	moveOriginatorApplicationEntityTitle	the AET of the C-MOVE that originated this C-STORE, or null if none
+	 * @param	moveOriginatorMessageID					the MessageID of the C-MOVE that originated this C-STORE, or -1 if none
+	 * @param	priority								the {@link CommandPriority CommandPriority} to send in each C-STORE request
+	 * @param	debugLevel								zero for no debugging messages, higher values more verbose messages
+	 */
+	public StorageSOPClassSCU(String hostname,int port,String calledAETitle,String callingAETitle,
+			SetOfDicomFiles dicomFiles,int compressionLevel,MultipleInstanceTransferStatusHandler multipleInstanceTransferStatusHandler,
+			String moveOriginatorApplicationEntityTitle,int moveOriginatorMessageID,int priority,int debugLevel) {
 //long startTime=System.currentTimeMillis();
 		this.debugLevel=debugLevel;
+		this.priority=priority;
 		if (!dicomFiles.isEmpty()) {
 			try {
 				PresentationContextListFactory presentationContextListFactory = new PresentationContextListFactory();
-				LinkedList presentationContexts = presentationContextListFactory.createNewPresentationContextList(dicomFiles,compressionLevel);
+				LinkedList presentationContexts = presentationContextListFactory.createNewPresentationContextList(dicomFiles,compressionLevel,calledAETitle);
 				Association association = AssociationFactory.createNewAssociation(hostname,port,calledAETitle,callingAETitle,presentationContexts,null,false,debugLevel);
 //System.err.println("StorageSOPClassSCU.StorageSOPClassSCU() established association in "+(System.currentTimeMillis()-startTime)+" ms");
 			
@@ -425,7 +470,7 @@ if (debugLevel > 0) System.err.println("Not opening an association since no inst
 		if (lists.length > 0) {
 			try {
 				PresentationContextListFactory presentationContextListFactory = new PresentationContextListFactory();
-				LinkedList presentationContexts = presentationContextListFactory.createNewPresentationContextList(setOfSOPClassUIDs,compressionLevel);
+				LinkedList presentationContexts = presentationContextListFactory.createNewPresentationContextList(setOfSOPClassUIDs,compressionLevel,calledAETitle);
 				Association association = AssociationFactory.createNewAssociation(hostname,port,calledAETitle,callingAETitle,presentationContexts,null,false,debugLevel);
 //System.err.println("StorageSOPClassSCU.StorageSOPClassSCU() established association in "+(System.currentTimeMillis()-startTime)+" ms");
 			
@@ -475,6 +520,10 @@ if (debugLevel > 0) System.err.println("Not opening an association since no inst
 if (debugLevel > 0) System.err.println(association);
 			Iterator fi = dicomFiles.iterator();
 			while (fi.hasNext()) {
+				if (multipleInstanceTransferStatusHandler != null && multipleInstanceTransferStatusHandler.isCancelled()) {
+if (debugLevel > 0) System.err.println("StorageSOPClassSCU(): Stopping early since cancelled with nRemaining="+nRemaining);
+					break;
+				}
 				--nRemaining;
 				++nCompleted;
 				SetOfDicomFiles.DicomFile dicomFile = (SetOfDicomFiles.DicomFile)(fi.next());
@@ -584,6 +633,10 @@ if (debugLevel > 0) System.err.println("StorageSOPClassSCU(): Finished sending a
 		{
 if (debugLevel > 0) System.err.println(association);
 			for (int i=0; i<lists.length; ++i) {
+				if (multipleInstanceTransferStatusHandler != null && multipleInstanceTransferStatusHandler.isCancelled()) {
+if (debugLevel > 0) System.err.println("StorageSOPClassSCU(): Stopping early since cancelled with nRemaining="+nRemaining);
+					break;
+				}
 				--nRemaining;
 				++nCompleted;
 				AttributeList list = lists[i];
@@ -0,0 +1,558 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import com.pixelmed.dicom.SetOfDicomFiles;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * <p>A class to schedule outbound C-STORE transfers to one or more remote Storage SCPs according to their
+ * {@link CommandPriority CommandPriority}, rather than in the order in which they were requested.</p>
+ *
+ * <p>Each submitted transfer is placed in a HIGH, MEDIUM or LOW queue. A fixed pool of worker threads takes
+ * transfers from these queues using weighted fair sharing between the queues (so that a steady stream of HIGH
+ * priority transfers does not completely starve LOW priority ones), and round-robin sharing between destinations
+ * within each queue (so that one busy destination does not delay transfers to another).</p>
+ *
+ * <p>A transfer that is in progress will be preempted at the next instance boundary if a transfer of higher priority
+ * is waiting and cannot otherwise be started, in which case the association is released and the instances not yet sent are
+ * returned to the head of their queue to be resumed later. A transfer is never preempted before it has sent at least one
+ * instance each time it is started, so that it is always charged for the time it was given and cannot be selected and
+ * preempted over and over again without making progress.</p>
+ *
+ * <p>The priority of each transfer is sent in the Priority element of each C-STORE request.</p>
+ *
+ * <p>For example:</p>
+ * <pre>
+StorageTransferScheduler scheduler = new StorageTransferScheduler(4,1,0);
+StorageTransferScheduler.Transfer transfer = scheduler.submit("theirhost",11112,"STORESCP","STORESCU",setOfDicomFiles,0,CommandPriority.HIGH,null);
+transfer.waitForCompletion();
+scheduler.shutdown();
+ * </pre>
+ *
+ * @author	agent
+ */
+public class StorageTransferScheduler {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	private static final int numberOfRanks = 3;
+
+	/***/
+	protected int debugLevel;
+	/***/
+	protected int maximumConcurrentTransfersPerDestination;
+
+	/***/
+	private double[] weightForRank = { 1, 4, 16 };		// LOW, MEDIUM, HIGH
+	/***/
+	private double[] virtualTimeForRank = new double[numberOfRanks];
+	/***/
+	private double systemVirtualTime;
+	/***/
+	private ArrayList<LinkedHashMap<String,LinkedList<Transfer>>> queuesForRank;
+	/***/
+	private Map<String,Integer> activeCountForDestination = new LinkedHashMap<String,Integer>();
+	/***/
+	private int idleWorkers;
+	/***/
+	private boolean shutdown;
+	/***/
+	private Thread[] workers;
+
+	/**
+	 * <p>A request to send a set of instances to a destination.</p>
+	 */
+	public class Transfer {
+		private String hostname;
+		private int port;
+		private String calledAETitle;
+		private String callingAETitle;
+		private int compressionLevel;
+		private int priority;
+		private String moveOriginatorApplicationEntityTitle;
+		private int moveOriginatorMessageID;
+		private MultipleInstanceTransferStatusHandler multipleInstanceTransferStatusHandler;
+		private LinkedHashMap<String,SetOfDicomFiles.DicomFile> remaining;
+		private int nCompleted;
+		private int nFailed;
+		private int nWarning;
+		private int nPreemptions;
+		private long submittedTime;
+		private boolean done;
+
+		Transfer(String hostname,int port,String calledAETitle,String callingAETitle,
+				SetOfDicomFiles dicomFiles,int compressionLevel,int priority,
+				String moveOriginatorApplicationEntityTitle,int moveOriginatorMessageID,
+				MultipleInstanceTransferStatusHandler multipleInstanceTransferStatusHandler) {
+			this.hostname=hostname;
+			this.port=port;
+			this.calledAETitle=calledAETitle;
+			this.callingAETitle=callingAETitle;
+			this.compressionLevel=compressionLevel;
+			this.priority=CommandPriority.isValid(priority) ? priority : CommandPriority.MEDIUM;
+			this.moveOriginatorApplicationEntityTitle=moveOriginatorApplicationEntityTitle;
+			this.moveOriginatorMessageID=moveOriginatorMessageID;
+			this.multipleInstanceTransferStatusHandler=multipleInstanceTransferStatusHandler;
+			remaining = new LinkedHashMap<String,SetOfDicomFiles.DicomFile>();
+			Iterator i = dicomFiles.iterator();
+			while (i.hasNext()) {
+				SetOfDicomFiles.DicomFile dicomFile = (SetOfDicomFiles.DicomFile)(i.next());
+				remaining.put(dicomFile.getFileName(),dicomFile);
+			}
+			submittedTime=System.currentTimeMillis();
+		}
+
+		/***/
+		public String getDestination() { return calledAETitle+"@"+hostname+":"+port; }
+		/***/
+		public int getPriority() { return priority; }
+		/***/
+		public long getSubmittedTime() { return submittedTime; }
+		/***/
+		public synchronized int getNumberRemaining() { return remaining.size(); }
+		/***/
+		public synchronized int getNumberCompleted() { return nCompleted; }
+		/***/
+		public synchronized int getNumberFailed() { return nFailed; }
+		/***/
+		public synchronized int getNumberWarning() { return nWarning; }
+		/***/
+		public synchronized int getNumberOfPreemptions() { return nPreemptions; }
+		/***/
+		public synchronized boolean isDone() { return done; }
+
+		/**
+		 * <p>Block until all the instances in the transfer have been sent or have failed.</p>
+		 *
+		 * @exception	InterruptedException
+		 */
+		public synchronized void waitForCompletion() throws InterruptedException {
+			while (!done) {
+				wait();
+			}
+		}
+
+		synchronized SetOfDicomFiles getRemainingAsSetOfDicomFiles() {
+			SetOfDicomFiles dicomFiles = new SetOfDicomFiles();
+			Iterator i = remaining.values().iterator();
+			while (i.hasNext()) {
+				SetOfDicomFiles.DicomFile dicomFile = (SetOfDicomFiles.DicomFile)(i.next());
+				dicomFiles.add(dicomFile.getFileName(),dicomFile.getSOPClassUID(),dicomFile.getSOPInstanceUID(),dicomFile.getTransferSyntaxUID());
+			}
+			return dicomFiles;
+		}
+
+		void updateStatus(String sopInstanceUID,String fileName,boolean success) {
+			int nRemaining;
+			int nCompletedNow;
+			int nFailedNow;
+			int nWarningNow;
+			synchronized (this) {
+				remaining.remove(fileName);
+				++nCompleted;
+				if (!success) {
+					++nFailed;
+				}
+				nRemaining = remaining.size();
+				nCompletedNow = nCompleted;
+				nFailedNow = nFailed;
+				nWarningNow = nWarning;
+			}
+			sendStatusToHandler(nRemaining,nCompletedNow,nFailedNow,nWarningNow,sopInstanceUID,fileName,success);
+		}
+
+		void failRemaining() {
+			LinkedList<SetOfDicomFiles.DicomFile> failed;
+			synchronized (this) {
+				failed = new LinkedList<SetOfDicomFiles.DicomFile>(remaining.values());
+				remaining.clear();
+			}
+			int nRemaining = failed.size();
+			Iterator<SetOfDicomFiles.DicomFile> i = failed.iterator();
+			while (i.hasNext()) {
+				SetOfDicomFiles.DicomFile dicomFile = i.next();
+				int nCompletedNow;
+				int nFailedNow;
+				int nWarningNow;
+				synchronized (this) {
+					++nCompleted;
+					++nFailed;
+					nCompletedNow = nCompleted;
+					nFailedNow = nFailed;
+					nWarningNow = nWarning;
+				}
+				sendStatusToHandler(--nRemaining,nCompletedNow,nFailedNow,nWarningNow,dicomFile.getSOPInstanceUID(),dicomFile.getFileName(),false);
+			}
+		}
+
+		// called without holding the lock, so that the handler cannot block the scheduler, hence the counts are those read whilst updating them
+		private void sendStatusToHandler(int nRemaining,int nCompleted,int nFailed,int nWarning,String sopInstanceUID,String fileName,boolean success) {
+			if (multipleInstanceTransferStatusHandler != null) {
+				if (multipleInstanceTransferStatusHandler instanceof MultipleInstanceTransferStatusHandlerWithFileName) {
+					((MultipleInstanceTransferStatusHandlerWithFileName)multipleInstanceTransferStatusHandler).updateStatus(nRemaining,nCompleted,nFailed,nWarning,sopInstanceUID,fileName,success);
+				}
+				else {
+					multipleInstanceTransferStatusHandler.updateStatus(nRemaining,nCompleted,nFailed,nWarning,sopInstanceUID);
+				}
+			}
+		}
+
+		synchronized void setDone() {
+			done=true;
+			notifyAll();
+		}
+
+		public String toString() {
+			return "Transfer to "+getDestination()+" priority "+CommandPriority.toString(priority)+" remaining "+getNumberRemaining();
+		}
+	}
+
+	/***/
+	private class OurMultipleInstanceTransferStatusHandler extends MultipleInstanceTransferStatusHandlerWithFileName {
+		private Transfer transfer;
+		private boolean preempted;
+		private boolean sentAtLeastOne;
+
+		OurMultipleInstanceTransferStatusHandler(Transfer transfer) {
+			this.transfer=transfer;
+		}
+
+		public void updateStatus(int nRemaining,int nCompleted,int nFailed,int nWarning,String sopInstanceUID,String fileName,boolean success) {
+			chargeForOneInstance(transfer);
+			sentAtLeastOne=true;
+			transfer.updateStatus(sopInstanceUID,fileName,success);
+		}
+
+		public boolean isCancelled() {
+			if (!preempted && sentAtLeastOne) {		// always make progress before considering preemption, else may be selected and preempted forever without being charged
+
+				preempted = shouldPreempt(transfer);
+			}
+			return preempted;
+		}
+
+		boolean wasPreempted() { return preempted; }
+	}
+
+	/***/
+	private class Worker implements Runnable {
+		public void run() {
+			try {
+				Transfer transfer;
+				while ((transfer = take()) != null) {
+					perform(transfer);
+				}
+			}
+			catch (InterruptedException e) {
+				// fall through to exit thread
+			}
+if (debugLevel > 0) System.err.println("StorageTransferScheduler.Worker.run(): exiting");
+		}
+	}
+
+	/**
+	 * <p>Create a scheduler and start its worker threads.</p>
+	 *
+	 * @param	maximumConcurrentTransfers					the number of worker threads, hence the maximum number of simultaneous associations
+	 * @param	maximumConcurrentTransfersPerDestination	the maximum number of simultaneous associations to any one destination
+	 * @param	debugLevel									zero for no debugging messages, higher values more verbose messages
+	 */
+	public StorageTransferScheduler(int maximumConcurrentTransfers,int maximumConcurrentTransfersPerDestination,int debugLevel) {
+		this.maximumConcurrentTransfersPerDestination=maximumConcurrentTransfersPerDestination < 1 ? 1 : maximumConcurrentTransfersPerDestination;
+		this.debugLevel=debugLevel;
+		queuesForRank = new ArrayList<LinkedHashMap<String,LinkedList<Transfer>>>(numberOfRanks);
+		for (int rank=0; rank<numberOfRanks; ++rank) {
+			queuesForRank.add(new LinkedHashMap<String,LinkedList<Transfer>>());
+		}
+		if (maximumConcurrentTransfers < 1) {
+			maximumConcurrentTransfers = 1;
+		}
+		workers = new Thread[maximumConcurrentTransfers];
+		for (int i=0; i<maximumConcurrentTransfers; ++i) {
+			workers[i] = new Thread(new Worker(),"StorageTransferScheduler-"+i);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * <p>Change the relative share of instances sent for each priority when transfers of more than one priority are waiting.</p>
+	 *
+	 * <p>The default weights are 16:4:1 for HIGH:MEDIUM:LOW.</p>
+	 *
+	 * @param	high	the weight for HIGH priority transfers
+	 * @param	medium	the weight for MEDIUM priority transfers
+	 * @param	low		the weight for LOW priority transfers
+	 */
+	public synchronized void setWeights(double high,double medium,double low) {
+		if (high <= 0 || medium <= 0 || low <= 0) {
+			throw new IllegalArgumentException("Weights must be positive");
+		}
+		weightForRank[CommandPriority.getRank(CommandPriority.HIGH)] = high;
+		weightForRank[CommandPriority.getRank(CommandPriority.MEDIUM)] = medium;
+		weightForRank[CommandPriority.getRank(CommandPriority.LOW)] = low;
+	}
+
+	/**
+	 * <p>Queue a set of instances to be sent.</p>
+	 *
+	 * @param	hostname								their hostname or IP address
+	 * @param	port									their port
+	 * @param	calledAETitle							their AE Title
+	 * @param	callingAETitle							our AE Title
+	 * @param	dicomFiles								the set of DICOM files containing names, SOP Class UIDs, SOP Instance UIDs and optionally Transfer Syntaxes
+	 * @param	compressionLevel						0=none,1=propose deflate,2=propose deflate and bzip2
+	 * @param	priority								the {@link CommandPriority CommandPriority} with which to schedule and send the instances
+	 * @param	multipleInstanceTransferStatusHandler	handler called after each instance is sent (may be null if not required), from a worker thread
+	 * @return											the queued transfer, which may be used to monitor progress
+	 */
+	public Transfer submit(String hostname,int port,String calledAETitle,String callingAETitle,
+			SetOfDicomFiles dicomFiles,int compressionLevel,int priority,
+			MultipleInstanceTransferStatusHandler multipleInstanceTransferStatusHandler) {
+		return submit(hostname,port,calledAETitle,callingAETitle,dicomFiles,compressionLevel,priority,null,-1,multipleInstanceTransferStatusHandler);
+	}
+
+	/**
+	 * <p>Queue a set of instances to be sent as the sub-operations of a C-MOVE.</p>
+	 *
+	 * @param	hostname								their hostname or IP address
+	 * @param	port									their port
+	 * @param	calledAETitle							their AE Title
+	 * @param	callingAETitle							our AE Title
+	 * @param	dicomFiles								the set of DICOM files containing names, SOP Class UIDs, SOP Instance UIDs and optionally Transfer Syntaxes
+	 * @param	compressionLevel						0=none,1=propose deflate,2=propose deflate and bzip2
+	 * @param	priority								the {@link CommandPriority CommandPriority} with which to schedule and send the instances
+	 * @param	moveOriginatorApplicationEntityTitle	the AET of the C-MOVE that originated this C-STORE, or null if none
+	 * @param	moveOriginatorMessageID					the MessageID of the C-MOVE that originated this C-STORE, or -1 if none
+	 * @param	multipleInstanceTransferStatusHandler	handler called after each instance is sent (may be null if not required), from a worker thread
+	 * @return											the queued transfer, which may be used to monitor progress
+	 */
+	public Transfer submit(String hostname,int port,String calledAETitle,String callingAETitle,
+			SetOfDicomFiles dicomFiles,int compressionLevel,int priority,
+			String moveOriginatorApplicationEntityTitle,int moveOriginatorMessageID,
+			MultipleInstanceTransferStatusHandler multipleInstanceTransferStatusHandler) {
+		Transfer transfer = new Transfer(hostname,port,calledAETitle,callingAETitle,dicomFiles,compressionLevel,priority,
+			moveOriginatorApplicationEntityTitle,moveOriginatorMessageID,multipleInstanceTransferStatusHandler);
+		if (transfer.getNumberRemaining() == 0) {
+			transfer.setDone();
+		}
+		else {
+			synchronized (this) {
+				if (shutdown) {
+					throw new IllegalStateException("Scheduler has been shut down");
+				}
+				enqueue(transfer,false);
+				notifyAll();
+			}
+		}
+if (debugLevel > 0) System.err.println("StorageTransferScheduler.submit(): "+transfer);
+		return transfer;
+	}
+
+	/**
+	 * <p>Get the number of instances waiting to be sent with the specified priority, excluding those in transfers currently in progress.</p>
+	 *
+	 * @param	priority	the {@link CommandPriority CommandPriority}
+	 * @return				the number of instances queued
+	 */
+	public synchronized int getNumberOfQueuedInstances(int priority) {
+		int count = 0;
+		Iterator<LinkedList<Transfer>> qi = queuesForRank.get(CommandPriority.getRank(priority)).values().iterator();
+		while (qi.hasNext()) {
+			Iterator<Transfer> ti = qi.next().iterator();
+			while (ti.hasNext()) {
+				count+=ti.next().getNumberRemaining();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * <p>Stop accepting new transfers, and stop the worker threads once any transfers in progress have been completed.</p>
+	 *
+	 * <p>Transfers that are still queued are not sent; their instances are reported to their handlers as failed
+	 * and they are marked as done, so that anyone waiting for their completion is released.</p>
+	 */
+	public void shutdown() {
+		LinkedList<Transfer> abandoned = new LinkedList<Transfer>();
+		synchronized (this) {
+			shutdown=true;
+			for (int rank=0; rank<numberOfRanks; ++rank) {
+				LinkedHashMap<String,LinkedList<Transfer>> queues = queuesForRank.get(rank);
+				Iterator<LinkedList<Transfer>> qi = queues.values().iterator();
+				while (qi.hasNext()) {
+					abandoned.addAll(qi.next());
+				}
+				queues.clear();
+			}
+			notifyAll();
+		}
+		Iterator<Transfer> i = abandoned.iterator();
+		while (i.hasNext()) {
+			Transfer transfer = i.next();
+if (debugLevel > 0) System.err.println("StorageTransferScheduler.shutdown(): abandoning "+transfer);
+			transfer.failRemaining();
+			transfer.setDone();
+		}
+	}
+
+	/***/
+	public synchronized boolean isShutdown() { return shutdown; }
+
+	// the following must all be called while synchronized on this scheduler ...
+
+	private void enqueue(Transfer transfer,boolean atHead) {
+		int rank = CommandPriority.getRank(transfer.getPriority());
+		LinkedHashMap<String,LinkedList<Transfer>> queues = queuesForRank.get(rank);
+		if (queues.isEmpty()) {
+			// was idle, so do not let it claim credit for the time it was not competing
+			virtualTimeForRank[rank] = Math.max(virtualTimeForRank[rank],systemVirtualTime);
+		}
+		String destination = transfer.getDestination();
+		LinkedList<Transfer> queue = queues.get(destination);
+		if (queue == null) {
+			queue = new LinkedList<Transfer>();
+			queues.put(destination,queue);
+		}
+		if (atHead) {
+			queue.addFirst(transfer);
+		}
+		else {
+			queue.addLast(transfer);
+		}
+	}
+
+	private int getActiveCountForDestination(String destination) {
+		Integer count = activeCountForDestination.get(destination);
+		return count == null ? 0 : count.intValue();
+	}
+
+	private void changeActiveCountForDestination(String destination,int delta) {
+		int count = getActiveCountForDestination(destination) + delta;
+		if (count > 0) {
+			activeCountForDestination.put(destination,new Integer(count));
+		}
+		else {
+			activeCountForDestination.remove(destination);
+		}
+	}
+
+	private String getFirstEligibleDestination(LinkedHashMap<String,LinkedList<Transfer>> queues) {
+		Iterator<String> i = queues.keySet().iterator();
+		while (i.hasNext()) {
+			String destination = i.next();
+			if (getActiveCountForDestination(destination) < maximumConcurrentTransfersPerDestination) {
+				return destination;
+			}
+		}
+		return null;
+	}
+
+	private Transfer selectNext() {
+		int bestRank = -1;
+		String bestDestination = null;
+		for (int rank=numberOfRanks-1; rank>=0; --rank) {		// ties go to the more urgent
+			String destination = getFirstEligibleDestination(queuesForRank.get(rank));
+			if (destination != null && (bestRank == -1 || virtualTimeForRank[rank] < virtualTimeForRank[bestRank])) {
+				bestRank = rank;
+				bestDestination = destination;
+			}
+		}
+		Transfer transfer = null;
+		if (bestRank != -1) {
+			systemVirtualTime = virtualTimeForRank[bestRank];
+			LinkedHashMap<String,LinkedList<Transfer>> queues = queuesForRank.get(bestRank);
+			LinkedList<Transfer> queue = queues.remove(bestDestination);	// removing and re-adding rotates the destination to the back, for round-robin
+			transfer = queue.removeFirst();
+			if (!queue.isEmpty()) {
+				queues.put(bestDestination,queue);
+			}
+			changeActiveCountForDestination(bestDestination,1);
+		}
+		return transfer;
+	}
+
+	private synchronized Transfer take() throws InterruptedException {
+		while (!shutdown) {
+			Transfer transfer = selectNext();
+			if (transfer != null) {
+				return transfer;
+			}
+			++idleWorkers;
+			try {
+				wait();
+			}
+			finally {
+				--idleWorkers;
+			}
+		}
+		return null;
+	}
+
+	private synchronized void chargeForOneInstance(Transfer transfer) {
+		int rank = CommandPriority.getRank(transfer.getPriority());
+		virtualTimeForRank[rank] += 1.0/weightForRank[rank];
+	}
+
+	private synchronized boolean shouldPreempt(Transfer transfer) {
+		if (shutdown) {
+			return false;		// transfers in progress are completed rather than abandoned when shut down
+		}
+		String destination = transfer.getDestination();
+		for (int rank=numberOfRanks-1; rank>CommandPriority.getRank(transfer.getPriority()); --rank) {
+			Iterator<String> i = queuesForRank.get(rank).keySet().iterator();
+			while (i.hasNext()) {
+				String waitingDestination = i.next();
+				boolean blockedByDestination = getActiveCountForDestination(waitingDestination) >= maximumConcurrentTransfersPerDestination;
+				if (blockedByDestination ? waitingDestination.equals(destination) : idleWorkers == 0) {
+if (debugLevel > 0) System.err.println("StorageTransferScheduler.shouldPreempt(): preempting "+transfer+" for waiting transfer to "+waitingDestination);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private synchronized boolean finished(Transfer transfer,boolean requeue) {
+		changeActiveCountForDestination(transfer.getDestination(),-1);
+		requeue = requeue && !shutdown;		// may have been shut down since the transfer was preempted, in which case the queues have already been abandoned
+		if (requeue) {
+			enqueue(transfer,true/*atHead*/);
+		}
+		notifyAll();
+		return requeue;
+	}
+
+	private void perform(Transfer transfer) {
+if (debugLevel > 0) System.err.println("StorageTransferScheduler.perform(): starting "+transfer);
+		boolean requeue = false;
+		try {
+			OurMultipleInstanceTransferStatusHandler handler = new OurMultipleInstanceTransferStatusHandler(transfer);
+			StorageSOPClassSCU scu = new StorageSOPClassSCU(transfer.hostname,transfer.port,transfer.calledAETitle,transfer.callingAETitle,
+				transfer.getRemainingAsSetOfDicomFiles(),transfer.compressionLevel,handler,
+				transfer.moveOriginatorApplicationEntityTitle,transfer.moveOriginatorMessageID,transfer.priority,debugLevel);
+			if (handler.wasPreempted() && transfer.getNumberRemaining() > 0) {
+				synchronized (transfer) {
+					++transfer.nPreemptions;
+				}
+				requeue = !scu.encounteredTrappedExceptions() && !isShutdown();
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace(System.err);
+		}
+		requeue = finished(transfer,requeue);
+		if (!requeue) {
+			transfer.failRemaining();		// anything not sent by now is a failure, e.g., connection or association failure
+			transfer.setDone();
+		}
+if (debugLevel > 0) System.err.println("StorageTransferScheduler.perform(): "+(requeue ? "preempted " : "finished ")+transfer);
+	}
+}
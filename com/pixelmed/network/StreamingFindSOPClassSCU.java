@@ -0,0 +1,317 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.network;
+
+import com.pixelmed.dicom.*;
+
+import java.util.LinkedList;
+
+/**
+ * <p>This class implements the SCU role of C-FIND SOP Classes, delivering the responses as a stream
+ * to an {@link com.pixelmed.network.IdentifierSubscriber IdentifierSubscriber} that controls how fast they arrive.</p>
+ *
+ * <p>Unlike {@link com.pixelmed.network.FindSOPClassSCU FindSOPClassSCU}, the query is performed in a separate thread
+ * once subscribed to, and each identifier is delivered as soon as it has been received, but no faster than the subscriber
+ * has requested. While the subscriber has not requested more, no more responses are read from the association, so the
+ * peer is held back by the transport connection rather than the responses being accumulated in memory.</p>
+ *
+ * <p>If the subscriber cancels, the specified maximum number of results has been delivered, or the thread performing the query
+ * is interrupted while waiting for the subscriber to request more, a C-CANCEL-RQ is sent
+ * to ask the peer to stop, any further responses are discarded, and the association is released once the final response
+ * has been received.</p>
+ *
+ * <p>For example, to fetch the first 25 matches:</p>
+ * <pre>
+new StreamingFindSOPClassSCU("theirhost",104,"FINDSCP","FINDSCU",SOPClass.StudyRootQueryRetrieveInformationModelFind,identifier,25,0).subscribe(
+	new IdentifierSubscriber() {
+		public void onSubscribe(IdentifierSubscription subscription) { subscription.request(25); }
+		public void onNext(AttributeList identifier) { System.err.print(identifier); }
+		public void onComplete(int status) { System.err.println("Done"); }
+		public void onError(Exception e) { e.printStackTrace(System.err); }
+	});
+ * </pre>
+ *
+ * @see com.pixelmed.network.IdentifierSubscriber
+ *
+ * @author	agent
+ */
+public class StreamingFindSOPClassSCU implements IdentifierPublisher {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	private int debugLevel;
+
+	private String hostname;
+	private int port;
+	private String calledAETitle;
+	private String callingAETitle;
+	private String affectedSOPClass;
+	private AttributeList identifier;
+	private int maximumNumberOfResults;
+
+	/***/
+	private class QuerySubscription implements IdentifierSubscription, Runnable {
+		private IdentifierSubscriber subscriber;
+		private Association association;
+		private byte usePresentationContextID;
+		private int messageID;
+		private long demand;
+		private int numberDelivered;
+		private boolean stopDelivering;				// because cancelled or limit reached
+		private boolean cancelledBySubscriber;		// subscriber is not to be called again
+		private boolean illegalRequest;
+		private boolean cancelSent;
+		private boolean finalResponseReceived;
+		private int finalStatus = 0xffff;
+
+		QuerySubscription(IdentifierSubscriber subscriber) {
+			this.subscriber=subscriber;
+		}
+
+		public synchronized void request(long n) {
+			if (n <= 0) {
+				illegalRequest = true;
+				stop();
+			}
+			else {
+				demand = (Long.MAX_VALUE - demand < n) ? Long.MAX_VALUE : demand + n;
+			}
+			notifyAll();
+		}
+
+		public void cancel() {
+			synchronized (this) {
+				cancelledBySubscriber = true;
+				notifyAll();
+			}
+			stop();
+		}
+
+		private void stop() {
+			synchronized (this) {
+				stopDelivering = true;
+				notifyAll();
+			}
+			sendCancel();
+		}
+
+		private synchronized void sendCancel() {
+			if (association != null && !cancelSent && !finalResponseReceived) {
+				cancelSent = true;
+				try {
+if (debugLevel > 0) System.err.println("StreamingFindSOPClassSCU.QuerySubscription.sendCancel(): sending C-CANCEL-RQ for message ID "+messageID);
+					association.send(usePresentationContextID,new CCancelRequestCommandMessage(messageID).getBytes(),null);
+				}
+				catch (Exception e) {
+					e.printStackTrace(System.err);
+				}
+			}
+		}
+
+		/**
+		 * <p>Wait until the subscriber wants another identifier, then deliver it, unless stopped.</p>
+		 */
+		void deliver(AttributeList list) {
+			boolean interrupted = false;
+			synchronized (this) {
+				while (demand == 0 && !stopDelivering) {
+					try {
+						wait();
+					}
+					catch (InterruptedException e) {
+						interrupted = true;
+						break;
+					}
+				}
+			}
+			if (interrupted) {
+if (debugLevel > 0) System.err.println("StreamingFindSOPClassSCU.QuerySubscription.deliver(): interrupted while waiting for demand");
+				stop();		// ask the peer to stop too, rather than discarding all the remaining responses
+			}
+			synchronized (this) {
+				if (stopDelivering) {
+if (debugLevel > 0) System.err.println("StreamingFindSOPClassSCU.QuerySubscription.deliver(): discarding identifier received after stopping");
+					return;
+				}
+				if (demand != Long.MAX_VALUE) {
+					--demand;
+				}
+			}
+			subscriber.onNext(list);
+			++numberDelivered;
+			if (maximumNumberOfResults > 0 && numberDelivered >= maximumNumberOfResults) {
+if (debugLevel > 0) System.err.println("StreamingFindSOPClassSCU.QuerySubscription.deliver(): reached maximum number of results "+maximumNumberOfResults);
+				stop();
+			}
+		}
+
+		synchronized void setFinalStatus(int status) {
+			finalResponseReceived = true;
+			finalStatus = status;
+		}
+
+		public void run() {
+			subscriber.onSubscribe(this);
+			synchronized (this) {
+				if (stopDelivering) {
+					if (illegalRequest && !cancelledBySubscriber) {
+						subscriber.onError(new IllegalArgumentException("Number of identifiers requested must be positive"));
+					}
+					return;
+				}
+			}
+			Association openAssociation = null;
+			try {
+				LinkedList presentationContexts = new LinkedList();
+				{
+					LinkedList tslist = new LinkedList();
+					tslist.add(TransferSyntax.Default);
+					tslist.add(TransferSyntax.ExplicitVRLittleEndian);
+					presentationContexts.add(new PresentationContext((byte)0x01,affectedSOPClass,tslist));
+				}
+				presentationContexts.add(new PresentationContext((byte)0x03,affectedSOPClass,TransferSyntax.ImplicitVRLittleEndian));
+				presentationContexts.add(new PresentationContext((byte)0x05,affectedSOPClass,TransferSyntax.ExplicitVRLittleEndian));
+
+				openAssociation = AssociationFactory.createNewAssociation(hostname,port,calledAETitle,callingAETitle,presentationContexts,null,false,debugLevel);
+				byte pcid = openAssociation.getSuitablePresentationContextID(affectedSOPClass);
+				CFindRequestCommandMessage cFindRequestCommandMessage = new CFindRequestCommandMessage(affectedSOPClass);
+				byte cFindIdentifier[] = new IdentifierMessage(identifier,openAssociation.getTransferSyntaxForPresentationContextID(pcid)).getBytes();
+				openAssociation.setReceivedDataHandler(new CFindResponseHandler(this,debugLevel));
+				long startOperation = System.nanoTime();
+				openAssociation.send(pcid,cFindRequestCommandMessage.getBytes(),null);
+				openAssociation.send(pcid,null,cFindIdentifier);
+				synchronized (this) {
+					usePresentationContextID = pcid;
+					messageID = cFindRequestCommandMessage.getMessageID();
+					association = openAssociation;
+				}
+				synchronized (this) {
+					if (stopDelivering) {		// i.e., cancelled while the association was being established
+						sendCancel();
+					}
+				}
+				try {
+					openAssociation.waitForPDataPDUsUntilHandlerReportsDone();
+					NetworkMetrics.getNetworkMetrics().operationCompleted(NetworkMetrics.roleSCU,MessageServiceElementCommand.C_FIND_RQ,openAssociation,System.nanoTime()-startOperation);
+					// State 6
+					try {
+						openAssociation.release();
+					}
+					catch (DicomNetworkException e) {
+						// the final response has already been received, so the outcome is unaffected, e.g., if the peer aborted on receiving a late C-CANCEL-RQ
+if (debugLevel > 0) e.printStackTrace(System.err);
+					}
+				}
+				catch (AReleaseException e) {
+					// State 1
+					// the other end released and didn't wait for us to do it
+				}
+				boolean callSubscriber;
+				synchronized (this) {
+					callSubscriber = !cancelledBySubscriber;
+				}
+				if (callSubscriber) {
+					if (illegalRequest) {
+						subscriber.onError(new IllegalArgumentException("Number of identifiers requested must be positive"));
+					}
+					else if (finalStatus == ResponseStatus.Success || (cancelSent && finalStatus == ResponseStatus.MatchingTerminatedDueToCancelIndication)) {
+						subscriber.onComplete(finalStatus);
+					}
+					else {
+						subscriber.onError(new DicomNetworkException("C-FIND failed with status 0x"+Integer.toHexString(finalStatus)));
+					}
+				}
+			}
+			catch (Exception e) {
+				boolean callSubscriber;
+				synchronized (this) {
+					callSubscriber = !cancelledBySubscriber;
+					finalResponseReceived = true;		// prevent any further attempt to send C-CANCEL-RQ
+				}
+				if (openAssociation != null) {
+					try {
+						openAssociation.abort();
+					}
+					catch (DicomNetworkException ae) {
+if (debugLevel > 0) ae.printStackTrace(System.err);
+					}
+				}
+				if (callSubscriber) {
+					subscriber.onError(e);
+				}
+			}
+		}
+	}
+
+	/***/
+	private class CFindResponseHandler extends CompositeResponseHandler {
+		/***/
+		private QuerySubscription subscription;
+
+		/**
+		 * @param	subscription
+		 * @param	debugLevel
+		 */
+		CFindResponseHandler(QuerySubscription subscription,int debugLevel) {
+			super(debugLevel);
+			this.subscription=subscription;
+			allowData=true;
+		}
+
+		/**
+		 * @param	list
+		 */
+		protected void evaluateStatusAndSetSuccess(AttributeList list) {
+			int status = Attribute.getSingleIntegerValueOrDefault(list,TagFromName.Status,0xffff);
+			success = status == 0x0000;	// success
+			if (status != 0xFF00 && status != 0xFF01) {
+				subscription.setFinalStatus(status);
+				setDone(true);
+			}
+		}
+
+		/**
+		 * @param	list
+		 */
+		protected void makeUseOfDataSet(AttributeList list) {
+			subscription.deliver(list);
+		}
+	}
+
+	/**
+	 * <p>Prepare a query, which is not performed until subscribed to.</p>
+	 *
+	 * @param	hostname				their hostname or IP address
+	 * @param	port					their port
+	 * @param	calledAETitle			their AE Title
+	 * @param	callingAETitle			our AE Title
+	 * @param	affectedSOPClass		the SOP Class defining which query model, e.g. {@link com.pixelmed.dicom.SOPClass#StudyRootQueryRetrieveInformationModelFind SOPClass.StudyRootQueryRetrieveInformationModelFind}
+	 * @param	identifier				the list of matching and return keys
+	 * @param	maximumNumberOfResults	the number of identifiers after which to cancel the query, or 0 if no limit
+	 * @param	debugLevel				zero for no debugging messages, higher values more verbose messages
+	 */
+	public StreamingFindSOPClassSCU(String hostname,int port,String calledAETitle,String callingAETitle,
+			String affectedSOPClass,AttributeList identifier,int maximumNumberOfResults,int debugLevel) {
+		this.hostname=hostname;
+		this.port=port;
+		this.calledAETitle=calledAETitle;
+		this.callingAETitle=callingAETitle;
+		this.affectedSOPClass=affectedSOPClass;
+		this.identifier=identifier;
+		this.maximumNumberOfResults=maximumNumberOfResults;
+		this.debugLevel=debugLevel;
+	}
+
+	/**
+	 * <p>Perform the query in a new thread, delivering identifiers to the subscriber as it requests them.</p>
+	 *
+	 * <p>Each subscription performs a separate query on a separate association.</p>
+	 *
+	 * @param	subscriber	the subscriber
+	 */
+	public void subscribe(IdentifierSubscriber subscriber) {
+		new Thread(new QuerySubscription(subscriber),"StreamingFindSOPClassSCU-"+calledAETitle).start();
+	}
+}
@@ -0,0 +1,530 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.query;
+
+import com.pixelmed.dicom.*;
+import com.pixelmed.network.*;
+
+import java.io.FileInputStream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * <p>This class performs the same C-FIND against several remote AEs at once, and merges the responses.</p>
+ *
+ * <p>The remote AEs are those known to a {@link com.pixelmed.network.NetworkApplicationInformation NetworkApplicationInformation},
+ * such as a {@link com.pixelmed.network.NetworkApplicationInformationFederated NetworkApplicationInformationFederated},
+ * that have a query model, or a specified subset of them. The Patient Root model is used for those that only support it,
+ * otherwise the Study Root model.</p>
+ *
+ * <p>Responses with the same unique key for the Query/Retrieve Level of the request (the Study Instance UID for STUDY,
+ * the Series Instance UID for SERIES and the SOP Instance UID for IMAGE) from different AEs are merged into one,
+ * with values from the first response taking precedence, and the AE Titles of all the AEs that returned the entity
+ * in Retrieve AE Title. Responses without the unique key, and responses at the PATIENT level (since a Patient ID
+ * is not necessarily unique across AEs), are not merged.</p>
+ *
+ * <p>Each AE has a timeout, after which the query to it is cancelled and the responses already received are used,
+ * so a slow or unavailable AE delays the result by no more than its timeout. How long each AE took, and whether it
+ * completed, are reported with the result.</p>
+ *
+ * <p>For example:</p>
+ * <pre>
+FederatedQuery query = new FederatedQuery(networkApplicationInformation,"OURAET",5000,0);
+FederatedQuery.Result result = query.performQuery(identifier);
+Iterator i = result.getIdentifiers().iterator();
+...
+ * </pre>
+ *
+ * @see com.pixelmed.network.StreamingFindSOPClassSCU
+ *
+ * @author	agent
+ */
+public class FederatedQuery {
+
+	/***/
+	private static final String identString = "@(#) $Header$";
+
+	/***/
+	private NetworkApplicationInformation networkApplicationInformation;
+	/***/
+	private String callingAETitle;
+	/***/
+	private long defaultTimeout;
+	/***/
+	private Map<String,Long> timeoutByCalledAETitle = new HashMap<String,Long>();
+	/***/
+	private int debugLevel;
+
+	/**
+	 * <p>The outcome of the query to one remote AE.</p>
+	 */
+	public class ApplicationEntityOutcome {
+		private String calledAETitle;
+		private long startTime;
+		private long timeout;
+		private long firstResponseTime;
+		private long latency = -1;
+		private int numberOfResponses;
+		private boolean finished;
+		private boolean completed;
+		private boolean timedOut;
+		private int status = -1;
+		private Exception exception;
+		private IdentifierSubscription subscription;
+
+		ApplicationEntityOutcome(String calledAETitle,long startTime,long timeout) {
+			this.calledAETitle=calledAETitle;
+			this.startTime=startTime;
+			this.timeout=timeout;
+		}
+
+		/***/
+		public String getCalledAETitle() { return calledAETitle; }
+		/**
+		 * @return	in ms, how long until the AE completed, failed or timed out
+		 */
+		public long getLatency() { return latency; }
+		/**
+		 * @return	in ms, how long until the first response from the AE, or -1 if none
+		 */
+		public long getTimeToFirstResponse() { return firstResponseTime == 0 ? -1 : firstResponseTime - startTime; }
+		/***/
+		public int getNumberOfResponses() { return numberOfResponses; }
+		/**
+		 * @return	true if the AE returned all its matches
+		 */
+		public boolean isCompleted() { return completed; }
+		/**
+		 * @return	true if the query to the AE was cancelled because it took too long, in which case any responses received were used
+		 */
+		public boolean isTimedOut() { return timedOut; }
+		/**
+		 * @return	the final status returned by the AE, or -1 if none
+		 */
+		public int getStatus() { return status; }
+		/**
+		 * @return	why the query to the AE failed, or null if it did not
+		 */
+		public Exception getException() { return exception; }
+
+		public String toString() {
+			return calledAETitle
+				+": "+(completed ? "completed" : (timedOut ? "timed out" : "failed"+(exception == null ? "" : " ("+exception.getMessage()+")")))
+				+" responses="+numberOfResponses
+				+" latency="+latency+" ms"
+				+" firstResponse="+getTimeToFirstResponse()+" ms";
+		}
+	}
+
+	/**
+	 * <p>The merged responses from all the remote AEs, and the outcome for each.</p>
+	 */
+	public class Result {
+		private AttributeTag uniqueKey;
+		private Map<String,AttributeList> identifiersByUniqueKey = new LinkedHashMap<String,AttributeList>();
+		private List<AttributeList> identifiersWithoutUniqueKey = new ArrayList<AttributeList>();
+		private List<ApplicationEntityOutcome> outcomes = new ArrayList<ApplicationEntityOutcome>();
+
+		/**
+		 * @param	uniqueKey	the key on which to merge responses, or null if they are not to be merged
+		 */
+		Result(AttributeTag uniqueKey) {
+			this.uniqueKey=uniqueKey;
+		}
+
+		/**
+		 * @return	the merged response identifiers, in the order first received
+		 */
+		public synchronized List<AttributeList> getIdentifiers() {
+			List<AttributeList> identifiers = new ArrayList<AttributeList>(identifiersByUniqueKey.values());
+			identifiers.addAll(identifiersWithoutUniqueKey);
+			return identifiers;
+		}
+
+		/**
+		 * @return	the outcome of the query to each remote AE
+		 */
+		public synchronized List<ApplicationEntityOutcome> getOutcomes() {
+			return Collections.unmodifiableList(outcomes);
+		}
+
+		/**
+		 * @return	true if every remote AE returned all its matches, i.e., the result is not partial
+		 */
+		public synchronized boolean isComplete() {
+			Iterator<ApplicationEntityOutcome> i = outcomes.iterator();
+			while (i.hasNext()) {
+				if (!i.next().completed) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// call only when synchronized on this
+		private void merge(AttributeList identifier,String calledAETitle) {
+			addRetrieveAETitle(identifier,calledAETitle);
+			String uniqueKeyValue = uniqueKey == null ? "" : Attribute.getSingleStringValueOrEmptyString(identifier,uniqueKey);
+			if (uniqueKeyValue.length() == 0) {
+				identifiersWithoutUniqueKey.add(identifier);
+			}
+			else {
+				AttributeList existing = identifiersByUniqueKey.get(uniqueKeyValue);
+				if (existing == null) {
+					identifiersByUniqueKey.put(uniqueKeyValue,identifier);
+				}
+				else {
+					Iterator i = identifier.values().iterator();
+					while (i.hasNext()) {
+						Attribute a = (Attribute)(i.next());
+						AttributeTag tag = a.getTag();
+						if (tag.equals(TagFromName.RetrieveAETitle)) {
+							addRetrieveAETitles(existing,a);
+						}
+						else if (Attribute.getSingleStringValueOrEmptyString(existing,tag).length() == 0 && a.getVM() > 0) {
+							existing.put(a);		// fill in what the first response lacked
+						}
+					}
+				}
+			}
+		}
+
+		public synchronized String toString() {
+			StringBuffer buf = new StringBuffer();
+			Iterator<ApplicationEntityOutcome> i = outcomes.iterator();
+			while (i.hasNext()) {
+				buf.append(i.next());
+				buf.append("\n");
+			}
+			buf.append(identifiersByUniqueKey.size()+identifiersWithoutUniqueKey.size());
+			buf.append(" merged responses");
+			buf.append(isComplete() ? "" : " (partial)");
+			buf.append("\n");
+			return buf.toString();
+		}
+	}
+
+	private static void addRetrieveAETitle(AttributeList list,String calledAETitle) {
+		try {
+			Attribute a = list.get(TagFromName.RetrieveAETitle);
+			if (a == null) {
+				a = new ApplicationEntityAttribute(TagFromName.RetrieveAETitle);
+				list.put(a);
+			}
+			if (!contains(a,calledAETitle)) {
+				a.addValue(calledAETitle);
+			}
+		}
+		catch (DicomException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	private static void addRetrieveAETitles(AttributeList list,Attribute aeTitles) {
+		try {
+			String[] values = aeTitles.getStringValues();
+			if (values != null) {
+				for (int i=0; i<values.length; ++i) {
+					addRetrieveAETitle(list,values[i]);
+				}
+			}
+		}
+		catch (DicomException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	private static boolean contains(Attribute a,String value) throws DicomException {
+		String[] values = a.getStringValues();
+		if (values != null) {
+			for (int i=0; i<values.length; ++i) {
+				if (values[i] != null && values[i].trim().equals(value.trim())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * <p>Receives the responses from one remote AE.</p>
+	 */
+	private class OutcomeSubscriber implements IdentifierSubscriber {
+		private Result result;
+		private ApplicationEntityOutcome outcome;
+
+		OutcomeSubscriber(Result result,ApplicationEntityOutcome outcome) {
+			this.result=result;
+			this.outcome=outcome;
+		}
+
+		public void onSubscribe(IdentifierSubscription subscription) {
+			boolean cancel;
+			synchronized (result) {
+				outcome.subscription = subscription;
+				cancel = outcome.finished;		// timed out before even started
+			}
+			if (cancel) {
+				subscription.cancel();
+			}
+			else {
+				subscription.request(Long.MAX_VALUE);
+			}
+		}
+
+		public void onNext(AttributeList identifier) {
+			synchronized (result) {
+				if (!outcome.finished) {
+					if (outcome.firstResponseTime == 0) {
+						outcome.firstResponseTime = System.currentTimeMillis();
+					}
+					++outcome.numberOfResponses;
+					result.merge(identifier,outcome.calledAETitle);
+				}
+			}
+		}
+
+		public void onComplete(int status) {
+			finish(status,true,null);
+		}
+
+		public void onError(Exception e) {
+			finish(-1,false,e);
+		}
+
+		private void finish(int status,boolean completed,Exception exception) {
+			synchronized (result) {
+				if (!outcome.finished) {
+					outcome.finished = true;
+					outcome.completed = completed;
+					outcome.status = status;
+					outcome.exception = exception;
+					outcome.latency = System.currentTimeMillis() - outcome.startTime;
+if (debugLevel > 0) System.err.println("FederatedQuery.OutcomeSubscriber.finish(): "+outcome);
+					result.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Prepare to query the remote AEs known to the supplied network application information.</p>
+	 *
+	 * @param	networkApplicationInformation	the remote AEs, which is consulted again for each query, so may be updated dynamically
+	 * @param	callingAETitle					our AE Title
+	 * @param	defaultTimeout					in ms, how long to wait for AEs for which no specific timeout has been set
+	 * @param	debugLevel						zero for no debugging messages, higher values more verbose messages
+	 */
+	public FederatedQuery(NetworkApplicationInformation networkApplicationInformation,String callingAETitle,long defaultTimeout,int debugLevel) {
+		this.networkApplicationInformation=networkApplicationInformation;
+		this.callingAETitle=callingAETitle;
+		this.defaultTimeout=defaultTimeout;
+		this.debugLevel=debugLevel;
+	}
+
+	/**
+	 * <p>Set how long to wait for a particular remote AE.</p>
+	 *
+	 * @param	calledAETitle	the remote AE
+	 * @param	timeout			in ms
+	 */
+	public synchronized void setTimeout(String calledAETitle,long timeout) {
+		timeoutByCalledAETitle.put(calledAETitle,new Long(timeout));
+	}
+
+	/**
+	 * @param	calledAETitle	the remote AE
+	 * @return					in ms, how long to wait for the remote AE
+	 */
+	public synchronized long getTimeout(String calledAETitle) {
+		Long timeout = timeoutByCalledAETitle.get(calledAETitle);
+		return timeout == null ? defaultTimeout : timeout.longValue();
+	}
+
+	/**
+	 * <p>Get the key on which responses at a Query/Retrieve Level are merged.</p>
+	 *
+	 * @param	queryRetrieveLevel	the Query/Retrieve Level of the request
+	 * @return						the unique key of the level, or null if responses at that level are not merged
+	 */
+	public static AttributeTag getUniqueKeyForMerging(String queryRetrieveLevel) {
+		AttributeTag uniqueKey = null;
+		queryRetrieveLevel = queryRetrieveLevel == null ? "" : queryRetrieveLevel.trim();
+		if (queryRetrieveLevel.equals("STUDY")) {
+			uniqueKey = TagFromName.StudyInstanceUID;
+		}
+		else if (queryRetrieveLevel.equals("SERIES")) {
+			uniqueKey = TagFromName.SeriesInstanceUID;
+		}
+		else if (queryRetrieveLevel.equals("IMAGE")) {
+			uniqueKey = TagFromName.SOPInstanceUID;
+		}
+		return uniqueKey;
+	}
+
+	/**
+	 * <p>Query all the remote AEs that support query.</p>
+	 *
+	 * @param	identifier	the list of matching and return keys, which should include the unique key of the Query/Retrieve Level to allow responses to be merged
+	 * @return				the merged responses
+	 * @exception	InterruptedException	if interrupted while waiting, in which case the outstanding queries are cancelled
+	 */
+	public Result performQuery(AttributeList identifier) throws InterruptedException {
+		return performQuery(identifier,null);
+	}
+
+	/**
+	 * <p>Query the specified remote AEs.</p>
+	 *
+	 * @param	identifier		the list of matching and return keys, which should include the unique key of the Query/Retrieve Level to allow responses to be merged
+	 * @param	calledAETitles	the remote AEs to query, or null for all that support query
+	 * @return					the merged responses
+	 * @exception	InterruptedException	if interrupted while waiting, in which case the outstanding queries are cancelled
+	 */
+	public Result performQuery(AttributeList identifier,Set<String> calledAETitles) throws InterruptedException {
+		Result result = new Result(getUniqueKeyForMerging(Attribute.getSingleStringValueOrEmptyString(identifier,TagFromName.QueryRetrieveLevel)));
+		ApplicationEntityMap applicationEntityMap = networkApplicationInformation.getApplicationEntityMap();
+		if (calledAETitles == null) {
+			calledAETitles = new TreeSet<String>();
+			Iterator i = applicationEntityMap.keySet().iterator();
+			while (i.hasNext()) {
+				String calledAETitle = (String)(i.next());
+				if (applicationEntityMap.getQueryModel(calledAETitle) != null) {
+					calledAETitles.add(calledAETitle);
+				}
+			}
+		}
+		long startTime = System.currentTimeMillis();
+		Iterator<String> i = calledAETitles.iterator();
+		while (i.hasNext()) {
+			String calledAETitle = i.next();
+			ApplicationEntityOutcome outcome = new ApplicationEntityOutcome(calledAETitle,startTime,getTimeout(calledAETitle));
+			synchronized (result) {
+				result.outcomes.add(outcome);
+			}
+			PresentationAddress presentationAddress = applicationEntityMap.getPresentationAddress(calledAETitle);
+			if (presentationAddress == null) {
+				new OutcomeSubscriber(result,outcome).onError(new DicomNetworkException("No presentation address for "+calledAETitle));
+			}
+			else {
+				String affectedSOPClass = NetworkApplicationProperties.isPatientRootQueryModel(applicationEntityMap.getQueryModel(calledAETitle))
+					? SOPClass.PatientRootQueryRetrieveInformationModelFind
+					: SOPClass.StudyRootQueryRetrieveInformationModelFind;
+if (debugLevel > 0) System.err.println("FederatedQuery.performQuery(): querying "+calledAETitle+" at "+presentationAddress.getHostname()+":"+presentationAddress.getPort());
+				new StreamingFindSOPClassSCU(presentationAddress.getHostname(),presentationAddress.getPort(),calledAETitle,callingAETitle,
+					affectedSOPClass,(AttributeList)(identifier.clone()),0/*no limit*/,debugLevel).subscribe(new OutcomeSubscriber(result,outcome));
+			}
+		}
+		waitForOutcomes(result);
+		return result;
+	}
+
+	/**
+	 * <p>Wait until every AE has finished, cancelling any that time out.</p>
+	 *
+	 * @param	result
+	 * @exception	InterruptedException
+	 */
+	private void waitForOutcomes(Result result) throws InterruptedException {
+		List<IdentifierSubscription> subscriptionsToCancel = new ArrayList<IdentifierSubscription>();
+		try {
+			synchronized (result) {
+				while (true) {
+					long now = System.currentTimeMillis();
+					long nextTimeoutTime = Long.MAX_VALUE;
+					boolean allFinished = true;
+					Iterator<ApplicationEntityOutcome> i = result.outcomes.iterator();
+					while (i.hasNext()) {
+						ApplicationEntityOutcome outcome = i.next();
+						if (!outcome.finished) {
+							long timeoutTime = outcome.timeout > 0 ? outcome.startTime + outcome.timeout : Long.MAX_VALUE;
+							if (now >= timeoutTime) {
+if (debugLevel > 0) System.err.println("FederatedQuery.waitForOutcomes(): timed out waiting for "+outcome.calledAETitle);
+								outcome.finished = true;
+								outcome.timedOut = true;
+								outcome.latency = now - outcome.startTime;
+								if (outcome.subscription != null) {
+									subscriptionsToCancel.add(outcome.subscription);
+								}
+								// else will be cancelled when subscribed
+							}
+							else {
+								allFinished = false;
+								nextTimeoutTime = Math.min(nextTimeoutTime,timeoutTime);
+							}
+						}
+					}
+					if (allFinished) {
+						break;
+					}
+					result.wait(nextTimeoutTime == Long.MAX_VALUE ? 0 : nextTimeoutTime - now);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			synchronized (result) {
+				Iterator<ApplicationEntityOutcome> i = result.outcomes.iterator();
+				while (i.hasNext()) {
+					ApplicationEntityOutcome outcome = i.next();
+					if (!outcome.finished) {
+						outcome.finished = true;
+						if (outcome.subscription != null) {
+							subscriptionsToCancel.add(outcome.subscription);
+						}
+					}
+				}
+			}
+			throw e;
+		}
+		finally {
+			Iterator<IdentifierSubscription> i = subscriptionsToCancel.iterator();		// not while synchronized on result, since may block sending C-CANCEL-RQ
+			while (i.hasNext()) {
+				i.next().cancel();
+			}
+		}
+	}
+
+	/**
+	 * <p>For testing, query all the remote AEs listed in a properties file for the studies of a patient.</p>
+	 *
+	 * @param	arg	the properties file name, our AE Title, the timeout in ms, and the Patient ID
+	 */
+	public static void main(String arg[]) {
+		try {
+			Properties properties = new Properties();
+			FileInputStream in = new FileInputStream(arg[0]);
+			properties.load(in);
+			in.close();
+			NetworkApplicationInformation networkApplicationInformation = new NetworkApplicationInformation(properties);
+			AttributeList identifier = new AttributeList();
+			{ AttributeTag t = TagFromName.QueryRetrieveLevel; Attribute a = new CodeStringAttribute(t); a.addValue("STUDY"); identifier.put(t,a); }
+			{ AttributeTag t = TagFromName.PatientID; Attribute a = new LongStringAttribute(t); a.addValue(arg[3]); identifier.put(t,a); }
+			{ AttributeTag t = TagFromName.PatientName; Attribute a = new PersonNameAttribute(t); identifier.put(t,a); }
+			{ AttributeTag t = TagFromName.StudyDate; Attribute a = new DateAttribute(t); identifier.put(t,a); }
+			{ AttributeTag t = TagFromName.StudyDescription; Attribute a = new LongStringAttribute(t); identifier.put(t,a); }
+			{ AttributeTag t = TagFromName.ModalitiesInStudy; Attribute a = new CodeStringAttribute(t); identifier.put(t,a); }
+			{ AttributeTag t = TagFromName.StudyInstanceUID; Attribute a = new UniqueIdentifierAttribute(t); identifier.put(t,a); }
+			Result result = new FederatedQuery(networkApplicationInformation,arg[1],Long.parseLong(arg[2]),0).performQuery(identifier);
+			Iterator<AttributeList> i = result.getIdentifiers().iterator();
+			while (i.hasNext()) {
+				System.err.print(i.next());
+				System.err.println();
+			}
+			System.err.print(result);
+			System.exit(0);
+		}
+		catch (Exception e) {
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,26 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.query;
+
+/**
+ * <p>A {@link com.pixelmed.query.QueryResponseGenerator QueryResponseGenerator} that can stop early once a
+ * maximum number of matches has been found, or a query has taken too long, rather than leaving it to the caller to
+ * stop calling {@link com.pixelmed.query.QueryResponseGenerator#next() next()}.</p>
+ *
+ * <p>When a limit is exceeded, <code>next()</code> returns null, and <code>getStatus()</code> and <code>getErrorComment()</code>
+ * describe why.</p>
+ *
+ * @author	agent
+ */
+public interface LimitedQueryResponseGenerator extends QueryResponseGenerator {
+
+	/**
+	 * <p>Specify the limits to apply to the next query.</p>
+	 *
+	 * <p>Must be called before {@link com.pixelmed.query.QueryResponseGenerator#performQuery(String,com.pixelmed.dicom.AttributeList,boolean) performQuery()}.</p>
+	 *
+	 * @param	maximumNumberOfMatches	the maximum number of matches to return, 0 if no limit
+	 * @param	timeout					in ms, the longest to spend on the query, 0 if no limit
+	 */
+	public void setLimits(int maximumNumberOfMatches,long timeout);
+}
@@ -19,6 +19,7 @@ import com.pixelmed.network.NetworkApplicationProperties;
 import com.pixelmed.network.NetworkConfigurationFromMulticastDNS;
 import com.pixelmed.network.NetworkConfigurationFromLDAP;
 import com.pixelmed.network.NetworkConfigurationSource;
+import com.pixelmed.network.QueryResponseLimits;
 import com.pixelmed.network.ReceivedObjectHandler;
 import com.pixelmed.network.StorageSOPClassSCPDispatcher;
 
@@ -156,12 +157,14 @@ public class DicomAndWebStorageServer {
 			String calledAETitle = networkApplicationProperties.getCalledAETitle();
 			int storageSCPDebugLevel = networkApplicationProperties.getStorageSCPDebugLevel();
 			int queryDebugLevel = networkApplicationProperties.getQueryDebugLevel();
-			new Thread(new StorageSOPClassSCPDispatcher(port,calledAETitle,savedImagesFolder,StoredFilePathStrategy.BYSOPINSTANCEUIDHASHSUBFOLDERS,new OurReceivedObjectHandler(),
+			StorageSOPClassSCPDispatcher dispatcher = new StorageSOPClassSCPDispatcher(port,calledAETitle,savedImagesFolder,StoredFilePathStrategy.BYSOPINSTANCEUIDHASHSUBFOLDERS,new OurReceivedObjectHandler(),
 					this.databaseInformationModel.getQueryResponseGeneratorFactory(queryDebugLevel),
 					this.databaseInformationModel.getRetrieveResponseGeneratorFactory(queryDebugLevel),
 					federatedNetworkApplicationInformation,
 					false/*secureTransport*/,
-					storageSCPDebugLevel)).start();
+					storageSCPDebugLevel);
+			dispatcher.setQueryResponseLimits(new QueryResponseLimits(properties));
+			new Thread(dispatcher).start();
 		}
 		// Start up web server ...
 		{
@@ -0,0 +1,325 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.database.DatabaseInformationModel;
+import com.pixelmed.database.DicomDatabaseInformationModel;
+import com.pixelmed.database.MinimalPatientStudySeriesInstanceModel;
+import com.pixelmed.database.PatientStudySeriesConcatenationInstanceModel;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.CodeStringAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.InformationEntity;
+import com.pixelmed.dicom.IntegerStringAttribute;
+import com.pixelmed.dicom.LongStringAttribute;
+import com.pixelmed.dicom.PersonNameAttribute;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+import com.pixelmed.dicom.UnsignedShortAttribute;
+
+import com.pixelmed.network.ResponseStatus;
+
+import com.pixelmed.query.QueryResponseGenerator;
+
+import java.io.File;
+
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.*;
+
+public class TestAggregateAttributes extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestAggregateAttributes(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestAggregateAttributes.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestAggregateAttributes");
+
+		suite.addTest(new TestAggregateAttributes("TestAggregateAttributes_MaintainedMinimal"));
+		suite.addTest(new TestAggregateAttributes("TestAggregateAttributes_MaintainedConcatenation"));
+		suite.addTest(new TestAggregateAttributes("TestAggregateAttributes_RebuildExistingMinimal"));
+		suite.addTest(new TestAggregateAttributes("TestAggregateAttributes_RebuildExistingConcatenation"));
+		suite.addTest(new TestAggregateAttributes("TestAggregateAttributes_ModalitiesInStudyMatchedInQueryMinimal"));
+		suite.addTest(new TestAggregateAttributes("TestAggregateAttributes_ModalitiesInStudyMatchedInQueryConcatenation"));
+
+		return suite;
+	}
+
+	// the tables are normally only modified through the model, so allow the test to modify them directly
+
+	private interface ModifiableModel {
+		void execute(String sql) throws SQLException;
+	}
+
+	private static class ModifiableMinimalModel extends MinimalPatientStudySeriesInstanceModel implements ModifiableModel {
+		ModifiableMinimalModel(String databaseFileName) throws DicomException {
+			super(databaseFileName);
+		}
+
+		public void execute(String sql) throws SQLException {
+			executeOnConnectionForWriting(sql);
+		}
+	}
+
+	private static class ModifiableConcatenationModel extends PatientStudySeriesConcatenationInstanceModel implements ModifiableModel {
+		ModifiableConcatenationModel(String databaseFileName) throws DicomException {
+			super(databaseFileName);
+		}
+
+		public void execute(String sql) throws SQLException {
+			executeOnConnectionForWriting(sql);
+		}
+	}
+
+	private File directory;
+	private DatabaseInformationModel databaseInformationModel;
+
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("TestAggregateAttributes",null);
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	protected void tearDown() throws Exception {
+		if (databaseInformationModel != null) {
+			databaseInformationModel.close();
+			databaseInformationModel = null;
+		}
+		File[] files = directory.listFiles();
+		for (int i=0; i<files.length; ++i) {
+			files[i].delete();
+		}
+		directory.delete();
+	}
+
+	private DatabaseInformationModel openModel(boolean concatenation) throws DicomException {
+		String databaseFileName = new File(directory,"testaggregatedb").getPath();
+		databaseInformationModel = concatenation ? new ModifiableConcatenationModel(databaseFileName) : new ModifiableMinimalModel(databaseFileName);
+		return databaseInformationModel;
+	}
+
+	private void closeModel() {
+		databaseInformationModel.close();
+		databaseInformationModel = null;
+	}
+
+	private static String getStudyInstanceUID(int study) { return "1.2.3.41."+study; }
+
+	private static String getSeriesInstanceUID(int study,int series) { return getStudyInstanceUID(study)+"."+series; }
+
+	private static String getSOPInstanceUID(int study,int series,int instance) { return getSeriesInstanceUID(study,series)+"."+instance; }
+
+	/**
+	 * <p>Make an instance, which is part of a concatenation if there is more than one instance in the series and concatenations are used.</p>
+	 */
+	private static AttributeList makeInstance(int study,int series,int instance,String modality,String sopClassUID,boolean concatenation) throws DicomException {
+		AttributeList list = new AttributeList();
+		{ Attribute a = new LongStringAttribute(TagFromName.PatientID); a.addValue("TESTAGGREGATE"); list.put(a); }
+		{ Attribute a = new PersonNameAttribute(TagFromName.PatientName); a.addValue("Aggregate^Test"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue(getStudyInstanceUID(study)); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SeriesInstanceUID); a.addValue(getSeriesInstanceUID(study,series)); list.put(a); }
+		{ Attribute a = new IntegerStringAttribute(TagFromName.SeriesNumber); a.addValue(series); list.put(a); }
+		{ Attribute a = new CodeStringAttribute(TagFromName.Modality); a.addValue(modality); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID); a.addValue(getSOPInstanceUID(study,series,instance)); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPClassUID); a.addValue(sopClassUID); list.put(a); }
+		if (concatenation) {
+			{ Attribute a = new UniqueIdentifierAttribute(TagFromName.ConcatenationUID); a.addValue(getSeriesInstanceUID(study,series)+".99"); list.put(a); }
+			{ Attribute a = new IntegerStringAttribute(TagFromName.InstanceNumber); a.addValue(1); list.put(a); }
+			{ Attribute a = new UnsignedShortAttribute(TagFromName.InConcatenationNumber); a.addValue(instance); list.put(a); }
+		}
+		else {
+			{ Attribute a = new IntegerStringAttribute(TagFromName.InstanceNumber); a.addValue(instance); list.put(a); }
+		}
+		return list;
+	}
+
+	// study 1 has a CT series of two instances (a concatenation, if used) and an MR series of one instance; study 2 has a CT series of one instance
+
+	private static void insertInstances(DatabaseInformationModel model,boolean concatenation) throws DicomException {
+		model.insertObject(makeInstance(1,1,1,"CT",SOPClass.CTImageStorage,concatenation),"/nonexistent/1.1.1.dcm",DatabaseInformationModel.FILE_REFERENCED);
+		model.insertObject(makeInstance(1,1,2,"CT",SOPClass.CTImageStorage,concatenation),"/nonexistent/1.1.2.dcm",DatabaseInformationModel.FILE_REFERENCED);
+		model.insertObject(makeInstance(1,2,1,"MR",SOPClass.MRImageStorage,false),"/nonexistent/1.2.1.dcm",DatabaseInformationModel.FILE_REFERENCED);
+		model.insertObject(makeInstance(2,1,1,"CT",SOPClass.CTImageStorage,false),"/nonexistent/2.1.1.dcm",DatabaseInformationModel.FILE_REFERENCED);
+	}
+
+	private static List<AttributeList> query(DatabaseInformationModel model,AttributeList identifier) {
+		List<AttributeList> responses = new ArrayList<AttributeList>();
+		QueryResponseGenerator generator = model.getQueryResponseGeneratorFactory(0).newInstance();
+		generator.performQuery(SOPClass.StudyRootQueryRetrieveInformationModelFind,identifier,false/*relational*/);
+		AttributeList response;
+		while ((response = generator.next()) != null) {
+			responses.add(response);
+		}
+		assertEquals("Checking query succeeded",ResponseStatus.Success,generator.getStatus());
+		generator.close();
+		return responses;
+	}
+
+	/**
+	 * @return	the study level responses indexed by StudyInstanceUID
+	 */
+	private static Map<String,AttributeList> queryStudies(DatabaseInformationModel model,String modalitiesInStudy) throws DicomException {
+		AttributeList identifier = new AttributeList();
+		{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue("STUDY"); identifier.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); identifier.put(a); }
+		{
+			Attribute a = new CodeStringAttribute(TagFromName.ModalitiesInStudy);
+			if (modalitiesInStudy != null) {
+				String[] values = modalitiesInStudy.split("\\\\");
+				for (int i=0; i<values.length; ++i) {
+					a.addValue(values[i]);
+				}
+			}
+			identifier.put(a);
+		}
+		{ Attribute a = new IntegerStringAttribute(TagFromName.NumberOfStudyRelatedSeries); identifier.put(a); }
+		{ Attribute a = new IntegerStringAttribute(TagFromName.NumberOfStudyRelatedInstances); identifier.put(a); }
+		Map<String,AttributeList> responsesByStudyInstanceUID = new HashMap<String,AttributeList>();
+		List<AttributeList> responses = query(model,identifier);
+		for (int i=0; i<responses.size(); ++i) {
+			AttributeList response = responses.get(i);
+			responsesByStudyInstanceUID.put(Attribute.getSingleStringValueOrEmptyString(response,TagFromName.StudyInstanceUID),response);
+		}
+		return responsesByStudyInstanceUID;
+	}
+
+	private static int getNumberOfSeriesRelatedInstances(DatabaseInformationModel model,int study,int series) throws DicomException {
+		AttributeList identifier = new AttributeList();
+		{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue("SERIES"); identifier.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue(getStudyInstanceUID(study)); identifier.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SeriesInstanceUID); a.addValue(getSeriesInstanceUID(study,series)); identifier.put(a); }
+		{ Attribute a = new IntegerStringAttribute(TagFromName.NumberOfSeriesRelatedInstances); identifier.put(a); }
+		List<AttributeList> responses = query(model,identifier);
+		assertEquals("Checking one series "+study+"."+series,1,responses.size());
+		return Attribute.getSingleIntegerValueOrDefault(responses.get(0),TagFromName.NumberOfSeriesRelatedInstances,-1);
+	}
+
+	private static Set<String> makeSet(String[] values) {
+		Set<String> set = new TreeSet<String>();
+		if (values != null) {
+			for (int i=0; i<values.length; ++i) {
+				set.add(values[i]);
+			}
+		}
+		return set;
+	}
+
+	private static void checkStudy(String message,DatabaseInformationModel model,int study,int numberOfSeries,int numberOfInstances,String[] modalities) throws DicomException {
+		AttributeList response = queryStudies(model,null).get(getStudyInstanceUID(study));
+		assertNotNull(message+": checking study "+study+" returned",response);
+		assertEquals(message+": checking NumberOfStudyRelatedSeries of study "+study,numberOfSeries,Attribute.getSingleIntegerValueOrDefault(response,TagFromName.NumberOfStudyRelatedSeries,-1));
+		assertEquals(message+": checking NumberOfStudyRelatedInstances of study "+study,numberOfInstances,Attribute.getSingleIntegerValueOrDefault(response,TagFromName.NumberOfStudyRelatedInstances,-1));
+		assertEquals(message+": checking ModalitiesInStudy of study "+study,makeSet(modalities),makeSet(Attribute.getStringValues(response,TagFromName.ModalitiesInStudy)));
+	}
+
+	private static String getLocalPrimaryKey(DatabaseInformationModel model,InformationEntity ie,String uid) throws DicomException {
+		ArrayList records = model.findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedUID(ie,uid);
+		assertEquals("Checking one record for "+uid,1,records.size());
+		return (String)(((Map)(records.get(0))).get(model.getLocalPrimaryKeyColumnName(ie)));
+	}
+
+	private void checkMaintained(boolean concatenation) throws Exception {
+		DatabaseInformationModel model = openModel(concatenation);
+		insertInstances(model,concatenation);
+		checkStudy("After insert",model,1,2,3,new String[] { "CT", "MR" });
+		checkStudy("After insert",model,2,1,1,new String[] { "CT" });
+		assertEquals("Checking NumberOfSeriesRelatedInstances after insert",2,getNumberOfSeriesRelatedInstances(model,1,1));
+
+		// inserting the same instances again does not create new records, so must not be counted again
+		model.insertObject(makeInstance(1,1,1,"CT",SOPClass.CTImageStorage,concatenation),"/nonexistent/1.1.1.dcm",DatabaseInformationModel.FILE_REFERENCED);
+		model.insertObject(makeInstance(1,2,1,"MR",SOPClass.MRImageStorage,false),"/nonexistent/1.2.1.dcm",DatabaseInformationModel.FILE_REFERENCED);
+		checkStudy("After duplicate insert",model,1,2,3,new String[] { "CT", "MR" });
+		assertEquals("Checking NumberOfSeriesRelatedInstances after duplicate insert",2,getNumberOfSeriesRelatedInstances(model,1,1));
+
+		model.deleteRecord(InformationEntity.INSTANCE,getLocalPrimaryKey(model,InformationEntity.INSTANCE,getSOPInstanceUID(1,1,2)));
+		checkStudy("After instance delete",model,1,2,2,new String[] { "CT", "MR" });
+		assertEquals("Checking NumberOfSeriesRelatedInstances after instance delete",1,getNumberOfSeriesRelatedInstances(model,1,1));
+
+		model.deleteRecord(InformationEntity.SERIES,getLocalPrimaryKey(model,InformationEntity.SERIES,getSeriesInstanceUID(1,2)));
+		checkStudy("After series delete",model,1,1,1,new String[] { "CT" });
+		checkStudy("After series delete in other study",model,2,1,1,new String[] { "CT" });
+
+		if (concatenation) {
+			model.deleteRecord(InformationEntity.CONCATENATION,getLocalPrimaryKey(model,InformationEntity.CONCATENATION,getSeriesInstanceUID(1,1)+".99"));
+			checkStudy("After concatenation delete",model,1,1,0,new String[] { "CT" });
+			assertEquals("Checking NumberOfSeriesRelatedInstances after concatenation delete",0,getNumberOfSeriesRelatedInstances(model,1,1));
+		}
+	}
+
+	public void TestAggregateAttributes_MaintainedMinimal() throws Exception {
+		checkMaintained(false);
+	}
+
+	public void TestAggregateAttributes_MaintainedConcatenation() throws Exception {
+		checkMaintained(true);
+	}
+
+	private void checkRebuildExisting(boolean concatenation) throws Exception {
+		insertInstances(openModel(concatenation),concatenation);
+		closeModel();
+
+		DatabaseInformationModel model = openModel(concatenation);
+		((ModifiableModel)model).execute("UPDATE STUDY SET PM_NUMBEROFSTUDYRELATEDSERIES = 0, PM_NUMBEROFSTUDYRELATEDINSTANCES = 0, PM_MODALITIESINSTUDY = NULL");
+		((ModifiableModel)model).execute("UPDATE SERIES SET PM_NUMBEROFSERIESRELATEDINSTANCES = 0");
+		checkStudy("After modifying tables directly",model,1,0,0,new String[0]);
+		assertEquals("Checking NumberOfSeriesRelatedInstances after modifying tables directly",0,getNumberOfSeriesRelatedInstances(model,1,1));
+
+		((DicomDatabaseInformationModel)model).rebuildAggregateAttributes();
+		checkStudy("After rebuild",model,1,2,3,new String[] { "CT", "MR" });
+		checkStudy("After rebuild",model,2,1,1,new String[] { "CT" });
+		assertEquals("Checking NumberOfSeriesRelatedInstances after rebuild",2,getNumberOfSeriesRelatedInstances(model,1,1));
+		assertEquals("Checking NumberOfSeriesRelatedInstances after rebuild",1,getNumberOfSeriesRelatedInstances(model,1,2));
+	}
+
+	public void TestAggregateAttributes_RebuildExistingMinimal() throws Exception {
+		checkRebuildExisting(false);
+	}
+
+	public void TestAggregateAttributes_RebuildExistingConcatenation() throws Exception {
+		checkRebuildExisting(true);
+	}
+
+	private void checkModalitiesInStudyMatchedInQuery(boolean concatenation) throws Exception {
+		DatabaseInformationModel model = openModel(concatenation);
+		insertInstances(model,concatenation);
+
+		Map<String,AttributeList> responses = queryStudies(model,"MR");
+		assertEquals("Checking only study with MR matched",makeSet(new String[] { getStudyInstanceUID(1) }),new TreeSet<String>(responses.keySet()));
+		assertEquals("Checking all modalities returned for matched study",makeSet(new String[] { "CT", "MR" }),
+			makeSet(Attribute.getStringValues(responses.get(getStudyInstanceUID(1)),TagFromName.ModalitiesInStudy)));
+		assertEquals("Checking both studies with CT matched",2,queryStudies(model,"CT").size());
+		assertEquals("Checking any of multiple values matched",makeSet(new String[] { getStudyInstanceUID(1) }),new TreeSet<String>(queryStudies(model,"MR\\PT").keySet()));
+		assertTrue("Checking absent modality matches nothing",queryStudies(model,"PT").isEmpty());
+		assertTrue("Checking value that is only part of a modality matches nothing",queryStudies(model,"C").isEmpty());
+
+		// matching uses the aggregate column in the query, not the modalities of the series ...
+		((ModifiableModel)model).execute("UPDATE STUDY SET PM_MODALITIESINSTUDY = \'\\PT\\\' WHERE STUDYINSTANCEUID = \'"+getStudyInstanceUID(2)+"\'");
+		assertEquals("Checking matched on aggregate column",makeSet(new String[] { getStudyInstanceUID(2) }),new TreeSet<String>(queryStudies(model,"PT").keySet()));
+	}
+
+	public void TestAggregateAttributes_ModalitiesInStudyMatchedInQueryMinimal() throws Exception {
+		checkModalitiesInStudyMatchedInQuery(false);
+	}
+
+	public void TestAggregateAttributes_ModalitiesInStudyMatchedInQueryConcatenation() throws Exception {
+		checkModalitiesInStudyMatchedInQuery(true);
+	}
+
+}
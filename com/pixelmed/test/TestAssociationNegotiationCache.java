@@ -0,0 +1,194 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TransferSyntax;
+
+import com.pixelmed.network.Association;
+import com.pixelmed.network.AssociationFactory;
+import com.pixelmed.network.AssociationNegotiationCache;
+import com.pixelmed.network.DicomNetworkException;
+import com.pixelmed.network.PresentationContext;
+import com.pixelmed.network.StorageSOPClassSCPDispatcher;
+import com.pixelmed.network.UnencapsulatedExplicitStorePresentationContextSelectionPolicy;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.*;
+
+public class TestAssociationNegotiationCache extends TestCase {
+
+	protected static final int    waitIntervalWhenSleeping = 10;	// in ms
+	protected static final int    port = 11133;
+	protected static final String scpAET = "TESTNEGOTIATESCP";
+	protected static final String scuAET = "TESTNEGOTIATESCU";
+	protected static final String otherSCUAET = "TESTNEGOTIATEOTH";
+
+	protected static final String unsupportedSOPClass = "1.2.3.4.5.6.7.8.9.1";
+
+	// constructor to support adding tests to suite ...
+
+	public TestAssociationNegotiationCache(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestAssociationNegotiationCache.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestAssociationNegotiationCache");
+
+		suite.addTest(new TestAssociationNegotiationCache("TestAssociationNegotiationCache_SelectionRemembered"));
+		suite.addTest(new TestAssociationNegotiationCache("TestAssociationNegotiationCache_Disabled"));
+		suite.addTest(new TestAssociationNegotiationCache("TestAssociationNegotiationCache_UserIdentityNotRemembered"));
+
+		return suite;
+	}
+
+	private class CountingPresentationContextSelectionPolicy extends UnencapsulatedExplicitStorePresentationContextSelectionPolicy {
+		volatile int count;
+
+		public LinkedList applyPresentationContextSelectionPolicy(LinkedList presentationContexts,int associationNumber,int debugLevel) {
+			++count;
+			return super.applyPresentationContextSelectionPolicy(presentationContexts,associationNumber,debugLevel);
+		}
+	}
+
+	private CountingPresentationContextSelectionPolicy policy;
+	private StorageSOPClassSCPDispatcher storageSOPClassSCPDispatcher;
+	private Thread storageSOPClassSCPDispatcherThread;
+
+	protected void setUp() throws Exception {
+		AssociationNegotiationCache.setEnabled(true);
+		AssociationNegotiationCache.clear();
+		File directory = File.createTempFile("TestAssociationNegotiationCache",null);
+		directory.delete();
+		directory.mkdirs();
+		policy = new CountingPresentationContextSelectionPolicy();
+		storageSOPClassSCPDispatcher = new StorageSOPClassSCPDispatcher(port,scpAET,directory,null/*storedFilePathStrategy*/,null/*receivedObjectHandler*/,
+			null/*queryResponseGeneratorFactory*/,null/*retrieveResponseGeneratorFactory*/,null/*networkApplicationInformation*/,
+			policy,false/*secureTransport*/,0/*debugLevel*/);
+		storageSOPClassSCPDispatcherThread = new Thread(storageSOPClassSCPDispatcher);
+		storageSOPClassSCPDispatcherThread.start();
+		while (!storageSOPClassSCPDispatcher.isReady()) {
+			Thread.currentThread().sleep(waitIntervalWhenSleeping);	// wait until SCP is ready, else association may fail
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		storageSOPClassSCPDispatcher.shutdown();
+		storageSOPClassSCPDispatcherThread.join();
+		AssociationNegotiationCache.setEnabled(true);
+	}
+
+	private static long getReportCount(String name) {
+		Matcher m = Pattern.compile(name+" hits=([0-9]+) misses=([0-9]+)").matcher(AssociationNegotiationCache.getReport());
+		assertTrue("Checking "+name+" in report",m.find());
+		return Long.parseLong(m.group(1)) + Long.parseLong(m.group(2));
+	}
+
+	private static long getReportHits(String name) {
+		Matcher m = Pattern.compile(name+" hits=([0-9]+)").matcher(AssociationNegotiationCache.getReport());
+		assertTrue("Checking "+name+" in report",m.find());
+		return Long.parseLong(m.group(1));
+	}
+
+	private static final String associateRequest = "A-ASSOCIATE-RQ PDU";
+	private static final String selection = "presentation context selection";
+
+	private static LinkedList makePresentationContexts() {
+		LinkedList presentationContexts = new LinkedList();
+		presentationContexts.add(new PresentationContext((byte)1,SOPClass.SecondaryCaptureImageStorage,TransferSyntax.ImplicitVRLittleEndian));
+		presentationContexts.add(new PresentationContext((byte)3,SOPClass.SecondaryCaptureImageStorage,TransferSyntax.ExplicitVRLittleEndian));
+		presentationContexts.add(new PresentationContext((byte)5,SOPClass.SecondaryCaptureImageStorage,TransferSyntax.JPEGBaseline));
+		presentationContexts.add(new PresentationContext((byte)7,unsupportedSOPClass,TransferSyntax.ExplicitVRLittleEndian));
+		return presentationContexts;
+	}
+
+	/**
+	 * @return	for each presentation context proposed, the transfer syntax accepted, or null if rejected
+	 */
+	private static List<String> establishAndRelease(String callingAETitle,String username,String password) throws Exception {
+		LinkedList presentationContexts = makePresentationContexts();
+		Association association = AssociationFactory.createNewAssociation("localhost",port,scpAET,callingAETitle,presentationContexts,null/*scuSCPRoleSelections*/,
+			false/*secureTransport*/,username,password,0/*debugLevel*/);
+		List<String> accepted = new ArrayList<String>();
+		for (int id=1; id<=7; id+=2) {
+			String transferSyntax = null;
+			try {
+				transferSyntax = association.getTransferSyntaxForPresentationContextID((byte)id);
+			}
+			catch (DicomNetworkException e) {
+				// rejected
+			}
+			accepted.add(transferSyntax);
+		}
+		association.release();
+		return accepted;
+	}
+
+	private static void checkExpectedOutcome(String message,List<String> accepted) {
+		assertNull(message+": checking implicit VR rejected when explicit VR proposed",accepted.get(0));
+		assertEquals(message+": checking explicit VR accepted",TransferSyntax.ExplicitVRLittleEndian,accepted.get(1));
+		assertNull(message+": checking encapsulated rejected",accepted.get(2));
+		assertNull(message+": checking unsupported SOP Class rejected",accepted.get(3));
+	}
+
+	public void TestAssociationNegotiationCache_SelectionRemembered() throws Exception {
+		long associateRequestHitsBefore = getReportHits(associateRequest);
+		long associateRequestCountBefore = getReportCount(associateRequest);
+		long selectionHitsBefore = getReportHits(selection);
+
+		List<String> first = establishAndRelease(scuAET,null,null);
+		checkExpectedOutcome("First",first);
+		assertEquals("Checking policy applied for first proposal",1,policy.count);
+
+		List<String> second = establishAndRelease(scuAET,null,null);
+		assertEquals("Checking remembered decision gives same outcome",first,second);
+		assertEquals("Checking policy not applied again for same proposal",1,policy.count);
+
+		List<String> other = establishAndRelease(otherSCUAET,null,null);
+		assertEquals("Checking different calling AE gives same outcome",first,other);
+		assertEquals("Checking policy applied for different calling AE",2,policy.count);
+
+		assertEquals("Checking request PDUs encoded or remembered",3,getReportCount(associateRequest)-associateRequestCountBefore);
+		assertEquals("Checking request PDU reused for same proposal only",1,getReportHits(associateRequest)-associateRequestHitsBefore);
+		assertEquals("Checking selection reused for same proposal only",1,getReportHits(selection)-selectionHitsBefore);
+
+		AssociationNegotiationCache.clear();
+		checkExpectedOutcome("After clear",establishAndRelease(scuAET,null,null));
+		assertEquals("Checking policy applied again after clear",3,policy.count);
+	}
+
+	public void TestAssociationNegotiationCache_Disabled() throws Exception {
+		AssociationNegotiationCache.setEnabled(false);
+		assertFalse("Checking disabled",AssociationNegotiationCache.isEnabled());
+		long associateRequestCountBefore = getReportCount(associateRequest);
+		long selectionCountBefore = getReportCount(selection);
+
+		checkExpectedOutcome("First",establishAndRelease(scuAET,null,null));
+		checkExpectedOutcome("Second",establishAndRelease(scuAET,null,null));
+		assertEquals("Checking policy applied every time",2,policy.count);
+		assertEquals("Checking request PDUs not remembered",0,getReportCount(associateRequest)-associateRequestCountBefore);
+		assertEquals("Checking selections not remembered",0,getReportCount(selection)-selectionCountBefore);
+	}
+
+	public void TestAssociationNegotiationCache_UserIdentityNotRemembered() throws Exception {
+		long associateRequestCountBefore = getReportCount(associateRequest);
+
+		checkExpectedOutcome("First",establishAndRelease(scuAET,"user","secret"));
+		checkExpectedOutcome("Second",establishAndRelease(scuAET,"user","secret"));
+		assertEquals("Checking request PDUs with user identity never remembered",0,getReportCount(associateRequest)-associateRequestCountBefore);
+		assertEquals("Checking selection still remembered",1,policy.count);
+	}
+
+}
@@ -0,0 +1,210 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.dicom.AsynchronousOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Iterator;
+
+import junit.framework.*;
+
+public class TestAsynchronousOutputStream extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestAsynchronousOutputStream(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestAsynchronousOutputStream.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestAsynchronousOutputStream");
+
+		suite.addTest(new TestAsynchronousOutputStream("TestAsynchronousOutputStream_OffsetAndLengthHonoured"));
+		suite.addTest(new TestAsynchronousOutputStream("TestAsynchronousOutputStream_ManyStreamsShareWriterThreads"));
+		suite.addTest(new TestAsynchronousOutputStream("TestAsynchronousOutputStream_SlowOutputBlocksWriter"));
+		suite.addTest(new TestAsynchronousOutputStream("TestAsynchronousOutputStream_FailureReported"));
+
+		return suite;
+	}
+
+	protected void setUp() {
+		AsynchronousOutputStream.setNumberOfWriterThreads(2);		// only effective if no stream has been created yet in this JVM
+		AsynchronousOutputStream.resetStatistics();
+	}
+
+	protected void tearDown() {
+	}
+
+	private static final int chunkSize = 65536;
+
+	private static byte[] makeExpected(int seed,int length) {
+		byte[] b = new byte[length];
+		for (int i=0; i<length; ++i) {
+			b[i] = (byte)(seed*31+i*7);
+		}
+		return b;
+	}
+
+	// write from a single re-used buffer in odd sized pieces, to check that the bytes are copied rather than referenced
+	private static void writeInPieces(OutputStream out,byte[] expected,int pieceSize) throws IOException {
+		byte[] buffer = new byte[pieceSize+3];
+		int offset = 0;
+		while (offset < expected.length) {
+			int length = Math.min(pieceSize,expected.length-offset);
+			System.arraycopy(expected,offset,buffer,3,length);
+			out.write(buffer,3,length);
+			java.util.Arrays.fill(buffer,(byte)0xff);
+			offset+=length;
+		}
+	}
+
+	private static int countWriterThreads() {
+		int count = 0;
+		Iterator<Thread> i = Thread.getAllStackTraces().keySet().iterator();
+		while (i.hasNext()) {
+			if (i.next().getName().startsWith("AsynchronousOutputStream-")) {
+				++count;
+			}
+		}
+		return count;
+	}
+
+	public void TestAsynchronousOutputStream_OffsetAndLengthHonoured() throws Exception {
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		AsynchronousOutputStream out = new AsynchronousOutputStream(sink);
+		out.write(new byte[] { 1, 2, 3, 4, 5 },1,3);
+		out.write(6);
+		out.write(new byte[] { 7, 8 });
+		out.close();
+		byte[] written = sink.toByteArray();
+		assertEquals("Checking length",6,written.length);
+		byte[] expected = new byte[] { 2, 3, 4, 6, 7, 8 };
+		for (int i=0; i<expected.length; ++i) {
+			assertEquals("Checking byte "+i,expected[i],written[i]);
+		}
+	}
+
+	public void TestAsynchronousOutputStream_ManyStreamsShareWriterThreads() throws Exception {
+		final int numberOfStreams = 50;
+		ByteArrayOutputStream[] sinks = new ByteArrayOutputStream[numberOfStreams];
+		AsynchronousOutputStream[] streams = new AsynchronousOutputStream[numberOfStreams];
+		byte[][] expected = new byte[numberOfStreams][];
+		for (int s=0; s<numberOfStreams; ++s) {
+			sinks[s] = new ByteArrayOutputStream();
+			streams[s] = new AsynchronousOutputStream(sinks[s]);
+			expected[s] = makeExpected(s,chunkSize*3+s*101);		// spans several chunks and ends part way through one
+		}
+		// interleave the streams so that all are open and pending at once
+		for (int s=0; s<numberOfStreams; ++s) {
+			writeInPieces(streams[s],expected[s],1000+s);
+			streams[s].flush();
+		}
+		int writerThreads = countWriterThreads();
+		assertTrue("Checking writer threads shared rather than one per stream",writerThreads > 0 && writerThreads <= Math.max(2,Runtime.getRuntime().availableProcessors()));
+		for (int s=0; s<numberOfStreams; ++s) {
+			streams[s].close();
+		}
+		for (int s=0; s<numberOfStreams; ++s) {
+			byte[] written = sinks[s].toByteArray();
+			assertEquals("Checking length of stream "+s,expected[s].length,written.length);
+			for (int i=0; i<written.length; ++i) {
+				if (written[i] != expected[s][i]) {
+					fail("Checking content of stream "+s+" in order at offset "+i);
+				}
+			}
+		}
+		assertEquals("Checking thread count does not grow with more streams",writerThreads,countWriterThreads());
+	}
+
+	private static class GatedOutputStream extends OutputStream {
+		private boolean open;
+		private int count;
+
+		synchronized void open() {
+			open = true;
+			notifyAll();
+		}
+
+		synchronized int getCount() { return count; }
+
+		public synchronized void write(int b) throws IOException {
+			write(new byte[] { (byte)b },0,1);
+		}
+
+		public synchronized void write(byte[] b,int off,int len) throws IOException {
+			while (!open) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			count+=len;
+		}
+	}
+
+	public void TestAsynchronousOutputStream_SlowOutputBlocksWriter() throws Exception {
+		final GatedOutputStream sink = new GatedOutputStream();
+		final AsynchronousOutputStream out = new AsynchronousOutputStream(sink);
+		final int length = chunkSize*40;		// more than can be pending
+		final boolean[] finished = new boolean[1];
+		Thread caller = new Thread() {
+			public void run() {
+				try {
+					out.write(new byte[length]);
+					synchronized (finished) {
+						finished[0] = true;
+					}
+				}
+				catch (IOException e) {
+				}
+			}
+		};
+		caller.start();
+		caller.join(1000);
+		assertTrue("Checking caller blocked while output is slow",caller.isAlive());
+		synchronized (finished) {
+			assertFalse("Checking write not finished while output is slow",finished[0]);
+		}
+		assertTrue("Checking blocking recorded",AsynchronousOutputStream.getStatistics().indexOf("blocked=0") == -1);
+		sink.open();
+		caller.join(10000);
+		assertFalse("Checking caller unblocked once output proceeds",caller.isAlive());
+		out.close();
+		assertEquals("Checking everything written",length,sink.getCount());
+	}
+
+	public void TestAsynchronousOutputStream_FailureReported() throws Exception {
+		AsynchronousOutputStream out = new AsynchronousOutputStream(new OutputStream() {
+			public void write(int b) throws IOException {
+				throw new IOException("Disk full");
+			}
+			public void write(byte[] b,int off,int len) throws IOException {
+				throw new IOException("Disk full");
+			}
+		});
+		try {
+			out.write(new byte[chunkSize*2]);		// at least one chunk is handed to a writer
+			out.close();
+			fail("Expected IOException from failed output");
+		}
+		catch (IOException e) {
+		}
+		try {
+			out.write(1);
+			fail("Expected IOException writing after failure");
+		}
+		catch (IOException e) {
+		}
+	}
+
+}
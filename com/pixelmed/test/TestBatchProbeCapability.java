@@ -0,0 +1,196 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TransferSyntax;
+
+import com.pixelmed.network.BatchProbeCapability;
+import com.pixelmed.network.NetworkApplicationInformation;
+import com.pixelmed.network.PresentationContext;
+import com.pixelmed.network.PresentationContextCapabilityCache;
+import com.pixelmed.network.PresentationContextListFactory;
+import com.pixelmed.network.StorageSOPClassSCPDispatcher;
+
+import java.io.File;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.*;
+
+public class TestBatchProbeCapability extends TestCase {
+
+	protected static final int    waitIntervalWhenSleeping = 10;	// in ms
+	protected static final int    port = 11131;
+	protected static final int    portWithNothingListening = 11132;
+	protected static final String scpAET = "TESTPROBESCP";
+	protected static final String unreachableAET = "TESTPROBENONE";
+	protected static final String scuAET = "TESTPROBESCU";
+	protected static final String cachedAET = "TESTPROBECACHED";
+
+	protected static final String unsupportedSOPClass = "1.2.3.4.5.6.7.8.9.1";
+
+	// constructor to support adding tests to suite ...
+
+	public TestBatchProbeCapability(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestBatchProbeCapability.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestBatchProbeCapability");
+
+		suite.addTest(new TestBatchProbeCapability("TestBatchProbeCapability_CacheTimeToLive"));
+		suite.addTest(new TestBatchProbeCapability("TestBatchProbeCapability_ProbeRecordsAcceptedAndFailures"));
+		suite.addTest(new TestBatchProbeCapability("TestBatchProbeCapability_PresentationContextsLimitedToAccepted"));
+
+		return suite;
+	}
+
+	protected void setUp() {
+	}
+
+	protected void tearDown() {
+		PresentationContextCapabilityCache.getPresentationContextCapabilityCache().remove(cachedAET);
+	}
+
+	private static Set<String> makeSet(String[] values) {
+		Set<String> set = new HashSet<String>();
+		for (int i=0; i<values.length; ++i) {
+			set.add(values[i]);
+		}
+		return set;
+	}
+
+	public void TestBatchProbeCapability_CacheTimeToLive() throws Exception {
+		PresentationContextCapabilityCache cache = new PresentationContextCapabilityCache();
+		assertEquals("Checking default time to live",PresentationContextCapabilityCache.defaultTimeToLive,cache.getTimeToLive());
+		assertNull("Checking not probed",cache.get(cachedAET));
+
+		Map<String,Set<String>> accepted = new HashMap<String,Set<String>>();
+		Set<String> transferSyntaxes = makeSet(new String[] { TransferSyntax.ExplicitVRLittleEndian });
+		accepted.put(SOPClass.SecondaryCaptureImageStorage,transferSyntaxes);
+		cache.put(cachedAET,accepted);
+		transferSyntaxes.add(TransferSyntax.ImplicitVRLittleEndian);					// later changes by the caller must not affect what was recorded
+		accepted.put(SOPClass.CTImageStorage,transferSyntaxes);
+
+		assertTrue("Checking current",cache.isCurrent(cachedAET));
+		Map<String,Set<String>> recorded = cache.get(cachedAET);
+		assertEquals("Checking only abstract syntaxes probed are present",1,recorded.size());
+		assertEquals("Checking accepted transfer syntaxes copied",makeSet(new String[] { TransferSyntax.ExplicitVRLittleEndian }),recorded.get(SOPClass.SecondaryCaptureImageStorage));
+		try {
+			recorded.put(SOPClass.CTImageStorage,transferSyntaxes);
+			fail("Checking recorded capabilities cannot be modified");
+		}
+		catch (UnsupportedOperationException e) {
+		}
+
+		cache.setTimeToLive(0);
+		Thread.currentThread().sleep(waitIntervalWhenSleeping);
+		assertFalse("Checking expired after time to live",cache.isCurrent(cachedAET));
+		assertTrue("Checking expired entry removed",cache.getCalledAETitles().isEmpty());
+
+		cache.setTimeToLive(PresentationContextCapabilityCache.defaultTimeToLive);
+		cache.put(cachedAET,accepted);
+		cache.put(scpAET,accepted);
+		cache.remove(cachedAET);
+		assertFalse("Checking removed",cache.isCurrent(cachedAET));
+		assertTrue("Checking other not removed",cache.isCurrent(scpAET));
+		cache.clear();
+		assertFalse("Checking cleared",cache.isCurrent(scpAET));
+	}
+
+	public void TestBatchProbeCapability_ProbeRecordsAcceptedAndFailures() throws Exception {
+		File directory = File.createTempFile("TestBatchProbeCapability",null);
+		directory.delete();
+		directory.mkdirs();
+		StorageSOPClassSCPDispatcher storageSOPClassSCPDispatcher = new StorageSOPClassSCPDispatcher(port,scpAET,directory,null/*receivedObjectHandler*/,0/*debugLevel*/);
+		Thread storageSOPClassSCPDispatcherThread = new Thread(storageSOPClassSCPDispatcher);
+		storageSOPClassSCPDispatcherThread.start();
+
+		NetworkApplicationInformation networkApplicationInformation = new NetworkApplicationInformation();
+		networkApplicationInformation.add(scpAET,scpAET,"localhost",port,null/*queryModel*/,null/*primaryDeviceType*/);
+		networkApplicationInformation.add(unreachableAET,unreachableAET,"localhost",portWithNothingListening,null/*queryModel*/,null/*primaryDeviceType*/);
+
+		String[] sopClasses = { SOPClass.SecondaryCaptureImageStorage, unsupportedSOPClass };
+		String[] transferSyntaxes = { TransferSyntax.ExplicitVRLittleEndian, TransferSyntax.JPEGBaseline };	// the SCP does not accept encapsulated transfer syntaxes
+		PresentationContextCapabilityCache cache = new PresentationContextCapabilityCache();
+		BatchProbeCapability prober = new BatchProbeCapability(networkApplicationInformation,scuAET,2,sopClasses,transferSyntaxes,cache,0/*debugLevel*/);
+		try {
+			while (!storageSOPClassSCPDispatcher.isReady()) {
+				Thread.currentThread().sleep(waitIntervalWhenSleeping);	// wait until SCP is ready, else probe may fail
+			}
+
+			Map<String,Exception> failures = prober.probe(null,false);
+			assertEquals("Checking only unreachable AE failed",makeSet(new String[] { unreachableAET }),failures.keySet());
+			assertNotNull("Checking cause of failure reported",failures.get(unreachableAET));
+			assertFalse("Checking no entry for unreachable AE",cache.isCurrent(unreachableAET));
+
+			Map<String,Set<String>> accepted = cache.get(scpAET);
+			assertNotNull("Checking entry for reachable AE",accepted);
+			assertEquals("Checking every SOP Class probed is present",makeSet(sopClasses),accepted.keySet());
+			assertEquals("Checking only uncompressed transfer syntax accepted for storage",makeSet(new String[] { TransferSyntax.ExplicitVRLittleEndian }),accepted.get(SOPClass.SecondaryCaptureImageStorage));
+			assertTrue("Checking unsupported SOP Class has no transfer syntaxes",accepted.get(unsupportedSOPClass).isEmpty());
+		}
+		finally {
+			storageSOPClassSCPDispatcher.shutdown();
+			storageSOPClassSCPDispatcherThread.join();
+		}
+
+		// the SCP is no longer listening, so any attempt to probe it again would fail ...
+		Map<String,Exception> failures = prober.probe(makeSet(new String[] { scpAET }),true/*onlyIfNotCurrent*/);
+		assertTrue("Checking current entry not probed again",failures.isEmpty());
+		failures = prober.probe(makeSet(new String[] { scpAET }),false/*onlyIfNotCurrent*/);
+		assertTrue("Checking probed again when requested",failures.containsKey(scpAET));
+		assertTrue("Checking entry kept when probe fails",cache.isCurrent(scpAET));
+	}
+
+	private static Set<String> getTransferSyntaxesProposed(List presentationContexts,String abstractSyntax) {
+		Set<String> transferSyntaxes = new HashSet<String>();
+		Iterator i = presentationContexts.iterator();
+		while (i.hasNext()) {
+			PresentationContext pc = (PresentationContext)(i.next());
+			if (pc.getAbstractSyntaxUID().equals(abstractSyntax)) {
+				transferSyntaxes.addAll(pc.getTransferSyntaxUIDs());
+			}
+		}
+		return transferSyntaxes;
+	}
+
+	public void TestBatchProbeCapability_PresentationContextsLimitedToAccepted() throws Exception {
+		Map<String,Set<String>> accepted = new HashMap<String,Set<String>>();
+		accepted.put(SOPClass.SecondaryCaptureImageStorage,makeSet(new String[] { TransferSyntax.ExplicitVRLittleEndian }));
+		accepted.put(SOPClass.CTImageStorage,new HashSet<String>());
+		PresentationContextCapabilityCache.getPresentationContextCapabilityCache().put(cachedAET,accepted);
+
+		Set<String> sopClasses = makeSet(new String[] { SOPClass.SecondaryCaptureImageStorage, SOPClass.CTImageStorage, SOPClass.MRImageStorage });
+
+		LinkedList unlimited = PresentationContextListFactory.createNewPresentationContextList(sopClasses,0/*compressionLevel*/,null/*calledAETitle*/);
+		assertTrue("Checking all transfer syntaxes proposed when not using capabilities",
+			getTransferSyntaxesProposed(unlimited,SOPClass.SecondaryCaptureImageStorage).contains(TransferSyntax.ImplicitVRLittleEndian));
+		assertFalse("Checking rejected SOP Class proposed when not using capabilities",
+			getTransferSyntaxesProposed(unlimited,SOPClass.CTImageStorage).isEmpty());
+
+		LinkedList limited = PresentationContextListFactory.createNewPresentationContextList(sopClasses,0/*compressionLevel*/,cachedAET);
+		assertEquals("Checking only accepted transfer syntax proposed",
+			makeSet(new String[] { TransferSyntax.ExplicitVRLittleEndian }),getTransferSyntaxesProposed(limited,SOPClass.SecondaryCaptureImageStorage));
+		assertTrue("Checking SOP Class not accepted at all is not proposed",
+			getTransferSyntaxesProposed(limited,SOPClass.CTImageStorage).isEmpty());
+		assertEquals("Checking SOP Class not probed is proposed as before",
+			getTransferSyntaxesProposed(unlimited,SOPClass.MRImageStorage),getTransferSyntaxesProposed(limited,SOPClass.MRImageStorage));
+
+		LinkedList encoded = PresentationContextListFactory.createNewPresentationContextList(SOPClass.SecondaryCaptureImageStorage,TransferSyntax.ImplicitVRLittleEndian,0/*compressionLevel*/,cachedAET);
+		assertEquals("Checking transfer syntax as encoded is always proposed",
+			makeSet(new String[] { TransferSyntax.ImplicitVRLittleEndian, TransferSyntax.ExplicitVRLittleEndian }),getTransferSyntaxesProposed(encoded,SOPClass.SecondaryCaptureImageStorage));
+	}
+
+}
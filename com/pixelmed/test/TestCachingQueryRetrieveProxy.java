@@ -0,0 +1,420 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.apps.CachingQueryRetrieveProxy;
+
+import com.pixelmed.database.DatabaseInformationModel;
+import com.pixelmed.database.MinimalPatientStudySeriesInstanceModel;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTagAttribute;
+import com.pixelmed.dicom.CodeStringAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.LongStringAttribute;
+import com.pixelmed.dicom.OtherByteAttribute;
+import com.pixelmed.dicom.PersonNameAttribute;
+import com.pixelmed.dicom.SetOfDicomFiles;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.StoredFilePathStrategy;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+
+import com.pixelmed.network.DicomNetworkException;
+import com.pixelmed.network.GetSOPClassSCU;
+import com.pixelmed.network.IdentifierHandler;
+import com.pixelmed.network.MoveSOPClassSCU;
+import com.pixelmed.network.NetworkApplicationInformation;
+import com.pixelmed.network.NetworkApplicationProperties;
+import com.pixelmed.network.ReceivedObjectHandler;
+import com.pixelmed.network.StorageSOPClassSCPDispatcher;
+
+import com.pixelmed.query.RetrieveResponseGenerator;
+import com.pixelmed.query.RetrieveResponseGeneratorFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import java.util.concurrent.Callable;
+
+import junit.framework.*;
+
+public class TestCachingQueryRetrieveProxy extends TestCase {
+
+	protected static final int    waitIntervalWhenSleeping = 10;	// in ms
+	protected static final int    upstreamPort = 11127;
+	protected static final int    proxyPort = 11128;
+	protected static final int    destinationPort = 11129;
+	protected static final String upstreamAET = "TESTUPSTREAM";
+	protected static final String proxyAET = "TESTPROXY";
+	protected static final String destinationAET = "TESTDESTINATION";
+	protected static final String scuAET = "TESTPROXYSCU";
+
+	protected static final String studyInstanceUID = "1.2.3.4.6.1";
+	protected static final String seriesInstanceUID = "1.2.3.4.6.1.1";
+	protected static final int    numberOfInstances = 3;
+	protected static final int    lengthOfPixelData = 10000;
+
+	// constructor to support adding tests to suite ...
+
+	public TestCachingQueryRetrieveProxy(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestCachingQueryRetrieveProxy.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestCachingQueryRetrieveProxy");
+
+		suite.addTest(new TestCachingQueryRetrieveProxy("TestCachingQueryRetrieveProxy_OnlyMissingInstancesFetched"));
+		suite.addTest(new TestCachingQueryRetrieveProxy("TestCachingQueryRetrieveProxy_PinnedDuringMoveAndEvictedAfter"));
+		suite.addTest(new TestCachingQueryRetrieveProxy("TestCachingQueryRetrieveProxy_PinnedDuringGetAndEvictedAfter"));
+
+		return suite;
+	}
+
+	// records which instances the upstream PACS has been asked to send
+	private class CountingRetrieveResponseGenerator implements RetrieveResponseGenerator {
+		private RetrieveResponseGenerator retrieveResponseGenerator;
+
+		CountingRetrieveResponseGenerator(RetrieveResponseGenerator retrieveResponseGenerator) {
+			this.retrieveResponseGenerator = retrieveResponseGenerator;
+		}
+
+		public void performRetrieve(String retrieveSOPClassUID,AttributeList requestIdentifier,boolean relational) {
+			retrieveResponseGenerator.performRetrieve(retrieveSOPClassUID,requestIdentifier,relational);
+			SetOfDicomFiles dicomFiles = retrieveResponseGenerator.getDicomFiles();
+			if (dicomFiles != null) {
+				Iterator i = dicomFiles.iterator();
+				while (i.hasNext()) {
+					String sopInstanceUID = ((SetOfDicomFiles.DicomFile)(i.next())).getSOPInstanceUID();
+					synchronized (sentByUpstream) {
+						sentByUpstream.add(sopInstanceUID);
+					}
+				}
+			}
+		}
+
+		public SetOfDicomFiles getDicomFiles() { return retrieveResponseGenerator.getDicomFiles(); }
+
+		public int getStatus() { return retrieveResponseGenerator.getStatus(); }
+
+		public AttributeTagAttribute getOffendingElement() { return retrieveResponseGenerator.getOffendingElement(); }
+
+		public String getErrorComment() { return retrieveResponseGenerator.getErrorComment(); }
+
+		public void close() { retrieveResponseGenerator.close(); }
+	}
+
+	// records what arrives from the proxy, and what the proxy has cached and evicted while it is still sending
+	private class RecordingReceivedObjectHandler extends ReceivedObjectHandler {
+		public void sendReceivedObjectIndication(String dicomFileName,String transferSyntax,String callingAETitle) throws DicomNetworkException, DicomException, IOException {
+			if (dicomFileName != null) {
+				AttributeList list = new AttributeList();
+				list.read(dicomFileName);
+				synchronized (receivedFromProxy) {
+					receivedFromProxy.add(Attribute.getSingleStringValueOrEmptyString(list,TagFromName.SOPInstanceUID));
+					if (receivedFromProxy.size() == 1 && observeWhileSending) {
+						// the proxy cannot finish sending until we return, so wait for the rest to be fetched, which exceeds the budget
+						long giveUpAt = System.currentTimeMillis() + 30000;
+						while (getStatistic("instancesCached") < numberOfInstances && System.currentTimeMillis() < giveUpAt) {
+							try {
+								Thread.currentThread().sleep(waitIntervalWhenSleeping);
+							}
+							catch (InterruptedException e) {
+							}
+						}
+						evictedWhileSending = getStatistic("instancesEvicted");
+						cachedWhileSending = getStatistic("instancesCached");
+					}
+				}
+				new File(dicomFileName).delete();
+			}
+		}
+	}
+
+	private File directory;
+	private DatabaseInformationModel upstreamDatabase;
+	private DatabaseInformationModel proxyDatabase;
+	private StorageSOPClassSCPDispatcher upstreamDispatcher;
+	private Thread upstreamDispatcherThread;
+	private StorageSOPClassSCPDispatcher destinationDispatcher;
+	private Thread destinationDispatcherThread;
+	private CachingQueryRetrieveProxy proxy;
+	private List<String> sentByUpstream;
+	private List<String> receivedFromProxy;
+	private boolean observeWhileSending;
+	private long evictedWhileSending;
+	private long cachedWhileSending;
+	private long lengthOfInstance;
+
+	private String makeInstance(int number) throws Exception {
+		AttributeList list = new AttributeList();
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPClassUID); a.addValue(SOPClass.SecondaryCaptureImageStorage); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID); a.addValue(getSOPInstanceUID(number)); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue(studyInstanceUID); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SeriesInstanceUID); a.addValue(seriesInstanceUID); list.put(a); }
+		{ Attribute a = new PersonNameAttribute(TagFromName.PatientName); a.addValue("Test^Proxy"); list.put(a); }
+		{ Attribute a = new LongStringAttribute(TagFromName.PatientID); a.addValue("TESTPROXY1"); list.put(a); }
+		{ Attribute a = new CodeStringAttribute(TagFromName.Modality); a.addValue("OT"); list.put(a); }
+		{ Attribute a = new OtherByteAttribute(TagFromName.PixelData); a.setValues(new byte[lengthOfPixelData]); list.put(a); }
+		FileMetaInformation.addFileMetaInformation(list,TransferSyntax.ExplicitVRLittleEndian,upstreamAET);
+		File file = new File(directory,"upstream"+number+".dcm");
+		list.write(file,TransferSyntax.ExplicitVRLittleEndian,true/*useMeta*/,true/*useBufferedStream*/);
+		lengthOfInstance = file.length();
+		return file.getPath();
+	}
+
+	private static String getSOPInstanceUID(int number) {
+		return seriesInstanceUID+"."+number;
+	}
+
+	private static void waitUntilReady(StorageSOPClassSCPDispatcher dispatcher) throws Exception {
+		while (!dispatcher.isReady()) {
+			Thread.currentThread().sleep(waitIntervalWhenSleeping);	// wait until SCP is ready, else later request may fail
+		}
+	}
+
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("TestCachingQueryRetrieveProxy",null);
+		directory.delete();
+		directory.mkdirs();
+		sentByUpstream = new ArrayList<String>();
+		receivedFromProxy = new ArrayList<String>();
+		observeWhileSending = false;
+		evictedWhileSending = 0;
+		cachedWhileSending = 0;
+
+		upstreamDatabase = new MinimalPatientStudySeriesInstanceModel(new File(directory,"upstreamdb").getPath());
+		for (int i=1; i<=numberOfInstances; ++i) {
+			String fileName = makeInstance(i);
+			AttributeList list = new AttributeList();
+			list.read(fileName);
+			upstreamDatabase.insertObject(list,fileName,DatabaseInformationModel.FILE_REFERENCED);
+		}
+		NetworkApplicationInformation upstreamNetworkApplicationInformation = new NetworkApplicationInformation();
+		upstreamNetworkApplicationInformation.add(proxyAET,proxyAET,"localhost",proxyPort,NetworkApplicationProperties.StudyRootQueryModel,null);
+		final RetrieveResponseGeneratorFactory upstreamRetrieveResponseGeneratorFactory = upstreamDatabase.getRetrieveResponseGeneratorFactory(0);
+		upstreamDispatcher = new StorageSOPClassSCPDispatcher(upstreamPort,upstreamAET,16384,0,0,null/*savedImagesFolder*/,null/*receivedObjectHandler*/,
+			upstreamDatabase.getQueryResponseGeneratorFactory(0),
+			new RetrieveResponseGeneratorFactory() {
+				public RetrieveResponseGenerator newInstance() { return new CountingRetrieveResponseGenerator(upstreamRetrieveResponseGeneratorFactory.newInstance()); }
+			},
+			upstreamNetworkApplicationInformation,false/*secureTransport*/,0/*debugLevel*/);
+		upstreamDispatcherThread = new Thread(upstreamDispatcher);
+		upstreamDispatcherThread.start();
+
+		File destinationFolder = new File(directory,"destination");
+		destinationFolder.mkdirs();
+		destinationDispatcher = new StorageSOPClassSCPDispatcher(destinationPort,destinationAET,destinationFolder,new RecordingReceivedObjectHandler(),0/*debugLevel*/);
+		destinationDispatcherThread = new Thread(destinationDispatcher);
+		destinationDispatcherThread.start();
+
+		waitUntilReady(upstreamDispatcher);
+		waitUntilReady(destinationDispatcher);
+	}
+
+	private void startProxy(long diskBudget) throws Exception {
+		NetworkApplicationInformation proxyNetworkApplicationInformation = new NetworkApplicationInformation();
+		proxyNetworkApplicationInformation.add(upstreamAET,upstreamAET,"localhost",upstreamPort,NetworkApplicationProperties.StudyRootQueryModel,null);
+		proxyNetworkApplicationInformation.add(destinationAET,destinationAET,"localhost",destinationPort,NetworkApplicationProperties.StudyRootQueryModel,null);
+		proxyDatabase = new MinimalPatientStudySeriesInstanceModel(new File(directory,"proxydb").getPath());
+		File proxyFolder = new File(directory,"proxy");
+		proxyFolder.mkdirs();
+		proxy = new CachingQueryRetrieveProxy(proxyNetworkApplicationInformation,upstreamAET,proxyPort,proxyAET,proxyDatabase,proxyFolder,
+			60000/*queryTimeToLive*/,100/*queryCacheSize*/,diskBudget,2/*numberOfFetchThreads*/,0/*debugLevel*/);
+		long giveUpAt = System.currentTimeMillis() + 30000;
+		while (!proxy.isReady() && System.currentTimeMillis() < giveUpAt) {
+			Thread.currentThread().sleep(waitIntervalWhenSleeping);
+		}
+		assertTrue("Checking proxy listening",proxy.isReady());
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (int i=0; i<files.length; ++i) {
+				delete(files[i]);
+			}
+		}
+		file.delete();
+	}
+
+	protected void tearDown() throws Exception {
+		if (proxy != null) {
+			proxy.shutdown();
+			while (proxy.isReady()) {
+				Thread.currentThread().sleep(waitIntervalWhenSleeping);	// so that the port is free for the next test
+			}
+			proxy = null;
+		}
+		upstreamDispatcher.shutdown();
+		upstreamDispatcherThread.join();
+		destinationDispatcher.shutdown();
+		destinationDispatcherThread.join();
+		if (proxyDatabase != null) {
+			proxyDatabase.close();
+			proxyDatabase = null;
+		}
+		upstreamDatabase.close();
+		delete(directory);
+	}
+
+	private long getStatistic(String name) {
+		String statistics = proxy.getStatistics();
+		int start = statistics.indexOf(name+"=");
+		assertTrue("Checking statistic "+name+" present",start >= 0);
+		start += name.length()+1;
+		int end = statistics.indexOf(' ',start);
+		return Long.parseLong(end < 0 ? statistics.substring(start) : statistics.substring(start,end));
+	}
+
+	private static AttributeList makeIdentifier(String level,int instanceNumber) throws Exception {
+		AttributeList identifier = new AttributeList();
+		{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue(level); identifier.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue(studyInstanceUID); identifier.put(a); }
+		if (!level.equals("STUDY")) {
+			Attribute a = new UniqueIdentifierAttribute(TagFromName.SeriesInstanceUID); a.addValue(seriesInstanceUID); identifier.put(a);
+		}
+		if (level.equals("IMAGE")) {
+			Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID); a.addValue(getSOPInstanceUID(instanceNumber)); identifier.put(a);
+		}
+		return identifier;
+	}
+
+	// the SCUs wait indefinitely for a failed SOP Instance UID list if any sub-operation fails, so give up rather than hang
+	private static void runWithTimeLimit(final Callable<Object> retrieval) throws Exception {
+		final Exception[] exception = new Exception[1];
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					retrieval.call();
+				}
+				catch (Exception e) {
+					exception[0] = e;
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		thread.join(60000);
+		assertFalse("Checking retrieval completed without failed sub-operations",thread.isAlive());
+		if (exception[0] != null) {
+			throw exception[0];
+		}
+	}
+
+	private void move(final AttributeList identifier) throws Exception {
+		runWithTimeLimit(new Callable<Object>() {
+			public Object call() throws Exception {
+				return new MoveSOPClassSCU("localhost",proxyPort,proxyAET,scuAET,destinationAET,SOPClass.StudyRootQueryRetrieveInformationModelMove,identifier,0/*debugLevel*/);
+			}
+		});
+	}
+
+	private void get(final AttributeList identifier) throws Exception {
+		final File getFolder = new File(directory,"get");
+		getFolder.mkdirs();
+		final Set<String> setOfStorageSOPClasses = new HashSet<String>();
+		setOfStorageSOPClasses.add(SOPClass.SecondaryCaptureImageStorage);
+		runWithTimeLimit(new Callable<Object>() {
+			public Object call() throws Exception {
+				return new GetSOPClassSCU("localhost",proxyPort,proxyAET,scuAET,SOPClass.StudyRootQueryRetrieveInformationModelGet,identifier,new IdentifierHandler(),
+					getFolder,StoredFilePathStrategy.getDefaultStrategy(),new RecordingReceivedObjectHandler(),setOfStorageSOPClasses,true/*theirChoice*/,false/*ourChoice*/,false/*asEncoded*/,0/*debugLevel*/);
+			}
+		});
+	}
+
+	private Set<String> getSentByUpstream() {
+		synchronized (sentByUpstream) {
+			return new HashSet<String>(sentByUpstream);
+		}
+	}
+
+	private int getNumberSentByUpstream() {
+		synchronized (sentByUpstream) {
+			return sentByUpstream.size();
+		}
+	}
+
+	private Set<String> getAndClearReceivedFromProxy() {
+		synchronized (receivedFromProxy) {
+			Set<String> received = new HashSet<String>(receivedFromProxy);
+			assertEquals("Checking nothing received more than once",receivedFromProxy.size(),received.size());
+			receivedFromProxy.clear();
+			return received;
+		}
+	}
+
+	private static Set<String> getSOPInstanceUIDs(int from,int to) {
+		Set<String> sopInstanceUIDs = new HashSet<String>();
+		for (int i=from; i<=to; ++i) {
+			sopInstanceUIDs.add(getSOPInstanceUID(i));
+		}
+		return sopInstanceUIDs;
+	}
+
+	public void TestCachingQueryRetrieveProxy_OnlyMissingInstancesFetched() throws Exception {
+		startProxy(lengthOfInstance*numberOfInstances*10);
+
+		move(makeIdentifier("IMAGE",1));
+		assertEquals("Checking instance retrieved",getSOPInstanceUIDs(1,1),getAndClearReceivedFromProxy());
+		assertEquals("Checking instance fetched from upstream",getSOPInstanceUIDs(1,1),getSentByUpstream());
+		assertEquals("Checking instance fetched from upstream only once",1,getNumberSentByUpstream());
+
+		move(makeIdentifier("SERIES",0));
+		assertEquals("Checking whole series retrieved",getSOPInstanceUIDs(1,numberOfInstances),getAndClearReceivedFromProxy());
+		assertEquals("Checking rest of series fetched from upstream",getSOPInstanceUIDs(1,numberOfInstances),getSentByUpstream());
+		assertEquals("Checking cached instance not fetched from upstream again",numberOfInstances,getNumberSentByUpstream());
+		assertEquals("Checking cached instance sent from cache",1,getStatistic("instancesFromCache"));
+
+		move(makeIdentifier("STUDY",0));
+		assertEquals("Checking whole study retrieved",getSOPInstanceUIDs(1,numberOfInstances),getAndClearReceivedFromProxy());
+		assertEquals("Checking nothing fetched from upstream once all cached",numberOfInstances,getNumberSentByUpstream());
+		assertEquals("Checking all sent from cache",1+numberOfInstances,getStatistic("instancesFromCache"));
+		assertEquals("Checking nothing evicted within budget",0,getStatistic("instancesEvicted"));
+	}
+
+	public void TestCachingQueryRetrieveProxy_PinnedDuringMoveAndEvictedAfter() throws Exception {
+		startProxy(lengthOfInstance*3/2);		// room for only one instance
+
+		observeWhileSending = true;
+		move(makeIdentifier("SERIES",0));
+		assertEquals("Checking whole series retrieved despite exceeding budget",getSOPInstanceUIDs(1,numberOfInstances),getAndClearReceivedFromProxy());
+		assertEquals("Checking nothing evicted while sending",0,evictedWhileSending);
+		assertEquals("Checking all cached while sending",numberOfInstances,cachedWhileSending);
+		assertEquals("Checking evicted down to budget once sent",numberOfInstances-1,getStatistic("instancesEvicted"));
+		assertEquals("Checking one instance still cached",1,getStatistic("instancesCached"));
+	}
+
+	public void TestCachingQueryRetrieveProxy_PinnedDuringGetAndEvictedAfter() throws Exception {
+		startProxy(lengthOfInstance*5/2);		// room for only two instances
+
+		move(makeIdentifier("IMAGE",1));
+		move(makeIdentifier("IMAGE",2));
+		getAndClearReceivedFromProxy();
+		assertEquals("Checking both cached",2,getStatistic("instancesCached"));
+		assertEquals("Checking nothing evicted within budget",0,getStatistic("instancesEvicted"));
+		observeWhileSending = true;
+		get(makeIdentifier("SERIES",0));
+		assertEquals("Checking whole series retrieved despite exceeding budget",getSOPInstanceUIDs(1,numberOfInstances),getAndClearReceivedFromProxy());
+		assertEquals("Checking only missing instance fetched from upstream",numberOfInstances,getNumberSentByUpstream());
+		assertEquals("Checking cached instances sent from cache",2,getStatistic("instancesFromCache"));
+		assertEquals("Checking nothing evicted while sending",0,evictedWhileSending);
+		assertEquals("Checking all cached while sending",numberOfInstances,cachedWhileSending);
+		assertEquals("Checking evicted down to budget once sent",1,getStatistic("instancesEvicted"));
+		assertEquals("Checking two instances still cached",2,getStatistic("instancesCached"));
+	}
+
+}
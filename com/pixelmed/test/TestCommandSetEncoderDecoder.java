@@ -0,0 +1,212 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.AttributeTagAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TagFromName;
+
+import com.pixelmed.network.CommandSetDecoder;
+import com.pixelmed.network.CommandSetEncoder;
+
+import junit.framework.*;
+
+public class TestCommandSetEncoderDecoder extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestCommandSetEncoderDecoder(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestCommandSetEncoderDecoder.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestCommandSetEncoderDecoder");
+
+		suite.addTest(new TestCommandSetEncoderDecoder("TestCommandSetEncoderDecoder_RoundTrip"));
+		suite.addTest(new TestCommandSetEncoderDecoder("TestCommandSetEncoderDecoder_GroupLength"));
+		suite.addTest(new TestCommandSetEncoderDecoder("TestCommandSetEncoderDecoder_Padding"));
+		suite.addTest(new TestCommandSetEncoderDecoder("TestCommandSetEncoderDecoder_AttributeTags"));
+		suite.addTest(new TestCommandSetEncoderDecoder("TestCommandSetEncoderDecoder_AttributeListMatches"));
+		suite.addTest(new TestCommandSetEncoderDecoder("TestCommandSetEncoderDecoder_GrowsBeyondInitialCapacity"));
+		suite.addTest(new TestCommandSetEncoderDecoder("TestCommandSetEncoderDecoder_AbsentElements"));
+		suite.addTest(new TestCommandSetEncoderDecoder("TestCommandSetEncoderDecoder_TruncatedHeader"));
+		suite.addTest(new TestCommandSetEncoderDecoder("TestCommandSetEncoderDecoder_ValueLengthTooLong"));
+		suite.addTest(new TestCommandSetEncoderDecoder("TestCommandSetEncoderDecoder_WrongGroup"));
+		suite.addTest(new TestCommandSetEncoderDecoder("TestCommandSetEncoderDecoder_TooManyElements"));
+
+		return suite;
+	}
+
+	protected void setUp() {
+	}
+
+	protected void tearDown() {
+	}
+
+	private static final int cStoreRequest = 0x0001;
+	private static final String sopInstanceUID = "1.2.3.4.5";		// odd length, so padded
+	private static final String moveOriginator = "MOVESCU";			// odd length, so padded
+
+	private static byte[] makeCStoreRequest() {
+		CommandSetEncoder encoder = new CommandSetEncoder();
+		encoder.putUniqueIdentifier(TagFromName.AffectedSOPClassUID,SOPClass.CTImageStorage);
+		encoder.putUnsignedShort(TagFromName.CommandField,cStoreRequest);
+		encoder.putUnsignedShort(TagFromName.MessageID,0x1234);
+		encoder.putUnsignedShort(TagFromName.Priority,0x0002);
+		encoder.putUnsignedShort(TagFromName.CommandDataSetType,0x0001);
+		encoder.putUniqueIdentifier(TagFromName.AffectedSOPInstanceUID,sopInstanceUID);
+		encoder.putSpacePaddedString(TagFromName.MoveOriginatorApplicationEntityTitle,moveOriginator);
+		encoder.putUnsignedShort(TagFromName.MoveOriginatorMessageID,0xfffe);
+		return encoder.getBytes();
+	}
+
+	private static void setElementHeader(byte[] bytes,int offset,int group,int element,int vl) {
+		bytes[offset]   = (byte)group;
+		bytes[offset+1] = (byte)(group>>8);
+		bytes[offset+2] = (byte)element;
+		bytes[offset+3] = (byte)(element>>8);
+		bytes[offset+4] = (byte)vl;
+		bytes[offset+5] = (byte)(vl>>8);
+		bytes[offset+6] = (byte)(vl>>16);
+		bytes[offset+7] = (byte)(vl>>24);
+	}
+
+	public void TestCommandSetEncoderDecoder_RoundTrip() throws Exception {
+		CommandSetDecoder decoder = new CommandSetDecoder(makeCStoreRequest());
+		assertEquals("Checking CommandField",cStoreRequest,decoder.getCommandField());
+		assertEquals("Checking AffectedSOPClassUID",SOPClass.CTImageStorage,decoder.getSingleStringValueOrNull(TagFromName.AffectedSOPClassUID));
+		assertEquals("Checking AffectedSOPInstanceUID",sopInstanceUID,decoder.getSingleStringValueOrNull(TagFromName.AffectedSOPInstanceUID));
+		assertEquals("Checking MessageID",0x1234,decoder.getSingleIntegerValueOrDefault(TagFromName.MessageID,-1));
+		assertEquals("Checking Priority",0x0002,decoder.getSingleIntegerValueOrDefault(TagFromName.Priority,-1));
+		assertEquals("Checking CommandDataSetType",0x0001,decoder.getSingleIntegerValueOrDefault(TagFromName.CommandDataSetType,-1));
+		assertEquals("Checking MoveOriginatorApplicationEntityTitle",moveOriginator,decoder.getSingleStringValueOrNull(TagFromName.MoveOriginatorApplicationEntityTitle));
+		assertEquals("Checking unsigned value with high bit set",0xfffe,decoder.getSingleIntegerValueOrDefault(TagFromName.MoveOriginatorMessageID,-1));
+	}
+
+	public void TestCommandSetEncoderDecoder_GroupLength() throws Exception {
+		byte[] bytes = makeCStoreRequest();
+		CommandSetDecoder decoder = new CommandSetDecoder(bytes);
+		assertTrue("Checking CommandGroupLength present",decoder.contains(TagFromName.CommandGroupLength));
+		assertEquals("Checking CommandGroupLength is length of elements that follow",bytes.length-12,decoder.getSingleIntegerValueOrDefault(TagFromName.CommandGroupLength,-1));
+	}
+
+	public void TestCommandSetEncoderDecoder_Padding() throws Exception {
+		CommandSetEncoder encoder = new CommandSetEncoder();
+		encoder.putUniqueIdentifier(TagFromName.AffectedSOPInstanceUID,"123");
+		encoder.putSpacePaddedString(TagFromName.MoveOriginatorApplicationEntityTitle,"AET");
+		byte[] bytes = encoder.getBytes();
+		assertEquals("Checking encoded length",12+8+4+8+4,bytes.length);
+		assertEquals("Checking UID value length is even",4,bytes[12+4]);
+		assertEquals("Checking UID padded with null",0x00,bytes[12+8+3]);
+		assertEquals("Checking AE value length is even",4,bytes[12+8+4+4]);
+		assertEquals("Checking AE padded with space",0x20,bytes[12+8+4+8+3]);
+		CommandSetDecoder decoder = new CommandSetDecoder(bytes);
+		assertEquals("Checking UID padding removed","123",decoder.getSingleStringValueOrNull(TagFromName.AffectedSOPInstanceUID));
+		assertEquals("Checking AE padding removed","AET",decoder.getSingleStringValueOrNull(TagFromName.MoveOriginatorApplicationEntityTitle));
+	}
+
+	public void TestCommandSetEncoderDecoder_AttributeTags() throws Exception {
+		CommandSetEncoder encoder = new CommandSetEncoder();
+		encoder.putAttributeTags(TagFromName.OffendingElement,new AttributeTag[] { TagFromName.PatientName, TagFromName.PatientID });
+		AttributeList list = new CommandSetDecoder(encoder.getBytes()).getAttributeList();
+		Attribute a = list.get(TagFromName.OffendingElement);
+		assertNotNull("Checking OffendingElement present",a);
+		assertEquals("Checking OffendingElement value multiplicity",2,a.getVM());
+		AttributeTag[] values = ((AttributeTagAttribute)a).getAttributeTagValues();
+		assertEquals("Checking first tag",TagFromName.PatientName,values[0]);
+		assertEquals("Checking second tag",TagFromName.PatientID,values[1]);
+	}
+
+	public void TestCommandSetEncoderDecoder_AttributeListMatches() throws Exception {
+		CommandSetDecoder decoder = new CommandSetDecoder(makeCStoreRequest());
+		AttributeList list = decoder.getAttributeList();
+		assertEquals("Checking CommandField",cStoreRequest,Attribute.getSingleIntegerValueOrDefault(list,TagFromName.CommandField,-1));
+		assertEquals("Checking AffectedSOPInstanceUID",sopInstanceUID,Attribute.getSingleStringValueOrNull(list,TagFromName.AffectedSOPInstanceUID));
+		assertEquals("Checking MoveOriginatorApplicationEntityTitle",moveOriginator,Attribute.getSingleStringValueOrNull(list,TagFromName.MoveOriginatorApplicationEntityTitle));
+		assertSame("Checking list is only read once",list,decoder.getAttributeList());
+	}
+
+	public void TestCommandSetEncoderDecoder_GrowsBeyondInitialCapacity() throws Exception {
+		CommandSetEncoder encoder = new CommandSetEncoder(1);
+		String longUID = "1.2.840.10008.5.1.4.1.1.2.1.2.3.4.5.6.7.8.9.10.11.12.13.14.15.16";
+		encoder.putUniqueIdentifier(TagFromName.AffectedSOPInstanceUID,longUID);
+		encoder.putUnsignedShort(TagFromName.MessageID,7);
+		CommandSetDecoder decoder = new CommandSetDecoder(encoder.getBytes());
+		assertEquals("Checking long UID",longUID,decoder.getSingleStringValueOrNull(TagFromName.AffectedSOPInstanceUID));
+		assertEquals("Checking MessageID",7,decoder.getSingleIntegerValueOrDefault(TagFromName.MessageID,-1));
+	}
+
+	public void TestCommandSetEncoderDecoder_AbsentElements() throws Exception {
+		CommandSetDecoder decoder = new CommandSetDecoder(new byte[0]);
+		assertFalse("Checking nothing present",decoder.contains(TagFromName.CommandField));
+		assertEquals("Checking absent CommandField",0xffff,decoder.getCommandField());
+		assertNull("Checking absent string",decoder.getSingleStringValueOrNull(TagFromName.AffectedSOPInstanceUID));
+		assertEquals("Checking absent integer gives default",-1,decoder.getSingleIntegerValueOrDefault(TagFromName.MessageID,-1));
+		decoder = new CommandSetDecoder(makeCStoreRequest());
+		assertFalse("Checking element not in group 0x0000 is never found",decoder.contains(TagFromName.PatientName));
+	}
+
+	public void TestCommandSetEncoderDecoder_TruncatedHeader() throws Exception {
+		byte[] complete = makeCStoreRequest();
+		byte[] truncated = new byte[complete.length+4];
+		System.arraycopy(complete,0,truncated,0,complete.length);
+		try {
+			new CommandSetDecoder(truncated);
+			fail("Expected DicomException for truncated element header");
+		}
+		catch (DicomException e) {
+		}
+	}
+
+	public void TestCommandSetEncoderDecoder_ValueLengthTooLong() throws Exception {
+		byte[] bytes = new byte[8+2];
+		setElementHeader(bytes,0,0x0000,0x0110,4);
+		try {
+			new CommandSetDecoder(bytes);
+			fail("Expected DicomException for value length beyond end");
+		}
+		catch (DicomException e) {
+		}
+		setElementHeader(bytes,0,0x0000,0x0110,0xffffffff);
+		try {
+			new CommandSetDecoder(bytes);
+			fail("Expected DicomException for undefined (negative) value length");
+		}
+		catch (DicomException e) {
+		}
+	}
+
+	public void TestCommandSetEncoderDecoder_WrongGroup() throws Exception {
+		byte[] bytes = new byte[8+2];
+		setElementHeader(bytes,0,0x0008,0x0018,2);
+		try {
+			new CommandSetDecoder(bytes);
+			fail("Expected DicomException for element not in group 0x0000");
+		}
+		catch (DicomException e) {
+		}
+	}
+
+	public void TestCommandSetEncoderDecoder_TooManyElements() throws Exception {
+		int numberOfElements = 100;
+		byte[] bytes = new byte[numberOfElements*8];
+		for (int i=0; i<numberOfElements; ++i) {
+			setElementHeader(bytes,i*8,0x0000,0x1000+i,0);
+		}
+		try {
+			new CommandSetDecoder(bytes);
+			fail("Expected DicomException for too many elements");
+		}
+		catch (DicomException e) {
+		}
+	}
+
+}
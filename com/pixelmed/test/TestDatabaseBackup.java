@@ -0,0 +1,205 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.database.DatabaseBackup;
+import com.pixelmed.database.DatabaseInformationModel;
+import com.pixelmed.database.MinimalPatientStudySeriesInstanceModel;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.InformationEntity;
+import com.pixelmed.dicom.LongStringAttribute;
+import com.pixelmed.dicom.PersonNameAttribute;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.util.Properties;
+
+import junit.framework.*;
+
+public class TestDatabaseBackup extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestDatabaseBackup(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestDatabaseBackup.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestDatabaseBackup");
+
+		suite.addTest(new TestDatabaseBackup("TestDatabaseBackup_EndOfLastCompleteLogRecord"));
+		suite.addTest(new TestDatabaseBackup("TestDatabaseBackup_RestoreFromCopiedFiles"));
+		suite.addTest(new TestDatabaseBackup("TestDatabaseBackup_RestoreFromMostRecentCompleteSnapshot"));
+		suite.addTest(new TestDatabaseBackup("TestDatabaseBackup_RestoreDifferentDatabaseName"));
+		suite.addTest(new TestDatabaseBackup("TestDatabaseBackup_RoundTrip"));
+
+		return suite;
+	}
+
+	private File directory;
+
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("TestDatabaseBackup",null);
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	protected void tearDown() {
+		deleteRecursively(directory);
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (int i=0; i<files.length; ++i) {
+				deleteRecursively(files[i]);
+			}
+		}
+		file.delete();
+	}
+
+	private static void write(File file,String content) throws Exception {
+		file.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(file);
+		out.write(content.getBytes("US-ASCII"));
+		out.close();
+	}
+
+	private static String read(File file) throws Exception {
+		InputStream in = new FileInputStream(file);
+		byte[] buffer = new byte[(int)file.length()];
+		int offset = 0;
+		int count;
+		while (offset < buffer.length && (count = in.read(buffer,offset,buffer.length-offset)) > 0) {
+			offset+=count;
+		}
+		in.close();
+		return new String(buffer,0,offset,"US-ASCII");
+	}
+
+	private static Properties readProperties(File file) throws Exception {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		properties.load(in);
+		in.close();
+		return properties;
+	}
+
+	private static void makeCopiedFilesSnapshot(File snapshotDirectory,String databaseName,String script,String log,long logLength) throws Exception {
+		write(new File(snapshotDirectory,"snapshot/"+databaseName+".properties"),"modified=no\nversion=1.8.0\n");
+		write(new File(snapshotDirectory,"snapshot/"+databaseName+".script"),script);
+		write(new File(snapshotDirectory,databaseName+".log"),log);
+		write(new File(snapshotDirectory,"backup.properties"),"database="+databaseName+"\nloglength="+logLength+"\n");
+	}
+
+	public void TestDatabaseBackup_EndOfLastCompleteLogRecord() throws Exception {
+		File file = new File(directory,"test.log");
+		write(file,"INSERT A\nINSERT BB\nINSERT C");
+		RandomAccessFile log = new RandomAccessFile(file,"r");
+		try {
+			long length = log.length();
+			assertEquals("Checking incomplete last record not included",19,DatabaseBackup.findEndOfLastCompleteLogRecord(log,0,length));
+			assertEquals("Checking nothing complete after last line",19,DatabaseBackup.findEndOfLastCompleteLogRecord(log,19,length));
+			assertEquals("Checking first record alone",9,DatabaseBackup.findEndOfLastCompleteLogRecord(log,0,12));
+			assertEquals("Checking nothing complete within first record",0,DatabaseBackup.findEndOfLastCompleteLogRecord(log,0,8));
+			assertEquals("Checking empty range",9,DatabaseBackup.findEndOfLastCompleteLogRecord(log,9,9));
+		}
+		finally {
+			log.close();
+		}
+	}
+
+	public void TestDatabaseBackup_RestoreFromCopiedFiles() throws Exception {
+		File backupDirectory = new File(directory,"backup");
+		makeCopiedFilesSnapshot(new File(backupDirectory,"20120101120000"),"testdb","CREATE TABLE T\n","INSERT 1\nINSERT 2\nINSERT",18);
+		File databaseDirectory = new File(directory,"restored");
+		write(new File(databaseDirectory,"testdb.data"),"left behind");
+		DatabaseBackup.restore(backupDirectory,new File(databaseDirectory,"testdb").getPath());
+		assertEquals("Checking script restored","CREATE TABLE T\n",read(new File(databaseDirectory,"testdb.script")));
+		assertEquals("Checking log restored up to length recorded","INSERT 1\nINSERT 2\n",read(new File(databaseDirectory,"testdb.log")));
+		assertFalse("Checking data file not in snapshot removed",new File(databaseDirectory,"testdb.data").exists());
+		assertEquals("Checking marked as modified so that log is replayed","yes",readProperties(new File(databaseDirectory,"testdb.properties")).getProperty("modified"));
+	}
+
+	public void TestDatabaseBackup_RestoreFromMostRecentCompleteSnapshot() throws Exception {
+		File backupDirectory = new File(directory,"backup");
+		makeCopiedFilesSnapshot(new File(backupDirectory,"20120101120000"),"testdb","OLDER\n","",0);
+		makeCopiedFilesSnapshot(new File(backupDirectory,"20120102120000"),"testdb","NEWER\n","",0);
+		write(new File(backupDirectory,"20120103120000/snapshot/testdb.script"),"INCOMPLETE\n");		// no description, so not finished
+		File databaseDirectory = new File(directory,"restored");
+		File snapshotDirectory = DatabaseBackup.restore(backupDirectory,new File(databaseDirectory,"testdb").getPath());
+		assertEquals("Checking snapshot restored from","20120102120000",snapshotDirectory.getName());
+		assertEquals("Checking script restored","NEWER\n",read(new File(databaseDirectory,"testdb.script")));
+		assertEquals("Checking empty log restored","",read(new File(databaseDirectory,"testdb.log")));
+		assertEquals("Checking not marked as modified when no log","no",readProperties(new File(databaseDirectory,"testdb.properties")).getProperty("modified"));
+	}
+
+	public void TestDatabaseBackup_RestoreDifferentDatabaseName() throws Exception {
+		File backupDirectory = new File(directory,"backup");
+		makeCopiedFilesSnapshot(new File(backupDirectory,"20120101120000"),"testdb","CREATE TABLE T\n","",0);
+		try {
+			DatabaseBackup.restore(backupDirectory,new File(directory,"restored/otherdb").getPath());
+			fail("Expected DicomException when restoring a different database");
+		}
+		catch (DicomException e) {
+		}
+		try {
+			DatabaseBackup.restore(new File(directory,"empty"),new File(directory,"restored/testdb").getPath());
+			fail("Expected DicomException when no snapshot");
+		}
+		catch (DicomException e) {
+		}
+	}
+
+	private static AttributeList makeInstance(String suffix) throws DicomException {
+		AttributeList list = new AttributeList();
+		{ Attribute a = new PersonNameAttribute(TagFromName.PatientName); a.addValue("Test^Backup"); list.put(a); }
+		{ Attribute a = new LongStringAttribute(TagFromName.PatientID); a.addValue("TESTBACKUP"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue("1.2.3.4.1"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SeriesInstanceUID); a.addValue("1.2.3.4.1.1"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID); a.addValue("1.2.3.4.1.1."+suffix); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPClassUID); a.addValue(SOPClass.SecondaryCaptureImageStorage); list.put(a); }
+		return list;
+	}
+
+	public void TestDatabaseBackup_RoundTrip() throws Exception {
+		File backupDirectory = new File(directory,"backup");
+		DatabaseInformationModel d = new MinimalPatientStudySeriesInstanceModel(new File(directory,"original/testbackupdb").getPath());
+		try {
+			d.insertObject(makeInstance("1"),"/nonexistent/1.dcm","R");
+			DatabaseBackup backup = new DatabaseBackup(d,backupDirectory);
+			backup.snapshot();
+			d.insertObject(makeInstance("2"),"/nonexistent/2.dcm","R");
+			assertTrue("Checking change since snapshot copied",backup.incremental() > 0);
+			// restore elsewhere whilst the original is still open, as if it had been lost without being shut down
+			String restoredFileName = new File(directory,"restored/testbackupdb").getPath();
+			DatabaseBackup.restore(backupDirectory,restoredFileName);
+			DatabaseInformationModel r = new MinimalPatientStudySeriesInstanceModel(restoredFileName);
+			try {
+				assertEquals("Checking instances in snapshot and log restored",2,r.findAllAttributeValuesForAllRecordsForThisInformationEntity(InformationEntity.INSTANCE).size());
+			}
+			finally {
+				r.close();
+			}
+		}
+		finally {
+			d.close();
+		}
+	}
+
+}
@@ -0,0 +1,268 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.database.DatabaseConnectionPool;
+import com.pixelmed.database.DatabaseOperationStatistics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.*;
+
+public class TestDatabaseConnectionPool extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestDatabaseConnectionPool(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestDatabaseConnectionPool.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestDatabaseConnectionPool");
+
+		suite.addTest(new TestDatabaseConnectionPool("TestDatabaseConnectionPool_CreatedOnlyWhenNeeded"));
+		suite.addTest(new TestDatabaseConnectionPool("TestDatabaseConnectionPool_ReusedAfterGiveBack"));
+		suite.addTest(new TestDatabaseConnectionPool("TestDatabaseConnectionPool_IsolationAndReadOnlySet"));
+		suite.addTest(new TestDatabaseConnectionPool("TestDatabaseConnectionPool_WaitsWhenAllInUse"));
+		suite.addTest(new TestDatabaseConnectionPool("TestDatabaseConnectionPool_FailedCreationDoesNotUseUpPool"));
+		suite.addTest(new TestDatabaseConnectionPool("TestDatabaseConnectionPool_CloseClosesIdleAndLaterGivenBack"));
+		suite.addTest(new TestDatabaseConnectionPool("TestDatabaseConnectionPool_CloseWakesWaiting"));
+		suite.addTest(new TestDatabaseConnectionPool("TestDatabaseConnectionPool_Owns"));
+
+		return suite;
+	}
+
+	private static final String url = "jdbc:pixelmedtestpool:";
+
+	/**
+	 * <p>Records what is done to each connection opened, without a database.</p>
+	 */
+	private static class FakeConnection implements InvocationHandler {
+		boolean closed;
+		int transactionIsolation = -1;
+		boolean readOnly;
+
+		public Object invoke(Object proxy,Method method,Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				closed = true;
+			}
+			else if (name.equals("isClosed")) {
+				return Boolean.valueOf(closed);
+			}
+			else if (name.equals("setTransactionIsolation")) {
+				transactionIsolation = ((Integer)(args[0])).intValue();
+			}
+			else if (name.equals("setReadOnly")) {
+				readOnly = ((Boolean)(args[0])).booleanValue();
+			}
+			else if (name.equals("hashCode")) {
+				return Integer.valueOf(System.identityHashCode(proxy));
+			}
+			else if (name.equals("equals")) {
+				return Boolean.valueOf(proxy == args[0]);
+			}
+			else if (name.equals("toString")) {
+				return "FakeConnection";
+			}
+			return null;
+		}
+	}
+
+	private static List<FakeConnection> opened = new ArrayList<FakeConnection>();
+	private static boolean failToConnect;
+	private static Driver driver;
+
+	private DatabaseOperationStatistics statistics;
+
+	protected void setUp() throws Exception {
+		opened.clear();
+		failToConnect = false;
+		statistics = new DatabaseOperationStatistics();
+		if (driver == null) {
+			driver = (Driver)Proxy.newProxyInstance(TestDatabaseConnectionPool.class.getClassLoader(),new Class[] { Driver.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy,Method method,Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("acceptsURL")) {
+							return Boolean.valueOf(((String)(args[0])).startsWith(url));
+						}
+						else if (name.equals("connect")) {
+							if (!((String)(args[0])).startsWith(url)) {
+								return null;
+							}
+							if (failToConnect) {
+								throw new SQLException("Cannot connect");
+							}
+							FakeConnection connection = new FakeConnection();
+							opened.add(connection);
+							return Proxy.newProxyInstance(Connection.class.getClassLoader(),new Class[] { Connection.class },connection);
+						}
+						else if (name.equals("hashCode")) {
+							return Integer.valueOf(System.identityHashCode(proxy));
+						}
+						else if (name.equals("equals")) {
+							return Boolean.valueOf(proxy == args[0]);
+						}
+						else if (name.equals("toString")) {
+							return "FakeDriver";
+						}
+						else if (name.equals("getMajorVersion") || name.equals("getMinorVersion")) {
+							return Integer.valueOf(1);
+						}
+						else if (name.equals("jdbcCompliant")) {
+							return Boolean.FALSE;
+						}
+						return null;
+					}
+				});
+			DriverManager.registerDriver(driver);
+		}
+	}
+
+	protected void tearDown() {
+	}
+
+	private DatabaseConnectionPool makePool(int maximumNumberOfConnections) {
+		return new DatabaseConnectionPool("test",url,new Properties(),maximumNumberOfConnections,Connection.TRANSACTION_READ_COMMITTED,true,statistics);
+	}
+
+	private static FakeConnection getFake(Connection connection) {
+		return (FakeConnection)(Proxy.getInvocationHandler(connection));
+	}
+
+	public void TestDatabaseConnectionPool_CreatedOnlyWhenNeeded() throws Exception {
+		DatabaseConnectionPool pool = makePool(4);
+		assertEquals("Checking none opened when created",0,opened.size());
+		Connection c1 = pool.borrow();
+		Connection c2 = pool.borrow();
+		assertTrue("Checking different connections for different borrowers",c1 != c2);
+		assertEquals("Checking opened",2,opened.size());
+		assertEquals("Checking number of connections",2,pool.getNumberOfConnections());
+		assertEquals("Checking wait recorded",2,statistics.getCount("wait for test connection"));
+	}
+
+	public void TestDatabaseConnectionPool_ReusedAfterGiveBack() throws Exception {
+		DatabaseConnectionPool pool = makePool(4);
+		Connection c1 = pool.borrow();
+		pool.giveBack(c1);
+		assertEquals("Checking idle",1,pool.getNumberOfIdleConnections());
+		Connection c2 = pool.borrow();
+		assertSame("Checking same connection re-used",c1,c2);
+		assertEquals("Checking only one opened",1,opened.size());
+		assertEquals("Checking not idle",0,pool.getNumberOfIdleConnections());
+	}
+
+	public void TestDatabaseConnectionPool_IsolationAndReadOnlySet() throws Exception {
+		DatabaseConnectionPool pool = makePool(1);
+		FakeConnection fake = getFake(pool.borrow());
+		assertEquals("Checking transaction isolation",Connection.TRANSACTION_READ_COMMITTED,fake.transactionIsolation);
+		assertTrue("Checking read only",fake.readOnly);
+	}
+
+	public void TestDatabaseConnectionPool_WaitsWhenAllInUse() throws Exception {
+		final DatabaseConnectionPool pool = makePool(1);
+		final Connection c1 = pool.borrow();
+		final Connection[] borrowed = new Connection[1];
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					borrowed[0] = pool.borrow();
+				}
+				catch (SQLException e) {
+				}
+			}
+		};
+		waiter.start();
+		waiter.join(200);
+		assertTrue("Checking waiting while all in use",waiter.isAlive());
+		assertNull("Checking nothing borrowed while all in use",borrowed[0]);
+		pool.giveBack(c1);
+		waiter.join(5000);
+		assertFalse("Checking no longer waiting after give back",waiter.isAlive());
+		assertSame("Checking connection given back is borrowed",c1,borrowed[0]);
+		assertEquals("Checking no more opened than maximum",1,opened.size());
+	}
+
+	public void TestDatabaseConnectionPool_FailedCreationDoesNotUseUpPool() throws Exception {
+		DatabaseConnectionPool pool = makePool(1);
+		failToConnect = true;
+		try {
+			pool.borrow();
+			fail("Expected SQLException when cannot connect");
+		}
+		catch (SQLException e) {
+		}
+		assertEquals("Checking failed connection not counted",0,pool.getNumberOfConnections());
+		failToConnect = false;
+		assertNotNull("Checking can borrow once can connect",pool.borrow());
+	}
+
+	public void TestDatabaseConnectionPool_CloseClosesIdleAndLaterGivenBack() throws Exception {
+		DatabaseConnectionPool pool = makePool(2);
+		Connection c1 = pool.borrow();
+		Connection c2 = pool.borrow();
+		pool.giveBack(c1);
+		pool.close();
+		assertTrue("Checking idle connection closed",getFake(c1).closed);
+		assertFalse("Checking connection in use not closed",getFake(c2).closed);
+		pool.giveBack(c2);
+		assertTrue("Checking connection given back after close is closed",getFake(c2).closed);
+		assertEquals("Checking none open",0,pool.getNumberOfConnections());
+		try {
+			pool.borrow();
+			fail("Expected SQLException when borrowing from closed pool");
+		}
+		catch (SQLException e) {
+		}
+	}
+
+	public void TestDatabaseConnectionPool_CloseWakesWaiting() throws Exception {
+		final DatabaseConnectionPool pool = makePool(1);
+		pool.borrow();
+		final boolean[] failed = new boolean[1];
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					pool.borrow();
+				}
+				catch (SQLException e) {
+					failed[0] = true;
+				}
+			}
+		};
+		waiter.start();
+		waiter.join(200);
+		assertTrue("Checking waiting while all in use",waiter.isAlive());
+		pool.close();
+		waiter.join(5000);
+		assertFalse("Checking no longer waiting after close",waiter.isAlive());
+		assertTrue("Checking waiting borrower failed",failed[0]);
+	}
+
+	public void TestDatabaseConnectionPool_Owns() throws Exception {
+		DatabaseConnectionPool pool1 = makePool(1);
+		DatabaseConnectionPool pool2 = makePool(1);
+		Connection c1 = pool1.borrow();
+		Connection c2 = pool2.borrow();
+		assertTrue("Checking owns own connection",pool1.owns(c1));
+		assertFalse("Checking does not own other pool's connection",pool1.owns(c2));
+		assertEquals("Checking all connections",1,pool1.getAllConnections().size());
+	}
+
+}
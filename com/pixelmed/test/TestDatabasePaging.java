@@ -0,0 +1,325 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.database.DatabaseInformationModel;
+import com.pixelmed.database.DatabaseTreeModel;
+import com.pixelmed.database.DatabaseTreeRecord;
+import com.pixelmed.database.MinimalPatientStudySeriesInstanceModel;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.CodeStringAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.InformationEntity;
+import com.pixelmed.dicom.IntegerStringAttribute;
+import com.pixelmed.dicom.LongStringAttribute;
+import com.pixelmed.dicom.PersonNameAttribute;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.*;
+
+public class TestDatabasePaging extends TestCase {
+
+	protected static final int    waitIntervalWhenSleeping = 10;	// in ms
+	protected static final int    maximumWaitForPage = 10000;		// in ms
+
+	// series numbers with ties, and values that would be out of order if sorted as strings rather than numerically
+	protected static final int[]  seriesNumbers = { 10, 2, 1, 2, 100, 9, 2, 20, 10, 3, 11, 9 };
+	protected static final int[]  seriesNumbersSorted = { 1, 2, 2, 2, 3, 9, 9, 10, 10, 11, 20, 100 };
+
+	protected static final String pagingPatientName = "Paging^Series";
+
+	// each name containing a LIKE special character has a decoy that would also match if the character were not escaped
+	protected static final String[][] patientNames = {
+		{ "100%^Sure" },
+		{ "100X^Sure" },
+		{ "A_B^Under" },
+		{ "AXB^Under" },
+		{ "Back", "Slash" },		// stored as "Back\Slash", since multiple values are separated by backslash
+		{ "BackXSlash" },
+		{ pagingPatientName }
+	};
+
+	// constructor to support adding tests to suite ...
+
+	public TestDatabasePaging(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestDatabasePaging.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestDatabasePaging");
+
+		suite.addTest(new TestDatabasePaging("TestDatabasePaging_PagesNeitherRepeatNorSkip"));
+		suite.addTest(new TestDatabasePaging("TestDatabasePaging_IntegerStringSortedNumerically"));
+		suite.addTest(new TestDatabasePaging("TestDatabasePaging_FilterEscapesSpecialCharacters"));
+		suite.addTest(new TestDatabasePaging("TestDatabasePaging_CountMatchesFilteredPages"));
+		suite.addTest(new TestDatabasePaging("TestDatabasePaging_TreeRecordPages"));
+
+		return suite;
+	}
+
+	// a model whose primary keys are in the opposite order to that in which records are inserted, so that records with the
+	// same value of the sort column are returned in a different order if they are not also sorted by primary key
+
+	private static class DescendingPrimaryKeyModel extends MinimalPatientStudySeriesInstanceModel {
+		private long nextPrimaryKey = 999999;
+
+		DescendingPrimaryKeyModel(String databaseFileName) throws DicomException {
+			super(databaseFileName);
+		}
+
+		protected synchronized String createPrimaryKeyForSelectedInformationEntity(InformationEntity ie) {
+			return Long.toString(nextPrimaryKey--);
+		}
+	}
+
+	private File directory;
+	private DatabaseInformationModel databaseInformationModel;
+	private String pagingStudyLocalPrimaryKey;
+
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("TestDatabasePaging",null);
+		directory.delete();
+		directory.mkdirs();
+		databaseInformationModel = new DescendingPrimaryKeyModel(new File(directory,"testpagingdb").getPath());
+		for (int p=0; p<patientNames.length; ++p) {
+			int numberOfSeries = patientNames[p][0].equals(pagingPatientName) ? seriesNumbers.length : 1;
+			for (int s=0; s<numberOfSeries; ++s) {
+				databaseInformationModel.insertObject(makeInstance(p,s,patientNames[p],seriesNumbers[s]),"/nonexistent/"+p+"/"+s+".dcm",DatabaseInformationModel.FILE_REFERENCED);
+			}
+		}
+		ArrayList studies = databaseInformationModel.findAllAttributeValuesForAllRecordsForThisInformationEntity(InformationEntity.STUDY);
+		Iterator i = studies.iterator();
+		while (i.hasNext()) {
+			Map study = (Map)(i.next());
+			if (((String)(study.get("STUDYINSTANCEUID"))).trim().equals("1.2.3.46."+(patientNames.length-1))) {
+				pagingStudyLocalPrimaryKey = (String)(study.get(databaseInformationModel.getLocalPrimaryKeyColumnName(InformationEntity.STUDY)));
+			}
+		}
+		assertNotNull("Checking study to page through found",pagingStudyLocalPrimaryKey);
+	}
+
+	protected void tearDown() throws Exception {
+		databaseInformationModel.close();
+		File[] files = directory.listFiles();
+		for (int i=0; i<files.length; ++i) {
+			files[i].delete();
+		}
+		directory.delete();
+	}
+
+	private static AttributeList makeInstance(int patient,int series,String[] patientName,int seriesNumber) throws DicomException {
+		AttributeList list = new AttributeList();
+		{ Attribute a = new LongStringAttribute(TagFromName.PatientID); a.addValue("TESTPAGING"+patient); list.put(a); }
+		{ Attribute a = new PersonNameAttribute(TagFromName.PatientName); for (int i=0; i<patientName.length; ++i) { a.addValue(patientName[i]); } list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue("1.2.3.46."+patient); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SeriesInstanceUID); a.addValue("1.2.3.46."+patient+"."+series); list.put(a); }
+		{ Attribute a = new IntegerStringAttribute(TagFromName.SeriesNumber); a.addValue(seriesNumber); list.put(a); }
+		{ Attribute a = new CodeStringAttribute(TagFromName.Modality); a.addValue("OT"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID); a.addValue("1.2.3.46."+patient+"."+series+".1"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPClassUID); a.addValue(SOPClass.SecondaryCaptureImageStorage); list.put(a); }
+		return list;
+	}
+
+	/**
+	 * @return	the records of every page of the series of the study with many series, in the order returned
+	 */
+	private List<Map> getAllPagesOfSeries(int pageSize) throws DicomException {
+		List<Map> records = new ArrayList<Map>();
+		for (int offset=0; ; offset+=pageSize) {
+			ArrayList page = databaseInformationModel.findAllAttributeValuesForPageOfRecordsForThisInformationEntityWithSpecifiedParent(
+				InformationEntity.SERIES,pagingStudyLocalPrimaryKey,"SERIESNUMBER",null,null,offset,pageSize);
+			assertTrue("Checking page not longer than page size",page.size() <= pageSize);
+			records.addAll(page);
+			if (page.size() < pageSize) {
+				break;
+			}
+		}
+		return records;
+	}
+
+	private List<String> getColumnValues(List<Map> records,String columnName) {
+		List<String> values = new ArrayList<String>();
+		Iterator<Map> i = records.iterator();
+		while (i.hasNext()) {
+			String value = (String)(i.next().get(columnName));
+			values.add(value == null ? null : value.trim());
+		}
+		return values;
+	}
+
+	private List<String> getLocalPrimaryKeys(List<Map> records) {
+		return getColumnValues(records,databaseInformationModel.getLocalPrimaryKeyColumnName(InformationEntity.SERIES));
+	}
+
+	/**
+	 * @return	the Patient's Names that contain the filter, found a page at a time
+	 */
+	private List<String> getFilteredPatientNames(String filter,int pageSize) throws DicomException {
+		List<String> names = new ArrayList<String>();
+		for (int offset=0; ; offset+=pageSize) {
+			ArrayList page = databaseInformationModel.findAllAttributeValuesForPageOfRecordsForThisInformationEntityWithSpecifiedParent(
+				InformationEntity.PATIENT,null,"PATIENTNAME","PATIENTNAME",filter,offset,pageSize);
+			names.addAll(getColumnValues(page,"PATIENTNAME"));
+			if (page.size() < pageSize) {
+				break;
+			}
+		}
+		return names;
+	}
+
+	private static Set<String> makeSet(String[] values) {
+		Set<String> set = new TreeSet<String>();
+		for (int i=0; i<values.length; ++i) {
+			set.add(values[i]);
+		}
+		return set;
+	}
+
+	public void TestDatabasePaging_PagesNeitherRepeatNorSkip() throws Exception {
+		Set<String> allSeries = new TreeSet<String>(getLocalPrimaryKeys(
+			databaseInformationModel.findAllAttributeValuesForAllRecordsForThisInformationEntityWithSpecifiedParent(InformationEntity.SERIES,pagingStudyLocalPrimaryKey)));
+		assertEquals("Checking all series inserted",seriesNumbers.length,allSeries.size());
+
+		List<String> expectedOrder = getLocalPrimaryKeys(getAllPagesOfSeries(seriesNumbers.length+1));
+		for (int pageSize=1; pageSize<=seriesNumbers.length; ++pageSize) {
+			List<String> paged = getLocalPrimaryKeys(getAllPagesOfSeries(pageSize));
+			assertEquals("Checking no series repeated with page size "+pageSize,paged.size(),new HashSet<String>(paged).size());
+			assertEquals("Checking no series skipped with page size "+pageSize,allSeries,new TreeSet<String>(paged));
+			assertEquals("Checking series with same number in same order with page size "+pageSize,expectedOrder,paged);
+		}
+
+		List<Map> records = getAllPagesOfSeries(5);
+		List<String> numbers = getColumnValues(records,"SERIESNUMBER");
+		List<String> keys = getLocalPrimaryKeys(records);
+		for (int i=1; i<records.size(); ++i) {
+			if (numbers.get(i).equals(numbers.get(i-1))) {
+				assertTrue("Checking series with same number "+numbers.get(i)+" ordered by primary key",keys.get(i-1).compareTo(keys.get(i)) < 0);
+			}
+		}
+
+		assertTrue("Checking nothing after last record",databaseInformationModel.findAllAttributeValuesForPageOfRecordsForThisInformationEntityWithSpecifiedParent(
+			InformationEntity.SERIES,pagingStudyLocalPrimaryKey,"SERIESNUMBER",null,null,seriesNumbers.length,5).isEmpty());
+	}
+
+	public void TestDatabasePaging_IntegerStringSortedNumerically() throws Exception {
+		List<String> expected = new ArrayList<String>();
+		for (int i=0; i<seriesNumbersSorted.length; ++i) {
+			expected.add(Integer.toString(seriesNumbersSorted[i]));
+		}
+		assertEquals("Checking Series Numbers sorted numerically within one page",expected,getColumnValues(getAllPagesOfSeries(seriesNumbers.length),"SERIESNUMBER"));
+		assertEquals("Checking Series Numbers sorted numerically across pages",expected,getColumnValues(getAllPagesOfSeries(5),"SERIESNUMBER"));
+	}
+
+	public void TestDatabasePaging_FilterEscapesSpecialCharacters() throws Exception {
+		assertEquals("Checking percent matched literally",makeSet(new String[] { "100%^Sure" }),new TreeSet<String>(getFilteredPatientNames("0%",10)));
+		assertEquals("Checking underscore matched literally",makeSet(new String[] { "A_B^Under" }),new TreeSet<String>(getFilteredPatientNames("A_B",10)));
+		assertEquals("Checking backslash matched literally",makeSet(new String[] { "Back\\Slash" }),new TreeSet<String>(getFilteredPatientNames("k\\s",10)));
+		assertEquals("Checking matched regardless of case",makeSet(new String[] { "100X^Sure", "AXB^Under", "BackXSlash" }),new TreeSet<String>(getFilteredPatientNames("x",10)));
+		assertTrue("Checking nothing matched when special characters only",getFilteredPatientNames("%_\\",10).isEmpty());
+		assertEquals("Checking empty filter matches all",patientNames.length,getFilteredPatientNames("",10).size());
+	}
+
+	public void TestDatabasePaging_CountMatchesFilteredPages() throws Exception {
+		assertEquals("Checking count of all series of study",seriesNumbers.length,
+			databaseInformationModel.countRecordsForThisInformationEntityWithSpecifiedParent(InformationEntity.SERIES,pagingStudyLocalPrimaryKey,null,null));
+		assertEquals("Checking count of all patients",patientNames.length,
+			databaseInformationModel.countRecordsForThisInformationEntityWithSpecifiedParent(InformationEntity.PATIENT,null,null,null));
+		String[] filters = { "0%", "A_B", "k\\s", "x", "U", "S", "%_\\", "" };
+		for (int f=0; f<filters.length; ++f) {
+			String filter = filters[f];
+			int count = databaseInformationModel.countRecordsForThisInformationEntityWithSpecifiedParent(InformationEntity.PATIENT,null,"PATIENTNAME",filter);
+			for (int pageSize=1; pageSize<=3; ++pageSize) {
+				List<String> names = getFilteredPatientNames(filter,pageSize);
+				assertEquals("Checking count matches total of pages for filter \""+filter+"\" with page size "+pageSize,count,names.size());
+				assertEquals("Checking no patient repeated for filter \""+filter+"\" with page size "+pageSize,count,new HashSet<String>(names).size());
+			}
+		}
+		assertEquals("Checking count of filtered patients",4,
+			databaseInformationModel.countRecordsForThisInformationEntityWithSpecifiedParent(InformationEntity.PATIENT,null,"PATIENTNAME","U"));
+	}
+
+	/**
+	 * <p>Get a child of a node, waiting for its page to be retrieved in the background if necessary.</p>
+	 */
+	private static DatabaseTreeRecord getChildWhenLoaded(DatabaseTreeRecord parent,int index) throws Exception {
+		long giveUpTime = System.currentTimeMillis() + maximumWaitForPage;
+		DatabaseTreeRecord child = (DatabaseTreeRecord)(parent.getChildAt(index));
+		while (child != null && child.isPlaceholder() && System.currentTimeMillis() < giveUpTime) {
+			Thread.currentThread().sleep(waitIntervalWhenSleeping);
+			child = (DatabaseTreeRecord)(parent.getChildAt(index));
+		}
+		assertNotNull("Checking child "+index+" present",child);
+		assertFalse("Checking page of child "+index+" retrieved",child.isPlaceholder());
+		return child;
+	}
+
+	private static DatabaseTreeRecord findChildWithValueContaining(DatabaseTreeRecord parent,String value) {
+		Enumeration e = parent.children();
+		while (e.hasMoreElements()) {
+			DatabaseTreeRecord child = (DatabaseTreeRecord)(e.nextElement());
+			if (child.getValue().indexOf(value) >= 0) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	public void TestDatabasePaging_TreeRecordPages() throws Exception {
+		DatabaseTreeModel treeModel = new DatabaseTreeModel(databaseInformationModel,5/*pageSize*/,2/*numberOfPagesCached*/);
+		DatabaseTreeRecord root = (DatabaseTreeRecord)(treeModel.getRoot());
+		assertEquals("Checking patients counted",patientNames.length,root.getChildCount());
+
+		Set<String> patients = new HashSet<String>();
+		for (int i=0; i<patientNames.length; ++i) {
+			assertTrue("Checking patient "+i+" not repeated",patients.add(getChildWhenLoaded(root,i).getLocalPrimaryKeyValue()));
+		}
+		assertNull("Checking no child beyond those counted",root.getChildAt(patientNames.length));
+
+		DatabaseTreeRecord patient = findChildWithValueContaining(root,pagingPatientName);
+		assertNotNull("Checking patient with many series found",patient);
+		assertEquals("Checking one study",1,patient.getChildCount());
+		DatabaseTreeRecord study = getChildWhenLoaded(patient,0);
+		assertEquals("Checking study with many series",pagingStudyLocalPrimaryKey,study.getLocalPrimaryKeyValue());
+		assertEquals("Checking series counted",seriesNumbers.length,study.getChildCount());
+
+		List<String> expectedOrder = getLocalPrimaryKeys(getAllPagesOfSeries(seriesNumbers.length));
+		List<String> seriesFromPages = new ArrayList<String>();
+		for (int i=seriesNumbers.length-1; i>=0; --i) {		// backwards, so that pages are retrieved out of order and some are evicted before they are used again
+			seriesFromPages.add(0,getChildWhenLoaded(study,i).getLocalPrimaryKeyValue());
+		}
+		assertEquals("Checking series in pages in sorted order",expectedOrder,seriesFromPages);
+
+		List<String> seriesFromEnumeration = new ArrayList<String>();
+		Enumeration e = study.children();
+		while (e.hasMoreElements()) {
+			seriesFromEnumeration.add(((DatabaseTreeRecord)(e.nextElement())).getLocalPrimaryKeyValue());
+		}
+		assertEquals("Checking all series enumerated in sorted order",expectedOrder,seriesFromEnumeration);
+
+		treeModel.setFilter("a_b");
+		assertEquals("Checking only filtered patient counted",1,root.getChildCount());
+		assertTrue("Checking filtered patient retrieved",getChildWhenLoaded(root,0).getValue().indexOf("A_B^Under") >= 0);
+		treeModel.setFilter(null);
+		assertEquals("Checking all patients counted when filter removed",patientNames.length,root.getChildCount());
+	}
+
+}
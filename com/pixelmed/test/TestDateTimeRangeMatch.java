@@ -0,0 +1,263 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.database.DateTimeRangeMatch;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DateAttribute;
+import com.pixelmed.dicom.DateTimeAttribute;
+import com.pixelmed.dicom.ShortStringAttribute;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TimeAttribute;
+
+import java.sql.Timestamp;
+
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.*;
+
+public class TestDateTimeRangeMatch extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestDateTimeRangeMatch(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestDateTimeRangeMatch.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestDateTimeRangeMatch");
+
+		suite.addTest(new TestDateTimeRangeMatch("TestDateTimeRangeMatch_DateOnlyMatchesDateItself"));
+		suite.addTest(new TestDateTimeRangeMatch("TestDateTimeRangeMatch_DateOnlyOpenRange"));
+		suite.addTest(new TestDateTimeRangeMatch("TestDateTimeRangeMatch_DateOnlyIgnoresTimezone"));
+		suite.addTest(new TestDateTimeRangeMatch("TestDateTimeRangeMatch_DateAndTimeCombined"));
+		suite.addTest(new TestDateTimeRangeMatch("TestDateTimeRangeMatch_LessPreciseTimePadded"));
+		suite.addTest(new TestDateTimeRangeMatch("TestDateTimeRangeMatch_OldStyleDelimiters"));
+		suite.addTest(new TestDateTimeRangeMatch("TestDateTimeRangeMatch_TimeOnly"));
+		suite.addTest(new TestDateTimeRangeMatch("TestDateTimeRangeMatch_DateTimePositiveOffset"));
+		suite.addTest(new TestDateTimeRangeMatch("TestDateTimeRangeMatch_DateTimeNegativeOffset"));
+		suite.addTest(new TestDateTimeRangeMatch("TestDateTimeRangeMatch_DateTimeRangeWithNegativeOffsets"));
+		suite.addTest(new TestDateTimeRangeMatch("TestDateTimeRangeMatch_DateTimeRangeOfYears"));
+		suite.addTest(new TestDateTimeRangeMatch("TestDateTimeRangeMatch_DateTimeYearAndMonthUpperBound"));
+		suite.addTest(new TestDateTimeRangeMatch("TestDateTimeRangeMatch_Parameters"));
+		suite.addTest(new TestDateTimeRangeMatch("TestDateTimeRangeMatch_PairMatchedOnlyOnce"));
+
+		return suite;
+	}
+
+	protected void setUp() {
+	}
+
+	protected void tearDown() {
+	}
+
+	private static void addDate(AttributeList list,AttributeTag tag,String value) throws Exception {
+		Attribute a = new DateAttribute(tag); a.addValue(value); list.put(tag,a);
+	}
+
+	private static void addTime(AttributeList list,AttributeTag tag,String value) throws Exception {
+		Attribute a = new TimeAttribute(tag); a.addValue(value); list.put(tag,a);
+	}
+
+	private static void addDateTime(AttributeList list,AttributeTag tag,String value) throws Exception {
+		Attribute a = new DateTimeAttribute(tag); a.addValue(value); list.put(tag,a);
+	}
+
+	private static void addTimezone(AttributeList list,String value) throws Exception {
+		AttributeTag tag = TagFromName.TimezoneOffsetFromUTC;
+		Attribute a = new ShortStringAttribute(tag); a.addValue(value); list.put(tag,a);
+	}
+
+	private static String getStudyMatch(AttributeList list) throws Exception {
+		StringBuffer b = new StringBuffer();
+		assertTrue("Checking match added",DateTimeRangeMatch.addToMatchClause(b,"STUDY","STUDYDATE",TagFromName.StudyDate,list,new HashSet()));
+		return b.toString();
+	}
+
+	private static String getAcquisitionMatch(AttributeList list) throws Exception {
+		StringBuffer b = new StringBuffer();
+		assertTrue("Checking match added",DateTimeRangeMatch.addToMatchClause(b,"INSTANCE","ACQUISITIONDATETIME",TagFromName.AcquisitionDateTime,list,new HashSet()));
+		return b.toString();
+	}
+
+	/**
+	 * @param	value	yyyyMMddHHmmssZ
+	 * @return			the quoted SQL timestamp in the local time zone
+	 */
+	private static String getLocalTimestamp(String value) throws Exception {
+		return "'"+new Timestamp(new SimpleDateFormat("yyyyMMddHHmmssZ").parse(value).getTime())+"'";
+	}
+
+	public void TestDateTimeRangeMatch_DateOnlyMatchesDateItself() throws Exception {
+		AttributeList list = new AttributeList();
+		addDate(list,TagFromName.StudyDate,"20030728");
+		assertEquals("Checking derived date time widened and date itself matched",
+			"STUDY.PM_STUDYDATETIME >= '2003-07-26 00:00:00' AND STUDY.PM_STUDYDATETIME <= '2003-07-30 23:59:59.999999'"
+			+" AND STUDY.STUDYDATE >= '20030728' AND STUDY.STUDYDATE <= '20030728'",
+			getStudyMatch(list));
+	}
+
+	public void TestDateTimeRangeMatch_DateOnlyOpenRange() throws Exception {
+		AttributeList list = new AttributeList();
+		addDate(list,TagFromName.StudyDate,"20030301-");
+		assertEquals("Checking open upper bound",
+			"STUDY.PM_STUDYDATETIME >= '2003-02-27 00:00:00' AND STUDY.PM_STUDYDATETIME <= '2100-01-02 23:59:59.999999'"
+			+" AND STUDY.STUDYDATE >= '20030301' AND STUDY.STUDYDATE <= '20991231'",
+			getStudyMatch(list));
+		list = new AttributeList();
+		addDate(list,TagFromName.StudyDate,"-20030728");
+		assertEquals("Checking open lower bound",
+			"STUDY.PM_STUDYDATETIME >= '1899-12-30 00:00:00' AND STUDY.PM_STUDYDATETIME <= '2003-07-30 23:59:59.999999'"
+			+" AND STUDY.STUDYDATE >= '19000101' AND STUDY.STUDYDATE <= '20030728'",
+			getStudyMatch(list));
+	}
+
+	public void TestDateTimeRangeMatch_DateOnlyIgnoresTimezone() throws Exception {
+		AttributeList list = new AttributeList();
+		addDate(list,TagFromName.StudyDate,"20030728");
+		String withoutTimezone = getStudyMatch(list);
+		addTimezone(list,"+1400");
+		assertEquals("Checking date alone is not moved to another time zone",withoutTimezone,getStudyMatch(list));
+	}
+
+	public void TestDateTimeRangeMatch_DateAndTimeCombined() throws Exception {
+		AttributeList list = new AttributeList();
+		addDate(list,TagFromName.StudyDate,"20030701-20030728");
+		addTime(list,TagFromName.StudyTime,"010101-173500");
+		assertEquals("Checking date and time combined without matching date itself",
+			"STUDY.PM_STUDYDATETIME >= '2003-07-01 01:01:01' AND STUDY.PM_STUDYDATETIME <= '2003-07-28 17:35:00.999999'",
+			getStudyMatch(list));
+	}
+
+	public void TestDateTimeRangeMatch_LessPreciseTimePadded() throws Exception {
+		AttributeList list = new AttributeList();
+		addDate(list,TagFromName.StudyDate,"20030728");
+		addTime(list,TagFromName.StudyTime,"17-18");
+		assertEquals("Checking upper hour matches to end of hour",
+			"STUDY.PM_STUDYDATETIME >= '2003-07-28 17:00:00' AND STUDY.PM_STUDYDATETIME <= '2003-07-28 18:59:59.999999'",
+			getStudyMatch(list));
+	}
+
+	public void TestDateTimeRangeMatch_OldStyleDelimiters() throws Exception {
+		AttributeList list = new AttributeList();
+		addDate(list,TagFromName.StudyDate,"2003.07.28");
+		addTime(list,TagFromName.StudyTime,"17:35:00");
+		assertEquals("Checking delimiters removed",
+			"STUDY.PM_STUDYDATETIME >= '2003-07-28 17:35:00' AND STUDY.PM_STUDYDATETIME <= '2003-07-28 17:35:00.999999'",
+			getStudyMatch(list));
+	}
+
+	public void TestDateTimeRangeMatch_TimeOnly() throws Exception {
+		AttributeList list = new AttributeList();
+		addTime(list,TagFromName.StudyTime,"17-");
+		StringBuffer b = new StringBuffer();
+		assertTrue("Checking match added",DateTimeRangeMatch.addToMatchClause(b,"STUDY","STUDYTIME",TagFromName.StudyTime,list,new HashSet()));
+		assertEquals("Checking time alone matched on time itself",
+			"STUDY.STUDYTIME >= '170000' AND STUDY.STUDYTIME <= '235959.999999'",
+			b.toString());
+	}
+
+	public void TestDateTimeRangeMatch_DateTimePositiveOffset() throws Exception {
+		AttributeList list = new AttributeList();
+		addDateTime(list,TagFromName.AcquisitionDateTime,"20030728120000+0100");
+		String expected = getLocalTimestamp("20030728120000+0100");		// ends with .0'
+		assertEquals("Checking converted to local time zone",
+			"INSTANCE.PM_ACQUISITIONDATETIME >= "+expected+" AND INSTANCE.PM_ACQUISITIONDATETIME <= "+expected.substring(0,expected.length()-3)+".999999'",
+			getAcquisitionMatch(list));
+	}
+
+	public void TestDateTimeRangeMatch_DateTimeNegativeOffset() throws Exception {
+		AttributeList list = new AttributeList();
+		addDateTime(list,TagFromName.AcquisitionDateTime,"20030728120000-0500");
+		String match = getAcquisitionMatch(list);
+		String expected = getLocalTimestamp("20030728120000-0500");
+		assertTrue("Checking negative offset not taken as a range, and converted to local time zone: "+match,
+			match.startsWith("INSTANCE.PM_ACQUISITIONDATETIME >= "+expected+" AND INSTANCE.PM_ACQUISITIONDATETIME <= "+expected.substring(0,expected.length()-3)));
+	}
+
+	public void TestDateTimeRangeMatch_DateTimeRangeWithNegativeOffsets() throws Exception {
+		AttributeList list = new AttributeList();
+		addDateTime(list,TagFromName.AcquisitionDateTime,"20030728120000-0500-20030729120000-0800");
+		String match = getAcquisitionMatch(list);
+		assertTrue("Checking lower bound with negative offset: "+match,
+			match.startsWith("INSTANCE.PM_ACQUISITIONDATETIME >= "+getLocalTimestamp("20030728120000-0500")+" AND "));
+		String upper = getLocalTimestamp("20030729120000-0800");
+		assertTrue("Checking upper bound with negative offset: "+match,
+			match.indexOf("INSTANCE.PM_ACQUISITIONDATETIME <= "+upper.substring(0,upper.length()-3)) != -1);
+
+		list = new AttributeList();
+		addDateTime(list,TagFromName.AcquisitionDateTime,"20030728120000-0500-");
+		match = getAcquisitionMatch(list);
+		assertEquals("Checking open upper bound after negative offset",
+			"INSTANCE.PM_ACQUISITIONDATETIME >= "+getLocalTimestamp("20030728120000-0500")+" AND INSTANCE.PM_ACQUISITIONDATETIME <= '2099-12-31 23:59:59.999999'",
+			match);
+
+		list = new AttributeList();
+		addDateTime(list,TagFromName.AcquisitionDateTime,"-20030729120000-0800");
+		match = getAcquisitionMatch(list);
+		assertTrue("Checking open lower bound before negative offset: "+match,
+			match.startsWith("INSTANCE.PM_ACQUISITIONDATETIME >= '1900-01-01 00:00:00' AND INSTANCE.PM_ACQUISITIONDATETIME <= "+upper.substring(0,upper.length()-3)));
+	}
+
+	public void TestDateTimeRangeMatch_DateTimeRangeOfYears() throws Exception {
+		AttributeList list = new AttributeList();
+		addDateTime(list,TagFromName.AcquisitionDateTime,"2003-2004");
+		assertEquals("Checking range of years is not taken as an offset",
+			"INSTANCE.PM_ACQUISITIONDATETIME >= '2003-01-01 00:00:00' AND INSTANCE.PM_ACQUISITIONDATETIME <= '2004-12-31 23:59:59.999999'",
+			getAcquisitionMatch(list));
+		list = new AttributeList();
+		addDateTime(list,TagFromName.AcquisitionDateTime,"20030728-20040101");
+		assertEquals("Checking range of dates is not taken as an offset",
+			"INSTANCE.PM_ACQUISITIONDATETIME >= '2003-07-28 00:00:00' AND INSTANCE.PM_ACQUISITIONDATETIME <= '2004-01-01 23:59:59.999999'",
+			getAcquisitionMatch(list));
+	}
+
+	public void TestDateTimeRangeMatch_DateTimeYearAndMonthUpperBound() throws Exception {
+		AttributeList list = new AttributeList();
+		addDateTime(list,TagFromName.AcquisitionDateTime,"200401-200402");
+		assertEquals("Checking upper month matches to end of month",
+			"INSTANCE.PM_ACQUISITIONDATETIME >= '2004-01-01 00:00:00' AND INSTANCE.PM_ACQUISITIONDATETIME <= '2004-02-29 23:59:59.999999'",
+			getAcquisitionMatch(list));
+	}
+
+	public void TestDateTimeRangeMatch_Parameters() throws Exception {
+		AttributeList list = new AttributeList();
+		addDate(list,TagFromName.StudyDate,"20030728");
+		StringBuffer b = new StringBuffer();
+		List parameters = new ArrayList();
+		assertTrue("Checking match added",DateTimeRangeMatch.addToMatchClause(b,"STUDY","STUDYDATE",TagFromName.StudyDate,list,new HashSet(),parameters));
+		assertEquals("Checking parameters used",
+			"STUDY.PM_STUDYDATETIME >= ? AND STUDY.PM_STUDYDATETIME <= ? AND STUDY.STUDYDATE >= ? AND STUDY.STUDYDATE <= ?",
+			b.toString());
+		assertEquals("Checking number of parameters",4,parameters.size());
+		assertEquals("Checking lower timestamp",Timestamp.valueOf("2003-07-26 00:00:00"),parameters.get(0));
+		assertEquals("Checking upper timestamp",Timestamp.valueOf("2003-07-30 23:59:59.999999"),parameters.get(1));
+		assertEquals("Checking lower date is not quoted","20030728",parameters.get(2));
+		assertEquals("Checking upper date is not quoted","20030728",parameters.get(3));
+	}
+
+	public void TestDateTimeRangeMatch_PairMatchedOnlyOnce() throws Exception {
+		AttributeList list = new AttributeList();
+		addDate(list,TagFromName.StudyDate,"20030728");
+		addTime(list,TagFromName.StudyTime,"173500");
+		StringBuffer b = new StringBuffer();
+		Set alreadyUsed = new HashSet();
+		assertTrue("Checking match added for date",DateTimeRangeMatch.addToMatchClause(b,"STUDY","STUDYDATE",TagFromName.StudyDate,list,alreadyUsed));
+		String afterDate = b.toString();
+		assertFalse("Checking no match added for time",DateTimeRangeMatch.addToMatchClause(b,"STUDY","STUDYTIME",TagFromName.StudyTime,list,alreadyUsed));
+		assertEquals("Checking clause unchanged",afterDate,b.toString());
+	}
+
+}
@@ -0,0 +1,276 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTagAttribute;
+import com.pixelmed.dicom.CodeStringAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.LongStringAttribute;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+
+import com.pixelmed.network.NetworkApplicationInformation;
+import com.pixelmed.network.NetworkApplicationProperties;
+import com.pixelmed.network.ResponseStatus;
+import com.pixelmed.network.StorageSOPClassSCPDispatcher;
+
+import com.pixelmed.query.FederatedQuery;
+import com.pixelmed.query.QueryResponseGenerator;
+import com.pixelmed.query.QueryResponseGeneratorFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.*;
+
+public class TestFederatedQuery extends TestCase {
+
+	protected static final int    waitIntervalWhenSleeping = 10;	// in ms
+	protected static final int    portA = 11124;
+	protected static final int    portB = 11125;
+	protected static final int    portUnavailable = 11126;		// nothing listening
+	protected static final String aetA = "TESTFEDA";
+	protected static final String aetB = "TESTFEDB";
+	protected static final String aetUnavailable = "TESTFEDC";
+	protected static final String scuAET = "TESTFEDSCU";
+
+	// constructor to support adding tests to suite ...
+
+	public TestFederatedQuery(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestFederatedQuery.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestFederatedQuery");
+
+		suite.addTest(new TestFederatedQuery("TestFederatedQuery_UniqueKeyForMerging"));
+		suite.addTest(new TestFederatedQuery("TestFederatedQuery_MergedOnUniqueKey"));
+		suite.addTest(new TestFederatedQuery("TestFederatedQuery_PatientLevelNotMerged"));
+		suite.addTest(new TestFederatedQuery("TestFederatedQuery_SlowAndUnavailableAEsDoNotDelayResult"));
+
+		return suite;
+	}
+
+	// returns whichever identifiers it was given at the level requested, optionally slowly
+	private static class SyntheticQueryResponseGenerator implements QueryResponseGenerator {
+		private List<AttributeList> studies;
+		private List<AttributeList> patients;
+		private long delayPerMatch;
+		private Iterator<AttributeList> i;
+
+		SyntheticQueryResponseGenerator(List<AttributeList> studies,List<AttributeList> patients,long delayPerMatch) {
+			this.studies=studies;
+			this.patients=patients;
+			this.delayPerMatch=delayPerMatch;
+		}
+
+		public void performQuery(String querySOPClassUID,AttributeList queryIdentifier,boolean relational) {
+			i = Attribute.getSingleStringValueOrEmptyString(queryIdentifier,TagFromName.QueryRetrieveLevel).equals("PATIENT") ? patients.iterator() : studies.iterator();
+		}
+
+		public AttributeList next() {
+			if (!i.hasNext()) {
+				return null;
+			}
+			if (delayPerMatch > 0) {
+				try {
+					Thread.currentThread().sleep(delayPerMatch);
+				}
+				catch (InterruptedException e) {
+				}
+			}
+			return (AttributeList)(i.next().clone());
+		}
+
+		public int getStatus() { return ResponseStatus.Success; }
+
+		public AttributeTagAttribute getOffendingElement() { return null; }
+
+		public String getErrorComment() { return null; }
+
+		public void close() {}
+
+		public boolean allOptionalKeysSuppliedWereSupported() { return true; }
+	}
+
+	private List<StorageSOPClassSCPDispatcher> dispatchers;
+	private List<Thread> dispatcherThreads;
+	private NetworkApplicationInformation networkApplicationInformation;
+
+	protected void setUp() throws Exception {
+		dispatchers = new ArrayList<StorageSOPClassSCPDispatcher>();
+		dispatcherThreads = new ArrayList<Thread>();
+		networkApplicationInformation = new NetworkApplicationInformation();
+	}
+
+	protected void tearDown() throws Exception {
+		for (int i=0; i<dispatchers.size(); ++i) {
+			dispatchers.get(i).shutdown();
+			dispatcherThreads.get(i).join();		// so that the port is free for the next test
+		}
+	}
+
+	private void startSCP(int port,final String aet,final List<AttributeList> studies,final List<AttributeList> patients,final long delayPerMatch) throws Exception {
+		StorageSOPClassSCPDispatcher dispatcher = new StorageSOPClassSCPDispatcher(port,aet,16384,0,0,null/*savedImagesFolder*/,null/*receivedObjectHandler*/,
+			new QueryResponseGeneratorFactory() {
+				public QueryResponseGenerator newInstance() { return new SyntheticQueryResponseGenerator(studies,patients,delayPerMatch); }
+			},
+			null/*retrieveResponseGeneratorFactory*/,null/*networkApplicationInformation*/,false/*secureTransport*/,0/*debugLevel*/);
+		Thread thread = new Thread(dispatcher);
+		thread.start();
+		while (!dispatcher.isReady()) {
+			Thread.currentThread().sleep(waitIntervalWhenSleeping);	// wait until SCP is ready, else later query may fail
+		}
+		dispatchers.add(dispatcher);
+		dispatcherThreads.add(thread);
+		networkApplicationInformation.add(aet,aet,"localhost",port,NetworkApplicationProperties.StudyRootQueryModel,null);
+	}
+
+	private static AttributeList makeStudy(String studyInstanceUID,String studyDescription) throws DicomException {
+		AttributeList list = new AttributeList();
+		{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue("STUDY"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue(studyInstanceUID); list.put(a); }
+		{ Attribute a = new LongStringAttribute(TagFromName.StudyDescription); if (studyDescription != null) { a.addValue(studyDescription); } list.put(a); }
+		return list;
+	}
+
+	private static AttributeList makePatient(String patientID) throws DicomException {
+		AttributeList list = new AttributeList();
+		{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue("PATIENT"); list.put(a); }
+		{ Attribute a = new LongStringAttribute(TagFromName.PatientID); a.addValue(patientID); list.put(a); }
+		return list;
+	}
+
+	private static AttributeList makeStudyIdentifier() throws DicomException {
+		AttributeList identifier = new AttributeList();
+		{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue("STUDY"); identifier.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); identifier.put(a); }
+		{ Attribute a = new LongStringAttribute(TagFromName.StudyDescription); identifier.put(a); }
+		return identifier;
+	}
+
+	private static AttributeList findStudy(List<AttributeList> identifiers,String studyInstanceUID) {
+		Iterator<AttributeList> i = identifiers.iterator();
+		while (i.hasNext()) {
+			AttributeList list = i.next();
+			if (Attribute.getSingleStringValueOrEmptyString(list,TagFromName.StudyInstanceUID).equals(studyInstanceUID)) {
+				return list;
+			}
+		}
+		fail("Checking study "+studyInstanceUID+" returned");
+		return null;
+	}
+
+	private static Set<String> getRetrieveAETitles(AttributeList list) {
+		Set<String> aeTitles = new HashSet<String>();
+		String[] values = Attribute.getStringValues(list,TagFromName.RetrieveAETitle);
+		if (values != null) {
+			for (int i=0; i<values.length; ++i) {
+				aeTitles.add(values[i].trim());
+			}
+		}
+		return aeTitles;
+	}
+
+	private static FederatedQuery.ApplicationEntityOutcome findOutcome(FederatedQuery.Result result,String aet) {
+		Iterator<FederatedQuery.ApplicationEntityOutcome> i = result.getOutcomes().iterator();
+		while (i.hasNext()) {
+			FederatedQuery.ApplicationEntityOutcome outcome = i.next();
+			if (outcome.getCalledAETitle().equals(aet)) {
+				return outcome;
+			}
+		}
+		fail("Checking outcome for "+aet);
+		return null;
+	}
+
+	public void TestFederatedQuery_UniqueKeyForMerging() throws Exception {
+		assertEquals("Checking STUDY",TagFromName.StudyInstanceUID,FederatedQuery.getUniqueKeyForMerging("STUDY"));
+		assertEquals("Checking SERIES",TagFromName.SeriesInstanceUID,FederatedQuery.getUniqueKeyForMerging("SERIES "));
+		assertEquals("Checking IMAGE",TagFromName.SOPInstanceUID,FederatedQuery.getUniqueKeyForMerging("IMAGE"));
+		assertNull("Checking PATIENT not merged",FederatedQuery.getUniqueKeyForMerging("PATIENT"));
+		assertNull("Checking missing level not merged",FederatedQuery.getUniqueKeyForMerging(null));
+	}
+
+	public void TestFederatedQuery_MergedOnUniqueKey() throws Exception {
+		List<AttributeList> studiesA = new ArrayList<AttributeList>();
+		studiesA.add(makeStudy("1.2.3.1","From A"));
+		studiesA.add(makeStudy("1.2.3.2",null));
+		List<AttributeList> studiesB = new ArrayList<AttributeList>();
+		studiesB.add(makeStudy("1.2.3.2","From B"));
+		studiesB.add(makeStudy("1.2.3.3","Only B"));
+		startSCP(portA,aetA,studiesA,new ArrayList<AttributeList>(),0);
+		startSCP(portB,aetB,studiesB,new ArrayList<AttributeList>(),0);
+		FederatedQuery.Result result = new FederatedQuery(networkApplicationInformation,scuAET,30000,0).performQuery(makeStudyIdentifier());
+		assertTrue("Checking complete",result.isComplete());
+		List<AttributeList> identifiers = result.getIdentifiers();
+		assertEquals("Checking study in both AEs merged",3,identifiers.size());
+		AttributeList both = findStudy(identifiers,"1.2.3.2");
+		assertEquals("Checking value missing from first response filled in from second","From B",Attribute.getSingleStringValueOrEmptyString(both,TagFromName.StudyDescription));
+		assertEquals("Checking both AEs listed for merged study",2,getRetrieveAETitles(both).size());
+		assertTrue("Checking first AE listed for merged study",getRetrieveAETitles(both).contains(aetA));
+		assertTrue("Checking second AE listed for merged study",getRetrieveAETitles(both).contains(aetB));
+		AttributeList onlyA = findStudy(identifiers,"1.2.3.1");
+		assertEquals("Checking only one AE listed for unmerged study",1,getRetrieveAETitles(onlyA).size());
+		assertTrue("Checking AE listed for unmerged study",getRetrieveAETitles(onlyA).contains(aetA));
+		assertEquals("Checking number of responses from first AE",2,findOutcome(result,aetA).getNumberOfResponses());
+		assertEquals("Checking number of responses from second AE",2,findOutcome(result,aetB).getNumberOfResponses());
+		assertEquals("Checking status from first AE",ResponseStatus.Success,findOutcome(result,aetA).getStatus());
+	}
+
+	public void TestFederatedQuery_PatientLevelNotMerged() throws Exception {
+		List<AttributeList> patients = new ArrayList<AttributeList>();
+		patients.add(makePatient("SAMEID"));
+		startSCP(portA,aetA,new ArrayList<AttributeList>(),patients,0);
+		startSCP(portB,aetB,new ArrayList<AttributeList>(),patients,0);
+		AttributeList identifier = new AttributeList();
+		{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue("PATIENT"); identifier.put(a); }
+		{ Attribute a = new LongStringAttribute(TagFromName.PatientID); identifier.put(a); }
+		networkApplicationInformation.remove(aetA);
+		networkApplicationInformation.remove(aetB);
+		networkApplicationInformation.add(aetA,aetA,"localhost",portA,NetworkApplicationProperties.PatientRootQueryModel,null);
+		networkApplicationInformation.add(aetB,aetB,"localhost",portB,NetworkApplicationProperties.PatientRootQueryModel,null);
+		FederatedQuery.Result result = new FederatedQuery(networkApplicationInformation,scuAET,30000,0).performQuery(identifier);
+		assertTrue("Checking complete",result.isComplete());
+		assertEquals("Checking same Patient ID from different AEs not merged",2,result.getIdentifiers().size());
+	}
+
+	public void TestFederatedQuery_SlowAndUnavailableAEsDoNotDelayResult() throws Exception {
+		List<AttributeList> studiesA = new ArrayList<AttributeList>();
+		studiesA.add(makeStudy("1.2.3.1","From A"));
+		List<AttributeList> studiesB = new ArrayList<AttributeList>();
+		studiesB.add(makeStudy("1.2.3.2","From B"));
+		studiesB.add(makeStudy("1.2.3.3","From B"));
+		startSCP(portA,aetA,studiesA,new ArrayList<AttributeList>(),0);
+		startSCP(portB,aetB,studiesB,new ArrayList<AttributeList>(),5000);
+		networkApplicationInformation.add(aetUnavailable,aetUnavailable,"localhost",portUnavailable,NetworkApplicationProperties.StudyRootQueryModel,null);
+		FederatedQuery query = new FederatedQuery(networkApplicationInformation,scuAET,30000,0);
+		query.setTimeout(aetB,1000);
+		long startTime = System.currentTimeMillis();
+		FederatedQuery.Result result = query.performQuery(makeStudyIdentifier());
+		long elapsed = System.currentTimeMillis() - startTime;
+		assertTrue("Checking result not delayed by slow AE beyond its timeout",elapsed < 4000);
+		assertFalse("Checking partial",result.isComplete());
+		assertEquals("Checking responses from AE that completed used",1,result.getIdentifiers().size());
+		FederatedQuery.ApplicationEntityOutcome outcomeA = findOutcome(result,aetA);
+		assertTrue("Checking available AE completed",outcomeA.isCompleted());
+		assertTrue("Checking time to first response",outcomeA.getTimeToFirstResponse() >= 0);
+		FederatedQuery.ApplicationEntityOutcome outcomeB = findOutcome(result,aetB);
+		assertFalse("Checking slow AE not completed",outcomeB.isCompleted());
+		assertTrue("Checking slow AE timed out",outcomeB.isTimedOut());
+		FederatedQuery.ApplicationEntityOutcome outcomeUnavailable = findOutcome(result,aetUnavailable);
+		assertFalse("Checking unavailable AE not completed",outcomeUnavailable.isCompleted());
+		assertFalse("Checking unavailable AE failed rather than timed out",outcomeUnavailable.isTimedOut());
+		assertNotNull("Checking reason unavailable AE failed",outcomeUnavailable.getException());
+	}
+
+}
@@ -0,0 +1,202 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.database.DatabaseInformationModel;
+import com.pixelmed.database.InMemoryPatientStudySeriesConcatenationInstanceModel;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.CodeStringAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.InformationEntity;
+import com.pixelmed.dicom.LongStringAttribute;
+import com.pixelmed.dicom.PersonNameAttribute;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.ShortStringAttribute;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+
+import com.pixelmed.query.QueryResponseGenerator;
+
+import java.io.File;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.*;
+
+public class TestInMemoryPatientStudySeriesConcatenationInstanceModel extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestInMemoryPatientStudySeriesConcatenationInstanceModel(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestInMemoryPatientStudySeriesConcatenationInstanceModel.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestInMemoryPatientStudySeriesConcatenationInstanceModel");
+
+		suite.addTest(new TestInMemoryPatientStudySeriesConcatenationInstanceModel("TestInMemoryPatientStudySeriesConcatenationInstanceModel_TablesAndIndexes"));
+		suite.addTest(new TestInMemoryPatientStudySeriesConcatenationInstanceModel("TestInMemoryPatientStudySeriesConcatenationInstanceModel_PersistedWhenReopened"));
+		suite.addTest(new TestInMemoryPatientStudySeriesConcatenationInstanceModel("TestInMemoryPatientStudySeriesConcatenationInstanceModel_MemoryOnlyNotPersisted"));
+
+		return suite;
+	}
+
+	// allow the test to look at the database catalog
+
+	private static class InspectableModel extends InMemoryPatientStudySeriesConcatenationInstanceModel {
+		InspectableModel(String databaseFileName) throws DicomException {
+			super(databaseFileName);
+		}
+
+		Set<String> getStrings(String sql) throws SQLException {
+			Set<String> values = new TreeSet<String>();
+			Connection connection = getConnectionForReading();
+			try {
+				Statement s = connection.createStatement();
+				ResultSet r = s.executeQuery(sql);
+				while (r.next()) {
+					values.add(r.getString(1));
+				}
+				r.close();
+				s.close();
+			}
+			finally {
+				releaseConnection(connection);
+			}
+			return values;
+		}
+	}
+
+	private File directory;
+	private InspectableModel databaseInformationModel;
+
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("TestInMemoryPatientStudySeriesConcatenationInstanceModel",null);
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	protected void tearDown() throws Exception {
+		if (databaseInformationModel != null) {
+			databaseInformationModel.close();
+			databaseInformationModel = null;
+		}
+		File[] files = directory.listFiles();
+		for (int i=0; i<files.length; ++i) {
+			files[i].delete();
+		}
+		directory.delete();
+	}
+
+	private InspectableModel openModel(String databaseFileName) throws DicomException {
+		databaseInformationModel = new InspectableModel(databaseFileName);
+		return databaseInformationModel;
+	}
+
+	private void closeModel() {
+		databaseInformationModel.close();
+		databaseInformationModel = null;
+	}
+
+	private static AttributeList makeInstance(int study,String accessionNumber,String modality) throws DicomException {
+		AttributeList list = new AttributeList();
+		{ Attribute a = new LongStringAttribute(TagFromName.PatientID); a.addValue("TESTINMEMORY"); list.put(a); }
+		{ Attribute a = new PersonNameAttribute(TagFromName.PatientName); a.addValue("Memory^Test"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue("1.2.3.45."+study); list.put(a); }
+		{ Attribute a = new ShortStringAttribute(TagFromName.AccessionNumber); a.addValue(accessionNumber); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SeriesInstanceUID); a.addValue("1.2.3.45."+study+".1"); list.put(a); }
+		{ Attribute a = new CodeStringAttribute(TagFromName.Modality); a.addValue(modality); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID); a.addValue("1.2.3.45."+study+".1.1"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPClassUID); a.addValue(SOPClass.SecondaryCaptureImageStorage); list.put(a); }
+		return list;
+	}
+
+	private static void insertInstances(DatabaseInformationModel model) throws DicomException {
+		model.insertObject(makeInstance(1,"A1","CT"),"/nonexistent/1.dcm",DatabaseInformationModel.FILE_REFERENCED);
+		model.insertObject(makeInstance(2,"A2","MR"),"/nonexistent/2.dcm",DatabaseInformationModel.FILE_REFERENCED);
+	}
+
+	/**
+	 * @return	the StudyInstanceUIDs of the studies that match the accession number and modality
+	 */
+	private static Set<String> queryStudies(DatabaseInformationModel model,String accessionNumber,String modality) throws DicomException {
+		AttributeList identifier = new AttributeList();
+		{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue("STUDY"); identifier.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); identifier.put(a); }
+		{ Attribute a = new ShortStringAttribute(TagFromName.AccessionNumber); if (accessionNumber != null) { a.addValue(accessionNumber); } identifier.put(a); }
+		{ Attribute a = new CodeStringAttribute(TagFromName.ModalitiesInStudy); if (modality != null) { a.addValue(modality); } identifier.put(a); }
+		Set<String> studyInstanceUIDs = new TreeSet<String>();
+		QueryResponseGenerator generator = model.getQueryResponseGeneratorFactory(0).newInstance();
+		generator.performQuery(SOPClass.StudyRootQueryRetrieveInformationModelFind,identifier,false/*relational*/);
+		AttributeList response;
+		while ((response = generator.next()) != null) {
+			studyInstanceUIDs.add(Attribute.getSingleStringValueOrEmptyString(response,TagFromName.StudyInstanceUID));
+		}
+		generator.close();
+		return studyInstanceUIDs;
+	}
+
+	private static Set<String> makeSet(String[] values) {
+		Set<String> set = new TreeSet<String>();
+		for (int i=0; i<values.length; ++i) {
+			set.add(values[i]);
+		}
+		return set;
+	}
+
+	public void TestInMemoryPatientStudySeriesConcatenationInstanceModel_TablesAndIndexes() throws Exception {
+		InspectableModel model = openModel(new File(directory,"testinmemorydb").getPath());
+		assertEquals("Checking all tables are in memory",makeSet(new String[] { "MEMORY" }),
+			model.getStrings("SELECT HSQLDB_TYPE FROM INFORMATION_SCHEMA.SYSTEM_TABLES WHERE TABLE_NAME IN ('PATIENT','STUDY','SERIES','CONCATENATION','INSTANCE')"));
+		Set<String> indexes = model.getStrings("SELECT INDEX_NAME FROM INFORMATION_SCHEMA.SYSTEM_INDEXINFO");
+		assertTrue("Checking canonical Patient's Name indexed",indexes.contains("PATIENT_NAME_CANONICAL_IDX"));
+		assertTrue("Checking phonetic Patient's Name indexed",indexes.contains("PATIENT_NAME_PHONETICCANONICAL_IDX"));
+		assertTrue("Checking Accession Number indexed",indexes.contains("STUDY_ACCESSIONNUMBER_IDX"));
+		assertTrue("Checking Modality indexed",indexes.contains("SERIES_MODALITY_IDX"));
+		assertTrue("Checking UIDs indexed as for other models",indexes.contains("STUDY_UID_IDX"));
+
+		insertInstances(model);
+		assertEquals("Checking query by Accession Number",makeSet(new String[] { "1.2.3.45.2" }),queryStudies(model,"A2",null));
+		assertEquals("Checking query by modality",makeSet(new String[] { "1.2.3.45.1" }),queryStudies(model,null,"CT"));
+		assertEquals("Checking query of all studies",makeSet(new String[] { "1.2.3.45.1", "1.2.3.45.2" }),queryStudies(model,null,null));
+	}
+
+	public void TestInMemoryPatientStudySeriesConcatenationInstanceModel_PersistedWhenReopened() throws Exception {
+		String databaseFileName = new File(directory,"testinmemorydb").getPath();
+		insertInstances(openModel(databaseFileName));
+		closeModel();
+
+		InspectableModel model = openModel(databaseFileName);
+		assertEquals("Checking records loaded when reopened",2,model.findAllAttributeValuesForAllRecordsForThisInformationEntity(InformationEntity.INSTANCE).size());
+		assertEquals("Checking query after reopened",makeSet(new String[] { "1.2.3.45.2" }),queryStudies(model,"A2","MR"));
+
+		model.insertObject(makeInstance(3,"A3","CT"),"/nonexistent/3.dcm",DatabaseInformationModel.FILE_REFERENCED);
+		closeModel();
+		model = openModel(databaseFileName);
+		assertEquals("Checking record inserted after reopening is persisted",makeSet(new String[] { "1.2.3.45.1", "1.2.3.45.3" }),queryStudies(model,null,"CT"));
+	}
+
+	public void TestInMemoryPatientStudySeriesConcatenationInstanceModel_MemoryOnlyNotPersisted() throws Exception {
+		String databaseFileName = "mem:testinmemorydb"+System.currentTimeMillis();
+		insertInstances(openModel(databaseFileName));
+		assertEquals("Checking records inserted",2,databaseInformationModel.findAllAttributeValuesForAllRecordsForThisInformationEntity(InformationEntity.INSTANCE).size());
+		closeModel();
+		assertEquals("Checking nothing written to disk",0,directory.listFiles().length);
+
+		InspectableModel model = openModel(databaseFileName);
+		assertEquals("Checking records not persisted",0,model.findAllAttributeValuesForAllRecordsForThisInformationEntity(InformationEntity.INSTANCE).size());
+	}
+
+}
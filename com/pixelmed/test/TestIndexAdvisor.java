@@ -0,0 +1,126 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.database.IndexAdvisor;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.*;
+
+public class TestIndexAdvisor extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestIndexAdvisor(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestIndexAdvisor.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestIndexAdvisor");
+
+		suite.addTest(new TestIndexAdvisor("TestIndexAdvisor_NotDroppedAfterOneIdleEvaluation"));
+		suite.addTest(new TestIndexAdvisor("TestIndexAdvisor_DroppedAfterEnoughIdleEvaluations"));
+		suite.addTest(new TestIndexAdvisor("TestIndexAdvisor_UseResetsIdleEvaluations"));
+		suite.addTest(new TestIndexAdvisor("TestIndexAdvisor_NotDroppedUntilOldEnough"));
+		suite.addTest(new TestIndexAdvisor("TestIndexAdvisor_CreatedAgainIsYoung"));
+		suite.addTest(new TestIndexAdvisor("TestIndexAdvisor_ForgetsIndexesNoLongerPresent"));
+		suite.addTest(new TestIndexAdvisor("TestIndexAdvisor_DistinctValueCountsCached"));
+		suite.addTest(new TestIndexAdvisor("TestIndexAdvisor_DistinctValueCountsRecountedAfterSignificantChange"));
+
+		return suite;
+	}
+
+	protected void setUp() {
+	}
+
+	protected void tearDown() {
+	}
+
+	private static final long hour = 60*60*1000l;
+
+	public void TestIndexAdvisor_NotDroppedAfterOneIdleEvaluation() throws Exception {
+		IndexAdvisor.IdleIndexTracker tracker = new IndexAdvisor.IdleIndexTracker(3,0);
+		assertFalse("Checking not dropped when first evaluated",tracker.evaluate("PM_AUTO_A",5,0));
+		assertFalse("Checking not dropped after one idle evaluation",tracker.evaluate("PM_AUTO_A",5,hour));
+		assertEquals("Checking idle evaluations",1,tracker.getNumberOfIdleEvaluations("PM_AUTO_A"));
+	}
+
+	public void TestIndexAdvisor_DroppedAfterEnoughIdleEvaluations() throws Exception {
+		IndexAdvisor.IdleIndexTracker tracker = new IndexAdvisor.IdleIndexTracker(3,0);
+		tracker.evaluate("PM_AUTO_A",5,0);
+		tracker.evaluate("PM_AUTO_A",5,hour);
+		assertFalse("Checking not dropped after two idle evaluations",tracker.evaluate("PM_AUTO_A",5,2*hour));
+		assertTrue("Checking dropped after three idle evaluations",tracker.evaluate("PM_AUTO_A",5,3*hour));
+	}
+
+	public void TestIndexAdvisor_UseResetsIdleEvaluations() throws Exception {
+		IndexAdvisor.IdleIndexTracker tracker = new IndexAdvisor.IdleIndexTracker(2,0);
+		tracker.evaluate("PM_AUTO_A",5,0);
+		tracker.evaluate("PM_AUTO_A",5,hour);
+		assertFalse("Checking not dropped when used",tracker.evaluate("PM_AUTO_A",6,2*hour));
+		assertEquals("Checking idle evaluations reset by use",0,tracker.getNumberOfIdleEvaluations("PM_AUTO_A"));
+		assertFalse("Checking not dropped after one idle evaluation since use",tracker.evaluate("PM_AUTO_A",6,3*hour));
+		assertTrue("Checking dropped after two idle evaluations since use",tracker.evaluate("PM_AUTO_A",6,4*hour));
+	}
+
+	public void TestIndexAdvisor_NotDroppedUntilOldEnough() throws Exception {
+		IndexAdvisor.IdleIndexTracker tracker = new IndexAdvisor.IdleIndexTracker(1,24*hour);
+		tracker.created("PM_AUTO_A",0);
+		tracker.evaluate("PM_AUTO_A",0,hour);
+		assertFalse("Checking idle but too young not dropped",tracker.evaluate("PM_AUTO_A",0,2*hour));
+		assertTrue("Checking idle and old enough dropped",tracker.evaluate("PM_AUTO_A",0,24*hour));
+	}
+
+	public void TestIndexAdvisor_CreatedAgainIsYoung() throws Exception {
+		IndexAdvisor.IdleIndexTracker tracker = new IndexAdvisor.IdleIndexTracker(1,24*hour);
+		tracker.created("PM_AUTO_A",0);
+		tracker.evaluate("PM_AUTO_A",0,24*hour);
+		tracker.forget("PM_AUTO_A");
+		tracker.created("PM_AUTO_A",25*hour);
+		tracker.evaluate("PM_AUTO_A",0,26*hour);
+		assertFalse("Checking index created again not dropped while young",tracker.evaluate("PM_AUTO_A",0,27*hour));
+		assertTrue("Checking index created again dropped once old enough",tracker.evaluate("PM_AUTO_A",0,49*hour));
+	}
+
+	public void TestIndexAdvisor_ForgetsIndexesNoLongerPresent() throws Exception {
+		IndexAdvisor.IdleIndexTracker tracker = new IndexAdvisor.IdleIndexTracker(2,0);
+		tracker.evaluate("PM_AUTO_A",5,0);
+		tracker.evaluate("PM_AUTO_A",5,hour);
+		tracker.evaluate("PM_AUTO_B",5,0);
+		tracker.evaluate("PM_AUTO_B",5,hour);
+		Set present = new HashSet();
+		present.add("PM_AUTO_B");
+		tracker.retainOnly(present);
+		assertEquals("Checking index no longer present forgotten",0,tracker.getNumberOfIdleEvaluations("PM_AUTO_A"));
+		assertEquals("Checking index still present remembered",1,tracker.getNumberOfIdleEvaluations("PM_AUTO_B"));
+		assertFalse("Checking index present again starts over",tracker.evaluate("PM_AUTO_A",5,2*hour));
+	}
+
+	public void TestIndexAdvisor_DistinctValueCountsCached() throws Exception {
+		IndexAdvisor.DistinctValueCountCache cache = new IndexAdvisor.DistinctValueCountCache(0.1);
+		assertNull("Checking nothing cached",cache.get("SERIES.MODALITY",10000));
+		cache.put("SERIES.MODALITY",10000,new long[] { 9000, 12 });
+		long[] counts = cache.get("SERIES.MODALITY",10500);
+		assertNotNull("Checking cached after small change in number of rows",counts);
+		assertEquals("Checking number of values",9000,counts[0]);
+		assertEquals("Checking number of distinct values",12,counts[1]);
+		assertNull("Checking other column not cached",cache.get("SERIES.BODYPARTEXAMINED",10000));
+	}
+
+	public void TestIndexAdvisor_DistinctValueCountsRecountedAfterSignificantChange() throws Exception {
+		IndexAdvisor.DistinctValueCountCache cache = new IndexAdvisor.DistinctValueCountCache(0.1);
+		cache.put("SERIES.MODALITY",10000,new long[] { 9000, 12 });
+		assertNull("Checking counted again after many rows added",cache.get("SERIES.MODALITY",11001));
+		assertNull("Checking counted again after many rows deleted",cache.get("SERIES.MODALITY",8999));
+		assertNotNull("Checking still cached at limit",cache.get("SERIES.MODALITY",11000));
+		cache.setMinimumFractionOfRowsChanged(0.01);
+		assertNull("Checking smaller fraction takes effect",cache.get("SERIES.MODALITY",10500));
+	}
+
+}
@@ -0,0 +1,202 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.apps.JournaledSendQueue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.*;
+
+public class TestJournaledSendQueue extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestJournaledSendQueue(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestJournaledSendQueue.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestJournaledSendQueue");
+
+		suite.addTest(new TestJournaledSendQueue("TestJournaledSendQueue_PendingEntriesReplayed"));
+		suite.addTest(new TestJournaledSendQueue("TestJournaledSendQueue_RemovalInJournalBeforeClose"));
+		suite.addTest(new TestJournaledSendQueue("TestJournaledSendQueue_PartialLastAddRecordIgnored"));
+		suite.addTest(new TestJournaledSendQueue("TestJournaledSendQueue_PartialLastRemoveRecordIgnored"));
+		suite.addTest(new TestJournaledSendQueue("TestJournaledSendQueue_CorruptRecordIgnored"));
+		suite.addTest(new TestJournaledSendQueue("TestJournaledSendQueue_Compaction"));
+		suite.addTest(new TestJournaledSendQueue("TestJournaledSendQueue_IncompleteNewJournalDiscarded"));
+		suite.addTest(new TestJournaledSendQueue("TestJournaledSendQueue_CompleteNewJournalRecovered"));
+
+		return suite;
+	}
+
+	// minimumRemovalsBeforeCompaction is protected, so set it from a subclass
+	private static class CompactionThreshold extends JournaledSendQueue {
+		private CompactionThreshold() throws java.io.IOException { super(null,0,0); }
+
+		static int set(int threshold) {
+			int previous = minimumRemovalsBeforeCompaction;
+			minimumRemovalsBeforeCompaction = threshold;
+			return previous;
+		}
+	}
+
+	private File directory;
+	private File journalFile;
+	private JournaledSendQueue queue;
+	private int previousMinimumRemovalsBeforeCompaction;
+
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("TestJournaledSendQueue",null);
+		directory.delete();
+		directory.mkdirs();
+		journalFile = new File(directory,"queue.journal");
+		previousMinimumRemovalsBeforeCompaction = CompactionThreshold.set(1000);
+	}
+
+	protected void tearDown() throws Exception {
+		if (queue != null) {
+			queue.close();
+			queue = null;
+		}
+		CompactionThreshold.set(previousMinimumRemovalsBeforeCompaction);
+		File[] files = directory.listFiles();
+		for (int i=0; i<files.length; ++i) {
+			files[i].delete();
+		}
+		directory.delete();
+	}
+
+	private JournaledSendQueue open() throws Exception {
+		if (queue != null) {
+			queue.close();
+		}
+		queue = new JournaledSendQueue(journalFile,1000,60000);
+		return queue;
+	}
+
+	private static void write(File file,String content) throws Exception {
+		OutputStream out = new FileOutputStream(file);
+		out.write(content.getBytes("UTF-8"));
+		out.close();
+	}
+
+	private static List<String> readLines(File file) throws Exception {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),"UTF-8"));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lines.add(line);
+		}
+		reader.close();
+		return lines;
+	}
+
+	private static JournaledSendQueue.Entry take(JournaledSendQueue queue,String sopInstanceUID) throws Exception {
+		List<JournaledSendQueue.Entry> entries = queue.take(1,0);		// oldest first
+		assertEquals("Checking one entry taken",1,entries.size());
+		JournaledSendQueue.Entry entry = entries.get(0);
+		assertEquals("Checking oldest entry taken",sopInstanceUID,entry.getSOPInstanceUID());
+		return entry;
+	}
+
+	public void TestJournaledSendQueue_PendingEntriesReplayed() throws Exception {
+		open();
+		assertTrue("Checking added",queue.add("1.2.3.1","/f/1"));
+		assertTrue("Checking added",queue.add("1.2.3.2","/f/2"));
+		assertTrue("Checking added",queue.add("1.2.3.3","/f/3"));
+		assertFalse("Checking duplicate not added",queue.add("1.2.3.2","/f/2"));
+		queue.succeeded(take(queue,"1.2.3.1"));
+		open();
+		assertEquals("Checking pending entries replayed",2,queue.size());
+		List<String> fileNames = queue.getFileNames();
+		assertEquals("Checking first pending entry","/f/2",fileNames.get(0));
+		assertEquals("Checking second pending entry","/f/3",fileNames.get(1));
+	}
+
+	public void TestJournaledSendQueue_RemovalInJournalBeforeClose() throws Exception {
+		open();
+		queue.add("1.2.3.1","/f/1");
+		queue.succeeded(take(queue,"1.2.3.1"));
+		List<String> lines = readLines(journalFile);		// without closing, as if crashed
+		assertEquals("Checking removal written to journal","-\t1.2.3.1",lines.get(lines.size()-1));
+	}
+
+	public void TestJournaledSendQueue_PartialLastAddRecordIgnored() throws Exception {
+		// looks complete, but the enqueued time may be truncated, and add() never returned so the caller has not relied on it
+		write(journalFile,"+\t1.2.3.1\t/f/1\t1325000000000\n+\t1.2.3.2\t/f/2\t13");
+		open();
+		assertEquals("Checking only complete record replayed",1,queue.size());
+		assertEquals("Checking complete record","/f/1",queue.getFileNames().get(0));
+		open();
+		assertEquals("Checking compacted journal still has complete record",1,queue.size());
+		assertTrue("Checking partially added entry can be added again",queue.add("1.2.3.2","/f/2"));
+	}
+
+	public void TestJournaledSendQueue_PartialLastRemoveRecordIgnored() throws Exception {
+		write(journalFile,"+\t1.2.3.1\t/f/1\t1325000000000\n+\t1.2.3.10\t/f/10\t1325000000000\n-\t1.2.3.1");		// may be truncated 1.2.3.10
+		open();
+		assertEquals("Checking partial removal not applied",2,queue.size());
+	}
+
+	public void TestJournaledSendQueue_CorruptRecordIgnored() throws Exception {
+		write(journalFile,"+\t1.2.3.1\t/f/1\t1325000000000\n+\t1.2.3.2\n?\t1.2.3.3\n+\t1.2.3.4\t/f/4\t1325000000000\n");
+		open();
+		assertEquals("Checking records after corrupt records still replayed",2,queue.size());
+		assertEquals("Checking first complete record","/f/1",queue.getFileNames().get(0));
+		assertEquals("Checking second complete record","/f/4",queue.getFileNames().get(1));
+	}
+
+	public void TestJournaledSendQueue_Compaction() throws Exception {
+		CompactionThreshold.set(2);
+		open();
+		for (int i=1; i<=5; ++i) {
+			queue.add("1.2.3."+i,"/f/"+i);
+		}
+		assertEquals("Checking additions journaled",5,readLines(journalFile).size());
+		queue.succeeded(take(queue,"1.2.3.1"));
+		queue.succeeded(take(queue,"1.2.3.2"));
+		assertEquals("Checking not compacted while removals fewer than pending entries",7,readLines(journalFile).size());
+		queue.succeeded(take(queue,"1.2.3.3"));
+		List<String> lines = readLines(journalFile);
+		assertEquals("Checking compacted to pending entries once removals exceed them",2,lines.size());
+		assertTrue("Checking first pending entry kept",lines.get(0).startsWith("+\t1.2.3.4\t/f/4\t"));
+		assertTrue("Checking second pending entry kept",lines.get(1).startsWith("+\t1.2.3.5\t/f/5\t"));
+		assertFalse("Checking no new journal left behind",new File(journalFile.getPath()+".new").exists());
+		queue.succeeded(take(queue,"1.2.3.4"));
+		assertEquals("Checking appended to compacted journal",3,readLines(journalFile).size());
+		open();
+		assertEquals("Checking pending entries replayed from compacted journal",1,queue.size());
+		assertEquals("Checking pending entry","/f/5",queue.getFileNames().get(0));
+	}
+
+	public void TestJournaledSendQueue_IncompleteNewJournalDiscarded() throws Exception {
+		write(journalFile,"+\t1.2.3.1\t/f/1\t1325000000000\n+\t1.2.3.2\t/f/2\t1325000000000\n");
+		write(new File(journalFile.getPath()+".new"),"+\t1.2.3.1\t/f/1\t13");
+		open();
+		assertEquals("Checking old journal used when crashed while compacting",2,queue.size());
+		assertFalse("Checking new journal removed",new File(journalFile.getPath()+".new").exists());
+	}
+
+	public void TestJournaledSendQueue_CompleteNewJournalRecovered() throws Exception {
+		write(new File(journalFile.getPath()+".new"),"+\t1.2.3.2\t/f/2\t1325000000000\n");
+		open();
+		assertEquals("Checking new journal used when crashed before renaming it",1,queue.size());
+		assertEquals("Checking pending entry","/f/2",queue.getFileNames().get(0));
+		assertFalse("Checking new journal renamed",new File(journalFile.getPath()+".new").exists());
+	}
+
+}
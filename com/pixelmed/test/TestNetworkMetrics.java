@@ -0,0 +1,209 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.SetOfDicomFiles;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+
+import com.pixelmed.network.DicomNetworkException;
+import com.pixelmed.network.NetworkMetrics;
+import com.pixelmed.network.ReceivedObjectHandler;
+import com.pixelmed.network.StorageSOPClassSCPDispatcher;
+import com.pixelmed.network.StorageSOPClassSCU;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import junit.framework.*;
+
+public class TestNetworkMetrics extends TestCase {
+
+	protected static final int    waitIntervalWhenSleeping = 10;	// in ms
+	protected static final int    port = 11130;
+	protected static final String scpAET = "TESTMETRICSSCP";
+	protected static final String scuAET = "TESTMETRICSSCU";
+
+	// constructor to support adding tests to suite ...
+
+	public TestNetworkMetrics(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestNetworkMetrics.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestNetworkMetrics");
+
+		suite.addTest(new TestNetworkMetrics("TestNetworkMetrics_LatencyHistogram"));
+		suite.addTest(new TestNetworkMetrics("TestNetworkMetrics_ReportCumulativeBuckets"));
+		suite.addTest(new TestNetworkMetrics("TestNetworkMetrics_StoreCounted"));
+		suite.addTest(new TestNetworkMetrics("TestNetworkMetrics_RegisteredAsMBean"));
+
+		return suite;
+	}
+
+	protected void setUp() {
+		NetworkMetrics.getNetworkMetrics().reset();
+	}
+
+	protected void tearDown() {
+	}
+
+	private static final long nanosecondsPerMillisecond = 1000000l;
+
+	private static long getReportValue(String report,String name) {
+		String prefix = name+" ";
+		int start = report.startsWith(prefix) ? 0 : report.indexOf("\n"+prefix);
+		assertTrue("Checking "+name+" in report",start >= 0);
+		if (start > 0) {
+			++start;
+		}
+		start += prefix.length();
+		return Long.parseLong(report.substring(start,report.indexOf('\n',start)));
+	}
+
+	public void TestNetworkMetrics_LatencyHistogram() throws Exception {
+		NetworkMetrics.LatencyHistogram histogram = new NetworkMetrics.LatencyHistogram();
+		assertEquals("Checking empty count",0,histogram.getCount());
+		assertEquals("Checking empty mean",0d,histogram.getMeanInMilliseconds(),0d);
+		assertEquals("Checking empty percentile",0d,histogram.getPercentileInMilliseconds(0.95),0d);
+		for (int i=0; i<18; ++i) {
+			histogram.record(1*nanosecondsPerMillisecond);			// first bucket
+		}
+		histogram.record(40*nanosecondsPerMillisecond);			// in the bucket up to 50 ms
+		histogram.record(90000*nanosecondsPerMillisecond);		// beyond the last bucket
+		assertEquals("Checking count",20,histogram.getCount());
+		assertEquals("Checking mean",(18+40+90000)/20d,histogram.getMeanInMilliseconds(),0.001);
+		assertEquals("Checking maximum",90000d,histogram.getMaximumInMilliseconds(),0.001);
+		assertEquals("Checking median is upper bound of its bucket",1d,histogram.getPercentileInMilliseconds(0.5),0.001);
+		assertEquals("Checking 95th percentile is upper bound of its bucket",50d,histogram.getPercentileInMilliseconds(0.95),0.001);
+		assertEquals("Checking 100th percentile beyond last bucket is maximum",90000d,histogram.getPercentileInMilliseconds(1.0),0.001);
+	}
+
+	public void TestNetworkMetrics_ReportCumulativeBuckets() throws Exception {
+		NetworkMetrics networkMetrics = NetworkMetrics.getNetworkMetrics();
+		networkMetrics.timeSpent(NetworkMetrics.timingDiskWrite,3*nanosecondsPerMillisecond);
+		networkMetrics.timeSpent(NetworkMetrics.timingDiskWrite,3*nanosecondsPerMillisecond);
+		networkMetrics.timeSpent(NetworkMetrics.timingDiskWrite,700*nanosecondsPerMillisecond);
+		networkMetrics.pDataPDUSent(100);
+		networkMetrics.pDataPDUSent(50);
+		String report = networkMetrics.getReport();
+		String labels = "activity=\""+NetworkMetrics.timingDiskWrite+"\"";
+		assertEquals("Checking bucket below all",0,getReportValue(report,"dicom_time_spent_bucket{"+labels+",le=\"2\"}"));
+		assertEquals("Checking bucket containing two",2,getReportValue(report,"dicom_time_spent_bucket{"+labels+",le=\"5\"}"));
+		assertEquals("Checking buckets are cumulative",2,getReportValue(report,"dicom_time_spent_bucket{"+labels+",le=\"500\"}"));
+		assertEquals("Checking bucket containing all",3,getReportValue(report,"dicom_time_spent_bucket{"+labels+",le=\"1000\"}"));
+		assertEquals("Checking overflow bucket",3,getReportValue(report,"dicom_time_spent_bucket{"+labels+",le=\"+Inf\"}"));
+		assertEquals("Checking count",3,getReportValue(report,"dicom_time_spent_count{"+labels+"}"));
+		assertEquals("Checking sum",706,getReportValue(report,"dicom_time_spent_sum_ms{"+labels+"}"));
+		assertEquals("Checking PDUs sent",2,getReportValue(report,"dicom_pdata_pdus_sent"));
+		assertEquals("Checking bytes sent",150,getReportValue(report,"dicom_pdata_bytes_sent"));
+		networkMetrics.reset();
+		report = networkMetrics.getReport();
+		assertEquals("Checking reset",0,getReportValue(report,"dicom_pdata_pdus_sent"));
+		assertEquals("Checking histograms removed by reset",-1,report.indexOf("dicom_time_spent"));
+	}
+
+	private volatile long receivedObjectHandlersInProgressDuringHandler;
+	private volatile long associationsInProgressDuringHandler;
+	private volatile boolean received;
+
+	private class OurReceivedObjectHandler extends ReceivedObjectHandler {
+		public void sendReceivedObjectIndication(String dicomFileName,String transferSyntax,String callingAETitle) throws DicomNetworkException, DicomException, IOException {
+			NetworkMetrics networkMetrics = NetworkMetrics.getNetworkMetrics();
+			receivedObjectHandlersInProgressDuringHandler = networkMetrics.getReceivedObjectHandlersInProgress();
+			associationsInProgressDuringHandler = networkMetrics.getAssociationsInProgress();
+			if (dicomFileName != null) {
+				new File(dicomFileName).delete();
+			}
+			received = true;
+		}
+	}
+
+	public void TestNetworkMetrics_StoreCounted() throws Exception {
+		File directory = File.createTempFile("TestNetworkMetrics",null);
+		directory.delete();
+		directory.mkdirs();
+		StorageSOPClassSCPDispatcher storageSOPClassSCPDispatcher = new StorageSOPClassSCPDispatcher(port,scpAET,directory,new OurReceivedObjectHandler(),0/*debugLevel*/);
+		Thread storageSOPClassSCPDispatcherThread = new Thread(storageSOPClassSCPDispatcher);
+		storageSOPClassSCPDispatcherThread.start();
+		try {
+			while (!storageSOPClassSCPDispatcher.isReady()) {
+				Thread.currentThread().sleep(waitIntervalWhenSleeping);	// wait until SCP is ready, else later send may fail
+			}
+
+			String sopInstanceUID = "1.2.3.4.7.1";
+			AttributeList list = new AttributeList();
+			{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPClassUID); a.addValue(SOPClass.SecondaryCaptureImageStorage); list.put(a); }
+			{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID); a.addValue(sopInstanceUID); list.put(a); }
+			FileMetaInformation.addFileMetaInformation(list,TransferSyntax.ExplicitVRLittleEndian,scuAET);
+			File file = new File(directory,"send.dcm");
+			list.write(file,TransferSyntax.ExplicitVRLittleEndian,true/*useMeta*/,true/*useBufferedStream*/);
+			SetOfDicomFiles dicomFiles = new SetOfDicomFiles();
+			dicomFiles.add(file.getPath(),SOPClass.SecondaryCaptureImageStorage,sopInstanceUID,TransferSyntax.ExplicitVRLittleEndian);
+
+			new StorageSOPClassSCU("localhost",port,scpAET,scuAET,dicomFiles,0/*compressionLevel*/,null/*multipleInstanceTransferStatusHandler*/,0/*debugLevel*/);
+
+			NetworkMetrics networkMetrics = NetworkMetrics.getNetworkMetrics();
+			String scpLatency = "dicom_operation_latency_count{role=\""+NetworkMetrics.roleSCP+"\",operation=\"C-STORE-RQ\"}";
+			long giveUpAt = System.currentTimeMillis() + 10000;
+			while ((networkMetrics.getReport().indexOf(scpLatency) == -1 || networkMetrics.getAssociationsInProgress() > 0) && System.currentTimeMillis() < giveUpAt) {
+				Thread.currentThread().sleep(waitIntervalWhenSleeping);		// the SCP records after sending the response
+			}
+			assertTrue("Checking received",received);
+			assertEquals("Checking handler counted while in progress",1,receivedObjectHandlersInProgressDuringHandler);
+			assertEquals("Checking association counted while in progress",1,associationsInProgressDuringHandler);
+			assertEquals("Checking nothing left in progress",0,networkMetrics.getReceivedObjectHandlersInProgress());
+			assertEquals("Checking no association left in progress",0,networkMetrics.getAssociationsInProgress());
+			assertEquals("Checking association accepted",1,networkMetrics.getAssociationsAccepted());
+			assertEquals("Checking association initiated",1,networkMetrics.getAssociationsInitiated());
+			assertEquals("Checking nothing rejected",0,networkMetrics.getAssociationsRejected());
+			assertTrue("Checking request and response PDUs sent",networkMetrics.getPDataPDUsSent() >= 2);
+			// both ends are in this JVM, so everything sent by one is received by the other
+			assertEquals("Checking PDUs received",networkMetrics.getPDataPDUsSent(),networkMetrics.getPDataPDUsReceived());
+			assertEquals("Checking bytes received",networkMetrics.getPDataBytesSent(),networkMetrics.getPDataBytesReceived());
+
+			String report = networkMetrics.getReport();
+			assertEquals("Checking accepted per AE",1,getReportValue(report,"dicom_associations_accepted{ae=\""+scuAET+"\"}"));
+			assertEquals("Checking initiated per AE",1,getReportValue(report,"dicom_associations_initiated{ae=\""+scpAET+"\"}"));
+			assertEquals("Checking SCP latency recorded",1,getReportValue(report,scpLatency));
+			assertEquals("Checking SCU latency recorded",1,getReportValue(report,"dicom_operation_latency_count{role=\""+NetworkMetrics.roleSCU+"\",operation=\"C-STORE-RQ\"}"));
+			assertEquals("Checking SCP latency per AE recorded",1,getReportValue(report,"dicom_operation_latency_per_ae_count{role=\""+NetworkMetrics.roleSCP+"\",operation=\"C-STORE-RQ\",ae=\""+scuAET+"\"}"));
+			assertEquals("Checking disk write recorded",1,getReportValue(report,"dicom_time_spent_count{activity=\""+NetworkMetrics.timingDiskWrite+"\"}"));
+			assertEquals("Checking handler time recorded",1,getReportValue(report,"dicom_time_spent_count{activity=\""+NetworkMetrics.timingReceivedObjectHandler+"\"}"));
+		}
+		finally {
+			storageSOPClassSCPDispatcher.shutdown();
+			storageSOPClassSCPDispatcherThread.join();		// so that the port is free for the next test
+			File[] files = directory.listFiles();
+			for (int i=0; i<files.length; ++i) {
+				files[i].delete();
+			}
+			directory.delete();
+		}
+	}
+
+	public void TestNetworkMetrics_RegisteredAsMBean() throws Exception {
+		NetworkMetrics networkMetrics = NetworkMetrics.getNetworkMetrics();
+		networkMetrics.pDataPDUReceived(10);
+		ObjectName name = new ObjectName(NetworkMetrics.objectName);
+		assertTrue("Checking registered",ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+		assertEquals("Checking attribute",new Long(1),ManagementFactory.getPlatformMBeanServer().getAttribute(name,"PDataPDUsReceived"));
+		ManagementFactory.getPlatformMBeanServer().invoke(name,"reset",null,null);
+		assertEquals("Checking reset by operation",0,networkMetrics.getPDataPDUsReceived());
+	}
+
+}
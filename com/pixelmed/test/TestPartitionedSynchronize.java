@@ -0,0 +1,119 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.apps.PartitionedSynchronizeFromRemoteSCP;
+
+import com.pixelmed.dicom.DicomException;
+
+import java.util.List;
+
+import junit.framework.*;
+
+public class TestPartitionedSynchronize extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestPartitionedSynchronize(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestPartitionedSynchronize.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestPartitionedSynchronize");
+
+		suite.addTest(new TestPartitionedSynchronize("TestPartitionedSynchronize_SingleDay"));
+		suite.addTest(new TestPartitionedSynchronize("TestPartitionedSynchronize_DaysPerPartition"));
+		suite.addTest(new TestPartitionedSynchronize("TestPartitionedSynchronize_LastPartitionTruncated"));
+		suite.addTest(new TestPartitionedSynchronize("TestPartitionedSynchronize_AcrossMonthAndYear"));
+		suite.addTest(new TestPartitionedSynchronize("TestPartitionedSynchronize_LeapYear"));
+		suite.addTest(new TestPartitionedSynchronize("TestPartitionedSynchronize_ContiguousAndNonOverlapping"));
+		suite.addTest(new TestPartitionedSynchronize("TestPartitionedSynchronize_EarliestAfterLatest"));
+		suite.addTest(new TestPartitionedSynchronize("TestPartitionedSynchronize_BadArguments"));
+
+		return suite;
+	}
+
+	protected void setUp() {
+	}
+
+	protected void tearDown() {
+	}
+
+	public void TestPartitionedSynchronize_SingleDay() throws Exception {
+		List<String> partitions = PartitionedSynchronizeFromRemoteSCP.getPartitions("20120101","20120101",1);
+		assertEquals("Checking number of partitions",1,partitions.size());
+		assertEquals("Checking partition","20120101-20120101",partitions.get(0));
+	}
+
+	public void TestPartitionedSynchronize_DaysPerPartition() throws Exception {
+		List<String> partitions = PartitionedSynchronizeFromRemoteSCP.getPartitions("20120101","20120109",3);
+		assertEquals("Checking number of partitions",3,partitions.size());
+		assertEquals("Checking first partition","20120101-20120103",partitions.get(0));
+		assertEquals("Checking second partition","20120104-20120106",partitions.get(1));
+		assertEquals("Checking third partition","20120107-20120109",partitions.get(2));
+	}
+
+	public void TestPartitionedSynchronize_LastPartitionTruncated() throws Exception {
+		List<String> partitions = PartitionedSynchronizeFromRemoteSCP.getPartitions("20120101","20120110",7);
+		assertEquals("Checking number of partitions",2,partitions.size());
+		assertEquals("Checking first partition","20120101-20120107",partitions.get(0));
+		assertEquals("Checking last partition ends at latest date","20120108-20120110",partitions.get(1));
+	}
+
+	public void TestPartitionedSynchronize_AcrossMonthAndYear() throws Exception {
+		List<String> partitions = PartitionedSynchronizeFromRemoteSCP.getPartitions("20111230","20120102",2);
+		assertEquals("Checking number of partitions",2,partitions.size());
+		assertEquals("Checking partition at end of year","20111230-20111231",partitions.get(0));
+		assertEquals("Checking partition at start of year","20120101-20120102",partitions.get(1));
+	}
+
+	public void TestPartitionedSynchronize_LeapYear() throws Exception {
+		List<String> partitions = PartitionedSynchronizeFromRemoteSCP.getPartitions("20120228","20120301",1);
+		assertEquals("Checking number of days including 29th February",3,partitions.size());
+		assertEquals("Checking 29th February","20120229-20120229",partitions.get(1));
+	}
+
+	public void TestPartitionedSynchronize_ContiguousAndNonOverlapping() throws Exception {
+		List<String> partitions = PartitionedSynchronizeFromRemoteSCP.getPartitions("20000101","20121231",30);
+		assertEquals("Checking first partition starts at earliest date","20000101",partitions.get(0).substring(0,8));
+		assertEquals("Checking last partition ends at latest date","20121231",partitions.get(partitions.size()-1).substring(9));
+		for (int i=1; i<partitions.size(); ++i) {
+			String previousEnd = partitions.get(i-1).substring(9);
+			String start = partitions.get(i).substring(0,8);
+			assertTrue("Checking partition "+i+" starts after previous ends",start.compareTo(previousEnd) > 0);
+			assertEquals("Checking partition "+i+" starts on the day after previous ends",
+				2,PartitionedSynchronizeFromRemoteSCP.getPartitions(previousEnd,start,1).size());
+		}
+	}
+
+	public void TestPartitionedSynchronize_EarliestAfterLatest() throws Exception {
+		List<String> partitions = PartitionedSynchronizeFromRemoteSCP.getPartitions("20120201","20120101",1);
+		assertEquals("Checking no partitions",0,partitions.size());
+	}
+
+	public void TestPartitionedSynchronize_BadArguments() throws Exception {
+		try {
+			PartitionedSynchronizeFromRemoteSCP.getPartitions("20120101","20120131",0);
+			fail("Expected DicomException for zero days per partition");
+		}
+		catch (DicomException e) {
+		}
+		try {
+			PartitionedSynchronizeFromRemoteSCP.getPartitions("20120230","20120331",1);
+			fail("Expected DicomException for invalid date");
+		}
+		catch (DicomException e) {
+		}
+		try {
+			PartitionedSynchronizeFromRemoteSCP.getPartitions("2012","20120331",1);
+			fail("Expected DicomException for incomplete date");
+		}
+		catch (DicomException e) {
+		}
+	}
+
+}
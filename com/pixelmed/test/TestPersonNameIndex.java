@@ -0,0 +1,135 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.database.PersonNameIndex;
+
+import com.pixelmed.utils.PhoneticStringEncoder;
+import com.pixelmed.utils.PhoneticStringEncoderException;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.*;
+
+public class TestPersonNameIndex extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestPersonNameIndex(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestPersonNameIndex.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestPersonNameIndex");
+
+		suite.addTest(new TestPersonNameIndex("TestPersonNameIndex_WordsOfComponents"));
+		suite.addTest(new TestPersonNameIndex("TestPersonNameIndex_WordsOfAllComponentGroups"));
+		suite.addTest(new TestPersonNameIndex("TestPersonNameIndex_WordsNone"));
+		suite.addTest(new TestPersonNameIndex("TestPersonNameIndex_KeysAndWeights"));
+		suite.addTest(new TestPersonNameIndex("TestPersonNameIndex_PhoneticKeys"));
+		suite.addTest(new TestPersonNameIndex("TestPersonNameIndex_RequiredTrigramKeys"));
+		suite.addTest(new TestPersonNameIndex("TestPersonNameIndex_RequiredTrigramKeysTooShort"));
+		suite.addTest(new TestPersonNameIndex("TestPersonNameIndex_RequiredTrigramKeysStored"));
+
+		return suite;
+	}
+
+	protected void setUp() {
+	}
+
+	protected void tearDown() {
+	}
+
+	private static void assertWords(String message,String[] expected,Set words) {
+		assertEquals(message+" number of words",expected.length,words.size());
+		Iterator i = words.iterator();
+		for (int w=0; w<expected.length; ++w) {
+			assertEquals(message+" word "+w,expected[w],i.next());
+		}
+	}
+
+	public void TestPersonNameIndex_WordsOfComponents() throws Exception {
+		assertWords("Checking components split and upper cased",new String[] { "SMITH", "JOHN", "ROBERT", "DR" },
+			PersonNameIndex.getWords("Smith^John^Robert^Dr"));
+		assertWords("Checking other delimiters and wildcards split, and duplicates removed",new String[] { "SMITH", "JONES", "JO" },
+			PersonNameIndex.getWords("Smith-Jones^Jo*^smith"));
+	}
+
+	public void TestPersonNameIndex_WordsOfAllComponentGroups() throws Exception {
+		assertWords("Checking ideographic and phonetic groups included",new String[] { "YAMADA", "TAROU", "山田", "太郎", "やまだ", "たろう" },
+			PersonNameIndex.getWords("Yamada^Tarou=山田^太郎=やまだ^たろう"));
+		assertWords("Checking empty first group",new String[] { "山田", "太郎" },
+			PersonNameIndex.getWords("=山田^太郎"));
+	}
+
+	public void TestPersonNameIndex_WordsNone() throws Exception {
+		assertTrue("Checking null",PersonNameIndex.getWords(null).isEmpty());
+		assertTrue("Checking only delimiters and wildcards",PersonNameIndex.getWords("^*=?").isEmpty());
+	}
+
+	public void TestPersonNameIndex_KeysAndWeights() throws Exception {
+		Map keys = PersonNameIndex.getKeys("Smith^Jo");
+		assertEquals("Checking word weight",new Integer(4),keys.get("W:SMITH"));
+		assertEquals("Checking short word still a key",new Integer(4),keys.get("W:JO"));
+		assertEquals("Checking leading trigram",new Integer(1),keys.get("T: SM"));
+		assertEquals("Checking middle trigram",new Integer(1),keys.get("T:MIT"));
+		assertEquals("Checking trailing trigram",new Integer(1),keys.get("T:TH "));
+		assertEquals("Checking trigrams of short word",new Integer(1),keys.get("T: JO"));
+		assertEquals("Checking trigrams of short word",new Integer(1),keys.get("T:JO "));
+		assertTrue("Checking no empty name keys",PersonNameIndex.getKeys("^").isEmpty());
+	}
+
+	public void TestPersonNameIndex_PhoneticKeys() throws Exception {
+		PhoneticStringEncoder encoder = null;
+		try {
+			encoder = PhoneticStringEncoder.getSharedInstance();
+		}
+		catch (PhoneticStringEncoderException e) {
+System.err.println("TestPersonNameIndex: phonetic encoder not available, so checking there are no phonetic keys: "+e);
+		}
+		Map keys = PersonNameIndex.getKeys("Smith");
+		if (encoder == null) {
+			Iterator i = keys.keySet().iterator();
+			while (i.hasNext()) {
+				assertFalse("Checking no phonetic keys",((String)(i.next())).startsWith("P:"));
+			}
+		}
+		else {
+			String phoneticKey = "P:"+encoder.encode("SMITH");
+			assertEquals("Checking phonetic weight",new Integer(2),keys.get(phoneticKey));
+			assertTrue("Checking same phonetic key for different spelling",PersonNameIndex.getKeys("Smyth").containsKey(phoneticKey));
+		}
+	}
+
+	public void TestPersonNameIndex_RequiredTrigramKeys() throws Exception {
+		Set keys = PersonNameIndex.getRequiredTrigramKeys("*mith*");
+		assertEquals("Checking number of trigrams",2,keys.size());
+		assertTrue("Checking trigram",keys.contains("T:MIT"));
+		assertTrue("Checking trigram",keys.contains("T:ITH"));
+		assertFalse("Checking no leading space since may be in middle of word",keys.contains("T: MI"));
+		assertFalse("Checking no trailing space since may be in middle of word",keys.contains("T:TH "));
+	}
+
+	public void TestPersonNameIndex_RequiredTrigramKeysTooShort() throws Exception {
+		assertTrue("Checking runs too short",PersonNameIndex.getRequiredTrigramKeys("*SM*^J*").isEmpty());
+		assertTrue("Checking only wildcards",PersonNameIndex.getRequiredTrigramKeys("*").isEmpty());
+	}
+
+	public void TestPersonNameIndex_RequiredTrigramKeysStored() throws Exception {
+		String stored = "Yamada^Tarou=山田太郎=やまだ^たろう";
+		Set storedKeys = PersonNameIndex.getKeys(stored).keySet();
+		String[] queries = { "*ADA*", "Yam*", "*田太郎*", "=*やまだ*", "*=*たろう" };
+		for (int q=0; q<queries.length; ++q) {
+			Set requiredKeys = PersonNameIndex.getRequiredTrigramKeys(queries[q]);
+			assertFalse("Checking some keys required for "+queries[q],requiredKeys.isEmpty());
+			assertTrue("Checking all keys required for "+queries[q]+" are stored for a name in any component group that it matches",storedKeys.containsAll(requiredKeys));
+		}
+	}
+
+}
@@ -0,0 +1,95 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.utils.PhoneticStringEncoder;
+import com.pixelmed.utils.PhoneticStringEncoderException;
+
+import junit.framework.*;
+
+public class TestPhoneticStringEncoder extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestPhoneticStringEncoder(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestPhoneticStringEncoder.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestPhoneticStringEncoder");
+
+		suite.addTest(new TestPhoneticStringEncoder("TestPhoneticStringEncoder_SharedInstance"));
+		suite.addTest(new TestPhoneticStringEncoder("TestPhoneticStringEncoder_SameSoundSameCode"));
+		suite.addTest(new TestPhoneticStringEncoder("TestPhoneticStringEncoder_DifferentSoundDifferentCode"));
+
+		return suite;
+	}
+
+	protected void setUp() {
+	}
+
+	protected void tearDown() {
+	}
+
+	/**
+	 * @return	the shared encoder, or null if the Double Metaphone encoder is not available, in which case there is nothing to encode with
+	 */
+	private static PhoneticStringEncoder getEncoderIfAvailable() {
+		try {
+			return PhoneticStringEncoder.getSharedInstance();
+		}
+		catch (PhoneticStringEncoderException e) {
+System.err.println("TestPhoneticStringEncoder: encoder not available, so not checking encoding: "+e);
+			return null;
+		}
+	}
+
+	public void TestPhoneticStringEncoder_SharedInstance() throws Exception {
+		PhoneticStringEncoder first = null;
+		PhoneticStringEncoderException firstException = null;
+		try {
+			first = PhoneticStringEncoder.getSharedInstance();
+		}
+		catch (PhoneticStringEncoderException e) {
+			firstException = e;
+		}
+		PhoneticStringEncoder second = null;
+		PhoneticStringEncoderException secondException = null;
+		try {
+			second = PhoneticStringEncoder.getSharedInstance();
+		}
+		catch (PhoneticStringEncoderException e) {
+			secondException = e;
+		}
+		if (firstException == null) {
+			assertNotNull("Checking shared instance",first);
+			assertSame("Checking same shared instance each time",first,second);
+		}
+		else {
+			assertSame("Checking not available is only found out once",firstException,secondException);
+		}
+	}
+
+	public void TestPhoneticStringEncoder_SameSoundSameCode() throws Exception {
+		PhoneticStringEncoder encoder = getEncoderIfAvailable();
+		if (encoder != null) {
+			String code = encoder.encode("SMITH");
+			assertNotNull("Checking code",code);
+			assertTrue("Checking code not empty",code.length() > 0);
+			assertEquals("Checking different spelling of same sound",code,encoder.encode("SMYTH"));
+			assertEquals("Checking case ignored",code,encoder.encode("smith"));
+		}
+	}
+
+	public void TestPhoneticStringEncoder_DifferentSoundDifferentCode() throws Exception {
+		PhoneticStringEncoder encoder = getEncoderIfAvailable();
+		if (encoder != null) {
+			assertFalse("Checking different sound",encoder.encode("SMITH").equals(encoder.encode("JONES")));
+		}
+	}
+
+}
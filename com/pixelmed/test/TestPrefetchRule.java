@@ -0,0 +1,149 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.apps.PrefetchRule;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.*;
+
+public class TestPrefetchRule extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestPrefetchRule(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestPrefetchRule.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestPrefetchRule");
+
+		suite.addTest(new TestPrefetchRule("TestPrefetchRule_TriggeredByAnyModality"));
+		suite.addTest(new TestPrefetchRule("TestPrefetchRule_TriggeredBySpecifiedModality"));
+		suite.addTest(new TestPrefetchRule("TestPrefetchRule_RelevantModality"));
+		suite.addTest(new TestPrefetchRule("TestPrefetchRule_StudyDateRangeNoLimit"));
+		suite.addTest(new TestPrefetchRule("TestPrefetchRule_StudyDateRangeLookBack"));
+		suite.addTest(new TestPrefetchRule("TestPrefetchRule_StudyDateRangeUnknownOrBadDate"));
+		suite.addTest(new TestPrefetchRule("TestPrefetchRule_FromProperties"));
+		suite.addTest(new TestPrefetchRule("TestPrefetchRule_FromPropertiesDefaults"));
+		suite.addTest(new TestPrefetchRule("TestPrefetchRule_FromPropertiesBadNumber"));
+
+		return suite;
+	}
+
+	protected void setUp() {
+	}
+
+	protected void tearDown() {
+	}
+
+	private static Set<String> makeSet(String[] values) {
+		Set<String> set = new TreeSet<String>();
+		for (int i=0; i<values.length; ++i) {
+			set.add(values[i]);
+		}
+		return set;
+	}
+
+	public void TestPrefetchRule_TriggeredByAnyModality() throws Exception {
+		PrefetchRule rule = new PrefetchRule("any",null,null,false,0,0);
+		assertTrue("Checking any modality triggers",rule.isTriggeredBy("CT"));
+		assertTrue("Checking unknown modality triggers",rule.isTriggeredBy(null));
+	}
+
+	public void TestPrefetchRule_TriggeredBySpecifiedModality() throws Exception {
+		PrefetchRule rule = new PrefetchRule("mammo",makeSet(new String[] { "MG" }),null,false,0,0);
+		assertTrue("Checking specified modality triggers",rule.isTriggeredBy("MG"));
+		assertTrue("Checking modality is trimmed and case insensitive",rule.isTriggeredBy(" mg "));
+		assertFalse("Checking other modality does not trigger",rule.isTriggeredBy("CT"));
+		assertFalse("Checking unknown modality does not trigger",rule.isTriggeredBy(null));
+	}
+
+	public void TestPrefetchRule_RelevantModality() throws Exception {
+		PrefetchRule anyRule = new PrefetchRule("any",null,null,false,0,0);
+		assertTrue("Checking any prior modality is relevant",anyRule.isRelevantModality(new String[] { "US" }));
+		assertTrue("Checking prior of unknown modality is relevant if any accepted",anyRule.isRelevantModality(null));
+
+		PrefetchRule rule = new PrefetchRule("chest",null,makeSet(new String[] { "CT", "CR", "DX" }),false,0,0);
+		assertTrue("Checking one matching modality in study is enough",rule.isRelevantModality(new String[] { "SR", "ct" }));
+		assertFalse("Checking no matching modality",rule.isRelevantModality(new String[] { "MR", "SR" }));
+		assertFalse("Checking prior of unknown modality is not relevant",rule.isRelevantModality(null));
+		assertFalse("Checking prior with empty modalities is not relevant",rule.isRelevantModality(new String[0]));
+		assertFalse("Checking null modality value is ignored",rule.isRelevantModality(new String[] { null }));
+	}
+
+	public void TestPrefetchRule_StudyDateRangeNoLimit() throws Exception {
+		PrefetchRule rule = new PrefetchRule("nolimit",null,null,false,0,0);
+		assertEquals("Checking open start of range","-20120301",rule.getStudyDateRange("20120301"));
+	}
+
+	public void TestPrefetchRule_StudyDateRangeLookBack() throws Exception {
+		PrefetchRule rule = new PrefetchRule("lookback",null,null,false,365,0);
+		assertEquals("Checking one year look back across leap day","20110302-20120301",rule.getStudyDateRange("20120301"));
+		rule = new PrefetchRule("lookback",null,null,false,3,0);
+		assertEquals("Checking look back across year","20111230-20120102",rule.getStudyDateRange(" 20120102 "));
+	}
+
+	public void TestPrefetchRule_StudyDateRangeUnknownOrBadDate() throws Exception {
+		PrefetchRule rule = new PrefetchRule("lookback",null,null,false,30,0);
+		assertEquals("Checking null date matches any","",rule.getStudyDateRange(null));
+		assertEquals("Checking empty date matches any","",rule.getStudyDateRange("  "));
+		assertEquals("Checking bad date matches any","",rule.getStudyDateRange("20121332"));
+	}
+
+	public void TestPrefetchRule_FromProperties() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("Prefetch.Rules","mammo, chest");
+		properties.setProperty("Prefetch.Rule.mammo.Modalities","mg");
+		properties.setProperty("Prefetch.Rule.mammo.PriorModalities","MG,US");
+		properties.setProperty("Prefetch.Rule.mammo.SameBodyPart","true");
+		properties.setProperty("Prefetch.Rule.mammo.LookBackDays"," 730 ");
+		properties.setProperty("Prefetch.Rule.mammo.MaximumNumberOfPriors","2");
+		properties.setProperty("Prefetch.Rule.chest.PriorModalities","CT CR DX");
+		List<PrefetchRule> rules = PrefetchRule.getRules(properties);
+		assertEquals("Checking number of rules",2,rules.size());
+
+		PrefetchRule mammo = rules.get(0);
+		assertEquals("Checking name","mammo",mammo.getName());
+		assertTrue("Checking trigger modality upper cased",mammo.isTriggeredBy("MG"));
+		assertFalse("Checking other modality does not trigger",mammo.isTriggeredBy("CT"));
+		assertTrue("Checking prior modality",mammo.isRelevantModality(new String[] { "US" }));
+		assertTrue("Checking same body part",mammo.isSameBodyPart());
+		assertEquals("Checking maximum number of priors",2,mammo.getMaximumNumberOfPriors());
+		assertEquals("Checking look back days","20100301-20120229",mammo.getStudyDateRange("20120229"));
+
+		PrefetchRule chest = rules.get(1);
+		assertEquals("Checking name","chest",chest.getName());
+		assertTrue("Checking any modality triggers when absent",chest.isTriggeredBy("XA"));
+		assertTrue("Checking space separated prior modalities",chest.isRelevantModality(new String[] { "DX" }));
+		assertFalse("Checking default same body part",chest.isSameBodyPart());
+	}
+
+	public void TestPrefetchRule_FromPropertiesDefaults() throws Exception {
+		Properties properties = new Properties();
+		assertEquals("Checking no rules when none named",0,PrefetchRule.getRules(properties).size());
+		PrefetchRule rule = new PrefetchRule("empty",properties);
+		assertEquals("Checking default maximum number of priors",0,rule.getMaximumNumberOfPriors());
+		assertEquals("Checking default look back is unlimited","-20120301",rule.getStudyDateRange("20120301"));
+	}
+
+	public void TestPrefetchRule_FromPropertiesBadNumber() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("Prefetch.Rule.bad.LookBackDays","a year");
+		try {
+			new PrefetchRule("bad",properties);
+			fail("Expected NumberFormatException for bad number of days");
+		}
+		catch (NumberFormatException e) {
+		}
+	}
+
+}
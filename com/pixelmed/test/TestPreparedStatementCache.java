@@ -0,0 +1,213 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.database.PreparedStatementCache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.*;
+
+public class TestPreparedStatementCache extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestPreparedStatementCache(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestPreparedStatementCache.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestPreparedStatementCache");
+
+		suite.addTest(new TestPreparedStatementCache("TestPreparedStatementCache_PreparedWhenNoneIdle"));
+		suite.addTest(new TestPreparedStatementCache("TestPreparedStatementCache_ReusedAfterGiveBack"));
+		suite.addTest(new TestPreparedStatementCache("TestPreparedStatementCache_NotSharedBetweenDifferentSQL"));
+		suite.addTest(new TestPreparedStatementCache("TestPreparedStatementCache_LeastRecentlyUsedClosedWhenTooManyIdle"));
+		suite.addTest(new TestPreparedStatementCache("TestPreparedStatementCache_BorrowingMakesMostRecentlyUsed"));
+		suite.addTest(new TestPreparedStatementCache("TestPreparedStatementCache_UnusableStatementNotKept"));
+		suite.addTest(new TestPreparedStatementCache("TestPreparedStatementCache_ClearClosesIdle"));
+		suite.addTest(new TestPreparedStatementCache("TestPreparedStatementCache_CloseClosesThoseGivenBackLater"));
+
+		return suite;
+	}
+
+	/**
+	 * <p>Records what is done to each statement prepared, without a database.</p>
+	 */
+	private static class FakeStatement implements InvocationHandler {
+		String sql;
+		boolean closed;
+		int clearParametersCount;
+		boolean failClearParameters;
+
+		FakeStatement(String sql) {
+			this.sql=sql;
+		}
+
+		public Object invoke(Object proxy,Method method,Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				closed = true;
+			}
+			else if (name.equals("clearParameters")) {
+				if (failClearParameters) {
+					throw new SQLException("Statement unusable");
+				}
+				++clearParametersCount;
+			}
+			else if (name.equals("isClosed")) {
+				return Boolean.valueOf(closed);
+			}
+			else if (name.equals("hashCode")) {
+				return Integer.valueOf(System.identityHashCode(proxy));
+			}
+			else if (name.equals("equals")) {
+				return Boolean.valueOf(proxy == args[0]);
+			}
+			else if (name.equals("toString")) {
+				return "FakeStatement "+sql;
+			}
+			return null;
+		}
+	}
+
+	private List<FakeStatement> prepared;
+	private Connection connection;
+
+	protected void setUp() {
+		prepared = new ArrayList<FakeStatement>();
+		connection = (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),new Class[] { Connection.class },
+			new InvocationHandler() {
+				public Object invoke(Object proxy,Method method,Object[] args) throws Throwable {
+					if (method.getName().equals("prepareStatement")) {
+						FakeStatement statement = new FakeStatement((String)(args[0]));
+						prepared.add(statement);
+						return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),new Class[] { PreparedStatement.class },statement);
+					}
+					throw new UnsupportedOperationException(method.getName());
+				}
+			});
+	}
+
+	protected void tearDown() {
+	}
+
+	private static FakeStatement getFake(PreparedStatement statement) {
+		return (FakeStatement)(Proxy.getInvocationHandler(statement));
+	}
+
+	public void TestPreparedStatementCache_PreparedWhenNoneIdle() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(connection,10);
+		PreparedStatement s1 = cache.borrow("SELECT A FROM T WHERE B = ?");
+		PreparedStatement s2 = cache.borrow("SELECT A FROM T WHERE B = ?");
+		assertTrue("Checking statement in use is not borrowed again",s1 != s2);
+		assertEquals("Checking both prepared",2,prepared.size());
+		assertEquals("Checking misses",2,cache.getMisses());
+		assertEquals("Checking hits",0,cache.getHits());
+	}
+
+	public void TestPreparedStatementCache_ReusedAfterGiveBack() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(connection,10);
+		String sql = "SELECT A FROM T WHERE B = ?";
+		PreparedStatement s1 = cache.borrow(sql);
+		cache.giveBack(sql,s1);
+		assertEquals("Checking parameters cleared when given back",1,getFake(s1).clearParametersCount);
+		assertEquals("Checking idle",1,cache.getNumberOfIdleStatements());
+		PreparedStatement s2 = cache.borrow(sql);
+		assertSame("Checking same statement re-used",s1,s2);
+		assertEquals("Checking only one prepared",1,prepared.size());
+		assertEquals("Checking no longer idle",0,cache.getNumberOfIdleStatements());
+		assertEquals("Checking hits",1,cache.getHits());
+		assertFalse("Checking not closed",getFake(s2).closed);
+	}
+
+	public void TestPreparedStatementCache_NotSharedBetweenDifferentSQL() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(connection,10);
+		PreparedStatement s1 = cache.borrow("SELECT A FROM T WHERE B = ?");
+		cache.giveBack("SELECT A FROM T WHERE B = ?",s1);
+		PreparedStatement s2 = cache.borrow("SELECT A FROM T WHERE C = ?");
+		assertTrue("Checking statement for different SQL not re-used",s1 != s2);
+		assertEquals("Checking SQL prepared","SELECT A FROM T WHERE C = ?",getFake(s2).sql);
+		assertEquals("Checking first still idle",1,cache.getNumberOfIdleStatements());
+	}
+
+	public void TestPreparedStatementCache_LeastRecentlyUsedClosedWhenTooManyIdle() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(connection,2);
+		PreparedStatement a = cache.borrow("A");
+		PreparedStatement b = cache.borrow("B");
+		PreparedStatement c = cache.borrow("C");
+		cache.giveBack("A",a);
+		cache.giveBack("B",b);
+		cache.giveBack("C",c);
+		assertEquals("Checking limited number idle",2,cache.getNumberOfIdleStatements());
+		assertTrue("Checking least recently used closed",getFake(a).closed);
+		assertFalse("Checking more recently used not closed",getFake(b).closed);
+		assertFalse("Checking most recently used not closed",getFake(c).closed);
+		assertSame("Checking most recently used still re-used",c,cache.borrow("C"));
+	}
+
+	public void TestPreparedStatementCache_BorrowingMakesMostRecentlyUsed() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(connection,2);
+		PreparedStatement a = cache.borrow("A");
+		PreparedStatement b = cache.borrow("B");
+		cache.giveBack("A",a);
+		cache.giveBack("B",b);
+		assertSame("Checking re-used",a,cache.borrow("A"));
+		cache.giveBack("A",a);
+		PreparedStatement c = cache.borrow("C");
+		cache.giveBack("C",c);
+		assertTrue("Checking statement not borrowed since closed",getFake(b).closed);
+		assertFalse("Checking statement borrowed since not closed",getFake(a).closed);
+	}
+
+	public void TestPreparedStatementCache_UnusableStatementNotKept() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(connection,10);
+		PreparedStatement s1 = cache.borrow("A");
+		getFake(s1).failClearParameters = true;
+		cache.giveBack("A",s1);
+		assertTrue("Checking unusable statement closed",getFake(s1).closed);
+		assertEquals("Checking not idle",0,cache.getNumberOfIdleStatements());
+		assertTrue("Checking not re-used",s1 != cache.borrow("A"));
+	}
+
+	public void TestPreparedStatementCache_ClearClosesIdle() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(connection,10);
+		PreparedStatement a = cache.borrow("A");
+		PreparedStatement b = cache.borrow("B");
+		cache.giveBack("A",a);
+		cache.clear();
+		assertTrue("Checking idle statement closed",getFake(a).closed);
+		assertFalse("Checking statement in use not closed",getFake(b).closed);
+		assertEquals("Checking none idle",0,cache.getNumberOfIdleStatements());
+		cache.giveBack("B",b);
+		assertFalse("Checking statement given back after clear is kept",getFake(b).closed);
+		assertSame("Checking statement given back after clear is re-used",b,cache.borrow("B"));
+	}
+
+	public void TestPreparedStatementCache_CloseClosesThoseGivenBackLater() throws Exception {
+		PreparedStatementCache cache = new PreparedStatementCache(connection,10);
+		PreparedStatement a = cache.borrow("A");
+		PreparedStatement b = cache.borrow("B");
+		cache.giveBack("A",a);
+		cache.close();
+		assertTrue("Checking idle statement closed",getFake(a).closed);
+		assertFalse("Checking statement in use not closed",getFake(b).closed);
+		cache.giveBack("B",b);
+		assertTrue("Checking statement given back after close is closed",getFake(b).closed);
+		assertEquals("Checking none idle",0,cache.getNumberOfIdleStatements());
+	}
+
+}
@@ -0,0 +1,350 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.database.DatabaseInformationModel;
+import com.pixelmed.database.MinimalPatientStudySeriesInstanceModel;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTagAttribute;
+import com.pixelmed.dicom.CodeStringAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.LongStringAttribute;
+import com.pixelmed.dicom.PersonNameAttribute;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+
+import com.pixelmed.network.IdentifierSubscriber;
+import com.pixelmed.network.IdentifierSubscription;
+import com.pixelmed.network.QueryResponseLimits;
+import com.pixelmed.network.ResponseStatus;
+import com.pixelmed.network.StorageSOPClassSCPDispatcher;
+import com.pixelmed.network.StreamingFindSOPClassSCU;
+
+import com.pixelmed.query.QueryResponseGenerator;
+import com.pixelmed.query.QueryResponseGeneratorFactory;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.*;
+
+public class TestQueryResponseLimits extends TestCase {
+
+	protected static final int    waitIntervalWhenSleeping = 10;	// in ms
+	protected static final int    port = 11123;
+	protected static final String scpAET = "TESTLIMITSCP";
+	protected static final String scuAET = "TESTLIMITSCU";
+
+	// constructor to support adding tests to suite ...
+
+	public TestQueryResponseLimits(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestQueryResponseLimits.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestQueryResponseLimits");
+
+		suite.addTest(new TestQueryResponseLimits("TestQueryResponseLimits_DefaultAndPerCallingAE"));
+		suite.addTest(new TestQueryResponseLimits("TestQueryResponseLimits_FromProperties"));
+		suite.addTest(new TestQueryResponseLimits("TestQueryResponseLimits_SCPStopsAtMaximumNumberOfMatches"));
+		suite.addTest(new TestQueryResponseLimits("TestQueryResponseLimits_SCPSucceedsAtExactlyMaximumNumberOfMatches"));
+		suite.addTest(new TestQueryResponseLimits("TestQueryResponseLimits_SCPStopsAtTimeout"));
+		suite.addTest(new TestQueryResponseLimits("TestQueryResponseLimits_DatabaseStopsAtMaximumNumberOfMatches"));
+		suite.addTest(new TestQueryResponseLimits("TestQueryResponseLimits_DatabaseSucceedsAtExactlyMaximumNumberOfMatches"));
+		suite.addTest(new TestQueryResponseLimits("TestQueryResponseLimits_DatabaseCountsMatchesAfterDiscardingRows"));
+		suite.addTest(new TestQueryResponseLimits("TestQueryResponseLimits_DatabaseStopsAtMaximumNumberOfMatchesAfterDiscardingRows"));
+
+		return suite;
+	}
+
+	// not a LimitedQueryResponseGenerator, so the limits are applied only by the SCP
+	private class SyntheticQueryResponseGenerator implements QueryResponseGenerator {
+		private int count;
+
+		public void performQuery(String querySOPClassUID,AttributeList queryIdentifier,boolean relational) {}
+
+		public AttributeList next() {
+			if (count >= numberOfSyntheticMatches) {
+				return null;
+			}
+			++count;
+			if (delayPerSyntheticMatch > 0) {
+				try {
+					Thread.currentThread().sleep(delayPerSyntheticMatch);
+				}
+				catch (InterruptedException e) {
+				}
+			}
+			AttributeList list = new AttributeList();
+			try {
+				{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue("STUDY"); list.put(a); }
+				{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue("1.2.3.4.5."+count); list.put(a); }
+			}
+			catch (DicomException e) {
+				e.printStackTrace(System.err);
+			}
+			return list;
+		}
+
+		public int getStatus() { return ResponseStatus.Success; }
+
+		public AttributeTagAttribute getOffendingElement() { return null; }
+
+		public String getErrorComment() { return null; }
+
+		public void close() {}
+
+		public boolean allOptionalKeysSuppliedWereSupported() { return true; }
+	}
+
+	private class Results implements IdentifierSubscriber {
+		List<String> studyInstanceUIDs = new ArrayList<String>();
+		int status = -1;
+		Exception error;
+		boolean finished;
+
+		public void onSubscribe(IdentifierSubscription subscription) {
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		public synchronized void onNext(AttributeList identifier) {
+			studyInstanceUIDs.add(Attribute.getSingleStringValueOrEmptyString(identifier,TagFromName.StudyInstanceUID));
+		}
+
+		public synchronized void onComplete(int status) {
+			this.status = status;
+			finished = true;
+			notifyAll();
+		}
+
+		public synchronized void onError(Exception e) {
+			error = e;
+			finished = true;
+			notifyAll();
+		}
+
+		synchronized void waitForFinished() throws InterruptedException {
+			long giveUpAt = System.currentTimeMillis() + 30000;
+			while (!finished && System.currentTimeMillis() < giveUpAt) {
+				wait(100);
+			}
+			assertTrue("Checking query finished in reasonable time",finished);
+		}
+
+		void assertRefusedOutOfResources() {
+			assertNotNull("Checking query failed",error);
+			assertTrue("Checking failed with RefusedOutOfResources status rather than "+error.getMessage(),error.getMessage().indexOf(Integer.toHexString(ResponseStatus.RefusedOutOfResources)) != -1);
+		}
+
+		void assertSuccess() {
+			assertNull("Checking no error",error);
+			assertEquals("Checking success status",ResponseStatus.Success,status);
+		}
+	}
+
+	private int numberOfSyntheticMatches;
+	private long delayPerSyntheticMatch;
+	private File directory;
+	private DatabaseInformationModel databaseInformationModel;
+	private StorageSOPClassSCPDispatcher storageSOPClassSCPDispatcher;
+	private Thread storageSOPClassSCPDispatcherThread;
+
+	protected void setUp() throws Exception {
+		numberOfSyntheticMatches = 0;
+		delayPerSyntheticMatch = 0;
+	}
+
+	protected void tearDown() throws Exception {
+		if (storageSOPClassSCPDispatcher != null) {
+			storageSOPClassSCPDispatcher.shutdown();
+			storageSOPClassSCPDispatcherThread.join();		// so that the port is free for the next test
+			storageSOPClassSCPDispatcher = null;
+		}
+		if (databaseInformationModel != null) {
+			databaseInformationModel.close();
+			databaseInformationModel = null;
+		}
+		if (directory != null) {
+			File[] files = directory.listFiles();
+			for (int i=0; i<files.length; ++i) {
+				files[i].delete();
+			}
+			directory.delete();
+			directory = null;
+		}
+	}
+
+	private void startSCP(QueryResponseGeneratorFactory queryResponseGeneratorFactory,QueryResponseLimits queryResponseLimits) throws Exception {
+		storageSOPClassSCPDispatcher = new StorageSOPClassSCPDispatcher(port,scpAET,16384,0,0,null/*savedImagesFolder*/,null/*receivedObjectHandler*/,
+			queryResponseGeneratorFactory,null/*retrieveResponseGeneratorFactory*/,null/*networkApplicationInformation*/,false/*secureTransport*/,0/*debugLevel*/);
+		storageSOPClassSCPDispatcher.setQueryResponseLimits(queryResponseLimits);
+		storageSOPClassSCPDispatcherThread = new Thread(storageSOPClassSCPDispatcher);
+		storageSOPClassSCPDispatcherThread.start();
+		while (!storageSOPClassSCPDispatcher.isReady()) {
+			Thread.currentThread().sleep(waitIntervalWhenSleeping);	// wait until SCP is ready, else later query may fail
+		}
+	}
+
+	private void startSyntheticSCP(QueryResponseLimits queryResponseLimits) throws Exception {
+		startSCP(new QueryResponseGeneratorFactory() {
+				public QueryResponseGenerator newInstance() { return new SyntheticQueryResponseGenerator(); }
+			},
+			queryResponseLimits);
+	}
+
+	private static AttributeList makeInstance(int study,String sopClassUID) throws DicomException {
+		AttributeList list = new AttributeList();
+		{ Attribute a = new PersonNameAttribute(TagFromName.PatientName); a.addValue("Test^Limits"); list.put(a); }
+		{ Attribute a = new LongStringAttribute(TagFromName.PatientID); a.addValue("TESTLIMITS"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue("1.2.3.4."+study); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SeriesInstanceUID); a.addValue("1.2.3.4."+study+".1"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID); a.addValue("1.2.3.4."+study+".1.1"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPClassUID); a.addValue(sopClassUID); list.put(a); }
+		{ Attribute a = new CodeStringAttribute(TagFromName.Modality); a.addValue(sopClassUID.equals(SOPClass.CTImageStorage) ? "CT" : "OT"); list.put(a); }
+		return list;
+	}
+
+	// three secondary capture studies followed by two CT studies, so that rows for CT studies are not the first returned
+	private void startDatabaseSCP(QueryResponseLimits queryResponseLimits) throws Exception {
+		directory = File.createTempFile("TestQueryResponseLimits",null);
+		directory.delete();
+		directory.mkdirs();
+		databaseInformationModel = new MinimalPatientStudySeriesInstanceModel(new File(directory,"testlimitsdb").getPath());
+		for (int study=1; study<=5; ++study) {
+			databaseInformationModel.insertObject(makeInstance(study,study <= 3 ? SOPClass.SecondaryCaptureImageStorage : SOPClass.CTImageStorage),"/nonexistent/"+study+".dcm","R");
+		}
+		startSCP(databaseInformationModel.getQueryResponseGeneratorFactory(0),queryResponseLimits);
+	}
+
+	private static AttributeList makeStudyIdentifier(String sopClassesInStudy) throws DicomException {
+		AttributeList identifier = new AttributeList();
+		{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue("STUDY"); identifier.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); identifier.put(a); }
+		if (sopClassesInStudy != null) {
+			Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPClassesInStudy);
+			if (sopClassesInStudy.length() > 0) {
+				a.addValue(sopClassesInStudy);
+			}
+			identifier.put(a);
+		}
+		return identifier;
+	}
+
+	private Results query(AttributeList identifier) throws Exception {
+		Results results = new Results();
+		new StreamingFindSOPClassSCU("localhost",port,scpAET,scuAET,SOPClass.StudyRootQueryRetrieveInformationModelFind,identifier,0,0).subscribe(results);
+		results.waitForFinished();
+		return results;
+	}
+
+	public void TestQueryResponseLimits_DefaultAndPerCallingAE() throws Exception {
+		QueryResponseLimits limits = new QueryResponseLimits(100,5000);
+		limits.setLimits("SMALL",10,1000);
+		limits.setLimits("UNLIMITED",0,0);
+		assertEquals("Checking default maximum number of matches",100,limits.getMaximumNumberOfMatches("OTHER"));
+		assertEquals("Checking default timeout",5000,limits.getTimeout("OTHER"));
+		assertEquals("Checking default maximum number of matches when no calling AE",100,limits.getMaximumNumberOfMatches(null));
+		assertEquals("Checking specific maximum number of matches",10,limits.getMaximumNumberOfMatches("SMALL"));
+		assertEquals("Checking specific timeout",1000,limits.getTimeout("SMALL"));
+		assertEquals("Checking calling AE padded with space",10,limits.getMaximumNumberOfMatches("SMALL "));
+		assertEquals("Checking specific no limit on maximum number of matches",0,limits.getMaximumNumberOfMatches("UNLIMITED"));
+		assertEquals("Checking specific no limit on timeout",0,limits.getTimeout("UNLIMITED"));
+	}
+
+	public void TestQueryResponseLimits_FromProperties() throws Exception {
+		Properties properties = new Properties();
+		{
+			QueryResponseLimits limits = new QueryResponseLimits(properties);
+			assertEquals("Checking no limit on maximum number of matches by default",0,limits.getMaximumNumberOfMatches("OTHER"));
+			assertEquals("Checking no limit on timeout by default",0,limits.getTimeout("OTHER"));
+		}
+		properties.setProperty(QueryResponseLimits.propertyName_QueryMaximumNumberOfMatches," 200 ");
+		properties.setProperty(QueryResponseLimits.propertyName_QueryTimeout,"30000");
+		properties.setProperty(QueryResponseLimits.propertyName_QueryMaximumNumberOfMatches+".SMALL","10");
+		properties.setProperty(QueryResponseLimits.propertyName_QueryTimeout+".SLOW","60000");
+		{
+			QueryResponseLimits limits = new QueryResponseLimits(properties);
+			assertEquals("Checking default maximum number of matches",200,limits.getMaximumNumberOfMatches("OTHER"));
+			assertEquals("Checking default timeout",30000,limits.getTimeout("OTHER"));
+			assertEquals("Checking specific maximum number of matches",10,limits.getMaximumNumberOfMatches("SMALL"));
+			assertEquals("Checking default timeout when only maximum number of matches specific",30000,limits.getTimeout("SMALL"));
+			assertEquals("Checking specific timeout",60000,limits.getTimeout("SLOW"));
+			assertEquals("Checking default maximum number of matches when only timeout specific",200,limits.getMaximumNumberOfMatches("SLOW"));
+		}
+		properties.setProperty(QueryResponseLimits.propertyName_QueryTimeout+".BAD","soon");
+		try {
+			new QueryResponseLimits(properties);
+			fail("Expected NumberFormatException for limit that is not a number");
+		}
+		catch (NumberFormatException e) {
+		}
+	}
+
+	public void TestQueryResponseLimits_SCPStopsAtMaximumNumberOfMatches() throws Exception {
+		numberOfSyntheticMatches = 10;
+		QueryResponseLimits limits = new QueryResponseLimits(0,0);
+		limits.setLimits(scuAET,4,0);
+		startSyntheticSCP(limits);
+		Results results = query(makeStudyIdentifier(null));
+		results.assertRefusedOutOfResources();
+		assertEquals("Checking matches up to the limit returned",4,results.studyInstanceUIDs.size());
+	}
+
+	public void TestQueryResponseLimits_SCPSucceedsAtExactlyMaximumNumberOfMatches() throws Exception {
+		numberOfSyntheticMatches = 4;
+		startSyntheticSCP(new QueryResponseLimits(4,0));
+		Results results = query(makeStudyIdentifier(null));
+		results.assertSuccess();
+		assertEquals("Checking all matches returned",4,results.studyInstanceUIDs.size());
+	}
+
+	public void TestQueryResponseLimits_SCPStopsAtTimeout() throws Exception {
+		numberOfSyntheticMatches = 50;
+		delayPerSyntheticMatch = 100;
+		startSyntheticSCP(new QueryResponseLimits(0,500));
+		Results results = query(makeStudyIdentifier(null));
+		results.assertRefusedOutOfResources();
+		assertTrue("Checking some but not all matches returned before timeout",results.studyInstanceUIDs.size() > 0 && results.studyInstanceUIDs.size() < numberOfSyntheticMatches);
+	}
+
+	public void TestQueryResponseLimits_DatabaseStopsAtMaximumNumberOfMatches() throws Exception {
+		startDatabaseSCP(new QueryResponseLimits(3,0));
+		Results results = query(makeStudyIdentifier(null));
+		results.assertRefusedOutOfResources();
+		assertEquals("Checking matches up to the limit returned",3,results.studyInstanceUIDs.size());
+	}
+
+	public void TestQueryResponseLimits_DatabaseSucceedsAtExactlyMaximumNumberOfMatches() throws Exception {
+		startDatabaseSCP(new QueryResponseLimits(5,0));
+		Results results = query(makeStudyIdentifier(""));		// SOPClassesInStudy as return key only, so no rows discarded
+		results.assertSuccess();
+		assertEquals("Checking all matches returned",5,results.studyInstanceUIDs.size());
+	}
+
+	public void TestQueryResponseLimits_DatabaseCountsMatchesAfterDiscardingRows() throws Exception {
+		startDatabaseSCP(new QueryResponseLimits(2,0));
+		Results results = query(makeStudyIdentifier(SOPClass.CTImageStorage));		// only matched after rows are fetched
+		results.assertSuccess();
+		assertEquals("Checking all matches returned although more rows than limit",2,results.studyInstanceUIDs.size());
+		assertTrue("Checking first match",results.studyInstanceUIDs.contains("1.2.3.4.4"));
+		assertTrue("Checking second match",results.studyInstanceUIDs.contains("1.2.3.4.5"));
+	}
+
+	public void TestQueryResponseLimits_DatabaseStopsAtMaximumNumberOfMatchesAfterDiscardingRows() throws Exception {
+		startDatabaseSCP(new QueryResponseLimits(1,0));
+		Results results = query(makeStudyIdentifier(SOPClass.CTImageStorage));
+		results.assertRefusedOutOfResources();
+		assertEquals("Checking matches up to the limit returned",1,results.studyInstanceUIDs.size());
+	}
+
+}
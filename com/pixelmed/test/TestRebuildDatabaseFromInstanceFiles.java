@@ -0,0 +1,205 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.database.DatabaseInformationModel;
+import com.pixelmed.database.MinimalPatientStudySeriesInstanceModel;
+import com.pixelmed.database.RebuildDatabaseFromInstanceFiles;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.CodeStringAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.InformationEntity;
+import com.pixelmed.dicom.LongStringAttribute;
+import com.pixelmed.dicom.PersonNameAttribute;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.*;
+
+public class TestRebuildDatabaseFromInstanceFiles extends TestCase {
+
+	protected static final String badSOPInstanceUID = "1.2.3.44.9.9.9";
+
+	// constructor to support adding tests to suite ...
+
+	public TestRebuildDatabaseFromInstanceFiles(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestRebuildDatabaseFromInstanceFiles.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestRebuildDatabaseFromInstanceFiles");
+
+		suite.addTest(new TestRebuildDatabaseFromInstanceFiles("TestRebuildDatabaseFromInstanceFiles_InsertsAllWantedFiles"));
+		suite.addTest(new TestRebuildDatabaseFromInstanceFiles("TestRebuildDatabaseFromInstanceFiles_BadFileInBatch"));
+		suite.addTest(new TestRebuildDatabaseFromInstanceFiles("TestRebuildDatabaseFromInstanceFiles_ResumeFromCheckpoint"));
+
+		return suite;
+	}
+
+	// a model that refuses to insert one particular instance, as if its attributes were unacceptable to the database
+
+	private static class RefusingModel extends MinimalPatientStudySeriesInstanceModel {
+		RefusingModel(String databaseFileName) throws DicomException {
+			super(databaseFileName);
+		}
+
+		public void insertObject(AttributeList list,String fileName,String fileReferenceType) throws DicomException {
+			super.insertObject(list,fileName,fileReferenceType);
+			if (badSOPInstanceUID.equals(Attribute.getSingleStringValueOrEmptyString(list,TagFromName.SOPInstanceUID))) {
+				throw new DicomException("Refusing to insert "+fileName);		// after the records are inserted, so that they must be rolled back
+			}
+		}
+	}
+
+	private File directory;
+	private File imagesDirectory;
+	private DatabaseInformationModel databaseInformationModel;
+
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("TestRebuildDatabaseFromInstanceFiles",null);
+		directory.delete();
+		directory.mkdirs();
+		imagesDirectory = new File(directory,"images");
+		databaseInformationModel = new RefusingModel(new File(directory,"testrebuilddb").getPath());
+	}
+
+	protected void tearDown() throws Exception {
+		databaseInformationModel.close();
+		delete(directory);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (int i=0; i<files.length; ++i) {
+				delete(files[i]);
+			}
+		}
+		file.delete();
+	}
+
+	private static void writeInstance(File file,String sopInstanceUID) throws Exception {
+		file.getParentFile().mkdirs();
+		AttributeList list = new AttributeList();
+		{ Attribute a = new LongStringAttribute(TagFromName.PatientID); a.addValue("TESTREBUILD"); list.put(a); }
+		{ Attribute a = new PersonNameAttribute(TagFromName.PatientName); a.addValue("Rebuild^Test"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.StudyInstanceUID); a.addValue("1.2.3.44.1"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SeriesInstanceUID); a.addValue("1.2.3.44.1.1"); list.put(a); }
+		{ Attribute a = new CodeStringAttribute(TagFromName.Modality); a.addValue("OT"); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID); a.addValue(sopInstanceUID); list.put(a); }
+		{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPClassUID); a.addValue(SOPClass.SecondaryCaptureImageStorage); list.put(a); }
+		FileMetaInformation.addFileMetaInformation(list,TransferSyntax.ExplicitVRLittleEndian,"TESTREBUILD");
+		list.write(file,TransferSyntax.ExplicitVRLittleEndian,true/*useMeta*/,true/*useBufferedStream*/);
+	}
+
+	private static void writeText(File file,String text) throws Exception {
+		file.getParentFile().mkdirs();
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		writer.print(text);
+		writer.close();
+	}
+
+	/**
+	 * <p>Write count instances into a directory, with SOP Instance UIDs that have the specified prefix.</p>
+	 */
+	private static void writeInstances(File directory,String prefix,int count) throws Exception {
+		for (int i=1; i<=count; ++i) {
+			writeInstance(new File(directory,i+".dcm"),prefix+"."+i);
+		}
+	}
+
+	private Set<String> getSOPInstanceUIDsInDatabase() throws DicomException {
+		Set<String> uids = new TreeSet<String>();
+		ArrayList records = databaseInformationModel.findAllAttributeValuesForAllRecordsForThisInformationEntity(InformationEntity.INSTANCE);
+		Iterator i = records.iterator();
+		while (i.hasNext()) {
+			uids.add(((String)(((Map)(i.next())).get("SOPINSTANCEUID"))).trim());
+		}
+		return uids;
+	}
+
+	private static Set<String> makeUIDs(String prefix,int count) {
+		Set<String> uids = new TreeSet<String>();
+		for (int i=1; i<=count; ++i) {
+			uids.add(prefix+"."+i);
+		}
+		return uids;
+	}
+
+	public void TestRebuildDatabaseFromInstanceFiles_InsertsAllWantedFiles() throws Exception {
+		writeInstances(new File(imagesDirectory,"a"),"1.2.3.44.2",5);
+		writeInstances(new File(new File(imagesDirectory,"b"),"c"),"1.2.3.44.3",7);
+		writeInstance(new File(new File(imagesDirectory,"THUMBNAILS"),"1.dcm"),"1.2.3.44.4.1");	// unwanted directory
+		writeInstance(new File(imagesDirectory,"notes.txt"),"1.2.3.44.4.2");						// unwanted file
+		writeText(new File(imagesDirectory,"notdicom.dcm"),"This is not a DICOM file");
+
+		File checkpointFile = new File(directory,"checkpoint");
+		RebuildDatabaseFromInstanceFiles rebuilder = new RebuildDatabaseFromInstanceFiles(databaseInformationModel,4,3/*batchSize*/,checkpointFile,0/*debugLevel*/);
+		rebuilder.setReportInterval(0);
+		rebuilder.rebuild(new File[] { imagesDirectory });
+
+		assertEquals("Checking inserted",12,rebuilder.getNumberOfFilesInserted());
+		assertEquals("Checking unreadable file failed",1,rebuilder.getNumberOfFilesFailed());
+		Set<String> expected = makeUIDs("1.2.3.44.2",5);
+		expected.addAll(makeUIDs("1.2.3.44.3",7));
+		assertEquals("Checking instances in database",expected,getSOPInstanceUIDsInDatabase());
+		assertFalse("Checking checkpoint file deleted after completion",checkpointFile.exists());
+	}
+
+	public void TestRebuildDatabaseFromInstanceFiles_BadFileInBatch() throws Exception {
+		writeInstances(imagesDirectory,"1.2.3.44.5",4);
+		writeInstance(new File(imagesDirectory,"bad.dcm"),badSOPInstanceUID);
+
+		RebuildDatabaseFromInstanceFiles rebuilder = new RebuildDatabaseFromInstanceFiles(databaseInformationModel,2,10/*batchSize*/,null/*checkpointFile*/,0/*debugLevel*/);
+		rebuilder.setReportInterval(0);
+		rebuilder.rebuild(new File[] { imagesDirectory });
+
+		assertEquals("Checking others in batch inserted",4,rebuilder.getNumberOfFilesInserted());
+		assertEquals("Checking only bad file failed",1,rebuilder.getNumberOfFilesFailed());
+		Set<String> expected = makeUIDs("1.2.3.44.5",4);
+		expected.add(badSOPInstanceUID);		// inserted (and refused) again on its own, without a transaction to roll back
+		assertEquals("Checking instances in database",expected,getSOPInstanceUIDsInDatabase());
+	}
+
+	public void TestRebuildDatabaseFromInstanceFiles_ResumeFromCheckpoint() throws Exception {
+		File completedDirectory = new File(imagesDirectory,"a");
+		writeInstances(completedDirectory,"1.2.3.44.6",3);
+		writeInstances(new File(completedDirectory,"sub"),"1.2.3.44.7",2);
+		writeInstances(new File(imagesDirectory,"b"),"1.2.3.44.8",4);
+
+		// as if a previous rebuild had been interrupted after completing directory a, but not its subdirectory
+		File checkpointFile = new File(directory,"checkpoint");
+		writeText(checkpointFile,completedDirectory.getAbsolutePath()+"\n");
+
+		RebuildDatabaseFromInstanceFiles rebuilder = new RebuildDatabaseFromInstanceFiles(databaseInformationModel,4,2/*batchSize*/,checkpointFile,0/*debugLevel*/);
+		rebuilder.setReportInterval(0);
+		rebuilder.rebuild(new File[] { imagesDirectory });
+
+		assertEquals("Checking only files not already completed inserted",6,rebuilder.getNumberOfFilesInserted());
+		assertEquals("Checking none failed",0,rebuilder.getNumberOfFilesFailed());
+		Set<String> expected = makeUIDs("1.2.3.44.7",2);
+		expected.addAll(makeUIDs("1.2.3.44.8",4));
+		assertEquals("Checking files in completed directory skipped but not its subdirectory",expected,getSOPInstanceUIDsInDatabase());
+		assertFalse("Checking checkpoint file deleted after completion",checkpointFile.exists());
+	}
+
+}
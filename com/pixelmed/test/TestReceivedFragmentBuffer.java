@@ -0,0 +1,164 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.network.ReceivedFragmentBuffer;
+
+import java.io.InputStream;
+
+import junit.framework.*;
+
+public class TestReceivedFragmentBuffer extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestReceivedFragmentBuffer(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestReceivedFragmentBuffer.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestReceivedFragmentBuffer");
+
+		suite.addTest(new TestReceivedFragmentBuffer("TestReceivedFragmentBuffer_Empty"));
+		suite.addTest(new TestReceivedFragmentBuffer("TestReceivedFragmentBuffer_NullAndEmptyFragmentsIgnored"));
+		suite.addTest(new TestReceivedFragmentBuffer("TestReceivedFragmentBuffer_SingleFragmentNotCopied"));
+		suite.addTest(new TestReceivedFragmentBuffer("TestReceivedFragmentBuffer_MultipleFragmentsConcatenated"));
+		suite.addTest(new TestReceivedFragmentBuffer("TestReceivedFragmentBuffer_Clear"));
+		suite.addTest(new TestReceivedFragmentBuffer("TestReceivedFragmentBuffer_StreamReadSingleBytes"));
+		suite.addTest(new TestReceivedFragmentBuffer("TestReceivedFragmentBuffer_StreamReadAcrossFragments"));
+		suite.addTest(new TestReceivedFragmentBuffer("TestReceivedFragmentBuffer_StreamSkip"));
+		suite.addTest(new TestReceivedFragmentBuffer("TestReceivedFragmentBuffer_StreamMarkAndReset"));
+
+		return suite;
+	}
+
+	protected void setUp() {
+	}
+
+	protected void tearDown() {
+	}
+
+	private static ReceivedFragmentBuffer makeBuffer() {
+		ReceivedFragmentBuffer buffer = new ReceivedFragmentBuffer();
+		buffer.append(new byte[] { 0, 1, 2 });
+		buffer.append(new byte[] { 3 });
+		buffer.append(new byte[] { 4, 5, 6, 7, (byte)0xff });
+		return buffer;
+	}
+
+	private static final int expectedLength = 9;
+
+	private static byte[] readAll(InputStream in,int chunkSize) throws Exception {
+		byte[] bytes = new byte[expectedLength+chunkSize];
+		int offset = 0;
+		int count;
+		while ((count = in.read(bytes,offset,Math.min(chunkSize,bytes.length-offset))) > 0) {
+			offset+=count;
+		}
+		assertEquals("Checking end of stream",-1,count);
+		byte[] result = new byte[offset];
+		System.arraycopy(bytes,0,result,0,offset);
+		return result;
+	}
+
+	private static void assertExpectedBytes(String message,byte[] bytes) {
+		assertEquals(message+" length",expectedLength,bytes.length);
+		for (int i=0; i<expectedLength-1; ++i) {
+			assertEquals(message+" byte "+i,i,bytes[i]);
+		}
+		assertEquals(message+" last byte",(byte)0xff,bytes[expectedLength-1]);
+	}
+
+	public void TestReceivedFragmentBuffer_Empty() throws Exception {
+		ReceivedFragmentBuffer buffer = new ReceivedFragmentBuffer();
+		assertTrue("Checking new buffer is empty",buffer.isEmpty());
+		assertEquals("Checking new buffer length",0,buffer.length());
+		assertNotNull("Checking array is not null",buffer.toByteArray());
+		assertEquals("Checking array is empty",0,buffer.toByteArray().length);
+		InputStream in = buffer.getInputStream();
+		assertEquals("Checking nothing available",0,in.available());
+		assertEquals("Checking end of stream",-1,in.read());
+		assertEquals("Checking end of stream for array read",-1,in.read(new byte[4],0,4));
+	}
+
+	public void TestReceivedFragmentBuffer_NullAndEmptyFragmentsIgnored() throws Exception {
+		ReceivedFragmentBuffer buffer = new ReceivedFragmentBuffer();
+		buffer.append(null);
+		buffer.append(new byte[0]);
+		assertTrue("Checking still empty",buffer.isEmpty());
+		buffer.append(new byte[] { 1, 2 });
+		buffer.append(new byte[0]);
+		assertEquals("Checking length",2,buffer.length());
+	}
+
+	public void TestReceivedFragmentBuffer_SingleFragmentNotCopied() throws Exception {
+		ReceivedFragmentBuffer buffer = new ReceivedFragmentBuffer();
+		byte[] fragment = new byte[] { 1, 2, 3 };
+		buffer.append(fragment);
+		assertSame("Checking single fragment returned without copy",fragment,buffer.toByteArray());
+	}
+
+	public void TestReceivedFragmentBuffer_MultipleFragmentsConcatenated() throws Exception {
+		ReceivedFragmentBuffer buffer = makeBuffer();
+		assertFalse("Checking not empty",buffer.isEmpty());
+		assertEquals("Checking length",expectedLength,buffer.length());
+		assertExpectedBytes("Checking concatenated array",buffer.toByteArray());
+	}
+
+	public void TestReceivedFragmentBuffer_Clear() throws Exception {
+		ReceivedFragmentBuffer buffer = makeBuffer();
+		buffer.clear();
+		assertTrue("Checking empty after clear",buffer.isEmpty());
+		assertEquals("Checking array empty after clear",0,buffer.toByteArray().length);
+		buffer.append(new byte[] { 9 });
+		assertEquals("Checking reusable after clear",1,buffer.length());
+		assertEquals("Checking content after clear",9,buffer.toByteArray()[0]);
+	}
+
+	public void TestReceivedFragmentBuffer_StreamReadSingleBytes() throws Exception {
+		InputStream in = makeBuffer().getInputStream();
+		assertEquals("Checking all available",expectedLength,in.available());
+		for (int i=0; i<expectedLength-1; ++i) {
+			assertEquals("Checking byte "+i,i,in.read());
+		}
+		assertEquals("Checking last byte is unsigned",0xff,in.read());
+		assertEquals("Checking none available at end",0,in.available());
+		assertEquals("Checking end of stream",-1,in.read());
+	}
+
+	public void TestReceivedFragmentBuffer_StreamReadAcrossFragments() throws Exception {
+		assertExpectedBytes("Checking stream read one at a time",readAll(makeBuffer().getInputStream(),1));
+		assertExpectedBytes("Checking stream read in chunks of 2",readAll(makeBuffer().getInputStream(),2));
+		assertExpectedBytes("Checking stream read in chunks larger than all",readAll(makeBuffer().getInputStream(),100));
+		InputStream in = makeBuffer().getInputStream();
+		assertEquals("Checking array read stops at end of fragment",3,in.read(new byte[100],0,100));
+		assertEquals("Checking zero length read",0,in.read(new byte[1],0,0));
+	}
+
+	public void TestReceivedFragmentBuffer_StreamSkip() throws Exception {
+		InputStream in = makeBuffer().getInputStream();
+		assertEquals("Checking skip across fragments",5,in.skip(5));
+		assertEquals("Checking byte after skip",5,in.read());
+		assertEquals("Checking available after skip",expectedLength-6,in.available());
+		assertEquals("Checking skip beyond end is truncated",expectedLength-6,in.skip(100));
+		assertEquals("Checking end of stream after skip",-1,in.read());
+	}
+
+	public void TestReceivedFragmentBuffer_StreamMarkAndReset() throws Exception {
+		InputStream in = makeBuffer().getInputStream();
+		assertTrue("Checking mark supported",in.markSupported());
+		in.read();
+		in.read();
+		in.mark(expectedLength);
+		in.skip(4);
+		assertEquals("Checking byte after skip",6,in.read());
+		in.reset();
+		assertEquals("Checking available after reset",expectedLength-2,in.available());
+		assertEquals("Checking byte after reset",2,in.read());
+	}
+
+}
@@ -0,0 +1,172 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.SetOfDicomFiles;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+
+import com.pixelmed.network.CommandPriority;
+import com.pixelmed.network.MultipleInstanceTransferStatusHandlerWithFileName;
+import com.pixelmed.network.StorageSOPClassSCPDispatcher;
+import com.pixelmed.network.StorageTransferScheduler;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.*;
+
+public class TestStorageTransferScheduler extends TestCase {
+
+	protected static final int    waitIntervalWhenSleeping = 10;	// in ms
+	protected static final int    port = 11121;
+	protected static final String scpAET = "TESTSCHEDSCP";
+	protected static final String scuAET = "TESTSCHEDSCU";
+
+	// constructor to support adding tests to suite ...
+
+	public TestStorageTransferScheduler(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestStorageTransferScheduler.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestStorageTransferScheduler");
+
+		suite.addTest(new TestStorageTransferScheduler("TestStorageTransferScheduler_LowerPriorityPreemptedAndResumed"));
+		suite.addTest(new TestStorageTransferScheduler("TestStorageTransferScheduler_ShutdownCompletesTransferInProgress"));
+
+		return suite;
+	}
+
+	private File directory;
+	private StorageSOPClassSCPDispatcher storageSOPClassSCPDispatcher;
+	private Thread storageSOPClassSCPDispatcherThread;
+	private StorageTransferScheduler scheduler;
+
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("TestStorageTransferScheduler",null);
+		directory.delete();
+		directory.mkdirs();
+		storageSOPClassSCPDispatcher = new StorageSOPClassSCPDispatcher(port,scpAET,null/*savedImagesFolder*/,null/*receivedObjectHandler*/,0/*debugLevel*/);
+		storageSOPClassSCPDispatcherThread = new Thread(storageSOPClassSCPDispatcher);
+		storageSOPClassSCPDispatcherThread.start();
+		while (!storageSOPClassSCPDispatcher.isReady()) {
+			Thread.currentThread().sleep(waitIntervalWhenSleeping);	// wait until SCP is ready, else later send may fail
+		}
+		scheduler = new StorageTransferScheduler(1/*maximumConcurrentTransfers*/,1/*maximumConcurrentTransfersPerDestination*/,0/*debugLevel*/);
+	}
+
+	protected void tearDown() throws Exception {
+		scheduler.shutdown();
+		storageSOPClassSCPDispatcher.shutdown();
+		storageSOPClassSCPDispatcherThread.join();		// so that the port is free for the next test
+		File[] files = directory.listFiles();
+		for (int i=0; i<files.length; ++i) {
+			files[i].delete();
+		}
+		directory.delete();
+	}
+
+	private SetOfDicomFiles makeFiles(String prefix,int count) throws Exception {
+		SetOfDicomFiles dicomFiles = new SetOfDicomFiles();
+		for (int i=0; i<count; ++i) {
+			String sopInstanceUID = "1.2.3.4.5."+(prefix.equals("low") ? 1 : 2)+"."+(i+1);
+			AttributeList list = new AttributeList();
+			{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPClassUID); a.addValue(SOPClass.SecondaryCaptureImageStorage); list.put(a); }
+			{ Attribute a = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID); a.addValue(sopInstanceUID); list.put(a); }
+			FileMetaInformation.addFileMetaInformation(list,TransferSyntax.ExplicitVRLittleEndian,scuAET);
+			File file = new File(directory,prefix+i+".dcm");
+			list.write(file,TransferSyntax.ExplicitVRLittleEndian,true/*useMeta*/,true/*useBufferedStream*/);
+			dicomFiles.add(file.getPath(),SOPClass.SecondaryCaptureImageStorage,sopInstanceUID,TransferSyntax.ExplicitVRLittleEndian);
+		}
+		return dicomFiles;
+	}
+
+	private static void waitForCompletion(StorageTransferScheduler.Transfer transfer) throws Exception {
+		long giveUpAt = System.currentTimeMillis() + 60000;
+		while (!transfer.isDone() && System.currentTimeMillis() < giveUpAt) {
+			Thread.currentThread().sleep(waitIntervalWhenSleeping);
+		}
+		assertTrue("Checking transfer completed in reasonable time",transfer.isDone());
+	}
+
+	private class RecordingHandler extends MultipleInstanceTransferStatusHandlerWithFileName {
+		private String name;
+		private List<String> events;
+
+		RecordingHandler(String name,List<String> events) {
+			this.name=name;
+			this.events=events;
+		}
+
+		public void updateStatus(int nRemaining,int nCompleted,int nFailed,int nWarning,String sopInstanceUID,String fileName,boolean success) {
+			events.add(name+(success ? "" : " failed"));
+		}
+	}
+
+	public void TestStorageTransferScheduler_LowerPriorityPreemptedAndResumed() throws Exception {
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		final SetOfDicomFiles highFiles = makeFiles("high",2);
+		final StorageTransferScheduler.Transfer[] high = new StorageTransferScheduler.Transfer[1];
+		StorageTransferScheduler.Transfer low = scheduler.submit("localhost",port,scpAET,scuAET,makeFiles("low",6),0,CommandPriority.LOW,
+			new RecordingHandler("low",events) {
+				public void updateStatus(int nRemaining,int nCompleted,int nFailed,int nWarning,String sopInstanceUID,String fileName,boolean success) {
+					super.updateStatus(nRemaining,nCompleted,nFailed,nWarning,sopInstanceUID,fileName,success);
+					synchronized (high) {
+						if (high[0] == null) {
+							// arrives whilst the low priority transfer is in progress and holds the only worker and the only association to the destination
+							high[0] = scheduler.submit("localhost",port,scpAET,scuAET,highFiles,0,CommandPriority.HIGH,new RecordingHandler("high",events));
+						}
+					}
+				}
+			});
+		waitForCompletion(low);
+		synchronized (high) {
+			assertNotNull("Checking high priority transfer submitted",high[0]);
+		}
+		waitForCompletion(high[0]);
+		assertTrue("Checking low priority transfer preempted",low.getNumberOfPreemptions() >= 1);
+		assertEquals("Checking high priority transfer not preempted",0,high[0].getNumberOfPreemptions());
+		assertEquals("Checking all low priority instances sent after resuming",6,low.getNumberCompleted());
+		assertEquals("Checking no low priority instances failed",0,low.getNumberFailed());
+		assertEquals("Checking all high priority instances sent",2,high[0].getNumberCompleted());
+		assertEquals("Checking no high priority instances failed",0,high[0].getNumberFailed());
+		int lastHigh = events.lastIndexOf("high");
+		assertTrue("Checking high priority instances sent before low priority transfer finished",lastHigh >= 0 && lastHigh < events.size()-1);
+		assertEquals("Checking low priority transfer resumed after high priority transfer","low",events.get(events.size()-1));
+	}
+
+	public void TestStorageTransferScheduler_ShutdownCompletesTransferInProgress() throws Exception {
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		StorageTransferScheduler.Transfer inProgress = scheduler.submit("localhost",port,scpAET,scuAET,makeFiles("low",5),0,CommandPriority.MEDIUM,
+			new RecordingHandler("inprogress",events) {
+				public void updateStatus(int nRemaining,int nCompleted,int nFailed,int nWarning,String sopInstanceUID,String fileName,boolean success) {
+					super.updateStatus(nRemaining,nCompleted,nFailed,nWarning,sopInstanceUID,fileName,success);
+					if (nCompleted == 1) {
+						scheduler.shutdown();
+					}
+				}
+			});
+		StorageTransferScheduler.Transfer queued = scheduler.submit("localhost",port,scpAET,scuAET,makeFiles("high",2),0,CommandPriority.MEDIUM,new RecordingHandler("queued",events));
+		waitForCompletion(inProgress);
+		waitForCompletion(queued);
+		assertTrue("Checking shut down",scheduler.isShutdown());
+		assertEquals("Checking transfer in progress was not preempted",0,inProgress.getNumberOfPreemptions());
+		assertEquals("Checking all instances of transfer in progress sent",5,inProgress.getNumberCompleted());
+		assertEquals("Checking no instances of transfer in progress failed",0,inProgress.getNumberFailed());
+		assertEquals("Checking queued transfer abandoned",2,queued.getNumberFailed());
+	}
+
+}
@@ -0,0 +1,166 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.dicom.StoredFilePathStrategy;
+import com.pixelmed.dicom.StoredFilePathStrategyShardedSubFolders;
+import com.pixelmed.dicom.StoredFilePathStrategyStudySeriesFolders;
+
+import java.io.File;
+
+import junit.framework.*;
+
+public class TestStoredFilePathStrategy extends TestCase {
+
+	// constructor to support adding tests to suite ...
+
+	public TestStoredFilePathStrategy(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestStoredFilePathStrategy.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestStoredFilePathStrategy");
+
+		suite.addTest(new TestStoredFilePathStrategy("TestStoredFilePathStrategy_Hash"));
+		suite.addTest(new TestStoredFilePathStrategy("TestStoredFilePathStrategy_ShardedPath"));
+		suite.addTest(new TestStoredFilePathStrategy("TestStoredFilePathStrategy_ShardedDepthAndFanOut"));
+		suite.addTest(new TestStoredFilePathStrategy("TestStoredFilePathStrategy_ShardedUnsupportedDepth"));
+		suite.addTest(new TestStoredFilePathStrategy("TestStoredFilePathStrategy_StudySeriesPath"));
+		suite.addTest(new TestStoredFilePathStrategy("TestStoredFilePathStrategy_StudySeriesFallsBackWhenUIDsUnusable"));
+		suite.addTest(new TestStoredFilePathStrategy("TestStoredFilePathStrategy_DefaultStrategyUnchanged"));
+		suite.addTest(new TestStoredFilePathStrategy("TestStoredFilePathStrategy_FoldersCreated"));
+		suite.addTest(new TestStoredFilePathStrategy("TestStoredFilePathStrategy_FolderRemovedThenForgotten"));
+		suite.addTest(new TestStoredFilePathStrategy("TestStoredFilePathStrategy_AlternativeWhenPathIsFolder"));
+
+		return suite;
+	}
+
+	private File savedInstancesFolder;
+
+	protected void setUp() throws Exception {
+		savedInstancesFolder = File.createTempFile("TestStoredFilePathStrategy",null);
+		savedInstancesFolder.delete();
+		savedInstancesFolder.mkdirs();
+	}
+
+	protected void tearDown() {
+		deleteRecursively(savedInstancesFolder);
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (int i=0; i<files.length; ++i) {
+				deleteRecursively(files[i]);
+			}
+		}
+		file.delete();
+	}
+
+	public void TestStoredFilePathStrategy_Hash() throws Exception {
+		// published FNV-1a 64 bit test vectors
+		assertEquals("Checking hash of empty string is offset basis",0xcbf29ce484222325l,StoredFilePathStrategyShardedSubFolders.hash(""));
+		assertEquals("Checking hash of a",0xaf63dc4c8601ec8cl,StoredFilePathStrategyShardedSubFolders.hash("a"));
+		assertTrue("Checking UIDs differing only in last character hash differently",
+			StoredFilePathStrategyShardedSubFolders.hash("1.2.3.4.5.1") != StoredFilePathStrategyShardedSubFolders.hash("1.2.3.4.5.2"));
+	}
+
+	public void TestStoredFilePathStrategy_ShardedPath() throws Exception {
+		String uid = "1.2.3.4.5";
+		String hex = Long.toHexString(StoredFilePathStrategyShardedSubFolders.hash(uid));
+		while (hex.length() < 16) {
+			hex = "0" + hex;
+		}
+		String expected = hex.substring(0,2) + File.separator + hex.substring(2,4) + File.separator + uid;
+		assertEquals("Checking default is two levels of two hex digits of hash",expected,StoredFilePathStrategy.BYSOPINSTANCEUIDSHARDEDSUBFOLDERS.makeStoredFilePath(uid));
+		assertEquals("Checking same UID gives same path",
+			StoredFilePathStrategy.BYSOPINSTANCEUIDSHARDEDSUBFOLDERS.makeStoredFilePath(uid),
+			StoredFilePathStrategy.BYSOPINSTANCEUIDSHARDEDSUBFOLDERS.makeStoredFilePath(uid));
+	}
+
+	public void TestStoredFilePathStrategy_ShardedDepthAndFanOut() throws Exception {
+		String path = new StoredFilePathStrategyShardedSubFolders(3,1).makeStoredFilePath("1.2.3.4.5");
+		String[] components = path.split(File.separator.equals("\\") ? "\\\\" : File.separator);
+		assertEquals("Checking number of path components",4,components.length);
+		assertEquals("Checking folder name length",1,components[0].length());
+		assertEquals("Checking folder name length",1,components[2].length());
+		assertEquals("Checking file name is SOP Instance UID","1.2.3.4.5",components[3]);
+	}
+
+	public void TestStoredFilePathStrategy_ShardedUnsupportedDepth() throws Exception {
+		try {
+			new StoredFilePathStrategyShardedSubFolders(0,2);
+			fail("Expected IllegalArgumentException for zero depth");
+		}
+		catch (IllegalArgumentException e) {
+		}
+		try {
+			new StoredFilePathStrategyShardedSubFolders(9,2);
+			fail("Expected IllegalArgumentException for more digits than hash has");
+		}
+		catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void TestStoredFilePathStrategy_StudySeriesPath() throws Exception {
+		StoredFilePathStrategy strategy = StoredFilePathStrategy.BYSTUDYSERIESANDSOPINSTANCEUIDFOLDERS;
+		assertTrue("Checking requires Study and Series Instance UIDs",strategy.requiresStudyAndSeriesInstanceUIDs());
+		String path = strategy.makeStoredFilePath("1.2.3","1.2.3.4","1.2.3.4.5");
+		String suffix = File.separator + "1.2.3" + File.separator + "1.2.3.4" + File.separator + "1.2.3.4.5";
+		assertTrue("Checking path ends in study, series and instance "+path,path.endsWith(suffix));
+		String otherInstanceInSameSeries = strategy.makeStoredFilePath("1.2.3","1.2.3.4","1.2.3.4.6");
+		assertEquals("Checking instances of same series share folder",
+			new File(path).getParent(),new File(otherInstanceInSameSeries).getParent());
+	}
+
+	public void TestStoredFilePathStrategy_StudySeriesFallsBackWhenUIDsUnusable() throws Exception {
+		StoredFilePathStrategy strategy = StoredFilePathStrategy.BYSTUDYSERIESANDSOPINSTANCEUIDFOLDERS;
+		String expected = strategy.makeStoredFilePath("1.2.3.4.5");
+		assertEquals("Checking missing Study Instance UID falls back to sharded SOP Instance UID",expected,strategy.makeStoredFilePath(null,"1.2.3.4","1.2.3.4.5"));
+		assertEquals("Checking Series Instance UID that is not a UID falls back",expected,strategy.makeStoredFilePath("1.2.3","..","1.2.3.4.5"));
+		assertEquals("Checking Series Instance UID with separator falls back",expected,strategy.makeStoredFilePath("1.2.3","1.2/3","1.2.3.4.5"));
+	}
+
+	public void TestStoredFilePathStrategy_DefaultStrategyUnchanged() throws Exception {
+		StoredFilePathStrategy strategy = StoredFilePathStrategy.getDefaultStrategy();
+		assertEquals("Checking default strategy",StoredFilePathStrategy.BYSOPINSTANCEUIDINSINGLEFOLDER,strategy);
+		assertEquals("Checking default strategy ignores Study and Series Instance UIDs",
+			new File(savedInstancesFolder,"1.2.3.4.5"),strategy.makeStoredFilePath(savedInstancesFolder,"1.2.3","1.2.3.4","1.2.3.4.5"));
+	}
+
+	public void TestStoredFilePathStrategy_FoldersCreated() throws Exception {
+		StoredFilePathStrategy strategy = new StoredFilePathStrategyShardedSubFolders();
+		File file = strategy.makeReliableStoredFilePathWithFoldersCreated(savedInstancesFolder,"1.2.3.4.5");
+		assertEquals("Checking reliable path is normal path",strategy.makeStoredFilePath(savedInstancesFolder,"1.2.3.4.5"),file);
+		assertTrue("Checking parent folders created",file.getParentFile().isDirectory());
+		assertFalse("Checking file itself not created",file.exists());
+	}
+
+	public void TestStoredFilePathStrategy_FolderRemovedThenForgotten() throws Exception {
+		StoredFilePathStrategy strategy = new StoredFilePathStrategyShardedSubFolders();
+		File file = strategy.makeReliableStoredFilePathWithFoldersCreated(savedInstancesFolder,"1.2.3.4.5");
+		File parent = file.getParentFile();
+		parent.delete();
+		assertFalse("Checking folder removed",parent.exists());
+		strategy.makeReliableStoredFilePathWithFoldersCreated(savedInstancesFolder,"1.2.3.4.5");
+		assertFalse("Checking remembered folder is not checked again",parent.exists());
+		strategy.forgetFoldersKnownToExist();
+		strategy.makeReliableStoredFilePathWithFoldersCreated(savedInstancesFolder,"1.2.3.4.5");
+		assertTrue("Checking folder created again after forgetting",parent.isDirectory());
+	}
+
+	public void TestStoredFilePathStrategy_AlternativeWhenPathIsFolder() throws Exception {
+		StoredFilePathStrategy strategy = new StoredFilePathStrategyShardedSubFolders();
+		File normal = strategy.makeStoredFilePath(savedInstancesFolder,"1.2.3.4.5");
+		normal.mkdirs();
+		File file = strategy.makeReliableStoredFilePathWithFoldersCreated(savedInstancesFolder,"1.2.3.4.5");
+		assertFalse("Checking folder is not used as file",normal.equals(file));
+		assertEquals("Checking alternative file name is SOP Instance UID","1.2.3.4.5",file.getName());
+		assertTrue("Checking alternative parent folder created",file.getParentFile().isDirectory());
+	}
+
+}
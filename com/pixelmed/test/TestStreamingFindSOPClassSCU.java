@@ -0,0 +1,261 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.test;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTagAttribute;
+import com.pixelmed.dicom.CodeStringAttribute;
+import com.pixelmed.dicom.LongStringAttribute;
+import com.pixelmed.dicom.LongTextAttribute;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TagFromName;
+
+import com.pixelmed.network.IdentifierSubscriber;
+import com.pixelmed.network.IdentifierSubscription;
+import com.pixelmed.network.ResponseStatus;
+import com.pixelmed.network.StorageSOPClassSCPDispatcher;
+import com.pixelmed.network.StreamingFindSOPClassSCU;
+
+import com.pixelmed.query.QueryResponseGenerator;
+import com.pixelmed.query.QueryResponseGeneratorFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.*;
+
+public class TestStreamingFindSOPClassSCU extends TestCase {
+
+	protected static final int    waitIntervalWhenSleeping = 10;	// in ms
+	protected static final int    port = 11122;
+	protected static final String scpAET = "TESTFINDSCP";
+	protected static final String scuAET = "TESTFINDSCU";
+
+	// enough, and large enough, that they cannot all be buffered by the transport connection
+	protected static final int    numberOfMatchesAvailable = 20000;
+	protected static final int    lengthOfPadding = 1024;
+
+	// constructor to support adding tests to suite ...
+
+	public TestStreamingFindSOPClassSCU(String name) {
+		super(name);
+	}
+
+	// add tests to suite manually, rather than depending on default of all test...() methods
+	// in order to allow adding TestStreamingFindSOPClassSCU.suite() in AllTests.suite()
+	// see Johannes Link. Unit Testing in Java pp36-47
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("TestStreamingFindSOPClassSCU");
+
+		suite.addTest(new TestStreamingFindSOPClassSCU("TestStreamingFindSOPClassSCU_DeliveredOnlyOnDemand"));
+		suite.addTest(new TestStreamingFindSOPClassSCU("TestStreamingFindSOPClassSCU_MaximumNumberOfResults"));
+		suite.addTest(new TestStreamingFindSOPClassSCU("TestStreamingFindSOPClassSCU_InterruptCancels"));
+
+		return suite;
+	}
+
+	// a C-FIND SCP that generates many matches without a database, and counts how many it has been asked for
+	private class SyntheticQueryResponseGenerator implements QueryResponseGenerator {
+		private int count;
+
+		public void performQuery(String querySOPClassUID,AttributeList queryIdentifier,boolean relational) {}
+
+		public AttributeList next() {
+			if (count >= numberOfMatchesAvailable) {
+				return null;
+			}
+			++count;
+			synchronized (TestStreamingFindSOPClassSCU.this) {
+				++numberOfMatchesGenerated;
+			}
+			AttributeList list = new AttributeList();
+			try {
+				{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue("PATIENT"); list.put(a); }
+				{ Attribute a = new LongStringAttribute(TagFromName.PatientID); a.addValue("P"+count); list.put(a); }
+				{ Attribute a = new LongTextAttribute(TagFromName.AdditionalPatientHistory); a.addValue(padding); list.put(a); }
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.err);
+			}
+			return list;
+		}
+
+		public int getStatus() { return ResponseStatus.Success; }
+
+		public AttributeTagAttribute getOffendingElement() { return null; }
+
+		public String getErrorComment() { return null; }
+
+		public void close() {
+			synchronized (TestStreamingFindSOPClassSCU.this) {
+				queryClosed = true;
+				TestStreamingFindSOPClassSCU.this.notifyAll();
+			}
+		}
+
+		public boolean allOptionalKeysSuppliedWereSupported() { return true; }
+	}
+
+	private class RecordingSubscriber implements IdentifierSubscriber {
+		List<String> patientIDs = new ArrayList<String>();
+		IdentifierSubscription subscription;
+		Thread thread;
+		int initialRequest;
+		int completedStatus = -1;
+		Exception error;
+		boolean finished;
+
+		RecordingSubscriber(int initialRequest) {
+			this.initialRequest = initialRequest;
+		}
+
+		public void onSubscribe(IdentifierSubscription subscription) {
+			synchronized (this) {
+				this.subscription = subscription;
+				thread = Thread.currentThread();
+				notifyAll();
+			}
+			if (initialRequest > 0) {
+				subscription.request(initialRequest);
+			}
+		}
+
+		public synchronized void onNext(AttributeList identifier) {
+			patientIDs.add(Attribute.getSingleStringValueOrEmptyString(identifier,TagFromName.PatientID));
+			notifyAll();
+		}
+
+		public synchronized void onComplete(int status) {
+			completedStatus = status;
+			finished = true;
+			notifyAll();
+		}
+
+		public synchronized void onError(Exception e) {
+			error = e;
+			finished = true;
+			notifyAll();
+		}
+
+		synchronized int getNumberReceived() { return patientIDs.size(); }
+
+		synchronized void waitForNumberReceived(int n) throws InterruptedException {
+			long giveUpAt = System.currentTimeMillis() + 30000;
+			while (patientIDs.size() < n && !finished && System.currentTimeMillis() < giveUpAt) {
+				wait(100);
+			}
+			assertEquals("Checking number of identifiers received",n,patientIDs.size());
+		}
+
+		synchronized void waitForFinished() throws InterruptedException {
+			long giveUpAt = System.currentTimeMillis() + 30000;
+			while (!finished && System.currentTimeMillis() < giveUpAt) {
+				wait(100);
+			}
+			assertTrue("Checking query finished in reasonable time",finished);
+		}
+	}
+
+	private static String padding;
+	private int numberOfMatchesGenerated;
+	private boolean queryClosed;
+	private StorageSOPClassSCPDispatcher storageSOPClassSCPDispatcher;
+	private Thread storageSOPClassSCPDispatcherThread;
+
+	protected void setUp() throws Exception {
+		StringBuffer buf = new StringBuffer();
+		for (int i=0; i<lengthOfPadding; ++i) {
+			buf.append((char)('A'+i%26));
+		}
+		padding = buf.toString();
+		numberOfMatchesGenerated = 0;
+		queryClosed = false;
+		storageSOPClassSCPDispatcher = new StorageSOPClassSCPDispatcher(port,scpAET,16384,0,0,null/*savedImagesFolder*/,null/*receivedObjectHandler*/,
+			new QueryResponseGeneratorFactory() {
+				public QueryResponseGenerator newInstance() { return new SyntheticQueryResponseGenerator(); }
+			},
+			null/*retrieveResponseGeneratorFactory*/,null/*networkApplicationInformation*/,false/*secureTransport*/,0/*debugLevel*/);
+		storageSOPClassSCPDispatcherThread = new Thread(storageSOPClassSCPDispatcher);
+		storageSOPClassSCPDispatcherThread.start();
+		while (!storageSOPClassSCPDispatcher.isReady()) {
+			Thread.currentThread().sleep(waitIntervalWhenSleeping);	// wait until SCP is ready, else later query may fail
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		storageSOPClassSCPDispatcher.shutdown();
+		storageSOPClassSCPDispatcherThread.join();		// so that the port is free for the next test
+	}
+
+	private synchronized int getNumberOfMatchesGenerated() { return numberOfMatchesGenerated; }
+
+	private synchronized void waitForQueryClosed() throws InterruptedException {
+		long giveUpAt = System.currentTimeMillis() + 30000;
+		while (!queryClosed && System.currentTimeMillis() < giveUpAt) {
+			wait(100);
+		}
+		assertTrue("Checking SCP stopped generating matches",queryClosed);
+	}
+
+	private static AttributeList makeIdentifier() throws Exception {
+		AttributeList identifier = new AttributeList();
+		{ Attribute a = new CodeStringAttribute(TagFromName.QueryRetrieveLevel); a.addValue("PATIENT"); identifier.put(a); }
+		{ Attribute a = new LongStringAttribute(TagFromName.PatientID); identifier.put(a); }
+		return identifier;
+	}
+
+	private StreamingFindSOPClassSCU makeQuery(int maximumNumberOfResults) throws Exception {
+		return new StreamingFindSOPClassSCU("localhost",port,scpAET,scuAET,SOPClass.PatientRootQueryRetrieveInformationModelFind,makeIdentifier(),maximumNumberOfResults,0);
+	}
+
+	public void TestStreamingFindSOPClassSCU_DeliveredOnlyOnDemand() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber(5);
+		makeQuery(0).subscribe(subscriber);
+		subscriber.waitForNumberReceived(5);
+		Thread.currentThread().sleep(500);
+		assertEquals("Checking no more delivered than requested",5,subscriber.getNumberReceived());
+		int generatedWhileWaiting = getNumberOfMatchesGenerated();
+		assertTrue("Checking SCP held back while nothing requested",generatedWhileWaiting < numberOfMatchesAvailable);
+		Thread.currentThread().sleep(500);
+		assertEquals("Checking SCP still held back",generatedWhileWaiting,getNumberOfMatchesGenerated());
+		subscriber.subscription.request(3);
+		subscriber.waitForNumberReceived(8);
+		assertEquals("Checking delivered in order","P8",subscriber.patientIDs.get(7));
+		subscriber.subscription.cancel();
+		waitForQueryClosed();
+		assertTrue("Checking SCP stopped before generating all matches",getNumberOfMatchesGenerated() < numberOfMatchesAvailable);
+		Thread.currentThread().sleep(500);
+		synchronized (subscriber) {
+			assertFalse("Checking subscriber not called after cancelling",subscriber.finished);
+			assertEquals("Checking nothing delivered after cancelling",8,subscriber.patientIDs.size());
+		}
+	}
+
+	public void TestStreamingFindSOPClassSCU_MaximumNumberOfResults() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber(Integer.MAX_VALUE);
+		makeQuery(10).subscribe(subscriber);
+		subscriber.waitForFinished();
+		assertNull("Checking no error",subscriber.error);
+		assertEquals("Checking completed after cancelling at limit",ResponseStatus.MatchingTerminatedDueToCancelIndication,subscriber.completedStatus);
+		assertEquals("Checking number delivered limited",10,subscriber.getNumberReceived());
+		waitForQueryClosed();
+		assertTrue("Checking SCP stopped before generating all matches",getNumberOfMatchesGenerated() < numberOfMatchesAvailable);
+	}
+
+	public void TestStreamingFindSOPClassSCU_InterruptCancels() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber(1);
+		makeQuery(0).subscribe(subscriber);
+		subscriber.waitForNumberReceived(1);
+		Thread.currentThread().sleep(200);		// until waiting for demand for the next identifier
+		subscriber.thread.interrupt();
+		subscriber.waitForFinished();
+		assertNull("Checking no error",subscriber.error);
+		assertEquals("Checking completed after cancelling",ResponseStatus.MatchingTerminatedDueToCancelIndication,subscriber.completedStatus);
+		assertEquals("Checking nothing more delivered",1,subscriber.getNumberReceived());
+		waitForQueryClosed();
+		assertTrue("Checking SCP stopped before generating all matches",getNumberOfMatchesGenerated() < numberOfMatchesAvailable);
+	}
+
+}
@@ -2,37 +2,73 @@
 
 package com.pixelmed.utils;
 
+import java.lang.reflect.Method;
+
 /**
+ * <p>Encode strings phonetically, using the Double Metaphone encoder of Apache Commons Codec if it is available.</p>
+ *
+ * <p>The encoder is found by reflection only once, when constructed, rather than each time a string is encoded. Since
+ * it is safe to use the same encoder from multiple threads, an instance shared by all callers may be obtained
+ * with {@link #getSharedInstance() getSharedInstance()} rather than constructing a new one. If the encoder is not available,
+ * that is also only found out once, and the same exception thrown each time.</p>
+ *
  * @author	dclunie
  */
 public class PhoneticStringEncoder {
 	protected Class encoderClass;
 	protected Object encoder;
-	
+	protected Method encodeMethod;
+
+	private static PhoneticStringEncoder sharedInstance;
+	private static PhoneticStringEncoderException sharedInstanceException;		// if the encoder is not available, so as not to look for it again
+
 	public PhoneticStringEncoder() throws PhoneticStringEncoderException {
 		try {
 			encoderClass = Thread.currentThread().getContextClassLoader().loadClass("org.apache.commons.codec.language.DoubleMetaphone");
-			
+
 			Class [] argTypes  = {};
 			Object[] argValues = {};
 			encoder = encoderClass.getConstructor(argTypes).newInstance(argValues);
+
+			Class [] encodeArgTypes  = { java.lang.String.class };
+			encodeMethod = encoderClass.getMethod("encode",encodeArgTypes);
 		}
 		catch (Exception e) {	// may be ClassNotFoundException,NoSuchMethodException,InstantiationException,IllegalAccessException,InvocationTargetException
 			throw new PhoneticStringEncoderException("Could not instantiate org.apache.commons.codec.language.DoubleMetaphone - "+e);
 		}
 	}
-	
+
+	/**
+	 * <p>Get an encoder shared by all callers, constructing it the first time.</p>
+	 *
+	 * @return	the shared encoder
+	 * @exception	PhoneticStringEncoderException	if the encoder is not available
+	 */
+	public static synchronized PhoneticStringEncoder getSharedInstance() throws PhoneticStringEncoderException {
+		if (sharedInstance == null) {
+			if (sharedInstanceException != null) {
+				throw sharedInstanceException;
+			}
+			try {
+				sharedInstance = new PhoneticStringEncoder();
+			}
+			catch (PhoneticStringEncoderException e) {
+				sharedInstanceException = e;
+				throw e;
+			}
+		}
+		return sharedInstance;
+	}
+
 	public String encode(String s) throws PhoneticStringEncoderException {
 		String returnValue = null;
 		try {
-			Class [] argTypes  = { java.lang.String.class };
 			Object[] argValues = { s };
-			returnValue = (String)(encoderClass.getMethod("encode",argTypes).invoke(encoder,argValues));
+			returnValue = (String)(encodeMethod.invoke(encoder,argValues));
 		}
-		catch (Exception e) { // may be NullPointerexception, NoSuchMethodException, IllegalAccessException, InvocationTargetException, org.apache.commons.codec.EncoderException
+		catch (Exception e) { // may be NullPointerexception, IllegalAccessException, InvocationTargetException, org.apache.commons.codec.EncoderException
 			throw new PhoneticStringEncoderException("Could not invoke org.apache.commons.codec.StringEncoder.encode() - "+e);
 		}
 		return returnValue;
 	}
 }
-	
@@ -0,0 +1,29 @@
+/* Copyright (c) 2001-2012, David A. Clunie DBA Pixelmed Publishing. All rights reserved. */
+
+package com.pixelmed.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.pixelmed.database.DatabaseInformationModel;
+import com.pixelmed.network.NetworkMetrics;
+
+/**
+ * <p>The {@link com.pixelmed.web.MetricsRequestHandler MetricsRequestHandler} creates a response to an HTTP request for
+ * the current {@link com.pixelmed.network.NetworkMetrics NetworkMetrics}, as plain text.</p>
+ *
+ * @author	agent
+ */
+class MetricsRequestHandler extends RequestHandler {
+	private static final String identString = "@(#) $Header$";
+
+	protected MetricsRequestHandler(int webServerDebugLevel) {
+		super(null,webServerDebugLevel);
+	}
+
+	protected void generateResponseToGetRequest(DatabaseInformationModel databaseInformationModel,String rootURL,String requestURI,WebRequest request,String requestType,OutputStream out) throws IOException {
+		String report = NetworkMetrics.getNetworkMetrics().getReport();
+if (webServerDebugLevel > 1) System.err.println("MetricsRequestHandler.generateResponseToGetRequest(): report length "+report.length());
+		sendHeaderAndBodyText(out,report,"metrics.txt","text/plain; charset=US-ASCII");
+	}
+}
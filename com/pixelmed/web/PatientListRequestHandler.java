@@ -11,17 +11,23 @@ import java.util.Comparator;
 import java.util.Map;
 
 import com.pixelmed.database.DatabaseInformationModel;
+import com.pixelmed.database.DicomDatabaseInformationModel;
 import com.pixelmed.dicom.InformationEntity;
 
 /**
  * <p>The {@link com.pixelmed.web.PatientListRequestHandler PatientListRequestHandler} creates a response to an HTTP request for
  * a list of all patients.</p>
  *
+ * <p>If a <code>name</code> parameter is supplied, and the database has an index of patient names, only the patients with similar names
+ * are listed, best match first, or those with names starting with the words supplied, if the <code>match</code> parameter is <code>prefix</code>.</p>
+ *
  * @author	dclunie
  */
 class PatientListRequestHandler extends RequestHandler {
 	private static final String identString = "@(#) $Header: /userland/cvs/pixelmed/imgbook/com/pixelmed/web/PatientListRequestHandler.java,v 1.7 2011/04/04 14:47:15 dclunie Exp $";
 
+	private static final int maximumNumberOfPatientsFoundByName = 100;
+
 	protected PatientListRequestHandler(String stylesheetPath,int webServerDebugLevel) {
 		super(stylesheetPath,webServerDebugLevel);
 	}
@@ -53,12 +59,36 @@ class PatientListRequestHandler extends RequestHandler {
 				strbuf.append("\">");
 			}
 			strbuf.append("</head>\r\n");
-			strbuf.append("<body><table>\r\n");
+			strbuf.append("<body>");
+			Map parameters = request.getParameters();
+			String name = parameters == null ? null : (String)(parameters.get("name"));
+			boolean prefix = parameters != null && "prefix".equals(parameters.get("match"));
+			boolean searchByName = name != null && name.trim().length() > 0
+				&& databaseInformationModel instanceof DicomDatabaseInformationModel
+				&& ((DicomDatabaseInformationModel)databaseInformationModel).hasPersonNameIndex(InformationEntity.PATIENT);
+			if (databaseInformationModel instanceof DicomDatabaseInformationModel
+			 && ((DicomDatabaseInformationModel)databaseInformationModel).hasPersonNameIndex(InformationEntity.PATIENT)) {
+				strbuf.append("<form action=\"");
+				strbuf.append(rootURL);
+				strbuf.append("\" method=\"get\">");
+				strbuf.append("<input type=\"hidden\" name=\"requestType\" value=\"PATIENTLIST\">");
+				strbuf.append("<input type=\"text\" name=\"name\">");
+				strbuf.append("<input type=\"checkbox\" name=\"match\" value=\"prefix\">Starts with");
+				strbuf.append("<input type=\"submit\" value=\"Find Patient's Name\">");
+				strbuf.append("</form>\r\n");
+			}
+			strbuf.append("<table>\r\n");
 			strbuf.append("<tr><th>Patient's ID</th><th>Patient's Name</th></tr>\r\n");
 			String primaryKeyColumnName = databaseInformationModel.getLocalPrimaryKeyColumnName(InformationEntity.PATIENT);
-			ArrayList patients = databaseInformationModel.findAllAttributeValuesForAllRecordsForThisInformationEntity(InformationEntity.PATIENT);
-
-			Collections.sort(patients,compareDatabaseAttributesByPatientID);
+			ArrayList patients;
+			if (searchByName) {
+				patients = ((DicomDatabaseInformationModel)databaseInformationModel).findAllAttributeValuesForAllRecordsForThisInformationEntityWithSimilarPersonName(
+					InformationEntity.PATIENT,name,prefix,maximumNumberOfPatientsFoundByName);	// already best match first, so do not sort
+			}
+			else {
+				patients = databaseInformationModel.findAllAttributeValuesForAllRecordsForThisInformationEntity(InformationEntity.PATIENT);
+				Collections.sort(patients,compareDatabaseAttributesByPatientID);
+			}
 			
 			int numberOfPatients = patients.size();
 			for (int p=0; p<numberOfPatients; ++p) {
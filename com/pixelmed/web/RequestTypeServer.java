@@ -31,7 +31,8 @@ import com.pixelmed.network.StorageSOPClassSCPDispatcher;
  * as defined by DICOM PS 3.18 (ISO 17432), which provides a standard web (http) interface through which to retrieve DICOM objects either
  * as DICOM files or as derived JPEG images.</p>
  *
- * <p>In addition to servicing WADO requests, it provides lists of patients, studies and series that link to WADO URLs.</p>
+ * <p>In addition to servicing WADO requests, it provides lists of patients, studies and series that link to WADO URLs,
+ * and the current {@link com.pixelmed.network.NetworkMetrics NetworkMetrics} as plain text for "?requestType=METRICS".</p>
  *
  * <p>It extends extends {@link com.pixelmed.web.HttpServer HttpServer} and implements
  * {@link Worker#generateResponseToGetRequest(String,OutputStream) generateResponseToGetRequest()}.</p>
@@ -69,6 +70,7 @@ public class RequestTypeServer extends HttpServer {
 		private InstanceListRequestHandler instanceListRequestHandler = null;
 		private ImageDisplayRequestHandler imageDisplayRequestHandler = null;
 		private AppletDisplayRequestHandler appletDisplayRequestHandler = null;
+		private MetricsRequestHandler metricsRequestHandler = null;
 		
 		protected void generateResponseToGetRequest(String requestURI,OutputStream out) throws IOException {
 if (webServerDebugLevel > 0) System.err.println("RequestTypeServer.RequestTypeWorker.generateResponseToGetRequest(): Requested URI: "+requestURI);
@@ -123,6 +125,12 @@ if (webServerDebugLevel > 0) System.err.println("RequestTypeServer.RequestTypeWo
 					}
 					appletDisplayRequestHandler.generateResponseToGetRequest(databaseInformationModel,rootURL,null,request,null,out);
 				}
+				else if (requestType.equals("METRICS")) {
+					if (metricsRequestHandler == null) {
+						metricsRequestHandler = new MetricsRequestHandler(webServerDebugLevel);
+					}
+					metricsRequestHandler.generateResponseToGetRequest(null,null,null,request,null,out);
+				}
 				else {
 					throw new Exception("Unrecognized requestType \""+requestType+"\"");
 				}